@@ -18,6 +18,7 @@
 
 package edu.cornell.med.icb.goby.algorithmic.algorithm;
 
+import edu.cornell.med.icb.goby.algorithmic.data.Annotation;
 import edu.cornell.med.icb.goby.algorithmic.data.WeightsInfo;
 import edu.cornell.med.icb.goby.alignments.*;
 import edu.cornell.med.icb.goby.modes.WeightParameters;
@@ -25,6 +26,9 @@ import it.unimi.dsi.fastutil.ints.IntAVLTreeSet;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.ints.IntSortedSet;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
 
 import java.io.IOException;
 
@@ -50,6 +54,7 @@ public class AnnotationCountIterateAlignments extends IterateAlignments {
     }
 
     private long numAlignedReadsInSample=-1;
+    private Object2ObjectMap<String, ObjectList<Annotation>> annotations;
 
     public void setWeightInfo(final WeightParameters weightParams, final WeightsInfo weights) {
         this.weightParams = weightParams;
@@ -57,6 +62,17 @@ public class AnnotationCountIterateAlignments extends IterateAlignments {
 
     }
 
+    /**
+     * Provide the annotations that will be counted. When annotations are provided, reads of sorted alignments are
+     * counted as they are read with StreamingAnnotationCount, instead of being kept in memory until the end of the
+     * alignment. Only the intervals of these annotations can then be queried.
+     *
+     * @param annotations annotations, grouped by reference sequence name.
+     */
+    public void setAnnotations(final Object2ObjectMap<String, ObjectList<Annotation>> annotations) {
+        this.annotations = annotations;
+    }
+
     @Override
     public void processNumberOfReferences(final String basename, final int numberOfReferences) throws IOException {
         algs = new AnnotationCountInterface[numberOfReferences];
@@ -84,9 +100,14 @@ public class AnnotationCountIterateAlignments extends IterateAlignments {
         if (numAlignedReadsInSample == -1) {
             numAlignedReadsInSample = alignmentReader.getNumberOfAlignedReads();
         }
-        AnnotationCountInterface algo = new AnnotationCount();
-
-        algo = chooseAlgorithm(weightParams, weights, algo);
+        AnnotationCountInterface algo;
+        if (annotations != null && alignmentReader.isSorted() && (weightParams == null || !weightParams.useWeights)) {
+            final ObjectList<Annotation> referenceAnnotations = annotations.get(getReferenceId(referenceIndex).toString());
+            algo = new StreamingAnnotationCount(referenceAnnotations == null
+                    ? new ObjectArrayList<Annotation>() : referenceAnnotations);
+        } else {
+            algo = chooseAlgorithm(weightParams, weights, new AnnotationCount());
+        }
         algs[referenceIndex] = algo;
         algs[referenceIndex].startPopulating();
         referencesSelected.add(referenceIndex);
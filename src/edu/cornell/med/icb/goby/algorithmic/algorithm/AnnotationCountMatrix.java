@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import edu.cornell.med.icb.goby.algorithmic.data.Annotation;
+
+/**
+ * Read counts of samples over the elements of an {@link AnnotationElementIndex}, stored in one primitive row per
+ * sample. For each sample and element, the matrix stores the number of reads that overlap the element, and the
+ * number of reads strictly within the element. Counts are defined as in {@link AnnotationCountInterface}.
+ */
+public class AnnotationCountMatrix {
+    private final AnnotationElementIndex elements;
+    private final int[][] overlapCounts;
+    private final int[][] inCounts;
+    private final long[] numAlignedReads;
+
+    /**
+     * Create a matrix of zero counts.
+     *
+     * @param elements   the elements counted.
+     * @param numSamples number of samples.
+     */
+    public AnnotationCountMatrix(final AnnotationElementIndex elements, final int numSamples) {
+        super();
+        this.elements = elements;
+        final int numElements = elements.getNumberOfElements();
+        overlapCounts = new int[numSamples][numElements];
+        inCounts = new int[numSamples][numElements];
+        numAlignedReads = new long[numSamples];
+    }
+
+    public AnnotationElementIndex getElements() {
+        return elements;
+    }
+
+    public int getNumberOfSamples() {
+        return overlapCounts.length;
+    }
+
+    /**
+     * Return the counts of reads that overlap each element in a sample. Threads that count different elements of
+     * the same sample update this row concurrently.
+     *
+     * @param sampleIndex index of the sample.
+     * @return the row of the sample, indexed by element.
+     */
+    public int[] getOverlapCounts(final int sampleIndex) {
+        return overlapCounts[sampleIndex];
+    }
+
+    /**
+     * Return the counts of reads strictly within each element in a sample.
+     *
+     * @param sampleIndex index of the sample.
+     * @return the row of the sample, indexed by element.
+     */
+    public int[] getInCounts(final int sampleIndex) {
+        return inCounts[sampleIndex];
+    }
+
+    public int getOverlapCount(final int sampleIndex, final int element) {
+        return overlapCounts[sampleIndex][element];
+    }
+
+    public int getInCount(final int sampleIndex, final int element) {
+        return inCounts[sampleIndex][element];
+    }
+
+    public long getNumAlignedReads(final int sampleIndex) {
+        return numAlignedReads[sampleIndex];
+    }
+
+    public void setNumAlignedReads(final int sampleIndex, final long numAlignedReads) {
+        this.numAlignedReads[sampleIndex] = numAlignedReads;
+    }
+
+    /**
+     * Estimate the expression of a gene in a sample, as defined by
+     * {@link AnnotationCountInterface#geneExpressionCount(Annotation)}: the reads that overlap the gene, minus the
+     * reads strictly within its introns.
+     *
+     * @param sampleIndex     index of the sample.
+     * @param annotationIndex index of the annotation of the gene.
+     * @return the number of reads.
+     */
+    public int geneExpressionCount(final int sampleIndex, final int annotationIndex) {
+        int sum = overlapCounts[sampleIndex][elements.getGeneElement(annotationIndex)];
+        final int numIntrons = elements.getAnnotation(annotationIndex).getSegments().size() - 1;
+        for (int i = 0; i < numIntrons; i++) {
+            sum -= inCounts[sampleIndex][elements.getIntronElement(annotationIndex, i)];
+        }
+        return sum;
+    }
+}
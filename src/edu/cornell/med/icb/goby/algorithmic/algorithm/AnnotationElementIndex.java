@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import edu.cornell.med.icb.goby.algorithmic.data.Annotation;
+import edu.cornell.med.icb.goby.algorithmic.data.IntervalIndex;
+import edu.cornell.med.icb.goby.algorithmic.data.Segment;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+
+import java.util.Map;
+
+/**
+ * The elements counted for annotations: each annotation defines a gene element spanning the annotation, one exon
+ * element per segment, and one intron element between consecutive segments. Elements are numbered from zero, and
+ * the elements of an annotation are consecutive: the gene, then its exons, then its introns. The elements are
+ * indexed by an {@link IntervalIndex}, so that the elements that a read overlaps are found directly.
+ * <p/>
+ * The index does not change once built and is shared by the threads that count reads.
+ */
+public class AnnotationElementIndex {
+    private final ObjectArrayList<Annotation> annotations = new ObjectArrayList<Annotation>();
+    /**
+     * The number of the gene element of each annotation, followed by the number of elements.
+     */
+    private final int[] firstElements;
+    private final IntervalIndex index;
+    /**
+     * The annotations of a reference sequence are numbered from the first to the end (excluded) annotation.
+     */
+    private final Object2IntMap<String> firstAnnotations = new Object2IntOpenHashMap<String>();
+    private final Object2IntMap<String> endAnnotations = new Object2IntOpenHashMap<String>();
+
+    /**
+     * Index the elements of annotations.
+     *
+     * @param annotationsByReference annotations, grouped by name of reference sequence.
+     */
+    public AnnotationElementIndex(final Object2ObjectMap<String, ObjectList<Annotation>> annotationsByReference) {
+        super();
+        final IntArrayList first = new IntArrayList();
+        final IntervalIndex.Builder builder = new IntervalIndex.Builder();
+        int element = 0;
+        for (final Map.Entry<String, ObjectList<Annotation>> entry : annotationsByReference.entrySet()) {
+            final String referenceName = entry.getKey();
+            firstAnnotations.put(referenceName, annotations.size());
+            for (final Annotation annotation : entry.getValue()) {
+                annotations.add(annotation);
+                first.add(element);
+                builder.add(referenceName, annotation.getStart(), annotation.getEnd(), element++);
+                final ObjectList<Segment> segments = annotation.getSegments();
+                for (final Segment segment : segments) {
+                    builder.add(referenceName, segment.getStart(), segment.getEnd(), element++);
+                }
+                for (int i = 0; i < segments.size() - 1; i++) {
+                    final int intronStart = segments.get(i).getEnd() + 1;
+                    final int intronEnd = segments.get(i + 1).getStart() - 1;
+                    // no read overlaps an empty intron:
+                    if (intronStart <= intronEnd) {
+                        builder.add(referenceName, intronStart, intronEnd, element);
+                    }
+                    element++;
+                }
+            }
+            endAnnotations.put(referenceName, annotations.size());
+        }
+        first.add(element);
+        firstElements = first.toIntArray();
+        index = builder.build();
+    }
+
+    /**
+     * @return the number of annotations.
+     */
+    public int getNumberOfAnnotations() {
+        return annotations.size();
+    }
+
+    /**
+     * @return the number of elements of all the annotations.
+     */
+    public int getNumberOfElements() {
+        return firstElements[firstElements.length - 1];
+    }
+
+    /**
+     * @param referenceName name of a reference sequence.
+     * @return the index of the first annotation of the reference sequence.
+     */
+    public int getFirstAnnotation(final String referenceName) {
+        return firstAnnotations.getInt(referenceName);
+    }
+
+    /**
+     * @param referenceName name of a reference sequence.
+     * @return the index after the last annotation of the reference sequence, equal to the first annotation when the
+     *         reference sequence has no annotation.
+     */
+    public int getEndAnnotation(final String referenceName) {
+        return endAnnotations.getInt(referenceName);
+    }
+
+    public Annotation getAnnotation(final int annotationIndex) {
+        return annotations.get(annotationIndex);
+    }
+
+    public int getGeneElement(final int annotationIndex) {
+        return firstElements[annotationIndex];
+    }
+
+    /**
+     * @param annotationIndex index of the annotation.
+     * @param segmentIndex    index of the segment in the annotation.
+     * @return the number of the exon element of the segment.
+     */
+    public int getExonElement(final int annotationIndex, final int segmentIndex) {
+        return firstElements[annotationIndex] + 1 + segmentIndex;
+    }
+
+    /**
+     * @param annotationIndex index of the annotation.
+     * @param segmentIndex    index of the segment in the annotation that precedes the intron.
+     * @return the number of the intron element after the segment.
+     */
+    public int getIntronElement(final int annotationIndex, final int segmentIndex) {
+        return firstElements[annotationIndex] + 1 + annotations.get(annotationIndex).getSegments().size()
+                + segmentIndex;
+    }
+
+    /**
+     * @return the interval index of the elements. The value of each interval is the number of its element.
+     */
+    public IntervalIndex getIntervalIndex() {
+        return index;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import edu.cornell.med.icb.goby.algorithmic.data.DepthHistogram;
+
+/**
+ * Coverage statistics of one sample in a capture experiment: depth histograms of the captured sites (sites
+ * covered by an annotation) and of the sites that were not captured. Statistics calculated over different reference
+ * sequences can be merged. The statistics are defined as in {@link CoverageAnalysis}, but are estimated from
+ * histograms that are exact up to the exact limit of {@link DepthHistogram}.
+ */
+public class CoverageStatistics {
+    private final DepthHistogram captured;
+    private final DepthHistogram notCaptured;
+    private long sumDepth;
+    private long countDepth;
+    private long sumDepthAnnot;
+    private long countDepthAnnot;
+
+    public CoverageStatistics() {
+        this(DepthHistogram.DEFAULT_EXACT_LIMIT);
+    }
+
+    /**
+     * Create empty statistics.
+     *
+     * @param exactLimit depths smaller than this value are counted exactly.
+     */
+    public CoverageStatistics(final int exactLimit) {
+        super();
+        captured = new DepthHistogram(exactLimit);
+        notCaptured = new DepthHistogram(exactLimit);
+    }
+
+    /**
+     * Record a segment of consecutive sites with the same depth.
+     *
+     * @param depth      depth of coverage of the sites.
+     * @param length     number of sites.
+     * @param inCaptured whether the sites are covered by an annotation.
+     */
+    public void add(final int depth, final int length, final boolean inCaptured) {
+        if (length == 0) {
+            return;
+        }
+        if (depth != 0) {
+            final long numBases = (long) depth * length;
+            sumDepth += numBases;
+            countDepth += length;
+            if (inCaptured) {
+                sumDepthAnnot += numBases;
+                countDepthAnnot += length;
+            }
+        }
+        (inCaptured ? captured : notCaptured).add(depth, length);
+    }
+
+    /**
+     * Add the statistics of other sites of the same sample to these statistics.
+     *
+     * @param other statistics with the same exact limit.
+     */
+    public void merge(final CoverageStatistics other) {
+        captured.merge(other.captured);
+        notCaptured.merge(other.notCaptured);
+        sumDepth += other.sumDepth;
+        countDepth += other.countDepth;
+        sumDepthAnnot += other.sumDepthAnnot;
+        countDepthAnnot += other.countDepthAnnot;
+    }
+
+    public long getSumDepth() {
+        return sumDepth;
+    }
+
+    public long getCountDepth() {
+        return countDepth;
+    }
+
+    public long getSumDepthAnnot() {
+        return sumDepthAnnot;
+    }
+
+    public long getCountDepthAnnot() {
+        return countDepthAnnot;
+    }
+
+    public DepthHistogram getCapturedHistogram() {
+        return captured;
+    }
+
+    public DepthHistogram getNotCapturedHistogram() {
+        return notCaptured;
+    }
+
+    /**
+     * Returns the average depth, over annotations or non annotation sites. Only sites that have at least one
+     * base mapped are considered.
+     *
+     * @return Average depth.
+     */
+    public double getAverageDepth() {
+        return divide(sumDepth, countDepth);
+    }
+
+    /**
+     * Returns the average depth estimated exclusively over annotations. Only sites that have at least one
+     * base mapped over are considered.
+     *
+     * @return Average depth over annotations.
+     */
+    public double getAnnotationAverageDepth() {
+        return divide(sumDepthAnnot, countDepthAnnot);
+    }
+
+    /**
+     * Return enrichment efficiency, the number of bases mapped within annotations divided by the number of bases
+     * mapped to the reference. See {@link CoverageAnalysis#getEnrichmentEfficiency()}.
+     *
+     * @return enrichment efficiency.
+     */
+    public double getEnrichmentEfficiency() {
+        final long basesCaptured = captured.getNumBasesWithDepthAtLeast(1);
+        return divide(basesCaptured, basesCaptured + notCaptured.getNumBasesWithDepthAtLeast(1));
+    }
+
+    /**
+     * Return the total number of sites with depth equal or larger to d
+     *
+     * @param d depth threshold
+     * @return total number of sites with depth>=d
+     */
+    public long getNumSitesWithDepthAtLeast(final int d) {
+        return captured.getNumSitesWithDepthAtLeast(d) + notCaptured.getNumSitesWithDepthAtLeast(d);
+    }
+
+    /**
+     * Return the total number of captured sites with depth equal or larger to d
+     *
+     * @param d depth threshold
+     * @return total number of captured sites with depth>=d
+     */
+    public long getNumSitesCapturedWithDepthAtLeast(final int d) {
+        return captured.getNumSitesWithDepthAtLeast(d);
+    }
+
+    /**
+     * Return the depth observed for p percentile captured sites when sites are ordered by depth. If p=.9, returns
+     * the d such that 90% of the captured sites have depth greater or equal to d. The depth is exact when it is
+     * smaller than the exact limit, and is otherwise approximate: it is the lower bound of the logarithmic bin of
+     * the histogram that holds it.
+     *
+     * @param percentile a number between 0 and 1.
+     * @return a depth, approximate above the exact limit.
+     */
+    public int depthCapturedAtPercentile(final double percentile) {
+        return captured.smallestDepthWithAtMost(countDepthAnnot * percentile);
+    }
+
+    /**
+     * Returns the fraction of captured sites whose depth is larger or equal to d
+     *
+     * @param d depth threshold
+     * @return a number between 0 and 1.
+     */
+    public double percentSitesCaptured(final int d) {
+        return divide(captured.getNumSitesWithDepthAtLeast(d), countDepthAnnot);
+    }
+
+    private static double divide(final double v1, final double v2) {
+        return v1 / v2;
+    }
+}
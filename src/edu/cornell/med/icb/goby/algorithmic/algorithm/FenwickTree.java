@@ -55,6 +55,21 @@ public class FenwickTree implements Serializable {
         }
     }
 
+    /**
+     * Increment the count of an element by several observations at once.
+     *
+     * @param index index of the element. Observations past the last element only contribute to the total count.
+     * @param count number of observations of the element.
+     */
+    public void incrementCount(int index, final long count) {
+        ++index;
+        totalCount += count;
+        while (index <= n) {
+            cumCount[index] += count;
+            index += index & -index;
+        }
+    }
+
     /**
      * Get the cumulative count for elements between [0-index].
      *
@@ -66,7 +81,7 @@ public class FenwickTree implements Serializable {
             // past the capacity of the array is all the counts we have seen:
             return totalCount;
         }
-        int count = 0;
+        long count = 0;
         index++;
         while (index != 0) {
             count += cumCount[index];
@@ -76,6 +91,23 @@ public class FenwickTree implements Serializable {
         return count;
     }
 
+    /**
+     * Add the counts of another tree to this tree. Since the cumulative counts of a Fenwick tree are linear in the
+     * element counts, the result is the tree that would have observed the increments of both trees.
+     *
+     * @param other a tree with the same number of elements.
+     */
+    public void add(final FenwickTree other) {
+        if (other.n != n) {
+            throw new IllegalArgumentException(String.format("Cannot add a tree of size %d to a tree of size %d",
+                    other.n, n));
+        }
+        for (int i = 0; i < cumCount.length; i++) {
+            cumCount[i] += other.cumCount[i];
+        }
+        totalCount += other.totalCount;
+    }
+
     /**
      * Get the cumulative count over all the elements. This is exactly the number of times increment count has
      * been called.
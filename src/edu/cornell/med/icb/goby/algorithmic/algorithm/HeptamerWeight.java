@@ -27,39 +27,45 @@ import it.unimi.dsi.lang.MutableString;
  *         Time: 5:07:17 PM
  */
 public class HeptamerWeight implements WeightCalculator {
-    private HeptamerInfo heptamers;
+    private final HeptamerInfo heptamers;
+    /**
+     * Weights indexed by heptamer code.
+     */
+    private final float[] weights;
 
     public HeptamerWeight(final HeptamerInfo heptamers) {
         this.heptamers = heptamers;
+        weights = heptamers.getWeightTable();
     }
 
+    /**
+     * Return the weight of the heptamer that starts the sequence. The first base of color-space sequences is
+     * skipped. This method can be called concurrently.
+     */
     public float weight(final MutableString sequence) {
-        if (heptamers.colorSpace) {
-            sequence.delete(0, 1);
+        final int start = heptamers.colorSpace ? 1 : 0;
+        final int end = start + heptamers.heptamerLength;
+        if (sequence.length() < end) {
+            return 1f;
+        }
+        final int code = heptamers.encode(sequence, start);
+        if (code != -1) {
+            return weights[code];
         }
-        // if (count++ > 1000000) break;
-        final int item = 0;
-
-        final int positionInRead = 1;
-
-
-        final int end = positionInRead - 1 + heptamers.heptamerLength;
-        final int start = positionInRead - 1;
-        //     System.out.printf("%d %d %d %d%n", positionInRead,sequence.length(),start, end );
         final MutableString heptamer = sequence.substring(start, end);
 
         if (heptamer.indexOf('N') == -1) {
-            // heptamers that include any number of Ns are ignored.
+            // heptamers that include any number of Ns are ignored. Other heptamers are rare enough to look up:
             final short heptamerIndex = (short) heptamers.heptamerToIndices.getInt(heptamer);
 
-            final float weight = heptamerIndex == -1 ? 1 : heptamers.heptamerIndexToWeight.get(heptamerIndex);
-            return weight;
+            return heptamerIndex == -1 ? 1 : heptamers.heptamerIndexToWeight.get(heptamerIndex);
         } else {
             return 1f;
         }
 
     }
-     public String id() {
+
+    public String id() {
         return "heptamers";
     }
 }
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import edu.cornell.med.icb.goby.algorithmic.data.DepthHistogram;
+import edu.cornell.med.icb.goby.counts.CountsArchiveReader;
+import edu.cornell.med.icb.goby.counts.CountsReaderI;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Calculates the coverage statistics of many samples of a capture experiment. The annotation count archive that
+ * describes the captured target is decoded once per reference sequence, into intervals shared by all samples, and
+ * each sample count reader is swept against these intervals. Reference sequences are processed concurrently on a
+ * pool of threads, each task keeping its own {@link CoverageStatistics} per sample. The statistics of each reference
+ * are merged in reference order, so the result does not depend on the number of threads.
+ * <p/>
+ * Samples are processed in batches, so that only a bounded number of sample count archives are open at a time.
+ */
+public class MultiSampleCoverageAnalysis {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Logger LOG = Logger.getLogger(MultiSampleCoverageAnalysis.class);
+
+    private final int numThreads;
+    private int samplesPerBatch = 128;
+    private int exactLimit = DepthHistogram.DEFAULT_EXACT_LIMIT;
+
+    /**
+     * Create an analysis.
+     *
+     * @param numThreads number of reference sequences processed concurrently.
+     */
+    public MultiSampleCoverageAnalysis(final int numThreads) {
+        super();
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Set the maximum number of sample count archives open at the same time.
+     *
+     * @param samplesPerBatch number of samples.
+     */
+    public void setSamplesPerBatch(final int samplesPerBatch) {
+        this.samplesPerBatch = Math.max(1, samplesPerBatch);
+    }
+
+    /**
+     * Set the depth below which depth histograms are exact. Statistics match those of {@link CoverageAnalysis}
+     * for depths below the limit, while percentiles and site counts at larger depths are approximate.
+     *
+     * @param exactLimit a depth.
+     */
+    public void setExactLimit(final int exactLimit) {
+        this.exactLimit = exactLimit;
+    }
+
+    /**
+     * Calculate the coverage statistics of samples.
+     *
+     * @param annotationBasename basename of the count archive of the captured target.
+     * @param sampleBasenames    basenames of the count archives of the samples.
+     * @return statistics, in the order of sampleBasenames.
+     * @throws IOException if a count archive cannot be read.
+     */
+    public CoverageStatistics[] process(final String annotationBasename, final String[] sampleBasenames)
+            throws IOException {
+        final CountsArchiveReader annotationArchive = new CountsArchiveReader(annotationBasename);
+        final ObjectArrayList<String> referenceIds = new ObjectArrayList<String>();
+        final ObjectArrayList<CapturedIntervals> intervals = new ObjectArrayList<CapturedIntervals>();
+        try {
+            for (final String referenceId : annotationArchive.getIdentifiers()) {
+                referenceIds.add(referenceId);
+                final CountsReaderI annotationReader = annotationArchive.getCountReader(referenceId);
+                try {
+                    intervals.add(new CapturedIntervals(annotationReader));
+                } finally {
+                    annotationReader.close();
+                }
+            }
+        } finally {
+            annotationArchive.close();
+        }
+        final CoverageStatistics[] result = new CoverageStatistics[sampleBasenames.length];
+        for (int batchStart = 0; batchStart < sampleBasenames.length; batchStart += samplesPerBatch) {
+            final int batchEnd = Math.min(sampleBasenames.length, batchStart + samplesPerBatch);
+            final CountsArchiveReader[] sampleArchives = new CountsArchiveReader[batchEnd - batchStart];
+            try {
+                for (int i = 0; i < sampleArchives.length; i++) {
+                    sampleArchives[i] = new CountsArchiveReader(sampleBasenames[batchStart + i]);
+                }
+                final CoverageStatistics[] batch = process(referenceIds, intervals, sampleArchives);
+                System.arraycopy(batch, 0, result, batchStart, batch.length);
+            } finally {
+                for (final CountsArchiveReader archive : sampleArchives) {
+                    if (archive != null) {
+                        archive.close();
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private CoverageStatistics[] process(final ObjectArrayList<String> referenceIds,
+                                         final ObjectArrayList<CapturedIntervals> intervals,
+                                         final CountsArchiveReader[] sampleArchives) throws IOException {
+        final CoverageStatistics[] result = newStatistics(sampleArchives.length);
+        final ObjectArrayList<ObjectSet<String>> sampleReferenceIds = new ObjectArrayList<ObjectSet<String>>();
+        for (final CountsArchiveReader archive : sampleArchives) {
+            sampleReferenceIds.add(archive.getIdentifiers());
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            final ObjectArrayList<Future<CoverageStatistics[]>> futures = new ObjectArrayList<Future<CoverageStatistics[]>>();
+            for (int referenceIndex = 0; referenceIndex < referenceIds.size(); referenceIndex++) {
+                final String referenceId = referenceIds.get(referenceIndex);
+                final CapturedIntervals captured = intervals.get(referenceIndex);
+                futures.add(executor.submit(new Callable<CoverageStatistics[]>() {
+                    @Override
+                    public CoverageStatistics[] call() throws IOException {
+                        return processReference(referenceId, captured, sampleArchives, sampleReferenceIds);
+                    }
+                }));
+            }
+            for (final Future<CoverageStatistics[]> future : futures) {
+                final CoverageStatistics[] referenceStatistics = future.get();
+                for (int sampleIndex = 0; sampleIndex < result.length; sampleIndex++) {
+                    result[sampleIndex].merge(referenceStatistics[sampleIndex]);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GobyRuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new GobyRuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    private CoverageStatistics[] processReference(final String referenceId, final CapturedIntervals captured,
+                                                  final CountsArchiveReader[] sampleArchives,
+                                                  final ObjectArrayList<ObjectSet<String>> sampleReferenceIds)
+            throws IOException {
+        LOG.debug("Processing reference " + referenceId);
+        final CoverageStatistics[] statistics = newStatistics(sampleArchives.length);
+        for (int sampleIndex = 0; sampleIndex < sampleArchives.length; sampleIndex++) {
+            if (!sampleReferenceIds.get(sampleIndex).contains(referenceId)) {
+                continue;
+            }
+            final CountsArchiveReader archive = sampleArchives[sampleIndex];
+            final CountsReaderI reader;
+            // the archive reads from a file shared by all tasks:
+            synchronized (archive) {
+                reader = archive.getCountReader(referenceId);
+            }
+            try {
+                process(captured, reader, statistics[sampleIndex]);
+            } finally {
+                reader.close();
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Calculate the coverage statistics of samples over one reference sequence.
+     *
+     * @param annotationReader counts of the captured target over the reference sequence.
+     * @param readers          counts of each sample over the reference sequence.
+     * @param statistics       statistics of each sample, updated with the sites of the reference sequence.
+     * @throws IOException if counts cannot be read.
+     */
+    public static void process(final CountsReaderI annotationReader, final CountsReaderI[] readers,
+                               final CoverageStatistics[] statistics) throws IOException {
+        final CapturedIntervals captured = new CapturedIntervals(annotationReader);
+        for (int i = 0; i < readers.length; i++) {
+            process(captured, readers[i], statistics[i]);
+        }
+    }
+
+    private static void process(final CapturedIntervals captured, final CountsReaderI reader,
+                                final CoverageStatistics statistics) throws IOException {
+        final SegmentSweep sweep = new SegmentSweep(captured, statistics);
+        int previousEnd = captured.start;
+        while (reader.hasNextTransition()) {
+            reader.nextTransition();
+            final int position = reader.getPosition();
+            final int length = reader.getLength();
+            if (length <= 0) {
+                continue;
+            }
+            if (position > previousEnd) {
+                // no count was recorded for the sample before this position:
+                sweep.add(previousEnd, position, 0);
+            }
+            sweep.add(position, position + length, reader.getCount());
+            previousEnd = Math.max(previousEnd, position + length);
+        }
+        if (captured.end > previousEnd) {
+            sweep.add(previousEnd, captured.end, 0);
+        }
+    }
+
+    private CoverageStatistics[] newStatistics(final int numSamples) {
+        final CoverageStatistics[] statistics = new CoverageStatistics[numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            statistics[i] = new CoverageStatistics(exactLimit);
+        }
+        return statistics;
+    }
+
+    /**
+     * The sorted intervals of a reference sequence where the annotation count is one, as decoded from the
+     * annotation count reader.
+     */
+    private static final class CapturedIntervals {
+        private final int[] starts;
+        private final int[] ends;
+        /**
+         * First and last position covered by the annotation count reader.
+         */
+        private final int start;
+        private final int end;
+
+        private CapturedIntervals(final CountsReaderI annotationReader) throws IOException {
+            super();
+            final IntArrayList startList = new IntArrayList();
+            final IntArrayList endList = new IntArrayList();
+            int first = Integer.MAX_VALUE;
+            int last = 0;
+            while (annotationReader.hasNextTransition()) {
+                annotationReader.nextTransition();
+                final int position = annotationReader.getPosition();
+                final int length = annotationReader.getLength();
+                if (length <= 0) {
+                    continue;
+                }
+                first = Math.min(first, position);
+                last = Math.max(last, position + length);
+                if (annotationReader.getCount() != 1) {
+                    continue;
+                }
+                final int size = endList.size();
+                if (size > 0 && endList.getInt(size - 1) == position) {
+                    endList.set(size - 1, position + length);
+                } else {
+                    startList.add(position);
+                    endList.add(position + length);
+                }
+            }
+            starts = startList.toIntArray();
+            ends = endList.toIntArray();
+            start = first == Integer.MAX_VALUE ? 0 : first;
+            end = last;
+        }
+    }
+
+    /**
+     * Splits segments of constant depth, given in increasing order of position, into captured and not captured
+     * sites.
+     */
+    private static final class SegmentSweep {
+        private final CapturedIntervals captured;
+        private final CoverageStatistics statistics;
+        private int interval;
+
+        private SegmentSweep(final CapturedIntervals captured, final CoverageStatistics statistics) {
+            super();
+            this.captured = captured;
+            this.statistics = statistics;
+        }
+
+        private void add(final int start, final int end, final int depth) {
+            final int[] starts = captured.starts;
+            final int[] ends = captured.ends;
+            while (interval < ends.length && ends[interval] <= start) {
+                interval++;
+            }
+            int capturedLength = 0;
+            for (int i = interval; i < starts.length && starts[i] < end; i++) {
+                capturedLength += Math.min(end, ends[i]) - Math.max(start, starts[i]);
+            }
+            statistics.add(depth, capturedLength, true);
+            statistics.add(depth, end - start - capturedLength, false);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import edu.cornell.med.icb.goby.algorithmic.data.IntervalIndex;
+import edu.cornell.med.icb.goby.alignments.AlignmentReader;
+import edu.cornell.med.icb.goby.alignments.AlignmentReaderFactory;
+import edu.cornell.med.icb.goby.alignments.Alignments;
+import edu.cornell.med.icb.goby.alignments.DefaultAlignmentReaderFactory;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
+import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Counts the reads of many alignments over the elements of annotations, on a pool of threads. The work is split in
+ * units of one reference sequence of one sample when the alignment is sorted and indexed, and of one sample
+ * otherwise, so that a large sample does not hold up the others. All units look up the elements that a read
+ * overlaps in the same {@link AnnotationElementIndex}, and write their counts to distinct cells of an
+ * {@link AnnotationCountMatrix}.
+ * <p/>
+ * Reads are counted as in {@link AnnotationCountIterateAlignments} without weights: each alignment entry counts
+ * once per multiplicity, and spans the positions from its start to its start plus its query aligned length.
+ */
+public class ParallelAnnotationCounter {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Logger LOG = Logger.getLogger(ParallelAnnotationCounter.class);
+
+    private final AnnotationElementIndex elements;
+    private final int numThreads;
+    private AlignmentReaderFactory readerFactory = new DefaultAlignmentReaderFactory();
+    private ObjectSet<String> includeReferenceNames;
+
+    /**
+     * Create a counter.
+     *
+     * @param elements   the elements to count reads over.
+     * @param numThreads number of units counted concurrently.
+     */
+    public ParallelAnnotationCounter(final AnnotationElementIndex elements, final int numThreads) {
+        super();
+        this.elements = elements;
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Set the factory that opens alignments, for instance to filter ambiguous reads.
+     *
+     * @param readerFactory a factory.
+     */
+    public void setAlignmentReaderFactory(final AlignmentReaderFactory readerFactory) {
+        this.readerFactory = readerFactory;
+    }
+
+    /**
+     * Restrict counting to some reference sequences.
+     *
+     * @param includeReferenceNames names of the reference sequences to count, or null to count all of them.
+     */
+    public void setIncludeReferenceNames(final ObjectSet<String> includeReferenceNames) {
+        this.includeReferenceNames = includeReferenceNames;
+    }
+
+    /**
+     * Count the reads of alignments.
+     *
+     * @param basenames basenames of the alignments, one per sample.
+     * @return counts, with samples in the order of basenames.
+     * @throws IOException if an alignment cannot be read.
+     */
+    public AnnotationCountMatrix count(final String[] basenames) throws IOException {
+        final AnnotationCountMatrix matrix = new AnnotationCountMatrix(elements, basenames.length);
+        final ObjectArrayList<Callable<Void>> units = new ObjectArrayList<Callable<Void>>();
+        for (int sampleIndex = 0; sampleIndex < basenames.length; sampleIndex++) {
+            addUnits(units, matrix, sampleIndex, basenames[sampleIndex]);
+        }
+        LOG.debug(String.format("Counting %d samples in %d units", basenames.length, units.size()));
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            final ObjectArrayList<Future<Void>> futures = new ObjectArrayList<Future<Void>>();
+            for (final Callable<Void> unit : units) {
+                futures.add(executor.submit(unit));
+            }
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GobyRuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new GobyRuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return matrix;
+    }
+
+    private void addUnits(final ObjectArrayList<Callable<Void>> units, final AnnotationCountMatrix matrix,
+                          final int sampleIndex, final String basename) throws IOException {
+        final IntervalIndex index = elements.getIntervalIndex();
+        final int[] targetToReference;
+        final boolean splitByReference;
+        final AlignmentReader header = readerFactory.createReader(basename);
+        try {
+            header.readHeader();
+            matrix.setNumAlignedReads(sampleIndex, header.getNumberOfAlignedReads());
+            final DoubleIndexedIdentifier targetIds = new DoubleIndexedIdentifier(header.getTargetIdentifiers());
+            targetToReference = new int[header.getNumberOfTargets()];
+            for (int targetIndex = 0; targetIndex < targetToReference.length; targetIndex++) {
+                final String targetName = targetIds.getId(targetIndex).toString();
+                final boolean included = includeReferenceNames == null || includeReferenceNames.contains(targetName);
+                targetToReference[targetIndex] = included ? index.getReferenceIndex(targetName) : -1;
+            }
+            splitByReference = header.isSorted() && header.isIndexed();
+        } finally {
+            header.close();
+        }
+        if (splitByReference) {
+            for (int targetIndex = 0; targetIndex < targetToReference.length; targetIndex++) {
+                if (targetToReference[targetIndex] != -1) {
+                    units.add(new CountingUnit(matrix, sampleIndex, basename, targetToReference, targetIndex));
+                }
+            }
+        } else {
+            units.add(new CountingUnit(matrix, sampleIndex, basename, targetToReference, -1));
+        }
+    }
+
+    /**
+     * Counts the reads of one reference sequence of a sample, or of all the reference sequences of a sample.
+     */
+    private final class CountingUnit implements Callable<Void> {
+        private final AnnotationCountMatrix matrix;
+        private final int sampleIndex;
+        private final String basename;
+        private final int[] targetToReference;
+        private final int targetIndex;
+
+        private CountingUnit(final AnnotationCountMatrix matrix, final int sampleIndex, final String basename,
+                             final int[] targetToReference, final int targetIndex) {
+            super();
+            this.matrix = matrix;
+            this.sampleIndex = sampleIndex;
+            this.basename = basename;
+            this.targetToReference = targetToReference;
+            this.targetIndex = targetIndex;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            final IntervalIndex index = elements.getIntervalIndex();
+            final int[] overlapCounts = matrix.getOverlapCounts(sampleIndex);
+            final int[] inCounts = matrix.getInCounts(sampleIndex);
+            final IntArrayList overlapping = new IntArrayList();
+            final AlignmentReader reader = targetIndex == -1 ? readerFactory.createReader(basename)
+                    : readerFactory.createReader(basename, targetIndex, 0, targetIndex, Integer.MAX_VALUE);
+            try {
+                reader.readHeader();
+                while (reader.hasNext()) {
+                    final Alignments.AlignmentEntry entry = reader.next();
+                    final int entryTarget = entry.getTargetIndex();
+                    if (entryTarget >= targetToReference.length || targetToReference[entryTarget] == -1) {
+                        continue;
+                    }
+                    final int referenceIndex = targetToReference[entryTarget];
+                    final int start = entry.getPosition();
+                    final int end = start + entry.getQueryAlignedLength();
+                    final int multiplicity = entry.getMultiplicity();
+                    index.findOverlapping(referenceIndex, start, end, overlapping);
+                    for (int i = 0; i < overlapping.size(); i++) {
+                        final int interval = overlapping.getInt(i);
+                        final int element = index.getValue(referenceIndex, interval);
+                        overlapCounts[element] += multiplicity;
+                        if (start >= index.getStart(referenceIndex, interval)
+                                && end <= index.getEnd(referenceIndex, interval)) {
+                            inCounts[element] += multiplicity;
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            return null;
+        }
+    }
+}
@@ -20,8 +20,10 @@ package edu.cornell.med.icb.goby.algorithmic.algorithm;
 
 import edu.cornell.med.icb.goby.algorithmic.data.Annotation;
 import edu.cornell.med.icb.goby.algorithmic.data.Interval;
+import edu.cornell.med.icb.goby.algorithmic.data.IntervalIndex;
 import edu.cornell.med.icb.goby.modes.CompactAlignmentToAnnotationCountsMode;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.objects.Object2ObjectArrayMap;
 import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
@@ -31,7 +33,6 @@ import it.unimi.dsi.lang.MutableString;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Map;
@@ -43,13 +44,6 @@ import java.util.Map;
  */
 public class RandomAccessAnnotations {
 
-    private Comparator<Interval> compareIntervals = new Comparator<Interval>() {
-        @Override
-        public int compare(final Interval a, final Interval b) {
-            return a.start - b.start;
-        }
-    };
-
     /**
      * Load and sort annotations by their end position.
      *
@@ -98,6 +92,7 @@ public class RandomAccessAnnotations {
                 chromosomeToMap.put(key, intervals);
             }
         }
+        index = null;
 
     }
 
@@ -120,12 +115,12 @@ public class RandomAccessAnnotations {
         System.arraycopy(array, 0, dest, 0, array.length);
         dest[array.length] = newInterval;
         chromosomeToMap.put(chr, dest);
-
-
+        index = null;
     }
 
     /**
-     * Find the annotation that overlaps an interval.
+     * Find an annotation that contains an interval. When annotations are nested, the annotation that starts first
+     * is returned.
      *
      * @param chromosome
      * @param start
@@ -133,42 +128,56 @@ public class RandomAccessAnnotations {
      * @return The annotation or null is none overlaps the query interval.
      */
     public Interval find(final String chromosome, final int start, final int end) {
-        final Interval[] intervals = chromosomeToMap.get(chromosome);
-        if (intervals == null) {
+        final IntervalIndex index = getIndex();
+        final int referenceIndex = index.getReferenceIndex(chromosome);
+        if (referenceIndex == -1) {
             return null;
         }
-        singleton.start = start;
-        final int index = Arrays.binarySearch(intervals, singleton, compareIntervals);
-        final int ip;
-        if (index < 0) {
-
-            // position does not match min exactly, we get the insertion point instead:
-            ip = -index - 1;
-            return checkOverlap(intervals, ip, start, end);
-        } else {
-            ip = index;
-            return checkOverlap(intervals, ip + 1, start, end);
-        }
-
+        final int interval = index.findContaining(referenceIndex, start, end);
+        return interval == -1 ? null : chromosomeToMap.get(chromosome)[index.getValue(referenceIndex, interval)];
     }
 
-    private Interval checkOverlap(final Interval[] intervals, final int insertionPoint, final int start, final int end) {
-        if (insertionPoint <= 0) {
-            return null;
-        }
-        final Interval previous = intervals[insertionPoint - 1];
-        if (previous.start <= start && previous.end >= end) {
-            return previous;
-        }
-        if (insertionPoint < intervals.length) {
-            final Interval next = intervals[insertionPoint];
-            if (next.start <= start && next.end >= end) {
-                return next;
+    /**
+     * Find all the annotations that overlap an interval.
+     *
+     * @param chromosome
+     * @param start
+     * @param end
+     * @return The annotations that overlap the query interval, in order of start position.
+     */
+    public ObjectList<Interval> findAll(final String chromosome, final int start, final int end) {
+        final ObjectList<Interval> result = new ObjectArrayList<Interval>();
+        final IntervalIndex index = getIndex();
+        final IntArrayList overlapping = new IntArrayList();
+        if (index.findOverlapping(chromosome, start, end, overlapping) > 0) {
+            final int referenceIndex = index.getReferenceIndex(chromosome);
+            final Interval[] intervals = chromosomeToMap.get(chromosome);
+            for (int i = 0; i < overlapping.size(); i++) {
+                result.add(intervals[index.getValue(referenceIndex, overlapping.getInt(i))]);
             }
         }
-        return null;
+        return result;
+    }
 
+    /**
+     * Return the index of the annotations, built when first needed. The value of an interval in the index is the
+     * position of the annotation in the array of its chromosome.
+     *
+     * @return an index that can be shared with other threads.
+     */
+    public synchronized IntervalIndex getIndex() {
+        if (index == null) {
+            final IntervalIndex.Builder builder = new IntervalIndex.Builder();
+            for (final Map.Entry<String, Interval[]> entry : chromosomeToMap.entrySet()) {
+                final Interval[] intervals = entry.getValue();
+                for (int i = 0; i < intervals.length; i++) {
+                    builder.add(entry.getKey(), intervals[i].start, intervals[i].end, i);
+                }
+            }
+            index = builder.build();
+        }
+        return index;
     }
 
-    private Interval singleton = new Interval();
+    private IntervalIndex index;
 }
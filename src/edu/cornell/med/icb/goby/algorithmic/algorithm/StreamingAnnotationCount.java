@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import edu.cornell.med.icb.goby.algorithmic.data.Annotation;
+import edu.cornell.med.icb.goby.algorithmic.data.Segment;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import it.unimi.dsi.fastutil.ints.IntHeapPriorityQueue;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.util.Collection;
+
+/**
+ * Counts reads over the intervals of a set of annotations (genes, exons and the introns between exons) in a single
+ * sweep over reads sorted by start position. Reads are not stored: the sweep keeps a heap with the ends of the reads
+ * that cover the current position, and a heap of the intervals that contain the current read start, so memory is
+ * proportional to the depth of coverage and to the number of active annotation intervals, not to the number of
+ * reads on the reference sequence.
+ * <p/>
+ * The number of reads that overlap an interval and the number of bases over the interval are obtained from
+ * cumulative counts (reads started, reads ended and bases covered before a position) evaluated when the sweep
+ * passes the start and the end of the interval. Reads strictly within an interval are counted when they start,
+ * against the active intervals. The counts are the same as those of {@link AnnotationCount}.
+ * <p/>
+ * Usage: call populate with reads in increasing order of start position, then accumulate, then query intervals
+ * of the annotations given to the constructor. Reads given out of order raise an IllegalArgumentException, use
+ * {@link AnnotationCount} when reads are not sorted.
+ */
+public class StreamingAnnotationCount implements AnnotationCountInterface {
+    /**
+     * Interval boundaries, inclusive.
+     */
+    private final int[] starts;
+    private final int[] ends;
+    /**
+     * Index of each interval, keyed by start and end.
+     */
+    private final Long2IntMap intervalIndex;
+    /**
+     * Intervals in increasing order of start, and in increasing order of end.
+     */
+    private final int[] byStart;
+    private final int[] byEnd;
+    private int nextByStart;
+    private int nextByEnd;
+
+    // cumulative counts over the reads seen so far:
+    private int numReadsStarted;
+    private int numReadsEnded;
+    private long sumReadLengths;
+    /**
+     * Ends of the reads that have not ended before the current position.
+     */
+    private final IntHeapPriorityQueue readEnds = new IntHeapPriorityQueue();
+    private long sumLiveReadEndsPlusOne;
+    private int previousReadStart = Integer.MIN_VALUE;
+
+    /**
+     * Min-heap of the indices of the intervals that contain the current read start, ordered by interval end.
+     */
+    private int[] activeIntervals = new int[16];
+    private int numActiveIntervals;
+
+    // results, per interval:
+    /**
+     * Reads ended before the start of the interval.
+     */
+    private final int[] readsEndedBeforeStart;
+    /**
+     * Bases covered before the start of the interval.
+     */
+    private final long[] basesBeforeStart;
+    private final int[] readsStartedUpToEnd;
+    private final long[] basesUpToEnd;
+    private final int[] readsWithin;
+    private boolean accumulated;
+
+    /**
+     * Create a counter for the intervals of some annotations.
+     *
+     * @param annotations annotations of one reference sequence, with sorted segments.
+     */
+    public StreamingAnnotationCount(final Collection<Annotation> annotations) {
+        super();
+        intervalIndex = new Long2IntOpenHashMap();
+        intervalIndex.defaultReturnValue(-1);
+        int numIntervals = 0;
+        for (final Annotation annotation : annotations) {
+            numIntervals += 2 * annotation.getSegments().size();
+        }
+        final int[] intervalStarts = new int[numIntervals];
+        final int[] intervalEnds = new int[numIntervals];
+        int size = 0;
+        for (final Annotation annotation : annotations) {
+            size = define(intervalStarts, intervalEnds, size, annotation.getStart(), annotation.getEnd());
+            final int numSegments = annotation.getSegments().size();
+            for (int i = 0; i < numSegments; i++) {
+                final Segment segment = annotation.getSegments().get(i);
+                size = define(intervalStarts, intervalEnds, size, segment.getStart(), segment.getEnd());
+                if (i + 1 < numSegments) {
+                    size = define(intervalStarts, intervalEnds, size, segment.getEnd() + 1,
+                            annotation.getSegments().get(i + 1).getStart() - 1);
+                }
+            }
+        }
+        starts = IntArrays.trim(intervalStarts, size);
+        ends = IntArrays.trim(intervalEnds, size);
+        byStart = identity(size);
+        byEnd = identity(size);
+        IntArrays.quickSort(byStart, new IntComparator() {
+            public int compare(final int a, final int b) {
+                return starts[a] < starts[b] ? -1 : starts[a] == starts[b] ? 0 : 1;
+            }
+
+            public int compare(final Integer a, final Integer b) {
+                return compare(a.intValue(), b.intValue());
+            }
+        });
+        IntArrays.quickSort(byEnd, new IntComparator() {
+            public int compare(final int a, final int b) {
+                return ends[a] < ends[b] ? -1 : ends[a] == ends[b] ? 0 : 1;
+            }
+
+            public int compare(final Integer a, final Integer b) {
+                return compare(a.intValue(), b.intValue());
+            }
+        });
+        readsEndedBeforeStart = new int[size];
+        basesBeforeStart = new long[size];
+        readsStartedUpToEnd = new int[size];
+        basesUpToEnd = new long[size];
+        readsWithin = new int[size];
+    }
+
+    private int define(final int[] intervalStarts, final int[] intervalEnds, final int size,
+                       final int start, final int end) {
+        final long key = key(start, end);
+        if (intervalIndex.get(key) != -1) {
+            return size;
+        }
+        intervalIndex.put(key, size);
+        intervalStarts[size] = start;
+        intervalEnds[size] = end;
+        return size + 1;
+    }
+
+    private static long key(final int start, final int end) {
+        return ((long) start << 32) | (end & 0xFFFFFFFFL);
+    }
+
+    private static int[] identity(final int size) {
+        final int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = i;
+        }
+        return result;
+    }
+
+    public void startPopulating() {
+    }
+
+    /**
+     * Add a read. This implementation ignores queryIndex.
+     *
+     * @param startPosition first position covered by the read.
+     * @param endPosition   last position covered by the read.
+     * @param queryIndex    index of the read.
+     */
+    public void populate(final int startPosition, final int endPosition, final int queryIndex) {
+        if (startPosition < previousReadStart) {
+            throw new IllegalArgumentException("Reads must be sorted by start position.");
+        }
+        previousReadStart = startPosition;
+        advanceTo(startPosition);
+        while (numActiveIntervals > 0 && ends[activeIntervals[0]] < startPosition) {
+            removeFirstActiveInterval();
+        }
+        for (int i = 0; i < numActiveIntervals; i++) {
+            final int interval = activeIntervals[i];
+            if (endPosition <= ends[interval]) {
+                readsWithin[interval]++;
+            }
+        }
+        numReadsStarted++;
+        sumReadLengths += endPosition - startPosition + 1;
+        readEnds.enqueue(endPosition);
+        sumLiveReadEndsPlusOne += endPosition + 1L;
+    }
+
+    /**
+     * Evaluate the cumulative counts at the interval boundaries smaller or equal to position, in increasing order.
+     * All reads added so far start before these boundaries.
+     */
+    private void advanceTo(final long position) {
+        while (true) {
+            final long nextStart = nextByStart < byStart.length ? starts[byStart[nextByStart]] : Long.MAX_VALUE;
+            // the end boundary of an interval is evaluated at end+1, the first position after the interval:
+            final long nextEnd = nextByEnd < byEnd.length ? ends[byEnd[nextByEnd]] + 1L : Long.MAX_VALUE;
+            if (nextStart <= nextEnd && nextStart <= position) {
+                final int interval = byStart[nextByStart++];
+                endReadsBefore(nextStart);
+                readsEndedBeforeStart[interval] = numReadsEnded;
+                basesBeforeStart[interval] = basesBefore(nextStart);
+                if (starts[interval] <= ends[interval]) {
+                    addActiveInterval(interval);
+                }
+            } else if (nextEnd <= position) {
+                final int interval = byEnd[nextByEnd++];
+                endReadsBefore(nextEnd);
+                readsStartedUpToEnd[interval] = numReadsStarted;
+                basesUpToEnd[interval] = basesBefore(nextEnd);
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void endReadsBefore(final long position) {
+        while (!readEnds.isEmpty() && readEnds.firstInt() < position) {
+            final int end = readEnds.dequeueInt();
+            numReadsEnded++;
+            sumLiveReadEndsPlusOne -= end + 1L;
+        }
+    }
+
+    /**
+     * Number of bases covered by the reads at positions before position. Reads that have not ended contribute the
+     * part before position.
+     */
+    private long basesBefore(final long position) {
+        final int numLiveReads = numReadsStarted - numReadsEnded;
+        return sumReadLengths - (sumLiveReadEndsPlusOne - numLiveReads * position);
+    }
+
+    private void addActiveInterval(final int interval) {
+        if (numActiveIntervals == activeIntervals.length) {
+            activeIntervals = IntArrays.grow(activeIntervals, numActiveIntervals + 1);
+        }
+        int i = numActiveIntervals++;
+        while (i > 0) {
+            final int parent = (i - 1) / 2;
+            if (ends[activeIntervals[parent]] <= ends[interval]) {
+                break;
+            }
+            activeIntervals[i] = activeIntervals[parent];
+            i = parent;
+        }
+        activeIntervals[i] = interval;
+    }
+
+    private void removeFirstActiveInterval() {
+        final int last = activeIntervals[--numActiveIntervals];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= numActiveIntervals) {
+                break;
+            }
+            if (child + 1 < numActiveIntervals && ends[activeIntervals[child + 1]] < ends[activeIntervals[child]]) {
+                child++;
+            }
+            if (ends[last] <= ends[activeIntervals[child]]) {
+                break;
+            }
+            activeIntervals[i] = activeIntervals[child];
+            i = child;
+        }
+        activeIntervals[i] = last;
+    }
+
+    /**
+     * Reads are counted as they are added, nothing to sort.
+     */
+    public void sortReads() {
+    }
+
+    /**
+     * Finish the sweep. Must be called after the last read was added, before intervals are queried.
+     */
+    public void accumulate() {
+        advanceTo(Long.MAX_VALUE - 1);
+        numActiveIntervals = 0;
+        readEnds.clear();
+        accumulated = true;
+    }
+
+    /**
+     * Base counts are calculated by accumulate.
+     */
+    public void baseCount() {
+    }
+
+    private int interval(final int start, final int end) {
+        if (!accumulated) {
+            throw new IllegalStateException("accumulate must be called before intervals are queried.");
+        }
+        final int interval = intervalIndex.get(key(start, end));
+        if (interval == -1) {
+            throw new IllegalArgumentException(String.format("Interval [%d,%d] was not defined by an annotation.",
+                    start, end));
+        }
+        return interval;
+    }
+
+    /**
+     * Returns the average read coverage per base for an interval of an annotation.
+     *
+     * @param start first position of the interval.
+     * @param end   last position of the interval.
+     * @return average count per base on this interval.
+     */
+    public float averageReadsPerPosition(final int start, final int end) {
+        if (end < start) {
+            return 0;
+        }
+        final int interval = interval(start, end);
+        return ((float) (basesUpToEnd[interval] - basesBeforeStart[interval])) / ((float) (end - start + 1));
+    }
+
+    /**
+     * Returns the number of reads that overlap an interval of an annotation.
+     *
+     * @param start first position of the interval.
+     * @param end   last position of the interval.
+     * @return the number of reads.
+     */
+    public double countReadsPartiallyOverlappingWithInterval(final int start, final int end) {
+        final int interval = interval(start, end);
+        return readsStartedUpToEnd[interval] - readsEndedBeforeStart[interval];
+    }
+
+    /**
+     * Returns the number of reads completely contained within an interval of an annotation.
+     *
+     * @param start first position of the interval.
+     * @param end   last position of the interval.
+     * @return the number of reads.
+     */
+    public double countReadsStriclyWithinInterval(final int start, final int end) {
+        return readsWithin[interval(start, end)];
+    }
+
+    /**
+     * Return the number of reads that map within exons of an annotation, excluding intron counts.
+     *
+     * @param annot an annotation given to the constructor.
+     * @return number of reads covered on the genes except all reads exclusively in introns
+     */
+    public double geneExpressionCount(final Annotation annot) {
+        double sum = countReadsPartiallyOverlappingWithInterval(annot.getStart(), annot.getEnd());
+        final int numIntrons = annot.getSegments().size() - 1;
+        for (int k = 0; k < numIntrons; k++) {
+            sum -= countReadsStriclyWithinInterval(annot.getSegments().get(k).getEnd() + 1,
+                    annot.getSegments().get(k + 1).getStart() - 1);
+        }
+        return sum;
+    }
+}
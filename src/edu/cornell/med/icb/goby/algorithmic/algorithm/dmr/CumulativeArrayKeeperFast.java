@@ -21,6 +21,9 @@ package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
 /**
  * Class that populates a cumulative count array of a predetermined size
  * Facilitates adding new counts to the rightmost element in the array without changing
+ * <p/>
+ * Running totals are kept in a circular buffer, so that adding a count to a full array takes constant time and
+ * does not allocate.
  *
  * @Author: Nyasha Chambwe
  * Date: 3/1/12
@@ -30,14 +33,25 @@ public class CumulativeArrayKeeperFast {
 
 
     /**
-     * Cumulative count array
+     * Running totals of the counts added to the array, in a circular buffer.
      */
     int[] cumC;
     /*
     *Number of elements that are in the array
     * **/
     int capacityMonitor;
-    int indexAtLast;
+    /**
+     * Index of the leftmost element in cumC.
+     */
+    private int head;
+    /**
+     * Running total of the counts that slid out of the array.
+     */
+    private int offset;
+    /**
+     * Running total of all the counts added to the array.
+     */
+    private int total;
     /*
     Maximum size of the cumulative count array
      */
@@ -50,44 +64,20 @@ public class CumulativeArrayKeeperFast {
         cumC = new int[n];
         capacityMonitor = 0;
         capacity = n;
-        indexAtLast = capacity - 1;
     }
 
     public void addToRight(final int countAtNewSite) {
-
+        total += countAtNewSite;
         if (checkCumulativeCapacityReached()) {
-            shift(countAtNewSite);
-
+            offset = cumC[head];
+            cumC[head] = total;
+            head = head + 1 == capacity ? 0 : head + 1;
         } else {
-            fillUpCumulativeArray(countAtNewSite);
+            cumC[capacityMonitor] = total;
             capacityMonitor++;
         }
     }
 
-    private void shift(final int countAtNewSite) {
-        final int removedCount = cumC[0];
-        // update cumulative total
-        for (int i = 0; i < capacity; i++) {
-            cumC[i] = cumC[i] - removedCount;
-        }
-        if (capacity == 1) {
-            cumC[0] = countAtNewSite;
-        } else {
-            final int[] cumCCopy = new int[capacity];
-            System.arraycopy(cumC, 1, cumCCopy, 0, indexAtLast);
-            cumC = cumCCopy;
-            cumCCopy[indexAtLast] = cumCCopy[indexAtLast - 1] + countAtNewSite;
-        }
-    }
-
-    private void fillUpCumulativeArray(final int countAtNewSite) {
-        if (capacityMonitor == 0) {
-            cumC[capacityMonitor] = countAtNewSite;
-        } else {
-            cumC[capacityMonitor] = cumC[capacityMonitor - 1] + countAtNewSite;
-        }
-    }
-
     /**
      * Returns true if the cumulativeSum array is full
      *
@@ -97,15 +87,21 @@ public class CumulativeArrayKeeperFast {
         return capacityMonitor == capacity;
     }
 
+    /**
+     * Return the cumulative count of the last element of a full array.
+     *
+     * @return the sum of the counts in the array, or zero until the array is full.
+     */
     public int getCumulativeCountTotal() {
-        return cumC[capacity - 1];
+        return checkCumulativeCapacityReached() ? total - offset : 0;
     }
 
     public String toString() {
         final StringBuilder stringResult = new StringBuilder("[");
         for (int x = 0; x < capacityMonitor; x++) {
+            final int index = head + x < capacity ? head + x : head + x - capacity;
             stringResult.append('\t');
-            stringResult.append(cumC[x]);
+            stringResult.append(cumC[index] - offset);
         }
         stringResult.append("\t]");
         return stringResult.toString();
@@ -25,19 +25,88 @@ package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
  *          Time: 11:02 AM
  */
 
-public class DifferentiallyMethylatedRegion {
+public class DifferentiallyMethylatedRegion implements Comparable<DifferentiallyMethylatedRegion> {
     private final int chromosome;//target index
     private final int start;
     private final int end;
     /* defines the number of cytosines in the DMR window*/
     private final int numCytosines;
+    /**
+     * Index of the group comparison in which the region is differentially methylated, or -1 if unknown.
+     */
+    private final int comparisonIndex;
+    /**
+     * Largest statistic observed over the windows that make up the region.
+     */
+    private final double statistic;
 
     public DifferentiallyMethylatedRegion(int chromosome, int end, int start, int numCytosines) {
+        this(chromosome, start, end, numCytosines, -1, Double.NaN);
+    }
+
+    /**
+     * Construct a region found in a group comparison.
+     *
+     * @param chromosome      target index.
+     * @param start           position of the first cytosine in the region.
+     * @param end             position of the last cytosine in the region.
+     * @param numCytosines    number of cytosines in the region.
+     * @param comparisonIndex index of the group comparison.
+     * @param statistic       largest statistic observed over the region.
+     */
+    public DifferentiallyMethylatedRegion(int chromosome, int start, int end, int numCytosines,
+                                          int comparisonIndex, double statistic) {
         this.chromosome = chromosome;
         this.end = end;
         this.start = start;
-        this.numCytosines= numCytosines;
+        this.numCytosines = numCytosines;
+        this.comparisonIndex = comparisonIndex;
+        this.statistic = statistic;
+    }
+
+    public int getChromosome() {
+        return chromosome;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
     }
 
+    public int getNumCytosines() {
+        return numCytosines;
+    }
+
+    public int getComparisonIndex() {
+        return comparisonIndex;
+    }
+
+    public double getStatistic() {
+        return statistic;
+    }
+
+    /**
+     * Regions are ordered by chromosome, start, end and comparison index.
+     */
+    @Override
+    public int compareTo(final DifferentiallyMethylatedRegion other) {
+        if (chromosome != other.chromosome) {
+            return chromosome < other.chromosome ? -1 : 1;
+        }
+        if (start != other.start) {
+            return start < other.start ? -1 : 1;
+        }
+        if (end != other.end) {
+            return end < other.end ? -1 : 1;
+        }
+        return comparisonIndex < other.comparisonIndex ? -1 : comparisonIndex == other.comparisonIndex ? 0 : 1;
+    }
 
+    public String toString() {
+        return String.format("[dmr chromosome=%d start=%d end=%d numCytosines=%d comparison=%d statistic=%g]",
+                chromosome, start, end, numCytosines, comparisonIndex, statistic);
+    }
 }
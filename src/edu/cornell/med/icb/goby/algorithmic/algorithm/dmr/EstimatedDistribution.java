@@ -26,6 +26,7 @@ import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 
@@ -45,6 +46,11 @@ public class EstimatedDistribution implements Serializable {
     private BinningStrategy binningStrategy = new FastSmallAndLog10BinningStrategy();
     private StatisticAdaptor statAdaptor;
     private static boolean DEBUG = false;
+    /**
+     * When the distribution was loaded from a binary file, lookups are served from the mapped file until the
+     * distribution is modified.
+     */
+    private transient MappedDistribution mapped;
 
     public EstimatedDistribution(int numberOfContexts) {
         densitities = new ObjectArrayList<FenwickTree>();
@@ -64,6 +70,14 @@ public class EstimatedDistribution implements Serializable {
 
     }
 
+    private EstimatedDistribution(final MappedDistribution mapped) {
+        densitities = new ObjectArrayList<FenwickTree>();
+        this.mapped = mapped;
+        statAdaptor = mapped.getStatAdaptor();
+        binningStrategy = mapped.getBinningStrategy();
+        SCALING_FACTOR = mapped.getScalingFactor();
+    }
+
     /**
      * Factor by which the statistic will be scaled to use MAX_ITEMS buckets.
      */
@@ -120,9 +134,19 @@ public class EstimatedDistribution implements Serializable {
         }
     };
 
+    /**
+     * Get the density for some covariates, creating it if needed. The density can be modified, so a distribution
+     * loaded from a binary file is first read into memory.
+     *
+     * @param covariates covariates of the statistic.
+     * @return the density that holds the observations for these covariates.
+     */
     public FenwickTree getDensity(int... covariates) {
-        final int index = covariateStrategy.getIndex(covariates);
+        return getDensityAt(covariateStrategy.getIndex(covariates));
+    }
 
+    private FenwickTree getDensityAt(final int index) {
+        materialize();
         while (densitities.size() <= index) {
             densitities.add(null);
         }
@@ -138,14 +162,145 @@ public class EstimatedDistribution implements Serializable {
         }
     }
 
+    /**
+     * Add the observations of another distribution to this one. The other distribution must have been estimated
+     * with the same statistic and binning strategy, for instance by another thread or on another part of the data.
+     *
+     * @param other the distribution to merge into this one.
+     */
+    public void merge(final EstimatedDistribution other) {
+        if (other.SCALING_FACTOR != SCALING_FACTOR ||
+                !other.binningStrategy.getName().equals(binningStrategy.getName())) {
+            throw new IllegalArgumentException("Distributions must use the same statistic scaling and binning strategy to be merged.");
+        }
+        final int numBins = other.getNumberOfBins();
+        for (int index = 0; index < numBins; index++) {
+            final FenwickTree tree = other.getDensityAtIndex(index);
+            if (tree != null) {
+                getDensityAt(index).add(tree);
+            }
+        }
+    }
+
+    /**
+     * Merge distributions stored in several files, for instance estimated from shards of the data, and store the
+     * result.
+     *
+     * @param inputFilenames  names of the distribution files to merge.
+     * @param outputFilename  name of the file to write the merged distribution to.
+     * @throws IOException            if a file cannot be read or written.
+     * @throws ClassNotFoundException if a file in the Java serialization format cannot be read.
+     */
+    public static void merge(final String[] inputFilenames, final String outputFilename)
+            throws IOException, ClassNotFoundException {
+        EstimatedDistribution merged = null;
+        for (final String filename : inputFilenames) {
+            final EstimatedDistribution distribution = load(filename);
+            if (merged == null) {
+                merged = distribution;
+                merged.materialize();
+            } else {
+                merged.merge(distribution);
+            }
+        }
+        if (merged != null) {
+            store(merged, outputFilename);
+        }
+    }
+
+    /**
+     * @return the number of covariate bins of this distribution, some of which may have no observations.
+     */
+    int getNumberOfBins() {
+        return mapped != null ? mapped.getNumberOfBins() : densitities.size();
+    }
+
+    /**
+     * @return the number of distinct scaled statistics recorded in the density of each bin.
+     */
+    int getNumberOfElements() {
+        return mapped != null ? mapped.getNumberOfElements() : MAX_ITEMS;
+    }
+
+    /**
+     * Return the density of a bin, without creating it.
+     *
+     * @param index index of the bin.
+     * @return the density, or null if no observations were made in the bin.
+     */
+    FenwickTree getDensityAtIndex(final int index) {
+        if (mapped != null) {
+            return mapped.toTree(index);
+        }
+        return index < densitities.size() ? densitities.get(index) : null;
+    }
+
+    /**
+     * Read all the densities of a distribution loaded from a binary file into memory.
+     */
+    private void materialize() {
+        if (mapped != null) {
+            final MappedDistribution source = mapped;
+            mapped = null;
+            for (int index = 0; index < source.getNumberOfBins(); index++) {
+                densitities.add(source.toTree(index));
+            }
+        }
+    }
+
+    private long cumulativeCount(final int binIndex, final int scaledStatistic) {
+        if (mapped != null) {
+            return mapped.getCumulativeCount(binIndex, scaledStatistic);
+        }
+        final FenwickTree tree = binIndex < densitities.size() ? densitities.get(binIndex) : null;
+        return tree == null ? 0 : tree.getCumulativeCount(scaledStatistic);
+    }
+
+    private long totalCount(final int binIndex) {
+        if (mapped != null) {
+            return mapped.getTotalCount(binIndex);
+        }
+        final FenwickTree tree = binIndex < densitities.size() ? densitities.get(binIndex) : null;
+        return tree == null ? 0 : tree.getTotalCount();
+    }
+
+    private void writeObject(final ObjectOutputStream output) throws IOException {
+        materialize();
+        output.defaultWriteObject();
+    }
+
     private ObjectArrayList<Observation> observations = new ObjectArrayList<Observation>();
 
 
+    /**
+     * Store a distribution. Distributions are written in a compact binary format that {@link #load(String)} maps in
+     * memory, other objects are serialized.
+     *
+     * @param estimator the distribution to store.
+     * @param filename  name of the file to write.
+     * @throws IOException if the file cannot be written.
+     */
     public static void store(final Serializable estimator, final String filename) throws IOException {
-        BinIO.storeObject(estimator, filename);
+        if (estimator instanceof EstimatedDistribution) {
+            MappedDistribution.write((EstimatedDistribution) estimator, filename);
+        } else {
+            BinIO.storeObject(estimator, filename);
+        }
     }
 
+    /**
+     * Load a distribution. Files in the binary format are memory-mapped, and lookups read the file directly until
+     * the distribution is modified. Files written with Java serialization by earlier versions are also supported.
+     *
+     * @param filename name of the file to read.
+     * @return the distribution.
+     * @throws IOException            if the file cannot be read.
+     * @throws ClassNotFoundException if a serialized distribution cannot be read.
+     */
     public static EstimatedDistribution load(final String filename) throws IOException, ClassNotFoundException {
+        if (MappedDistribution.isMappedDistribution(filename)) {
+            return new EstimatedDistribution(new MappedDistribution(filename));
+        }
         return (EstimatedDistribution) BinIO.loadObject(filename);
     }
 
@@ -157,8 +312,7 @@ public class EstimatedDistribution implements Serializable {
      * @return the number of observations with similar covariates for which the statistic is less than the specified value.
      */
     public long getCumulativeCount(final int scaledStatistic, final int... covariates) {
-        final FenwickTree tree = getDensity(covariates);
-        return tree.getCumulativeCount(scaledStatistic);
+        return cumulativeCount(covariateStrategy.getIndex(covariates), scaledStatistic);
     }
 
     /**
@@ -169,8 +323,7 @@ public class EstimatedDistribution implements Serializable {
      * @return the number of observations with similar covariates for which the unscaled statistic is less than the specified value.
      */
     public long getCumulativeCount(final double statistic, final int... covariates) {
-        final FenwickTree tree = getDensity(covariates);
-        return tree.getCumulativeCount(scale(statistic));
+        return cumulativeCount(covariateStrategy.getIndex(covariates), scale(statistic));
     }
 
     /**
@@ -183,13 +336,7 @@ public class EstimatedDistribution implements Serializable {
      */
     public double getP(final double statistic, final int... covariates) {
         final int scaledStatistic = (int) Math.round(statistic * SCALING_FACTOR);
-        final FenwickTree tree = getDensity(covariates);
-        final long totalCount = tree.getTotalCount();
-        final double r = totalCount - tree.getCumulativeCount(scaledStatistic);
-        final double n = totalCount;
-        // estimated as per Morgan, Linda Am. J. Hum. Genet. 71 439-441, 2002
-        final double p = (r + 1.0d) / (n + 1.0d);
-        return p;
+        return getP(scaledStatistic, covariates);
     }
 
     /**
@@ -203,15 +350,15 @@ public class EstimatedDistribution implements Serializable {
     public double getEmpiricalFdr(final EstimatedDistribution testDistribution,
                                   final double statistic, final int... covariates) {
         final int scaledStatistic = (int) Math.round(statistic * SCALING_FACTOR);
-        final FenwickTree nullTree = getDensity(covariates);
-        final FenwickTree testTree = testDistribution.getDensity(covariates);
-        final long nullTotalCount = nullTree.getTotalCount();
+        final int nullBinIndex = covariateStrategy.getIndex(covariates);
+        final int testBinIndex = testDistribution.covariateStrategy.getIndex(covariates);
+        final long nullTotalCount = totalCount(nullBinIndex);
         // the number of observations in the null distribution that reach or exceed the statistic value:
-        final long b = nullTree.getCumulativeCount(scaledStatistic);
+        final long b = cumulativeCount(nullBinIndex, scaledStatistic);
         final double r = nullTotalCount - b;
         // the number of observations in the TEST distribution that reach or exceed the statistic value:
-        final long a = testTree.getCumulativeCount(scaledStatistic);
-        final long testTotalCount = testTree.getTotalCount();
+        final long a = testDistribution.cumulativeCount(testBinIndex, scaledStatistic);
+        final long testTotalCount = testDistribution.totalCount(testBinIndex);
         final double y = testTotalCount - a;
         final double p = (r + 1.0d) / (nullTotalCount + 1.0d);
 
@@ -230,9 +377,9 @@ public class EstimatedDistribution implements Serializable {
      * @return
      */
     public double getP(final int scaledStatistic, final int... covariates) {
-        final FenwickTree tree = getDensity(covariates);
-        final long totalCount = tree.getTotalCount();
-        final double r = totalCount - tree.getCumulativeCount(scaledStatistic);
+        final int binIndex = covariateStrategy.getIndex(covariates);
+        final long totalCount = totalCount(binIndex);
+        final double r = totalCount - cumulativeCount(binIndex, scaledStatistic);
         final double n = totalCount;
         // estimated as per Morgan, Linda Am. J. Hum. Genet. 71 439-441, 2002
         final double p = (r + 1.0d) / (n + 1.0d);
@@ -244,6 +391,16 @@ public class EstimatedDistribution implements Serializable {
         boolean printObservations = CLI.isKeywordGiven(args, "--print-observations");
         String filename = CLI.getOption(args, "-f", null);
         String outputFilename = CLI.getOption(args, "-o", "out.tsv");
+        if (CLI.isKeywordGiven(args, "--merge")) {
+            // merge distributions estimated on shards of the data: -f shard1,shard2,.. -o merged
+            try {
+                merge(filename.split(","), outputFilename);
+            } catch (ClassNotFoundException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
         PrintWriter outWriter = new PrintWriter(new FileWriter(outputFilename));
         if (printDensity) {
             EstimatedDistribution estimated = null;
@@ -256,7 +413,9 @@ public class EstimatedDistribution implements Serializable {
                 int index = 0;
                 outWriter.println("midPointSumTotal\tsumTotal range\t" + statName + "\tcount-at-" + statName);
                 final BinningStrategy binningStrategy = estimated.getBinningStrategy();
-                for (final FenwickTree tree : estimated.densitities) {
+                final int numBins = estimated.getNumberOfBins();
+                while (index < numBins) {
+                    final FenwickTree tree = estimated.getDensityAtIndex(index);
                     if (tree != null) {
                         int low = binningStrategy.getLowerBound(index);
                         int high = binningStrategy.getUpperBound(index);
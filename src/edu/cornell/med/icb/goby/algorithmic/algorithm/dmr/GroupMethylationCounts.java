@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
+
+import edu.cornell.med.icb.goby.algorithmic.data.MethylCountInfo;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * Methylated and unmethylated cytosine counts of each group of samples, at the cytosines of one reference
+ * sequence. Sites must be added in increasing order of position.
+ */
+public class GroupMethylationCounts {
+    private final int referenceIndex;
+    private final IntArrayList positions = new IntArrayList();
+    private final IntArrayList[] methylatedCounts;
+    private final IntArrayList[] unmethylatedCounts;
+
+    /**
+     * Create empty counts for a reference sequence.
+     *
+     * @param referenceIndex index of the reference sequence.
+     * @param numGroups      number of groups of samples.
+     */
+    public GroupMethylationCounts(final int referenceIndex, final int numGroups) {
+        super();
+        this.referenceIndex = referenceIndex;
+        methylatedCounts = new IntArrayList[numGroups];
+        unmethylatedCounts = new IntArrayList[numGroups];
+        for (int groupIndex = 0; groupIndex < numGroups; groupIndex++) {
+            methylatedCounts[groupIndex] = new IntArrayList();
+            unmethylatedCounts[groupIndex] = new IntArrayList();
+        }
+    }
+
+    /**
+     * Add the counts observed at a site.
+     *
+     * @param position                 position of the site.
+     * @param methylatedCountPerGroup   number of methylated cytosines observed in each group.
+     * @param unmethylatedCountPerGroup number of unmethylated cytosines observed in each group.
+     */
+    public void addSite(final int position, final int[] methylatedCountPerGroup,
+                        final int[] unmethylatedCountPerGroup) {
+        assert positions.isEmpty() || position >= positions.getInt(positions.size() - 1) :
+                "sites must be added in increasing order of position.";
+        positions.add(position);
+        for (int groupIndex = 0; groupIndex < methylatedCounts.length; groupIndex++) {
+            methylatedCounts[groupIndex].add(methylatedCountPerGroup[groupIndex]);
+            unmethylatedCounts[groupIndex].add(unmethylatedCountPerGroup[groupIndex]);
+        }
+    }
+
+    /**
+     * Add the group counts of a site.
+     *
+     * @param position position of the site.
+     * @param mci      counts at the site.
+     */
+    public void addSite(final int position, final MethylCountInfo mci) {
+        addSite(position, mci.methylatedCCountPerGroup, mci.unmethylatedCCountPerGroup);
+    }
+
+    public int getReferenceIndex() {
+        return referenceIndex;
+    }
+
+    public int getNumberOfSites() {
+        return positions.size();
+    }
+
+    public int getPosition(final int siteIndex) {
+        return positions.getInt(siteIndex);
+    }
+
+    public int getMethylatedCount(final int siteIndex, final int groupIndex) {
+        return methylatedCounts[groupIndex].getInt(siteIndex);
+    }
+
+    public int getUnmethylatedCount(final int siteIndex, final int groupIndex) {
+        return unmethylatedCounts[groupIndex].getInt(siteIndex);
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
+
+import edu.cornell.med.icb.goby.algorithmic.algorithm.FenwickTree;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Binary file format for estimated distributions, read through a memory-mapped buffer. The observations of each
+ * covariate bin are stored as the sorted list of scaled statistics that were observed, with the number of observations
+ * of each. Both are delta and variable length coded. Every {@link #CHECKPOINT_INTERVAL} entries, a fixed width
+ * checkpoint records the statistic, the cumulative count and the offset of the entry, so that cumulative counts are
+ * found with a binary search over the checkpoints of a bin followed by decoding at most CHECKPOINT_INTERVAL entries.
+ * <p/>
+ * The file starts with a magic and a version, followed by the serialized statistic adaptor and binning strategy, the
+ * scaling factor, the number of elements and bins, a directory with one fixed width entry per bin, the checkpoints
+ * and finally the coded entries.
+ */
+class MappedDistribution {
+    static final byte[] MAGIC = {'G', 'O', 'B', 'Y', 'D', 'E', 'N', 'S'};
+    static final int VERSION = 1;
+    static final int CHECKPOINT_INTERVAL = 32;
+    /**
+     * total count (long), number of entries (int), index of the first checkpoint (int), offset of the entries (long).
+     */
+    private static final int BIN_ENTRY_LENGTH = 24;
+    /**
+     * statistic (int), cumulative count before the entry (long), offset of the entry in the bin (int).
+     */
+    private static final int CHECKPOINT_LENGTH = 16;
+
+    private final MappedByteBuffer buffer;
+    private final StatisticAdaptor statAdaptor;
+    private final BinningStrategy binningStrategy;
+    private final int scalingFactor;
+    private final int numElements;
+    private final int numBins;
+    private final int directoryOffset;
+    private final int checkpointsOffset;
+
+    /**
+     * Map a distribution file.
+     *
+     * @param filename name of a file written by {@link #write(EstimatedDistribution, String)}.
+     * @throws IOException if the file cannot be read or is not in the expected format.
+     */
+    MappedDistribution(final String filename) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Distribution files larger than 2GB are not supported: " + filename);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();
+        }
+        final byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a distribution file: " + filename);
+        }
+        final int version = buffer.getInt();
+        if (version > VERSION) {
+            throw new IOException(String.format("Distribution file %s has version %d, this reader supports up to version %d.",
+                    filename, version, VERSION));
+        }
+        final byte[] serialized = new byte[buffer.getInt()];
+        buffer.get(serialized);
+        final ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        try {
+            statAdaptor = (StatisticAdaptor) objects.readObject();
+            binningStrategy = (BinningStrategy) objects.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        scalingFactor = buffer.getInt();
+        numElements = buffer.getInt();
+        numBins = buffer.getInt();
+        directoryOffset = buffer.position();
+        checkpointsOffset = directoryOffset + numBins * BIN_ENTRY_LENGTH;
+    }
+
+    /**
+     * Determine if a file is in this format.
+     *
+     * @param filename name of the file.
+     * @return True if the file starts with the magic of this format.
+     * @throws IOException if the file cannot be read.
+     */
+    static boolean isMappedDistribution(final String filename) throws IOException {
+        final DataInputStream input = new DataInputStream(new FileInputStream(filename));
+        try {
+            final byte[] magic = new byte[MAGIC.length];
+            input.readFully(magic);
+            return Arrays.equals(magic, MAGIC);
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Write a distribution in this format.
+     *
+     * @param distribution the distribution to write.
+     * @param filename     name of the file to write.
+     * @throws IOException if the file cannot be written.
+     */
+    static void write(final EstimatedDistribution distribution, final String filename) throws IOException {
+        final int numBins = distribution.getNumberOfBins();
+        final int numElements = distribution.getNumberOfElements();
+        final long[] totalCounts = new long[numBins];
+        final int[] numEntries = new int[numBins];
+        final int[] firstCheckpoints = new int[numBins];
+        final long[] dataOffsets = new long[numBins];
+        // checkpoints and coded entries of all the bins:
+        final FastByteArrayOutputStream checkpointBytes = new FastByteArrayOutputStream();
+        final DataOutputStream checkpoints = new DataOutputStream(checkpointBytes);
+        final FastByteArrayOutputStream dataBytes = new FastByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(dataBytes);
+        int numCheckpoints = 0;
+        for (int binIndex = 0; binIndex < numBins; binIndex++) {
+            final FenwickTree tree = distribution.getDensityAtIndex(binIndex);
+            firstCheckpoints[binIndex] = numCheckpoints;
+            dataOffsets[binIndex] = data.size();
+            if (tree == null) {
+                continue;
+            }
+            totalCounts[binIndex] = tree.getTotalCount();
+            long previousCumulative = 0;
+            int previousStatistic = 0;
+            int entries = 0;
+            for (int statistic = 0; statistic < numElements; statistic++) {
+                final long cumulative = tree.getCumulativeCount(statistic);
+                final long count = cumulative - previousCumulative;
+                if (count == 0) {
+                    continue;
+                }
+                if (entries % CHECKPOINT_INTERVAL == 0) {
+                    checkpoints.writeInt(statistic);
+                    checkpoints.writeLong(previousCumulative);
+                    checkpoints.writeInt((int) (data.size() - dataOffsets[binIndex]));
+                    numCheckpoints++;
+                    previousStatistic = statistic;
+                }
+                writeVarint(data, statistic - previousStatistic);
+                writeVarint(data, count);
+                previousStatistic = statistic;
+                previousCumulative = cumulative;
+                entries++;
+            }
+            numEntries[binIndex] = entries;
+        }
+        final FastByteArrayOutputStream serialized = new FastByteArrayOutputStream();
+        final ObjectOutputStream objects = new ObjectOutputStream(serialized);
+        objects.writeObject(distribution.getStatAdaptor());
+        objects.writeObject(distribution.getBinningStrategy());
+        objects.close();
+
+        final DataOutputStream output = new DataOutputStream(new FastBufferedOutputStream(new FileOutputStream(filename)));
+        try {
+            output.write(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(serialized.length);
+            output.write(serialized.array, 0, serialized.length);
+            output.writeInt((int) distribution.getScalingFactor());
+            output.writeInt(numElements);
+            output.writeInt(numBins);
+            final long dataStart = output.size() + (long) numBins * BIN_ENTRY_LENGTH + checkpointBytes.length;
+            for (int binIndex = 0; binIndex < numBins; binIndex++) {
+                output.writeLong(totalCounts[binIndex]);
+                output.writeInt(numEntries[binIndex]);
+                output.writeInt(firstCheckpoints[binIndex]);
+                output.writeLong(dataStart + dataOffsets[binIndex]);
+            }
+            output.write(checkpointBytes.array, 0, checkpointBytes.length);
+            output.write(dataBytes.array, 0, dataBytes.length);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static void writeVarint(final DataOutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    StatisticAdaptor getStatAdaptor() {
+        return statAdaptor;
+    }
+
+    BinningStrategy getBinningStrategy() {
+        return binningStrategy;
+    }
+
+    int getScalingFactor() {
+        return scalingFactor;
+    }
+
+    int getNumberOfElements() {
+        return numElements;
+    }
+
+    int getNumberOfBins() {
+        return numBins;
+    }
+
+    /**
+     * @return True if the bin has recorded at least one observation.
+     */
+    boolean hasObservations(final int binIndex) {
+        return getTotalCount(binIndex) > 0;
+    }
+
+    long getTotalCount(final int binIndex) {
+        if (binIndex >= numBins) {
+            return 0;
+        }
+        return buffer.getLong(directoryOffset + binIndex * BIN_ENTRY_LENGTH);
+    }
+
+    /**
+     * Get the number of observations in a bin with a scaled statistic less or equal to the argument.
+     *
+     * @param binIndex        index of the covariate bin.
+     * @param scaledStatistic upper bound on the scaled statistic.
+     * @return the cumulative count, as returned by FenwickTree.getCumulativeCount.
+     */
+    long getCumulativeCount(final int binIndex, final int scaledStatistic) {
+        if (binIndex >= numBins || scaledStatistic < 0) {
+            return 0;
+        }
+        final int binEntry = directoryOffset + binIndex * BIN_ENTRY_LENGTH;
+        if (scaledStatistic >= numElements) {
+            return buffer.getLong(binEntry);
+        }
+        final int numEntries = buffer.getInt(binEntry + 8);
+        if (numEntries == 0) {
+            return 0;
+        }
+        final int firstCheckpoint = buffer.getInt(binEntry + 12);
+        final int dataOffset = (int) buffer.getLong(binEntry + 16);
+        final int numCheckpoints = (numEntries + CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL;
+        // find the last checkpoint whose statistic is less or equal to scaledStatistic:
+        int low = 0;
+        int high = numCheckpoints - 1;
+        int found = -1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (buffer.getInt(checkpointsOffset + (firstCheckpoint + middle) * CHECKPOINT_LENGTH) <= scaledStatistic) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (found == -1) {
+            return 0;
+        }
+        final int checkpoint = checkpointsOffset + (firstCheckpoint + found) * CHECKPOINT_LENGTH;
+        int statistic = buffer.getInt(checkpoint);
+        long cumulative = buffer.getLong(checkpoint + 4);
+        int position = dataOffset + buffer.getInt(checkpoint + 12);
+        final int entriesInGroup = Math.min(CHECKPOINT_INTERVAL, numEntries - found * CHECKPOINT_INTERVAL);
+        for (int i = 0; i < entriesInGroup; i++) {
+            // decode the statistic delta:
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            statistic += delta;
+            if (statistic > scaledStatistic) {
+                break;
+            }
+            long count = 0;
+            shift = 0;
+            do {
+                b = buffer.get(position++);
+                count |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            cumulative += count;
+        }
+        return cumulative;
+    }
+
+    /**
+     * Rebuild the Fenwick tree of a bin.
+     *
+     * @param binIndex index of the covariate bin.
+     * @return a tree with the observations of the bin, or null if the bin has none.
+     */
+    FenwickTree toTree(final int binIndex) {
+        final long totalCount = getTotalCount(binIndex);
+        if (totalCount == 0) {
+            return null;
+        }
+        final FenwickTree tree = new FenwickTree(numElements);
+        final int binEntry = directoryOffset + binIndex * BIN_ENTRY_LENGTH;
+        final int numEntries = buffer.getInt(binEntry + 8);
+        final int firstCheckpoint = buffer.getInt(binEntry + 12);
+        int position = (int) buffer.getLong(binEntry + 16);
+        long previous = 0;
+        int statistic = 0;
+        for (int i = 0; i < numEntries; i++) {
+            if (i % CHECKPOINT_INTERVAL == 0) {
+                statistic = buffer.getInt(checkpointsOffset + (firstCheckpoint + i / CHECKPOINT_INTERVAL) * CHECKPOINT_LENGTH);
+            }
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            statistic += delta;
+            long count = 0;
+            shift = 0;
+            do {
+                b = buffer.get(position++);
+                count |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            tree.incrementCount(statistic, count);
+            previous += count;
+        }
+        // observations past the last element only contribute to the total count:
+        if (totalCount != previous) {
+            tree.incrementCount(numElements, totalCount - previous);
+        }
+        return tree;
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.io.FastBufferedReader;
+import it.unimi.dsi.lang.MutableString;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads observations written by {@link ObservationWriter}, in either the tab delimited or the binary format. The
+ * format is detected from the first bytes of the file. Text lines are tokenized in place: values are parsed without
+ * creating strings, and element ids that repeat from one line to the next are shared.
+ */
+public class ObservationReader implements Closeable {
+    private static final int TYPE = 0;
+    private static final int COMPARISON = 1;
+    private static final int IDS = 2;
+    private static final int VALUES_A = 3;
+    private static final int VALUES_B = 4;
+    private static final int COVARIATES_A = 5;
+    private static final int COVARIATES_B = 6;
+    private static final ObservationWriter.TypeOfPair[] TYPES = ObservationWriter.TypeOfPair.values();
+
+    private FastBufferedReader textInput;
+    private DataInputStream binaryInput;
+    private final MutableString line = new MutableString();
+    private int lineNumber;
+
+    private ObservationWriter.TypeOfPair typeOfPair;
+    private final ObjectArrayList<String> elementIds = new ObjectArrayList<String>();
+    private final IntArrayList valuesA = new IntArrayList();
+    private final IntArrayList valuesB = new IntArrayList();
+    private final IntArrayList covariatesA = new IntArrayList();
+    private final IntArrayList covariatesB = new IntArrayList();
+    /**
+     * Ids of the previous observation, reused when they are repeated.
+     */
+    private String[] previousIds = new String[0];
+
+    /**
+     * Open an observation file.
+     *
+     * @param filename name of a file written by ObservationWriter.
+     * @throws IOException if the file cannot be read.
+     */
+    public ObservationReader(final String filename) throws IOException {
+        super();
+        if (isBinary(filename)) {
+            binaryInput = new DataInputStream(new FastBufferedInputStream(new FileInputStream(filename)));
+            binaryInput.skipBytes(ObservationWriter.MAGIC.length);
+            final int version = binaryInput.readInt();
+            if (version > ObservationWriter.VERSION) {
+                throw new IOException(String.format("Observation file %s has version %d, this reader supports up to version %d.",
+                        filename, version, ObservationWriter.VERSION));
+            }
+        } else {
+            textInput = new FastBufferedReader(new FileReader(filename));
+            // ignore the header line:
+            textInput.readLine(line);
+            lineNumber = 1;
+        }
+    }
+
+    /**
+     * Determine if a file is in the binary observation format.
+     *
+     * @param filename name of the file.
+     * @return True if the file starts with the binary format magic bytes.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean isBinary(final String filename) throws IOException {
+        final DataInputStream input = new DataInputStream(new FileInputStream(filename));
+        try {
+            final byte[] magic = new byte[ObservationWriter.MAGIC.length];
+            input.readFully(magic);
+            return Arrays.equals(magic, ObservationWriter.MAGIC);
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Read the next observation.
+     *
+     * @return True if an observation was read, false at the end of the file.
+     * @throws IOException if the file cannot be read or is not properly formatted.
+     */
+    public boolean next() throws IOException {
+        elementIds.clear();
+        valuesA.clear();
+        valuesB.clear();
+        covariatesA.clear();
+        covariatesB.clear();
+        return binaryInput != null ? nextBinary() : nextText();
+    }
+
+    private boolean nextBinary() throws IOException {
+        int tag = binaryInput.read();
+        while (tag == ObservationWriter.HEADER_TAG) {
+            for (int i = 0; i < 5; i++) {
+                final int numColumns = readVarint();
+                for (int j = 0; j < numColumns; j++) {
+                    binaryInput.readUTF();
+                }
+            }
+            tag = binaryInput.read();
+        }
+        if (tag == -1) {
+            return false;
+        }
+        if (tag >= TYPES.length) {
+            throw new IOException("Invalid observation record tag: " + tag);
+        }
+        typeOfPair = TYPES[tag];
+        final int numIds = readVarint();
+        if (previousIds.length != numIds) {
+            previousIds = new String[numIds];
+        }
+        for (int i = 0; i < numIds; i++) {
+            if (binaryInput.readByte() != 0) {
+                previousIds[i] = binaryInput.readUTF();
+            }
+            elementIds.add(previousIds[i]);
+        }
+        readValues(valuesA);
+        readValues(valuesB);
+        readValues(covariatesA);
+        readValues(covariatesB);
+        return true;
+    }
+
+    private void readValues(final IntArrayList values) throws IOException {
+        final int size = readVarint();
+        for (int i = 0; i < size; i++) {
+            final int value = readVarint();
+            values.add((value >>> 1) ^ -(value & 1));
+        }
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = binaryInput.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private boolean nextText() throws IOException {
+        do {
+            if (textInput.readLine(line) == null) {
+                return false;
+            }
+            lineNumber++;
+        } while (line.length() == 0);
+        final char[] chars = line.array();
+        final int length = line.length();
+        int section = TYPE;
+        int idIndex = 0;
+        int start = 0;
+        while (start <= length) {
+            int end = line.indexOf('\t', start);
+            if (end == -1) {
+                end = length;
+            }
+            switch (section) {
+                case TYPE:
+                    typeOfPair = parseTypeOfPair(chars, start, end);
+                    section = COMPARISON;
+                    break;
+                case COMPARISON:
+                    elementIds.add(id(idIndex++, chars, start, end));
+                    section = IDS;
+                    break;
+                case IDS:
+                    if (matches("VALUES_A", chars, start, end)) {
+                        section = VALUES_A;
+                    } else {
+                        elementIds.add(id(idIndex++, chars, start, end));
+                    }
+                    break;
+                case VALUES_A:
+                    if (matches("VALUES_B", chars, start, end)) {
+                        section = VALUES_B;
+                    } else {
+                        valuesA.add(parseInt(chars, start, end));
+                    }
+                    break;
+                case VALUES_B:
+                    if (matches("COVARIATES_A", chars, start, end)) {
+                        section = COVARIATES_A;
+                    } else {
+                        valuesB.add(parseInt(chars, start, end));
+                    }
+                    break;
+                case COVARIATES_A:
+                    if (matches("COVARIATES_B", chars, start, end)) {
+                        section = COVARIATES_B;
+                    } else {
+                        covariatesA.add(parseInt(chars, start, end));
+                    }
+                    break;
+                default:
+                    covariatesB.add(parseInt(chars, start, end));
+                    break;
+            }
+            start = end + 1;
+        }
+        if (section != COVARIATES_B) {
+            throw new IOException(String.format("Every line must contain the VALUES_A, VALUES_B, COVARIATES_A and COVARIATES_B keywords. Keyword missing on line %d",
+                    lineNumber));
+        }
+        return true;
+    }
+
+    private ObservationWriter.TypeOfPair parseTypeOfPair(final char[] chars, final int start, final int end)
+            throws IOException {
+        for (final ObservationWriter.TypeOfPair type : TYPES) {
+            if (matches(type.name(), chars, start, end)) {
+                return type;
+            }
+        }
+        throw new IOException(String.format("First token of every line should be WITHIN_GROUP_PAIR or BETWEEN_GROUP_PAIR. Found %s on line %d",
+                new String(chars, start, end - start), lineNumber));
+    }
+
+    /**
+     * Return the id at the given position, reusing the id of the previous line when it has the same characters.
+     */
+    private String id(final int index, final char[] chars, final int start, final int end) {
+        if (index >= previousIds.length) {
+            previousIds = Arrays.copyOf(previousIds, index + 1);
+        }
+        final String previous = previousIds[index];
+        if (previous != null && matches(previous, chars, start, end)) {
+            return previous;
+        }
+        final String id = new String(chars, start, end - start);
+        previousIds[index] = id;
+        return id;
+    }
+
+    private static boolean matches(final String keyword, final char[] chars, final int start, final int end) {
+        if (keyword.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (chars[i] != keyword.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int parseInt(final char[] chars, final int start, final int end) {
+        int i = start;
+        final boolean negative = i < end && chars[i] == '-';
+        if (negative || i < end && chars[i] == '+') {
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException(String.format("Empty value on line %d", lineNumber));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            final int digit = chars[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException(String.format("For input string: \"%s\" on line %d",
+                        new String(chars, start, end - start), lineNumber));
+            }
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE + 1L) {
+                throw new NumberFormatException(String.format("Value out of range: \"%s\" on line %d",
+                        new String(chars, start, end - start), lineNumber));
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new NumberFormatException(String.format("Value out of range: \"%s\" on line %d",
+                    new String(chars, start, end - start), lineNumber));
+        }
+        return (int) value;
+    }
+
+    /**
+     * @return the type of pair of the current observation.
+     */
+    public ObservationWriter.TypeOfPair getTypeOfPair() {
+        return typeOfPair;
+    }
+
+    /**
+     * @return the comparison (first element) followed by the element ids of the current observation. The list is
+     *         reused for the next observation.
+     */
+    public ObjectArrayList<String> getElementIds() {
+        return elementIds;
+    }
+
+    public IntArrayList getValuesA() {
+        return valuesA;
+    }
+
+    public IntArrayList getValuesB() {
+        return valuesB;
+    }
+
+    public IntArrayList getCovariatesA() {
+        return covariatesA;
+    }
+
+    public IntArrayList getCovariatesB() {
+        return covariatesB;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (binaryInput != null) {
+            binaryInput.close();
+        } else {
+            textInput.close();
+        }
+    }
+}
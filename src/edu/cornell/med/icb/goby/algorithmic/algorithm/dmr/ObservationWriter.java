@@ -19,13 +19,20 @@
 package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
 
 import edu.cornell.med.icb.goby.algorithmic.data.GroupComparison;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Writer;
 
 /**
- * Writes observations to disk in the format recognized by empirical-p mode.
+ * Writes observations to disk in the format recognized by empirical-p mode. Observations are written as tab delimited
+ * text when the writer is constructed with a Writer, or as a compact binary record stream when it is constructed with
+ * an OutputStream. See {@link ObservationReader} for both formats.
  *
  * @author Fabien Campagne
  *         Date: 2/27/12
@@ -36,8 +43,32 @@ public class ObservationWriter {
     private boolean headerWritten = false;
     private String[] headerIds;
 
+    /**
+     * First bytes of a binary observation file.
+     */
+    public static final byte[] MAGIC = {'G', 'O', 'B', 'Y', 'O', 'B', 'S', 'B'};
+    public static final int VERSION = 1;
+    /**
+     * Record tag of the header in binary files. Observation records are tagged with the ordinal of their TypeOfPair.
+     */
+    static final int HEADER_TAG = 0x7F;
+
+    private DataOutputStream binaryOutput;
+    /**
+     * Comparison and element ids of the previous binary record. Ids that repeat are not written again.
+     */
+    private String[] previousIds = new String[0];
+
     public void close() {
-        outputWriter.close();
+        if (binaryOutput != null) {
+            try {
+                binaryOutput.close();
+            } catch (IOException e) {
+                throw new GobyRuntimeException(e);
+            }
+        } else {
+            outputWriter.close();
+        }
     }
 
 
@@ -56,6 +87,22 @@ public class ObservationWriter {
         this.outputWriter = new PrintWriter(writer);
     }
 
+    /**
+     * Write observations in the binary format. Values are written as variable length integers, and the comparison
+     * and element ids are only written when they differ from those of the previous observation.
+     *
+     * @param output where to write the observations.
+     */
+    public ObservationWriter(final OutputStream output) {
+        binaryOutput = new DataOutputStream(new FastBufferedOutputStream(output));
+        try {
+            binaryOutput.write(MAGIC);
+            binaryOutput.writeInt(VERSION);
+        } catch (IOException e) {
+            throw new GobyRuntimeException(e);
+        }
+    }
+
     public void setElementIds(final String[] ids) {
         elementIds = ids;
     }
@@ -73,7 +120,20 @@ public class ObservationWriter {
             return;
         } else {
             assert headerIds != null : " setHeaderIds must be called before calling writeHeader";
-
+            if (binaryOutput != null) {
+                try {
+                    binaryOutput.write(HEADER_TAG);
+                    writeBinaryHeaderColumns(headerIds);
+                    writeBinaryHeaderColumns(headerValuesA);
+                    writeBinaryHeaderColumns(headerValuesB);
+                    writeBinaryHeaderColumns(headerCovariatesA);
+                    writeBinaryHeaderColumns(headerCovariatesB);
+                } catch (IOException e) {
+                    throw new GobyRuntimeException(e);
+                }
+                headerWritten = true;
+                return;
+            }
             outputWriter.write("PAIR_TYPE");
             outputWriter.write("\tCOMPARISON");
             writeHeaderColumns(headerIds);
@@ -97,6 +157,13 @@ public class ObservationWriter {
         }
     }
 
+    private void writeBinaryHeaderColumns(final String[] array) throws IOException {
+        writeVarint(array.length);
+        for (final String id : array) {
+            binaryOutput.writeUTF(id);
+        }
+    }
+
     public void setComparison(GroupComparison comparison) {
         this.comparison = comparison.nameGroup1+"/"+comparison.nameGroup2;
     }
@@ -105,7 +172,14 @@ public class ObservationWriter {
 
     public void observed(final IntArrayList valuesA, final IntArrayList valuesB,
                          final IntArrayList covariatesA, final IntArrayList covariatesB) {
-
+        if (binaryOutput != null) {
+            try {
+                writeBinary(valuesA, valuesB, covariatesA, covariatesB);
+            } catch (IOException e) {
+                throw new GobyRuntimeException(e);
+            }
+            return;
+        }
         outputWriter.write(typeOfPair.toString());
         outputWriter.write('\t');
         outputWriter.write(comparison);
@@ -132,4 +206,45 @@ public class ObservationWriter {
         }
     }
 
+    private void writeBinary(final IntArrayList valuesA, final IntArrayList valuesB,
+                             final IntArrayList covariatesA, final IntArrayList covariatesB) throws IOException {
+        binaryOutput.write(typeOfPair.ordinal());
+        final int numIds = elementIds.length + 1;
+        if (previousIds.length != numIds) {
+            previousIds = new String[numIds];
+        }
+        writeVarint(numIds);
+        for (int i = 0; i < numIds; i++) {
+            final String id = i == 0 ? comparison : elementIds[i - 1];
+            if (id.equals(previousIds[i])) {
+                binaryOutput.write(0);
+            } else {
+                binaryOutput.write(1);
+                binaryOutput.writeUTF(id);
+                previousIds[i] = id;
+            }
+        }
+        writeBinary(valuesA);
+        writeBinary(valuesB);
+        writeBinary(covariatesA);
+        writeBinary(covariatesB);
+    }
+
+    private void writeBinary(final IntArrayList values) throws IOException {
+        final int size = values.size();
+        writeVarint(size);
+        for (int i = 0; i < size; i++) {
+            final int value = values.getInt(i);
+            // zig-zag encoding keeps small negative values short:
+            writeVarint((value << 1) ^ (value >> 31));
+        }
+    }
+
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            binaryOutput.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        binaryOutput.write(value);
+    }
 }
@@ -21,6 +21,10 @@ package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
 /**
  * Class that populates a cumulative count array of a predetermined size
  * Facilitates adding new counts to the rightmost element in the array
+ * <p/>
+ * The array stores running totals in a circular buffer, together with the running total just before the first
+ * element. Sliding the array by one count is a constant time operation. Counts are summed with int arithmetic,
+ * which remains exact (modulo 2^32) as long as the sum of the counts in the array fits in an int.
  *
  * @Author: Nyasha Chambwe
  * Date: 3/1/12
@@ -31,6 +35,10 @@ public class SlidingCountArray {
 
     public void setCumC(int[] cumC) {
         this.cumC = cumC;
+        head = 0;
+        offset = 0;
+        capacityMonitor = Math.min(cumC.length, capacity);
+        total = capacityMonitor == 0 ? 0 : cumC[capacityMonitor - 1];
     }
 
 
@@ -43,7 +51,7 @@ public class SlidingCountArray {
     }
 
     /**
-     * Cumulative count array
+     * Running totals of the counts added to the array, in a circular buffer.
      */
     int[] cumC;
     /*
@@ -56,7 +64,14 @@ public class SlidingCountArray {
     * */
     int head;
 
-    int tail;
+    /**
+     * Running total of the counts that slid out of the array.
+     */
+    private int offset;
+    /**
+     * Running total of all the counts added to the array.
+     */
+    private int total;
     /*
     Maximum size of the cumulative count array
      */
@@ -69,7 +84,6 @@ public class SlidingCountArray {
         cumC = new int[n];
         capacity = n;
         head = 0;
-        tail = 0;
     }
 
     /*
@@ -77,18 +91,15 @@ public class SlidingCountArray {
     * whilst maintaining the size of the array
     * */
     public void addToRight(final int countAtNewSite) {
+        total += countAtNewSite;
         if (!cumulativeCapacityReached()) {
-            fillUpCumulativeArray(countAtNewSite);
+            cumC[physicalIndex(capacityMonitor)] = total;
             capacityMonitor++;
-            tail = advanceToNextIndex(tail);
         } else {
-            shift(countAtNewSite);
-            if (head != tail) {
-                head = advanceToNextIndex(head);
-                tail = advanceToNextIndex(tail);
-            } else {
-                head = advanceToNextIndex(head);
-            }
+            // the leftmost element slides out, its slot receives the new rightmost element:
+            offset = cumC[head];
+            cumC[head] = total;
+            head = advanceToNextIndex(head);
         }
     }
 
@@ -103,34 +114,9 @@ public class SlidingCountArray {
         return pointer;
     }
 
-    /*
-    * Updates the cumulative count array by subtracting count of the leftmost element
-    * and adding the new cumulative sum to the rightmost element
-    * */
-    private void shift(final int countAtNewSite) {
-        final int removedCount = cumC[head];
-        // subtract count being removed from each element
-        for (int i = 0; i < capacity; i++) {
-            cumC[i] = cumC[i] - removedCount;
-        }
-        // update cumulative total
-        if (capacity == 1) {
-            cumC[tail] = countAtNewSite;
-        } else {
-            if (head == 0 && tail == 0) {
-                cumC[tail] = cumC[capacity - 1] + countAtNewSite;
-            } else {
-                cumC[head] = cumC[tail] + countAtNewSite;
-            }
-        }
-    }
-
-    private void fillUpCumulativeArray(final int countAtNewSite) {
-        if (capacityMonitor == 0) {
-            cumC[capacityMonitor] = countAtNewSite;
-        } else {
-            cumC[tail] = cumC[tail - 1] + countAtNewSite;
-        }
+    private int physicalIndex(final int logicalIndex) {
+        final int index = head + logicalIndex;
+        return index >= capacity ? index - capacity : index;
     }
 
     /**
@@ -142,13 +128,30 @@ public class SlidingCountArray {
         return capacityMonitor == capacity;
     }
 
+    /**
+     * Return the number of counts in the array.
+     *
+     * @return the number of counts added, up to the capacity of the array.
+     */
+    public int size() {
+        return capacityMonitor;
+    }
+
+    /**
+     * Return the sum of the counts from the leftmost element to the element at the given index.
+     *
+     * @param index index of an element, zero for the leftmost.
+     * @return the cumulative count at this index.
+     */
+    public int getCumulativeCount(final int index) {
+        return cumC[physicalIndex(index)] - offset;
+    }
+
     public String cumulativeArrayToString(final int[] result) {
         final StringBuilder outputResult = new StringBuilder("[");
-        int pointer = head;
         for (int i = 0; i < capacityMonitor; i++) {
             outputResult.append("\t");
-            outputResult.append(cumC[pointer]);
-            pointer = advanceToNextIndex(pointer);
+            outputResult.append(getCumulativeCount(i));
         }
         outputResult.append("\t]");
         return outputResult.toString();
@@ -162,6 +165,6 @@ public class SlidingCountArray {
     * Returns the cumulative sum over an array of size n
     * */
     public int getCumulativeSum() {
-        return cumC[tail];
+        return total - offset;
     }
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
+
+import edu.cornell.med.icb.goby.algorithmic.data.GroupComparison;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.lang.SerializationUtils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds differentially methylated regions by sliding a window of a fixed number of cytosines along each reference
+ * sequence. The methylated and unmethylated counts of the two groups of a comparison are summed over the window
+ * with {@link SlidingCountArray}s, so that sliding the window by one site takes constant time, and the statistic
+ * adaptor is evaluated on the window sums. Consecutive windows whose statistic reaches the threshold are merged
+ * into one region.
+ * <p/>
+ * Each reference sequence and group comparison is scanned as a separate task, on a pool of threads. Each task
+ * works with its own copy of the statistic adaptor. The regions found by all tasks are returned in the order
+ * defined by {@link DifferentiallyMethylatedRegion#compareTo(DifferentiallyMethylatedRegion)}.
+ */
+public class SlidingWindowDMRFinder {
+    private final StatisticAdaptor statAdaptor;
+    private final int windowLength;
+    private final double minimumStatistic;
+    private final int numThreads;
+
+    /**
+     * Create a finder.
+     *
+     * @param statAdaptor      adaptor that calculates the statistic of a window from the arguments Cma, Ca, Cmb, Cb
+     *                         (methylated and unmethylated counts of the first and second group).
+     * @param windowLength     number of cytosines in a window.
+     * @param minimumStatistic windows with a statistic larger or equal to this value are differentially methylated.
+     * @param numThreads       number of threads used to scan reference sequences and comparisons.
+     */
+    public SlidingWindowDMRFinder(final StatisticAdaptor statAdaptor, final int windowLength,
+                                  final double minimumStatistic, final int numThreads) {
+        super();
+        if (windowLength < 1) {
+            throw new IllegalArgumentException("The window must contain at least one cytosine.");
+        }
+        this.statAdaptor = statAdaptor;
+        this.windowLength = windowLength;
+        this.minimumStatistic = minimumStatistic;
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Find the differentially methylated regions of several reference sequences, in several group comparisons.
+     *
+     * @param references  counts for each reference sequence.
+     * @param comparisons the group comparisons.
+     * @return the regions, sorted by reference, start, end and comparison.
+     */
+    public ObjectArrayList<DifferentiallyMethylatedRegion> find(final List<GroupMethylationCounts> references,
+                                                                final List<GroupComparison> comparisons) {
+        final ObjectArrayList<DifferentiallyMethylatedRegion> regions = new ObjectArrayList<DifferentiallyMethylatedRegion>();
+        if (numThreads == 1) {
+            for (final GroupMethylationCounts counts : references) {
+                for (final GroupComparison comparison : comparisons) {
+                    regions.addAll(scan(counts, comparison, statAdaptor));
+                }
+            }
+        } else {
+            final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            try {
+                final ObjectArrayList<Future<ObjectArrayList<DifferentiallyMethylatedRegion>>> futures =
+                        new ObjectArrayList<Future<ObjectArrayList<DifferentiallyMethylatedRegion>>>();
+                for (final GroupMethylationCounts counts : references) {
+                    for (final GroupComparison comparison : comparisons) {
+                        futures.add(executor.submit(new Callable<ObjectArrayList<DifferentiallyMethylatedRegion>>() {
+                            @Override
+                            public ObjectArrayList<DifferentiallyMethylatedRegion> call() {
+                                // adaptors keep state between calls, each task needs its own:
+                                final StatisticAdaptor adaptor = (StatisticAdaptor) SerializationUtils.clone(statAdaptor);
+                                return scan(counts, comparison, adaptor);
+                            }
+                        }));
+                    }
+                }
+                for (final Future<ObjectArrayList<DifferentiallyMethylatedRegion>> future : futures) {
+                    regions.addAll(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GobyRuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new GobyRuntimeException(e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        Collections.sort(regions);
+        return regions;
+    }
+
+    /**
+     * Find the differentially methylated regions of one reference sequence, in one group comparison.
+     *
+     * @param counts     counts for the reference sequence.
+     * @param comparison the group comparison.
+     * @param adaptor    adaptor used to calculate window statistics.
+     * @return the regions, in increasing order of position.
+     */
+    ObjectArrayList<DifferentiallyMethylatedRegion> scan(final GroupMethylationCounts counts,
+                                                         final GroupComparison comparison,
+                                                         final StatisticAdaptor adaptor) {
+        final ObjectArrayList<DifferentiallyMethylatedRegion> regions = new ObjectArrayList<DifferentiallyMethylatedRegion>();
+        final SlidingCountArray methylatedA = new SlidingCountArray(windowLength);
+        final SlidingCountArray unmethylatedA = new SlidingCountArray(windowLength);
+        final SlidingCountArray methylatedB = new SlidingCountArray(windowLength);
+        final SlidingCountArray unmethylatedB = new SlidingCountArray(windowLength);
+        final int groupA = comparison.indexGroup1;
+        final int groupB = comparison.indexGroup2;
+        // sites of the region being extended, -1 when there is none:
+        int regionFirstSite = -1;
+        int regionLastSite = -1;
+        double regionStatistic = 0;
+        final int numSites = counts.getNumberOfSites();
+        for (int site = 0; site < numSites; site++) {
+            methylatedA.addToRight(counts.getMethylatedCount(site, groupA));
+            unmethylatedA.addToRight(counts.getUnmethylatedCount(site, groupA));
+            methylatedB.addToRight(counts.getMethylatedCount(site, groupB));
+            unmethylatedB.addToRight(counts.getUnmethylatedCount(site, groupB));
+            if (site + 1 < windowLength) {
+                continue;
+            }
+            final int cma = methylatedA.getCumulativeSum();
+            final int ca = unmethylatedA.getCumulativeSum();
+            final int cmb = methylatedB.getCumulativeSum();
+            final int cb = unmethylatedB.getCumulativeSum();
+            if (cma + ca == 0 || cmb + cb == 0) {
+                // one group has no observation in this window.
+                continue;
+            }
+            final double statistic = adaptor.calculateNoCovariate(cma, ca, cmb, cb);
+            if (!(statistic >= minimumStatistic)) {
+                continue;
+            }
+            final int windowFirstSite = site - windowLength + 1;
+            if (regionFirstSite != -1 && windowFirstSite <= regionLastSite + 1) {
+                // the window overlaps or touches the current region:
+                regionLastSite = site;
+                regionStatistic = Math.max(regionStatistic, statistic);
+            } else {
+                if (regionFirstSite != -1) {
+                    regions.add(region(counts, comparison, regionFirstSite, regionLastSite, regionStatistic));
+                }
+                regionFirstSite = windowFirstSite;
+                regionLastSite = site;
+                regionStatistic = statistic;
+            }
+        }
+        if (regionFirstSite != -1) {
+            regions.add(region(counts, comparison, regionFirstSite, regionLastSite, regionStatistic));
+        }
+        return regions;
+    }
+
+    private static DifferentiallyMethylatedRegion region(final GroupMethylationCounts counts,
+                                                         final GroupComparison comparison,
+                                                         final int firstSite, final int lastSite,
+                                                         final double statistic) {
+        return new DifferentiallyMethylatedRegion(counts.getReferenceIndex(), counts.getPosition(firstSite),
+                counts.getPosition(lastSite), lastSite - firstSite + 1, comparison.index, statistic);
+    }
+}
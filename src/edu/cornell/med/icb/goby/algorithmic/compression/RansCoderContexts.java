@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.compression;
+
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.io.InputBitStream;
+import it.unimi.dsi.io.OutputBitStream;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A range asymmetric numeral system (rANS) coder with one static model per context. Unlike the adaptive
+ * {@link FastArithmeticCoder}, the frequencies of the symbols of each context are counted before encoding and
+ * stored with the data, which lets the decoder find each symbol with a single table lookup and read whole bytes.
+ * <p/>
+ * The coder keeps {@link #NUM_STREAMS} independent states that share the encoded bytes. Alternating symbols
+ * of independent sequences between the states lets the decoder work on one sequence while it waits for the
+ * table lookup of the other.
+ * <p/>
+ * To encode, call {@link #count(int, int)} for every symbol, then {@link #writeModel(OutputBitStream)}, then
+ * {@link #encode(int, int, int)} for every symbol in <em>reverse</em> order, and finally {@link #finish()}. The
+ * encoded bytes are {@link #getBytes()} from {@link #getOffset()} to the end of the array. To decode, call
+ * {@link #readModel(InputBitStream)}, {@link #startDecoding(byte[], int)}, then {@link #decode(int, int)} for
+ * every symbol in the original order, with the same streams and contexts as when encoding.
+ */
+public final class RansCoderContexts {
+    public static final int NUM_STREAMS = 2;
+    /**
+     * The frequencies of the symbols of each context are scaled to sum to 2^SCALE_BITS.
+     */
+    private static final int SCALE_BITS = 10;
+    private static final int TOTAL = 1 << SCALE_BITS;
+    /**
+     * The state of the coder stays in [LOWER_BOUND, LOWER_BOUND << 16) between symbols. The coder writes the state
+     * sixteen bits at a time, which the decoder reads back at most once per symbol, without branching.
+     */
+    private static final int LOWER_BOUND = 1 << 15;
+    /**
+     * Decoding table entries hold the frequency of the symbol of the slot on the lowest bits, followed by the
+     * distance of the slot to the first slot of the symbol, and by the symbol.
+     */
+    private static final int FREQUENCY_BITS = SCALE_BITS + 1;
+    private static final int SYMBOL_SHIFT = FREQUENCY_BITS + SCALE_BITS;
+    private static final int DISTANCE_MASK = TOTAL - 1;
+
+    private final int numContexts;
+    private final int numSymbols;
+    /**
+     * Counts, then scaled frequencies, of each symbol in each context, indexed by context * numSymbols + symbol.
+     */
+    private final int[] frequencies;
+    /**
+     * Sum of the scaled frequencies of the symbols that precede each symbol in its context.
+     */
+    private final int[] cumulative;
+    /**
+     * First entry of each context in the decoding tables, or -1 when the context has no symbol.
+     */
+    private final int[] tableOffsets;
+    /**
+     * Decoding tables, with 2^SCALE_BITS slots for each context. Small tables keep the frequent contexts in cache.
+     */
+    private int[] slotEntries = IntArrays.EMPTY_ARRAY;
+
+    private final int[] states = new int[NUM_STREAMS];
+    private byte[] bytes = ByteArrays.EMPTY_ARRAY;
+    private int position;
+
+    public RansCoderContexts(final int numContexts, final int numSymbols) {
+        super();
+        this.numContexts = numContexts;
+        this.numSymbols = numSymbols;
+        frequencies = new int[numContexts * numSymbols];
+        cumulative = new int[numContexts * numSymbols];
+        tableOffsets = new int[numContexts];
+    }
+
+    public int getNumSymbols() {
+        return numSymbols;
+    }
+
+    /**
+     * Count one occurrence of a symbol in a context, before encoding.
+     */
+    public void count(final int context, final int symbol) {
+        frequencies[context * numSymbols + symbol]++;
+    }
+
+    /**
+     * Scale the counts of each context and write them to out.
+     *
+     * @param out where to write the model.
+     * @throws IOException if out cannot be written.
+     */
+    public void writeModel(final OutputBitStream out) throws IOException {
+        for (int context = 0; context < numContexts; context++) {
+            final int first = context * numSymbols;
+            final boolean used = scale(first);
+            out.writeBit(used);
+            if (used) {
+                for (int i = first; i < first + numSymbols; i++) {
+                    out.writeGamma(frequencies[i]);
+                }
+            }
+        }
+        accumulate();
+        Arrays.fill(states, LOWER_BOUND);
+        position = bytes.length;
+        // the decoder reads two bytes ahead, pad the end of the encoded bytes:
+        put((byte) 0);
+        put((byte) 0);
+    }
+
+    /**
+     * Read the model written by {@link #writeModel(OutputBitStream)} and build the decoding tables.
+     *
+     * @param in where to read the model from.
+     * @throws IOException if in cannot be read.
+     */
+    public void readModel(final InputBitStream in) throws IOException {
+        int numUsed = 0;
+        for (int context = 0; context < numContexts; context++) {
+            final int first = context * numSymbols;
+            if (in.readBit() == 1) {
+                tableOffsets[context] = numUsed++ << SCALE_BITS;
+                for (int i = first; i < first + numSymbols; i++) {
+                    frequencies[i] = in.readGamma();
+                }
+            } else {
+                tableOffsets[context] = -1;
+                Arrays.fill(frequencies, first, first + numSymbols, 0);
+            }
+        }
+        accumulate();
+        slotEntries = IntArrays.ensureCapacity(slotEntries, numUsed << SCALE_BITS);
+        for (int context = 0; context < numContexts; context++) {
+            final int tableOffset = tableOffsets[context];
+            if (tableOffset == -1) {
+                continue;
+            }
+            for (int symbol = 0; symbol < numSymbols; symbol++) {
+                final int index = context * numSymbols + symbol;
+                final int frequency = frequencies[index];
+                for (int i = 0; i < frequency; i++) {
+                    slotEntries[tableOffset + cumulative[index] + i] =
+                            frequency | i << FREQUENCY_BITS | symbol << SYMBOL_SHIFT;
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode a symbol. Symbols must be encoded in the reverse of the order in which they will be decoded.
+     *
+     * @param stream  the state that encodes the symbol, from zero to NUM_STREAMS - 1.
+     * @param context the context of the symbol.
+     * @param symbol  the symbol.
+     */
+    public void encode(final int stream, final int context, final int symbol) {
+        final int index = context * numSymbols + symbol;
+        final int frequency = frequencies[index];
+        final long maxState = ((long) (LOWER_BOUND >>> SCALE_BITS) << 16) * frequency;
+        int state = states[stream];
+        if (state >= maxState) {
+            put((byte) state);
+            put((byte) (state >>> 8));
+            state >>>= 16;
+        }
+        states[stream] = ((state / frequency) << SCALE_BITS) + state % frequency + cumulative[index];
+    }
+
+    /**
+     * Write the final states of the coder, which the decoder reads first.
+     */
+    public void finish() {
+        for (int stream = NUM_STREAMS - 1; stream >= 0; stream--) {
+            for (int i = 0; i < 4; i++) {
+                put((byte) (states[stream] >>> (i << 3)));
+            }
+        }
+    }
+
+    /**
+     * @return the array that holds the encoded bytes, from {@link #getOffset()} to its end.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getOffset() {
+        return position;
+    }
+
+    /**
+     * Prepare to decode the bytes written by the encoder.
+     *
+     * @param encoded the encoded bytes.
+     * @param offset  the position of the first encoded byte.
+     */
+    public void startDecoding(final byte[] encoded, final int offset) {
+        bytes = encoded;
+        position = offset;
+        for (int stream = 0; stream < NUM_STREAMS; stream++) {
+            int state = 0;
+            for (int i = 0; i < 4; i++) {
+                state = state << 8 | (bytes[position++] & 0xFF);
+            }
+            states[stream] = state;
+        }
+    }
+
+    /**
+     * Decode the next symbol of a stream.
+     *
+     * @param stream  the state that encoded the symbol.
+     * @param context the context in which the symbol was encoded.
+     * @return the symbol.
+     */
+    public int decode(final int stream, final int context) {
+        return decodeAt(stream, tableOffsets[context]);
+    }
+
+    /**
+     * Return the first entry of the decoding table of a context, for {@link #decodeAt(int, int)}.
+     *
+     * @param context a context.
+     * @return the offset of the table of the context, or -1 if no symbol was encoded in the context.
+     */
+    public int getTableOffset(final int context) {
+        return tableOffsets[context];
+    }
+
+    /**
+     * Decode the next symbol of a stream, given the table offset of its context. Callers that derive the next
+     * context from the symbol they just decoded can map symbols directly to table offsets and save a lookup.
+     *
+     * @param stream      the state that encoded the symbol.
+     * @param tableOffset the {@link #getTableOffset(int) table offset} of the context of the symbol.
+     * @return the symbol.
+     */
+    public int decodeAt(final int stream, final int tableOffset) {
+        int state = states[stream];
+        final int entry = slotEntries[tableOffset + (state & (TOTAL - 1))];
+        state = (entry & (TOTAL * 2 - 1)) * (state >>> SCALE_BITS) + (entry >>> FREQUENCY_BITS & DISTANCE_MASK);
+        // read sixteen more bits when the state falls below LOWER_BOUND:
+        final int renormalize = (state - LOWER_BOUND) >>> 31;
+        final int word = (bytes[position] & 0xFF) << 8 | bytes[position + 1] & 0xFF;
+        states[stream] = state << (renormalize << 4) | word & -renormalize;
+        position += renormalize << 1;
+        return entry >>> SYMBOL_SHIFT;
+    }
+
+    private void put(final byte value) {
+        if (position == 0) {
+            // grow the array, keeping the bytes written so far at its end:
+            final byte[] grown = new byte[Math.max(1024, bytes.length * 2)];
+            System.arraycopy(bytes, 0, grown, grown.length - bytes.length, bytes.length);
+            position = grown.length - bytes.length;
+            bytes = grown;
+        }
+        bytes[--position] = value;
+    }
+
+    /**
+     * Scale the counts of the symbols of a context to sum to TOTAL, keeping every counted symbol.
+     *
+     * @return false if no symbol was counted in the context.
+     */
+    private boolean scale(final int first) {
+        long sum = 0;
+        for (int i = first; i < first + numSymbols; i++) {
+            sum += frequencies[i];
+        }
+        if (sum == 0) {
+            return false;
+        }
+        int scaledSum = 0;
+        int largest = first;
+        int largestCount = 0;
+        for (int i = first; i < first + numSymbols; i++) {
+            if (frequencies[i] != 0) {
+                final int scaled = Math.max(1, (int) ((long) frequencies[i] * TOTAL / sum));
+                if (frequencies[i] > largestCount) {
+                    largest = i;
+                    largestCount = frequencies[i];
+                }
+                frequencies[i] = scaled;
+                scaledSum += scaled;
+            }
+        }
+        // the symbols rounded up to one may overshoot the total, take from the most frequent symbols:
+        while (scaledSum > TOTAL) {
+            int max = first;
+            for (int i = first; i < first + numSymbols; i++) {
+                if (frequencies[i] > frequencies[max]) {
+                    max = i;
+                }
+            }
+            final int excess = Math.min(scaledSum - TOTAL, frequencies[max] - 1);
+            frequencies[max] -= excess;
+            scaledSum -= excess;
+        }
+        frequencies[largest] += TOTAL - scaledSum;
+        return true;
+    }
+
+    private void accumulate() {
+        for (int context = 0; context < numContexts; context++) {
+            int sum = 0;
+            for (int i = context * numSymbols; i < (context + 1) * numSymbols; i++) {
+                cumulative[i] = sum;
+                sum += frequencies[i];
+            }
+        }
+    }
+}
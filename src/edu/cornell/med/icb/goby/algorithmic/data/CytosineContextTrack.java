@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.data;
+
+import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
+import edu.cornell.med.icb.goby.xml.MethylStats;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.log4j.Logger;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The cytosine context of every position of a reference sequence, precomputed once so that methylation
+ * statistics can be collected without decoding reference bases site by site. For each position, the track records
+ * whether the base is a cytosine on the forward strand (C) or on the reverse strand (G), and which base follows
+ * it on that strand (CpG, CpA, CpC or CpT). The track also lists the positions of CpG dinucleotides, from which
+ * fragment lengths between consecutive CpGs are obtained by binary search.
+ * <p/>
+ * Tracks for a whole genome can be cached in a file with {@link #load(RandomAccessSequenceInterface, String)}. The
+ * file is memory-mapped, so that the tracks do not use heap space.
+ *
+ * @see MethylStats
+ */
+public class CytosineContextTrack {
+    private static final Logger LOG = Logger.getLogger(CytosineContextTrack.class);
+    /**
+     * Returned by {@link #getContext(int, char)} when the position is not a cytosine on the strand.
+     */
+    public static final int NOT_CYTOSINE = -1;
+    /**
+     * Returned by {@link #getContext(int, char)} when the cytosine is followed by a base other than A, C, G or T.
+     */
+    public static final int OTHER_CONTEXT = MethylStats.CPMAX;
+    /**
+     * Suffix of the cache file, appended to the basename of the genome.
+     */
+    public static final String CACHE_SUFFIX = ".cytosine-contexts";
+
+    private static final byte[] MAGIC = {'G', 'O', 'B', 'Y', 'C', 'T', 'X', 'T'};
+    private static final int VERSION = 1;
+    private static final int CHUNK_SIZE = 1 << 20;
+    /**
+     * Bits 0-2 hold the forward strand context plus one, bits 3-5 the reverse strand context plus one.
+     */
+    private static final int REVERSE_SHIFT = 3;
+    private static final int CONTEXT_MASK = 0x7;
+    /**
+     * Set when the position holds a G followed by a C on the forward strand.
+     */
+    private static final int GPC_FLAG = 0x40;
+
+    private final int length;
+    private final ByteBuffer contexts;
+    private final IntBuffer cpgPositions;
+
+    private CytosineContextTrack(final int length, final ByteBuffer contexts, final IntBuffer cpgPositions) {
+        super();
+        this.length = length;
+        this.contexts = contexts;
+        this.cpgPositions = cpgPositions;
+    }
+
+    /**
+     * Compute the track of one reference sequence. The bases are decoded in large ranges.
+     *
+     * @param genome         the genome.
+     * @param referenceIndex index of the reference sequence in the genome.
+     * @return the track, in memory.
+     */
+    public static CytosineContextTrack compute(final RandomAccessSequenceInterface genome, final int referenceIndex) {
+        final int length = genome.getLength(referenceIndex);
+        final byte[] contexts = new byte[length];
+        final IntArrayList cpgs = new IntArrayList();
+        final MutableString bases = new MutableString();
+        for (int start = 0; start < length; start += CHUNK_SIZE) {
+            final int end = Math.min(length, start + CHUNK_SIZE);
+            // one base of overlap on each side of the chunk:
+            final int from = Math.max(0, start - 1);
+            final int to = Math.min(length, end + 1);
+            genome.getRange(referenceIndex, from, to - from, bases);
+            final char[] chars = bases.array();
+            for (int position = start; position < end; position++) {
+                final char base = chars[position - from];
+                final char next = position + 1 < length ? chars[position + 1 - from] : 'N';
+                // sites on the last base of the sequence have no context, on either strand:
+                final boolean hasNext = position + 1 < length;
+                int code = 0;
+                if (base == 'C') {
+                    if (hasNext) {
+                        code = forwardContext(next) + 1;
+                    }
+                    if (next == 'G') {
+                        cpgs.add(position);
+                    }
+                } else if (base == 'G') {
+                    if (hasNext && position > 0) {
+                        code = (reverseContext(chars[position - 1 - from]) + 1) << REVERSE_SHIFT;
+                    }
+                    if (next == 'C') {
+                        code |= GPC_FLAG;
+                    }
+                }
+                contexts[position] = (byte) code;
+            }
+        }
+        return new CytosineContextTrack(length, ByteBuffer.wrap(contexts), IntBuffer.wrap(cpgs.toIntArray()));
+    }
+
+    private static int forwardContext(final char next) {
+        switch (next) {
+            case 'G':
+                return MethylStats.CPG;
+            case 'A':
+                return MethylStats.CPA;
+            case 'C':
+                return MethylStats.CPC;
+            case 'T':
+                return MethylStats.CPT;
+            default:
+                return OTHER_CONTEXT;
+        }
+    }
+
+    /**
+     * The context of a G on the forward strand is the complement of the base that precedes it.
+     */
+    private static int reverseContext(final char previous) {
+        switch (previous) {
+            case 'C':
+                return MethylStats.CPG;
+            case 'T':
+                return MethylStats.CPA;
+            case 'G':
+                return MethylStats.CPC;
+            case 'A':
+                return MethylStats.CPT;
+            default:
+                return OTHER_CONTEXT;
+        }
+    }
+
+    /**
+     * Load the tracks of all the sequences of a genome from a cache file, creating the cache file when it does not
+     * exist or does not match the genome.
+     *
+     * @param genome        the genome.
+     * @param cacheFilename name of the cache file.
+     * @return one track per reference sequence, mapped from the cache file.
+     * @throws IOException if the cache file cannot be written or read.
+     */
+    public static CytosineContextTrack[] load(final RandomAccessSequenceInterface genome, final String cacheFilename)
+            throws IOException {
+        final File cacheFile = new File(cacheFilename);
+        if (cacheFile.exists()) {
+            final CytosineContextTrack[] tracks = map(genome, cacheFilename);
+            if (tracks != null) {
+                return tracks;
+            }
+            LOG.info("Cytosine context cache does not match the genome, rebuilding: " + cacheFilename);
+        }
+        write(genome, cacheFilename);
+        final CytosineContextTrack[] tracks = map(genome, cacheFilename);
+        if (tracks == null) {
+            throw new IOException("Cannot read cytosine context cache " + cacheFilename);
+        }
+        return tracks;
+    }
+
+    /**
+     * Map the tracks of a genome if the cache file exists and matches the genome.
+     *
+     * @param genome        the genome.
+     * @param cacheFilename name of the cache file.
+     * @return one track per reference sequence, or null if there is no cache file for this genome.
+     * @throws IOException if the cache file cannot be read.
+     */
+    public static CytosineContextTrack[] loadIfCached(final RandomAccessSequenceInterface genome,
+                                                      final String cacheFilename) throws IOException {
+        return new File(cacheFilename).exists() ? map(genome, cacheFilename) : null;
+    }
+
+    private static void write(final RandomAccessSequenceInterface genome, final String cacheFilename)
+            throws IOException {
+        // write to a temporary file, so that an interrupted run does not leave a truncated cache:
+        final File temporary = new File(cacheFilename + ".tmp");
+        final DataOutputStream output = new DataOutputStream(new FastBufferedOutputStream(
+                new FileOutputStream(temporary)));
+        try {
+            output.write(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(genome.size());
+            for (int referenceIndex = 0; referenceIndex < genome.size(); referenceIndex++) {
+                final CytosineContextTrack track = compute(genome, referenceIndex);
+                output.writeInt(track.length);
+                output.writeInt(track.getNumberOfCpGs());
+                output.write(track.contexts.array());
+                for (final int position : track.cpgPositions.array()) {
+                    output.writeInt(position);
+                }
+            }
+        } finally {
+            output.close();
+        }
+        final File cacheFile = new File(cacheFilename);
+        if (cacheFile.exists() && !cacheFile.delete() || !temporary.renameTo(cacheFile)) {
+            throw new IOException("Cannot create cytosine context cache " + cacheFilename);
+        }
+        LOG.info("Wrote cytosine context cache " + cacheFilename);
+    }
+
+    private static CytosineContextTrack[] map(final RandomAccessSequenceInterface genome, final String cacheFilename)
+            throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(cacheFilename, "r");
+        try {
+            final byte[] magic = new byte[MAGIC.length];
+            if (file.length() < MAGIC.length + 8) {
+                return null;
+            }
+            file.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || file.readInt() != VERSION) {
+                return null;
+            }
+            final int numReferences = file.readInt();
+            if (numReferences != genome.size()) {
+                return null;
+            }
+            final FileChannel channel = file.getChannel();
+            final CytosineContextTrack[] tracks = new CytosineContextTrack[numReferences];
+            long offset = file.getFilePointer();
+            for (int referenceIndex = 0; referenceIndex < numReferences; referenceIndex++) {
+                file.seek(offset);
+                final int length = file.readInt();
+                final int numCpGs = file.readInt();
+                if (length != genome.getLength(referenceIndex)) {
+                    return null;
+                }
+                offset += 8;
+                final ByteBuffer contexts = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                offset += length;
+                final IntBuffer cpgPositions = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                        4L * numCpGs).asIntBuffer();
+                offset += 4L * numCpGs;
+                tracks[referenceIndex] = new CytosineContextTrack(length, contexts, cpgPositions);
+            }
+            return tracks;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return the length of the reference sequence.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Return the context of a cytosine.
+     *
+     * @param position zero-based position in the reference sequence.
+     * @param strand   '+' for a C on the forward strand, '-' for a G on the forward strand.
+     * @return one of MethylStats.CPG, CPA, CPC or CPT, {@link #OTHER_CONTEXT}, or {@link #NOT_CYTOSINE} when the base
+     *         is not a cytosine on this strand, or is the first (reverse strand) or last base of the sequence.
+     */
+    public int getContext(final int position, final char strand) {
+        if (position < 0 || position >= length) {
+            return NOT_CYTOSINE;
+        }
+        final int code = contexts.get(position);
+        switch (strand) {
+            case '+':
+                return (code & CONTEXT_MASK) - 1;
+            case '-':
+                return (code >> REVERSE_SHIFT & CONTEXT_MASK) - 1;
+            default:
+                return NOT_CYTOSINE;
+        }
+    }
+
+    /**
+     * Determine if a site starts a CpG site as defined by methyl-stats: a C followed by a G on the forward strand,
+     * or a G followed by a C on the forward strand for the reverse strand.
+     *
+     * @param position zero-based position in the reference sequence.
+     * @param strand   '+' or '-'.
+     * @return True if the site is a CpG.
+     */
+    public boolean isCpG(final int position, final char strand) {
+        if (position < 0 || position >= length) {
+            return false;
+        }
+        final int code = contexts.get(position);
+        switch (strand) {
+            case '+':
+                return (code & CONTEXT_MASK) - 1 == MethylStats.CPG;
+            case '-':
+                return (code & GPC_FLAG) != 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return the length of the fragment between a site and the next CpG in the direction of the strand. The next
+     * CpG must start at least two bases away from the site.
+     *
+     * @param position zero-based position of the site.
+     * @param strand   '+' or '-'.
+     * @return the distance from the site to the G of the next CpG on the forward strand, or to the C of the previous
+     *         CpG on the reverse strand, or -1 if there is no such CpG.
+     */
+    public int getFragmentLength(final int position, final char strand) {
+        final int numCpGs = getNumberOfCpGs();
+        if (strand == '+') {
+            // first CpG whose C is at position + 2 or after:
+            final int index = firstCpGAtOrAfter(position + 2);
+            return index < numCpGs ? cpgPositions.get(index) + 1 - position : -1;
+        } else {
+            // last CpG whose C is at position - 3 or before:
+            final int index = firstCpGAtOrAfter(position - 2) - 1;
+            return index >= 0 ? position - cpgPositions.get(index) : -1;
+        }
+    }
+
+    private int firstCpGAtOrAfter(final int position) {
+        int low = 0;
+        int high = getNumberOfCpGs();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (cpgPositions.get(middle) < position) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the number of CpG dinucleotides in the reference sequence.
+     */
+    public int getNumberOfCpGs() {
+        return cpgPositions.limit();
+    }
+
+    /**
+     * Return the position of a CpG.
+     *
+     * @param index index of the CpG, in increasing order of position.
+     * @return the zero-based position of the C of the CpG.
+     */
+    public int getCpGPosition(final int index) {
+        return cpgPositions.get(index);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.data;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of the depth of coverage of sites. Each bin keeps the number of sites whose depth falls in the bin, and
+ * the number of bases observed over these sites. Depths smaller than the exact limit have their own bin. Larger
+ * depths are binned on a logarithmic scale, with a fixed number of bins per doubling of the depth, so that the
+ * histogram stays small whatever the largest depth observed. Counts are exact for depths below the limit; above,
+ * a depth is reported as the lower bound of its bin.
+ * <p/>
+ * Histograms with the same exact limit can be merged, for instance to combine the histograms calculated over
+ * each reference sequence on different threads.
+ */
+public class DepthHistogram {
+    /**
+     * Default exact limit: depths smaller than this value have their own bin.
+     */
+    public static final int DEFAULT_EXACT_LIMIT = 1024;
+    /**
+     * Number of logarithmic bins for each doubling of the depth above the exact limit.
+     */
+    private static final int BINS_PER_DOUBLING = 16;
+
+    private final int exactLimit;
+    /**
+     * Smallest depth of each logarithmic bin.
+     */
+    private final int[] logBinLowerBounds;
+    private long[] numSites;
+    private long[] numBases;
+    /**
+     * Index of the last non empty bin, -1 when the histogram is empty.
+     */
+    private int lastBin = -1;
+
+    /**
+     * Create a histogram with the default exact limit.
+     */
+    public DepthHistogram() {
+        this(DEFAULT_EXACT_LIMIT);
+    }
+
+    /**
+     * Create a histogram.
+     *
+     * @param exactLimit depths smaller than this value are counted exactly.
+     */
+    public DepthHistogram(final int exactLimit) {
+        super();
+        if (exactLimit < 1) {
+            throw new IllegalArgumentException("The exact limit must be at least one.");
+        }
+        this.exactLimit = exactLimit;
+        final IntArrayList lowerBounds = new IntArrayList();
+        lowerBounds.add(exactLimit);
+        for (int bin = 1; ; bin++) {
+            final double bound = Math.ceil(exactLimit * Math.pow(2, bin / (double) BINS_PER_DOUBLING));
+            if (bound > Integer.MAX_VALUE) {
+                break;
+            }
+            if (bound > lowerBounds.getInt(lowerBounds.size() - 1)) {
+                lowerBounds.add((int) bound);
+            }
+        }
+        logBinLowerBounds = lowerBounds.toIntArray();
+        numSites = new long[Math.min(exactLimit, 64)];
+        numBases = new long[numSites.length];
+    }
+
+    /**
+     * Record sites observed with some depth.
+     *
+     * @param depth    depth of coverage of the sites.
+     * @param numSites number of sites.
+     */
+    public void add(final int depth, final int numSites) {
+        if (numSites == 0) {
+            return;
+        }
+        final int bin = bin(depth);
+        ensureCapacity(bin);
+        this.numSites[bin] += numSites;
+        this.numBases[bin] += (long) depth * numSites;
+        lastBin = Math.max(lastBin, bin);
+    }
+
+    /**
+     * Add the sites recorded in another histogram to this histogram.
+     *
+     * @param other a histogram with the same exact limit.
+     */
+    public void merge(final DepthHistogram other) {
+        if (other.exactLimit != exactLimit) {
+            throw new IllegalArgumentException("Only histograms with the same exact limit can be merged.");
+        }
+        if (other.lastBin == -1) {
+            return;
+        }
+        ensureCapacity(other.lastBin);
+        for (int bin = 0; bin <= other.lastBin; bin++) {
+            numSites[bin] += other.numSites[bin];
+            numBases[bin] += other.numBases[bin];
+        }
+        lastBin = Math.max(lastBin, other.lastBin);
+    }
+
+    /**
+     * Return the number of sites recorded.
+     *
+     * @return number of sites.
+     */
+    public long getNumSites() {
+        return getNumSitesWithDepthAtLeast(0);
+    }
+
+    /**
+     * Return the number of sites with depth equal or larger to d. Exact when d is smaller than the exact limit,
+     * otherwise counts the sites of the bins whose lower bound is at least d.
+     *
+     * @param d depth threshold
+     * @return number of sites with depth>=d
+     */
+    public long getNumSitesWithDepthAtLeast(final int d) {
+        return sumFrom(numSites, firstBinAtLeast(d));
+    }
+
+    /**
+     * Return the number of bases observed at sites with depth equal or larger to d. Exact when d is smaller than the
+     * exact limit, otherwise counts the bases of the bins whose lower bound is at least d.
+     *
+     * @param d depth threshold
+     * @return total number of bases
+     */
+    public long getNumBasesWithDepthAtLeast(final int d) {
+        return sumFrom(numBases, firstBinAtLeast(d));
+    }
+
+    /**
+     * Return the smallest depth d such that at most numSites sites have a depth equal or larger to d. Returns the
+     * largest depth observed when more sites than numSites have this depth.
+     *
+     * @param numSites number of sites.
+     * @return a depth, or zero if the histogram is empty.
+     */
+    public int smallestDepthWithAtMost(final double numSites) {
+        long sitesAtLeast = getNumSites();
+        for (int bin = 0; bin <= lastBin; bin++) {
+            if (sitesAtLeast <= numSites) {
+                return lowerBound(bin);
+            }
+            sitesAtLeast -= this.numSites[bin];
+        }
+        return lastBin == -1 ? 0 : lowerBound(lastBin);
+    }
+
+    /**
+     * Return the largest depth recorded, rounded down to the lower bound of its bin.
+     *
+     * @return a depth, or -1 if the histogram is empty.
+     */
+    public int getMaximumDepth() {
+        return lastBin == -1 ? -1 : lowerBound(lastBin);
+    }
+
+    public int getExactLimit() {
+        return exactLimit;
+    }
+
+    private int bin(final int depth) {
+        if (depth < exactLimit) {
+            return depth;
+        }
+        final int r = Arrays.binarySearch(logBinLowerBounds, depth);
+        return exactLimit + (r >= 0 ? r : -(r + 1) - 1);
+    }
+
+    private int lowerBound(final int bin) {
+        return bin < exactLimit ? bin : logBinLowerBounds[bin - exactLimit];
+    }
+
+    private int firstBinAtLeast(final int d) {
+        if (d <= 0) {
+            return 0;
+        }
+        if (d <= exactLimit) {
+            return d;
+        }
+        final int r = Arrays.binarySearch(logBinLowerBounds, d);
+        return exactLimit + (r >= 0 ? r : -(r + 1));
+    }
+
+    private long sumFrom(final long[] values, final int firstBin) {
+        long sum = 0;
+        for (int bin = firstBin; bin <= lastBin; bin++) {
+            sum += values[bin];
+        }
+        return sum;
+    }
+
+    private void ensureCapacity(final int bin) {
+        if (bin >= numSites.length) {
+            final int length = Math.min(exactLimit + logBinLowerBounds.length, Math.max(bin + 1, numSites.length * 2));
+            numSites = Arrays.copyOf(numSites, length);
+            numBases = Arrays.copyOf(numBases, length);
+        }
+    }
+}
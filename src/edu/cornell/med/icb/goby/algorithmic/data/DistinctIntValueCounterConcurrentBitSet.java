@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.data;
+
+import it.unimi.dsi.fastutil.ints.IntCollection;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the number of distinct non-negative integers observed by several threads. Like
+ * {@link DistinctIntValueCounterBitSet}, this implementation requires one bit per possible value, but the bits
+ * are set atomically so that a single counter can be shared by the threads that scan slices of a file.
+ */
+public class DistinctIntValueCounterConcurrentBitSet implements DistinctIntValueCounterInterface {
+    /**
+     * One bit for each value from zero to Integer.MAX_VALUE.
+     */
+    private final AtomicLongArray words = new AtomicLongArray(1 << 25);
+
+    public void observe(final IntCollection values) {
+        for (final int value : values) {
+            observe(value);
+        }
+    }
+
+    public final void observe(final int[] values) {
+        for (final int value : values) {
+            observe(value);
+        }
+    }
+
+    public final void observe(final int value) {
+        final int word = value >>> 6;
+        final long mask = 1L << (value & 63);
+        long bits;
+        do {
+            bits = words.get(word);
+            if ((bits & mask) != 0) {
+                return;
+            }
+        } while (!words.compareAndSet(word, bits, bits | mask));
+    }
+
+    /**
+     * Return the number of distinct integer values observed so far.
+     *
+     * @return the number of distinct values.
+     */
+    public int count() {
+        long count = 0;
+        for (int i = 0; i < words.length(); i++) {
+            count += Long.bitCount(words.get(i));
+        }
+        return (int) count;
+    }
+}
@@ -20,14 +20,17 @@ package edu.cornell.med.icb.goby.algorithmic.data;
 
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import it.unimi.dsi.fastutil.io.BinIO;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
 import it.unimi.dsi.fastutil.shorts.Short2FloatMap;
 import it.unimi.dsi.fastutil.shorts.Short2FloatOpenHashMap;
+import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.io.IOUtils;
 
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -43,6 +46,96 @@ public class HeptamerInfo implements Serializable {
     public Short2FloatMap heptamerIndexToWeight = new Short2FloatOpenHashMap();
     public int heptamerLength = 7;
     public boolean colorSpace = false;
+    /**
+     * Weights indexed by the 2-bit code of heptamers, built from the maps when first needed.
+     */
+    private transient float[] weightTable;
+
+    /**
+     * Return the 2-bit code of the heptamer that starts at position start of a sequence. Bases A, C, G and T (colors
+     * 0, 1, 2 and 3 in color-space) are coded 0 to 3, the first base in the most significant bits.
+     *
+     * @param sequence the sequence.
+     * @param start    position of the heptamer in the sequence.
+     * @return the code of the heptamer, or -1 when the heptamer includes another character.
+     */
+    public int encode(final CharSequence sequence, final int start) {
+        int code = 0;
+        for (int i = start; i < start + heptamerLength; i++) {
+            final int base = encode(sequence.charAt(i));
+            if (base == -1) {
+                return -1;
+            }
+            code = code << 2 | base;
+        }
+        return code;
+    }
+
+    private int encode(final char base) {
+        if (colorSpace) {
+            return base >= '0' && base <= '3' ? base - '0' : -1;
+        }
+        switch (base) {
+            case 'A':
+                return 0;
+            case 'C':
+                return 1;
+            case 'G':
+                return 2;
+            case 'T':
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Decode a heptamer code.
+     *
+     * @param code     the code of a heptamer, as returned by {@link #encode(CharSequence, int)}.
+     * @param heptamer where the heptamer is written.
+     */
+    public void decode(final int code, final MutableString heptamer) {
+        heptamer.setLength(heptamerLength);
+        for (int i = heptamerLength - 1, bits = code; i >= 0; i--, bits >>>= 2) {
+            heptamer.setCharAt(i, colorSpace ? (char) ('0' + (bits & 3)) : "ACGT".charAt(bits & 3));
+        }
+    }
+
+    /**
+     * Return the number of heptamer codes.
+     */
+    public int numberOfCodes() {
+        return 1 << (2 * heptamerLength);
+    }
+
+    /**
+     * Return the weights of heptamers indexed by code. Heptamers without index have weight 1. The table is built
+     * when first requested, and must be rebuilt with {@link #clearWeightTable()} if weights change.
+     *
+     * @return the weight of each heptamer code.
+     */
+    public synchronized float[] getWeightTable() {
+        if (weightTable == null) {
+            final float[] table = new float[numberOfCodes()];
+            Arrays.fill(table, 1f);
+            for (final Object2IntMap.Entry<MutableString> entry : heptamerToIndices.object2IntEntrySet()) {
+                final MutableString heptamer = entry.getKey();
+                if (heptamer.length() == heptamerLength) {
+                    final int code = encode(heptamer, 0);
+                    if (code != -1) {
+                        table[code] = heptamerIndexToWeight.get((short) entry.getIntValue());
+                    }
+                }
+            }
+            weightTable = table;
+        }
+        return weightTable;
+    }
+
+    public synchronized void clearWeightTable() {
+        weightTable = null;
+    }
     /**
      * Load heptamer info from disk.
      *
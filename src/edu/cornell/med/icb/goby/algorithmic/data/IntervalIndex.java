@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.data;
+
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.log4j.Logger;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An immutable index of closed intervals [start, end] over reference sequences, answering overlap queries. The
+ * intervals of each reference sequence are kept in primitive arrays sorted by start position, which also form an
+ * implicit binary tree: the node at index i has level k, the number of trailing one bits of i, and its children
+ * are at i - 2^(k-1) and i + 2^(k-1). Each node stores the maximum end position of its subtree, so that a query
+ * skips the subtrees that end before the query starts. No pointers are stored, and small subtrees are scanned
+ * linearly.
+ * <p/>
+ * Each interval carries an int value, typically the index of the annotation it was built from. The index can be
+ * saved to a file and memory-mapped back, so that it is shared by processes without being rebuilt. An index is
+ * safe to query from several threads.
+ */
+public final class IntervalIndex {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Logger LOG = Logger.getLogger(IntervalIndex.class);
+
+    private static final byte[] MAGIC = {'G', 'O', 'B', 'Y', 'I', 'T', 'V', 'L'};
+    private static final int VERSION = 1;
+    /**
+     * Subtrees of this level or lower are scanned linearly.
+     */
+    private static final int SCAN_LEVEL = 3;
+
+    private final String[] referenceNames;
+    private final Object2IntMap<String> referenceIndices;
+    private final ReferenceIntervals[] references;
+
+    private IntervalIndex(final String[] referenceNames, final ReferenceIntervals[] references) {
+        super();
+        this.referenceNames = referenceNames;
+        this.references = references;
+        referenceIndices = new Object2IntOpenHashMap<String>(referenceNames.length);
+        referenceIndices.defaultReturnValue(-1);
+        for (int i = 0; i < referenceNames.length; i++) {
+            referenceIndices.put(referenceNames[i], i);
+        }
+    }
+
+    /**
+     * @return the number of reference sequences with intervals.
+     */
+    public int getNumberOfReferences() {
+        return referenceNames.length;
+    }
+
+    /**
+     * Return the index of a reference sequence in this interval index.
+     *
+     * @param referenceName name of the reference sequence.
+     * @return the index, or -1 when no interval was added on this reference sequence.
+     */
+    public int getReferenceIndex(final String referenceName) {
+        return referenceIndices.getInt(referenceName);
+    }
+
+    public String getReferenceName(final int referenceIndex) {
+        return referenceNames[referenceIndex];
+    }
+
+    /**
+     * @param referenceIndex index of a reference sequence in this interval index.
+     * @return the number of intervals on the reference sequence.
+     */
+    public int size(final int referenceIndex) {
+        return references[referenceIndex].size;
+    }
+
+    /**
+     * Intervals of a reference sequence are numbered from zero in order of start position. The following
+     * methods return the attributes of an interval given its number.
+     */
+    public int getStart(final int referenceIndex, final int interval) {
+        return references[referenceIndex].starts.get(interval);
+    }
+
+    public int getEnd(final int referenceIndex, final int interval) {
+        return references[referenceIndex].ends.get(interval);
+    }
+
+    public int getValue(final int referenceIndex, final int interval) {
+        return references[referenceIndex].values.get(interval);
+    }
+
+    /**
+     * Find the intervals that overlap a query interval.
+     *
+     * @param referenceName name of the reference sequence.
+     * @param start         first position of the query.
+     * @param end           last position of the query.
+     * @param result        cleared, then filled with the numbers of the overlapping intervals, in order of start.
+     * @return the number of overlapping intervals.
+     */
+    public int findOverlapping(final String referenceName, final int start, final int end,
+                               final IntArrayList result) {
+        result.clear();
+        final int referenceIndex = getReferenceIndex(referenceName);
+        return referenceIndex == -1 ? 0 : findOverlapping(referenceIndex, start, end, result);
+    }
+
+    /**
+     * Find the intervals that overlap a query interval.
+     *
+     * @param referenceIndex index of the reference sequence in this interval index.
+     * @param start          first position of the query.
+     * @param end            last position of the query.
+     * @param result         cleared, then filled with the numbers of the overlapping intervals, in order of start.
+     * @return the number of overlapping intervals.
+     */
+    public int findOverlapping(final int referenceIndex, final int start, final int end, final IntArrayList result) {
+        result.clear();
+        final ReferenceIntervals intervals = references[referenceIndex];
+        final int n = intervals.size;
+        if (n == 0 || start > end) {
+            return 0;
+        }
+        final IntBuffer starts = intervals.starts;
+        final IntBuffer ends = intervals.ends;
+        final IntBuffer maxEnds = intervals.maxEnds;
+        // each stack entry is a node, its level, and whether its left subtree was visited:
+        final int[] stack = new int[3 * 2 * (intervals.maxLevel + 2)];
+        int top = 0;
+        stack[top++] = (1 << intervals.maxLevel) - 1;
+        stack[top++] = intervals.maxLevel;
+        stack[top++] = 0;
+        while (top > 0) {
+            final int leftVisited = stack[--top];
+            final int level = stack[--top];
+            final int node = stack[--top];
+            if (level <= SCAN_LEVEL) {
+                final int first = node >> level << level;
+                final int last = Math.min(n, first + (1 << (level + 1)) - 1);
+                for (int i = first; i < last && starts.get(i) <= end; i++) {
+                    if (ends.get(i) >= start) {
+                        result.add(i);
+                    }
+                }
+            } else if (leftVisited == 0) {
+                final int left = node - (1 << (level - 1));
+                stack[top++] = node;
+                stack[top++] = level;
+                stack[top++] = 1;
+                if (left >= n || maxEnds.get(left) >= start) {
+                    stack[top++] = left;
+                    stack[top++] = level - 1;
+                    stack[top++] = 0;
+                }
+            } else if (node < n && starts.get(node) <= end) {
+                if (ends.get(node) >= start) {
+                    result.add(node);
+                }
+                stack[top++] = node + (1 << (level - 1));
+                stack[top++] = level - 1;
+                stack[top++] = 0;
+            }
+        }
+        return result.size();
+    }
+
+    /**
+     * Find the first interval, in order of start position, that contains a query interval.
+     *
+     * @param referenceIndex index of the reference sequence in this interval index.
+     * @param start          first position of the query.
+     * @param end            last position of the query.
+     * @return the number of the interval, or -1 if no interval contains the query.
+     */
+    public int findContaining(final int referenceIndex, final int start, final int end) {
+        final IntArrayList overlapping = new IntArrayList();
+        findOverlapping(referenceIndex, start, end, overlapping);
+        for (int i = 0; i < overlapping.size(); i++) {
+            final int interval = overlapping.getInt(i);
+            if (getStart(referenceIndex, interval) <= start && getEnd(referenceIndex, interval) >= end) {
+                return interval;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return a cursor to look up the intervals that contain positions given in increasing order, on one reference
+     * sequence. Consecutive lookups reuse the intervals found by the previous lookup, so that a sweep over sorted
+     * positions reads the index once.
+     *
+     * @param referenceIndex index of the reference sequence in this interval index.
+     * @return a cursor, which must be used by a single thread.
+     */
+    public Cursor cursor(final int referenceIndex) {
+        return new Cursor(references[referenceIndex]);
+    }
+
+    /**
+     * Looks up the intervals that contain positions given in increasing order.
+     */
+    public static final class Cursor {
+        private final ReferenceIntervals intervals;
+        private final IntArrayList active = new IntArrayList();
+        private int next;
+        private int lastPosition = Integer.MIN_VALUE;
+
+        private Cursor(final ReferenceIntervals intervals) {
+            super();
+            this.intervals = intervals;
+        }
+
+        /**
+         * Find the intervals that contain a position.
+         *
+         * @param position a position, larger or equal to the position of the previous lookup.
+         * @return the numbers of the intervals that contain the position, in order of start. The list is owned by
+         *         the cursor and is only valid until the next lookup.
+         */
+        public IntArrayList containing(final int position) {
+            if (position < lastPosition) {
+                throw new IllegalArgumentException(String.format(
+                        "positions must be looked up in increasing order: %d after %d", position, lastPosition));
+            }
+            lastPosition = position;
+            final IntBuffer ends = intervals.ends;
+            int kept = 0;
+            for (int i = 0; i < active.size(); i++) {
+                final int interval = active.getInt(i);
+                if (ends.get(interval) >= position) {
+                    active.set(kept++, interval);
+                }
+            }
+            active.size(kept);
+            while (next < intervals.size && intervals.starts.get(next) <= position) {
+                if (ends.get(next) >= position) {
+                    active.add(next);
+                }
+                next++;
+            }
+            return active;
+        }
+    }
+
+    /**
+     * Save this index to a file that {@link #load(String)} maps in memory.
+     *
+     * @param filename name of the file.
+     * @throws IOException if the file cannot be written.
+     */
+    public void save(final String filename) throws IOException {
+        // write to a temporary file, so that an interrupted run does not leave a truncated index:
+        final File temporary = new File(filename + ".tmp");
+        final DataOutputStream output = new DataOutputStream(new FastBufferedOutputStream(
+                new FileOutputStream(temporary)));
+        try {
+            output.write(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(referenceNames.length);
+            for (int referenceIndex = 0; referenceIndex < referenceNames.length; referenceIndex++) {
+                final ReferenceIntervals intervals = references[referenceIndex];
+                output.writeUTF(referenceNames[referenceIndex]);
+                output.writeInt(intervals.size);
+                output.writeInt(intervals.maxLevel);
+                writeInts(output, intervals.starts, intervals.size);
+                writeInts(output, intervals.ends, intervals.size);
+                writeInts(output, intervals.maxEnds, intervals.size);
+                writeInts(output, intervals.values, intervals.size);
+            }
+        } finally {
+            output.close();
+        }
+        final File file = new File(filename);
+        if (file.exists() && !file.delete() || !temporary.renameTo(file)) {
+            throw new IOException("Cannot create interval index " + filename);
+        }
+        LOG.debug("Wrote interval index " + filename);
+    }
+
+    private static void writeInts(final DataOutputStream output, final IntBuffer buffer, final int size)
+            throws IOException {
+        for (int i = 0; i < size; i++) {
+            output.writeInt(buffer.get(i));
+        }
+    }
+
+    /**
+     * Map an index saved with {@link #save(String)} in memory.
+     *
+     * @param filename name of the file.
+     * @return the index.
+     * @throws IOException if the file cannot be read or is not an interval index.
+     */
+    public static IntervalIndex load(final String filename) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            final byte[] magic = new byte[MAGIC.length];
+            if (file.length() < MAGIC.length + 8) {
+                throw new IOException("Not an interval index: " + filename);
+            }
+            file.readFully(magic);
+            if (!java.util.Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not an interval index: " + filename);
+            }
+            final int version = file.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported interval index version " + version + ": " + filename);
+            }
+            final int numReferences = file.readInt();
+            final String[] referenceNames = new String[numReferences];
+            final ReferenceIntervals[] references = new ReferenceIntervals[numReferences];
+            final FileChannel channel = file.getChannel();
+            for (int referenceIndex = 0; referenceIndex < numReferences; referenceIndex++) {
+                referenceNames[referenceIndex] = file.readUTF();
+                final int size = file.readInt();
+                final int maxLevel = file.readInt();
+                long offset = file.getFilePointer();
+                final long length = 4L * size;
+                final IntBuffer starts = map(channel, offset, length);
+                offset += length;
+                final IntBuffer ends = map(channel, offset, length);
+                offset += length;
+                final IntBuffer maxEnds = map(channel, offset, length);
+                offset += length;
+                final IntBuffer values = map(channel, offset, length);
+                offset += length;
+                file.seek(offset);
+                references[referenceIndex] = new ReferenceIntervals(size, maxLevel, starts, ends, maxEnds, values);
+            }
+            return new IntervalIndex(referenceNames, references);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static IntBuffer map(final FileChannel channel, final long offset, final long length)
+            throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).asIntBuffer();
+    }
+
+    /**
+     * The intervals of one reference sequence, sorted by start position, with the maximum end position of each
+     * subtree of the implicit tree.
+     */
+    private static final class ReferenceIntervals {
+        private final int size;
+        private final int maxLevel;
+        private final IntBuffer starts;
+        private final IntBuffer ends;
+        private final IntBuffer maxEnds;
+        private final IntBuffer values;
+
+        private ReferenceIntervals(final int size, final int maxLevel, final IntBuffer starts, final IntBuffer ends,
+                                   final IntBuffer maxEnds, final IntBuffer values) {
+            super();
+            this.size = size;
+            this.maxLevel = maxLevel;
+            this.starts = starts;
+            this.ends = ends;
+            this.maxEnds = maxEnds;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Collects intervals and builds an index.
+     */
+    public static final class Builder {
+        private final ObjectArrayList<String> referenceNames = new ObjectArrayList<String>();
+        private final Object2IntMap<String> referenceIndices = new Object2IntOpenHashMap<String>();
+        private final ObjectArrayList<IntArrayList[]> columns = new ObjectArrayList<IntArrayList[]>();
+
+        public Builder() {
+            super();
+            referenceIndices.defaultReturnValue(-1);
+        }
+
+        /**
+         * Add an interval.
+         *
+         * @param referenceName name of the reference sequence.
+         * @param start         first position of the interval.
+         * @param end           last position of the interval.
+         * @param value         value associated with the interval.
+         * @return this builder.
+         */
+        public Builder add(final String referenceName, final int start, final int end, final int value) {
+            int referenceIndex = referenceIndices.getInt(referenceName);
+            if (referenceIndex == -1) {
+                referenceIndex = referenceNames.size();
+                referenceNames.add(referenceName);
+                referenceIndices.put(referenceName, referenceIndex);
+                columns.add(new IntArrayList[]{new IntArrayList(), new IntArrayList(), new IntArrayList()});
+            }
+            final IntArrayList[] column = columns.get(referenceIndex);
+            column[0].add(start);
+            column[1].add(end);
+            column[2].add(value);
+            return this;
+        }
+
+        /**
+         * @return an index of the intervals added so far.
+         */
+        public IntervalIndex build() {
+            final ReferenceIntervals[] references = new ReferenceIntervals[referenceNames.size()];
+            for (int referenceIndex = 0; referenceIndex < references.length; referenceIndex++) {
+                final IntArrayList[] column = columns.get(referenceIndex);
+                references[referenceIndex] = build(column[0].toIntArray(), column[1].toIntArray(),
+                        column[2].toIntArray());
+            }
+            return new IntervalIndex(referenceNames.toArray(new String[referenceNames.size()]), references);
+        }
+
+        private static ReferenceIntervals build(final int[] starts, final int[] ends, final int[] values) {
+            final int n = starts.length;
+            Arrays.quickSort(0, n, new AbstractIntComparator() {
+                @Override
+                public int compare(final int a, final int b) {
+                    if (starts[a] != starts[b]) {
+                        return starts[a] < starts[b] ? -1 : 1;
+                    }
+                    return ends[a] < ends[b] ? -1 : ends[a] == ends[b] ? 0 : 1;
+                }
+            }, new Swapper() {
+                @Override
+                public void swap(final int a, final int b) {
+                    swapElements(starts, a, b);
+                    swapElements(ends, a, b);
+                    swapElements(values, a, b);
+                }
+            });
+            final int[] maxEnds = new int[n];
+            int maxLevel = 0;
+            if (n > 0) {
+                // leaves (even indices) end where their interval ends:
+                int last = 0;
+                int lastIndex = 0;
+                for (int i = 0; i < n; i += 2) {
+                    lastIndex = i;
+                    last = maxEnds[i] = ends[i];
+                }
+                int level = 1;
+                for (; 1 << level <= n; level++) {
+                    final int halfSpan = 1 << (level - 1);
+                    final int step = halfSpan << 2;
+                    for (int i = (halfSpan << 1) - 1; i < n; i += step) {
+                        final int leftMax = maxEnds[i - halfSpan];
+                        // a right child beyond the last interval stands for the rightmost existing subtree:
+                        final int rightMax = i + halfSpan < n ? maxEnds[i + halfSpan] : last;
+                        maxEnds[i] = Math.max(ends[i], Math.max(leftMax, rightMax));
+                    }
+                    lastIndex = (lastIndex >> level & 1) != 0 ? lastIndex - halfSpan : lastIndex + halfSpan;
+                    if (lastIndex < n && maxEnds[lastIndex] > last) {
+                        last = maxEnds[lastIndex];
+                    }
+                }
+                maxLevel = level - 1;
+            }
+            return new ReferenceIntervals(n, maxLevel, IntBuffer.wrap(starts), IntBuffer.wrap(ends),
+                    IntBuffer.wrap(maxEnds), IntBuffer.wrap(values));
+        }
+
+        private static void swapElements(final int[] array, final int a, final int b) {
+            final int tmp = array[a];
+            array[a] = array[b];
+            array[b] = tmp;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.data;
+
+import edu.cornell.med.icb.goby.xml.MethylStats;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates the per-sample methylation statistics of many samples over a set of sites. The values of each site
+ * are buffered in a block, stored sample by sample, and the block is summarized one sample at a time into
+ * primitive count matrices when it is full. Depths and fragment lengths are binned with lookup tables rather than
+ * by binary search. The result is added to {@link MethylStats} instances with {@link #addTo(MethylStats[])}, and
+ * is the same as calling observedInSample and observedDepth and updating the context frequencies of each
+ * MethylStats site by site.
+ * <p/>
+ * Usage: call {@link #addSite(int, int)} for each site, then set the values of the samples observed at the site.
+ */
+public class MethylationSiteAccumulator {
+    /**
+     * Number of sites buffered before they are summarized.
+     */
+    private static final int BLOCK_SIZE = 512;
+    /**
+     * Fragments are counted in samples where the CpG is covered by more than this number of bases.
+     */
+    private static final int MIN_DEPTH_FOR_FRAGMENTS = 10;
+    /**
+     * Sites where a sample has a methylation rate below this value are not used to estimate context frequencies.
+     */
+    private static final int MIN_METHYLATION_RATE = 10;
+    /**
+     * Largest value binned with a lookup table. Larger values are binned by binary search.
+     */
+    private static final int MAX_LOOKUP_VALUE = 1 << 16;
+
+    private final int numSamples;
+    private final int minCoverageThreshold;
+    private final int[] depths;
+    private final int[] fragmentLengthBins;
+    private final int[] depthBinLookup;
+    private final int[] fragmentBinLookup;
+
+    // the current block, one row of BLOCK_SIZE values per sample:
+    private final int[] siteContexts = new int[BLOCK_SIZE];
+    private final int[] siteFragmentBins = new int[BLOCK_SIZE];
+    private final int[] sampleDepths;
+    private final int[] sampleMethylationRates;
+    private final int[] sampleMethylatedCounts;
+    private final int[] sampleConvertedCounts;
+    private final boolean[] sampleHasCounts;
+    private int numSites;
+
+    // the statistics, one row per sample:
+    private final long[] numberCpGsPerDepth;
+    private final long[] numberCpGsPerFragmentBinObserved;
+    private final long[] numberCpGsObserved;
+    private final long[] methylCpXFreqs;
+    private final long[] observedCpXFreqs;
+    private final long[] numConvertedNotCpGContext;
+    private final long[] numNotCpGContext;
+    private final long[] numCTpG;
+
+    /**
+     * Create an accumulator.
+     *
+     * @param numSamples           number of samples.
+     * @param depths               depth bins, as in MethylStats.
+     * @param fragmentLengthBins   fragment length bins, as in MethylStats.
+     * @param minCoverageThreshold sites where a sample has a smaller depth are not used to estimate context
+     *                             frequencies.
+     */
+    public MethylationSiteAccumulator(final int numSamples, final int[] depths, final int[] fragmentLengthBins,
+                                      final int minCoverageThreshold) {
+        super();
+        this.numSamples = numSamples;
+        this.depths = depths;
+        this.fragmentLengthBins = fragmentLengthBins;
+        this.minCoverageThreshold = minCoverageThreshold;
+        depthBinLookup = lookupTable(depths);
+        fragmentBinLookup = lookupTable(fragmentLengthBins);
+        final int blockCells = numSamples * BLOCK_SIZE;
+        sampleDepths = new int[blockCells];
+        sampleMethylationRates = new int[blockCells];
+        sampleMethylatedCounts = new int[blockCells];
+        sampleConvertedCounts = new int[blockCells];
+        sampleHasCounts = new boolean[blockCells];
+        numberCpGsPerDepth = new long[numSamples * depths.length];
+        numberCpGsPerFragmentBinObserved = new long[numSamples * fragmentLengthBins.length];
+        numberCpGsObserved = new long[numSamples];
+        methylCpXFreqs = new long[numSamples * MethylStats.CPMAX];
+        observedCpXFreqs = new long[numSamples * MethylStats.CPMAX];
+        numConvertedNotCpGContext = new long[numSamples];
+        numNotCpGContext = new long[numSamples];
+        numCTpG = new long[numSamples];
+    }
+
+    /**
+     * Start a new site. The depth of every sample is zero until set.
+     *
+     * @param context        context of the cytosine at the site, as returned by CytosineContextTrack.getContext.
+     * @param fragmentLength length of the fragment that starts at this CpG site, or -1 if the site is not a CpG or
+     *                       fragments are not analyzed.
+     */
+    public void addSite(final int context, final int fragmentLength) {
+        if (numSites == BLOCK_SIZE) {
+            flush();
+        }
+        siteContexts[numSites] = context;
+        siteFragmentBins[numSites] = fragmentLength > 0 ? bin(fragmentBinLookup, fragmentLengthBins, fragmentLength) : -1;
+        for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+            final int cell = sampleIndex * BLOCK_SIZE + numSites;
+            sampleDepths[cell] = 0;
+            sampleHasCounts[cell] = false;
+        }
+        numSites++;
+    }
+
+    /**
+     * Set the depth of a sample at the current site.
+     *
+     * @param sampleIndex index of the sample.
+     * @param depth       number of bases that cover the site in the sample.
+     */
+    public void setDepth(final int sampleIndex, final int depth) {
+        sampleDepths[sampleIndex * BLOCK_SIZE + numSites - 1] = depth;
+    }
+
+    /**
+     * Set the methylation counts of a sample at the current site. Only relevant for sites that are cytosines.
+     *
+     * @param sampleIndex     index of the sample.
+     * @param methylationRate methylation rate of the site in the sample, in percent.
+     * @param numMethylated   number of cytosines that were not converted.
+     * @param numConverted    number of cytosines that were converted.
+     */
+    public void setCounts(final int sampleIndex, final int methylationRate, final int numMethylated,
+                          final int numConverted) {
+        final int cell = sampleIndex * BLOCK_SIZE + numSites - 1;
+        sampleMethylationRates[cell] = methylationRate;
+        sampleMethylatedCounts[cell] = numMethylated;
+        sampleConvertedCounts[cell] = numConverted;
+        sampleHasCounts[cell] = true;
+    }
+
+    /**
+     * Summarize the sites of the current block.
+     */
+    public void flush() {
+        for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+            final int rowStart = sampleIndex * BLOCK_SIZE;
+            final int depthRow = sampleIndex * depths.length;
+            final int fragmentRow = sampleIndex * fragmentLengthBins.length;
+            final int contextRow = sampleIndex * MethylStats.CPMAX;
+            for (int site = 0; site < numSites; site++) {
+                final int cell = rowStart + site;
+                final int depth = sampleDepths[cell];
+                if (depth >= 1) {
+                    numberCpGsPerDepth[depthRow + bin(depthBinLookup, depths, depth)]++;
+                    final int fragmentBin = siteFragmentBins[site];
+                    if (fragmentBin >= 0 && depth > MIN_DEPTH_FOR_FRAGMENTS) {
+                        numberCpGsPerFragmentBinObserved[fragmentRow + fragmentBin]++;
+                        numberCpGsObserved[sampleIndex]++;
+                    }
+                }
+                if (!sampleHasCounts[cell]) {
+                    continue;
+                }
+                final int context = siteContexts[site];
+                final int numMethylated = sampleMethylatedCounts[cell];
+                final int numConverted = sampleConvertedCounts[cell];
+                if (context != MethylStats.CPG) {
+                    numConvertedNotCpGContext[sampleIndex] += numConverted;
+                    numNotCpGContext[sampleIndex] += numConverted + numMethylated;
+                }
+                if (depth < minCoverageThreshold || sampleMethylationRates[cell] < MIN_METHYLATION_RATE) {
+                    // discard positions with few bases observed or low methylation, to avoid sequencing errors.
+                    continue;
+                }
+                if (context == MethylStats.CPG) {
+                    numCTpG[sampleIndex] += depth;
+                }
+                if (context >= MethylStats.CPMIN && context < MethylStats.CPMAX) {
+                    methylCpXFreqs[contextRow + context] += numMethylated;
+                    observedCpXFreqs[contextRow + context] += numMethylated + numConverted;
+                }
+            }
+        }
+        numSites = 0;
+    }
+
+    /**
+     * Add the statistics accumulated so far to the statistics of each sample.
+     *
+     * @param methylStats one instance per sample, with the same depth and fragment length bins as this accumulator.
+     */
+    public void addTo(final MethylStats[] methylStats) {
+        flush();
+        for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+            final MethylStats stats = methylStats[sampleIndex];
+            add(stats.getNumberCpGsPerDepth(), numberCpGsPerDepth, sampleIndex * depths.length);
+            add(stats.getNumberCpGsPerFragmentBinObserved(), numberCpGsPerFragmentBinObserved,
+                    sampleIndex * fragmentLengthBins.length);
+            add(stats.getMethylCpXFreqs(), methylCpXFreqs, sampleIndex * MethylStats.CPMAX);
+            add(stats.getObservedCpXFreqs(), observedCpXFreqs, sampleIndex * MethylStats.CPMAX);
+            stats.setNumberCpGsObserved(stats.getNumberCpGsObserved() + numberCpGsObserved[sampleIndex]);
+            stats.numConvertedNotCpGContext += numConvertedNotCpGContext[sampleIndex];
+            stats.numNotCpGContext += numNotCpGContext[sampleIndex];
+            stats.numCTpG += numCTpG[sampleIndex];
+        }
+        Arrays.fill(numberCpGsPerDepth, 0);
+        Arrays.fill(numberCpGsPerFragmentBinObserved, 0);
+        Arrays.fill(numberCpGsObserved, 0);
+        Arrays.fill(methylCpXFreqs, 0);
+        Arrays.fill(observedCpXFreqs, 0);
+        Arrays.fill(numConvertedNotCpGContext, 0);
+        Arrays.fill(numNotCpGContext, 0);
+        Arrays.fill(numCTpG, 0);
+    }
+
+    private static void add(final long[] destination, final long[] source, final int offset) {
+        for (int i = 0; i < destination.length; i++) {
+            destination[i] += source[offset + i];
+        }
+    }
+
+    private static int[] lookupTable(final int[] bins) {
+        final int size = Math.min(MAX_LOOKUP_VALUE, bins.length == 0 ? 0 : Math.max(0, bins[bins.length - 1]) + 1);
+        final int[] table = new int[size];
+        for (int value = 0; value < size; value++) {
+            table[value] = binarySearchBin(bins, value);
+        }
+        return table;
+    }
+
+    private static int bin(final int[] lookup, final int[] bins, final int value) {
+        if (value >= 0 && value < lookup.length) {
+            return lookup[value];
+        }
+        return binarySearchBin(bins, value);
+    }
+
+    /**
+     * Same binning as MethylStats: the index of the first bin larger or equal to the value, or the last bin.
+     */
+    private static int binarySearchBin(final int[] bins, final int value) {
+        final int r = Arrays.binarySearch(bins, value);
+        final int index = r >= 0 ? r : -(r + 1);
+        return index >= bins.length ? bins.length - 1 : index;
+    }
+}
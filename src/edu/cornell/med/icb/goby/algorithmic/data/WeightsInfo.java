@@ -55,6 +55,19 @@ public class WeightsInfo implements Serializable {
         weights.set(readIndex, weight);
     }
 
+    /**
+     * Set the weights of several reads. Threads that compute weights concurrently store them with this method.
+     *
+     * @param readIndices the indices of the reads.
+     * @param values      the weights of the reads.
+     * @param length      the number of reads.
+     */
+    public synchronized void setWeights(final int[] readIndices, final float[] values, final int length) {
+        for (int i = 0; i < length; i++) {
+            setWeight(readIndices[i], values[i]);
+        }
+    }
+
     public float getWeight(final int readIndex) {
         return weights.getFloat(readIndex);
     }
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import java.util.Properties;
+
+/**
+ * Summary statistics of alignment entries. Statistics of the slices of an alignment can be accumulated
+ * independently and merged, and stored in the statistics properties of the alignment.
+ */
+public class AlignmentEntryStatistics {
+    private long numberOfEntries;
+    private long numberOfLogicalEntries;
+    private long totalQueryAlignedLength;
+    private double totalScore;
+    private long totalNumberOfVariations;
+    private long numberOfPaired;
+    private long numberOfProperlyPaired;
+    private long numberOfFirstInPair;
+    private long numberOfSecondInPair;
+    private long totalQueryLength;
+    private int minQueryLength = Integer.MAX_VALUE;
+    private int maxQueryLength = Integer.MIN_VALUE;
+    private int minQueryAlignedLength = Integer.MAX_VALUE;
+    private int maxQueryAlignedLength = Integer.MIN_VALUE;
+    private int maxQueryIndex = -1;
+    private int maxTargetIndex = -1;
+    private boolean hasSoftClips;
+
+    /**
+     * Add an entry to these statistics.
+     *
+     * @param entry the alignment entry.
+     */
+    public void observe(final Alignments.AlignmentEntry entry) {
+        numberOfEntries++;
+        numberOfLogicalEntries += Math.max(entry.getMultiplicity(), 1);
+        final int queryAlignedLength = entry.getQueryAlignedLength();
+        totalQueryAlignedLength += queryAlignedLength;
+        minQueryAlignedLength = Math.min(minQueryAlignedLength, queryAlignedLength);
+        maxQueryAlignedLength = Math.max(maxQueryAlignedLength, queryAlignedLength);
+        totalScore += entry.getScore();
+        maxQueryIndex = Math.max(maxQueryIndex, entry.getQueryIndex());
+        maxTargetIndex = Math.max(maxTargetIndex, entry.getTargetIndex());
+        totalNumberOfVariations += entry.getSequenceVariationsCount();
+        hasSoftClips |= entry.hasSoftClippedBasesLeft();
+        hasSoftClips |= entry.hasSoftClippedBasesRight();
+        final int queryLength = entry.getQueryLength();
+        totalQueryLength += queryLength;
+        minQueryLength = Math.min(minQueryLength, queryLength);
+        maxQueryLength = Math.max(maxQueryLength, queryLength);
+        numberOfPaired += EntryFlagHelper.isPaired(entry) ? 1 : 0;
+        numberOfProperlyPaired += EntryFlagHelper.isProperlyPaired(entry) ? 1 : 0;
+        numberOfFirstInPair += EntryFlagHelper.isFirstInPair(entry) ? 1 : 0;
+        numberOfSecondInPair += EntryFlagHelper.isSecondInPair(entry) ? 1 : 0;
+    }
+
+    /**
+     * Add the statistics of other entries to these statistics.
+     *
+     * @param other statistics of other entries.
+     */
+    public void merge(final AlignmentEntryStatistics other) {
+        numberOfEntries += other.numberOfEntries;
+        numberOfLogicalEntries += other.numberOfLogicalEntries;
+        totalQueryAlignedLength += other.totalQueryAlignedLength;
+        minQueryAlignedLength = Math.min(minQueryAlignedLength, other.minQueryAlignedLength);
+        maxQueryAlignedLength = Math.max(maxQueryAlignedLength, other.maxQueryAlignedLength);
+        totalScore += other.totalScore;
+        maxQueryIndex = Math.max(maxQueryIndex, other.maxQueryIndex);
+        maxTargetIndex = Math.max(maxTargetIndex, other.maxTargetIndex);
+        totalNumberOfVariations += other.totalNumberOfVariations;
+        hasSoftClips |= other.hasSoftClips;
+        totalQueryLength += other.totalQueryLength;
+        minQueryLength = Math.min(minQueryLength, other.minQueryLength);
+        maxQueryLength = Math.max(maxQueryLength, other.maxQueryLength);
+        numberOfPaired += other.numberOfPaired;
+        numberOfProperlyPaired += other.numberOfProperlyPaired;
+        numberOfFirstInPair += other.numberOfFirstInPair;
+        numberOfSecondInPair += other.numberOfSecondInPair;
+    }
+
+    /**
+     * Store these statistics as properties.
+     *
+     * @param properties where to store the statistics.
+     * @param prefix     prefix of the names of the properties.
+     */
+    public void store(final Properties properties, final String prefix) {
+        properties.setProperty(prefix + "entries.number", Long.toString(numberOfEntries));
+        properties.setProperty(prefix + "entries.logical.number", Long.toString(numberOfLogicalEntries));
+        properties.setProperty(prefix + "query.aligned.length.total", Long.toString(totalQueryAlignedLength));
+        properties.setProperty(prefix + "query.aligned.length.min", Integer.toString(minQueryAlignedLength));
+        properties.setProperty(prefix + "query.aligned.length.max", Integer.toString(maxQueryAlignedLength));
+        properties.setProperty(prefix + "score.total", Double.toString(totalScore));
+        properties.setProperty(prefix + "query.index.max", Integer.toString(maxQueryIndex));
+        properties.setProperty(prefix + "target.index.max", Integer.toString(maxTargetIndex));
+        properties.setProperty(prefix + "variations.total", Long.toString(totalNumberOfVariations));
+        properties.setProperty(prefix + "soft.clips", Boolean.toString(hasSoftClips));
+        properties.setProperty(prefix + "query.length.total", Long.toString(totalQueryLength));
+        properties.setProperty(prefix + "query.length.min", Integer.toString(minQueryLength));
+        properties.setProperty(prefix + "query.length.max", Integer.toString(maxQueryLength));
+        properties.setProperty(prefix + "paired.number", Long.toString(numberOfPaired));
+        properties.setProperty(prefix + "properly.paired.number", Long.toString(numberOfProperlyPaired));
+        properties.setProperty(prefix + "first.in.pair.number", Long.toString(numberOfFirstInPair));
+        properties.setProperty(prefix + "second.in.pair.number", Long.toString(numberOfSecondInPair));
+    }
+
+    /**
+     * Load statistics stored with {@link #store(java.util.Properties, String)}.
+     *
+     * @param properties where the statistics were stored.
+     * @param prefix     prefix of the names of the properties.
+     * @return the statistics, or null if some of them are missing.
+     */
+    public static AlignmentEntryStatistics load(final Properties properties, final String prefix) {
+        final AlignmentEntryStatistics statistics = new AlignmentEntryStatistics();
+        try {
+            statistics.numberOfEntries = Long.parseLong(get(properties, prefix + "entries.number"));
+            statistics.numberOfLogicalEntries =
+                    Long.parseLong(get(properties, prefix + "entries.logical.number"));
+            statistics.totalQueryAlignedLength =
+                    Long.parseLong(get(properties, prefix + "query.aligned.length.total"));
+            statistics.minQueryAlignedLength =
+                    Integer.parseInt(get(properties, prefix + "query.aligned.length.min"));
+            statistics.maxQueryAlignedLength =
+                    Integer.parseInt(get(properties, prefix + "query.aligned.length.max"));
+            statistics.totalScore = Double.parseDouble(get(properties, prefix + "score.total"));
+            statistics.maxQueryIndex = Integer.parseInt(get(properties, prefix + "query.index.max"));
+            statistics.maxTargetIndex = Integer.parseInt(get(properties, prefix + "target.index.max"));
+            statistics.totalNumberOfVariations = Long.parseLong(get(properties, prefix + "variations.total"));
+            statistics.hasSoftClips = Boolean.parseBoolean(get(properties, prefix + "soft.clips"));
+            statistics.totalQueryLength = Long.parseLong(get(properties, prefix + "query.length.total"));
+            statistics.minQueryLength = Integer.parseInt(get(properties, prefix + "query.length.min"));
+            statistics.maxQueryLength = Integer.parseInt(get(properties, prefix + "query.length.max"));
+            statistics.numberOfPaired = Long.parseLong(get(properties, prefix + "paired.number"));
+            statistics.numberOfProperlyPaired =
+                    Long.parseLong(get(properties, prefix + "properly.paired.number"));
+            statistics.numberOfFirstInPair = Long.parseLong(get(properties, prefix + "first.in.pair.number"));
+            statistics.numberOfSecondInPair =
+                    Long.parseLong(get(properties, prefix + "second.in.pair.number"));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return statistics;
+    }
+
+    private static String get(final Properties properties, final String key) {
+        final String value = properties.getProperty(key);
+        if (value == null) {
+            throw new NumberFormatException("missing property " + key);
+        }
+        return value;
+    }
+
+    public long getNumberOfEntries() {
+        return numberOfEntries;
+    }
+
+    /**
+     * Return the number of entries, counting each entry as many times as its multiplicity.
+     */
+    public long getNumberOfLogicalEntries() {
+        return numberOfLogicalEntries;
+    }
+
+    public long getTotalQueryAlignedLength() {
+        return totalQueryAlignedLength;
+    }
+
+    public int getMinQueryAlignedLength() {
+        return minQueryAlignedLength;
+    }
+
+    public int getMaxQueryAlignedLength() {
+        return maxQueryAlignedLength;
+    }
+
+    public double getTotalScore() {
+        return totalScore;
+    }
+
+    public int getMaxQueryIndex() {
+        return maxQueryIndex;
+    }
+
+    public int getMaxTargetIndex() {
+        return maxTargetIndex;
+    }
+
+    public long getTotalNumberOfVariations() {
+        return totalNumberOfVariations;
+    }
+
+    public boolean hasSoftClips() {
+        return hasSoftClips;
+    }
+
+    public long getTotalQueryLength() {
+        return totalQueryLength;
+    }
+
+    public int getMinQueryLength() {
+        return minQueryLength;
+    }
+
+    public int getMaxQueryLength() {
+        return maxQueryLength;
+    }
+
+    public long getNumberOfPaired() {
+        return numberOfPaired;
+    }
+
+    public long getNumberOfProperlyPaired() {
+        return numberOfProperlyPaired;
+    }
+
+    public long getNumberOfFirstInPair() {
+        return numberOfFirstInPair;
+    }
+
+    public long getNumberOfSecondInPair() {
+        return numberOfSecondInPair;
+    }
+}
@@ -21,7 +21,15 @@
 package edu.cornell.med.icb.goby.alignments;
 
 import com.google.protobuf.CodedInputStream;
-import it.unimi.dsi.fastutil.ints.*;
+import com.google.protobuf.WireFormat;
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.AbstractIntIterator;
+import it.unimi.dsi.fastutil.ints.AbstractIntSet;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntSet;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -29,13 +37,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Iterator;
-import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.zip.GZIPInputStream;
 
 /**
  * Reads alignments too many hits data structure written with
- * {@link edu.cornell.med.icb.goby.alignments.AlignmentTooManyHitsWriter}.
+ * {@link edu.cornell.med.icb.goby.alignments.AlignmentTooManyHitsWriter}. Hits are parsed from the stream one
+ * at a time and stored in three parallel primitive arrays sorted by query index (12 bytes per ambiguous query).
+ * Lookups are binary searches.
  *
  * @author Fabien Campagne
  *         Date: Apr 30, 2009
@@ -47,16 +56,22 @@ public class AlignmentTooManyHitsReader {
      */
     private static final Log LOG = LogFactory.getLog(AlignmentTooManyHitsReader.class);
 
+    /**
+     * Query indices of the ambiguous queries, sorted, without duplicates.
+     */
+    private int[] queryIndices = IntArrays.EMPTY_ARRAY;
 
     /**
-     * A map from query index to the number of hits at that index.
+     * Number of hits of the query at the same index in queryIndices.
      */
-    private Int2IntMap queryIndex2NumHits = new Int2IntAVLTreeMap();
+    private int[] numHits = IntArrays.EMPTY_ARRAY;
 
     /**
-     * A map from query index to depth/length of match.
+     * Depth/length of match of the query at the same index in queryIndices, or -1 when not provided.
      */
-    private Int2IntMap queryIndex2Depth = new Int2IntAVLTreeMap();
+    private int[] lengthOfMatch = IntArrays.EMPTY_ARRAY;
+
+    private int size;
 
     /**
      * The threshold used by the aligner to determine that a query is ambiguous and
@@ -84,23 +99,8 @@ public class AlignmentTooManyHitsReader {
                 // accept very large too many hits messages, since these may describe more than 60 million reads:
                 final CodedInputStream codedInput = CodedInputStream.newInstance(tmhStream);
                 codedInput.setSizeLimit(Integer.MAX_VALUE);
-
-                final Alignments.AlignmentTooManyHits tmh = Alignments.AlignmentTooManyHits.parseFrom(codedInput);
-
-                queryIndex2NumHits.defaultReturnValue(-1);
-                queryIndex2Depth.defaultReturnValue(-1);
-                final List<Alignments.AmbiguousLocation> hitsList = tmh.getHitsList();
-                final Iterator<Alignments.AmbiguousLocation> iterator = hitsList.iterator();
-                while (iterator.hasNext()) {
-                    Alignments.AmbiguousLocation hit = iterator.next();
-                    queryIndex2NumHits.put(hit.getQueryIndex(), hit.getAtLeastNumberOfHits());
-                    if (hit.hasLengthOfMatch()) {
-                        queryIndex2Depth.put(hit.getQueryIndex(), hit.getLengthOfMatch());
-                    }
-
-                }
-
-                this.alignerThreshold = tmh.getAlignerThreshold();
+                parse(codedInput);
+                sortByQueryIndex();
             } else {
 
                 // the file does not exist. Log this fact, and act as if no query had too many hits.
@@ -118,6 +118,127 @@ public class AlignmentTooManyHitsReader {
 
     }
 
+    /**
+     * Parse the AlignmentTooManyHits message field by field, without building the list of AmbiguousLocation
+     * messages.
+     */
+    private void parse(final CodedInputStream input) throws IOException {
+        while (true) {
+            final int tag = input.readTag();
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case 0:
+                    return;
+                case Alignments.AlignmentTooManyHits.HITS_FIELD_NUMBER:
+                    final int limit = input.pushLimit(input.readRawVarint32());
+                    parseHit(input);
+                    input.popLimit(limit);
+                    break;
+                case Alignments.AlignmentTooManyHits.ALIGNER_THRESHOLD_FIELD_NUMBER:
+                    alignerThreshold = input.readUInt32();
+                    break;
+                default:
+                    if (!input.skipField(tag)) {
+                        return;
+                    }
+            }
+        }
+    }
+
+    private void parseHit(final CodedInputStream input) throws IOException {
+        int queryIndex = 0;
+        int atLeastNumberOfHits = 0;
+        int depth = -1;
+        while (true) {
+            final int tag = input.readTag();
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case 0:
+                    append(queryIndex, atLeastNumberOfHits, depth);
+                    return;
+                case Alignments.AmbiguousLocation.QUERY_INDEX_FIELD_NUMBER:
+                    queryIndex = input.readUInt32();
+                    break;
+                case Alignments.AmbiguousLocation.AT_LEAST_NUMBER_OF_HITS_FIELD_NUMBER:
+                    atLeastNumberOfHits = input.readUInt32();
+                    break;
+                case Alignments.AmbiguousLocation.LENGTH_OF_MATCH_FIELD_NUMBER:
+                    depth = input.readUInt32();
+                    break;
+                default:
+                    input.skipField(tag);
+            }
+        }
+    }
+
+    private void append(final int queryIndex, final int atLeastNumberOfHits, final int depth) {
+        if (size == queryIndices.length) {
+            queryIndices = IntArrays.grow(queryIndices, size + 1);
+            numHits = IntArrays.grow(numHits, size + 1);
+            lengthOfMatch = IntArrays.grow(lengthOfMatch, size + 1);
+        }
+        queryIndices[size] = queryIndex;
+        numHits[size] = atLeastNumberOfHits;
+        lengthOfMatch[size] = depth;
+        size++;
+    }
+
+    /**
+     * Sort the arrays by query index, unless the writer already appended them in order. When a query index was
+     * written more than once, keep the number of hits of the last hit, and the last length of match written.
+     */
+    private void sortByQueryIndex() {
+        boolean sorted = true;
+        for (int i = 1; i < size && sorted; i++) {
+            sorted = queryIndices[i - 1] < queryIndices[i];
+        }
+        if (!sorted) {
+            // merge sort is stable, so the last hit of a query stays last among duplicates:
+            Arrays.mergeSort(0, size, new AbstractIntComparator() {
+                @Override
+                public int compare(final int a, final int b) {
+                    return queryIndices[a] < queryIndices[b] ? -1 : queryIndices[a] == queryIndices[b] ? 0 : 1;
+                }
+            }, new Swapper() {
+                @Override
+                public void swap(final int a, final int b) {
+                    swapElements(queryIndices, a, b);
+                    swapElements(numHits, a, b);
+                    swapElements(lengthOfMatch, a, b);
+                }
+            });
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (unique > 0 && queryIndices[unique - 1] == queryIndices[i]) {
+                    // a later hit without length of match keeps the depth of the earlier hits:
+                    numHits[unique - 1] = numHits[i];
+                    if (lengthOfMatch[i] != -1) {
+                        lengthOfMatch[unique - 1] = lengthOfMatch[i];
+                    }
+                    continue;
+                }
+                queryIndices[unique] = queryIndices[i];
+                numHits[unique] = numHits[i];
+                lengthOfMatch[unique] = lengthOfMatch[i];
+                unique++;
+            }
+            size = unique;
+        }
+        queryIndices = IntArrays.trim(queryIndices, size);
+        numHits = IntArrays.trim(numHits, size);
+        lengthOfMatch = IntArrays.trim(lengthOfMatch, size);
+    }
+
+    private static void swapElements(final int[] array, final int a, final int b) {
+        final int tmp = array[a];
+        array[a] = array[b];
+        array[b] = tmp;
+    }
+
+    /**
+     * Return the index of queryIndex in the sorted arrays, or a negative value when the query is not ambiguous.
+     */
+    private int find(final int queryIndex) {
+        return IntArrays.binarySearch(queryIndices, 0, size, queryIndex);
+    }
 
     /**
      * The number of hits against the reference that the aligner considered was too many to report.
@@ -140,7 +261,8 @@ public class AlignmentTooManyHitsReader {
      */
     public final int getNumberOfHits(final int queryIndex) {
         assert !closed : "TMH reader was already closed.";
-        return queryIndex2NumHits.get(queryIndex);
+        final int index = find(queryIndex);
+        return index >= 0 ? numHits[index] : -1;
     }
 
     /**
@@ -153,12 +275,49 @@ public class AlignmentTooManyHitsReader {
      */
     public final int getLengthOfMatch(final int queryIndex) {
         assert !closed : "TMH reader was already closed.";
-        return queryIndex2Depth.get(queryIndex);
+        final int index = find(queryIndex);
+        return index >= 0 ? lengthOfMatch[index] : -1;
     }
 
+    /**
+     * Return the indices of the ambiguous queries. The set is a read-only view that iterates in increasing
+     * query index order.
+     *
+     * @return the set of ambiguous query indices.
+     */
     public final IntSet getQueryIndices() {
         assert !closed : "TMH reader was already closed.";
-        return queryIndex2NumHits.keySet();
+        return new AbstractIntSet() {
+            @Override
+            public boolean contains(final int queryIndex) {
+                return find(queryIndex) >= 0;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public IntIterator iterator() {
+                return new AbstractIntIterator() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < size;
+                    }
+
+                    @Override
+                    public int nextInt() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return queryIndices[next++];
+                    }
+                };
+            }
+        };
     }
 
     /**
@@ -169,7 +328,7 @@ public class AlignmentTooManyHitsReader {
      */
     public boolean isQueryAmbiguous(final int queryIndex) {
         assert !closed : "TMH reader was already closed.";
-        return queryIndex2NumHits.containsKey(queryIndex);
+        return find(queryIndex) >= 0;
     }
 
     /**
@@ -187,7 +346,7 @@ public class AlignmentTooManyHitsReader {
      */
     public final boolean isQueryAmbiguous(final int queryIndex, final int k) {
         assert !closed : "TMH reader was already closed.";
-        final int atLeastNumberOfHits = queryIndex2NumHits.get(queryIndex);
+        final int atLeastNumberOfHits = getNumberOfHits(queryIndex);
         if (atLeastNumberOfHits == -1) {
             return false;
         }
@@ -223,10 +382,10 @@ public class AlignmentTooManyHitsReader {
     }
 
     public void close() {
-        this.queryIndex2Depth.clear();
-        this.queryIndex2NumHits.clear();
-        this.queryIndex2Depth = null;
-        this.queryIndex2NumHits = null;
+        queryIndices = null;
+        numHits = null;
+        lengthOfMatch = null;
+        size = 0;
         closed = true;
     }
 }
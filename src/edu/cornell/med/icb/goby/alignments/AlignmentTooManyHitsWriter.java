@@ -20,7 +20,8 @@
 
 package edu.cornell.med.icb.goby.alignments;
 
-import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import com.google.protobuf.CodedOutputStream;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
 
 import java.io.Closeable;
 import java.io.FileOutputStream;
@@ -30,7 +31,9 @@ import java.util.zip.GZIPOutputStream;
 
 /**
  * Writes the too many hit data structure Protocol Buffer format.
- * See Alignements.proto for the specification of this format.
+ * See Alignements.proto for the specification of this format. Hits are written to the compressed stream as they
+ * are appended, as fields of a single AlignmentTooManyHits message, so that memory use does not grow with the number
+ * of ambiguous queries. The aligner threshold field is written last, when the writer is closed.
  *
  * @author Fabien Campagne
  *         Date: May 5, 2009
@@ -39,20 +42,15 @@ import java.util.zip.GZIPOutputStream;
 public class AlignmentTooManyHitsWriter implements Closeable {
     private boolean tooManyHitsWritten;
     private final OutputStream tooManyHitsOutput;
-    private final Alignments.AlignmentTooManyHits.Builder tooManyHits;
-    private Alignments.AmbiguousLocation.Builder newAmbiguousLocation;
-    /**
-       * A collection where the append  AmbiguousLocation until it is time to write the PB messages. We use a fastutil collection
-       * for performance upon add when the list becomes large.
-       */
-      private ObjectArrayList<Alignments.AmbiguousLocation>localCachedCollection=new ObjectArrayList<Alignments.AmbiguousLocation>();
-
+    private final CodedOutputStream codedOutput;
+    private int alignerThreshold;
+    private final Alignments.AmbiguousLocation.Builder newAmbiguousLocation;
 
     public AlignmentTooManyHitsWriter(final String outputBasename, final int alignerThreshold) throws IOException {
         tooManyHitsOutput = new GZIPOutputStream(new FileOutputStream(outputBasename + ".tmh"));
+        codedOutput = CodedOutputStream.newInstance(tooManyHitsOutput);
         newAmbiguousLocation = Alignments.AmbiguousLocation.newBuilder();
-        tooManyHits = Alignments.AlignmentTooManyHits.newBuilder();
-        tooManyHits.setAlignerThreshold(alignerThreshold);
+        this.alignerThreshold = alignerThreshold;
     }
 
     /**
@@ -60,28 +58,22 @@ public class AlignmentTooManyHitsWriter implements Closeable {
      * @param alignerThreshold the new threshold to write in the too many hits file.
      */
     public void setAlignerThreshold(final int alignerThreshold) {
-        tooManyHits.setAlignerThreshold(alignerThreshold);
+        this.alignerThreshold = alignerThreshold;
     }
 
     /**
      * {@inheritDoc}
      */
     public void close() throws IOException {
-        if (!localCachedCollection.isEmpty()) {
-             tooManyHits.addAllHits(localCachedCollection);
-             localCachedCollection.clear();
-        }
         write();
-
     }
 
     public void write() throws IOException {
         if (!tooManyHitsWritten) {
-            tooManyHits.build().writeTo(tooManyHitsOutput);
+            codedOutput.writeUInt32(Alignments.AlignmentTooManyHits.ALIGNER_THRESHOLD_FIELD_NUMBER, alignerThreshold);
+            codedOutput.flush();
             tooManyHitsOutput.close();
             tooManyHitsWritten = true;
-            //recover the memory:
-            tooManyHits.clear();
         }
     }
 
@@ -104,15 +96,15 @@ public class AlignmentTooManyHitsWriter implements Closeable {
      * Append the current too many hits record.
      */
     public void append() {
-        assert tooManyHits.hasAlignerThreshold() : "append> writer missing aligner threshold";
         assert newAmbiguousLocation.hasAtLeastNumberOfHits() : "append> new record missing atLeastNumberOfHits";
-        if (newAmbiguousLocation.getAtLeastNumberOfHits() > tooManyHits.getAlignerThreshold()) {
-            final Alignments.AmbiguousLocation builder = newAmbiguousLocation.build();
-            localCachedCollection.add(builder);
-
+        if (newAmbiguousLocation.getAtLeastNumberOfHits() > alignerThreshold) {
+            try {
+                codedOutput.writeMessage(Alignments.AlignmentTooManyHits.HITS_FIELD_NUMBER, newAmbiguousLocation.build());
+            } catch (IOException e) {
+                throw new GobyRuntimeException(e);
+            }
         }
-        //tooManyHits.addHits(newAmbiguousLocation.build());
-        // whether or not the hit was added, reset/create a new one
-        newAmbiguousLocation = Alignments.AmbiguousLocation.newBuilder();
+        // whether or not the hit was added, reset the record
+        newAmbiguousLocation.clear();
     }
 }
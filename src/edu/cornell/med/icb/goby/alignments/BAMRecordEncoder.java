@@ -0,0 +1,744 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import com.google.protobuf.ByteString;
+import edu.cornell.med.icb.goby.reads.QualityEncoding;
+import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
+import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.bytes.ByteList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+
+/**
+ * Encodes alignment entries as binary BAM records, without creating a SAMRecord. Records are appended to a byte
+ * buffer in the layout written by samtools BAMRecordCodec, block size included: CIGAR operations packed in integers,
+ * bases on four bits, quality scores as bytes and attributes sorted by tag. Records are identical to those written by
+ * samtools for the SAMRecords that CompactToSAMMode used to build.
+ * <p/>
+ * An encoder created with a genome builds the CIGAR, bases, MD attribute and quality scores of entries that are not
+ * spliced directly from the entry and the reference bases, see {@link #encode(Alignments.AlignmentEntry,
+ * ByteArrayList)}. Other entries are encoded from the {@link ExportableAlignmentEntryData} built for them. An encoder
+ * keeps buffers between records: each thread must use its own encoder.
+ */
+public class BAMRecordEncoder {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Logger LOG = Logger.getLogger(BAMRecordEncoder.class);
+
+    private static final int SAM_REVERSE_STRAND_FLAG = 16;
+    private static final int SAM_READ_UNMAPPED_FLAG = 4;
+    /**
+     * CIGAR operations, in the order of their BAM codes.
+     */
+    private static final String CIGAR_OPERATIONS = "MIDNSHP=X";
+    private static final int CIGAR_MATCH = 0;
+    private static final int CIGAR_INSERTION = 1;
+    private static final int CIGAR_DELETION = 2;
+    private static final int CIGAR_SKIPPED_REGION = 3;
+    private static final int CIGAR_SOFT_CLIP = 4;
+    /**
+     * Quality score of the bases whose quality is not known, as exported by ExportableAlignmentEntryData.
+     */
+    private static final byte UNKNOWN_QUALITY = 93;
+    /**
+     * Kinds of columns, as they are described in the MD attribute.
+     */
+    private static final int MD_MATCH = 0;
+    private static final int MD_DELETION = 1;
+    private static final int MD_MISMATCH = 2;
+    /**
+     * Marks the targets that have not been looked up in the genome yet.
+     */
+    private static final int UNKNOWN_TARGET = -2;
+    /**
+     * Four bit code of bases, -1 for characters that cannot be stored in BAM files.
+     */
+    private static final byte[] BASE_CODES = new byte[128];
+
+    static {
+        Arrays.fill(BASE_CODES, (byte) -1);
+        final String bases = "=ACMGRSVTWYHKDBN";
+        for (int code = 0; code < bases.length(); code++) {
+            BASE_CODES[bases.charAt(code)] = (byte) code;
+            BASE_CODES[Character.toLowerCase(bases.charAt(code))] = (byte) code;
+        }
+        BASE_CODES['.'] = 15;
+    }
+
+    private final boolean hasReadGroups;
+    private final ReadOriginInfo readOriginInfo;
+    private final IntArrayList cigar = new IntArrayList();
+    private final MutableString readName = new MutableString();
+    /**
+     * Binary tags of the attributes of the record being encoded, in increasing order.
+     */
+    private final IntArrayList attributeTags = new IntArrayList();
+    /**
+     * Start, in attributeValues, of the type and value of each attribute.
+     */
+    private final IntArrayList attributeStarts = new IntArrayList();
+    private final IntArrayList attributeEnds = new IntArrayList();
+    private final ByteArrayList attributeValues = new ByteArrayList();
+
+    private final RandomAccessSequenceInterface genome;
+    private final DoubleIndexedIdentifier targetIdentifiers;
+    private final QualityEncoding qualityEncoding;
+    /**
+     * Index in the genome of each target of the alignment, UNKNOWN_TARGET until looked up, -1 when not found.
+     */
+    private int[] genomeTargetIndices = IntArrays.EMPTY_ARRAY;
+    private final MutableString bases = new MutableString();
+    private final ByteArrayList qualities = new ByteArrayList();
+    private final MutableString mismatches = new MutableString();
+    /**
+     * State of the columns of the alignment added so far: the last CIGAR operation and its length, the kind of the
+     * last column in the MD attribute and the number of such columns, and whether the MD attribute ends with a number.
+     */
+    private int lastOperation;
+    private int operationLength;
+    private int lastMdKind;
+    private int mdKindLength;
+    private boolean mdEndsWithNumber;
+
+    /**
+     * Create an encoder.
+     *
+     * @param readOriginInfo read origins of the alignment, exported as read groups, or null when the alignment has no
+     *                       read origins.
+     */
+    public BAMRecordEncoder(final ReadOriginInfo readOriginInfo) {
+        this(readOriginInfo, null, null, null);
+    }
+
+    /**
+     * Create an encoder that can build records directly from alignment entries.
+     *
+     * @param readOriginInfo    read origins of the alignment, exported as read groups, or null when the alignment has
+     *                          no read origins.
+     * @param genome            the genome the alignment was made against.
+     * @param targetIdentifiers identifiers of the targets of the alignment.
+     * @param qualityEncoding   encoding of the quality scores of sequence variations, as in
+     *                          ExportableAlignmentEntryData.
+     */
+    public BAMRecordEncoder(final ReadOriginInfo readOriginInfo, final RandomAccessSequenceInterface genome,
+                            final DoubleIndexedIdentifier targetIdentifiers, final QualityEncoding qualityEncoding) {
+        super();
+        this.hasReadGroups = readOriginInfo != null && readOriginInfo.size() > 0;
+        this.readOriginInfo = readOriginInfo;
+        this.genome = genome;
+        this.targetIdentifiers = targetIdentifiers;
+        this.qualityEncoding = qualityEncoding;
+    }
+
+    /**
+     * Append the BAM record of an alignment entry that is not spliced to a buffer. The CIGAR, bases, MD attribute and
+     * quality scores are built from the fields and sequence variations of the entry and from the reference bases, in
+     * one pass over the aligned columns, as {@link ExportableAlignmentEntryData#buildFrom(Alignments.AlignmentEntry)}
+     * would build them. Entries that are not valid, and the few entries whose reconstruction depends on the details
+     * of that method (sequence variations that overlap or are out of order, insertions mixed with other changes,
+     * clipped bases that do not match the clipped length), are left to ExportableAlignmentEntryData: nothing is
+     * appended and false is returned.
+     *
+     * @param entry  an entry that is not spliced.
+     * @param record the buffer the record is appended to.
+     * @return true if the record was appended, false if the entry must be encoded from the
+     *         {@link ExportableAlignmentEntryData} built for it.
+     */
+    public boolean encode(final Alignments.AlignmentEntry entry, final ByteArrayList record) {
+        if (genome == null) {
+            return false;
+        }
+        final String readGroup = hasReadGroups ? readGroup(entry) : null;
+        final int genomeIndex = genomeTargetIndex(entry.getTargetIndex());
+        if (hasReadGroups && readGroup == null || genomeIndex == -1) {
+            return false;
+        }
+        final int startClip = entry.getQueryPosition();
+        final int queryLength = entry.getQueryLength();
+        final int targetAlignedLength = entry.getTargetAlignedLength();
+        final int endClip = queryLength - entry.getQueryAlignedLength() - startClip;
+        final int start = entry.getPosition();
+        final int end = start + targetAlignedLength;
+        final int genomeLength = genome.getLength(genomeIndex);
+        final String leftClip = entry.hasSoftClippedBasesLeft() ? entry.getSoftClippedBasesLeft() : null;
+        final String rightClip = entry.hasSoftClippedBasesRight() ? entry.getSoftClippedBasesRight() : null;
+        final ByteString leftClipQualities = entry.hasSoftClippedQualityLeft() ? entry.getSoftClippedQualityLeft() :
+                null;
+        if (startClip < 0 || endClip < 0 || leftClip != null && leftClip.length() != startClip
+                || rightClip != null && (rightClip.length() != endClip || end < 0 || end + endClip > genomeLength)
+                || leftClipQualities != null && leftClipQualities.size() < startClip) {
+            return false;
+        }
+        final boolean knownQualities = entry.hasReadQualityScores();
+        int numInsertions = 0;
+        int numDeletions = 0;
+        for (final Alignments.SequenceVariation variation : entry.getSequenceVariationsList()) {
+            final String from = variation.getFrom();
+            final String to = variation.getTo();
+            if (from.length() != to.length() || from.length() == 0) {
+                return false;
+            }
+            final boolean insertion = from.charAt(0) == '-';
+            int numBases = 0;
+            for (int i = 0; i < from.length(); i++) {
+                if ((from.charAt(i) == '-') != insertion || to.charAt(i) == '-' && insertion) {
+                    return false;
+                }
+                if (to.charAt(i) == '-') {
+                    numDeletions++;
+                } else {
+                    numBases++;
+                }
+            }
+            if (insertion) {
+                numInsertions += from.length();
+            }
+            final int numQualities = variation.hasToQuality() ? variation.getToQuality().size() : -1;
+            if (numQualities != -1 && numQualities < numBases || insertion && numQualities == -1 && !knownQualities) {
+                return false;
+            }
+        }
+        // ExportableAlignmentEntryData truncates its columns to this length, and reads the right clip beyond it:
+        final int numColumns = queryLength + numDeletions;
+        if (entry.getQueryAlignedLength() + numDeletions != targetAlignedLength + numInsertions
+                || numColumns + 1 < 2 * endClip) {
+            return false;
+        }
+
+        bases.setLength(0);
+        qualities.clear();
+        cigar.clear();
+        mismatches.setLength(0);
+        for (int i = 0; i < startClip; i++) {
+            final char clipBase = leftClip == null ? 'N' : leftClip.charAt(i);
+            bases.append(clipBase == '=' ? base(genomeIndex, start - startClip + i, genomeLength) : clipBase);
+            qualities.add(leftClipQualities == null ? UNKNOWN_QUALITY : leftClipQualities.byteAt(i));
+        }
+        if (startClip > 0) {
+            cigar.add(startClip << 4 | CIGAR_SOFT_CLIP);
+        }
+        lastOperation = CIGAR_MATCH;
+        operationLength = 0;
+        lastMdKind = MD_MATCH;
+        mdKindLength = 0;
+        mdEndsWithNumber = false;
+        int column = 0;
+        for (final Alignments.SequenceVariation variation : entry.getSequenceVariationsList()) {
+            final String from = variation.getFrom();
+            final String to = variation.getTo();
+            final boolean insertion = from.charAt(0) == '-';
+            // insertions are placed before the column at their position, other changes start at their position:
+            final int first = insertion ? variation.getPosition() : variation.getPosition() - 1;
+            if (first < column || first + (insertion ? 0 : from.length()) > targetAlignedLength) {
+                return false;
+            }
+            for (; column < first; column++) {
+                final char base = base(genomeIndex, start + column, genomeLength);
+                addColumn(base, base);
+                bases.append(base);
+                qualities.add(UNKNOWN_QUALITY);
+            }
+            final byte[] toQualities = variation.hasToQuality() ? variation.getToQuality().toByteArray() : null;
+            int toQualityIndex = 0;
+            for (int i = 0; i < to.length(); i++) {
+                final char readBase = to.charAt(i);
+                final byte quality = readBase == '-' || toQualities == null ? UNKNOWN_QUALITY :
+                        (byte) qualityEncoding.phredQualityScoreToAsciiEncoding(toQualities[toQualityIndex++]);
+                if (insertion) {
+                    addColumn(readBase, '-');
+                } else {
+                    addColumn(readBase, base(genomeIndex, start + column, genomeLength));
+                    column++;
+                }
+                if (readBase != '-') {
+                    bases.append(readBase);
+                    qualities.add(quality);
+                }
+            }
+        }
+        for (; column < targetAlignedLength; column++) {
+            final char base = base(genomeIndex, start + column, genomeLength);
+            addColumn(base, base);
+            bases.append(base);
+            qualities.add(UNKNOWN_QUALITY);
+        }
+        endColumns();
+        for (int i = 0; i < endClip; i++) {
+            final char clipBase = rightClip == null ? 'N' : rightClip.charAt(i);
+            bases.append(clipBase == '=' ? genome.get(genomeIndex, end + i) : clipBase);
+            qualities.add(UNKNOWN_QUALITY);
+        }
+        if (endClip > 0) {
+            cigar.add(endClip << 4 | CIGAR_SOFT_CLIP);
+        }
+        if (knownQualities) {
+            qualities.clear();
+            final ByteString readQualities = entry.getReadQualityScores();
+            for (int i = 0; i < readQualities.size(); i++) {
+                qualities.add(readQualities.byteAt(i));
+            }
+        }
+        encode(entry, readGroup, cigar, mismatches, bases, qualities, record);
+        return true;
+    }
+
+    /**
+     * Add an aligned column to the CIGAR and to the MD attribute. Read bases are '-' in deletions, reference bases
+     * are '-' in insertions.
+     */
+    private void addColumn(final char readBase, final char referenceBase) {
+        final int operation;
+        final int mdKind;
+        if (readBase == '-') {
+            operation = CIGAR_DELETION;
+            mdKind = MD_DELETION;
+        } else if (referenceBase == '-') {
+            operation = CIGAR_INSERTION;
+            mdKind = MD_MATCH;
+        } else {
+            operation = CIGAR_MATCH;
+            mdKind = readBase == referenceBase ? MD_MATCH : MD_MISMATCH;
+        }
+        if (operation == lastOperation) {
+            operationLength++;
+        } else {
+            if (operationLength > 0) {
+                cigar.add(operationLength << 4 | lastOperation);
+            }
+            operationLength = 1;
+            lastOperation = operation;
+        }
+        // insertions do not appear in the MD attribute:
+        if (mdKind != lastMdKind) {
+            if (lastMdKind == MD_MATCH && mdKindLength > 0) {
+                mismatches.append(mdKindLength);
+                mdEndsWithNumber = true;
+            }
+            mdKindLength = operation == CIGAR_INSERTION ? 0 : 1;
+            lastMdKind = mdKind;
+        } else if (operation != CIGAR_INSERTION) {
+            mdKindLength++;
+        }
+        if (mdKind == MD_DELETION) {
+            if (mdKindLength == 1) {
+                startMdBases();
+                mismatches.append('^');
+            }
+            mismatches.append(Character.toUpperCase(referenceBase));
+        } else if (mdKind == MD_MISMATCH) {
+            startMdBases();
+            mismatches.append(Character.toUpperCase(referenceBase));
+        }
+    }
+
+    /**
+     * Reference bases in the MD attribute are separated by numbers, zero when no base matches between them.
+     */
+    private void startMdBases() {
+        if (!mdEndsWithNumber) {
+            mismatches.append('0');
+        }
+        mdEndsWithNumber = false;
+    }
+
+    private void endColumns() {
+        if (operationLength > 0) {
+            cigar.add(operationLength << 4 | lastOperation);
+        }
+        if (lastMdKind == MD_MATCH && mdKindLength > 0) {
+            mismatches.append(mdKindLength);
+            mdEndsWithNumber = true;
+        }
+        if (!mdEndsWithNumber) {
+            mismatches.append('0');
+        }
+    }
+
+    private char base(final int genomeIndex, final int position, final int genomeLength) {
+        return position >= 0 && position < genomeLength ? genome.get(genomeIndex, position) : 'N';
+    }
+
+    private int genomeTargetIndex(final int targetIndex) {
+        if (targetIndex >= genomeTargetIndices.length) {
+            final int length = genomeTargetIndices.length;
+            genomeTargetIndices = IntArrays.grow(genomeTargetIndices, targetIndex + 1);
+            Arrays.fill(genomeTargetIndices, length, genomeTargetIndices.length, UNKNOWN_TARGET);
+        }
+        if (genomeTargetIndices[targetIndex] == UNKNOWN_TARGET) {
+            final MutableString targetId = targetIdentifiers.getId(targetIndex);
+            genomeTargetIndices[targetIndex] = targetId == null ? -1 : genome.getReferenceIndex(targetId.toString());
+        }
+        return genomeTargetIndices[targetIndex];
+    }
+
+    /**
+     * Append the BAM record of an alignment entry to a buffer.
+     *
+     * @param exportData data built from the entry, valid.
+     * @param record     the buffer the record is appended to.
+     */
+    public void encode(final ExportableAlignmentEntryData exportData, final ByteArrayList record) {
+        parseCigar(exportData.getCigar(), cigar);
+        final Alignments.AlignmentEntry entry = exportData.getAlignmentEntry();
+        encode(entry, hasReadGroups ? readGroup(entry) : null, cigar, exportData.getMismatches(),
+                exportData.getOriginalBases(), exportData.getReadQualities(), record);
+    }
+
+    private String readGroup(final Alignments.AlignmentEntry entry) {
+        final Alignments.ReadOriginInfo info = readOriginInfo.getInfo(entry.getReadOriginIndex());
+        return info == null ? null : info.getOriginId();
+    }
+
+    /**
+     * Append a BAM record to a buffer.
+     *
+     * @param entry      the entry that provides the position, flags, name, mapping quality, mate and attributes.
+     * @param readGroup  the read group of the record. Null removes the RG attribute when the alignment has read
+     *                   groups.
+     * @param cigar      CIGAR operations, packed as in BAM records.
+     * @param mismatches value of the MD attribute.
+     * @param bases      bases of the read.
+     * @param qualities  quality scores of the read, or an empty list when not known.
+     * @param record     the buffer the record is appended to.
+     */
+    void encode(final Alignments.AlignmentEntry entry, final String readGroup, final IntList cigar,
+                final CharSequence mismatches, final CharSequence bases, final ByteList qualities,
+                final ByteArrayList record) {
+        readName.setLength(0);
+        if (entry.hasReadName()) {
+            readName.append(entry.getReadName());
+        } else {
+            readName.append(entry.getQueryIndex());
+        }
+        int flags = entry.hasPairFlags() ? entry.getPairFlags() : 0;
+        if (entry.getMatchingReverseStrand()) {
+            flags |= SAM_REVERSE_STRAND_FLAG;
+        }
+        final int start = entry.getPosition();
+        int end = start + referenceLength(cigar);
+        if ((flags & SAM_READ_UNMAPPED_FLAG) != 0 || end <= 0) {
+            end = start + 1;
+        }
+        final int readLength = bases.length();
+        final int numQualities = qualities.size();
+        if (numQualities != 0 && numQualities != readLength) {
+            throw new RuntimeException("Mismatch between read length and quals length writing read " + readName
+                    + "; read length: " + readLength + "; quals length: " + numQualities);
+        }
+        collectAttributes(entry, readGroup, mismatches);
+
+        final int blockStart = record.size();
+        writeInt(record, 0);
+        writeInt(record, entry.getTargetIndex());
+        writeInt(record, start);
+        record.add((byte) (readName.length() + 1));
+        record.add((byte) entry.getMappingQuality());
+        writeShort(record, reg2bin(start, end));
+        writeShort(record, cigar.size());
+        writeShort(record, flags);
+        writeInt(record, readLength);
+        if (entry.hasPairAlignmentLink()) {
+            final Alignments.RelatedAlignmentEntry mate = entry.getPairAlignmentLink();
+            writeInt(record, mate.getTargetIndex());
+            writeInt(record, mate.getPosition());
+            writeInt(record, entry.hasInsertSize() ? entry.getInsertSize() : 0);
+        } else {
+            writeInt(record, -1);
+            writeInt(record, -1);
+            writeInt(record, 0);
+        }
+        writeString(record, readName);
+        record.add((byte) 0);
+        for (int i = 0; i < cigar.size(); i++) {
+            writeInt(record, cigar.getInt(i));
+        }
+        for (int i = 0; i < readLength; i += 2) {
+            final int high = baseCode(bases.charAt(i));
+            final int low = i + 1 < readLength ? baseCode(bases.charAt(i + 1)) : 0;
+            record.add((byte) (high << 4 | low));
+        }
+        if (numQualities == 0) {
+            for (int i = 0; i < readLength; i++) {
+                record.add((byte) 0xFF);
+            }
+        } else {
+            record.addElements(record.size(), qualities.toByteArray());
+        }
+        for (int i = 0; i < attributeTags.size(); i++) {
+            final int tag = attributeTags.getInt(i);
+            record.add((byte) tag);
+            record.add((byte) (tag >> 8));
+            record.addElements(record.size(), attributeValues.elements(), attributeStarts.getInt(i),
+                    attributeEnds.getInt(i) - attributeStarts.getInt(i));
+        }
+        final int blockSize = record.size() - blockStart - 4;
+        final byte[] elements = record.elements();
+        for (int i = 0; i < 4; i++) {
+            elements[blockStart + i] = (byte) (blockSize >> (8 * i));
+        }
+    }
+
+    private void collectAttributes(final Alignments.AlignmentEntry entry, final String readGroup,
+                                   final CharSequence mismatches) {
+        attributeTags.clear();
+        attributeStarts.clear();
+        attributeEnds.clear();
+        attributeValues.clear();
+        setStringAttribute("MD", mismatches);
+        for (final String bamAttribute : entry.getBamAttributesList()) {
+            setAttribute(bamAttribute);
+        }
+        if (hasReadGroups) {
+            if (readGroup == null) {
+                removeAttribute("RG");
+            } else {
+                setStringAttribute("RG", readGroup);
+            }
+        }
+    }
+
+    /**
+     * Set an attribute stored in the entry as TAG:TYPE:VALUE.
+     */
+    private void setAttribute(final String bamAttribute) {
+        final String attribute = bamAttribute.indexOf('\n') == -1 && bamAttribute.indexOf('\r') == -1 ?
+                bamAttribute : bamAttribute.replaceAll("[\n\r]", "");
+        final int tagEnd = attribute.indexOf(':');
+        final int typeEnd = attribute.indexOf(':', tagEnd + 1);
+        final String tag = tagEnd == -1 ? attribute : attribute.substring(0, tagEnd);
+        final String type = tagEnd == -1 ? "" : typeEnd == -1 ?
+                attribute.substring(tagEnd + 1) : attribute.substring(tagEnd + 1, typeEnd);
+        // trailing separators are dropped, as they are when attributes are split in tokens:
+        int valueEnd = attribute.length();
+        while (valueEnd > typeEnd + 1 && attribute.charAt(valueEnd - 1) == ':') {
+            valueEnd--;
+        }
+        final String value = typeEnd == -1 ? "" : attribute.substring(typeEnd + 1, valueEnd);
+        if ("Z".equals(type)) {
+            setStringAttribute(tag, value);
+        } else if ("i".equals(type)) {
+            setIntegerAttribute(tag, Integer.parseInt(value));
+        } else if ("A".equals(type)) {
+            final int start = startAttribute(tag);
+            attributeValues.add((byte) 'A');
+            attributeValues.add((byte) value.charAt(0));
+            endAttribute(start);
+        } else {
+            LOG.warn("Attribute type " + type + " is currently not supported, storing as string type");
+            setStringAttribute(tag, value);
+        }
+    }
+
+    private void setStringAttribute(final String tag, final CharSequence value) {
+        final int start = startAttribute(tag);
+        attributeValues.add((byte) 'Z');
+        writeString(attributeValues, value);
+        attributeValues.add((byte) 0);
+        endAttribute(start);
+    }
+
+    /**
+     * Store an integer attribute with the smallest type that holds the value, as samtools does.
+     */
+    private void setIntegerAttribute(final String tag, final int value) {
+        final int start = startAttribute(tag);
+        if (value > 65535) {
+            attributeValues.add((byte) 'i');
+            writeInt(attributeValues, value);
+        } else if (value > 32767) {
+            attributeValues.add((byte) 'S');
+            writeShort(attributeValues, value);
+        } else if (value > 255) {
+            attributeValues.add((byte) 's');
+            writeShort(attributeValues, value);
+        } else if (value > 127) {
+            attributeValues.add((byte) 'C');
+            attributeValues.add((byte) value);
+        } else if (value >= -128) {
+            attributeValues.add((byte) 'c');
+            attributeValues.add((byte) value);
+        } else if (value >= -32768) {
+            attributeValues.add((byte) 's');
+            writeShort(attributeValues, value);
+        } else {
+            attributeValues.add((byte) 'i');
+            writeInt(attributeValues, value);
+        }
+        endAttribute(start);
+    }
+
+    private int startAttribute(final String tag) {
+        final int binaryTag = binaryTag(tag);
+        final int index = attributeIndex(binaryTag);
+        if (index < attributeTags.size() && attributeTags.getInt(index) == binaryTag) {
+            // a tag set twice keeps its place and takes the last value:
+            attributeStarts.set(index, attributeValues.size());
+        } else {
+            attributeTags.add(index, binaryTag);
+            attributeStarts.add(index, attributeValues.size());
+            attributeEnds.add(index, 0);
+        }
+        return index;
+    }
+
+    private void endAttribute(final int index) {
+        attributeEnds.set(index, attributeValues.size());
+    }
+
+    private void removeAttribute(final String tag) {
+        final int binaryTag = binaryTag(tag);
+        final int index = attributeIndex(binaryTag);
+        if (index < attributeTags.size() && attributeTags.getInt(index) == binaryTag) {
+            attributeTags.removeInt(index);
+            attributeStarts.removeInt(index);
+            attributeEnds.removeInt(index);
+        }
+    }
+
+    /**
+     * Return the index of the first attribute whose tag is not less than a tag.
+     */
+    private int attributeIndex(final int binaryTag) {
+        int index = 0;
+        while (index < attributeTags.size() && attributeTags.getInt(index) < binaryTag) {
+            index++;
+        }
+        return index;
+    }
+
+    private static int binaryTag(final String tag) {
+        if (tag.length() != 2) {
+            throw new IllegalArgumentException("String tag does not have length() == 2: " + tag);
+        }
+        return tag.charAt(1) << 8 | tag.charAt(0);
+    }
+
+    /**
+     * Parse a CIGAR string into operations packed as in BAM records.
+     *
+     * @param cigarString the CIGAR string.
+     * @param cigar       the list the operations are stored in, cleared first.
+     */
+    static void parseCigar(final CharSequence cigarString, final IntList cigar) {
+        cigar.clear();
+        int length = 0;
+        for (int i = 0; i < cigarString.length(); i++) {
+            final char c = cigarString.charAt(i);
+            if (c >= '0' && c <= '9') {
+                length = length * 10 + c - '0';
+            } else {
+                final int operation = CIGAR_OPERATIONS.indexOf(c);
+                if (operation == -1) {
+                    throw new IllegalArgumentException("Malformed CIGAR string: " + cigarString);
+                }
+                cigar.add(length << 4 | operation);
+                length = 0;
+            }
+        }
+    }
+
+    /**
+     * Pack a skipped region (N) CIGAR operation.
+     */
+    static int skippedRegion(final int length) {
+        return length << 4 | CIGAR_SKIPPED_REGION;
+    }
+
+    /**
+     * Return the code character of a packed CIGAR operation.
+     */
+    static char operationCode(final int operation) {
+        return CIGAR_OPERATIONS.charAt(operation & 0xF);
+    }
+
+    private static int referenceLength(final IntList cigar) {
+        int length = 0;
+        for (int i = 0; i < cigar.size(); i++) {
+            switch (cigar.getInt(i) & 0xF) {
+                case 0:
+                case 2:
+                case 3:
+                case 7:
+                case 8:
+                    length += cigar.getInt(i) >>> 4;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return length;
+    }
+
+    private static int baseCode(final char base) {
+        final int code = base < BASE_CODES.length ? BASE_CODES[base] : -1;
+        if (code == -1) {
+            throw new IllegalArgumentException("Base " + base + " cannot be stored in a BAM record.");
+        }
+        return code;
+    }
+
+    /**
+     * Compute the BAM index bin of a zero-based, half-open interval, as specified in the SAM format.
+     */
+    private static int reg2bin(final int start, final int end) {
+        final int last = end - 1;
+        if (start >> 14 == last >> 14) {
+            return ((1 << 15) - 1) / 7 + (start >> 14);
+        }
+        if (start >> 17 == last >> 17) {
+            return ((1 << 12) - 1) / 7 + (start >> 17);
+        }
+        if (start >> 20 == last >> 20) {
+            return ((1 << 9) - 1) / 7 + (start >> 20);
+        }
+        if (start >> 23 == last >> 23) {
+            return ((1 << 6) - 1) / 7 + (start >> 23);
+        }
+        if (start >> 26 == last >> 26) {
+            return ((1 << 3) - 1) / 7 + (start >> 26);
+        }
+        return 0;
+    }
+
+    private static void writeString(final ByteArrayList buffer, final CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            buffer.add((byte) value.charAt(i));
+        }
+    }
+
+    private static void writeShort(final ByteArrayList buffer, final int value) {
+        buffer.add((byte) value);
+        buffer.add((byte) (value >> 8));
+    }
+
+    static void writeInt(final ByteArrayList buffer, final int value) {
+        buffer.add((byte) value);
+        buffer.add((byte) (value >> 8));
+        buffer.add((byte) (value >> 16));
+        buffer.add((byte) (value >> 24));
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import edu.cornell.med.icb.goby.util.ParallelBlockCompressedOutputStream;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntHeapPriorityQueue;
+import it.unimi.dsi.fastutil.objects.ObjectArrays;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTextHeaderCodec;
+import net.sf.samtools.util.BinaryCodec;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+
+/**
+ * Writes BAM records encoded by {@link BAMRecordEncoder} to a BAM file, deflating its BGZF blocks on a pool of
+ * threads. When the records are sorted, a buffer of records restores the order of records written slightly out of
+ * order, such as spliced alignments, as {@link BufferedSortingSamBamWriter} does for SAMRecords.
+ */
+public class BAMRecordWriter implements Closeable {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Logger LOG = Logger.getLogger(BAMRecordWriter.class);
+
+    private static final byte[] BAM_MAGIC = {'B', 'A', 'M', 1};
+    private static final int DEFAULT_CAPACITY = 1000;
+
+    private final OutputStream output;
+    private final boolean sorted;
+    /**
+     * Slots of the buffered records, ordered by genomic position.
+     */
+    private final IntHeapPriorityQueue heap;
+    private final IntArrayList freeSlots = new IntArrayList();
+    private byte[][] records = new byte[DEFAULT_CAPACITY + 1][];
+    private int[] targetIndices = new int[DEFAULT_CAPACITY + 1];
+    private int[] positions = new int[DEFAULT_CAPACITY + 1];
+    private int numSlots;
+    /**
+     * The maximum target index seen so far.
+     */
+    private int frontTargetIndex;
+    /**
+     * The maximum position seen so far on the targetIndex.
+     */
+    private int frontPosition;
+    private boolean check = true;
+
+    /**
+     * Create a BAM file and write its header.
+     *
+     * @param file       the file to write.
+     * @param header     the header of the file. The sort order is stated in the header.
+     * @param sorted     true when the records are sorted by genomic position.
+     * @param numThreads number of threads used to deflate BGZF blocks.
+     * @throws IOException if the file cannot be written.
+     */
+    public BAMRecordWriter(final File file, final SAMFileHeader header, final boolean sorted, final int numThreads)
+            throws IOException {
+        super();
+        this.sorted = sorted;
+        output = numThreads > 1 ? new ParallelBlockCompressedOutputStream(file, numThreads) :
+                new BlockCompressedOutputStream(file);
+        heap = new IntHeapPriorityQueue(DEFAULT_CAPACITY, new AbstractIntComparator() {
+            @Override
+            public int compare(final int a, final int b) {
+                if (targetIndices[a] == targetIndices[b]) {
+                    return positions[a] - positions[b];
+                } else {
+                    return targetIndices[a] - targetIndices[b];
+                }
+            }
+        });
+        writeHeader(header);
+    }
+
+    private void writeHeader(final SAMFileHeader header) {
+        // samtools writers state the sort order, unsorted by default:
+        header.setSortOrder(header.getSortOrder());
+        final StringWriter headerText = new StringWriter();
+        new SAMTextHeaderCodec().encode(headerText, header);
+        final BinaryCodec codec = new BinaryCodec(output);
+        codec.writeBytes(BAM_MAGIC);
+        codec.writeString(headerText.toString(), true, false);
+        codec.writeInt(header.getSequenceDictionary().size());
+        for (final SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+            codec.writeString(sequence.getSequenceName(), true, true);
+            codec.writeInt(sequence.getSequenceLength());
+        }
+    }
+
+    /**
+     * Write a record.
+     *
+     * @param buffer the buffer that holds the record.
+     * @param offset the offset of the record in the buffer, where its block size is stored.
+     * @throws IOException if the record cannot be written.
+     */
+    public void addRecord(final byte[] buffer, final int offset) throws IOException {
+        final int length = 4 + readInt(buffer, offset);
+        if (!sorted) {
+            output.write(buffer, offset, length);
+            return;
+        }
+        while (heap.size() > DEFAULT_CAPACITY) {
+            writeFirst();
+        }
+        final int slot = allocateSlot();
+        if (records[slot] == null || records[slot].length < length) {
+            records[slot] = new byte[Math.max(length, 256)];
+        }
+        System.arraycopy(buffer, offset, records[slot], 0, length);
+        targetIndices[slot] = readInt(buffer, offset + 4);
+        positions[slot] = readInt(buffer, offset + 8);
+        heap.enqueue(slot);
+    }
+
+    private void writeFirst() throws IOException {
+        final int slot = heap.dequeueInt();
+        checkFront(slot);
+        output.write(records[slot], 0, 4 + readInt(records[slot], 0));
+        freeSlots.add(slot);
+    }
+
+    private void checkFront(final int slot) {
+        if (check) {
+            final int targetIndex = targetIndices[slot];
+            final int position = positions[slot];
+            if (targetIndex < frontTargetIndex || targetIndex == frontTargetIndex && position < frontPosition) {
+                // we detected an entry that occurs before the front of dequeued entries. We failed to restore sort order
+                LOG.warn("Local sorting strategy failed to restore sort order. The destination will be unsorted. You must sort the output manually to restore sort order.");
+                // no need to check anymore:
+                check = false;
+            }
+            if (frontTargetIndex != targetIndex) {
+                frontPosition = 0;
+            }
+            frontTargetIndex = Math.max(frontTargetIndex, targetIndex);
+            frontPosition = Math.max(frontPosition, position);
+        }
+    }
+
+    private int allocateSlot() {
+        if (!freeSlots.isEmpty()) {
+            return freeSlots.popInt();
+        }
+        if (numSlots == records.length) {
+            records = ObjectArrays.grow(records, numSlots + 1);
+            targetIndices = IntArrays.grow(targetIndices, numSlots + 1);
+            positions = IntArrays.grow(positions, numSlots + 1);
+        }
+        return numSlots++;
+    }
+
+    private static int readInt(final byte[] buffer, final int offset) {
+        return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8 | (buffer[offset + 2] & 0xFF) << 16
+                | (buffer[offset + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Write the buffered records and close the file.
+     *
+     * @throws IOException if the records cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        while (!heap.isEmpty()) {
+            writeFirst();
+        }
+        output.close();
+    }
+}
@@ -0,0 +1,580 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
+import edu.cornell.med.icb.goby.modes.CompactToSAMMode;
+import edu.cornell.med.icb.goby.reads.QualityEncoding;
+import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
+import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayFIFOQueue;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import net.sf.samtools.BAMIndexer;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports regions of a sorted and indexed Goby alignment to coordinate-sorted BAM files, written with their BAI
+ * index. The exporter keeps the genome, the SAM header and the alignment readers open across exports, so that each
+ * export only reads the chunks of the alignment that hold its regions: readers are positioned on a region with the
+ * alignment index. Regions are exported in parallel, one region per thread, and written to the file in order.
+ * <p/>
+ * As with queries of BAM files, entries are exported when they overlap a region, and regions are defined by
+ * zero-based positions, start and end inclusive. A spliced alignment is exported when it overlaps a region between
+ * the start of its first fragment and the end of its last fragment, even if its fragments lie outside the region.
+ * Entries that overlap several regions are only exported with the first.
+ * <p/>
+ * Entries that start before a region may reach into it. The exporter divides reference sequences into windows of
+ * 16,384 positions, as the linear index of BAM files does, and records the last position reached by the entries
+ * that start in each window. Windows are read once, by the first export that looks back over them, and an export
+ * only reads again the windows whose entries reach its region.
+ */
+public class BAMRegionExporter implements Closeable {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Logger LOG = Logger.getLogger(BAMRegionExporter.class);
+    /**
+     * Windows span 2^WINDOW_BITS positions of a reference sequence.
+     */
+    private static final int WINDOW_BITS = 14;
+
+    private final String basename;
+    private final RandomAccessSequenceInterface genome;
+    private final SAMFileHeader header;
+    private final DoubleIndexedIdentifier targetIdentifiers;
+    private final int numTargets;
+    /**
+     * For each reference sequence, the last position reached by the entries that start in each window, or -1 when no
+     * entry starts in the window. Spliced fragments reach at least the fragment they are linked to forward.
+     */
+    private final IntArrayList[] windowReaches;
+    /**
+     * Read origins of the alignment, or null when the alignment has none.
+     */
+    private final ReadOriginInfo readOriginInfo;
+    private final int numThreads;
+    private final ExecutorService executor;
+    private final ThreadLocal<RegionEncoder> encoders = new ThreadLocal<RegionEncoder>() {
+        @Override
+        protected RegionEncoder initialValue() {
+            return new RegionEncoder();
+        }
+    };
+    /**
+     * Readers not in use by a thread.
+     */
+    private final ObjectArrayList<AlignmentReaderImpl> idleReaders = new ObjectArrayList<AlignmentReaderImpl>();
+    private final ObjectList<AlignmentReaderImpl> readers = new ObjectArrayList<AlignmentReaderImpl>();
+
+    /**
+     * Open an alignment for export.
+     *
+     * @param basename   basename of the alignment, which must be sorted and indexed.
+     * @param genome     the genome the alignment was made against. The genome is shared by the threads of the
+     *                   exporter.
+     * @param numThreads number of threads used to export regions.
+     * @throws IOException if the alignment cannot be read.
+     */
+    public BAMRegionExporter(final String basename, final RandomAccessSequenceInterface genome, final int numThreads)
+            throws IOException {
+        super();
+        this.basename = basename;
+        this.genome = genome;
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(basename);
+        reader.readHeader();
+        if (!reader.isSorted() || !reader.isIndexed()) {
+            reader.close();
+            throw new UnsupportedOperationException("The alignment must be sorted and indexed to export regions.");
+        }
+        header = CompactToSAMMode.buildSamHeader(reader);
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        targetIdentifiers = new DoubleIndexedIdentifier(reader.getTargetIdentifiers());
+        numTargets = targetIdentifiers.size();
+        readOriginInfo = reader.getReadOriginInfo().size() > 0 ? reader.getReadOriginInfo() : null;
+        windowReaches = new IntArrayList[numTargets];
+        for (int targetIndex = 0; targetIndex < numTargets; targetIndex++) {
+            windowReaches[targetIndex] = new IntArrayList();
+        }
+        readers.add(reader);
+        idleReaders.add(reader);
+        this.numThreads = Math.max(1, numThreads);
+        executor = Executors.newFixedThreadPool(this.numThreads);
+    }
+
+    /**
+     * Return the last position reached by the entries that start in the first windows of a reference sequence,
+     * reading the windows that were not read before.
+     *
+     * @param numWindows number of windows, from the start of the reference sequence.
+     */
+    private int[] getWindowReaches(final AlignmentReaderImpl reader, final int targetIndex, final int numWindows)
+            throws IOException {
+        final IntArrayList reaches = windowReaches[targetIndex];
+        synchronized (reaches) {
+            if (reaches.size() < numWindows) {
+                final int start = reaches.size() << WINDOW_BITS;
+                final int end = numWindows << WINDOW_BITS;
+                reaches.size(numWindows);
+                Arrays.fill(reaches.elements(), start >> WINDOW_BITS, numWindows, -1);
+                reader.reposition(targetIndex, start);
+                while (reader.hasNext()) {
+                    final Alignments.AlignmentEntry entry = reader.next();
+                    if (compare(entry.getTargetIndex(), entry.getPosition(), targetIndex, start) < 0) {
+                        continue;
+                    }
+                    if (compare(entry.getTargetIndex(), entry.getPosition(), targetIndex, end) >= 0) {
+                        break;
+                    }
+                    final int window = entry.getPosition() >> WINDOW_BITS;
+                    reaches.set(window, Math.max(reaches.getInt(window), reach(entry)));
+                }
+            }
+            return Arrays.copyOf(reaches.elements(), numWindows);
+        }
+    }
+
+    /**
+     * Return the last position covered by an entry, or the position of the fragment it is linked to forward on the
+     * same reference sequence, whichever is larger.
+     */
+    private static int reach(final Alignments.AlignmentEntry entry) {
+        int reach = Math.max(entry.getPosition(), entry.getPosition() + entry.getTargetAlignedLength() - 1);
+        if (entry.hasSplicedForwardAlignmentLink()) {
+            final Alignments.RelatedAlignmentEntry link = entry.getSplicedForwardAlignmentLink();
+            if (link.getTargetIndex() == entry.getTargetIndex()) {
+                reach = Math.max(reach, link.getPosition());
+            }
+        }
+        return reach;
+    }
+
+    public SAMFileHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Export regions to a BAM file, and index the file. The index is written next to the BAM file, with the .bai
+     * extension appended to its name. Overlapping regions are merged.
+     *
+     * @param ranges the regions to export, whose reference indices are set.
+     * @param output the BAM file to write.
+     * @throws IOException if the alignment cannot be read or the file cannot be written.
+     */
+    public void export(final List<GenomicRange> ranges, final File output) throws IOException {
+        final ObjectList<GenomicRange> regions = mergeRegions(ranges);
+        final ObjectArrayFIFOQueue<Future<ExportedRegion>> pending =
+                new ObjectArrayFIFOQueue<Future<ExportedRegion>>();
+        final BAMRecordWriter writer = new BAMRecordWriter(output, header, false, numThreads);
+        try {
+            int next = 0;
+            while (next < regions.size() || !pending.isEmpty()) {
+                while (next < regions.size() && pending.size() < 2 * numThreads) {
+                    final GenomicRange previous = next > 0 ? regions.get(next - 1) : null;
+                    final GenomicRange region = regions.get(next++);
+                    pending.enqueue(executor.submit(new Callable<ExportedRegion>() {
+                        @Override
+                        public ExportedRegion call() throws IOException {
+                            return exportRegion(region, previous);
+                        }
+                    }));
+                }
+                final ExportedRegion exported = get(pending.dequeue());
+                for (final int record : exported.order) {
+                    writer.addRecord(exported.data, exported.offsets[record]);
+                }
+            }
+        } finally {
+            while (!pending.isEmpty()) {
+                pending.dequeue().cancel(true);
+            }
+            writer.close();
+        }
+        writeIndex(output);
+    }
+
+    /**
+     * Index a BAM file. Picard indexes records read from the file, which know their location in the file.
+     */
+    private void writeIndex(final File output) {
+        final SAMFileReader reader = new SAMFileReader(output);
+        try {
+            reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+            reader.enableFileSource(true);
+            final BAMIndexer indexer = new BAMIndexer(new File(output.getPath() + ".bai"), header);
+            for (final SAMRecord record : reader) {
+                indexer.processAlignment(record);
+            }
+            indexer.finish();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static ExportedRegion get(final Future<ExportedRegion> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GobyRuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new GobyRuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Sort regions and merge those that overlap.
+     */
+    private ObjectList<GenomicRange> mergeRegions(final List<GenomicRange> ranges) {
+        final ObjectList<GenomicRange> sorted = new ObjectArrayList<GenomicRange>();
+        for (final GenomicRange range : ranges) {
+            if (range.startReferenceIndex < 0 || range.startReferenceIndex >= numTargets
+                    || compare(range.endReferenceIndex, range.endPosition,
+                    range.startReferenceIndex, range.startPosition) < 0) {
+                throw new IllegalArgumentException("Invalid region: " + range);
+            }
+            sorted.add(new GenomicRange(range.startReferenceIndex, range.startPosition, range.endReferenceIndex,
+                    range.endPosition));
+        }
+        Collections.sort(sorted, new Comparator<GenomicRange>() {
+            @Override
+            public int compare(final GenomicRange a, final GenomicRange b) {
+                return BAMRegionExporter.compare(a.startReferenceIndex, a.startPosition, b.startReferenceIndex,
+                        b.startPosition);
+            }
+        });
+        final ObjectList<GenomicRange> regions = new ObjectArrayList<GenomicRange>();
+        for (final GenomicRange range : sorted) {
+            final GenomicRange last = regions.isEmpty() ? null : regions.get(regions.size() - 1);
+            if (last != null && compare(range.startReferenceIndex, range.startPosition, last.endReferenceIndex,
+                    last.endPosition) <= 0) {
+                if (compare(range.endReferenceIndex, range.endPosition, last.endReferenceIndex,
+                        last.endPosition) > 0) {
+                    last.endReferenceIndex = range.endReferenceIndex;
+                    last.endPosition = range.endPosition;
+                }
+            } else {
+                regions.add(range);
+            }
+        }
+        return regions;
+    }
+
+    private static int compare(final int targetIndexA, final int positionA, final int targetIndexB,
+                               final int positionB) {
+        if (targetIndexA != targetIndexB) {
+            return targetIndexA < targetIndexB ? -1 : 1;
+        }
+        return positionA < positionB ? -1 : positionA == positionB ? 0 : 1;
+    }
+
+    /**
+     * Return true if the positions from start to end, exclusive, of a reference sequence overlap a region. Empty
+     * alignments cover their start.
+     */
+    private static boolean overlaps(final int targetIndex, final int start, final int end, final GenomicRange region) {
+        return compare(targetIndex, Math.max(start, end - 1), region.startReferenceIndex, region.startPosition) >= 0
+                && compare(targetIndex, start, region.endReferenceIndex, region.endPosition) <= 0;
+    }
+
+    /**
+     * Return true if an alignment that covers the positions from start to end, exclusive, of a reference sequence
+     * is exported with a region: it overlaps the region, and was not exported with the previous region.
+     */
+    private static boolean isExported(final int targetIndex, final int start, final int end,
+                                      final GenomicRange region, final GenomicRange previous) {
+        return overlaps(targetIndex, start, end, region)
+                && (previous == null || !overlaps(targetIndex, start, end, previous));
+    }
+
+    private ExportedRegion exportRegion(final GenomicRange region, final GenomicRange previous)
+            throws IOException {
+        AlignmentReaderImpl reader = null;
+        synchronized (idleReaders) {
+            if (!idleReaders.isEmpty()) {
+                reader = idleReaders.pop();
+            }
+        }
+        if (reader == null) {
+            reader = new AlignmentReaderImpl(basename);
+            synchronized (idleReaders) {
+                readers.add(reader);
+            }
+        }
+        try {
+            return encoders.get().encode(reader, region, previous);
+        } finally {
+            synchronized (idleReaders) {
+                idleReaders.push(reader);
+            }
+        }
+    }
+
+    /**
+     * Close the readers of the alignment and stop the threads of the exporter.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        synchronized (idleReaders) {
+            for (final AlignmentReaderImpl reader : readers) {
+                reader.close();
+            }
+            readers.clear();
+            idleReaders.clear();
+        }
+    }
+
+    /**
+     * Encodes the entries of regions, on one thread.
+     */
+    private final class RegionEncoder {
+        private final ExportableAlignmentEntryData exportData;
+        private final BAMRecordEncoder encoder;
+        private final ByteArrayList fragment = new ByteArrayList();
+
+        private RegionEncoder() {
+            exportData = new ExportableAlignmentEntryData(genome, QualityEncoding.PHRED, targetIdentifiers);
+            if (readOriginInfo != null) {
+                exportData.setReadGroupInfo(readOriginInfo);
+            }
+            encoder = new BAMRecordEncoder(readOriginInfo, genome, targetIdentifiers, QualityEncoding.PHRED);
+        }
+
+        private ExportedRegion encode(final AlignmentReaderImpl reader, final GenomicRange region,
+                                      final GenomicRange previous) throws IOException {
+            final ByteArrayList data = new ByteArrayList();
+            final IntArrayList offsets = new IntArrayList();
+            final PendingSpliceFragments spliceFragments = new PendingSpliceFragments();
+            final int targetIndex = region.startReferenceIndex;
+            final int regionWindow = region.startPosition >> WINDOW_BITS;
+            if (regionWindow > 0) {
+                // the entries of earlier windows, when they reach the region:
+                final int[] reaches = getWindowReaches(reader, targetIndex, regionWindow);
+                int window = 0;
+                while (window < regionWindow) {
+                    if (reaches[window] < region.startPosition) {
+                        window++;
+                        continue;
+                    }
+                    final int first = window;
+                    while (window < regionWindow && reaches[window] >= region.startPosition) {
+                        window++;
+                    }
+                    addEntries(reader, targetIndex, first << WINDOW_BITS, targetIndex, (window << WINDOW_BITS) - 1,
+                            spliceFragments, region, previous, data, offsets);
+                }
+            }
+            addEntries(reader, targetIndex, regionWindow << WINDOW_BITS, region.endReferenceIndex,
+                    region.endPosition, spliceFragments, region, previous, data, offsets);
+            completeSplices(reader, spliceFragments, region, previous, data, offsets);
+            return new ExportedRegion(data.elements(), offsets.toIntArray());
+        }
+
+        /**
+         * Export the entries that start between two locations, inclusive, when they belong to the region.
+         */
+        private void addEntries(final AlignmentReaderImpl reader, final int startTargetIndex, final int startPosition,
+                                final int endTargetIndex, final int endPosition,
+                                final PendingSpliceFragments spliceFragments, final GenomicRange region,
+                                final GenomicRange previous, final ByteArrayList data, final IntArrayList offsets)
+                throws IOException {
+            reader.reposition(startTargetIndex, startPosition);
+            while (reader.hasNext()) {
+                final Alignments.AlignmentEntry entry = reader.next();
+                if (compare(entry.getTargetIndex(), entry.getPosition(), startTargetIndex, startPosition) < 0) {
+                    continue;
+                }
+                if (compare(entry.getTargetIndex(), entry.getPosition(), endTargetIndex, endPosition) > 0) {
+                    break;
+                }
+                if (entry.hasSplicedForwardAlignmentLink() || entry.hasSplicedBackwardAlignmentLink()) {
+                    addFragment(entry, spliceFragments, region, previous, data, offsets);
+                    continue;
+                }
+                if (!isExported(entry.getTargetIndex(), entry.getPosition(),
+                        entry.getPosition() + entry.getTargetAlignedLength(), region, previous)) {
+                    continue;
+                }
+                final int offset = data.size();
+                if (encoder.encode(entry, data)) {
+                    offsets.add(offset);
+                    continue;
+                }
+                exportData.buildFrom(entry);
+                if (exportData.isInvalid()) {
+                    LOG.warn(exportData.toString());
+                } else {
+                    offsets.add(offset);
+                    encoder.encode(exportData, data);
+                }
+            }
+        }
+
+        /**
+         * Store a fragment of a spliced alignment, and export the alignment if the fragment completes it and the
+         * alignment belongs to the region.
+         */
+        private void addFragment(final Alignments.AlignmentEntry entry, final PendingSpliceFragments spliceFragments,
+                                 final GenomicRange region, final GenomicRange previous, final ByteArrayList data,
+                                 final IntArrayList offsets) {
+            exportData.buildFrom(entry);
+            fragment.clear();
+            PendingSpliceFragments.writeFragment(exportData, fragment);
+            if (!spliceFragments.add(entry, fragment.elements(), 0,
+                    exportData.isInvalid() ? exportData.toString() : null)) {
+                return;
+            }
+            if (!isExported(spliceFragments.getCompletedTargetIndex(), spliceFragments.getCompletedStartPosition(),
+                    spliceFragments.getCompletedEndPosition(), region, previous)) {
+                spliceFragments.discardCompleted();
+                return;
+            }
+            final int offset = data.size();
+            if (spliceFragments.exportCompleted(encoder, data)) {
+                offsets.add(offset);
+            } else {
+                LOG.warn(spliceFragments.getInvalidMessage());
+            }
+        }
+
+        /**
+         * Read the fragments linked to the fragments still waiting for the rest of their alignment, which lie
+         * outside the entries read for the region, until the alignments are complete.
+         */
+        private void completeSplices(final AlignmentReaderImpl reader, final PendingSpliceFragments spliceFragments,
+                                     final GenomicRange region, final GenomicRange previous,
+                                     final ByteArrayList data, final IntArrayList offsets) throws IOException {
+            final ObjectList<Alignments.AlignmentEntry> waiting = new ObjectArrayList<Alignments.AlignmentEntry>();
+            // fragments are looked for once, links to missing fragments are not followed again:
+            final LongSet searched = new LongOpenHashSet();
+            boolean found = true;
+            while (found && spliceFragments.size() > 0) {
+                found = false;
+                waiting.clear();
+                spliceFragments.getFragments(waiting);
+                for (final Alignments.AlignmentEntry entry : waiting) {
+                    final int queryIndex = entry.getQueryIndex();
+                    if (!spliceFragments.contains(queryIndex, entry.getFragmentIndex())) {
+                        // completed by a fragment read for another entry:
+                        continue;
+                    }
+                    for (int i = 0; i < 2; i++) {
+                        final boolean forward = i == 0;
+                        if (forward ? !entry.hasSplicedForwardAlignmentLink() :
+                                !entry.hasSplicedBackwardAlignmentLink()) {
+                            continue;
+                        }
+                        final Alignments.RelatedAlignmentEntry link = forward ?
+                                entry.getSplicedForwardAlignmentLink() : entry.getSplicedBackwardAlignmentLink();
+                        if (spliceFragments.contains(queryIndex, link.getFragmentIndex())
+                                || !searched.add((long) queryIndex << 32 | link.getFragmentIndex())) {
+                            continue;
+                        }
+                        final Alignments.AlignmentEntry linked = readFragment(reader, queryIndex, link);
+                        if (linked != null) {
+                            found = true;
+                            addFragment(linked, spliceFragments, region, previous, data, offsets);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Read the fragment of a query at the location of a link.
+         *
+         * @return the fragment, or null if the alignment does not have it.
+         */
+        private Alignments.AlignmentEntry readFragment(final AlignmentReaderImpl reader, final int queryIndex,
+                                                       final Alignments.RelatedAlignmentEntry link)
+                throws IOException {
+            reader.reposition(link.getTargetIndex(), link.getPosition());
+            while (reader.hasNext()) {
+                final Alignments.AlignmentEntry entry = reader.next();
+                final int order = compare(entry.getTargetIndex(), entry.getPosition(), link.getTargetIndex(),
+                        link.getPosition());
+                if (order > 0) {
+                    break;
+                }
+                if (order == 0 && entry.getQueryIndex() == queryIndex
+                        && entry.getFragmentIndex() == link.getFragmentIndex()) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The BAM records of a region, and the order in which they must be written.
+     */
+    private static final class ExportedRegion {
+        private final byte[] data;
+        private final int[] offsets;
+        private final int[] order;
+
+        private ExportedRegion(final byte[] data, final int[] offsets) {
+            this.data = data;
+            this.offsets = offsets;
+            order = new int[offsets.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            // merged splices are encoded when their last fragment is read, after records that start later:
+            IntArrays.mergeSort(order, new AbstractIntComparator() {
+                @Override
+                public int compare(final int a, final int b) {
+                    return BAMRegionExporter.compare(readInt(offsets[a] + 4), readInt(offsets[a] + 8),
+                            readInt(offsets[b] + 4), readInt(offsets[b] + 8));
+                }
+            });
+        }
+
+        private int readInt(final int offset) {
+            return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8 | (data[offset + 2] & 0xFF) << 16
+                    | (data[offset + 3] & 0xFF) << 24;
+        }
+    }
+}
@@ -20,17 +20,19 @@ package edu.cornell.med.icb.goby.alignments;
 
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectHeapPriorityQueue;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.Comparator;
 import java.util.Properties;
 
 /**
  * An an implementation of AlignmentWriter that buffers entries up to a certain capacity and ensures
- * entries in the buffer are sorted by targetIndex/position before they are written to disk.
+ * entries in the buffer are sorted by targetIndex/position before they are written to disk. Entries are also
+ * written as soon as they are more than windowLength positions behind the last entry appended, since the input
+ * is expected to be only locally out of order. When the input moves to the next target, the entries of the previous
+ * target stay in the buffer until the next target has advanced by windowLength positions, so that late entries of
+ * either target are still sorted.
  *
  * @author Fabien Campagne
  *         Date: 4/17/12
@@ -43,9 +45,9 @@ public class BufferedSortingAlignmentWriter implements AlignmentWriter {
     private static final Logger LOG = Logger.getLogger(BufferedSortingAlignmentWriter.class);
 
     private final AlignmentWriter delegate;
-    private final ObjectHeapPriorityQueue<Alignments.AlignmentEntry> heap;
+    private final LocalSortBuffer buffer;
     private static final int DEFAULT_CAPACITY = 1000;
-    private static final Comparator<? super Alignments.AlignmentEntry> GENOMIC_POSITION_COMPARATOR = new AlignmentPositionComparator();
+    private static final int DEFAULT_WINDOW_LENGTH = 10000;
     private int capacity;
     /**
      * The maximum target index seen so far.
@@ -58,9 +60,20 @@ public class BufferedSortingAlignmentWriter implements AlignmentWriter {
     private boolean check = true;
 
     public BufferedSortingAlignmentWriter(final AlignmentWriter destination, final int capacity) {
+        this(destination, capacity, DEFAULT_WINDOW_LENGTH);
+    }
+
+    /**
+     * Create a writer that sorts entries within a window of positions.
+     *
+     * @param destination  where sorted entries are written.
+     * @param capacity     maximum number of entries kept in the buffer.
+     * @param windowLength number of consecutive positions entries can be sorted within.
+     */
+    public BufferedSortingAlignmentWriter(final AlignmentWriter destination, final int capacity, final int windowLength) {
         this.capacity = capacity;
         this.delegate = destination;
-        this.heap = new ObjectHeapPriorityQueue<Alignments.AlignmentEntry>(capacity, GENOMIC_POSITION_COMPARATOR);
+        this.buffer = new LocalSortBuffer(windowLength);
     }
 
     public BufferedSortingAlignmentWriter(final AlignmentWriter destination) {
@@ -69,13 +82,24 @@ public class BufferedSortingAlignmentWriter implements AlignmentWriter {
 
     @Override
     public void appendEntry(final Alignments.AlignmentEntry entry) throws IOException {
-
-        while (heap.size() > capacity) {
-            final Alignments.AlignmentEntry queueEntry = heap.dequeue();
+        final int targetIndex = entry.getTargetIndex();
+        final int position = entry.getPosition();
+        // write entries that are too far behind the new entry to still be reordered with it:
+        while (buffer.size() > capacity || buffer.isAfterWindow(targetIndex, position)) {
+            final Alignments.AlignmentEntry queueEntry = buffer.dequeue();
             checkFront(queueEntry);
             delegate.appendEntry(queueEntry);
         }
-        heap.enqueue(entry);
+        buffer.enqueue(entry);
+    }
+
+    /**
+     * Return the number of entries that could not be sorted in the window and took the slower overflow path.
+     *
+     * @return number of out-of-window entries.
+     */
+    public long getOverflowCount() {
+        return buffer.getOverflowCount();
     }
 
     private void checkFront(Alignments.AlignmentEntry entry) {
@@ -100,11 +124,14 @@ public class BufferedSortingAlignmentWriter implements AlignmentWriter {
 
     @Override
     public void close() throws IOException {
-        while (!heap.isEmpty()) {
-            final Alignments.AlignmentEntry queueEntry = heap.dequeue();
+        while (!buffer.isEmpty()) {
+            final Alignments.AlignmentEntry queueEntry = buffer.dequeue();
             checkFront(queueEntry);
             delegate.appendEntry(queueEntry);
         }
+        if (buffer.getOverflowCount() > 0) {
+            LOG.info(String.format("%d entries were out of the local sorting window.", buffer.getOverflowCount()));
+        }
         delegate.close();
     }
 
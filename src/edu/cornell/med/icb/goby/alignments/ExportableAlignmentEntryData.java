@@ -374,6 +374,38 @@ public class ExportableAlignmentEntryData {
         return qualities;
     }
 
+    /**
+     * The CIGAR, without conversion to a String.
+     */
+    MutableString getCigar() {
+        return cigarString;
+    }
+
+    /**
+     * The MD:Z mismatch string, without conversion to a String.
+     */
+    MutableString getMismatches() {
+        return mismatchString;
+    }
+
+    /**
+     * The original read bases, without conversion to a String.
+     */
+    MutableString getOriginalBases() {
+        return readBasesOriginal;
+    }
+
+    int getQueryLength() {
+        return queryLength;
+    }
+
+    /**
+     * The zero-based position that follows the end of the alignment on the target.
+     */
+    int getEndTargetPosition() {
+        return endTargetPositionZeroBased;
+    }
+
     /**
      * Reverse complement a base. Likely only used during tests.
      *
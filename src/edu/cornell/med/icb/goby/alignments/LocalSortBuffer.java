@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.objects.ObjectArrays;
+import it.unimi.dsi.fastutil.objects.ObjectHeapPriorityQueue;
+
+import java.util.Arrays;
+
+/**
+ * Re-sorts alignment entries that arrive almost sorted by targetIndex/position. Entries are kept in a ring of
+ * buckets, one bucket per genomic position in a window that starts at the smallest buffered position. Enqueuing an
+ * entry inside the window and dequeuing the smallest entry are O(1) operations (amortized over the positions the
+ * window slides by). Entries within a bucket are returned in the order they were enqueued.
+ * <p/>
+ * Entries that do not fit in the window (on a different target, before the start of the window or too far after it)
+ * are stored in an overflow priority queue. The number of such entries is reported by {@link #getOverflowCount()}.
+ * Entries are always dequeued in sort order, whichever path they took.
+ */
+public class LocalSortBuffer {
+    private static final AlignmentPositionComparator GENOMIC_POSITION_COMPARATOR = new AlignmentPositionComparator();
+    private static final int NO_SLOT = -1;
+
+    private final int ringSize;
+    private final int ringMask;
+    /**
+     * First and last slot of the entries stored at each position of the window, indexed by position modulo ringSize.
+     */
+    private final int[] bucketHeads;
+    private final int[] bucketTails;
+    /**
+     * Slots hold an entry and the index of the next slot in the same bucket (or in the free list).
+     */
+    private Alignments.AlignmentEntry[] slotEntries = new Alignments.AlignmentEntry[0];
+    private int[] slotNext = IntArrays.EMPTY_ARRAY;
+    private int freeSlot = NO_SLOT;
+    private int numSlots;
+
+    private int ringCount;
+    /**
+     * Target index of the entries in the ring.
+     */
+    private int windowTargetIndex;
+    /**
+     * Start of the window, zero-based. No entry in the ring is located before this position.
+     */
+    private int windowStart;
+
+    /**
+     * Smallest target index and position of the entries enqueued on a target after the window since the window
+     * started, or Integer.MAX_VALUE when there is none.
+     */
+    private int laterTargetIndex = Integer.MAX_VALUE;
+    private int laterPosition;
+
+    private final ObjectHeapPriorityQueue<Alignments.AlignmentEntry> overflow =
+            new ObjectHeapPriorityQueue<Alignments.AlignmentEntry>(GENOMIC_POSITION_COMPARATOR);
+    private long overflowCount;
+
+    /**
+     * Create a buffer whose window spans at least windowLength consecutive positions.
+     *
+     * @param windowLength the number of positions that entries can be sorted within without overflow.
+     */
+    public LocalSortBuffer(final int windowLength) {
+        int size = 1;
+        while (size < windowLength) {
+            size <<= 1;
+        }
+        ringSize = size;
+        ringMask = size - 1;
+        bucketHeads = new int[size];
+        bucketTails = new int[size];
+        Arrays.fill(bucketHeads, NO_SLOT);
+    }
+
+    public int size() {
+        return ringCount + overflow.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Return the number of entries that were stored in the overflow queue because they did not fit in the window.
+     *
+     * @return number of out-of-window entries.
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * Return true when an entry at targetIndex/position would be located after the end of the window. Callers that
+     * control when entries are dequeued can dequeue until this method returns false to slide the window forward
+     * instead of sending the entry to the overflow queue.
+     * <p/>
+     * The window extends past the end of its target: entries on the next target are only after the window once
+     * they are a window length past the first entry enqueued on that target, or when a further target starts.
+     * Entries of the target of the window that arrive after the first entries of the next target can therefore
+     * still be sorted.
+     *
+     * @param targetIndex target index of the entry.
+     * @param position    position of the entry.
+     * @return True when the buffer is not empty and the position is past the end of the window.
+     */
+    public boolean isAfterWindow(final int targetIndex, final int position) {
+        if (ringCount == 0 || targetIndex < windowTargetIndex) {
+            return false;
+        }
+        if (targetIndex == windowTargetIndex) {
+            // the start of the window moves lazily, bring it to the smallest entry of the ring before comparing:
+            advanceWindowStart();
+            return position - windowStart >= ringSize;
+        }
+        return laterTargetIndex != Integer.MAX_VALUE && (targetIndex > laterTargetIndex ||
+                targetIndex == laterTargetIndex && position - laterPosition >= ringSize);
+    }
+
+    public void enqueue(final Alignments.AlignmentEntry entry) {
+        final int targetIndex = entry.getTargetIndex();
+        final int position = entry.getPosition();
+        if (ringCount == 0) {
+            // the ring is empty, so is the overflow: start the window at this entry.
+            windowTargetIndex = targetIndex;
+            windowStart = position;
+            laterTargetIndex = Integer.MAX_VALUE;
+        }
+        if (targetIndex == windowTargetIndex && position >= windowStart && position - windowStart < ringSize) {
+            addToRing(position, entry);
+        } else {
+            if (targetIndex > windowTargetIndex && (targetIndex < laterTargetIndex ||
+                    targetIndex == laterTargetIndex && position < laterPosition)) {
+                laterTargetIndex = targetIndex;
+                laterPosition = position;
+            }
+            overflow.enqueue(entry);
+            ++overflowCount;
+        }
+    }
+
+    /**
+     * Return the smallest entry in the buffer, without removing it.
+     *
+     * @return the entry that dequeue would return, or null when the buffer is empty.
+     */
+    public Alignments.AlignmentEntry first() {
+        if (ringCount == 0) {
+            return null;
+        }
+        advanceWindowStart();
+        final Alignments.AlignmentEntry ringFirst = slotEntries[bucketHeads[windowStart & ringMask]];
+        if (!overflow.isEmpty()) {
+            final Alignments.AlignmentEntry overflowFirst = overflow.first();
+            if (GENOMIC_POSITION_COMPARATOR.compare(overflowFirst, ringFirst) < 0) {
+                return overflowFirst;
+            }
+        }
+        return ringFirst;
+    }
+
+    /**
+     * Remove and return the smallest entry in the buffer.
+     *
+     * @return the smallest entry, or null when the buffer is empty.
+     */
+    public Alignments.AlignmentEntry dequeue() {
+        if (ringCount == 0) {
+            return null;
+        }
+        advanceWindowStart();
+        final int bucket = windowStart & ringMask;
+        final int slot = bucketHeads[bucket];
+        final Alignments.AlignmentEntry ringFirst = slotEntries[slot];
+        if (!overflow.isEmpty() && GENOMIC_POSITION_COMPARATOR.compare(overflow.first(), ringFirst) < 0) {
+            return overflow.dequeue();
+        }
+        bucketHeads[bucket] = slotNext[slot];
+        slotEntries[slot] = null;
+        slotNext[slot] = freeSlot;
+        freeSlot = slot;
+        --ringCount;
+        if (ringCount == 0 && !overflow.isEmpty()) {
+            // restart the window at the smallest entry of the overflow and move the entries that fit back to the ring:
+            final Alignments.AlignmentEntry overflowFirst = overflow.first();
+            windowTargetIndex = overflowFirst.getTargetIndex();
+            windowStart = overflowFirst.getPosition();
+            laterTargetIndex = Integer.MAX_VALUE;
+            while (!overflow.isEmpty()) {
+                final Alignments.AlignmentEntry next = overflow.first();
+                if (next.getTargetIndex() != windowTargetIndex || next.getPosition() - windowStart >= ringSize) {
+                    break;
+                }
+                addToRing(next.getPosition(), overflow.dequeue());
+            }
+        }
+        return ringFirst;
+    }
+
+    /**
+     * Move the start of the window to the first non-empty bucket. Must only be called when the ring is not empty.
+     */
+    private void advanceWindowStart() {
+        while (bucketHeads[windowStart & ringMask] == NO_SLOT) {
+            ++windowStart;
+        }
+    }
+
+    private void addToRing(final int position, final Alignments.AlignmentEntry entry) {
+        final int slot = allocateSlot();
+        slotEntries[slot] = entry;
+        slotNext[slot] = NO_SLOT;
+        final int bucket = position & ringMask;
+        if (bucketHeads[bucket] == NO_SLOT) {
+            bucketHeads[bucket] = slot;
+        } else {
+            slotNext[bucketTails[bucket]] = slot;
+        }
+        bucketTails[bucket] = slot;
+        ++ringCount;
+    }
+
+    private int allocateSlot() {
+        if (freeSlot != NO_SLOT) {
+            final int slot = freeSlot;
+            freeSlot = slotNext[slot];
+            return slot;
+        }
+        if (numSlots == slotEntries.length) {
+            slotEntries = ObjectArrays.grow(slotEntries, numSlots + 1);
+            slotNext = IntArrays.grow(slotNext, numSlots + 1);
+        }
+        return numSlots++;
+    }
+}
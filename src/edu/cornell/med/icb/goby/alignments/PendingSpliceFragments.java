@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import edu.cornell.med.icb.goby.modes.SamHelper;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.objects.ObjectArrays;
+import it.unimi.dsi.lang.MutableString;
+
+import java.util.List;
+
+/**
+ * Fragments of spliced alignments waiting for the other fragments of their alignment, so that all the fragments can
+ * be merged and exported as one BAM record. Rather than a copy of the data exported for each fragment, the store
+ * keeps the CIGAR, mismatches, bases and quality scores of a fragment serialized in a byte array, and its links in
+ * primitive columns. Slots are reused once the fragments they hold have been merged, and the fragments of a query
+ * are forgotten as soon as its alignment is complete.
+ * <p/>
+ * Fragments are merged as {@link ExportableAlignmentEntryData#mergeSpliceFragments(java.util.List)} merges them.
+ */
+public class PendingSpliceFragments {
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * The first slot of the fragments of each query, which are chained with nextSlot.
+     */
+    private final Int2IntMap firstSlots = new Int2IntOpenHashMap();
+    private int[] nextSlot = new int[INITIAL_CAPACITY];
+    private int[] fragmentIndices = new int[INITIAL_CAPACITY];
+    private int[] forwardFragments = new int[INITIAL_CAPACITY];
+    private int[] backwardFragments = new int[INITIAL_CAPACITY];
+    private int[] endPositions = new int[INITIAL_CAPACITY];
+    private int[] queryLengths = new int[INITIAL_CAPACITY];
+    private Alignments.AlignmentEntry[] entries = new Alignments.AlignmentEntry[INITIAL_CAPACITY];
+    private String[] invalidMessages = new String[INITIAL_CAPACITY];
+    private byte[][] data = new byte[INITIAL_CAPACITY][];
+    private int numSlots;
+    private final IntArrayList freeSlots = new IntArrayList();
+    private int size;
+    /**
+     * Slots of the fragments of the last complete alignment, in the order of the splices.
+     */
+    private final IntArrayList completed = new IntArrayList();
+    private final FragmentParts parts = new FragmentParts();
+    private final FragmentParts otherParts = new FragmentParts();
+    private String invalidMessage;
+
+    public PendingSpliceFragments() {
+        super();
+        firstSlots.defaultReturnValue(-1);
+    }
+
+    /**
+     * Append the data exported for a fragment to a buffer, in the form expected by
+     * {@link #add(Alignments.AlignmentEntry, byte[], int, String)}.
+     *
+     * @param exportData data built from the fragment.
+     * @param buffer     the buffer the fragment is appended to.
+     */
+    public static void writeFragment(final ExportableAlignmentEntryData exportData, final ByteArrayList buffer) {
+        BAMRecordEncoder.writeInt(buffer, exportData.getEndTargetPosition());
+        BAMRecordEncoder.writeInt(buffer, exportData.getQueryLength());
+        writeString(buffer, exportData.getCigar());
+        writeString(buffer, exportData.getMismatches());
+        writeString(buffer, exportData.getOriginalBases());
+        final byte[] qualities = exportData.getReadQualities().toByteArray();
+        BAMRecordEncoder.writeInt(buffer, qualities.length);
+        buffer.addElements(buffer.size(), qualities);
+    }
+
+    private static void writeString(final ByteArrayList buffer, final MutableString value) {
+        final int length = value.length();
+        BAMRecordEncoder.writeInt(buffer, length);
+        final char[] chars = value.array();
+        for (int i = 0; i < length; i++) {
+            buffer.add((byte) chars[i]);
+        }
+    }
+
+    /**
+     * Store a fragment. A fragment replaces a fragment of the same query that has the same fragment index.
+     *
+     * @param entry          the fragment.
+     * @param buffer         buffer that holds the data written by
+     *                       {@link #writeFragment(ExportableAlignmentEntryData, ByteArrayList)}.
+     * @param offset         offset of the data in the buffer.
+     * @param invalidMessage the reason why the fragment cannot be exported, or null.
+     * @return True when all the fragments of the alignment of this fragment are now available, in which case
+     *         {@link #exportCompleted(BAMRecordEncoder, ByteArrayList)} must be called before the next fragment
+     *         is added.
+     */
+    public boolean add(final Alignments.AlignmentEntry entry, final byte[] buffer, final int offset,
+                       final String invalidMessage) {
+        final int queryIndex = entry.getQueryIndex();
+        int slot = findSlot(queryIndex, entry.getFragmentIndex());
+        if (slot == -1) {
+            slot = allocateSlot();
+            nextSlot[slot] = firstSlots.get(queryIndex);
+            firstSlots.put(queryIndex, slot);
+            size++;
+        }
+        fragmentIndices[slot] = entry.getFragmentIndex();
+        forwardFragments[slot] = entry.hasSplicedForwardAlignmentLink() ?
+                entry.getSplicedForwardAlignmentLink().getFragmentIndex() : -1;
+        backwardFragments[slot] = entry.hasSplicedBackwardAlignmentLink() ?
+                entry.getSplicedBackwardAlignmentLink().getFragmentIndex() : -1;
+        endPositions[slot] = readInt(buffer, offset);
+        queryLengths[slot] = readInt(buffer, offset + 4);
+        entries[slot] = entry;
+        invalidMessages[slot] = invalidMessage;
+        int length = 8;
+        for (int i = 0; i < 4; i++) {
+            length += 4 + readInt(buffer, offset + length);
+        }
+        if (data[slot] == null || data[slot].length < length) {
+            data[slot] = new byte[length];
+        }
+        System.arraycopy(buffer, offset, data[slot], 0, length);
+        return findCompleted(queryIndex, slot);
+    }
+
+    /**
+     * Find the fragments of the alignment of a fragment, walking its links backward then forward.
+     */
+    private boolean findCompleted(final int queryIndex, final int slot) {
+        completed.clear();
+        int numFragments = 0;
+        for (int s = firstSlots.get(queryIndex); s != -1; s = nextSlot[s]) {
+            numFragments++;
+        }
+        for (int link = backwardFragments[slot]; link != -1; link = backwardFragments[completed.topInt()]) {
+            final int linked = findSlot(queryIndex, link);
+            if (linked == -1 || completed.size() == numFragments) {
+                return false;
+            }
+            completed.add(linked);
+        }
+        IntArrays.reverse(completed.elements(), 0, completed.size());
+        completed.add(slot);
+        for (int link = forwardFragments[slot]; link != -1; link = forwardFragments[completed.topInt()]) {
+            final int linked = findSlot(queryIndex, link);
+            if (linked == -1 || completed.size() == numFragments) {
+                return false;
+            }
+            completed.add(linked);
+        }
+        // the alignment is complete, the query no longer needs these fragments:
+        for (int i = 0; i < completed.size(); i++) {
+            unlink(queryIndex, completed.getInt(i));
+        }
+        return true;
+    }
+
+    /**
+     * Merge the fragments of the alignment completed by the last fragment added, and append their BAM record to a
+     * buffer. The fragments are then forgotten.
+     *
+     * @param encoder the encoder used to write the record.
+     * @param record  the buffer the record is appended to.
+     * @return True when the record was written, false when the fragments could not be merged. See
+     *         {@link #getInvalidMessage()}.
+     */
+    public boolean exportCompleted(final BAMRecordEncoder encoder, final ByteArrayList record) {
+        try {
+            return merge(encoder, record);
+        } finally {
+            discardCompleted();
+        }
+    }
+
+    /**
+     * Forget the fragments of the alignment completed by the last fragment added, without exporting them.
+     */
+    public void discardCompleted() {
+        for (int i = 0; i < completed.size(); i++) {
+            final int slot = completed.getInt(i);
+            entries[slot] = null;
+            invalidMessages[slot] = null;
+            freeSlots.add(slot);
+            size--;
+        }
+        completed.clear();
+    }
+
+    /**
+     * Return the reference sequence of the alignment completed by the last fragment added.
+     */
+    public int getCompletedTargetIndex() {
+        return entries[completed.getInt(0)].getTargetIndex();
+    }
+
+    /**
+     * Return the first position of the alignment completed by the last fragment added, the start of its first
+     * fragment.
+     */
+    public int getCompletedStartPosition() {
+        int start = Integer.MAX_VALUE;
+        for (int i = 0; i < completed.size(); i++) {
+            start = Math.min(start, entries[completed.getInt(i)].getPosition());
+        }
+        return start;
+    }
+
+    /**
+     * Return the position after the last position of the alignment completed by the last fragment added, the end
+     * of its last fragment.
+     */
+    public int getCompletedEndPosition() {
+        int end = Integer.MIN_VALUE;
+        for (int i = 0; i < completed.size(); i++) {
+            end = Math.max(end, endPositions[completed.getInt(i)]);
+        }
+        return end;
+    }
+
+    /**
+     * Return true if a fragment of a query is waiting for the other fragments of its alignment.
+     */
+    public boolean contains(final int queryIndex, final int fragmentIndex) {
+        return findSlot(queryIndex, fragmentIndex) != -1;
+    }
+
+    /**
+     * Append the fragments waiting for the other fragments of their alignment to a list.
+     */
+    public void getFragments(final List<Alignments.AlignmentEntry> fragments) {
+        for (int slot = 0; slot < numSlots; slot++) {
+            if (entries[slot] != null) {
+                fragments.add(entries[slot]);
+            }
+        }
+    }
+
+    private boolean merge(final BAMRecordEncoder encoder, final ByteArrayList record) {
+        invalidMessage = null;
+        for (int i = 0; i < completed.size(); i++) {
+            if (invalidMessages[completed.getInt(i)] != null) {
+                invalidMessage = invalidMessages[completed.getInt(i)];
+                return false;
+            }
+        }
+        final int first = completed.getInt(0);
+        final Alignments.AlignmentEntry firstEntry = entries[first];
+        FragmentParts merged = parts;
+        FragmentParts other = otherParts;
+        merged.load(data[first]);
+        // predefined quality scores are stored on one of the fragments, and cover the whole read:
+        boolean predefinedQualities = false;
+        for (int i = 0; i < completed.size(); i++) {
+            final Alignments.AlignmentEntry entry = entries[completed.getInt(i)];
+            if (entry.hasReadQualityScores()) {
+                merged.qualities.clear();
+                merged.qualities.addElements(0, entry.getReadQualityScores().toByteArray());
+                predefinedQualities = true;
+                break;
+            }
+        }
+        final int queryLength = queryLengths[first];
+        int endPosition = endPositions[first];
+        for (int i = 1; i < completed.size(); i++) {
+            final int slot = completed.getInt(i);
+            final Alignments.AlignmentEntry entry = entries[slot];
+            if (firstEntry.getTargetIndex() != entry.getTargetIndex()) {
+                invalidMessage = "Error: Splice segments for queryIndex=" + firstEntry.getQueryIndex()
+                        + " Are on different chromosomes.";
+                return false;
+            }
+            other.load(data[slot]);
+            final int gap;
+            if (firstEntry.getPosition() < entry.getPosition()) {
+                gap = entry.getPosition() - endPosition;
+            } else {
+                gap = firstEntry.getPosition() - endPositions[slot];
+                final FragmentParts swap = merged;
+                merged = other;
+                other = swap;
+            }
+            if (!merged.endsWithClip() || !other.startsWithClip()) {
+                invalidMessage = "Splice cigar codes were incorrect for qi=" + firstEntry.getQueryIndex();
+                return false;
+            }
+            if (gap < 0) {
+                invalidMessage = "Splice segments overlap for qi=" + firstEntry.getQueryIndex();
+                return false;
+            }
+            final int lastClip = merged.cigar.removeInt(merged.cigar.size() - 1) >>> 4;
+            final int firstClip = other.cigar.removeInt(0) >>> 4;
+            merged.bases.length(queryLength - lastClip);
+            other.bases.delete(0, firstClip);
+            if (!predefinedQualities) {
+                merged.qualities.size(queryLength - lastClip);
+                other.qualities.removeElements(0, firstClip);
+            }
+            merged.cigar.add(BAMRecordEncoder.skippedRegion(gap));
+            merged.cigar.addAll(other.cigar);
+            endPosition = endPositions[slot];
+
+            SamHelper.appendMismatches(merged.mismatches, other.mismatches);
+            merged.bases.append(other.bases);
+            if (!predefinedQualities) {
+                merged.qualities.addAll(other.qualities);
+            }
+        }
+        // the read group of spliced alignments is not exported:
+        encoder.encode(firstEntry, null, merged.cigar, merged.mismatches, merged.bases, merged.qualities, record);
+        return true;
+    }
+
+    /**
+     * The reason why the last complete alignment could not be exported.
+     */
+    public String getInvalidMessage() {
+        return invalidMessage;
+    }
+
+    /**
+     * Return the number of fragments waiting for the other fragments of their alignment.
+     */
+    public int size() {
+        return size;
+    }
+
+    private int findSlot(final int queryIndex, final int fragmentIndex) {
+        for (int slot = firstSlots.get(queryIndex); slot != -1; slot = nextSlot[slot]) {
+            if (fragmentIndices[slot] == fragmentIndex) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void unlink(final int queryIndex, final int slot) {
+        final int first = firstSlots.get(queryIndex);
+        if (first == slot) {
+            if (nextSlot[slot] == -1) {
+                firstSlots.remove(queryIndex);
+            } else {
+                firstSlots.put(queryIndex, nextSlot[slot]);
+            }
+            return;
+        }
+        for (int previous = first; previous != -1; previous = nextSlot[previous]) {
+            if (nextSlot[previous] == slot) {
+                nextSlot[previous] = nextSlot[slot];
+                return;
+            }
+        }
+    }
+
+    private int allocateSlot() {
+        if (!freeSlots.isEmpty()) {
+            return freeSlots.popInt();
+        }
+        if (numSlots == nextSlot.length) {
+            final int capacity = numSlots * 2;
+            nextSlot = IntArrays.grow(nextSlot, capacity);
+            fragmentIndices = IntArrays.grow(fragmentIndices, capacity);
+            forwardFragments = IntArrays.grow(forwardFragments, capacity);
+            backwardFragments = IntArrays.grow(backwardFragments, capacity);
+            endPositions = IntArrays.grow(endPositions, capacity);
+            queryLengths = IntArrays.grow(queryLengths, capacity);
+            entries = ObjectArrays.grow(entries, capacity);
+            invalidMessages = ObjectArrays.grow(invalidMessages, capacity);
+            data = ObjectArrays.grow(data, capacity);
+        }
+        return numSlots++;
+    }
+
+    private static int readInt(final byte[] buffer, final int offset) {
+        return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8 | (buffer[offset + 2] & 0xFF) << 16
+                | (buffer[offset + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * The data of a fragment, decoded for merging.
+     */
+    private static final class FragmentParts {
+        private final IntArrayList cigar = new IntArrayList();
+        private final MutableString mismatches = new MutableString();
+        private final MutableString bases = new MutableString();
+        private final ByteArrayList qualities = new ByteArrayList();
+        private final MutableString cigarString = new MutableString();
+
+        private void load(final byte[] fragment) {
+            int offset = 8;
+            offset = readString(fragment, offset, cigarString);
+            BAMRecordEncoder.parseCigar(cigarString, cigar);
+            offset = readString(fragment, offset, mismatches);
+            offset = readString(fragment, offset, bases);
+            final int numQualities = readInt(fragment, offset);
+            qualities.clear();
+            qualities.addElements(0, fragment, offset + 4, numQualities);
+        }
+
+        private static int readString(final byte[] fragment, final int offset, final MutableString value) {
+            final int length = readInt(fragment, offset);
+            value.setLength(0);
+            for (int i = 0; i < length; i++) {
+                value.append((char) (fragment[offset + 4 + i] & 0xFF));
+            }
+            return offset + 4 + length;
+        }
+
+        private boolean endsWithClip() {
+            return !cigar.isEmpty() && BAMRecordEncoder.operationCode(cigar.getInt(cigar.size() - 1)) == 'S';
+        }
+
+        private boolean startsWithClip() {
+            return !cigar.isEmpty() && BAMRecordEncoder.operationCode(cigar.getInt(0)) == 'S';
+        }
+    }
+}
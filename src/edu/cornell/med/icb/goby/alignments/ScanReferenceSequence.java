@@ -20,13 +20,12 @@
 
 package edu.cornell.med.icb.goby.alignments;
 
+import edu.cornell.med.icb.goby.reads.KmerDigests;
 import edu.cornell.med.icb.goby.reads.ReadSet;
 import edu.cornell.med.icb.goby.reads.ReadsLoader;
-import edu.cornell.med.icb.goby.reads.SequenceDigests;
 import edu.cornell.med.icb.goby.reads.SequenceEncoder;
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
-import it.unimi.dsi.fastutil.objects.ObjectList;
 import it.unimi.dsi.logging.ProgressLogger;
 
 import java.io.IOException;
@@ -41,9 +40,7 @@ public class ScanReferenceSequence {
     private ProgressLogger progress;
     private int readLength;
     private long trueMatches;
-    private byte[] byteBuffer;
-    private SequenceDigests[] readDigests;
-    private ObjectList<byte[]> compressedReads;
+    private KmerDigests readDigests;
     private long potentialMatches;
     private int[] hitsPerRead;
     private final SequenceEncoder encoder = new SequenceEncoder();
@@ -79,9 +76,7 @@ public class ScanReferenceSequence {
                     final int[] hitsPerRead) {
 
         this.sequence = sequence;
-        this.byteBuffer = loader.getByteBuffer();
         this.readDigests = loader.getDigests();
-        this.compressedReads = loader.getCompressedReads();
         this.hitsPerRead = hitsPerRead;
         this.referenceSequenceIndex = referenceSequenceIndex;
     }
@@ -98,66 +93,13 @@ public class ScanReferenceSequence {
 
         progress.itemsName = "x 1000 positions";
 
-        final int length = sequence.length;
-        final int end = length - readLength;
-        for (int referencePosition = 0; referencePosition < end; ++referencePosition) {
-
-            for (final SequenceDigests sd : readDigests) {
-                // the reads have been reverse-complemented so we don't need to reverse complement the reference.
-                final int digest = sd.digestDirectStrandOnly(sequence, referencePosition, readLength);
-                final int[] readIndices = sd.getReadIndices(digest);
-                for (final int readIndex : readIndices) {
-                    if (readIndex != -1) {
-                        if (hitsPerRead[readIndex] <= readOccurenceThreshold) {
-
-                            final byte[] readCompressedSeq = compressedReads.get(readIndex);
-                            if (sd.confirmMatch(readCompressedSeq, sequence, referencePosition, readLength)) {
-
-                                ++trueMatches;
-                                hitsPerRead[readIndex] += 1;
-
-                                if (hitsPerRead[readIndex] > readOccurenceThreshold) {
-                                    // too many hits already for this read, remove from consideration for further potential hits:
-                                    // the digest may also be produced by a sequence that does not have too many hits. We cannot
-                                    // remove without checking that the digest is not produced by another read.
-                                    sd.remove(digest, readIndex);
-                                } else {
-                                    final Alignments.AlignmentEntry.Builder builder =
-                                            Alignments.AlignmentEntry.newBuilder();
-                                    builder.setQueryIndex(readIndex);
-                                    builder.setTargetIndex(referenceSequenceIndex);
-                                    builder.setPosition(referencePosition);
-                                    builder.setMatchingReverseStrand(!sd.isMatchingPositiveStrand());
-
-                                    builder.setScore(readLength);
-                                    builder.setNumberOfIndels(0);
-
-                                    builder.setQueryAlignedLength(readLength);
-                                    int multiplicity = 1;
-                                    // multiplicity of a read is the number of times the sequence
-                                    // of the read is identically repeated across a sample file.
-                                    // When the sequence is exactly repeated, the alignment would
-                                    // yield exactly the same result. In such cases, we do not do
-                                    // the alignment, but just keep repeating the alignment
-                                    // multiplicity times.
-
-                                    if (readIndexFilter != null) {
-                                        // we have a multiplicity filter. Use it to determine multiplicity.
-                                        multiplicity = readIndexFilter.getMultiplicity(readIndex);
-                                    }
-                                    builder.setMultiplicity(multiplicity);
-                                    final Alignments.AlignmentEntry entry = builder.build();
-                                    writer.appendEntry(entry);
-                                }
-                            }
-                        }
-                        ++potentialMatches;
-                    }
-                }
-                //     System.out.printf("A read may perfectly match reference %d at position %d %n", referenceEntry.getReadIndex(), referencePosition);
-            }
+        // the digests of both strands of each window are rolled along the reference:
+        final KmerDigests.ReferenceScanner scanner = readDigests.scan(sequence);
+        while (scanner.next()) {
+            scanForMatches(scanner, scanner.getForwardDigest(), false);
+            scanForMatches(scanner, scanner.getReverseDigest(), true);
 
-            if ((referencePosition % 1000) == 1) {
+            if ((scanner.getPosition() % 1000) == 1) {
                 progress.lightUpdate();
             }
             //progress.lightUpdate();
@@ -166,6 +108,65 @@ public class ScanReferenceSequence {
         return this;
     }
 
+    private void scanForMatches(final KmerDigests.ReferenceScanner scanner, final long digest,
+                                final boolean matchingReverseStrand) throws IOException {
+        final int slot = readDigests.find(digest);
+        if (slot == -1) {
+            return;
+        }
+        final int referencePosition = scanner.getPosition();
+        final int end = readDigests.getCandidatesEnd(slot);
+        for (int candidate = readDigests.getCandidatesStart(slot); candidate < end; candidate++) {
+            final int readIndex = readDigests.getReadIndex(candidate);
+            if (readIndex != -1) {
+                if (hitsPerRead[readIndex] <= readOccurenceThreshold) {
+
+                    if (matchingReverseStrand ? scanner.matchesReverseStrand(readIndex)
+                            : scanner.matchesForwardStrand(readIndex)) {
+
+                        ++trueMatches;
+                        hitsPerRead[readIndex] += 1;
+
+                        if (hitsPerRead[readIndex] > readOccurenceThreshold) {
+                            // too many hits already for this read, remove from consideration for further potential hits.
+                            // Only this read is removed: the digest may also be produced by a sequence that does
+                            // not have too many hits.
+                            readDigests.remove(candidate);
+                        } else {
+                            final Alignments.AlignmentEntry.Builder builder =
+                                    Alignments.AlignmentEntry.newBuilder();
+                            builder.setQueryIndex(readIndex);
+                            builder.setTargetIndex(referenceSequenceIndex);
+                            builder.setPosition(referencePosition);
+                            builder.setMatchingReverseStrand(matchingReverseStrand);
+
+                            builder.setScore(readLength);
+                            builder.setNumberOfIndels(0);
+
+                            builder.setQueryAlignedLength(readLength);
+                            int multiplicity = 1;
+                            // multiplicity of a read is the number of times the sequence
+                            // of the read is identically repeated across a sample file.
+                            // When the sequence is exactly repeated, the alignment would
+                            // yield exactly the same result. In such cases, we do not do
+                            // the alignment, but just keep repeating the alignment
+                            // multiplicity times.
+
+                            if (readIndexFilter != null) {
+                                // we have a multiplicity filter. Use it to determine multiplicity.
+                                multiplicity = readIndexFilter.getMultiplicity(readIndex);
+                            }
+                            builder.setMultiplicity(multiplicity);
+                            final Alignments.AlignmentEntry entry = builder.build();
+                            writer.appendEntry(entry);
+                        }
+                    }
+                }
+                ++potentialMatches;
+            }
+        }
+    }
+
 
     public void setProgress(final ProgressLogger progress) {
         this.progress = progress;
@@ -21,9 +21,10 @@ package edu.cornell.med.icb.goby.alignments.processors;
 import it.unimi.dsi.fastutil.ints.IntAVLTreeSet;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntArraySet;
-import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntSortedSet;
 import it.unimi.dsi.fastutil.objects.ObjectAVLTreeSet;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectBidirectionalIterator;
 import edu.cornell.med.icb.goby.alignments.Alignments;
 import edu.cornell.med.icb.goby.algorithmic.data.UnboundedFifoPool;
 import it.unimi.dsi.fastutil.objects.ObjectList;
@@ -41,7 +42,7 @@ public class InfoForTarget {
     /**
      * positionsWithSpanningIndel contains zero-based positions.
      */
-    public IntSet positionsWithSpanningIndel = new IntAVLTreeSet();
+    public IntSortedSet positionsWithSpanningIndel = new IntAVLTreeSet();
     UnboundedFifoPool<Alignments.AlignmentEntry> entriesInWindow = new UnboundedFifoPool<Alignments.AlignmentEntry>();
     public ObjectAVLTreeSet<ObservedIndel> potentialIndels = new ObjectAVLTreeSet<ObservedIndel>();
     /**
@@ -59,6 +60,11 @@ public class InfoForTarget {
      */
     protected int pastMaxCount;
     private static final int MAX_ENTRIES_IN_WINDOW = 250000;
+    /**
+     * The largest reference span of the indels in potentialIndels. Since potentialIndels is sorted by start position,
+     * indels that overlap an interval [start, end) all start in [start - maxIndelSpan, end].
+     */
+    private int maxIndelSpan;
 
 
     public void addIndel(int startPosition, int endPosition, String from, String to) {
@@ -66,8 +72,8 @@ public class InfoForTarget {
             positionsWithSpanningIndel.add(p);
         }
         final ObservedIndel candidate = new ObservedIndel(startPosition, endPosition, from, to);
-        if (!potentialIndels.contains(candidate)) {
-            potentialIndels.add(candidate);
+        if (potentialIndels.add(candidate)) {
+            maxIndelSpan = Math.max(maxIndelSpan, candidate.positionSpan());
             //    System.out.printf("Adding indel %s %n", candidate);
         }
 
@@ -85,20 +91,47 @@ public class InfoForTarget {
      * @param lastPosition
      */
     public void removeIndels(int firstPosition, int lastPosition) {
-
-        for (final int pos : positionsWithSpanningIndel) {
-            //  if (pos >= firstPosition && pos < lastPosition) {
-            if (pos < lastPosition && pos < firstPosition) {
-
-                positionsWithSpanningIndel.remove(pos);
+        // positions are sorted, so the positions to remove are exactly those of the head set:
+        positionsWithSpanningIndel.headSet(Math.min(firstPosition, lastPosition)).clear();
+
+        // an indel that ends at or before lastPosition must start at or before lastPosition (zero-span indels
+        // start and end at the same position):
+        final ObjectBidirectionalIterator<ObservedIndel> iterator = potentialIndels.iterator();
+        while (iterator.hasNext()) {
+            final ObservedIndel indel = iterator.next();
+            if (indel.getStart() > lastPosition) {
+                break;
             }
-        }
-
-        for (final ObservedIndel indel : potentialIndels) {
-
             if (indel.getEnd() <= lastPosition) {
-                potentialIndels.remove(indel);
+                iterator.remove();
+            }
+        }
+    }
 
+    /**
+     * Collect the potential indels that overlap the reference interval [start, end). Only the indels whose start
+     * position is within maxIndelSpan of the interval are visited.
+     *
+     * @param start  start of the interval, zero-based, inclusive.
+     * @param end    end of the interval, zero-based, exclusive.
+     * @param result where overlapping indels are written. The list is cleared first.
+     */
+    public void overlappingIndels(final int start, final int end, final ObjectArrayList<ObservedIndel> result) {
+        result.clear();
+        if (potentialIndels.isEmpty()) {
+            return;
+        }
+        // the probe sorts before every indel that starts at start-maxIndelSpan:
+        final ObservedIndel probe = new ObservedIndel(start - maxIndelSpan, Integer.MIN_VALUE, "", "");
+        for (final ObservedIndel indel : potentialIndels.tailSet(probe)) {
+            final int indelStart = indel.getStart();
+            if (indelStart > end) {
+                break;
+            }
+            final int indelEnd = indel.getEnd();
+            if (start <= indelStart && indelEnd <= end ||
+                    start < indelEnd && end > indelStart) {
+                result.add(indel);
             }
         }
     }
@@ -108,6 +141,7 @@ public class InfoForTarget {
         positionsWithSpanningIndel.clear();
         entriesInWindow.clear();
         pastMaxCount = 0;
+        maxIndelSpan = 0;
     }
 
     public Alignments.AlignmentEntry remove() {
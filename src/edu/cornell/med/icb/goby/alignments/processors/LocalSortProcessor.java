@@ -19,12 +19,10 @@
 package edu.cornell.med.icb.goby.alignments.processors;
 
 import edu.cornell.med.icb.goby.alignments.Alignments;
+import edu.cornell.med.icb.goby.alignments.LocalSortBuffer;
 import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
-import it.unimi.dsi.fastutil.AbstractPriorityQueue;
-import it.unimi.dsi.fastutil.objects.ObjectHeapPriorityQueue;
 
 import java.io.IOException;
-import java.util.Comparator;
 
 /**
  * An alignment processor that re-sorts entries in a window by increasing genomic position. This processor can be
@@ -37,7 +35,7 @@ import java.util.Comparator;
  *         Time: 10:49 AM
  */
 public class LocalSortProcessor implements AlignmentProcessorInterface {
-    AbstractPriorityQueue<Alignments.AlignmentEntry> entryHeap;
+    LocalSortBuffer sortBuffer;
     AlignmentProcessorInterface delegate;
     /**
      * We store at most alignments for 30 consecutive genomic positions. 30 is chosen because it is much larger than
@@ -47,26 +45,23 @@ public class LocalSortProcessor implements AlignmentProcessorInterface {
     private int windowLength = 30;
     private int processedCount = 0;
     private int modifiedCount = 0;
-    final Comparator<? super Alignments.AlignmentEntry> comparator = new Comparator<Alignments.AlignmentEntry>() {
-        @Override
-        public int compare(final Alignments.AlignmentEntry alignmentEntry, final Alignments.AlignmentEntry alignmentEntry1) {
-            final int targetDiff = alignmentEntry.getTargetIndex() - alignmentEntry1.getTargetIndex();
-            if (targetDiff != 0) {
-                return targetDiff;
-            } else {
-                final int value = alignmentEntry.getPosition() - alignmentEntry1.getPosition();
-                return value;
-            }
-        }
-    };
     private int lastCurrentPosition;
     private int lastTargetIndex;
 
     public LocalSortProcessor(final AlignmentProcessorInterface delegate) {
         this.delegate = delegate;
-        // heap will hold up to 10,000 elements initially, but will grow as needed:
+        // the pool is loaded until an entry windowLength past the last returned entry is seen, so the buffered
+        // entries usually span a little more than windowLength positions:
+        sortBuffer = new LocalSortBuffer(windowLength * 4);
+    }
 
-        entryHeap = new ObjectHeapPriorityQueue<Alignments.AlignmentEntry>(10000, comparator);
+    /**
+     * Return the number of entries that were outside of the sorting window when they were pooled.
+     *
+     * @return number of out-of-window entries.
+     */
+    public long getOverflowCount() {
+        return sortBuffer.getOverflowCount();
     }
 
     /**
@@ -81,21 +76,21 @@ public class LocalSortProcessor implements AlignmentProcessorInterface {
 
     @Override
     public Alignments.AlignmentEntry nextRealignedEntry(final int targetIndex, final int position) throws IOException {
-        if (finished && entryHeap.isEmpty()) {
+        if (finished && sortBuffer.isEmpty()) {
             return null;
         }
         boolean mustLoadPool = false;
         if (!finished) {
-            if (entryHeap.isEmpty()) {
+            if (sortBuffer.isEmpty()) {
                 // nothing seen yet, load the pool
                 mustLoadPool = true;
             } else {
                 //determine if the pool has enough entry within windowSize:
-                Alignments.AlignmentEntry firstEntry = entryHeap.first();
+                Alignments.AlignmentEntry firstEntry = sortBuffer.first();
 
                 // windowLength is zero at the beginning
 
-                mustLoadPool = entryHeap.isEmpty() || currentTargetIndex == firstEntry.getTargetIndex() &&
+                mustLoadPool = sortBuffer.isEmpty() || currentTargetIndex == firstEntry.getTargetIndex() &&
                         currentPosition - windowLength < firstEntry.getPosition();
             }
         }
@@ -108,11 +103,11 @@ public class LocalSortProcessor implements AlignmentProcessorInterface {
                     currentTargetIndex = Math.min(currentTargetIndex, entry.getTargetIndex());
 
                     if (currentTargetIndex != entry.getTargetIndex()) {
-                        if (!entryHeap.isEmpty()) {
+                        if (!sortBuffer.isEmpty()) {
                             pushEntry(entry);
                             break;
                         }
-                        //  assert entryHeap.isEmpty() : "entryHeap must be empty when enqueing the first entry of a new target";
+                        //  assert sortBuffer.isEmpty() : "sortBuffer must be empty when enqueing the first entry of a new target";
                     }
                     pushEntry(entry);
                 } else {
@@ -121,12 +116,12 @@ public class LocalSortProcessor implements AlignmentProcessorInterface {
             } while (entry != null && entry.getPosition() < initialCurrentPosition + windowLength);
 
         }
-        if (entryHeap.isEmpty()) {
+        if (sortBuffer.isEmpty()) {
             finished = true;
             return null;
         } else {
 
-            Alignments.AlignmentEntry entry = entryHeap.dequeue();
+            Alignments.AlignmentEntry entry = sortBuffer.dequeue();
             //    System.out.println("dequeuing: " + entry);
             ++processedCount;
             // update the position of the front:
@@ -149,7 +144,7 @@ public class LocalSortProcessor implements AlignmentProcessorInterface {
         //  currentPosition = Math.min(currentPosition, entry.getPosition());
 
         //   System.out.println("enqueuing " + entry);
-        entryHeap.enqueue(entry);
+        sortBuffer.enqueue(entry);
         lastCurrentPosition = Math.max(lastCurrentPosition, entry.getPosition());
         lastTargetIndex = Math.max(lastTargetIndex, entry.getTargetIndex());
     }
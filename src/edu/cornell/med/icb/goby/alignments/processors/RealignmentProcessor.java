@@ -33,12 +33,18 @@ import it.unimi.dsi.lang.MutableString;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Support to realign reads on the fly in the proximity of indels. This implementation starts randomly filtering out alignments
  * from the source if more than 500,000 entries make it into the sliding realignment window. The more alignments are added
  * past the threshold the more difficult it become to add new ones. This strategy helps consuming all memory in the realignment
  * step working with alignments that have artefactual peaks of very high coverage.
+ * <p/>
+ * Candidate indels are looked up by interval for each entry, and candidate realignments are scored against
+ * reference bases fetched in one range per candidate. Scratch buffers and builders are owned by the processor
+ * instance and the genome is only read, so that several processors, each reading a different slice of
+ * references, can run concurrently against the same genome.
  *
  * @author Fabien Campagne
  *         Date: Apr 30, 2011
@@ -215,24 +221,26 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
     }
 
     private final boolean[] directions = new boolean[]{true, false};
+    /**
+     * Indels that overlap the entry being realigned. Reused across entries.
+     */
+    private final ObjectArrayList<ObservedIndel> overlappingIndels = new ObjectArrayList<ObservedIndel>();
 
     private Alignments.AlignmentEntry realign(final Alignments.AlignmentEntry entry, InfoForTarget tinfo) {
         int currentBestScore = 0;
         ObservedIndel bestScoreIndel = null;
         boolean bestScoreDirection = false;
 
-
-        for (ObservedIndel indel : tinfo.potentialIndels) {
-            if (entryOverlapsIndel(indel, entry)) {
-
-                for (boolean direction : directions) {
-
-                    final int realignedScore = score(entry, indel, direction, currentBestScore, genome);
-                    if (realignedScore > currentBestScore) {
-                        currentBestScore = realignedScore;
-                        bestScoreIndel = indel;
-                        bestScoreDirection = direction;
-                    }
+        final int entryStart = entry.getPosition();
+        tinfo.overlappingIndels(entryStart, entryStart + entry.getTargetAlignedLength(), overlappingIndels);
+        for (final ObservedIndel indel : overlappingIndels) {
+            for (boolean direction : directions) {
+
+                final int realignedScore = score(entry, indel, direction, currentBestScore, genome);
+                if (realignedScore > currentBestScore) {
+                    currentBestScore = realignedScore;
+                    bestScoreIndel = indel;
+                    bestScoreDirection = direction;
                 }
             }
         }
@@ -246,28 +254,11 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
 
     }
 
-    /**
-     * Return true if the alignment overlaps the indel.
-     *
-     * @param indel
-     * @param entry
-     * @return
-     */
-    private boolean entryOverlapsIndel(final ObservedIndel indel, final Alignments.AlignmentEntry entry) {
-        final int entryStart = entry.getPosition();
-        final int entryEnd = entryStart + entry.getTargetAlignedLength();
-        final int indelStart = indel.getStart();
-        final int indelEnd = indel.getEnd();
-        return entryStart <= indelStart && indelEnd <= entryEnd ||
-                entryStart < indelEnd && entryEnd > indelStart ||
-                entryEnd > indelStart && entryStart < indelEnd;
-    }
-
     private Alignments.AlignmentEntry realign(Alignments.AlignmentEntry entry,
                                               ObservedIndel indel,
                                               boolean shiftForward, int scoreDelta) {
         // use entry as prototype:
-        Alignments.AlignmentEntry.Builder builder = Alignments.AlignmentEntry.newBuilder(entry);
+        Alignments.AlignmentEntry.Builder builder = entryBuilder.clear().mergeFrom(entry);
         // update the score to reflect the realignment:
         builder.setScore(entry.getScore() + scoreDelta);
         final int indelLength = indel.positionSpan();
@@ -299,10 +290,12 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
         /*
          *Reference positions for which the alignment does not agree with the reference, 0-based:
          */
-        IntArraySet variantPositions = new IntArraySet();
+        final IntArraySet variantPositions = this.variantPositions;
+        variantPositions.clear();
         // determine if rewrittenVariations become compatible with reference when indel is introduced in this alignment:
         // increase the score by 1 for every base that beomes compatible.
-        ObjectArrayList<Alignments.SequenceVariation> rewrittenVariations = new ObjectArrayList<Alignments.SequenceVariation>();
+        final ObjectArrayList<Alignments.SequenceVariation> rewrittenVariations = this.rewrittenVariations;
+        rewrittenVariations.clear();
         for (int i = 0; i < varCount; i++) {
             Alignments.SequenceVariation var = entry.getSequenceVariations(i);
             // check if var becomes compatible with reference when var's varPosition is shifted by the length of the indel in the specified shiftForward
@@ -350,13 +343,13 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
                     final boolean compatible = fromBase == toBase;
 
                     if (!compatible) {
-                        Alignments.SequenceVariation.Builder varBuilder = Alignments.SequenceVariation.newBuilder();
+                        final Alignments.SequenceVariation.Builder varBuilder = variationBuilder.clear();
                         // varPosition is one-based while realignedPos and entryPos are zero-based:
                         final int varPosition = direction * (realignedPos - entryPosition) + 1;
                         varBuilder.setPosition(varPosition);
                         varBuilder.setFrom(Character.toString(fromBase));
                         varBuilder.setTo(Character.toString(toBase));
-                        varBuilder.setToQuality(byteArray((byte) Byte.MAX_VALUE));
+                        varBuilder.setToQuality(MAX_QUALITY);
                         int readIndex = entry.getMatchingReverseStrand() ?
                                 entry.getQueryLength() - indelOffsetInAlignment + (shiftForward ? 1 : indelLength) :
                                 varPosition;
@@ -377,7 +370,7 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
             }
         }
         // finally, add the indel into the revised alignment:
-        Alignments.SequenceVariation.Builder varBuilder = Alignments.SequenceVariation.newBuilder();
+        final Alignments.SequenceVariation.Builder varBuilder = variationBuilder.clear();
 
         //  fix varPosition for negative strand, var positions are one-based:
         final int varPosition = shiftForward ? indelOffsetInAlignment + 1 : indel.getStart() - entryPosition + 1;
@@ -391,19 +384,23 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
 
         varBuilder.setReadIndex(readIndex);
         rewrittenVariations.add(varBuilder.build());
-        builder = builder.clearSequenceVariations();
-        for (Alignments.SequenceVariation var : rewrittenVariations) {
-            builder = builder.addSequenceVariations(var);
-        }
+        builder.clearSequenceVariations();
+        builder.addAllSequenceVariations(rewrittenVariations);
         final Alignments.AlignmentEntry alignmentEntry = builder.build();
         //    System.out.printf("realigned queryIndex=%d%n", alignmentEntry.getQueryIndex());
         return alignmentEntry;
     }
 
-    private ByteString byteArray(byte... a) {
-        return ByteString.copyFrom(a);
-    }
+    /**
+     * Builders and lists reused from one realigned entry to the next.
+     */
+    private final Alignments.AlignmentEntry.Builder entryBuilder = Alignments.AlignmentEntry.newBuilder();
+    private final Alignments.SequenceVariation.Builder variationBuilder = Alignments.SequenceVariation.newBuilder();
+    private final ObjectArrayList<Alignments.SequenceVariation> rewrittenVariations =
+            new ObjectArrayList<Alignments.SequenceVariation>();
+    private final IntArraySet variantPositions = new IntArraySet();
 
+    private static final ByteString MAX_QUALITY = ByteString.copyFrom(new byte[]{Byte.MAX_VALUE});
 
     /**
      * Score the realignment of an entry with respect to a potential indel.
@@ -431,71 +428,104 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
             return Integer.MIN_VALUE;
         }
         final int targetLength = genome.getLength(targetIndex);
+        // startAlignment and endAlignment are zero-based. Consider the span of reference between the indel insertion
+        // point and the end of the reference alignment going in the direction of extension.
+        final int startAlignment = shiftForward ? entryPosition + indelOffsetInAlignment : entryPosition;
+        final int endAlignment = Math.min(
+                shiftForward ? entry.getTargetAlignedLength() + entryPosition : indelOffsetInAlignment + entryPosition + (direction * indelLength),
+                targetLength - 1);
         /*
-         *Reference positions for which the alignment does not agree with the reference, 0-based:
+         * Reference positions in [startAlignment, endAlignment) for which the alignment does not agree with the reference,
+         * one bit per position:
          */
-        IntArraySet variantPositions = new IntArraySet();
+        final long[] variantMask = clearVariantMask(startAlignment, endAlignment);
         // determine if variations become compatible with reference when indel is introduced in this alignment:
         // increase the score by 1 for every base that beomes compatible.
         for (int i = 0; i < varCount; i++) {
             Alignments.SequenceVariation var = entry.getSequenceVariations(i);
             // check if var becomes compatible with reference when var's position is shifted by the length of the indel in the specified shiftForward
-            // newGenomicPosition is zero-based 
-            // final int originalGenomicPosition = var.getPosition() + entryPosition - 1;
+            // newGenomicPosition is zero-based
             final int newGenomicPosition = var.getPosition() + (direction * indelLength) + entryPosition - 1;
-            for (int j = 0; j < var.getTo().length(); ++j) {
+            final String to = var.getTo();
+            for (int j = 0; j < to.length(); ++j) {
 
-                final char toBase = var.getTo().charAt(j);
+                final char toBase = to.charAt(j);
                 final int index = newGenomicPosition + j;
-                if (index < 0 || index > genome.getLength(targetIndex)) {
+                if (index < 0 || index > targetLength) {
                     score += -10;
                 } else {
                     final boolean compatible = genome.get(targetIndex, newGenomicPosition + j) == toBase;
 
                     score += compatible ? 1 : 0;
                     // store which reference positions are different from the reference:
-
-                    variantPositions.add(var.getPosition() + entryPosition + j - 1);
+                    final int variantPosition = var.getPosition() + entryPosition + j - 1;
+                    if (variantPosition >= startAlignment && variantPosition < endAlignment) {
+                        final int bit = variantPosition - startAlignment;
+                        variantMask[bit >>> 6] |= 1L << bit;
+                    }
                 }
             }
 
         }
         // Determine which previously unchanged bases become incompatible with the reference when the the indel is introduced
-        // Consider the span of reference between the indel insertion point and the end of the reference alignment going in the direction of extension.
-        // startAlignment and endAlignment are zero-based
-        int startAlignment = shiftForward ? entryPosition + indelOffsetInAlignment : entryPosition;
-        int endAlignment = shiftForward ? entry.getTargetAlignedLength() + entryPosition : indelOffsetInAlignment + entryPosition + (direction * indelLength);
-
+        return score - countNewMismatches(genome, targetIndex, targetLength, startAlignment, endAlignment,
+                direction * indelLength, variantMask);
+    }
 
-        //       String pre = getGenomeSegment(genome, targetIndex, startAlignment, endAlignment);
-//
+    /**
+     * Bases of the reference fetched for the candidate being scored, and the mask of variant positions.
+     * Both are reused across candidates.
+     */
+    private final MutableString referenceBases = new MutableString();
+    private long[] variantMask = new long[4];
 
-//         String post = getGenomeSegment(genome, targetIndex, startAlignment + indelLength, endAlignment + indelLength);
-        //   System.out.printf(" pre and post alignments: %n%s\n%s%n", pre, post);
-        // pos is zero-based:
-        endAlignment = Math.min(endAlignment, genome.getLength(targetIndex) - 1);
-        for (int pos = startAlignment; pos < endAlignment; pos++) {
-            // both variantPositions and pos are zero-based:
-            if (!variantPositions.contains(pos)) {
-                // this base matched the reference sequence:
-                final int realignedPos = pos + (direction * indelLength);
-                // if the realigned position lies outside of the reference penalize heavily with -10, otherwise
-                // count -1 for every new mismatch introduced by the indel:
+    private long[] clearVariantMask(final int startAlignment, final int endAlignment) {
+        final int numWords = Math.max(0, endAlignment - startAlignment + 63) >>> 6;
+        if (variantMask.length < numWords) {
+            variantMask = new long[numWords];
+        } else {
+            Arrays.fill(variantMask, 0, numWords, 0L);
+        }
+        return variantMask;
+    }
 
+    /**
+     * Return the penalty for shifting the reference positions [startAlignment, endAlignment) by shift bases: -1 for
+     * every base that matched the reference and does not after the shift, -10 for every base shifted outside of the
+     * reference. Positions set in the variant mask did not match the reference and are not penalized. The reference
+     * bases are fetched as a single range and mismatches are counted 64 positions at a time.
+     */
+    private int countNewMismatches(final RandomAccessSequenceInterface genome, final int targetIndex,
+                                   final int targetLength, final int startAlignment, final int endAlignment,
+                                   final int shift, final long[] variantMask) {
+        if (startAlignment >= endAlignment) {
+            return 0;
+        }
+        // one range covers both the original and the shifted positions, clipped to the reference:
+        final int first = Math.max(0, Math.min(startAlignment, startAlignment + shift));
+        final int last = Math.min(targetLength, Math.max(endAlignment, endAlignment + shift));
+        genome.getRange(targetIndex, first, last - first, referenceBases);
+        final char[] bases = referenceBases.array();
+
+        int penalty = 0;
+        for (int wordStart = startAlignment, word = 0; wordStart < endAlignment; wordStart += 64, word++) {
+            final int wordEnd = Math.min(endAlignment, wordStart + 64);
+            long mismatches = 0;
+            long outside = 0;
+            for (int pos = wordStart; pos < wordEnd; pos++) {
+                final long bit = 1L << (pos - wordStart);
+                final int realignedPos = pos + shift;
                 if (realignedPos < 0 || realignedPos >= targetLength) {
-                    score += -10;
-                } else {
-                    final char refBase = genome.get(targetIndex, pos);
-                    final char newRefBase = genome.get(targetIndex, realignedPos);
-
-                    score += (refBase == newRefBase) ? 0 : -1;
+                    outside |= bit;
+                } else if (bases[pos - first] != bases[realignedPos - first]) {
+                    mismatches |= bit;
                 }
             }
-            // System.out.printf("indelOffsetInAlignment: %d shiftForward: %b score: %d%n", indelOffsetInAlignment, shiftForward, score);
+            // only bases that matched the reference before the shift are penalized:
+            final long matched = ~variantMask[word];
+            penalty += Long.bitCount(mismatches & matched) + 10 * Long.bitCount(outside & matched);
         }
-
-        //   System.out.printf("indelOffsetInAlignment: %d shiftForward: %b score: %d%n", indelOffsetInAlignment, shiftForward, score);
-        return score;
+        return penalty;
     }
 
     private String getGenomeSegment(RandomAccessSequenceInterface genome, int targetIndex, int startAlignment, int endAlignment) {
@@ -68,7 +68,7 @@ public class HybridChunkCodec1 implements ChunkCodec {
         final ByteArrayOutputStream result = new ByteArrayOutputStream();
         final DataOutputStream completeChunkData = new DataOutputStream(result);
         final ByteArrayOutputStream hybridStreamBytes = new ByteArrayOutputStream();
-        final Message reducedProtoBuff = handler.compressCollection(readCollection, hybridStreamBytes);
+        final Message reducedProtoBuff = compressCollection(readCollection, hybridStreamBytes);
 
         final int hybridStreamSize = hybridStreamBytes.size();
         final byte[] bytes = hybridStreamBytes.toByteArray();
@@ -102,6 +102,20 @@ public class HybridChunkCodec1 implements ChunkCodec {
         return result;
     }
 
+    /**
+     * Write the highly compressed pool of a collection to hybridStreamBytes and return the left-over collection.
+     * This implementation delegates to the handler.
+     *
+     * @param collection        collection to compress.
+     * @param hybridStreamBytes where to write the highly compressed pool.
+     * @return the left-over collection, to be compressed with GZip.
+     * @throws IOException if an error occurs writing the compressed pool.
+     */
+    protected Message compressCollection(final Message collection, final ByteArrayOutputStream hybridStreamBytes)
+            throws IOException {
+        return handler.compressCollection(collection, hybridStreamBytes);
+    }
+
     @Override
     public Message decode(final byte[] bytes) throws IOException {
         final DataInputStream completeChunkData = new DataInputStream(new FastByteArrayInputStream(bytes));
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.compression;
+
+import com.google.protobuf.Message;
+import edu.cornell.med.icb.goby.reads.Reads;
+import edu.cornell.med.icb.goby.reads.SequenceQualityCompressor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * A hybrid codec specialized for compact-reads files. Sequences are packed on two bits per base (with runs
+ * of N stored separately) and quality scores are coded with static per-chunk frequencies of an order-2 context
+ * model, see {@link SequenceQualityCompressor}. Chunks are smaller than with GZip and decode faster. The remaining
+ * fields of the reads (read index, lengths, identifiers, descriptions) are kept in a protobuf collection compressed
+ * with GZip. Chunks use the same layout as {@link HybridChunkCodec1}, and are decoded by the reads collection
+ * handler. Collections other than reads are compressed as {@link HybridChunkCodec1} would.
+ */
+public class HybridReadsChunkCodec extends HybridChunkCodec1 {
+    public static final byte REGISTRATION_CODE = -7;
+
+    private final SequenceQualityCompressor compressor = new SequenceQualityCompressor();
+
+    @Override
+    public String name() {
+        return "hybrid-reads";
+    }
+
+    @Override
+    public byte registrationCode() {
+        return REGISTRATION_CODE;
+    }
+
+    @Override
+    protected Message compressCollection(final Message collection, final ByteArrayOutputStream hybridStreamBytes)
+            throws IOException {
+        if (collection instanceof Reads.ReadCollection) {
+            return compressor.compress((Reads.ReadCollection) collection, hybridStreamBytes);
+        } else {
+            return super.compressCollection(collection, hybridStreamBytes);
+        }
+    }
+
+    @Override
+    public int getSuggestedChunkSize() {
+        return 10000;
+    }
+}
@@ -89,7 +89,7 @@ public class BetweenGroupSequenceVariationOutputFormat implements SequenceVariat
         samples = mode.getSamples();
         readerIndexToGroupIndex = mode.getReaderIndexToGroupIndex();
         ObjectArrayList<ReadIndexStats> readIndexStats = mode.getReadIndexStats();
-        this.statWriter = new TSVWriter(outputInfo.getPrintWriter());
+        this.statWriter = new TSVWriter(outputInfo);
 
         if (deAnalyzer.eval("within-groups") || deAnalyzer.eval("between-groups")) {
             //activate R only if we need it:
@@ -22,6 +22,9 @@ import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.algorithmic.algorithm.AnnotationCountInterface;
 import edu.cornell.med.icb.goby.algorithmic.algorithm.AnnotationCountIterateAlignments;
+import edu.cornell.med.icb.goby.algorithmic.algorithm.AnnotationCountMatrix;
+import edu.cornell.med.icb.goby.algorithmic.algorithm.AnnotationElementIndex;
+import edu.cornell.med.icb.goby.algorithmic.algorithm.ParallelAnnotationCounter;
 import edu.cornell.med.icb.goby.algorithmic.data.Annotation;
 import edu.cornell.med.icb.goby.algorithmic.data.GroupComparison;
 import edu.cornell.med.icb.goby.algorithmic.data.Segment;
@@ -42,6 +45,7 @@ import edu.rit.pj.ParallelRegion;
 import edu.rit.pj.ParallelTeam;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntAVLTreeSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.ints.IntSortedSet;
 import it.unimi.dsi.fastutil.objects.*;
@@ -86,6 +90,18 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
      */
     private static final double LOG_2 = Math.log(2);
 
+    private static final String NO_ENTRIES_WARNING = "No entries were written.  This may be due to the fact that names "
+            + "in the reference dataset used do not match those in the annotation file.  "
+            + "For example, ENSEMBL names chromosomes \"1\",\"2\",\"3\" whereas UCSC "
+            + "names the same chromosomes \"chr1\",\"chr2\",\"chr3\". In these "
+            + "cases you will need to adjust the names in the annotation file being used "
+            + "so they match the names used in the reference dataset.";
+    private static final String HEADER = "basename\tmain-id\tsecondary-id\ttype\tchro\tstrand\tlength\tstart\tend"
+            + "\tin-count\tover-count\tRPKM\tlog2(RPKM+1)\texpression\tnum-exons\n";
+    private static final String GENE_LINE = "%s\t%s\t%s\t%s\t%s\t%s\t%d\t%d\t%d\t%g\t%g\t%g\t%g\t%g\t%d%n";
+    private static final String EXON_LINE = "%s\t%s\t%s\t%s\t%s\t%s\t%d\t%d\t%d\t%g\t%g\t%g\t%g%n";
+    private static final String INTRON_LINE = "%s\t%s\t%s\t%s\t%s\t%s\t%d\t%d\t%d\t%g\t%g\t%e\t%g%n";
+
     /**
      * The output file.
      */
@@ -127,6 +143,11 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
      * List of comparisons to perform.
      */
     private ArrayList<GroupComparison> groupComparisonsList;
+    /**
+     * When false, samples are counted one at a time as with weights or genomic ranges, instead of in parallel over
+     * a shared index of the annotation elements.
+     */
+    private boolean countInParallel = true;
 
 
     @Override
@@ -196,6 +217,14 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
         return this;
     }
 
+    /**
+     * Count each sample with its own counters, as with weights or genomic ranges. Used to compare with the counts
+     * of samples counted in parallel.
+     */
+    void setCountInParallel(final boolean countInParallel) {
+        this.countInParallel = countInParallel;
+    }
+
     private void parseGenomicRange(JSAPResult jsapResult) {
         String startOffsetArgument = jsapResult.getString("start-position");
         String endOffsetArgument = jsapResult.getString("end-position");
@@ -266,11 +295,11 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
         if (includeAnnotationTypeCommas != null) {
             includeAnnotationTypes.addAll(Arrays.asList(includeAnnotationTypeCommas.split("[,]")));
             for (final String name : includeAnnotationTypes) {
-                if (name.equals("gene") || name.equals("other") || name.equals("exon")) {
+                if (name.equals("gene") || name.equals("other") || name.equals("exon") || name.equals("intron")) {
                     continue;
                 } else {
                     System.out.println("Please enter a valid annotation type. "
-                            + "Valid annotation types include gene, exon, and or other.");
+                            + "Valid annotation types include gene, exon, other, and or intron.");
                     System.exit(1);
                 }
                 System.out.println("Will write counts for the following annotation types:");
@@ -362,15 +391,19 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
 
             if (outputFilename != null) {
                 writer = new BufferedWriter(new FileWriter(outputFilename));
-                writer.write("basename\tmain-id\tsecondary-id\ttype\tchro\tstrand\tlength\tstart\tend\tin-count\tover-count\tRPKM\tlog2(RPKM+1)\texpression\tnum-exons\n");
+                writer.write(HEADER);
             }
 
-            final BasenameParallelRegion region = new BasenameParallelRegion(allAnnots, inputFilenames, writer, genomicRange);
+            if (countInParallel && genomicRange == null && !weightParams.useWeights) {
+                countInParallel(allAnnots, writer);
+            } else {
+                final BasenameParallelRegion region = new BasenameParallelRegion(allAnnots, inputFilenames, writer, genomicRange);
 
-            try {
-                getParallelTeam().execute(region);
-            } catch (Exception e) {
-                LOG.error("An exception occurred.", e);
+                try {
+                    getParallelTeam().execute(region);
+                } catch (Exception e) {
+                    LOG.error("An exception occurred.", e);
+                }
             }
             Runtime.getRuntime().gc();
             Runtime.getRuntime().gc();
@@ -531,6 +564,7 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
         }
         final AnnotationCountIterateAlignments iterateAlignment = new AnnotationCountIterateAlignments();
         iterateAlignment.setWeightInfo(weightParams, weights);
+        iterateAlignment.setAnnotations(allAnnots);
         iterateAlignment.parseIncludeReferenceArgument(includeReferenceNameCommas);
 
         // Iterate through the alignment and retrieve algs:
@@ -551,7 +585,7 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
             if (writeAnnotationCounts) {
                 final String outputFileTmp = FilenameUtils.removeExtension(inputFile) + ".ann-counts.tsv";
                 writer = new BufferedWriter(new FileWriter(outputFileTmp));
-                writer.write("basename\tmain-id\tsecondary-id\ttype\tchro\tstrand\tlength\tstart\tend\tin-count\tover-count\tRPKM\tlog2(RPKM+1)\texpression\tnum-exons\n");
+                writer.write(HEADER);
             }
         }
 
@@ -565,6 +599,216 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
     }
 
 
+    /**
+     * Count the reads of all the input alignments over one shared index of the annotation elements. Each reference
+     * sequence of each sorted alignment is counted as a separate unit of work, on as many threads as the parallel
+     * team. Counts are then written, and observed for differential expression, one sample at a time in the order
+     * of the input files.
+     */
+    private void countInParallel(final Object2ObjectMap<String, ObjectList<Annotation>> allAnnots,
+                                 BufferedWriter writer) throws IOException {
+        final AnnotationElementIndex elements = new AnnotationElementIndex(allAnnots);
+        final ParallelAnnotationCounter counter = new ParallelAnnotationCounter(elements,
+                getParallelTeam().getThreadCount());
+        final AlignmentReaderFactory factory = filterAmbiguousReads ? new NonAmbiguousAlignmentReaderFactory() :
+                new DefaultAlignmentReaderFactory();
+        counter.setAlignmentReaderFactory(factory);
+        if (filterByReferenceNames) {
+            counter.setIncludeReferenceNames(includeReferenceNames);
+        }
+        final String[] basenames = new String[inputFilenames.length];
+        for (int i = 0; i < inputFilenames.length; i++) {
+            basenames[i] = AlignmentReaderImpl.getBasename(inputFilenames[i]);
+        }
+        System.out.println(String.format("Counting %d alignments..", basenames.length));
+        final AnnotationCountMatrix matrix = counter.count(basenames);
+        final DoubleIndexedIdentifier[] referenceIds = new DoubleIndexedIdentifier[basenames.length];
+        final IntSortedSet[] referencesToProcess = new IntSortedSet[basenames.length];
+        // the reference sequences of all the samples, in the order in which they first appear:
+        final ObjectList<String> referenceNames = new ObjectArrayList<String>();
+        final ObjectSet<String> uniqueReferenceNames = new ObjectOpenHashSet<String>();
+        for (int sampleIndex = 0; sampleIndex < basenames.length; sampleIndex++) {
+            final AlignmentReader reader = factory.createReader(basenames[sampleIndex]);
+            reader.readHeader();
+            referenceIds[sampleIndex] = new DoubleIndexedIdentifier(reader.getTargetIdentifiers());
+            reader.close();
+            referencesToProcess[sampleIndex] = new IntAVLTreeSet();
+            for (int referenceIndex = 0; referenceIndex < referenceIds[sampleIndex].size(); referenceIndex++) {
+                final String referenceName = referenceIds[sampleIndex].getId(referenceIndex).toString();
+                if (!filterByReferenceNames || includeReferenceNames.contains(referenceName)) {
+                    referencesToProcess[sampleIndex].add(referenceIndex);
+                    if (uniqueReferenceNames.add(referenceName)) {
+                        referenceNames.add(referenceName);
+                    }
+                }
+            }
+        }
+        int[] elementToCalculator = null;
+        if (doComparison) {
+            defineElements(allAnnots, referenceNames);
+            elementToCalculator = mapElementsToCalculator(elements, referenceNames);
+        }
+        for (int sampleIndex = 0; sampleIndex < basenames.length; sampleIndex++) {
+            final String inputBasename = basenames[sampleIndex];
+            deCalculator.setNumAlignedInSample(FilenameUtils.getBaseName(inputBasename),
+                    matrix.getNumAlignedReads(sampleIndex));
+            if (outputFilename == null && writeAnnotationCounts) {
+                // output filename was not provided on the command line. We make one output per input basename
+                final String outputFileTmp = FilenameUtils.removeExtension(inputFilenames[sampleIndex]) + ".ann-counts.tsv";
+                writer = new BufferedWriter(new FileWriter(outputFileTmp));
+                writer.write(HEADER);
+            }
+            try {
+                writeAnnotationCounts(matrix, sampleIndex, elementToCalculator, writer, inputBasename,
+                        referenceIds[sampleIndex], referencesToProcess[sampleIndex]);
+            } finally {
+                if (outputFilename == null) {
+                    IOUtils.closeQuietly(writer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Map the elements of annotations to the index of the element they are observed as in the differential
+     * expression calculator, or -1 for the elements that are not observed.
+     *
+     * @param referenceNames the reference sequences processed in any of the samples.
+     */
+    private int[] mapElementsToCalculator(final AnnotationElementIndex elements,
+                                          final ObjectList<String> referenceNames) {
+        final int[] elementToCalculator = new int[elements.getNumberOfElements()];
+        Arrays.fill(elementToCalculator, -1);
+        for (final String chromosomeName : referenceNames) {
+            if (elements.getIntervalIndex().getReferenceIndex(chromosomeName) == -1) {
+                continue;
+            }
+            final int end = elements.getEndAnnotation(chromosomeName);
+            for (int annotationIndex = elements.getFirstAnnotation(chromosomeName); annotationIndex < end; annotationIndex++) {
+                final Annotation annot = elements.getAnnotation(annotationIndex);
+                // genes are always defined, as when counts are written per sample:
+                final int geneIndex = deCalculator.defineElement(annot.getId());
+                if (includeAnnotationTypes.contains("gene")) {
+                    elementToCalculator[elements.getGeneElement(annotationIndex)] = geneIndex;
+                }
+                final ObjectList<Segment> segments = annot.getSegments();
+                if (includeAnnotationTypes.contains("exon")) {
+                    for (int i = 0; i < segments.size(); i++) {
+                        elementToCalculator[elements.getExonElement(annotationIndex, i)] =
+                                deCalculator.getElementIndex(segments.get(i).getId());
+                    }
+                }
+                if (includeAnnotationTypes.contains("other")) {
+                    for (int i = 0; i < segments.size() - 1; i++) {
+                        elementToCalculator[elements.getIntronElement(annotationIndex, i)] =
+                                deCalculator.getElementIndex(segments.get(i).getId() + "-" + segments.get(i + 1).getId());
+                    }
+                }
+            }
+        }
+        return elementToCalculator;
+    }
+
+    /**
+     * Write the counts of one sample, in the format of the counts written per sample, and observe them in the
+     * differential expression calculator.
+     */
+    private void writeAnnotationCounts(final AnnotationCountMatrix matrix, final int sampleIndex,
+                                       final int[] elementToCalculator, final BufferedWriter writer,
+                                       final String inputBasename, final DoubleIndexedIdentifier referenceIds,
+                                       final IntSet referencesToProcess) throws IOException {
+        final AnnotationElementIndex elements = matrix.getElements();
+        final int[] inCounts = matrix.getInCounts(sampleIndex);
+        final int[] overlapCounts = matrix.getOverlapCounts(sampleIndex);
+        final int[] calculatorCounts = elementToCalculator == null ? null : new int[deCalculator.getElementIds().size()];
+        // get just the filename (strip the path, not the extension)
+        final String basename = FilenameUtils.getName(inputBasename);
+        final double numAlignedInSample = deCalculator.getNumAlignedInSample(inputBasename);
+        int numberOfAnnotationCountsWritten = 0;
+        for (final int referenceIndex : referencesToProcess) {
+            final String chromosomeName = referenceIds.getId(referenceIndex).toString();
+            if (referencesToProcess.size() < 1000) {
+                //let's not write thousands of lines of output
+                System.out.println("Writing annotation counts for reference " + chromosomeName);
+            }
+            if (elements.getIntervalIndex().getReferenceIndex(chromosomeName) == -1) {
+                continue;
+            }
+            final int end = elements.getEndAnnotation(chromosomeName);
+            for (int annotationIndex = elements.getFirstAnnotation(chromosomeName); annotationIndex < end; annotationIndex++) {
+                final Annotation annot = elements.getAnnotation(annotationIndex);
+                final int numExons = annot.getSegments().size();
+                if (includeAnnotationTypes.contains("gene")) {
+                    final int gene = elements.getGeneElement(annotationIndex);
+                    final double geneOverlapReads = overlapCounts[gene];
+                    final double geneExpression = matrix.geneExpressionCount(sampleIndex, annotationIndex);
+                    final double geneRPKM = deCalculator.calculateNormalized(geneOverlapReads, annot.getLength(),
+                            numAlignedInSample);
+                    if (writeAnnotationCounts) {
+                        writer.write(String.format(GENE_LINE, basename, annot.getId(), "", "gene",
+                                annot.getChromosome(), annot.getStrand(), annot.getEnd() - annot.getStart() + 1,
+                                annot.getStart(), annot.getEnd(), (double) inCounts[gene], geneOverlapReads, geneRPKM,
+                                log2(geneRPKM), geneExpression, numExons));
+                    }
+                    numberOfAnnotationCountsWritten++;
+                    if (calculatorCounts != null) {
+                        calculatorCounts[elementToCalculator[gene]] = (int) geneExpression;
+                    }
+                }
+                if (includeAnnotationTypes.contains("exon") || includeAnnotationTypes.contains("other")) {
+                    for (int i = 0; i < numExons; i++) {
+                        final Segment segment = annot.getSegments().get(i);
+                        if (includeAnnotationTypes.contains("exon")) {
+                            final int exon = elements.getExonElement(annotationIndex, i);
+                            final double exonOverlapReads = overlapCounts[exon];
+                            final double exonRPKM = deCalculator.calculateNormalized(exonOverlapReads,
+                                    segment.getLength(), numAlignedInSample);
+                            if (writeAnnotationCounts) {
+                                writer.write(String.format(EXON_LINE, basename, annot.getId(), segment.getId(), "exon",
+                                        annot.getChromosome(), segment.getStrand(), segment.getLength(),
+                                        segment.getStart(), segment.getEnd(), (double) inCounts[exon], exonOverlapReads,
+                                        exonRPKM, log2(exonRPKM)));
+                            }
+                            numberOfAnnotationCountsWritten++;
+                            if (calculatorCounts != null) {
+                                calculatorCounts[elementToCalculator[exon]] = overlapCounts[exon];
+                            }
+                        }
+                        if (i < numExons - 1) {
+                            final Segment nextSegment = annot.getSegments().get(i + 1);
+                            final int intronLength = nextSegment.getStart() - segment.getEnd() - 1;
+                            // intron lines repeat the preceding exon, as when counts are written per sample:
+                            if (intronLength > 0 && includeAnnotationTypes.contains("intron")) {
+                                final int intron = elements.getIntronElement(annotationIndex, i);
+                                final double intronOverlapReads = overlapCounts[intron];
+                                final double intronRPKM = deCalculator.calculateNormalized(intronOverlapReads,
+                                        nextSegment.getLength(), numAlignedInSample);
+                                if (writeAnnotationCounts) {
+                                    writer.write(String.format(INTRON_LINE, basename, annot.getId(),
+                                            segment.getId() + "-" + nextSegment.getId(), "other",
+                                            annot.getChromosome(), segment.getStrand(), segment.getLength(),
+                                            segment.getStart(), segment.getEnd(), (double) inCounts[intron],
+                                            intronOverlapReads, intronRPKM, log2(intronRPKM)));
+                                }
+                                numberOfAnnotationCountsWritten++;
+                                if (calculatorCounts != null && includeAnnotationTypes.contains("other")) {
+                                    calculatorCounts[elementToCalculator[intron]] = overlapCounts[intron];
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        if (calculatorCounts != null) {
+            deCalculator.observe(basename, calculatorCounts);
+        }
+        LOG.info("Wrote " + numberOfAnnotationCountsWritten + " entries");
+        if (numberOfAnnotationCountsWritten == 0) {
+            LOG.warn(NO_ENTRIES_WARNING);
+        }
+    }
+
     public static WeightsInfo loadWeights(final String inputBasename, final boolean useWeights, final String id) {
         WeightsInfo weights = null;
         if (useWeights) {
@@ -585,69 +829,89 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
     }
 
 
-    private void writeAnnotationCounts(final Object2ObjectMap<String, ObjectList<Annotation>> allAnnots,
-                                       final BufferedWriter writer, final String inputBasename,
-                                       final DoubleIndexedIdentifier referenceIds, final AnnotationCountInterface[] algs,
-                                       final IntSet referencesToProcess) throws IOException {
+    /**
+     * Define the elements of the annotations of the reference sequences processed in one sample in the differential
+     * expression calculator.
+     */
+    private void defineElements(final Object2ObjectMap<String, ObjectList<Annotation>> allAnnots,
+                                final DoubleIndexedIdentifier referenceIds, final IntSet referencesToProcess) {
+        final ObjectList<String> referenceNames = new ObjectArrayList<String>();
+        for (final int referenceIndex : referencesToProcess) {
+            referenceNames.add(referenceIds.getId(referenceIndex).toString());
+        }
+        defineElements(allAnnots, referenceNames);
+    }
 
-        // collect all element ids:
-        if (doComparison) {
-            int numberOfElements = 0;
-            int numberOfGenes = 0;
-            int numberOfExons = 0;
-            int numberOfIntrons = 0;
-            for (final int referenceIndex : referencesToProcess) {
-                final String chromosomeName = referenceIds.getId(referenceIndex).toString();
-
-                if (!allAnnots.containsKey(chromosomeName)) {
-                    continue;
+    /**
+     * Define the elements of the annotations of some reference sequences in the differential expression
+     * calculator.
+     */
+    private void defineElements(final Object2ObjectMap<String, ObjectList<Annotation>> allAnnots,
+                                final ObjectList<String> referenceNames) {
+        int numberOfElements = 0;
+        int numberOfGenes = 0;
+        int numberOfExons = 0;
+        int numberOfIntrons = 0;
+        for (final String chromosomeName : referenceNames) {
+            if (!allAnnots.containsKey(chromosomeName)) {
+                continue;
+            }
+            final ObjectList<Annotation> annots = allAnnots.get(chromosomeName);
+
+            for (final Annotation annot : annots) {
+                final String geneID = annot.getId();
+                final int numExons = annot.getSegments().size();
+                final int numberIntrons = numExons - 1;
+
+                if (includeAnnotationTypes.contains("gene")) {
+                    final int index = deCalculator.defineElement(geneID, DifferentialExpressionCalculator.ElementType.GENE);
+                    deCalculator.defineElementLength(index, annot.getLength());
+                    numberOfGenes++;
+                    numberOfElements++;
                 }
-                final ObjectList<Annotation> annots = allAnnots.get(chromosomeName);
 
-                for (final Annotation annot : annots) {
-                    final String geneID = annot.getId();
-                    final int numExons = annot.getSegments().size();
-                    final int numberIntrons = numExons - 1;
+                if (includeAnnotationTypes.contains("exon")) {
 
-                    if (includeAnnotationTypes.contains("gene")) {
-                        final int index = deCalculator.defineElement(geneID, DifferentialExpressionCalculator.ElementType.GENE);
+                    for (int i = 0; i < numExons; i++) {
+                        final Segment exonSegment = annot.getSegments().get(i);
+                        final String exonID = exonSegment.getId();
+                        final int index = deCalculator.defineElement(exonID, DifferentialExpressionCalculator.ElementType.EXON);
                         deCalculator.defineElementLength(index, annot.getLength());
-                        numberOfGenes++;
+                        numberOfExons++;
                         numberOfElements++;
                     }
+                }
 
-                    if (includeAnnotationTypes.contains("exon")) {
-
-                        for (int i = 0; i < numExons; i++) {
-                            final Segment exonSegment = annot.getSegments().get(i);
-                            final String exonID = exonSegment.getId();
-                            final int index = deCalculator.defineElement(exonID, DifferentialExpressionCalculator.ElementType.EXON);
-                            deCalculator.defineElementLength(index, annot.getLength());
-                            numberOfExons++;
+                if (includeAnnotationTypes.contains("other")) {
+                    for (int i = 0; i < numExons; i++) {
+                        if (i < numberIntrons) {
+                            final Segment segment = annot.getSegments().get(i);
+                            final int intronStart = segment.getEnd() + 1;
+                            final Segment intronSegment = annot.getSegments().get(i + 1);
+                            final int intronEnd = intronSegment.getStart() - 1;
+                            final int intronLength = intronEnd - intronStart + 1;
+                            final String intronID = segment.getId() + "-" + intronSegment.getId();
+                            final int index = deCalculator.defineElement(intronID, DifferentialExpressionCalculator.ElementType.OTHER);
+                            deCalculator.defineElementLength(index, intronLength);
+                            numberOfIntrons++;
                             numberOfElements++;
                         }
                     }
-
-                    if (includeAnnotationTypes.contains("other")) {
-                        for (int i = 0; i < numExons; i++) {
-                            if (i < numberIntrons) {
-                                final Segment segment = annot.getSegments().get(i);
-                                final int intronStart = segment.getEnd() + 1;
-                                final Segment intronSegment = annot.getSegments().get(i + 1);
-                                final int intronEnd = intronSegment.getStart() - 1;
-                                final int intronLength = intronEnd - intronStart + 1;
-                                final String intronID = segment.getId() + "-" + intronSegment.getId();
-                                final int index = deCalculator.defineElement(intronID, DifferentialExpressionCalculator.ElementType.OTHER);
-                                deCalculator.defineElementLength(index, intronLength);
-                                numberOfIntrons++;
-                                numberOfElements++;
-                            }
-                        }
-                    }
                 }
             }
-            LOG.info(String.format("%d Genes %d exons %d other total %d ", numberOfGenes, numberOfExons, numberOfIntrons, numberOfElements));
-            deCalculator.reserve(numberOfElements, inputFilenames.length);
+        }
+        LOG.info(String.format("%d Genes %d exons %d other total %d ", numberOfGenes, numberOfExons, numberOfIntrons, numberOfElements));
+        deCalculator.reserve(numberOfElements, inputFilenames.length);
+    }
+
+    private void writeAnnotationCounts(final Object2ObjectMap<String, ObjectList<Annotation>> allAnnots,
+                                       final BufferedWriter writer, final String inputBasename,
+                                       final DoubleIndexedIdentifier referenceIds, final AnnotationCountInterface[] algs,
+                                       final IntSet referencesToProcess) throws IOException {
+
+        // collect all element ids:
+        if (doComparison) {
+            defineElements(allAnnots, referenceIds, referencesToProcess);
         }
 
         int numberOfAnnotationCountsWritten = 0;
@@ -693,7 +957,7 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
                     final double geneRPKM = deCalculator.calculateNormalized(geneOverlapReads, annot.getLength(),
                             deCalculator.getNumAlignedInSample(sampleId));
                     if (writeAnnotationCounts) {
-                        writer.write(String.format("%s\t%s\t%s\t%s\t%s\t%s\t%d\t%d\t%d\t%g\t%g\t%g\t%g\t%g\t%d%n",
+                        writer.write(String.format(GENE_LINE,
                                 basename,
                                 geneID,
                                 "",
@@ -734,7 +998,7 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
                         final double exonRPKM = deCalculator.calculateNormalized(exonOverlapReads, segment.getLength(), deCalculator.getNumAlignedInSample(sampleId));
                         if (includeAnnotationTypes.contains("exon")) {
                             if (writeAnnotationCounts) {
-                                writer.write(String.format("%s\t%s\t%s\t%s\t%s\t%s\t%d\t%d\t%d\t%g\t%g\t%g\t%g%n",
+                                writer.write(String.format(EXON_LINE,
                                         basename,
                                         geneID,
                                         exonID,
@@ -767,7 +1031,7 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
                             if (intronLength > 0) {
                                 if (includeAnnotationTypes.contains("intron")) {
                                     if (writeAnnotationCounts) {
-                                        writer.write(String.format("%s\t%s\t%s\t%s\t%s\t%s\t%d\t%d\t%d\t%g\t%g\t%e\t%g%n",
+                                        writer.write(String.format(INTRON_LINE,
                                                 basename,
                                                 geneID,
                                                 intronID,
@@ -797,12 +1061,7 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
 
         LOG.info("Wrote " + numberOfAnnotationCountsWritten + " entries");
         if (numberOfAnnotationCountsWritten == 0) {
-            LOG.warn("No entries were written.  This may be due to the fact that names "
-                    + "in the reference dataset used do not match those in the annotation file.  "
-                    + "For example, ENSEMBL names chromosomes \"1\",\"2\",\"3\" whereas UCSC "
-                    + "names the same chromosomes \"chr1\",\"chr2\",\"chr3\". In these "
-                    + "cases you will need to adjust the names in the annotation file being used "
-                    + "so they match the names used in the reference dataset.");
+            LOG.warn(NO_ENTRIES_WARNING);
         }
     }
 
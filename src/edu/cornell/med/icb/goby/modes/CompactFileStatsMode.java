@@ -21,16 +21,23 @@ package edu.cornell.med.icb.goby.modes;
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.algorithmic.data.DistinctIntValueCounterBitSet;
+import edu.cornell.med.icb.goby.algorithmic.data.DistinctIntValueCounterConcurrentBitSet;
+import edu.cornell.med.icb.goby.algorithmic.data.DistinctIntValueCounterInterface;
+import edu.cornell.med.icb.goby.alignments.AlignmentEntryStatistics;
 import edu.cornell.med.icb.goby.alignments.AlignmentReaderImpl;
 import edu.cornell.med.icb.goby.alignments.AlignmentTooManyHitsReader;
 import edu.cornell.med.icb.goby.alignments.Alignments;
-import edu.cornell.med.icb.goby.alignments.EntryFlagHelper;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
 import edu.cornell.med.icb.goby.reads.Reads;
 import edu.cornell.med.icb.goby.reads.ReadsReader;
 import edu.cornell.med.icb.goby.util.FileExtensionHelper;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
 import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.logging.ProgressLogger;
 import org.apache.commons.io.FileUtils;
@@ -44,6 +51,11 @@ import org.apache.log4j.Logger;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 
 /**
@@ -67,6 +79,11 @@ public class CompactFileStatsMode extends AbstractGobyMode {
     private static final String MODE_DESCRIPTION =
             "Display some basic statistics on compact-reads and compact-alignment files.";
 
+    /**
+     * Prefix of the statistics cached in the .stats file of alignments.
+     */
+    private static final String CACHE_PREFIX = "compact-file-stats.";
+
     /**
      * The input files.
      */
@@ -131,6 +148,26 @@ public class CompactFileStatsMode extends AbstractGobyMode {
     private String type;
     private boolean headerOnly;
 
+    /**
+     * Number of threads that scan the entries of an alignment.
+     */
+    private int numThreads = 1;
+
+    /**
+     * Scan one slice of the entries file in sampleEvery, or every slice when sampleEvery is one.
+     */
+    private int sampleEvery = 1;
+
+    /**
+     * Length of the slices of the entries file that are sampled, in bytes. About one chunk of entries.
+     */
+    private long sampleSliceLength = 1 << 20;
+
+    /**
+     * Whether statistics of alignment entries are cached in the .stats file of alignments.
+     */
+    private boolean cacheStatistics;
+
     @Override
     public String getModeName() {
         return MODE_NAME;
@@ -162,6 +199,11 @@ public class CompactFileStatsMode extends AbstractGobyMode {
         verbose = jsapResult.getBoolean("verbose");
         type = jsapResult.getString("type");
         headerOnly = jsapResult.getBoolean("header-only");
+        final int numThreadsOption = jsapResult.getInt("num-threads");
+        numThreads = numThreadsOption == -1 ? Runtime.getRuntime().availableProcessors()
+                : Math.max(1, numThreadsOption);
+        sampleEvery = Math.max(1, jsapResult.getInt("sample-every"));
+        cacheStatistics = jsapResult.getBoolean("cache-statistics");
         return this;
     }
 
@@ -279,8 +321,6 @@ public class CompactFileStatsMode extends AbstractGobyMode {
 
         stream.printf("Number of query sequences = %,d%n", reader.getNumberOfQueries());
 
-        final SummaryStatistics queryLengthStats = new SummaryStatistics();
-
         stream.println("Query lengths stored in entries = " + reader.isQueryLengthStoredInEntries());
         stream.println("Constant query lengths = " + reader.isConstantQueryLengths());
 
@@ -319,95 +359,384 @@ public class CompactFileStatsMode extends AbstractGobyMode {
             stream.println("Alignment has no Read Origin Info/Read Groups");
         }
         if (headerOnly) return;
-        // the query indices that aligned. Includes those
-        final DistinctIntValueCounterBitSet alignedQueryIndices = new DistinctIntValueCounterBitSet();
-
-        describeAmbigousReads(basename, reader.getNumberOfQueries(), alignedQueryIndices);
-
-        int maxQueryIndex = -1;
-        int maxTargetIndex = -1;
-        int numEntries = 0;
-        long numLogicalAlignmentEntries = 0;
-        long total = 0;
-        double avgScore = 0;
-        int sumNumVariations = 0;
-        int numPaired = 0;
-        int numProperlyPaired = 0;
-        int numFirstInPair = 0;
-        int numSecondInPair = 0;
-        boolean hasSoftClips = false;
-
-        for (final Alignments.AlignmentEntry entry : reader) {
-            numberOfReads++;   // Across all files
-            numEntries++;      // Across this file
-            numLogicalAlignmentEntries += Math.max(entry.getMultiplicity(), 1);
-            total += entry.getQueryAlignedLength();
-            avgScore += entry.getScore();
-            maxQueryIndex = Math.max(maxQueryIndex, entry.getQueryIndex());
-            maxTargetIndex = Math.max(maxTargetIndex, entry.getTargetIndex());
-            cumulativeReadLength += entry.getQueryAlignedLength();
-            minReadLength = Math.min(minReadLength, entry.getQueryAlignedLength());
-            maxReadLength = Math.max(maxReadLength, entry.getQueryAlignedLength());
-            sumNumVariations += entry.getSequenceVariationsCount();
-            alignedQueryIndices.observe(entry.getQueryIndex());
-            hasSoftClips |= entry.hasSoftClippedBasesLeft();
-            hasSoftClips |= entry.hasSoftClippedBasesRight();
-            // check entry then header for the query length
-
-            final double queryLength = entry.getQueryLength();
-            queryLengthStats.addValue(queryLength);
-
-            numPaired += EntryFlagHelper.isPaired(entry) ? 1 : 0;
-            numProperlyPaired += EntryFlagHelper.isProperlyPaired(entry) ? 1 : 0;
-            numFirstInPair += EntryFlagHelper.isFirstInPair(entry) ? 1 : 0;
-            numSecondInPair += EntryFlagHelper.isSecondInPair(entry) ? 1 : 0;
+        final File entriesFile = new File(basename + ".entries");
+        if (sampleEvery > 1) {
+            describeAmbigousReads(basename, reader.getNumberOfQueries(), null);
+            describeSampledEntries(reader, entriesFile);
+            return;
+        }
+        AlignmentEntryStatistics statistics = null;
+        int numberOfMatchedQueries = 0;
+        if (cacheStatistics) {
+            statistics = loadCachedStatistics(reader, entriesFile);
+        }
+        if (statistics == null) {
+            // the query indices that aligned. Includes those
+            final DistinctIntValueCounterInterface alignedQueryIndices =
+                    new DistinctIntValueCounterConcurrentBitSet();
+            describeAmbigousReads(basename, reader.getNumberOfQueries(), alignedQueryIndices);
+            statistics = scanEntries(reader, entriesFile, alignedQueryIndices);
+            numberOfMatchedQueries = alignedQueryIndices.count();
+            if (cacheStatistics) {
+                storeCachedStatistics(reader, entriesFile, statistics, numberOfMatchedQueries);
+            }
+        } else {
+            describeAmbigousReads(basename, reader.getNumberOfQueries(), null);
+            numberOfMatchedQueries =
+                    Integer.parseInt(reader.getStatistics().getProperty(CACHE_PREFIX + "matched.query.indices"));
+            stream.println("Statistics of entries were cached in the .stats file");
         }
+        observeAcrossFiles(statistics);
 
-        avgScore /= (double) numLogicalAlignmentEntries;
+        final long numEntries = statistics.getNumberOfEntries();
+        final long numLogicalAlignmentEntries = statistics.getNumberOfLogicalEntries();
+        final double avgScore = statistics.getTotalScore() / (double) numLogicalAlignmentEntries;
 
         final int numQuerySequences = reader.getNumberOfQueries();
         stream.printf("num query indices = %,d%n", numQuerySequences);
-        final int numTargetSequences = maxTargetIndex + 1;
+        final int numTargetSequences = statistics.getMaxTargetIndex() + 1;
         final double avgNumVariationsPerQuery =
-                ((double) sumNumVariations) / (double) numQuerySequences;
+                ((double) statistics.getTotalNumberOfVariations()) / (double) numQuerySequences;
         stream.printf("num target indices = %,d%n", numTargetSequences);
         stream.printf("Number of alignment entries = %,d%n", numLogicalAlignmentEntries);
-        stream.printf("Number of query indices that matched = %,d%n", alignedQueryIndices.count());
+        stream.printf("Number of query indices that matched = %,d%n", numberOfMatchedQueries);
         stream.printf("Percent matched = %4.1f %% %n",
-                (double) alignedQueryIndices.count() / (double) ((long) numQuerySequences) * 100.0d);
+                (double) numberOfMatchedQueries / (double) ((long) numQuerySequences) * 100.0d);
         stream.printf("Avg query alignment length = %,f%n",
-                numEntries > 0 ? divide(total, numEntries) : -1);
+                numEntries > 0 ? divide(statistics.getTotalQueryAlignedLength(), numEntries) : -1);
         stream.printf("Avg score alignment = %f%n", avgScore);
         stream.printf("Avg number of variations per query sequence = %3.2f %n",
                 avgNumVariationsPerQuery);
         // size, the number of bytes in the entries file.
-        final long size = new File(basename + ".entries").length();
+        final long size = entriesFile.length();
         stream.printf("Average bytes per entry = %f%n", divide(size, numLogicalAlignmentEntries));
 
-        stream.printf("Min query length = %,d%n", (int) queryLengthStats.getMin());
-        stream.printf("Max query length = %,d%n", (int) queryLengthStats.getMax());
-        final double meanQueryLength = queryLengthStats.getMean();
+        stream.printf("Min query length = %,d%n", numEntries > 0 ? statistics.getMinQueryLength() : 0);
+        stream.printf("Max query length = %,d%n", numEntries > 0 ? statistics.getMaxQueryLength() : 0);
+        final double meanQueryLength =
+                numEntries > 0 ? divide(statistics.getTotalQueryLength(), numEntries) : Double.NaN;
         stream.printf("Mean query length = %,.2f%n", meanQueryLength);
         final int averageReadLength = (int) (Math.round(meanQueryLength));
         stream.printf("Average bits per read base, assuming average read length %d = %f%n", averageReadLength,
                 divide(size, numLogicalAlignmentEntries * averageReadLength));
 
-        stream.printf("Percent paired reads = %,.2f %% %n", divide(numPaired, numQuerySequences * 2) * 100d);
-        stream.printf("Percent properly paired reads = %,.2f %% %n", divide(numProperlyPaired, numQuerySequences * 2) * 100d);
-        stream.printf("Percent first in pair = %,.2f %% %n", divide(numFirstInPair, numEntries) * 100d);
-        stream.printf("Percent second in pair = %,.2f %% %n", divide(numSecondInPair, numEntries) * 100d);
+        stream.printf("Percent paired reads = %,.2f %% %n",
+                divide(statistics.getNumberOfPaired(), numQuerySequences * 2L) * 100d);
+        stream.printf("Percent properly paired reads = %,.2f %% %n",
+                divide(statistics.getNumberOfProperlyPaired(), numQuerySequences * 2L) * 100d);
+        stream.printf("Percent first in pair = %,.2f %% %n",
+                divide(statistics.getNumberOfFirstInPair(), numEntries) * 100d);
+        stream.printf("Percent second in pair = %,.2f %% %n",
+                divide(statistics.getNumberOfSecondInPair(), numEntries) * 100d);
+
+        stream.printf("Aligment entries have some softClips: %b %n", statistics.hasSoftClips());
+    }
 
-        stream.printf("Aligment entries have some softClips: %b %n", hasSoftClips);
+    /**
+     * Print estimates of the statistics of alignment entries from one slice in {@link #sampleEvery} of the
+     * entries file. Totals and means are estimated as in cluster sampling, with each slice a cluster of entries,
+     * and reported with 95% confidence intervals.
+     */
+    private void describeSampledEntries(final AlignmentReaderImpl reader, final File entriesFile)
+            throws IOException {
+        final long length = entriesFile.length();
+        final int numberOfSlices = (int) ((length + sampleSliceLength - 1) / sampleSliceLength);
+        final LongList starts = new LongArrayList();
+        final LongList ends = new LongArrayList();
+        for (int slice = 0; slice < numberOfSlices; slice += sampleEvery) {
+            starts.add(slice * sampleSliceLength);
+            ends.add(Math.min(length, (slice + 1) * sampleSliceLength));
+        }
+        if (starts.isEmpty()) {
+            stream.printf("Cannot sample entries file %s%n", entriesFile);
+            return;
+        }
+        final ObjectList<AlignmentEntryStatistics> samples = scanSlices(reader.basename(), starts, ends, null);
+        final AlignmentEntryStatistics statistics = new AlignmentEntryStatistics();
+        final int n = samples.size();
+        final double[] entries = new double[n];
+        final double[] logicalEntries = new double[n];
+        final double[] alignedLengths = new double[n];
+        final double[] scores = new double[n];
+        final double[] variations = new double[n];
+        final double[] queryLengths = new double[n];
+        final double[] paired = new double[n];
+        final double[] properlyPaired = new double[n];
+        final double[] firstInPair = new double[n];
+        final double[] secondInPair = new double[n];
+        for (int i = 0; i < n; i++) {
+            final AlignmentEntryStatistics sample = samples.get(i);
+            statistics.merge(sample);
+            entries[i] = sample.getNumberOfEntries();
+            logicalEntries[i] = sample.getNumberOfLogicalEntries();
+            alignedLengths[i] = sample.getTotalQueryAlignedLength();
+            scores[i] = sample.getTotalScore();
+            variations[i] = sample.getTotalNumberOfVariations();
+            queryLengths[i] = sample.getTotalQueryLength();
+            paired[i] = sample.getNumberOfPaired();
+            properlyPaired[i] = sample.getNumberOfProperlyPaired();
+            firstInPair[i] = sample.getNumberOfFirstInPair();
+            secondInPair[i] = sample.getNumberOfSecondInPair();
+        }
+        observeAcrossFiles(statistics);
+
+        final int numQuerySequences = reader.getNumberOfQueries();
+        final long numEntries = statistics.getNumberOfEntries();
+        stream.printf("num query indices = %,d%n", numQuerySequences);
+        stream.printf("Sampled %,d of %,d slices of the entries file (one in %,d)%n", n, numberOfSlices,
+                sampleEvery);
+        stream.printf("Number of alignment entries in sample = %,d%n", statistics.getNumberOfLogicalEntries());
+        printEstimate("Estimated number of alignment entries", "%,.0f",
+                estimateTotal(logicalEntries, numberOfSlices, 1));
+        printEstimate("Estimated avg query alignment length", "%,f",
+                estimateRatio(alignedLengths, entries, numberOfSlices, 1));
+        printEstimate("Estimated avg score alignment", "%f",
+                estimateRatio(scores, logicalEntries, numberOfSlices, 1));
+        printEstimate("Estimated avg number of variations per query sequence", "%3.2f",
+                estimateTotal(variations, numberOfSlices, 1d / numQuerySequences));
+        printEstimate("Estimated mean query length", "%,.2f",
+                estimateRatio(queryLengths, entries, numberOfSlices, 1));
+        printEstimate("Estimated percent paired reads", "%,.2f %%",
+                estimateTotal(paired, numberOfSlices, 100d / (numQuerySequences * 2d)));
+        printEstimate("Estimated percent properly paired reads", "%,.2f %%",
+                estimateTotal(properlyPaired, numberOfSlices, 100d / (numQuerySequences * 2d)));
+        printEstimate("Estimated percent first in pair", "%,.2f %%",
+                estimateRatio(firstInPair, entries, numberOfSlices, 100d));
+        printEstimate("Estimated percent second in pair", "%,.2f %%",
+                estimateRatio(secondInPair, entries, numberOfSlices, 100d));
+        stream.printf("Min query length in sample = %,d%n", numEntries > 0 ? statistics.getMinQueryLength() : 0);
+        stream.printf("Max query length in sample = %,d%n", numEntries > 0 ? statistics.getMaxQueryLength() : 0);
+        stream.printf("Aligment entries of sample have some softClips: %b %n", statistics.hasSoftClips());
+    }
+
+    private void printEstimate(final String label, final String format, final double[] estimate) {
+        stream.printf(label + " = " + format + " +/- " + format + " (95%% confidence)%n", estimate[0], estimate[1]);
+    }
+
+    /**
+     * Estimate the total of a quantity from its totals in sampled slices.
+     *
+     * @param totals         totals of the quantity in the sampled slices.
+     * @param numberOfSlices number of slices in the file.
+     * @param scale          factor applied to the estimate.
+     * @return the estimate and the half-width of its 95% confidence interval.
+     */
+    private static double[] estimateTotal(final double[] totals, final int numberOfSlices, final double scale) {
+        final int n = totals.length;
+        double sum = 0;
+        for (final double total : totals) {
+            sum += total;
+        }
+        final double mean = sum / n;
+        double sumOfSquares = 0;
+        for (final double total : totals) {
+            sumOfSquares += (total - mean) * (total - mean);
+        }
+        final double variance = n > 1 ? sumOfSquares / (n - 1) : Double.NaN;
+        final double samplingFraction = (double) n / numberOfSlices;
+        return new double[]{numberOfSlices * mean * scale,
+                1.96 * numberOfSlices * Math.sqrt((1 - samplingFraction) * variance / n) * scale};
+    }
+
+    /**
+     * Estimate the ratio of the totals of two quantities, for instance a mean per entry, from their totals in
+     * sampled slices.
+     *
+     * @param numerators     totals of the numerator in the sampled slices.
+     * @param denominators   totals of the denominator in the sampled slices.
+     * @param numberOfSlices number of slices in the file.
+     * @param scale          factor applied to the estimate.
+     * @return the estimate and the half-width of its 95% confidence interval.
+     */
+    private static double[] estimateRatio(final double[] numerators, final double[] denominators,
+                                          final int numberOfSlices, final double scale) {
+        final int n = numerators.length;
+        double sumOfNumerators = 0;
+        double sumOfDenominators = 0;
+        for (int i = 0; i < n; i++) {
+            sumOfNumerators += numerators[i];
+            sumOfDenominators += denominators[i];
+        }
+        final double ratio = sumOfNumerators / sumOfDenominators;
+        double sumOfSquares = 0;
+        for (int i = 0; i < n; i++) {
+            final double residual = numerators[i] - ratio * denominators[i];
+            sumOfSquares += residual * residual;
+        }
+        final double variance = n > 1 ? sumOfSquares / (n - 1) : Double.NaN;
+        final double samplingFraction = (double) n / numberOfSlices;
+        final double meanDenominator = sumOfDenominators / n;
+        return new double[]{ratio * scale,
+                1.96 * Math.sqrt((1 - samplingFraction) * variance / n) / meanDenominator * scale};
+    }
+
+    /**
+     * Adjust the statistics across all files with the statistics of the entries of an alignment.
+     */
+    private void observeAcrossFiles(final AlignmentEntryStatistics statistics) {
+        numberOfReads += statistics.getNumberOfEntries();
+        cumulativeReadLength += statistics.getTotalQueryAlignedLength();
+        minReadLength = Math.min(minReadLength, statistics.getMinQueryAlignedLength());
+        maxReadLength = Math.max(maxReadLength, statistics.getMaxQueryAlignedLength());
+    }
+
+    /**
+     * Scan the entries of an alignment. The entries file is split in {@link #numThreads} slices scanned in
+     * parallel.
+     */
+    private AlignmentEntryStatistics scanEntries(final AlignmentReaderImpl reader, final File entriesFile,
+                                                 final DistinctIntValueCounterInterface alignedQueryIndices)
+            throws IOException {
+        final AlignmentEntryStatistics statistics = new AlignmentEntryStatistics();
+        final long length = entriesFile.length();
+        if (numThreads == 1 || length == 0) {
+            // a single slice, or an alignment that is not a local file:
+            for (final Alignments.AlignmentEntry entry : reader) {
+                statistics.observe(entry);
+                alignedQueryIndices.observe(entry.getQueryIndex());
+            }
+            return statistics;
+        }
+        final LongList starts = new LongArrayList();
+        final LongList ends = new LongArrayList();
+        for (int i = 0; i < numThreads; i++) {
+            starts.add(length * i / numThreads);
+            ends.add(length * (i + 1) / numThreads);
+        }
+        for (final AlignmentEntryStatistics slice : scanSlices(reader.basename(), starts, ends,
+                alignedQueryIndices)) {
+            statistics.merge(slice);
+        }
+        return statistics;
+    }
+
+    /**
+     * Scan slices of an entries file on {@link #numThreads} threads.
+     *
+     * @param basename            basename of the alignment.
+     * @param starts              start offsets of the slices, in bytes.
+     * @param ends                end offsets of the slices, in bytes.
+     * @param alignedQueryIndices where to observe the query indices of entries, or null.
+     * @return the statistics of the slices, in the order of the slices.
+     * @throws IOException if the alignment cannot be read.
+     */
+    private ObjectList<AlignmentEntryStatistics> scanSlices(final String basename, final LongList starts,
+                                                            final LongList ends,
+                                                            final DistinctIntValueCounterInterface alignedQueryIndices)
+            throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            final ObjectList<Future<AlignmentEntryStatistics>> slices =
+                    new ObjectArrayList<Future<AlignmentEntryStatistics>>();
+            for (int i = 0; i < starts.size(); i++) {
+                final long start = starts.getLong(i);
+                final long end = ends.getLong(i);
+                slices.add(executor.submit(new Callable<AlignmentEntryStatistics>() {
+                    @Override
+                    public AlignmentEntryStatistics call() throws IOException {
+                        return scanSlice(basename, start, end, alignedQueryIndices);
+                    }
+                }));
+            }
+            final ObjectList<AlignmentEntryStatistics> statistics = new ObjectArrayList<AlignmentEntryStatistics>();
+            for (final Future<AlignmentEntryStatistics> slice : slices) {
+                statistics.add(slice.get());
+            }
+            return statistics;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GobyRuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new GobyRuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static AlignmentEntryStatistics scanSlice(final String basename, final long start, final long end,
+                                                      final DistinctIntValueCounterInterface alignedQueryIndices)
+            throws IOException {
+        final AlignmentEntryStatistics statistics = new AlignmentEntryStatistics();
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(start, end, basename);
+        try {
+            for (final Alignments.AlignmentEntry entry : reader) {
+                statistics.observe(entry);
+                if (alignedQueryIndices != null) {
+                    alignedQueryIndices.observe(entry.getQueryIndex());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return statistics;
+    }
+
+    /**
+     * Load the statistics of entries cached in the .stats file of an alignment, unless the entries file changed
+     * since they were cached.
+     *
+     * @return the cached statistics, or null if no valid statistics were cached.
+     */
+    private static AlignmentEntryStatistics loadCachedStatistics(final AlignmentReaderImpl reader,
+                                                                 final File entriesFile) {
+        final Properties properties = reader.getStatistics();
+        if (!entriesFile.exists()
+                || !Long.toString(entriesFile.length()).equals(
+                properties.getProperty(CACHE_PREFIX + "entries.file.length"))
+                || !Long.toString(entriesFile.lastModified()).equals(
+                properties.getProperty(CACHE_PREFIX + "entries.file.last.modified"))) {
+            return null;
+        }
+        try {
+            Integer.parseInt(properties.getProperty(CACHE_PREFIX + "matched.query.indices"));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return AlignmentEntryStatistics.load(properties, CACHE_PREFIX);
+    }
+
+    /**
+     * Cache the statistics of entries in the .stats file of an alignment, with the length and modification time
+     * of its entries file.
+     */
+    private static void storeCachedStatistics(final AlignmentReaderImpl reader, final File entriesFile,
+                                              final AlignmentEntryStatistics statistics,
+                                              final int numberOfMatchedQueries) {
+        if (!entriesFile.exists()) {
+            return;
+        }
+        final Properties properties = new Properties();
+        properties.putAll(reader.getStatistics());
+        statistics.store(properties, CACHE_PREFIX);
+        properties.setProperty(CACHE_PREFIX + "matched.query.indices", Integer.toString(numberOfMatchedQueries));
+        properties.setProperty(CACHE_PREFIX + "entries.file.length", Long.toString(entriesFile.length()));
+        properties.setProperty(CACHE_PREFIX + "entries.file.last.modified",
+                Long.toString(entriesFile.lastModified()));
+        Writer writer = null;
+        try {
+            writer = new FileWriter(reader.basename() + ".stats");
+            properties.store(writer, "Statistics for alignment.");
+        } catch (IOException e) {
+            LOG.warn("Cannot cache statistics for basename " + reader.basename(), e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
     }
 
     private double divide(final long a, final long b) {
         return ((double) a) / (double) b;
     }
 
-    private void describeAmbigousReads(final String basename, final double numReads, final DistinctIntValueCounterBitSet queryIndices) {
+    private void describeAmbigousReads(final String basename, final double numReads,
+                                       final DistinctIntValueCounterInterface queryIndices) {
         try {
             final AlignmentTooManyHitsReader tmhReader = new AlignmentTooManyHitsReader(basename);
-            queryIndices.observe(tmhReader.getQueryIndices());
+            if (queryIndices != null) {
+                queryIndices.observe(tmhReader.getQueryIndices());
+            }
             stream.printf("TMH: aligner threshold = %,d%n", tmhReader.getAlignerThreshold());
             stream.printf("TMH: number of ambiguous matches = %,d%n", tmhReader.getQueryIndices().size());
             stream.printf("TMH: %%ambiguous matches = %f %%%n", (tmhReader.getQueryIndices().size() * 100f) / numReads);
@@ -638,6 +967,46 @@ public class CompactFileStatsMode extends AbstractGobyMode {
         inputFiles.add(inputFile);
     }
 
+    /**
+     * Set the number of threads that scan the entries of alignments.
+     *
+     * @param numThreads number of threads.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Estimate the statistics of alignment entries by scanning one slice in sampleEvery of the entries file.
+     *
+     * @param sampleEvery sampling step, one to scan every entry.
+     */
+    public void setSampleEvery(final int sampleEvery) {
+        this.sampleEvery = Math.max(1, sampleEvery);
+    }
+
+    /**
+     * Set whether statistics of alignment entries are cached in, and reused from, the .stats file of alignments.
+     *
+     * @param cacheStatistics true to cache statistics.
+     */
+    public void setCacheStatistics(final boolean cacheStatistics) {
+        this.cacheStatistics = cacheStatistics;
+    }
+
+    void setSampleSliceLength(final long sampleSliceLength) {
+        this.sampleSliceLength = sampleSliceLength;
+    }
+
+    /**
+     * Set where the output is written.
+     *
+     * @param outputFilename name of the output file, or null to write to stdout.
+     */
+    public void setOutputFilename(final String outputFilename) {
+        this.outputFilename = outputFilename;
+    }
+
     /**
      * Main method.
      *
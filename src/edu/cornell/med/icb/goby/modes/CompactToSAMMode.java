@@ -21,6 +21,7 @@ package edu.cornell.med.icb.goby.modes;
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.alignments.*;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
 import edu.cornell.med.icb.goby.reads.DualRandomAccessSequenceCache;
 import edu.cornell.med.icb.goby.reads.QualityEncoding;
 import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
@@ -28,8 +29,10 @@ import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import edu.cornell.med.icb.util.VersionUtils;
 import it.unimi.dsi.Util;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
 import it.unimi.dsi.fastutil.ints.Int2ObjectAVLTreeMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayFIFOQueue;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.logging.ProgressLogger;
 import net.sf.samtools.*;
@@ -43,6 +46,11 @@ import java.text.SimpleDateFormat;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Export a Goby alignment to the BAM format.
@@ -125,6 +133,18 @@ public class CompactToSAMMode extends AbstractGobyMode {
 
     private Int2ObjectMap<Int2ObjectMap<ExportableAlignmentEntryData>> queryIndexToFragmentsMap;
 
+    /**
+     * Number of threads used to encode BAM records and to deflate BAM blocks, or -1 to use all the processors.
+     */
+    private int numThreads = -1;
+
+    /**
+     * Number of entries encoded by a thread in one task.
+     */
+    private static final int EXPORT_BATCH_SIZE = 1000;
+
+    private ParallelBAMExporter bamExporter;
+
     /**
      * Flag to indicate if log4j was configured.
      */
@@ -219,6 +239,7 @@ public class CompactToSAMMode extends AbstractGobyMode {
         inputBasename = jsapResult.getString("input-basename");
         inputGenome = jsapResult.getString("genome");
         output = jsapResult.getString("output");
+        numThreads = jsapResult.getInt("num-threads");
         alignmentIterator = new CompactToSAMIterateAlignments();
         alignmentIterator.parseIncludeReferenceArgument(jsapResult);
         genome = new DualRandomAccessSequenceCache();
@@ -299,6 +320,9 @@ public class CompactToSAMMode extends AbstractGobyMode {
         if (outputSam != null) {
             outputSam.close();
         }
+        if (bamExporter != null) {
+            bamExporter.close();
+        }
         progress.stop();
     }
 
@@ -321,23 +345,21 @@ public class CompactToSAMMode extends AbstractGobyMode {
             // Because splices cannot be written in a sorted manner, we can never consider the output to be sorted.
             final boolean outputIsSorted = alignmentReader.isSorted();
 
-            // Gather the target identifiers, supply them to the SAM file
-            samHeader = new SAMFileHeader();
-            final SAMSequenceDictionary samTargetDictionary = new SAMSequenceDictionary();
-            final IndexedIdentifier gobyTargetIdentifiers = alignmentReader.getTargetIdentifiers();
+            samHeader = buildSamHeader(alignmentReader);
             final DoubleIndexedIdentifier gobyBackTargetIdentifiers =
-                    new DoubleIndexedIdentifier(gobyTargetIdentifiers);
-            for (int i = 0; i < gobyTargetIdentifiers.size(); i++) {
-                final String gobyTargetName = gobyBackTargetIdentifiers.getId(i).toString();
-                final int gobyTargetLength = alignmentReader.getTargetLength()[i];
-                final SAMSequenceRecord samSequenceRecord = new SAMSequenceRecord(gobyTargetName, gobyTargetLength);
-                samTargetDictionary.addSequence(samSequenceRecord);
-            }
-            exportReadGroups(alignmentReader);
-            samHeader.setSequenceDictionary(samTargetDictionary);
-            final SAMProgramRecord gobyVersionProgRec = new SAMProgramRecord("Goby");
-            gobyVersionProgRec.setProgramVersion(VersionUtils.getImplementationVersion(GobyDriver.class));
-            samHeader.addProgramRecord(gobyVersionProgRec);
+                    new DoubleIndexedIdentifier(alignmentReader.getTargetIdentifiers());
+            readOriginInfo = alignmentReader.getReadOriginInfo();
+            if (readOriginInfo.size() > 0) {
+                hasReadGroups = true;
+                exportData.setReadGroupInfo(readOriginInfo);
+            }
+            if (new File(output).getName().endsWith(".bam")) {
+                // BAM records are encoded directly from the exported data, and the splices merged from a compact
+                // store of fragments:
+                bamExporter = new ParallelBAMExporter(outputIsSorted, gobyBackTargetIdentifiers,
+                        hasReadGroups ? readOriginInfo : null);
+                return;
+            }
             final SAMFileWriter samBamWriter = new SAMFileWriterFactory().
                     makeSAMOrBAMWriter(samHeader, outputIsSorted, new File(output));
             // install a facade in front of the Sam/Bam writer to do a local sort. This is needed for spliced alignments
@@ -346,47 +368,17 @@ public class CompactToSAMMode extends AbstractGobyMode {
             samRecordFactory = new DefaultSAMRecordFactory();
         }
 
-        private void exportReadGroups(final AlignmentReader alignmentReader) {
-            readOriginInfo = alignmentReader.getReadOriginInfo();
-            if (readOriginInfo.size() > 0) {
-                hasReadGroups = true;
-                // Goby alignment has read origin information, export as BAM read groups:
-                for (final Alignments.ReadOriginInfo roi : readOriginInfo.getPbList()) {
-                    final SAMReadGroupRecord readGroup = new SAMReadGroupRecord(roi.getOriginId());
-                    if (roi.hasSample()) {
-                        readGroup.setSample(roi.getSample());
-                    }
-                    if (roi.hasPlatform()) {
-                        readGroup.setPlatform(roi.getPlatform());
-                    }
-                    if (roi.hasPlatformUnit()) {
-                        readGroup.setPlatformUnit(roi.getPlatformUnit());
-                    }
-                    if (roi.hasLibrary()) {
-                        readGroup.setLibrary(roi.getLibrary());
-                    }
-                    if (roi.hasRunDate()) {
-                        final String runDate = roi.getRunDate();
-                        try {
-
-                            readGroup.setRunDate(GOBY_DATE_FORMAT.parse(runDate));
-                        } catch (ParseException e) {
-                            LOG.error("Unable to parse Goby date: " + runDate + " ignoring runDate read origin.");
-                        }
-                    }
-                    samHeader.addReadGroup(readGroup);
-                }
-                exportData.setReadGroupInfo(readOriginInfo);
-            }
-        }
-
         @Override
         public void processAlignmentEntry(final AlignmentReader alignmentReader,
                                           final Alignments.AlignmentEntry alignmentEntry) {
 
-            if (outputSam == null) {
+            if (outputSam == null && bamExporter == null) {
                 initializeSam(alignmentReader);
             }
+            if (bamExporter != null) {
+                bamExporter.export(alignmentEntry);
+                return;
+            }
 
             exportData.buildFrom(alignmentEntry);
 
@@ -574,6 +566,263 @@ public class CompactToSAMMode extends AbstractGobyMode {
         }
     }
 
+    /**
+     * Exports entries to a BAM file. Batches of entries are rebuilt and encoded as BAM records on a pool of threads,
+     * a few batches ahead of the thread that writes them. Records are written in the order of the entries, and
+     * fragments of spliced alignments are merged by the writing thread once all of them have been encoded.
+     */
+    private final class ParallelBAMExporter {
+        private final ExecutorService executor;
+        private final ObjectArrayFIFOQueue<Future<ExportedBatch>> pending =
+                new ObjectArrayFIFOQueue<Future<ExportedBatch>>();
+        private final int maxPending;
+        private final ThreadLocal<BatchEncoder> encoders;
+        private final BAMRecordWriter writer;
+        private final PendingSpliceFragments spliceFragments = new PendingSpliceFragments();
+        private final BAMRecordEncoder spliceEncoder;
+        private final ByteArrayList splicedRecord = new ByteArrayList();
+        private Alignments.AlignmentEntry[] entries = new Alignments.AlignmentEntry[EXPORT_BATCH_SIZE];
+        private int numEntries;
+
+        private ParallelBAMExporter(final boolean sorted, final DoubleIndexedIdentifier targetIdentifiers,
+                                    final ReadOriginInfo readOriginInfo) {
+            final int threads = numThreads == -1 ? Runtime.getRuntime().availableProcessors() :
+                    Math.max(1, numThreads);
+            try {
+                writer = new BAMRecordWriter(new File(output), samHeader, sorted, threads);
+            } catch (IOException e) {
+                throw new GobyRuntimeException(e);
+            }
+            spliceEncoder = new BAMRecordEncoder(readOriginInfo);
+            encoders = new ThreadLocal<BatchEncoder>() {
+                @Override
+                protected BatchEncoder initialValue() {
+                    return new BatchEncoder(targetIdentifiers, readOriginInfo);
+                }
+            };
+            executor = Executors.newFixedThreadPool(threads);
+            maxPending = 2 * threads;
+        }
+
+        private void export(final Alignments.AlignmentEntry entry) {
+            entries[numEntries++] = entry;
+            if (numEntries == entries.length) {
+                submit();
+                while (pending.size() > maxPending) {
+                    write(pending.dequeue());
+                }
+            }
+        }
+
+        private void submit() {
+            final Alignments.AlignmentEntry[] batch = entries;
+            final int batchSize = numEntries;
+            pending.enqueue(executor.submit(new Callable<ExportedBatch>() {
+                @Override
+                public ExportedBatch call() {
+                    return encoders.get().encode(batch, batchSize);
+                }
+            }));
+            entries = new Alignments.AlignmentEntry[EXPORT_BATCH_SIZE];
+            numEntries = 0;
+        }
+
+        private void write(final Future<ExportedBatch> future) {
+            final ExportedBatch batch;
+            try {
+                batch = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GobyRuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new GobyRuntimeException(e.getCause());
+            }
+            try {
+                for (int i = 0; i < batch.size; i++) {
+                    final Alignments.AlignmentEntry entry = batch.entries[i];
+                    switch (batch.kinds[i]) {
+                        case ExportedBatch.RECORD:
+                            writer.addRecord(batch.data, batch.offsets[i]);
+                            written(entry);
+                            break;
+                        case ExportedBatch.FRAGMENT:
+                            if (spliceFragments.add(entry, batch.data, batch.offsets[i], batch.messages[i])) {
+                                splicedRecord.clear();
+                                if (spliceFragments.exportCompleted(spliceEncoder, splicedRecord)) {
+                                    writer.addRecord(splicedRecord.elements(), 0);
+                                    written(entry);
+                                } else {
+                                    LOG.warn(spliceFragments.getInvalidMessage());
+                                }
+                            }
+                            break;
+                        default:
+                            LOG.warn(batch.messages[i]);
+                            break;
+                    }
+                }
+            } catch (IOException e) {
+                throw new GobyRuntimeException(e);
+            }
+        }
+
+        private void written(final Alignments.AlignmentEntry entry) {
+            if (debug) {
+                LOG.debug("Wrote qi=" + entry.getQueryIndex() + " fragment Index=" + entry.getFragmentIndex());
+            }
+            progress.lightUpdate();
+        }
+
+        private void close() throws IOException {
+            try {
+                if (numEntries > 0) {
+                    submit();
+                }
+                while (!pending.isEmpty()) {
+                    write(pending.dequeue());
+                }
+                writer.close();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the data of entries and encodes them, on one thread.
+     */
+    private final class BatchEncoder {
+        private final ExportableAlignmentEntryData exportData;
+        private final BAMRecordEncoder encoder;
+
+        private BatchEncoder(final DoubleIndexedIdentifier targetIdentifiers, final ReadOriginInfo readOriginInfo) {
+            exportData = new ExportableAlignmentEntryData(genome, qualityEncoding, targetIdentifiers);
+            if (readOriginInfo != null) {
+                exportData.setReadGroupInfo(readOriginInfo);
+            }
+            encoder = new BAMRecordEncoder(readOriginInfo, genome, targetIdentifiers, qualityEncoding);
+        }
+
+        private ExportedBatch encode(final Alignments.AlignmentEntry[] entries, final int size) {
+            final ExportedBatch batch = new ExportedBatch(entries, size);
+            final ByteArrayList data = new ByteArrayList(size * 128);
+            for (int i = 0; i < size; i++) {
+                final Alignments.AlignmentEntry entry = entries[i];
+                batch.offsets[i] = data.size();
+                if (entry.hasSplicedForwardAlignmentLink() || entry.hasSplicedBackwardAlignmentLink()) {
+                    exportData.buildFrom(entry);
+                    batch.kinds[i] = ExportedBatch.FRAGMENT;
+                    PendingSpliceFragments.writeFragment(exportData, data);
+                    if (exportData.isInvalid()) {
+                        batch.messages[i] = exportData.toString();
+                    }
+                    continue;
+                }
+                try {
+                    if (encoder.encode(entry, data)) {
+                        batch.kinds[i] = ExportedBatch.RECORD;
+                        continue;
+                    }
+                    exportData.buildFrom(entry);
+                    if (exportData.isInvalid()) {
+                        batch.kinds[i] = ExportedBatch.INVALID;
+                        batch.messages[i] = exportData.toString();
+                    } else {
+                        batch.kinds[i] = ExportedBatch.RECORD;
+                        encoder.encode(exportData, data);
+                    }
+                } catch (RuntimeException e) {
+                    LOG.error("Unable to encode alignment entry " + entry, e);
+                    throw e;
+                }
+            }
+            batch.data = data.elements();
+            return batch;
+        }
+    }
+
+    /**
+     * Entries of a batch, with their BAM records, the data of spliced fragments, or the reason why they cannot be
+     * exported.
+     */
+    private static final class ExportedBatch {
+        private static final byte RECORD = 0;
+        private static final byte FRAGMENT = 1;
+        private static final byte INVALID = 2;
+
+        private final Alignments.AlignmentEntry[] entries;
+        private final int size;
+        private final byte[] kinds;
+        private final int[] offsets;
+        private final String[] messages;
+        private byte[] data;
+
+        private ExportedBatch(final Alignments.AlignmentEntry[] entries, final int size) {
+            this.entries = entries;
+            this.size = size;
+            kinds = new byte[size];
+            offsets = new int[size];
+            messages = new String[size];
+        }
+    }
+
+    /**
+     * Build the SAM header of an alignment: its targets, its read origins as read groups, and the version of Goby.
+     *
+     * @param alignmentReader reader of the alignment, whose header has been read.
+     * @return the SAM header, not sorted.
+     */
+    public static SAMFileHeader buildSamHeader(final AlignmentReader alignmentReader) {
+        // Gather the target identifiers, supply them to the SAM file
+        final SAMFileHeader samHeader = new SAMFileHeader();
+        final SAMSequenceDictionary samTargetDictionary = new SAMSequenceDictionary();
+        final IndexedIdentifier gobyTargetIdentifiers = alignmentReader.getTargetIdentifiers();
+        final DoubleIndexedIdentifier gobyBackTargetIdentifiers =
+                new DoubleIndexedIdentifier(gobyTargetIdentifiers);
+        for (int i = 0; i < gobyTargetIdentifiers.size(); i++) {
+            final String gobyTargetName = gobyBackTargetIdentifiers.getId(i).toString();
+            final int gobyTargetLength = alignmentReader.getTargetLength()[i];
+            final SAMSequenceRecord samSequenceRecord = new SAMSequenceRecord(gobyTargetName, gobyTargetLength);
+            samTargetDictionary.addSequence(samSequenceRecord);
+        }
+        exportReadGroups(alignmentReader.getReadOriginInfo(), samHeader);
+        samHeader.setSequenceDictionary(samTargetDictionary);
+        final SAMProgramRecord gobyVersionProgRec = new SAMProgramRecord("Goby");
+        gobyVersionProgRec.setProgramVersion(VersionUtils.getImplementationVersion(GobyDriver.class));
+        samHeader.addProgramRecord(gobyVersionProgRec);
+        return samHeader;
+    }
+
+    private static void exportReadGroups(final ReadOriginInfo readOriginInfo, final SAMFileHeader samHeader) {
+        // Goby alignment has read origin information, export as BAM read groups:
+        for (final Alignments.ReadOriginInfo roi : readOriginInfo.getPbList()) {
+            final SAMReadGroupRecord readGroup = new SAMReadGroupRecord(roi.getOriginId());
+            if (roi.hasSample()) {
+                readGroup.setSample(roi.getSample());
+            }
+            if (roi.hasPlatform()) {
+                readGroup.setPlatform(roi.getPlatform());
+            }
+            if (roi.hasPlatformUnit()) {
+                readGroup.setPlatformUnit(roi.getPlatformUnit());
+            }
+            if (roi.hasLibrary()) {
+                readGroup.setLibrary(roi.getLibrary());
+            }
+            if (roi.hasRunDate()) {
+                final String runDate = roi.getRunDate();
+                try {
+                    synchronized (GOBY_DATE_FORMAT) {
+                        readGroup.setRunDate(GOBY_DATE_FORMAT.parse(runDate));
+                    }
+                } catch (ParseException e) {
+                    LOG.error("Unable to parse Goby date: " + runDate + " ignoring runDate read origin.");
+                }
+            }
+            samHeader.addReadGroup(readGroup);
+        }
+    }
+
     private Object getValue( String[] tokens) {
         if (tokens.length>3) {
             String[] mergedTokens=new String[3];
@@ -604,6 +853,15 @@ public class CompactToSAMMode extends AbstractGobyMode {
         return bamAttribute.split(":")[0];
     }
 
+    /**
+     * Set the number of threads used to encode BAM records and to deflate BAM blocks.
+     *
+     * @param numThreads number of threads, or -1 to use all the processors.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     public void setGenome(RandomAccessSequenceInterface genome) {
         this.genome = genome;
     }
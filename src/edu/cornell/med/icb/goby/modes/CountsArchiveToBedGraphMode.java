@@ -23,6 +23,7 @@ import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.alignments.AlignmentReaderImpl;
 import edu.cornell.med.icb.goby.counts.CountsArchiveReader;
 import edu.cornell.med.icb.goby.counts.CountsReader;
+import edu.cornell.med.icb.goby.util.ParallelBlockCompressedOutputStream;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
@@ -31,11 +32,10 @@ import it.unimi.dsi.fastutil.objects.ObjectSet;
 import org.apache.commons.io.IOUtils;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.Arrays;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * Converts a full genome counts archive to the BedGraph format.
@@ -152,7 +152,8 @@ public class CountsArchiveToBedGraphMode extends AbstractGobyMode {
     public void execute() throws IOException {
         PrintWriter writer = null;
         try {
-            writer = new PrintWriter(new GZIPOutputStream(new FastBufferedOutputStream(new FileOutputStream(outputFile + ".gz"))));
+            writer = new PrintWriter(new OutputStreamWriter(new FastBufferedOutputStream(
+                    ParallelBlockCompressedOutputStream.open(outputFile + ".gz"))));
             writer.write("track type=bedGraph name=" + label + " visibility=full viewLimits=1:200\n");
             final AlignmentReaderImpl alignment = new AlignmentReaderImpl(inputBasename);
             alignment.readHeader();
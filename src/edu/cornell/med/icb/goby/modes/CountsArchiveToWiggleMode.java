@@ -24,6 +24,7 @@ import edu.cornell.med.icb.goby.alignments.AlignmentReaderImpl;
 import edu.cornell.med.icb.goby.counts.CountsArchiveReader;
 import edu.cornell.med.icb.goby.counts.CountsReader;
 import edu.cornell.med.icb.goby.counts.WiggleWindow;
+import edu.cornell.med.icb.goby.util.ParallelBlockCompressedOutputStream;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
@@ -32,11 +33,10 @@ import it.unimi.dsi.fastutil.objects.ObjectSet;
 import org.apache.commons.io.IOUtils;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.Arrays;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * Converts a full genome counts archive to the Wiggle format.
@@ -159,7 +159,8 @@ public class CountsArchiveToWiggleMode extends AbstractGobyMode {
     public void execute() throws IOException {
         PrintWriter writer = null;
         try {
-            writer = new PrintWriter(new GZIPOutputStream(new FastBufferedOutputStream(new FileOutputStream(outputFile + ".gz"))));
+            writer = new PrintWriter(new OutputStreamWriter(new FastBufferedOutputStream(
+                    ParallelBlockCompressedOutputStream.open(outputFile + ".gz"))));
             writer.write("track type=wiggle_0 name=" + label + " visibility=full viewLimits=1:200\n");
             final AlignmentReaderImpl alignment = new AlignmentReaderImpl(inputBasename);
             alignment.readHeader();
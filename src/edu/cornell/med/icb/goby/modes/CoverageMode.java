@@ -20,17 +20,12 @@ package edu.cornell.med.icb.goby.modes;
 
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
-import edu.cornell.med.icb.goby.algorithmic.algorithm.CoverageAnalysis;
+import edu.cornell.med.icb.goby.algorithmic.algorithm.CoverageStatistics;
+import edu.cornell.med.icb.goby.algorithmic.algorithm.MultiSampleCoverageAnalysis;
 import edu.cornell.med.icb.goby.alignments.AlignmentReaderImpl;
-import edu.cornell.med.icb.goby.counts.CountsArchiveReader;
-import edu.cornell.med.icb.goby.counts.CountsReader;
-import edu.cornell.med.icb.goby.util.DoInParallel;
-import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
-import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 
 import java.io.FileWriter;
 import java.io.IOException;
@@ -120,94 +115,63 @@ public class CoverageMode extends AbstractGobyMode {
     }
 
     /**
-     * Run the mode.
+     * Run the mode. All input basenames are analyzed together: the annotation counts of each reference sequence are
+     * decoded once and reference sequences are processed on numThreads threads.
      */
     @Override
     public void execute() {
         final PrintWriter output;
         try {
             output = statsOuputFilename.equals("-") ? new PrintWriter(System.out) : new PrintWriter(new FileWriter(statsOuputFilename));
-
-
-            DoInParallel forLoop = new DoInParallel(numThreads) {
-                @Override
-                public void action(DoInParallel forDataAccess, String inputBasename, int loopIndex) {
-                    process(output, inputBasename);
-                }
-            };
-
-            forLoop.execute(true, inputBasenames);
         } catch (IOException e) {
             System.err.println("An error occured opening the output file. ");
             System.exit(1);
-        } catch (Exception e) {
-            e.printStackTrace();
+            return;
         }
-    }
-
-    private void process(PrintWriter output, String basename) {
+        final String[] basenames = new String[inputBasenames.length];
+        for (int i = 0; i < basenames.length; i++) {
+            basenames[i] = AlignmentReaderImpl.getBasename(inputBasenames[i]);
+        }
+        final MultiSampleCoverageAnalysis analysis = new MultiSampleCoverageAnalysis(
+                numThreads == -1 ? Runtime.getRuntime().availableProcessors() : numThreads);
         try {
-            basename = AlignmentReaderImpl.getBasename(basename);
-            final AlignmentReaderImpl alignment = new AlignmentReaderImpl(basename);
-            alignment.readHeader();
-            alignment.close();
-            final IndexedIdentifier referenceIds = alignment.getTargetIdentifiers();
-            final DoubleIndexedIdentifier backwards = new DoubleIndexedIdentifier(referenceIds);
-
-            final CountsArchiveReader archiveReader = new CountsArchiveReader(basename);
-            final CountsArchiveReader annotationArchiveReader = new CountsArchiveReader(annotationBasename);
-
-            final ObjectOpenHashSet<String> archiveIdentifiers = new ObjectOpenHashSet<String>();
-            archiveIdentifiers.addAll(annotationArchiveReader.getIdentifiers());
-            final CoverageAnalysis analysis = new CoverageAnalysis();
-
-            for (int referenceIndex = 0; referenceIndex < archiveReader.getNumberOfIndices(); referenceIndex++) {
-                final CountsReader reader = archiveReader.getCountReader(referenceIndex);
-                // determine the corresponding chromosome in the annotation count archive:
-                final String countArchiveRefId = backwards.getId(referenceIndex).toString();
-                if (archiveIdentifiers.contains(countArchiveRefId)) {
-                    System.out.println("Processing reference " + countArchiveRefId);
-                    final CountsReader annotationReader = annotationArchiveReader.getCountReader(countArchiveRefId);
-
-                    analysis.process(annotationReader, reader);
-                } else {
-                    System.out.printf("Skipping chromosome: %s%n", countArchiveRefId);
-                }
+            final CoverageStatistics[] statistics = analysis.process(annotationBasename, basenames);
+            for (int i = 0; i < basenames.length; i++) {
+                write(output, basenames[i], statistics[i]);
             }
-            final long sumDepth = analysis.getSumDepth();
-            final long countDepth = analysis.getCountDepth();
-            final double averageDepth = divide(sumDepth, countDepth);
-            System.out.printf("Average depth= %g %n", averageDepth);
-            final long sumDepthAnnot = analysis.getSumDepthAnnot();
-            final long countDepthAnnot = analysis.getCountDepthAnnot();
-            final double averageDepthCaptured = divide(sumDepthAnnot, countDepthAnnot);
-            System.out.printf("Average depth over annotations= %g %n", averageDepthCaptured);
-            analysis.estimateStatistics();
-
-            System.out.printf("Enrichment efficiency is %2g%%%n", 100d * analysis.getEnrichmentEfficiency());
-            System.out.printf("90%% of captured sites have depth>= %d%n", analysis.depthCapturedAtPercentile(.9));
-            System.out.printf("75%% of captured sites have depth>= %d%n", analysis.depthCapturedAtPercentile(.75));
-            System.out.printf("50%% of captured sites have depth>= %d%n", analysis.depthCapturedAtPercentile(.5));
-            System.out.printf("1%% of captured sites have depth>= %d%n", analysis.depthCapturedAtPercentile(.01));
-            output.printf("average-depth-captured\t%s\t%s\t%g%n", basename, "-", averageDepth);
-            output.printf("average-depth\t%s\t%s\t%g%n", basename, "-", averageDepthCaptured);
-            output.printf("enrichment-efficiency\t%s\t%g%%\t-%n", basename, 100d * analysis.getEnrichmentEfficiency());
-
-
-            for (double percentile : percentiles) {
-                output.printf("depth-captured\t%s\t%s\t%d%n", basename, Integer.toString((int) (percentile * 100)),
-                        analysis.depthCapturedAtPercentile(percentile));
-            }
-
-            for (int depth : depths) {
-                output.printf("percent-capture-sites-at-depth\t%s\t%s\t%d%n", basename,
-                        Integer.toString((int) (100 * analysis.percentSitesCaptured(depth))),
-                        depth);
-            }
-            output.flush();
         } catch (IOException e) {
-            System.err.println("Cannot open input basename : " + basename);
+            System.err.println("Cannot read count archives: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            output.flush();
+        }
+    }
+
+    private void write(final PrintWriter output, final String basename, final CoverageStatistics analysis) {
+        final double averageDepth = analysis.getAverageDepth();
+        System.out.printf("%s: Average depth= %g %n", basename, averageDepth);
+        final double averageDepthCaptured = analysis.getAnnotationAverageDepth();
+        System.out.printf("%s: Average depth over annotations= %g %n", basename, averageDepthCaptured);
+
+        System.out.printf("%s: Enrichment efficiency is %2g%%%n", basename, 100d * analysis.getEnrichmentEfficiency());
+        System.out.printf("%s: 90%% of captured sites have depth>= %d%n", basename, analysis.depthCapturedAtPercentile(.9));
+        System.out.printf("%s: 75%% of captured sites have depth>= %d%n", basename, analysis.depthCapturedAtPercentile(.75));
+        System.out.printf("%s: 50%% of captured sites have depth>= %d%n", basename, analysis.depthCapturedAtPercentile(.5));
+        System.out.printf("%s: 1%% of captured sites have depth>= %d%n", basename, analysis.depthCapturedAtPercentile(.01));
+        output.printf("average-depth-captured\t%s\t%s\t%g%n", basename, "-", averageDepth);
+        output.printf("average-depth\t%s\t%s\t%g%n", basename, "-", averageDepthCaptured);
+        output.printf("enrichment-efficiency\t%s\t%g%%\t-%n", basename, 100d * analysis.getEnrichmentEfficiency());
+
+
+        for (double percentile : percentiles) {
+            output.printf("depth-captured\t%s\t%s\t%d%n", basename, Integer.toString((int) (percentile * 100)),
+                    analysis.depthCapturedAtPercentile(percentile));
+        }
+
+        for (int depth : depths) {
+            output.printf("percent-capture-sites-at-depth\t%s\t%s\t%d%n", basename,
+                    Integer.toString((int) (100 * analysis.percentSitesCaptured(depth))),
+                    depth);
         }
     }
 
@@ -21,7 +21,9 @@ package edu.cornell.med.icb.goby.modes;
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.algorithmic.algorithm.dmr.EstimatedDistribution;
+import edu.cornell.med.icb.goby.algorithmic.algorithm.dmr.ObservationReader;
 import edu.cornell.med.icb.goby.algorithmic.algorithm.dmr.ObservationWriter;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
 import edu.cornell.med.icb.goby.stats.EmpiricalPValueEstimator;
 import edu.cornell.med.icb.goby.stats.EstimatedTestDistributions;
 import edu.cornell.med.icb.goby.stats.FormatFieldCounter;
@@ -29,15 +31,18 @@ import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
 import edu.cornell.med.icb.goby.util.dynoptions.RegisterThis;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayFIFOQueue;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import it.unimi.dsi.io.FastBufferedReader;
 import it.unimi.dsi.logging.ProgressLogger;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.LineIterator;
 import org.apache.log4j.Logger;
 
 import java.io.*;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Fabien Campagne
@@ -66,7 +71,8 @@ public class EmpiricalPMode extends AbstractGobyMode {
                     " - COVARIATES_A keyword" +
                     " - integer codes for covariates for sample A" +
                     " - COVARIATES_B keyword" +
-                    " - integer codes for covariates for sample B";
+                    " - integer codes for covariates for sample B" +
+                    " The input file can also be in the binary format written by ObservationWriter.";
     /**
      * Used to log debug and informational messages.
      */
@@ -92,6 +98,10 @@ public class EmpiricalPMode extends AbstractGobyMode {
      * The number of test pairs to consider.
      */
     private int testN;
+    /**
+     * The number of threads used to estimate the null distribution.
+     */
+    private int numThreads;
 
 
     public static DynamicOptionClient doc() {
@@ -137,6 +147,10 @@ public class EmpiricalPMode extends AbstractGobyMode {
         //fdr = jsapResult.getBoolean("fdr");
 
         testN = jsapResult.getInt("test-n",Integer.MAX_VALUE);
+        numThreads = jsapResult.getInt("num-threads");
+        if (numThreads < 0) {
+            numThreads = Runtime.getRuntime().availableProcessors();
+        }
 
         {
             densityFilename = jsapResult.getString("density-filename");
@@ -202,6 +216,10 @@ public class EmpiricalPMode extends AbstractGobyMode {
 
     private EmpiricalPValueEstimator estimator;
     private FormatFieldCounter counter;
+    /**
+     * Observes within group pairs while scanning, or null when the null distribution is estimated on one thread.
+     */
+    private ParallelNullEstimator parallelEstimator;
 
     @Override
     public void execute() throws IOException {
@@ -235,115 +253,201 @@ public class EmpiricalPMode extends AbstractGobyMode {
 
     }
 
-    private void scan() throws FileNotFoundException {
-        LineIterator iterator = new LineIterator(new FastBufferedReader(new FileReader(inputFilename)));
+    private void scan() throws IOException {
+        final ObservationReader reader = new ObservationReader(inputFilename);
         int lineNumber = 0;
-        ObjectArrayList<String> elementIds = new ObjectArrayList<String>();
-
-        IntArrayList valuesA = new IntArrayList();
-
-        IntArrayList valuesB = new IntArrayList();
-        IntArrayList covariatesA = new IntArrayList();
-        IntArrayList covariatesB = new IntArrayList();
-
         counter = new FormatFieldCounter(0, 2, 2, new String[]{"ALL"});
         setupOutput();
-        // ignore the header line:
-        iterator.next();
+        // within group pairs are only observed for the null distribution when p-values are not forced on them:
+        final boolean parallelNull = numThreads > 1 && !(useExistingDensity && forceEstimation);
+        parallelEstimator = parallelNull ? new ParallelNullEstimator() : null;
         ProgressLogger pg = new ProgressLogger(LOG);
         pg.displayFreeMemory = true;
         pg.itemsName = "pairs";
-        pg.expectedUpdates = countLines(inputFilename) - 1;
         pg.start("Starting to scan pairs.");
-        while (iterator.hasNext()) {
-            String next = iterator.nextLine();
-            String[] tokens = next.split("\t");
-            boolean pastIds = false;
-            boolean pastValues = false;
-
-            String typeOfPairString = tokens[0];
-            ObservationWriter.TypeOfPair typeOfPair = ObservationWriter.TypeOfPair.UNDEFINED;
-
-            for (int i = 0; i < tokens.length; i++) {
-
-                try {
-                    typeOfPair = ObservationWriter.TypeOfPair.valueOf(typeOfPairString);
-                } catch (IllegalArgumentException e) {
-                    System.err.println("First token of every line should be WITHIN_GROUP_PAIR or BETWEEN_GROUP_PAIR. Found " + typeOfPairString + " on line " + lineNumber);
-                    System.exit(1);
+        try {
+            while (reader.next()) {
+                final ObservationWriter.TypeOfPair typeOfPair = reader.getTypeOfPair();
+                if (parallelNull && typeOfPair == ObservationWriter.TypeOfPair.WITHIN_GROUP_PAIR) {
+                    parallelEstimator.observe(reader.getValuesA(), reader.getValuesB(),
+                            reader.getCovariatesA(), reader.getCovariatesB());
+                } else {
+                    final ObjectArrayList<String> elementIds = reader.getElementIds();
+                    process(typeOfPair, elementIds.get(0), elementIds, reader.getValuesA(), reader.getValuesB(),
+                            reader.getCovariatesA(), reader.getCovariatesB());
                 }
+                lineNumber++;
+                pg.lightUpdate();
+            }
+            if (parallelNull) {
+                parallelEstimator.merge();
+            }
+        } finally {
+            if (parallelNull) {
+                parallelEstimator.shutdown();
+                parallelEstimator = null;
+            }
+            reader.close();
+        }
+        pg.done(lineNumber);
+    }
 
-                elementIds.clear();
-                valuesA.clear();
-                valuesB.clear();
-                covariatesA.clear();
-                covariatesB.clear();
-                int j;
-                String groupComparison = tokens[1];
-                elementIds.add(groupComparison);
-                for (j = 2; !"VALUES_A".equals(tokens[j]); j++) {
-                    if (j == tokens.length) {
-                        break;
-                    }
-                    elementIds.add(tokens[j]);
-                }
-                if (j == tokens.length) {
-                    System.err.println("Every line must contain the VALUES keyword. Keyword not found on line " + lineNumber);
-                    System.exit(1);
-                }
-                j++;
-                for (; !"VALUES_B".equals(tokens[j]); j++) {
-                    if (j == tokens.length) {
-                        break;
-                    }
-                    valuesA.add(Integer.parseInt(tokens[j]));
-                }
-                j++;
-                for (; !"COVARIATES_A".equals(tokens[j]); j++) {
-                    if (j == tokens.length) {
-                        break;
-                    }
-                    valuesB.add(Integer.parseInt(tokens[j]));
-                }
-                if (j == tokens.length) {
-                    System.err.println("Every line must contain the COVARIATES_A keyword. Keyword not found on line " + lineNumber);
-                    System.exit(1);
-                }
-                j++;
-                for (; !"COVARIATES_B".equals(tokens[j]); j++) {
-                    if (j == tokens.length) {
-                        break;
+    /**
+     * Observes within group pairs on several threads. Pairs are collected in batches, each batch is observed by an
+     * estimator that owns its statistic adaptor and a partial null distribution, and the partial distributions are
+     * merged into the null distribution of the main estimator when p-values are about to be estimated from it.
+     */
+    private class ParallelNullEstimator {
+        private static final int BATCH_SIZE = 10000;
+        private final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        private final ObjectArrayFIFOQueue<Future<?>> pending = new ObjectArrayFIFOQueue<Future<?>>();
+        /**
+         * Estimators not currently observing a batch.
+         */
+        private final ObjectArrayList<EmpiricalPValueEstimator> idle = new ObjectArrayList<EmpiricalPValueEstimator>();
+        private final ObjectArrayList<EmpiricalPValueEstimator> all = new ObjectArrayList<EmpiricalPValueEstimator>();
+        private PairBatch batch = new PairBatch();
+        /**
+         * Whether pairs were observed since the last merge.
+         */
+        private boolean observedSinceMerge;
+
+        void observe(final IntArrayList valuesA, final IntArrayList valuesB,
+                     final IntArrayList covariatesA, final IntArrayList covariatesB) {
+            observedSinceMerge = true;
+            batch.add(valuesA, valuesB, covariatesA, covariatesB);
+            if (batch.size == BATCH_SIZE) {
+                submit();
+            }
+        }
+
+        private void submit() {
+            final PairBatch submitted = batch;
+            batch = new PairBatch();
+            pending.enqueue(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    final EmpiricalPValueEstimator worker = acquire();
+                    try {
+                        submitted.observe(worker);
+                    } finally {
+                        release(worker);
                     }
-                    covariatesA.add(Integer.parseInt(tokens[j]));
-                }
-                if (j == tokens.length) {
-                    System.err.println("Every line must contain the COVARIATES_B keyword. Keyword not found on line " + lineNumber);
-                    System.exit(1);
-                }
-                j++;
-                for (; j < tokens.length; j++) {
-                    covariatesB.add(Integer.parseInt(tokens[j]));
                 }
+            }));
+            // limit the number of batches held in memory:
+            while (pending.size() > numThreads * 2) {
+                waitFor(pending.dequeue());
+            }
+        }
 
+        /**
+         * Wait for the batches observed so far and merge their observations into the main null distribution.
+         * Does nothing when no pair was observed since the last merge, so that consecutive between group pairs
+         * merge at most once.
+         */
+        void merge() {
+            if (!observedSinceMerge) {
+                return;
+            }
+            if (batch.size > 0) {
+                submit();
+            }
+            while (!pending.isEmpty()) {
+                waitFor(pending.dequeue());
+            }
+            final EstimatedDistribution nullDistribution = estimator.getNullDistribution();
+            for (final EmpiricalPValueEstimator worker : all) {
+                nullDistribution.merge(worker.getNullDistribution());
+                // keep the worker and its statistic adaptor, but start a new partial distribution:
+                worker.setNullDistribution(newPartialDistribution(worker));
+            }
+            observedSinceMerge = false;
+        }
+
+        void shutdown() {
+            executor.shutdownNow();
+        }
 
+        private void waitFor(final Future<?> future) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GobyRuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new GobyRuntimeException(e.getCause());
             }
-            lineNumber++;
-            final String groupComparison = elementIds.get(0);
-            process(typeOfPair, groupComparison, elementIds, valuesA, valuesB, covariatesA, covariatesB);
-            pg.lightUpdate();
         }
-        pg.done(lineNumber);
+
+        private synchronized EmpiricalPValueEstimator acquire() {
+            if (!idle.isEmpty()) {
+                return idle.pop();
+            }
+            final EmpiricalPValueEstimator worker = new EmpiricalPValueEstimator();
+            worker.configure(1, doc);
+            worker.setNullDistribution(newPartialDistribution(worker));
+            all.add(worker);
+            return worker;
+        }
+
+        private EstimatedDistribution newPartialDistribution(final EmpiricalPValueEstimator worker) {
+            final EstimatedDistribution partial = new EstimatedDistribution(1, worker.getStatAdaptor());
+            partial.setBinningStrategy(estimator.getNullDistribution().getBinningStrategy());
+            return partial;
+        }
+
+        private synchronized void release(final EmpiricalPValueEstimator worker) {
+            idle.push(worker);
+        }
     }
 
-    private int countLines(String inputFilename) throws FileNotFoundException {
-        int lineCount = 0;
-        LineIterator it = new LineIterator(new FileReader(inputFilename));
-        while (it.hasNext()) {
-            Object next = it.next();
-            lineCount++;
+    /**
+     * Within group pairs, with the values of all the pairs stored one after the other in a single array.
+     */
+    private static class PairBatch {
+        private final IntArrayList data = new IntArrayList();
+        /**
+         * End offsets in data of valuesA, valuesB, covariatesA and covariatesB, four per pair.
+         */
+        private final IntArrayList ends = new IntArrayList();
+        private int size;
+
+        void add(final IntArrayList valuesA, final IntArrayList valuesB,
+                 final IntArrayList covariatesA, final IntArrayList covariatesB) {
+            append(valuesA);
+            append(valuesB);
+            append(covariatesA);
+            append(covariatesB);
+            size++;
+        }
+
+        private void append(final IntArrayList values) {
+            data.addAll(values);
+            ends.add(data.size());
+        }
+
+        void observe(final EmpiricalPValueEstimator worker) {
+            final IntArrayList valuesA = new IntArrayList();
+            final IntArrayList valuesB = new IntArrayList();
+            final IntArrayList covariatesA = new IntArrayList();
+            final IntArrayList covariatesB = new IntArrayList();
+            final int[] elements = data.elements();
+            int start = 0;
+            for (int i = 0; i < size; i++) {
+                start = copy(elements, start, ends.getInt(i * 4), valuesA);
+                start = copy(elements, start, ends.getInt(i * 4 + 1), valuesB);
+                start = copy(elements, start, ends.getInt(i * 4 + 2), covariatesA);
+                start = copy(elements, start, ends.getInt(i * 4 + 3), covariatesB);
+                worker.estimateNullDensity(valuesA, valuesB, covariatesA, covariatesB);
+            }
+        }
+
+        private static int copy(final int[] elements, final int start, final int end, final IntArrayList values) {
+            values.size(end - start);
+            System.arraycopy(elements, start, values.elements(), 0, end - start);
+            return end;
         }
-        it.close();
-        return lineCount;
     }
 
 
@@ -464,6 +568,10 @@ public class EmpiricalPMode extends AbstractGobyMode {
     }
 
     private void write(ObjectArrayList<String> elementIds) {
+        if (parallelEstimator != null) {
+            // p-values must be estimated from all the null observations seen so far:
+            parallelEstimator.merge();
+        }
         outputWriter.print(label);
         outputWriter.print("\tP-VALUE");
         boolean stop = false;
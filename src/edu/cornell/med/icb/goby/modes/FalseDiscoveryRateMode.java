@@ -22,12 +22,14 @@ import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.readers.vcf.*;
 import edu.cornell.med.icb.goby.stats.*;
+import edu.cornell.med.icb.goby.util.ParallelBlockCompressedOutputStream;
 import edu.cornell.med.icb.io.TSVReader;
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntArraySet;
 import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
 import it.unimi.dsi.fastutil.objects.*;
 import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.logging.ProgressLogger;
@@ -36,7 +38,6 @@ import org.apache.log4j.Logger;
 
 import java.io.*;
 import java.util.Collections;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * Combines tab delimited or VCF formatted datasets and performs FDR adjustment on a set of P-value columns. Lines will always be ordered
@@ -77,6 +78,10 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
     private String[] selectedPValueColumns;
     private ObjectArraySet<String> adjustedColumnIds = new ObjectArraySet<String>();
     private boolean vcf;
+    /**
+     * When true, a columnar companion file is written next to the VCF output.
+     */
+    private boolean writeColumnStore;
     private int topHitNum;
     private int numIgnoredObservations;
     /**
@@ -122,6 +127,7 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
         selectedPValueColumns = jsapResult.getStringArray("column");
         columnSelectionFilter = jsapResult.getStringArray("column-selection-filter");
         vcf = jsapResult.getBoolean("vcf");
+        writeColumnStore = jsapResult.getBoolean("write-columns");
         if (outputFilename.endsWith(".vcf")) {
             vcf = true;
         }
@@ -141,7 +147,8 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
         try {
             stream = outputFilename == null ? new OutputStreamWriter(System.out)
                     : outputFilename.endsWith(".gz") ?
-                    new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outputFilename))) :
+                    new OutputStreamWriter(new FastBufferedOutputStream(
+                            ParallelBlockCompressedOutputStream.open(outputFilename))) :
                     new FileWriter(outputFilename);
             // start with an array of size 1M. This improves loading time for large datasets.
             DifferentialExpressionResults data = new DifferentialExpressionResults(10000000);
@@ -472,6 +479,9 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
             statIndexToInfoFieldIndex.put(statIndex++, vcfWriter.getNumInfoFields() - 1);
         }
 
+        if (writeColumnStore) {
+            vcfWriter.setColumnStore(outputFilename + VCFColumnStoreWriter.FILE_SUFFIX);
+        }
         vcfWriter.writeHeader();
         int elementIndex = 0;
         for (String filename : inputFiles) {
@@ -22,12 +22,17 @@ import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.algorithmic.data.HeptamerInfo;
 import edu.cornell.med.icb.goby.algorithmic.data.WeightsInfo;
-import edu.cornell.med.icb.goby.reads.Reads;
-import edu.cornell.med.icb.goby.reads.ReadsReader;
+import edu.cornell.med.icb.goby.reads.ParallelReadsChunkScanner;
+import edu.cornell.med.icb.goby.reads.ReadsChunk;
+import edu.cornell.med.icb.goby.reads.ReadsChunkReader;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrays;
 import it.unimi.dsi.fastutil.shorts.ShortArrayList;
-import it.unimi.dsi.fastutil.shorts.ShortList;
+import it.unimi.dsi.fastutil.shorts.ShortArrays;
 import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.logging.ProgressLogger;
 import org.apache.commons.io.FilenameUtils;
@@ -35,10 +40,10 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Arrays;
 
 /**
  * Evaluate heptamer weights following the method of Hansen et al, NAR April 2010.
@@ -69,10 +74,17 @@ public class HeptamerWeightsMode extends AbstractGobyMode {
     private Int2ObjectOpenHashMap<int[]> heptamerCounts = new Int2ObjectOpenHashMap<int[]>();
     private String tabWeightFilename;
     private int[] heptamerTotalCounts;
-    private ShortList readIndexToHeptamerIndex = new ShortArrayList();
+    /**
+     * The code of the heptamer at position 1 of each read, or -1.
+     */
+    private final ShortArrayList readIndexToHeptamerCode = new ShortArrayList();
     private String mapFilename;
     private String heptamerInfoFilename;
     private boolean colorSpace;
+    /**
+     * Number of threads that scan each reads file, or -1 to use all the processors.
+     */
+    private int numThreads = -1;
 
 
     @Override
@@ -105,10 +117,15 @@ public class HeptamerWeightsMode extends AbstractGobyMode {
         mapFilename = jsapResult.getString("map");
         heptamerInfoFilename = jsapResult.getString("heptamer-info");
         colorSpace = jsapResult.getBoolean("color-space");
+        numThreads = jsapResult.getInt("num-threads");
 
         return this;
     }
 
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
 
     @Override
     public void execute() throws IOException {
@@ -121,66 +138,49 @@ public class HeptamerWeightsMode extends AbstractGobyMode {
         progress.displayFreeMemory = true;
         final int[] readIndices = {1, 2, -5, -4, -3, -2, -1, 0};
         heptamerTotalCounts = new int[readIndices.length];
+        heptamers.colorSpace = colorSpace;
+        final int numberOfCodes = heptamers.numberOfCodes();
+        final int[] codeCounts = new int[numberOfCodes * readIndices.length];
         for (final String inputFilename : inputFilenames) {
             LOG.info("Now scanning " + inputFilename);
-            final ReadsReader reader = new ReadsReader(new FileInputStream(inputFilename));
-            try {
-                final int count = 0;
-                final MutableString sequence = new MutableString();
-                int numberOfReads = 0;
-                heptamers.colorSpace = colorSpace;
-                for (final Reads.ReadEntry readEntry : reader) {
-                    ReadsReader.decodeSequence(readEntry, sequence);
-                    if (colorSpace) {
-                        sequence.delete(0, 1);
-
-                    }
-                    // if (count++ > 100000) break;
-                    int item = 0;
-
-                    for (final int positionInRead : readIndices) {
-                        final int recodedReadIndex = recodeReadIndex(sequence, positionInRead);
-
-                        final int end = recodedReadIndex - 1 + heptamers.heptamerLength;
-                        final int start = recodedReadIndex - 1;
-                        //     System.out.printf("%d %d %d %d%n", positionInRead,sequence.length(),start, end );
-                        final MutableString heptamer = sequence.substring(start, end);
-
-                        if (heptamer.indexOf('N') == -1) {
-                            // heptamers that include any number of Ns are ignored.
-                            final short heptamerIndex = (short) heptamers.heptamerToIndices.registerIdentifier(heptamer);
-                            accumulateFrequency(heptamerIndex, positionInRead, item, readIndices.length);
-                            if (positionInRead == 1) {
-                                // this is the heptamer that starts at position 1 of the read,
-                                // associate this read index to the heptamer index:
-                                final int compactReadIndex = readEntry.getReadIndex();
-
-                                // readIndexToHeptamerIndex.add(heptamerIndex);
-                                if (readIndexToHeptamerIndex.size() - 1 < compactReadIndex) {
-                                    readIndexToHeptamerIndex.size((compactReadIndex + 10) * 2);
-                                }
-
-                                readIndexToHeptamerIndex.set(compactReadIndex, heptamerIndex);
-                            }
-
-                        }
-                        item++;
-
+            // slices of the file are scanned in parallel, each slice counts heptamers by code:
+            final ParallelReadsChunkScanner<SliceCounts> scanner = new ParallelReadsChunkScanner<SliceCounts>(
+                    numThreads == -1 ? Runtime.getRuntime().availableProcessors() : numThreads,
+                    ReadsChunkReader.Field.SEQUENCE) {
+                @Override
+                protected SliceCounts newState() {
+                    return new SliceCounts(numberOfCodes, readIndices.length);
+                }
 
+                @Override
+                protected void process(final SliceCounts slice, final ReadsChunk chunk) {
+                    countHeptamers(slice, chunk, readIndices);
+                    synchronized (progress) {
+                        progress.update(chunk.size());
                     }
-
-                    progress.lightUpdate();
-                    numberOfReads++;
                 }
-                readIndexToHeptamerIndex.size(numberOfReads);
-            } finally {
-                if (reader != null) {
-                    try {
-                        reader.close();
-                    } catch (IOException e) { // NOPMD
-                        // silently ignore
-                    }
+            };
+            int numberOfReads = 0;
+            for (final SliceCounts slice : scanner.scan(inputFilename)) {
+                numberOfReads += slice.numberOfReads;
+                for (int i = 0; i < codeCounts.length; i++) {
+                    codeCounts[i] += slice.counts[i];
                 }
+                for (int i = 0; i < readIndices.length; i++) {
+                    heptamerTotalCounts[i] += slice.totalCounts[i];
+                }
+                registerHeptamers(slice);
+            }
+            resizeHeptamerCodes(numberOfReads);
+        }
+        // heptamer indices were assigned in the order heptamers first occur in the files:
+        final MutableString codedHeptamer = new MutableString();
+        for (int code = 0; code < numberOfCodes; code++) {
+            heptamers.decode(code, codedHeptamer);
+            final int heptamerIndex = heptamers.heptamerToIndices.getInt(codedHeptamer);
+            if (heptamerIndex != -1) {
+                heptamerCounts.put(heptamerIndex,
+                        Arrays.copyOfRange(codeCounts, code * readIndices.length, (code + 1) * readIndices.length));
             }
         }
         final DoubleIndexedIdentifier indicesToHeptamer = new DoubleIndexedIdentifier(heptamers.heptamerToIndices);
@@ -236,10 +236,11 @@ public class HeptamerWeightsMode extends AbstractGobyMode {
 
             LOG.info("writing binary weight file.");
             final WeightsInfo weights = new WeightsInfo();
-            weights.size(readIndexToHeptamerIndex.size());
-            for (int readIndex = 0; readIndex < readIndexToHeptamerIndex.size(); readIndex++) {
-                final short heptamerIndex = readIndexToHeptamerIndex.get(readIndex);
-                weights.setWeight(readIndex, heptamerIndex == -1 ? 1 : heptamers.heptamerIndexToWeight.get(heptamerIndex));
+            weights.size(readIndexToHeptamerCode.size());
+            final float[] weightTable = heptamers.getWeightTable();
+            for (int readIndex = 0; readIndex < readIndexToHeptamerCode.size(); readIndex++) {
+                final short code = readIndexToHeptamerCode.getShort(readIndex);
+                weights.setWeight(readIndex, code == -1 ? 1 : weightTable[code]);
             }
 
             weights.save(mapFilename);
@@ -265,6 +266,118 @@ public class HeptamerWeightsMode extends AbstractGobyMode {
     }
 
 
+    /**
+     * Count the heptamers of a chunk of reads, and store the heptamer at position 1 of each read.
+     */
+    private void countHeptamers(final SliceCounts slice, final ReadsChunk chunk, final int[] readIndices) {
+        final int size = chunk.size();
+        slice.readIndices = IntArrays.ensureCapacity(slice.readIndices, size);
+        slice.codes = ShortArrays.ensureCapacity(slice.codes, size);
+        final MutableString sequence = slice.sequence;
+        for (int i = 0; i < size; i++) {
+            chunk.decodeSequence(i, sequence);
+            if (colorSpace) {
+                sequence.delete(0, 1);
+            }
+            slice.readIndices[i] = chunk.getReadIndex(i);
+            slice.codes[i] = -1;
+            int item = 0;
+            for (final int positionInRead : readIndices) {
+                final int start = recodeReadIndex(sequence, positionInRead) - 1;
+                if (start >= 0 && start + heptamers.heptamerLength <= sequence.length()) {
+                    // heptamers that include any number of Ns (or any character not coded) are ignored.
+                    final int code = heptamers.encode(sequence, start);
+                    if (code != -1) {
+                        if (slice.firstSeen[code] == Long.MAX_VALUE) {
+                            slice.firstSeen[code] = slice.numberOfHeptamers;
+                        }
+                        slice.numberOfHeptamers++;
+                        slice.counts[code * readIndices.length + item]++;
+                        slice.totalCounts[item]++;
+                        if (positionInRead == 1) {
+                            // this is the heptamer that starts at position 1 of the read,
+                            // associate this read index to the heptamer:
+                            slice.codes[i] = (short) code;
+                        }
+                    }
+                }
+                item++;
+            }
+        }
+        storeHeptamerCodes(slice.readIndices, slice.codes, size);
+        slice.numberOfReads += size;
+    }
+
+    private synchronized void storeHeptamerCodes(final int[] readIndices, final short[] codes, final int length) {
+        for (int i = 0; i < length; i++) {
+            final int readIndex = readIndices[i];
+            if (readIndexToHeptamerCode.size() - 1 < readIndex) {
+                resizeHeptamerCodes((readIndex + 10) * 2);
+            }
+            readIndexToHeptamerCode.set(readIndex, codes[i]);
+        }
+    }
+
+    private void resizeHeptamerCodes(final int size) {
+        final int previousSize = readIndexToHeptamerCode.size();
+        readIndexToHeptamerCode.size(size);
+        for (int readIndex = previousSize; readIndex < size; readIndex++) {
+            readIndexToHeptamerCode.set(readIndex, (short) -1);
+        }
+    }
+
+    /**
+     * Register the heptamers of a slice, in the order they first occur in the slice.
+     */
+    private void registerHeptamers(final SliceCounts slice) {
+        final IntArrayList codes = new IntArrayList();
+        for (int code = 0; code < slice.firstSeen.length; code++) {
+            if (slice.firstSeen[code] != Long.MAX_VALUE) {
+                codes.add(code);
+            }
+        }
+        final int[] ordered = codes.toIntArray();
+        IntArrays.quickSort(ordered, new AbstractIntComparator() {
+            @Override
+            public int compare(final int a, final int b) {
+                return slice.firstSeen[a] < slice.firstSeen[b] ? -1 : slice.firstSeen[a] == slice.firstSeen[b] ? 0 : 1;
+            }
+        });
+        for (final int code : ordered) {
+            final MutableString heptamer = new MutableString();
+            heptamers.decode(code, heptamer);
+            heptamers.heptamerToIndices.registerIdentifier(heptamer);
+        }
+    }
+
+    /**
+     * Heptamer counts of a slice of a reads file.
+     */
+    private static final class SliceCounts {
+        private final MutableString sequence = new MutableString();
+        /**
+         * Counts of heptamers by code and position in reads.
+         */
+        private final int[] counts;
+        private final int[] totalCounts;
+        /**
+         * Number of heptamers counted in the slice before the first occurrence of each heptamer code.
+         */
+        private final long[] firstSeen;
+        private long numberOfHeptamers;
+        private int numberOfReads;
+        private int[] readIndices = IntArrays.EMPTY_ARRAY;
+        private short[] codes = ShortArrays.EMPTY_ARRAY;
+
+        private SliceCounts(final int numberOfCodes, final int numberOfPositions) {
+            super();
+            counts = new int[numberOfCodes * numberOfPositions];
+            totalCounts = new int[numberOfPositions];
+            firstSeen = new long[numberOfCodes];
+            LongArrays.fill(firstSeen, Long.MAX_VALUE);
+        }
+    }
+
     private int recodeReadIndex(final MutableString sequence, final int readIndex) {
         int recodedReadIndex = readIndex;
         if (readIndex <= 0) {
@@ -301,18 +414,6 @@ public class HeptamerWeightsMode extends AbstractGobyMode {
         return (double) numerator / (double) denominator;
     }
 
-    private void accumulateFrequency(final int heptamerIndex, final int readIndex, final int i, final int maxItems) {
-        int[] countByReadIndex = heptamerCounts.get(heptamerIndex);
-        if (countByReadIndex == null) {
-            countByReadIndex = new int[maxItems];
-            heptamerCounts.put(heptamerIndex, countByReadIndex);
-        }
-
-        countByReadIndex[i] += 1;
-        heptamerTotalCounts[i] += 1;
-    }
-
-
     public static void main(final String[] args) throws IOException, JSAPException {
         new HeptamerWeightsMode().configure(args).execute();
     }
@@ -20,6 +20,8 @@ package edu.cornell.med.icb.goby.modes;
 
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
+import edu.cornell.med.icb.goby.algorithmic.data.CytosineContextTrack;
+import edu.cornell.med.icb.goby.algorithmic.data.MethylationSiteAccumulator;
 import edu.cornell.med.icb.goby.readers.vcf.VCFParser;
 import edu.cornell.med.icb.goby.reads.RandomAccessSequenceCache;
 import edu.cornell.med.icb.goby.xml.MethylStats;
@@ -84,6 +86,18 @@ public class MethylStatsMode extends AbstractGobyMode {
     private String conversionRateOutputFilename;
     private String cytosineFrequenciesOutputFilename;
     private String nonConversionPerContextOutputFilename;
+    /**
+     * Where the cytosine context tracks of the genome are cached.
+     */
+    private String contextCacheFilename;
+    /**
+     * Cytosine context tracks, one per reference sequence.
+     */
+    private CytosineContextTrack[] contextTracks;
+    /**
+     * True when contextTracks are mapped from the cache file, false when they are computed one reference at a time.
+     */
+    private boolean contextTracksCached;
 
 
     @Override
@@ -127,6 +141,7 @@ public class MethylStatsMode extends AbstractGobyMode {
                 e.printStackTrace();
                 System.exit(1);
             }
+            contextCacheFilename = genomeBasename + CytosineContextTrack.CACHE_SUFFIX;
         }
         doFragments = jsapResult.getBoolean("fragments");
         fragmentLengthBins = stringToInts(jsapResult.getString("fragment-lengths"));
@@ -166,11 +181,11 @@ public class MethylStatsMode extends AbstractGobyMode {
         try {
             output = statsOuputFilename.equals("-") ? new PrintWriter(System.out) : new PrintWriter(new FileWriter(statsOuputFilename));
             final MethylStats backgroundStats = new MethylStats(depths, fragmentLengthBins);
+            loadContextTracks();
             // First process the genome to find out the background distribution of CpGs:
             if (doFragments) {
                 System.out.printf("Pre-processing genome.%n");
-                scanOneStrand(backgroundStats, '+');
-                scanOneStrand(backgroundStats, '-');
+                scanGenome(backgroundStats);
                 System.out.printf("Found %d CpG sites in genome.%n", backgroundStats.getNumberCpGsInGenome());
 
             } else {
@@ -183,6 +198,8 @@ public class MethylStatsMode extends AbstractGobyMode {
                 methylStats[i] = backgroundStats.copy();
                 methylStats[i].sampleId = samples[i];
             }
+            final MethylationSiteAccumulator accumulator = new MethylationSiteAccumulator(samples.length, depths,
+                    fragmentLengthBins, minCoverageThreshold);
             ProgressLogger fileProgress = new ProgressLogger(LOG);
             fileProgress.itemsName = "files";
             fileProgress.displayFreeMemory = false;
@@ -261,27 +278,26 @@ public class MethylStatsMode extends AbstractGobyMode {
                             refIndexOfNextCpG = referenceIndex;
                         }
                         // VCF positions are 1-based, but Goby genome positions are 0-based, adjust here:
-                        int sitePosition = Integer.parseInt(vcfParser.getFieldValue(positionGlobalFieldIndex).toString()) - 1;
-                        char strand = vcfParser.getFieldValue(strandGlobalFieldIndex).charAt(0);
-                        if (doFragments) {
-                            if (isCpG(referenceIndex, sitePosition, strand)) {
-
-                                final int fragmentLength = calculateFragmentLength(reference, sitePosition, strand);
-                                if (fragmentLength > 0) {
-                                    for (i = 0; i < numSamples; i++) {
-                                        final int depthInSample = Integer.parseInt(vcfParser.getFieldValue(sampleDepthGlobalFieldIndex[i]).toString());
-                                        if (depthInSample > 10) {
-                                            methylStats[i].observedInSample(depthInSample, fragmentLength);
-                                        }
-                                    }
-                                }
-                            }
-                        }
+                        int sitePosition = vcfParser.getIntFieldValue(positionGlobalFieldIndex) - 1;
+                        char strand = vcfParser.getCharFieldValue(strandGlobalFieldIndex);
+                        final CytosineContextTrack track = getContextTrack(referenceIndex);
+                        final int context = track.getContext(sitePosition, strand);
+                        final int fragmentLength = doFragments && track.isCpG(sitePosition, strand) ?
+                                track.getFragmentLength(sitePosition, strand) : -1;
+                        accumulator.addSite(context, fragmentLength);
                         for (i = 0; i < numSamples; i++) {
-                            final int depthInSample = Integer.parseInt(vcfParser.getFieldValue(sampleDepthGlobalFieldIndex[i]).toString());
-                            methylStats[i].observedDepth(depthInSample);
+                            accumulator.setDepth(i, vcfParser.getIntFieldValue(sampleDepthGlobalFieldIndex[i]));
+                        }
+                        if (context != CytosineContextTrack.NOT_CYTOSINE) {
+                            for (i = 0; i < numSamples; i++) {
+                                final CharSequence baseCalls = vcfParser.getFieldValue(baseCallGlobalFieldIndex[i]);
+                                if ("ignore".equals(baseCalls)) continue;
+                                accumulator.setCounts(i,
+                                        vcfParser.getIntFieldValue(methylationRateGlobalFieldIndex[i]),
+                                        vcfParser.getIntFieldValue(unconvertedCystosineGlobalFieldIndex[i]),
+                                        vcfParser.getIntFieldValue(convertedCystosineGlobalFieldIndex[i]));
+                            }
                         }
-                        updateCpXs(reference, referenceIndex, sitePosition, strand, methylStats, vcfParser, numSamples);
 
                         vcfParser.next();
                     }
@@ -297,6 +313,7 @@ public class MethylStatsMode extends AbstractGobyMode {
                 fileProgress.update();
             }
             fileProgress.done();
+            accumulator.addTo(methylStats);
             writeTab(output, samples, methylStats);
             output.close();
         } catch (IOException e) {
@@ -308,148 +325,66 @@ public class MethylStatsMode extends AbstractGobyMode {
     }
 
 
-    private void updateCpXs(String reference, int referenceIndex, int sitePosition, char strand,
-                            MethylStats[] methylStats, VCFParser vcfParser, int numSamples) {
-        if (sitePosition + 1 >= referenceSequenceSize) {
-            return;
-        }
-        if (strand == '-' && sitePosition < 1) { // there is no previous base to check
-            return;
-        }
-        final char firstBase = genome.get(referenceIndex, sitePosition);
-        final char secondBase = genome.get(referenceIndex, sitePosition + (strand == '+' ? 1 : -1));
-        if (isC(firstBase, strand)) {
-
-
-            for (int i = 0; i < numSamples; i++) {
-                final int depthInSample = Integer.parseInt(vcfParser.getFieldValue(sampleDepthGlobalFieldIndex[i]).toString());
-                final CharSequence baseCalls = vcfParser.getFieldValue(baseCallGlobalFieldIndex[i]);
-                if ("ignore".equals(baseCalls)) continue;
-                final float mr = Integer.parseInt(vcfParser.getFieldValue(methylationRateGlobalFieldIndex[i]).toString());
-                final int numCm = Integer.parseInt(vcfParser.getFieldValue(unconvertedCystosineGlobalFieldIndex[i]).toString());
-                final int numCConverted = Integer.parseInt(vcfParser.getFieldValue(convertedCystosineGlobalFieldIndex[i]).toString());
-
-                final MethylStats stats = methylStats[i];
-                if (base(secondBase, strand) != 'G') {
-                    stats.numConvertedNotCpGContext += numCConverted;
-                    stats.numNotCpGContext += numCConverted + numCm;
-                    /*   System.out.printf("non CpG: pos=%d strand=%c numCm=%d numC=%d mr=%g depth=%d %c%c %n", sitePosition,
-             strand,
-             numCm, numCConverted, mr,
-             depthInSample,
-             firstBase, secondBase);      */
-                }
-                if (depthInSample < minCoverageThreshold || mr < 10) {
-                    // discard positions if less than 10 bases observed methylated or less than 10% methylation. We do this to try to avoid
-                    // sequencing errors.
-                    continue;
-                }
-
-                long[] mCpXfreqs = stats.getMethylCpXFreqs();
-                long[] cPXFreqs = stats.getObservedCpXFreqs();
-                switch (base(secondBase, strand)) {
-                    case 'C':
-                        mCpXfreqs[MethylStats.CPC] += numCm;
-                        cPXFreqs[MethylStats.CPC] += numCm + numCConverted;
-                        // final CharSequence baseCalls = vcfParser.getFieldValue(baseCallGlobalFieldIndex[i]);
-                        //   System.out.printf("ref: %s position: %d strand %c %c %c baseCalls=%s %n", reference, sitePosition+1, strand, firstBase, secondBase,baseCalls);
-                        break;
-                    case 'A':
-                        mCpXfreqs[MethylStats.CPA] += numCm;
-                        cPXFreqs[MethylStats.CPA] += numCm + numCConverted;
-
-                        break;
-                    case 'T':
-                        mCpXfreqs[MethylStats.CPT] += numCm;
-                        cPXFreqs[MethylStats.CPT] += numCm + numCConverted;
-                        break;
-                    case 'G':
-                        stats.numCTpG += depthInSample;
-                        mCpXfreqs[MethylStats.CPG] += numCm;
-                        cPXFreqs[MethylStats.CPG] += numCm + numCConverted;
-                        break;
-                }
-            }
-
-
+    /**
+     * Load the cytosine context tracks of the genome from the cache, creating the cache if needed. When the cache
+     * cannot be written, tracks are computed for one reference sequence at a time.
+     */
+    private void loadContextTracks() {
+        try {
+            contextTracks = CytosineContextTrack.load(genome, contextCacheFilename);
+            contextTracksCached = true;
+        } catch (IOException e) {
+            LOG.warn(String.format("Cannot cache cytosine contexts in %s, contexts will be computed in memory.",
+                    contextCacheFilename), e);
+            contextTracks = new CytosineContextTrack[genome.numberOfSequences()];
+            contextTracksCached = false;
         }
     }
 
-    private char base(char base, char strand) {
-        if (strand == '+') {
-            return base;
-        } else {
-            switch (base) {
-                case 'A':
-                    return 'T';
-                case 'C':
-                    return 'G';
-                case 'T':
-                    return 'A';
-                case 'G':
-                    return 'C';
-                default:
-                    return base;
+    private CytosineContextTrack getContextTrack(final int referenceIndex) {
+        CytosineContextTrack track = contextTracks[referenceIndex];
+        if (track == null) {
+            if (!contextTracksCached) {
+                // keep only one reference sequence in memory:
+                Arrays.fill(contextTracks, null);
             }
+            track = CytosineContextTrack.compute(genome, referenceIndex);
+            contextTracks[referenceIndex] = track;
         }
-
-    }
-
-    private boolean isC(final char firstBase, final char strand) {
-        return strand == '+' && firstBase == 'C' || strand == '-' && firstBase == 'G';
+        return track;
     }
 
-    private void scanOneStrand(MethylStats backgroundStats, char strand) {
+    /**
+     * Count the CpGs of the genome, and the length of the fragments between consecutive CpGs, on both strands.
+     */
+    private void scanGenome(final MethylStats backgroundStats) {
         ProgressLogger pg = new ProgressLogger(LOG);
-
         pg.priority = org.apache.log4j.Level.INFO;
-        pg.itemsName = "bases";
+        pg.itemsName = "sequences";
         pg.displayFreeMemory = true;
-        pg.start(String.format("counting genome CpG sites on %c strand.", strand));
+        pg.expectedUpdates = genome.numberOfSequences();
+        pg.start("counting genome CpG sites.");
         for (int sequenceIndex = 0; sequenceIndex < genome.numberOfSequences(); sequenceIndex++) {
             if (QUICK && genome.getReferenceIndex("1") != sequenceIndex) {
                 continue;
             }
-
-            final int genomeSequenceSize = genome.getSequenceSize(sequenceIndex);
-            char previousBase = '\0';
-            char currentBase = '\0';
-            int positionCpG1 = 0;
-            int positionCpG2 = 0;
-            int fragmentLength = -1;
-            for (int position = strand == '+' ? 0 :
-                    genomeSequenceSize - 1; strand == '+' ? position < genomeSequenceSize :
-                    position >= 0; position += strand == '+' ? 1 : -1) {
-
-                currentBase = genome.get(sequenceIndex, position);
-                pg.lightUpdate();
-                if (isCpG(previousBase, currentBase, strand)) {
-                    // found a new CpG.
-                    positionCpG1 = positionCpG2;
-                    positionCpG2 = position;
-                    fragmentLength = strand == '+' ?
-                            positionCpG2 - positionCpG1 :
-                            positionCpG1 - positionCpG2;
-                    if (fragmentLength > 0) {
-                        backgroundStats.genomeHasCpG(fragmentLength);
-
-                    }
-                }
-
-                previousBase = currentBase;
+            final CytosineContextTrack track = getContextTrack(sequenceIndex);
+            final int numCpGs = track.getNumberOfCpGs();
+            if (numCpGs > 0) {
+                // on the forward strand, the first CpG starts a fragment from the start of the sequence to its G:
+                backgroundStats.genomeHasCpG(track.getCpGPosition(0) + 1);
+            }
+            for (int i = 1; i < numCpGs; i++) {
+                final int fragmentLength = track.getCpGPosition(i) - track.getCpGPosition(i - 1);
+                // once for each strand:
+                backgroundStats.genomeHasCpG(fragmentLength);
+                backgroundStats.genomeHasCpG(fragmentLength);
             }
+            pg.update();
         }
         pg.done();
     }
 
-    private boolean isCpG(char previousBase, char currentBase, char strand) {
-        if (strand == '+') {
-            return previousBase == 'C' && currentBase == 'G';
-        } else {
-            return previousBase == 'G' && currentBase == 'C';
-        }
-    }
-
     private void writeTab(PrintWriter output, String[] samples, MethylStats[] methylStats) {
         int sampleIndex = 0;
 
@@ -709,47 +644,6 @@ public class MethylStatsMode extends AbstractGobyMode {
         }
     }
 
-    private boolean isCpG(final int referenceIndex, final int sitePosition, char strand) {
-        if (sitePosition + 1 > referenceSequenceSize) {
-            return false;
-        }
-        char firstBase = genome.get(referenceIndex, sitePosition);
-        char secondBase = genome.get(referenceIndex, sitePosition + 1);
-        /*  if (firstBase != 'N' && secondBase != 'N') {
-           System.out.printf("%c %c %n", firstBase, secondBase);
-       } */
-        return isCpG(firstBase, secondBase, strand);
-
-    }
-
-    private int calculateFragmentLength(String reference, int sitePosition, final char strand) {
-        int referenceIndex = genome.getReferenceIndex(reference);
-
-        char previousBase = '\0';
-        char currentBase = '\0';
-        int positionCpG1 = sitePosition;
-        int positionCpG2 = 0;
-        int fragmentLength = -1;
-        int direction = strand == '+' ? 1 : -1;
-        for (int pos = sitePosition + 2 * direction; strand == '+' ? pos < referenceSequenceSize : pos >= 0;
-             pos += direction) {
-            currentBase = genome.get(referenceIndex, pos);
-            if (isCpG(previousBase, currentBase, strand)) {
-                // found a new CpG.
-                positionCpG1 = sitePosition;
-                positionCpG2 = pos;
-
-                fragmentLength = strand == '+' ? positionCpG2 - positionCpG1 : positionCpG1 - positionCpG2;
-
-                if (fragmentLength > 0) {
-                    return fragmentLength;
-                } else return -1;
-            }
-            previousBase = currentBase;
-        }
-        return -1;
-    }
-
     int referenceSequenceSize;
 
     private double sum(long[] array) {
@@ -21,11 +21,13 @@ package edu.cornell.med.icb.goby.modes;
 import edu.cornell.med.icb.goby.R.GobyRengine;
 import edu.cornell.med.icb.goby.algorithmic.algorithm.dmr.EstimatedDistribution;
 import edu.cornell.med.icb.goby.algorithmic.algorithm.dmr.SitesInFixedWindow;
+import edu.cornell.med.icb.goby.algorithmic.data.CytosineContextTrack;
 import edu.cornell.med.icb.goby.algorithmic.data.GroupComparison;
 import edu.cornell.med.icb.goby.algorithmic.data.MethylCountInfo;
 import edu.cornell.med.icb.goby.algorithmic.data.SamplePairEnumerator;
 import edu.cornell.med.icb.goby.alignments.*;
 import edu.cornell.med.icb.goby.readers.vcf.ColumnType;
+import edu.cornell.med.icb.goby.reads.RandomAccessSequenceCache;
 import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
 import edu.cornell.med.icb.goby.stats.*;
 import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
@@ -110,6 +112,11 @@ public class MethylationRateVCFOutputFormat extends AbstractOutputFormat impleme
     private int convertedCytosineMinusFieldIndex;
     private int unconvertedCytosineMinusFieldIndex;
     private RandomAccessSequenceInterface genome;
+    /**
+     * Cytosine contexts of the genome, when they have been cached next to the genome (by methyl-stats), or null.
+     */
+    private CytosineContextTrack[] contextTracks;
+    private static final String[] CONTEXT_NAMES = {"CpG", "CpA", "CpC", "CpT"};
     private int genomicContextIndex;
     private CharSequence chromosome;
     private int genomeReferenceIndex;
@@ -484,6 +491,17 @@ public class MethylationRateVCFOutputFormat extends AbstractOutputFormat impleme
 
     private String findGenomicContext(int referenceIndex, int position) {
         int zeroBasedPos = position - 1;
+        if (contextTracks != null && referenceIndex < contextTracks.length) {
+            final CytosineContextTrack track = contextTracks[referenceIndex];
+            int context = track.getContext(zeroBasedPos, '+');
+            if (context == CytosineContextTrack.NOT_CYTOSINE) {
+                context = track.getContext(zeroBasedPos, '-');
+            }
+            if (context >= 0 && context < CONTEXT_NAMES.length) {
+                return CONTEXT_NAMES[context];
+            }
+            // other contexts and the ends of the sequence are determined from the bases below.
+        }
         char currentBase = genome.get(referenceIndex, zeroBasedPos);
         int referenceLength = genome.getLength(referenceIndex);
         char nextBase = '?';
@@ -559,6 +577,18 @@ public class MethylationRateVCFOutputFormat extends AbstractOutputFormat impleme
     @Override
     public void setGenome(RandomAccessSequenceInterface genome) {
         this.genome = genome;
+        contextTracks = null;
+        if (genome instanceof RandomAccessSequenceCache) {
+            final String basename = ((RandomAccessSequenceCache) genome).getBasename();
+            if (basename != null) {
+                try {
+                    contextTracks = CytosineContextTrack.loadIfCached(genome,
+                            basename + CytosineContextTrack.CACHE_SUFFIX);
+                } catch (IOException e) {
+                    LOG.warn("Unable to read cytosine contexts cached for genome " + basename, e);
+                }
+            }
+        }
     }
 
     @Override
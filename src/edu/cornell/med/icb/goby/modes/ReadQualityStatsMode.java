@@ -18,10 +18,10 @@
 
 package edu.cornell.med.icb.goby.modes;
 
-import com.google.protobuf.ByteString;
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
-import edu.cornell.med.icb.goby.reads.Reads;
+import edu.cornell.med.icb.goby.reads.ReadsChunk;
+import edu.cornell.med.icb.goby.reads.ReadsChunkReader;
 import edu.cornell.med.icb.goby.reads.ReadsReader;
 import it.unimi.dsi.fastutil.bytes.ByteArrayList;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
@@ -216,28 +216,39 @@ public class ReadQualityStatsMode extends AbstractGobyMode {
             final boolean doSample = sampleFraction < 1.0d;
             writer.println("basename\treadIndex\t25%-percentile\tmedian\taverageQuality\t75%-percentile");
             for (final File filename : inputFiles) {
-                final ReadsReader reader = new ReadsReader(filename);
+                final ReadsChunkReader reader = new ReadsChunkReader(filename);
+                // only quality scores are needed, do not decode the other fields:
+                reader.setProjection(ReadsChunkReader.Field.QUALITY_SCORES);
                 // we do getName to remove any path, that is not taken out by ReadsReader.getBasename().
                 final String basename = FilenameUtils.getName(ReadsReader.getBasename(filename.toString()));
-                for (final Reads.ReadEntry entry : reader) {
-                    if (!doSample || random.nextDouble() < sampleFraction) {
-                        final ByteString qualityScores = entry.getQualityScores();
-                        final int size = qualityScores.size();
-                        for (int readIndex = 0; readIndex < size; readIndex++) {
-                            final byte code = qualityScores.byteAt(readIndex);
-                            ReadQualityStats stats = qualityStats.get(readIndex);
-                            if (stats == null) {
-                                stats = new ReadQualityStats(1.0d);
-                                qualityStats.put(readIndex, stats);
-                                stats.readIndex = readIndex;
+                try {
+                    while (reader.nextChunk()) {
+                        final ReadsChunk chunk = reader.getChunk();
+                        final ReadsChunk.ByteColumn qualityScores = chunk.getQualityScores();
+                        final byte[] scores = qualityScores.getBytes();
+                        for (int i = 0; i < chunk.size(); i++) {
+                            if (!doSample || random.nextDouble() < sampleFraction) {
+                                final int offset = qualityScores.offset(i);
+                                final int size = qualityScores.length(i);
+                                for (int readIndex = 0; readIndex < size; readIndex++) {
+                                    final byte code = scores[offset + readIndex];
+                                    ReadQualityStats stats = qualityStats.get(readIndex);
+                                    if (stats == null) {
+                                        stats = new ReadQualityStats(1.0d);
+                                        qualityStats.put(readIndex, stats);
+                                        stats.readIndex = readIndex;
+                                    }
+                                    stats.observe(code);
+                                }
+                                numberOfObservedReads++;
+                            } else {
+                                numberOfSkippedReads++;
                             }
-                            stats.observe(code);
+                            progress.lightUpdate();
                         }
-                        numberOfObservedReads++;
-                    } else {
-                        numberOfSkippedReads++;
                     }
-                    progress.lightUpdate();
+                } finally {
+                    reader.close();
                 }
 
                 for (final ReadQualityStats stat : qualityStats.values()) {
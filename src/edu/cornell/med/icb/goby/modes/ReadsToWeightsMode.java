@@ -28,15 +28,17 @@ import edu.cornell.med.icb.goby.algorithmic.algorithm.HeptamerWeight;
 import edu.cornell.med.icb.goby.algorithmic.algorithm.WeightCalculator;
 import edu.cornell.med.icb.goby.algorithmic.data.HeptamerInfo;
 import edu.cornell.med.icb.goby.algorithmic.data.WeightsInfo;
-import edu.cornell.med.icb.goby.reads.Reads;
-import edu.cornell.med.icb.goby.reads.ReadsReader;
+import edu.cornell.med.icb.goby.reads.ParallelReadsChunkScanner;
+import edu.cornell.med.icb.goby.reads.ReadsChunk;
+import edu.cornell.med.icb.goby.reads.ReadsChunkReader;
+import it.unimi.dsi.fastutil.floats.FloatArrays;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.logging.ProgressLogger;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.LinkedList;
@@ -75,6 +77,10 @@ public class ReadsToWeightsMode extends AbstractGobyMode {
     private String heptamerInfoFilename;
     private String estimationMethod;
     boolean colorSpace;
+    /**
+     * Number of threads that scan each reads file, or -1 to use all the processors.
+     */
+    private int numThreads = -1;
 
     @Override
     public String getModeName() {
@@ -107,6 +113,7 @@ public class ReadsToWeightsMode extends AbstractGobyMode {
         mapFilename = jsapResult.getString("map");
         estimationMethod = jsapResult.getString("method");
         colorSpace = jsapResult.getBoolean("color-space");
+        numThreads = jsapResult.getInt("num-threads");
 
         return this;
     }
@@ -142,6 +149,10 @@ public class ReadsToWeightsMode extends AbstractGobyMode {
         this.colorSpace = colorSpace;
     }
 
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     public String getMapFilename() {
         return mapFilename;
     }
@@ -246,41 +257,56 @@ public class ReadsToWeightsMode extends AbstractGobyMode {
                 // if we process one or more reads file, build the map filename dynamically for each input file.
                 mapFilename = FilenameUtils.removeExtension(inputFilename) + "." + calculator.id() + "-weights";
             }
-            final ReadsReader reader = new ReadsReader(new FileInputStream(inputFilename));
-            try {
-                final WeightsInfo weights = new WeightsInfo();
-                final MutableString sequence = new MutableString();
-                int numberOfReads = 0;
-                for (final Reads.ReadEntry readEntry : reader) {
-                    ReadsReader.decodeSequence(readEntry, sequence);
-                    final int readIndex = readEntry.getReadIndex();
-                    final float weight = calculator.weight(sequence);
-
-                    weights.setWeight(readIndex, weight);
-
-                    progress.lightUpdate();
-                    numberOfReads++;
+            final WeightsInfo weights = new WeightsInfo();
+            final WeightCalculator weightCalculator = calculator;
+            // slices of the file are scanned in parallel, and weights stored once per chunk:
+            final ParallelReadsChunkScanner<SliceWeights> scanner = new ParallelReadsChunkScanner<SliceWeights>(
+                    numThreads == -1 ? Runtime.getRuntime().availableProcessors() : numThreads,
+                    ReadsChunkReader.Field.SEQUENCE) {
+                @Override
+                protected SliceWeights newState() {
+                    return new SliceWeights();
                 }
-                weights.size(numberOfReads);
-                progress.stop();
-                weights.save(mapFilename);
-
-            } finally {
-
-                if (reader != null) {
-                    try {
-                        reader.close();
 
-                    } catch (IOException e) { // NOPMD
-                        // silently ignore
+                @Override
+                protected void process(final SliceWeights slice, final ReadsChunk chunk) {
+                    final int size = chunk.size();
+                    slice.readIndices = IntArrays.ensureCapacity(slice.readIndices, size);
+                    slice.weights = FloatArrays.ensureCapacity(slice.weights, size);
+                    for (int i = 0; i < size; i++) {
+                        chunk.decodeSequence(i, slice.sequence);
+                        slice.readIndices[i] = chunk.getReadIndex(i);
+                        slice.weights[i] = weightCalculator.weight(slice.sequence);
+                    }
+                    weights.setWeights(slice.readIndices, slice.weights, size);
+                    slice.numberOfReads += size;
+                    synchronized (progress) {
+                        progress.update(size);
                     }
                 }
+            };
+            int numberOfReads = 0;
+            for (final SliceWeights slice : scanner.scan(inputFilename)) {
+                numberOfReads += slice.numberOfReads;
             }
+            weights.size(numberOfReads);
+            progress.stop();
+            weights.save(mapFilename);
         }
 
 
     }
 
+    /**
+     * Weights of a chunk of reads, computed by the thread that scans a slice of a reads file.
+     */
+    private static final class SliceWeights {
+        private final MutableString sequence = new MutableString();
+        private int[] readIndices = IntArrays.EMPTY_ARRAY;
+        private float[] weights = FloatArrays.EMPTY_ARRAY;
+        private int numberOfReads;
+    }
+
 
     public static void main(final String[] args) throws IOException, JSAPException {
         new ReadsToWeightsMode().configure(args).execute();
@@ -25,6 +25,7 @@ import edu.cornell.med.icb.goby.alignments.*;
 import edu.cornell.med.icb.goby.alignments.perms.QueryIndexPermutation;
 import edu.cornell.med.icb.goby.alignments.perms.ReadNameToIndex;
 import edu.cornell.med.icb.goby.compression.MessageChunksWriter;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
 import edu.cornell.med.icb.goby.readers.sam.*;
 import edu.cornell.med.icb.goby.reads.DualRandomAccessSequenceCache;
 import edu.cornell.med.icb.goby.reads.QualityEncoding;
@@ -36,12 +37,15 @@ import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import it.unimi.dsi.Util;
 import it.unimi.dsi.fastutil.ints.Int2ByteMap;
 import it.unimi.dsi.fastutil.ints.Int2ByteOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayFIFOQueue;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.logging.ProgressLogger;
 import net.sf.samtools.*;
+import net.sf.samtools.util.CloseableIterator;
 import org.apache.log4j.Logger;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -49,6 +53,11 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Converts alignments in the SAM or BAM format to the compact alignment format.
@@ -107,6 +116,14 @@ public class SAMToCompactMode extends AbstractGobyMode {
     private int mParameter = 1;
     private String outputFile;
     private boolean readNamesAreQueryIndices;
+    /**
+     * Number of threads used to inflate BAM blocks and to convert records, or -1 to use all the processors.
+     */
+    private int numThreads = -1;
+    /**
+     * Number of records converted by a thread in one task.
+     */
+    private static final int CONVERSION_BATCH_SIZE = 1000;
 
 
     public static DynamicOptionClient doc() {
@@ -212,6 +229,7 @@ public class SAMToCompactMode extends AbstractGobyMode {
         numberOfReadsFromCommandLine = jsapResult.getInt("number-of-reads");
         qualityEncoding = QualityEncoding.valueOf(jsapResult.getString("quality-encoding").toUpperCase());
         sortedInput = jsapResult.getBoolean("sorted");
+        numThreads = jsapResult.getInt("num-threads");
         largestQueryIndex = numberOfReadsFromCommandLine;
         smallestQueryIndex = 0;
         // don't even dare go through the debugging code if log4j was not configured. The debug code
@@ -256,10 +274,22 @@ public class SAMToCompactMode extends AbstractGobyMode {
         // the following is required to set validation to SILENT before loading the header (done in the SAMFileReader constructor)
         SAMFileReader.setDefaultValidationStringency(SAMFileReader.ValidationStringency.SILENT);
 
-        final InputStream stream = "-".equals(inputFile) ? System.in : new FileInputStream(inputFile);
-        final SAMFileReader parser = new SAMFileReader(stream);
+        final int threads = numThreads == -1 ? Runtime.getRuntime().availableProcessors() : Math.max(1, numThreads);
+        final File file = "-".equals(inputFile) ? null : new File(inputFile);
+        final CloseableIterator<SAMRecord> records;
+        final SAMFileHeader samHeader;
+        if (file != null && ParallelBAMFileReader.isBAMFile(file)) {
+            // inflate BAM blocks in parallel:
+            final ParallelBAMFileReader bamReader = new ParallelBAMFileReader(file, threads);
+            samHeader = bamReader.getFileHeader();
+            records = bamReader;
+        } else {
+            final InputStream stream = file == null ? System.in : new FileInputStream(file);
+            final SAMFileReader parser = new SAMFileReader(stream);
+            samHeader = parser.getFileHeader();
+            records = parser.iterator();
+        }
         // transfer read groups to Goby header:
-        final SAMFileHeader samHeader = parser.getFileHeader();
         final IndexedIdentifier readGroups = new IndexedIdentifier();
 
         importReadGroups(samHeader, readGroups);
@@ -317,113 +347,278 @@ public class SAMToCompactMode extends AbstractGobyMode {
         final Int2ByteMap queryIndex2NextFragmentIndex = new Int2ByteOpenHashMap();
 
 
-        final ObjectArrayList<Alignments.AlignmentEntry.Builder> builders = new ObjectArrayList<Alignments.AlignmentEntry.Builder>();
+        // records are converted to alignment entries in parallel batches, and returned in input order. Query
+        // indices, fragment indices and links depend on the records seen before, and are assigned in order below:
+        final ConvertingIterator converted = new ConvertingIterator(records, readGroups, threads);
+        try {
+            while (converted.hasNext()) {
+                final ConvertedRecord convertedRecord = converted.next();
+                final SAMRecord samRecord = convertedRecord.samRecord;
+                final ObjectArrayList<Alignments.AlignmentEntry.Builder> builders = convertedRecord.builders;
+                numberOfReads++;
+                if (builders == null) {
+                    if (debug && LOG.isDebugEnabled()) {
+                        LOG.debug(String.format("NOT keeping unmapped read %s", samRecord.getReadName()));
+                    }
+                    continue;
+                }
+                if (convertedRecord.inconsistentLengths) {
+                    LOG.error(String.format("targetAlignedLength+inserts != queryAlignedLength+deletes for read %s",
+                            samRecord.getReadName()));
+                    continue;
+                }
+                final int targetIndex = getTargetIndex(targetIds, samRecord.getReferenceName(), thirdPartyInput);
+
+                if (sortedInput) {
+                    // check that input entries are indeed in sort order. Abort otherwise.
+                    if (prevRecord != null && prevRecord.getReferenceIndex() == targetIndex) {
+                        final int compare = prevRecord.getAlignmentStart() - samRecord.getAlignmentStart();//  samComparator.compare(prevRecord, samRecord);
+                        if (compare > 0) {
+                            final String message = String.format("record %s has position before previous record: %s",
+                                    samRecord.toString(), prevRecord.toString());
+                            System.err.println("You cannot specify --sorted when the input file is not sorted. For instance: " + message);
+
+                            LOG.warn(message);
+                            // we continue because it is possible BufferedSortingAlignmentWriter will succeed in sorting the file
+                            // nevertheless. It will set sorted to false if the file cannot be locally sorted.
+                        }
+                    }
+                }
 
-        final SamRecordParser samRecordParser = new SamRecordParser();
-        samRecordParser.setQualityEncoding(qualityEncoding);
-        for (final SAMRecord samRecord : new SAMRecordIterable(parser.iterator())) {
-            builders.clear();
-            numberOfReads++;
-            final GobySamRecord gobySamRecord = samRecordParser.processRead(samRecord);
-            if (gobySamRecord == null) {
-                if (debug && LOG.isDebugEnabled()) {
-                    LOG.debug(String.format("NOT keeping unmapped read %s", samRecord.getReadName()));
+                prevRecord = samRecord;
+
+                // try to determine readMaxOccurence, the maximum number of times a read name occurs in a complete alignment.
+                int readMaxOccurence = 1;
+                final boolean readIsPaired = samRecord.getReadPairedFlag();
+                final boolean anotherPair = readIsPaired && !samRecord.getMateUnmappedFlag();
+                if (anotherPair) {
+                    hasPaired = true;
+                    // if the reads are paired, we expect to see the read name  at least twice.
+                    readMaxOccurence++;
+                    // Unfortunately the SAM/BAM format does not provide the exact number of times
+                    // a read matched the reference sequence. We could find this number in an non sorted BAM file
+                    // by counting how many times the same read name appears in a continuous block of constant read name.
+                    // However, for sorted input, we need this number to know when to stop
+                    // keep a given read name in memory with its associated query index.
+                    // Since we can't keep all the read names in memory continuously (these are strings and
+                    // consume much memory), it is unclear how to determine  query-index-occurrences in a sorted
+                    // SAM/BAM file that contains multiple best hits for read or mate. We can handle these cases
+                    // correctly when working directly in the aligner and writing Goby format because the information
+                    // is available at the time of alignment, but discarded afterwards.
                 }
-                continue;
-            }
-            if (gobySamRecord.getTargetAlignedLength() + gobySamRecord.getNumInserts() !=
-                    gobySamRecord.getQueryAlignedLength() + gobySamRecord.getNumDeletes()) {
-                LOG.error(String.format("targetAlignedLength+inserts != queryAlignedLength+deletes for read %s",
-                        samRecord.getReadName()));
-                continue;
-            }
-            final int targetIndex = getTargetIndex(targetIds, samRecord.getReferenceName(), thirdPartyInput);
-
-            if (sortedInput) {
-                // check that input entries are indeed in sort order. Abort otherwise.
-                if (prevRecord != null && prevRecord.getReferenceIndex() == targetIndex) {
-                    final int compare = prevRecord.getAlignmentStart() - samRecord.getAlignmentStart();//  samComparator.compare(prevRecord, samRecord);
-                    if (compare > 0) {
-                        final String message = String.format("record %s has position before previous record: %s",
-                                samRecord.toString(), prevRecord.toString());
-                        System.err.println("You cannot specify --sorted when the input file is not sorted. For instance: " + message);
-
-                        LOG.warn(message);
-                        // we continue because it is possible BufferedSortingAlignmentWriter will succeed in sorting the file
-                        // nevertheless. It will set sorted to false if the file cannot be locally sorted.
+
+                final Object xoString = samRecord.getAttribute("X0");
+
+                // in the following, we consider paired end alignment to always map a single time. This may
+                // not be true, but there is no way to tell from the SAM format (the X0 field indicates how
+                // many times the segment occurs in the genome, not the pair of read placed by the aligner).
+                // Single reads typically have the field X0 set to the number of times the read appears in the
+                // genome, there is no problem there, so we use X0 to initialize TMH.
+                final int numTotalHits = xoString == null ? 1 : hasPaired ? 1 : (Integer) xoString;
+
+                // Q: samHelper hasn't been set to anything since .reset(). This will always be 1. ??
+                // Q: Also, readMaxOccurence is *2 for paired and *2 for splice, but splices can be N pieces, not just 2.
+                //    so readMaxOccurence isn't always correct it seems.
+                final int numEntries = builders.size();
+                final boolean readIsSpliced = numEntries > 1;
+                if (hasPaired) {
+                    // file has paired end reads, check if this read is paired to use 1 occurrence:
+
+                    readMaxOccurence = readIsPaired ? 2 : 1;
+                } else {
+                    // single end, use numTotalHits to remember read name and initialize TMH
+                    readMaxOccurence = numTotalHits;
+                }
+                readMaxOccurence *= readIsSpliced ? 2 : 1;
+                /* While STAR uses NH to store readMaxOccurence, GSNAP seems to put some other values in that field so we
+                 can't really trust these values in general. Disable for now on the stable branch.
+                final Integer nh = samRecord.getIntegerAttribute("NH");
+                // NH:i indicates: NH i Number of reported alignments that contains the query in the current record
+                if (nh != null) {
+                    // used by STAR, for instance, to encode readMaxOccurence
+                    readMaxOccurence = nh;
+                } */
+                final String readName = samRecord.getReadName();
+
+                final int queryIndex = getQueryIndex(readMaxOccurence, readName);
+                assert queryIndex >= 0 : " Query index must never be negative.";
+
+                // positions reported by BWA appear to start at 1. We convert to start at zero.
+                final int multiplicity = 1;
+
+                largestQueryIndex = Math.max(queryIndex, largestQueryIndex);
+                smallestQueryIndex = Math.min(queryIndex, smallestQueryIndex);
+                final int genomeTargetIndex = convertedRecord.genomeTargetIndex;
+                if (genome != null && genomeTargetIndex == -1) {
+                    System.out.println("genomeTargetIndex==-1, name=" + samRecord.getReferenceName());
+                    System.out.println("mapping=" + chromosomeNameMapping(genome, samRecord.getReferenceName()));
+                    System.exit(10);
+                }
+                for (final Alignments.AlignmentEntry.Builder currentEntry : builders) {
+                    currentEntry.setQueryIndex(queryIndex);
+                    currentEntry.setTargetIndex(targetIndex);
+                    if (hasPaired) {
+                        final int inferredInsertSize = samRecord.getInferredInsertSize();
+                        if (inferredInsertSize != 0) {   // SAM specification indicates that zero means no insert size.
+                            currentEntry.setInsertSize(inferredInsertSize);
+                        }
                     }
                 }
-            }
+                final int numFragments = builders.size();
+                for (final Alignments.AlignmentEntry.Builder builder : builders) {
 
-            prevRecord = samRecord;
-
-            // try to determine readMaxOccurence, the maximum number of times a read name occurs in a complete alignment.
-            int readMaxOccurence = 1;
-            final boolean readIsPaired = samRecord.getReadPairedFlag();
-            final boolean anotherPair = readIsPaired && !samRecord.getMateUnmappedFlag();
-            if (anotherPair) {
-                hasPaired = true;
-                // if the reads are paired, we expect to see the read name  at least twice.
-                readMaxOccurence++;
-                // Unfortunately the SAM/BAM format does not provide the exact number of times
-                // a read matched the reference sequence. We could find this number in an non sorted BAM file
-                // by counting how many times the same read name appears in a continuous block of constant read name.
-                // However, for sorted input, we need this number to know when to stop
-                // keep a given read name in memory with its associated query index.
-                // Since we can't keep all the read names in memory continuously (these are strings and
-                // consume much memory), it is unclear how to determine  query-index-occurrences in a sorted
-                // SAM/BAM file that contains multiple best hits for read or mate. We can handle these cases
-                // correctly when working directly in the aligner and writing Goby format because the information
-                // is available at the time of alignment, but discarded afterwards.
-            }
+                    builder.setFragmentIndex(nextFragmentIndex(queryIndex, queryIndex2NextFragmentIndex));
+                }
+                if (numFragments > 1) {
+                    for (int j = 0; j < numFragments + 1; j++) {
 
-            final Object xoString = samRecord.getAttribute("X0");
+                        linkSplicedEntries(j - 1 >= 0 ? builders.get(j - 1) : null, j < numFragments ? builders.get(j) : null);
+                    }
+                }
+                final int fragmentIndex;
+                final int firstFragmentIndex = builders.get(0).getFragmentIndex();
+                final int mateFragmentIndex;
+                if (readIsPaired) {
+                    if (samRecord.getFirstOfPairFlag()) {
+                        fragmentIndex = firstFragmentIndex;
+                        if (pairBefore(samRecord)) {
+                            mateFragmentIndex = firstFragmentIndex - 1;
+                        } else {
+                            mateFragmentIndex = nextFragmentIndex(queryIndex, queryIndex2NextFragmentIndex);
+                            // fragment index is used as reference, but not own by this entry, we uncomsume it:
+                            uncomsumeFragmentIndex(queryIndex, queryIndex2NextFragmentIndex);
+                        }
 
-            // in the following, we consider paired end alignment to always map a single time. This may
-            // not be true, but there is no way to tell from the SAM format (the X0 field indicates how
-            // many times the segment occurs in the genome, not the pair of read placed by the aligner).
-            // Single reads typically have the field X0 set to the number of times the read appears in the
-            // genome, there is no problem there, so we use X0 to initialize TMH.
-            final int numTotalHits = xoString == null ? 1 : hasPaired ? 1 : (Integer) xoString;
+                    } else {
+                        fragmentIndex = firstFragmentIndex;
+                        mateFragmentIndex = pairBefore(samRecord) ? firstFragmentIndex - 1 : firstFragmentIndex + 1;
+                    }
+                } else {
+                    fragmentIndex = firstFragmentIndex;
+                    mateFragmentIndex = nextFragmentIndex(queryIndex, queryIndex2NextFragmentIndex);
+                    // fragment index is used as reference, but not own by this entry, we uncomsume it:
+                    uncomsumeFragmentIndex(queryIndex, queryIndex2NextFragmentIndex);
+                }
 
-            // Q: samHelper hasn't been set to anything since .reset(). This will always be 1. ??
-            // Q: Also, readMaxOccurence is *2 for paired and *2 for splice, but splices can be N pieces, not just 2.
-            //    so readMaxOccurence isn't always correct it seems.
-            final int numEntries = gobySamRecord.getNumSegments();
-            final boolean readIsSpliced = numEntries > 1;
-            if (hasPaired) {
-                // file has paired end reads, check if this read is paired to use 1 occurrence:
+                for (final Alignments.AlignmentEntry.Builder builder : builders) {
+                    if (numTotalHits <= mParameter) {
+                        if (readIsPaired) {
+
+                            if (!samRecord.getMateUnmappedFlag()) {
+                                assert firstFragmentIndex >= 0 : " firstFragmentIndex cannot be negative";
+                                // some BAM files indicate pair is in the p
+                                if (mateFragmentIndex >= 0) {
+                                    final Alignments.RelatedAlignmentEntry.Builder relatedBuilder =
+                                            Alignments.RelatedAlignmentEntry.newBuilder();
+
+                                    final int mateTargetIndex = getTargetIndex(targetIds, samRecord.getMateReferenceName(), thirdPartyInput);
+                                    final int mateAlignmentStart = samRecord.getMateAlignmentStart() - 1; // samhelper returns zero-based positions compatible with Goby.
+                                    relatedBuilder.setFragmentIndex(mateFragmentIndex);
+                                    relatedBuilder.setPosition(mateAlignmentStart);
+                                    relatedBuilder.setTargetIndex(mateTargetIndex);
+                                    builder.setPairAlignmentLink(relatedBuilder);
+                                }
+                            } else {
+                                // mate is unmapped.
 
-                readMaxOccurence = readIsPaired ? 2 : 1;
-            } else {
-                // single end, use numTotalHits to remember read name and initialize TMH
-                readMaxOccurence = numTotalHits;
+                            }
+                        }
+                        writer.appendEntry(builder.build());
+                        numAligns += multiplicity;
+                        if (debug && LOG.isDebugEnabled()) {
+                            LOG.debug(String.format("Added queryIdndex=%d to alignment", queryIndex));
+                        }
+                    } else {
+                        // TMH writer adds the alignment entry only if hits > thresh
+                        tmhWriter.append(queryIndex, numTotalHits, convertedRecord.queryLength);
+                        if (debug && LOG.isDebugEnabled()) {
+                            LOG.debug(String.format("Added queryIndex=%d to TMH", queryIndex));
+                        }
+                        // remove the query name from memory since we are not writing these entries anyway
+                        while (queryIndex == getQueryIndex(0, samRecord.getReadName())) {
+                            //do nothing
+                        }
+                    }
+                }
+                progress.lightUpdate();
             }
-            readMaxOccurence *= readIsSpliced ? 2 : 1;
-            /* While STAR uses NH to store readMaxOccurence, GSNAP seems to put some other values in that field so we
-             can't really trust these values in general. Disable for now on the stable branch.
-            final Integer nh = samRecord.getIntegerAttribute("NH");
-            // NH:i indicates: NH i Number of reported alignments that contains the query in the current record
-            if (nh != null) {
-                // used by STAR, for instance, to encode readMaxOccurence
-                readMaxOccurence = nh;
-            } */
-            final String readName = samRecord.getReadName();
-
-            final int queryIndex = getQueryIndex(readMaxOccurence, readName);
-            assert queryIndex >= 0 : " Query index must never be negative.";
+        } finally {
+            converted.close();
+        }
 
-            // positions reported by BWA appear to start at 1. We convert to start at zero.
-            final int multiplicity = 1;
+        if (!targetIds.isEmpty()) {
+            // we collected target ids, let's write them to the header:
+            writer.setTargetIdentifiers(targetIds);
+        }
+        writer.putStatistic("number-of-entries-written", numAligns);
+        writer.setNumQueries(Math.max(numberOfReads, numberOfReadsFromCommandLine));
+        writer.printStats(System.out);
+
+        // write information from SAM file header
+        final SAMSequenceDictionary samSequenceDictionary = samHeader.getSequenceDictionary();
+        final List<SAMSequenceRecord> samSequenceRecords = samSequenceDictionary.getSequences();
+
+        writer.setReadOriginInfo(readOriginInfoBuilderList);
+        progress.stop();
+        writer.close();
+        return numAligns;
+    }
 
-            largestQueryIndex = Math.max(queryIndex, largestQueryIndex);
-            smallestQueryIndex = Math.min(queryIndex, smallestQueryIndex);
+    /**
+     * A SAM record converted to alignment entries. The entries have all the fields that can be determined from the
+     * record alone. Query index, target index, fragment indices, links and insert size depend on the records that
+     * precede in the input, and are set when the record is written.
+     */
+    private static final class ConvertedRecord {
+        private final SAMRecord samRecord;
+        /**
+         * One entry per segment of the record, or null when the read is not mapped.
+         */
+        private ObjectArrayList<Alignments.AlignmentEntry.Builder> builders;
+        private boolean inconsistentLengths;
+        private int queryLength;
+        private int genomeTargetIndex = -1;
+
+        private ConvertedRecord(final SAMRecord samRecord) {
+            this.samRecord = samRecord;
+        }
+    }
+
+    /**
+     * Converts SAM records to alignment entries. Each converter is used by a single thread at a time.
+     */
+    private final class RecordConverter {
+        private final SamRecordParser samRecordParser = new SamRecordParser();
+        private final IndexedIdentifier readGroups;
+        private final MutableString convertBasesBuffer = new MutableString();
+        private final MutableString bases = new MutableString();
+
+        private RecordConverter(final IndexedIdentifier readGroups) {
+            this.readGroups = readGroups;
+            samRecordParser.setQualityEncoding(qualityEncoding);
+        }
+
+        private ConvertedRecord convert(final SAMRecord samRecord) {
+            final ConvertedRecord converted = new ConvertedRecord(samRecord);
+            final GobySamRecord gobySamRecord = samRecordParser.processRead(samRecord);
+            if (gobySamRecord == null) {
+                return converted;
+            }
+            converted.builders = new ObjectArrayList<Alignments.AlignmentEntry.Builder>();
+            if (gobySamRecord.getTargetAlignedLength() + gobySamRecord.getNumInserts() !=
+                    gobySamRecord.getQueryAlignedLength() + gobySamRecord.getNumDeletes()) {
+                converted.inconsistentLengths = true;
+                return converted;
+            }
+            converted.queryLength = gobySamRecord.getQueryLength();
             final int genomeTargetIndex = genome == null ? -1 : genome.getReferenceIndex(chromosomeNameMapping(genome, samRecord.getReferenceName()));
+            converted.genomeTargetIndex = genomeTargetIndex;
             if (genome != null && genomeTargetIndex == -1) {
-                System.out.println("genomeTargetIndex==-1, name=" + samRecord.getReferenceName());
-                System.out.println("mapping=" + chromosomeNameMapping(genome, samRecord.getReferenceName()));
-                System.exit(10);
+                // the record will not be written, see scan:
+                return converted;
             }
+            // positions reported by BWA appear to start at 1. We convert to start at zero.
+            final int multiplicity = 1;
             int segmentIndex = 0;
             for (final GobySamSegment gobySamSegment : gobySamRecord.getSegments()) {
                 // the record represents a mapped read..
@@ -435,8 +630,6 @@ public class SAMToCompactMode extends AbstractGobyMode {
                 if (preserveReadName) {
                     currentEntry.setReadName(gobySamRecord.getReadName().toString());
                 }
-                currentEntry.setQueryIndex(queryIndex);
-                currentEntry.setTargetIndex(targetIndex);
                 currentEntry.setPosition(gobySamSegment.getPosition());     // samhelper returns zero-based positions compatible with Goby.
                 currentEntry.setQueryPosition(gobySamSegment.getQueryPosition());
 
@@ -449,8 +642,9 @@ public class SAMToCompactMode extends AbstractGobyMode {
                 if (preserveSoftClips) {
                     final int leftTrim = gobySamSegment.getSoftClippedBasesLeft().length();
                     if (leftTrim > 0) {
-                        currentEntry.setSoftClippedBasesLeft(convertBases(
-                                genomeTargetIndex, gobySamSegment.getPosition() - leftTrim, samRecord.getReadBases(), 0, leftTrim));
+                        currentEntry.setSoftClippedBasesLeft(convertBases(genomeTargetIndex,
+                                gobySamSegment.getPosition() - leftTrim, samRecord.getReadBases(), 0, leftTrim,
+                                bases, convertBasesBuffer));
                         currentEntry.setSoftClippedQualityLeft(gobySamSegment.getSoftClippedQualityLeft());
                     }
                     final int queryAlignedLength = gobySamSegment.getQueryAlignedLength();
@@ -461,7 +655,7 @@ public class SAMToCompactMode extends AbstractGobyMode {
                         final int endIndex = startIndex + rightTrim;
                         currentEntry.setSoftClippedBasesRight(convertBases(genomeTargetIndex,
                                 gobySamSegment.getPosition() + gobySamSegment.getTargetAlignedLength(),
-                                samRecord.getReadBases(), startIndex, endIndex));
+                                samRecord.getReadBases(), startIndex, endIndex, bases, convertBasesBuffer));
                         currentEntry.setSoftClippedQualityRight(gobySamSegment.getSoftClippedQualityRight());
                     }
                 }
@@ -477,17 +671,12 @@ public class SAMToCompactMode extends AbstractGobyMode {
 
                 // Always store the sam flags when converting from sam/bam
                 currentEntry.setPairFlags(samRecord.getFlags());
-                if (hasPaired) {
-                    final int inferredInsertSize = samRecord.getInferredInsertSize();
-                    if (inferredInsertSize != 0) {   // SAM specification indicates that zero means no insert size.
-                        currentEntry.setInsertSize(inferredInsertSize);
-                    }
-                }
 
                 for (final GobyQuickSeqvar variation : gobySamSegment.getSequenceVariations()) {
                     appendNewSequenceVariation(currentEntry, variation, gobySamRecord.getQueryLength());
                     if (debug && LOG.isDebugEnabled()) {
-                        LOG.debug(String.format("Added seqvar=%s for queryIndex=%d to alignment", variation.toString(), queryIndex));
+                        LOG.debug(String.format("Added seqvar=%s for read %s to alignment", variation.toString(),
+                                samRecord.getReadName()));
                     }
                 }
                 final String readGroup = samRecord.getStringAttribute("RG");
@@ -500,104 +689,92 @@ public class SAMToCompactMode extends AbstractGobyMode {
                         currentEntry.setReadOriginIndex(readOriginIndex);
                     }
                 }
-                builders.add(currentEntry);
+                converted.builders.add(currentEntry);
                 segmentIndex++;
             }
-            final int numFragments = builders.size();
-            for (final Alignments.AlignmentEntry.Builder builder : builders) {
-
-                builder.setFragmentIndex(nextFragmentIndex(queryIndex, queryIndex2NextFragmentIndex));
-            }
-            if (numFragments > 1) {
-                for (int j = 0; j < numFragments + 1; j++) {
+            return converted;
+        }
+    }
 
-                    linkSplicedEntries(j - 1 >= 0 ? builders.get(j - 1) : null, j < numFragments ? builders.get(j) : null);
+    /**
+     * Iterates over SAM records converted to alignment entries, in the order of the input. Records are read in
+     * batches on the calling thread, and batches are converted on a pool of threads, a few batches ahead of the
+     * consumer.
+     */
+    private final class ConvertingIterator {
+        private final CloseableIterator<SAMRecord> records;
+        private final ExecutorService executor;
+        private final ObjectArrayFIFOQueue<Future<ConvertedRecord[]>> pending =
+                new ObjectArrayFIFOQueue<Future<ConvertedRecord[]>>();
+        private final int maxPending;
+        private final ThreadLocal<RecordConverter> converters;
+        private ConvertedRecord[] batch = new ConvertedRecord[0];
+        private int batchPosition;
+
+        private ConvertingIterator(final CloseableIterator<SAMRecord> records, final IndexedIdentifier readGroups,
+                                   final int numThreads) {
+            this.records = records;
+            converters = new ThreadLocal<RecordConverter>() {
+                @Override
+                protected RecordConverter initialValue() {
+                    return new RecordConverter(readGroups);
                 }
-            }
-            final int fragmentIndex;
-            final int firstFragmentIndex = builders.get(0).getFragmentIndex();
-            final int mateFragmentIndex;
-            if (readIsPaired) {
-                if (samRecord.getFirstOfPairFlag()) {
-                    fragmentIndex = firstFragmentIndex;
-                    if (pairBefore(samRecord)) {
-                        mateFragmentIndex = firstFragmentIndex - 1;
-                    } else {
-                        mateFragmentIndex = nextFragmentIndex(queryIndex, queryIndex2NextFragmentIndex);
-                        // fragment index is used as reference, but not own by this entry, we uncomsume it:
-                        uncomsumeFragmentIndex(queryIndex, queryIndex2NextFragmentIndex);
-                    }
+            };
+            executor = Executors.newFixedThreadPool(numThreads);
+            maxPending = 2 * numThreads;
+        }
 
-                } else {
-                    fragmentIndex = firstFragmentIndex;
-                    mateFragmentIndex = pairBefore(samRecord) ? firstFragmentIndex - 1 : firstFragmentIndex + 1;
+        private boolean hasNext() {
+            while (batchPosition == batch.length) {
+                fillPending();
+                if (pending.isEmpty()) {
+                    return false;
                 }
-            } else {
-                fragmentIndex = firstFragmentIndex;
-                mateFragmentIndex = nextFragmentIndex(queryIndex, queryIndex2NextFragmentIndex);
-                // fragment index is used as reference, but not own by this entry, we uncomsume it:
-                uncomsumeFragmentIndex(queryIndex, queryIndex2NextFragmentIndex);
+                try {
+                    batch = pending.dequeue().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GobyRuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new GobyRuntimeException(e.getCause());
+                }
+                batchPosition = 0;
             }
+            return true;
+        }
 
-            for (final Alignments.AlignmentEntry.Builder builder : builders) {
-                if (numTotalHits <= mParameter) {
-                    if (readIsPaired) {
-
-                        if (!samRecord.getMateUnmappedFlag()) {
-                            assert firstFragmentIndex >= 0 : " firstFragmentIndex cannot be negative";
-                            // some BAM files indicate pair is in the p
-                            if (mateFragmentIndex >= 0) {
-                                final Alignments.RelatedAlignmentEntry.Builder relatedBuilder =
-                                        Alignments.RelatedAlignmentEntry.newBuilder();
-
-                                final int mateTargetIndex = getTargetIndex(targetIds, samRecord.getMateReferenceName(), thirdPartyInput);
-                                final int mateAlignmentStart = samRecord.getMateAlignmentStart() - 1; // samhelper returns zero-based positions compatible with Goby.
-                                relatedBuilder.setFragmentIndex(mateFragmentIndex);
-                                relatedBuilder.setPosition(mateAlignmentStart);
-                                relatedBuilder.setTargetIndex(mateTargetIndex);
-                                builder.setPairAlignmentLink(relatedBuilder);
-                            }
-                        } else {
-                            // mate is unmapped.
+        private ConvertedRecord next() {
+            final ConvertedRecord converted = batch[batchPosition];
+            batch[batchPosition++] = null;
+            return converted;
+        }
 
+        private void fillPending() {
+            while (pending.size() < maxPending && records.hasNext()) {
+                final SAMRecord[] samRecords = new SAMRecord[CONVERSION_BATCH_SIZE];
+                int size = 0;
+                while (size < samRecords.length && records.hasNext()) {
+                    samRecords[size++] = records.next();
+                }
+                final int batchSize = size;
+                pending.enqueue(executor.submit(new Callable<ConvertedRecord[]>() {
+                    @Override
+                    public ConvertedRecord[] call() {
+                        final RecordConverter converter = converters.get();
+                        final ConvertedRecord[] converted = new ConvertedRecord[batchSize];
+                        for (int i = 0; i < batchSize; i++) {
+                            converted[i] = converter.convert(samRecords[i]);
                         }
+                        return converted;
                     }
-                    writer.appendEntry(builder.build());
-                    numAligns += multiplicity;
-                    if (debug && LOG.isDebugEnabled()) {
-                        LOG.debug(String.format("Added queryIdndex=%d to alignment", queryIndex));
-                    }
-                } else {
-                    // TMH writer adds the alignment entry only if hits > thresh
-                    tmhWriter.append(queryIndex, numTotalHits, gobySamRecord.getQueryLength());
-                    if (debug && LOG.isDebugEnabled()) {
-                        LOG.debug(String.format("Added queryIndex=%d to TMH", queryIndex));
-                    }
-                    // remove the query name from memory since we are not writing these entries anyway
-                    while (queryIndex == getQueryIndex(0, samRecord.getReadName())) {
-                        //do nothing
-                    }
-                }
+                }));
             }
-            progress.lightUpdate();
         }
 
-        if (!targetIds.isEmpty()) {
-            // we collected target ids, let's write them to the header:
-            writer.setTargetIdentifiers(targetIds);
+        private void close() {
+            executor.shutdownNow();
+            records.close();
         }
-        writer.putStatistic("number-of-entries-written", numAligns);
-        writer.setNumQueries(Math.max(numberOfReads, numberOfReadsFromCommandLine));
-        writer.printStats(System.out);
-
-        // write information from SAM file header
-        final SAMSequenceDictionary samSequenceDictionary = samHeader.getSequenceDictionary();
-        final List<SAMSequenceRecord> samSequenceRecords = samSequenceDictionary.getSequences();
-
-        writer.setReadOriginInfo(readOriginInfoBuilderList);
-        progress.stop();
-        writer.close();
-        return numAligns;
     }
 
     private int getQueryIndex(final int readMaxOccurence, final String readName) {
@@ -618,6 +795,14 @@ public class SAMToCompactMode extends AbstractGobyMode {
     public String convertBases(
             final int referenceIndex, final int positionStartOfRead,
             final byte[] readBases, final int startIndex, final int endIndex) {
+        return convertBases(referenceIndex, positionStartOfRead, readBases, startIndex, endIndex, bases,
+                convertBasesBuffer);
+    }
+
+    private String convertBases(
+            final int referenceIndex, final int positionStartOfRead,
+            final byte[] readBases, final int startIndex, final int endIndex,
+            final MutableString bases, final MutableString convertBasesBuffer) {
         if (genome != null) {
             int actualPositionStartOfRead = positionStartOfRead;
             int numPrepend = 0;
@@ -857,5 +1042,14 @@ public class SAMToCompactMode extends AbstractGobyMode {
         outputFile = outputFilename;
     }
 
+    /**
+     * Set the number of threads used to inflate BAM blocks and to convert records.
+     *
+     * @param numThreads number of threads, or -1 to use all the processors.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
 
 }
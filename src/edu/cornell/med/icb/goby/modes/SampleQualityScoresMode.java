@@ -23,14 +23,13 @@ import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.readers.FastXEntry;
 import edu.cornell.med.icb.goby.readers.FastXReader;
 import edu.cornell.med.icb.goby.readers.sam.SAMRecordIterable;
-import edu.cornell.med.icb.goby.reads.Reads;
-import edu.cornell.med.icb.goby.reads.ReadsReader;
+import edu.cornell.med.icb.goby.reads.ReadsChunk;
+import edu.cornell.med.icb.goby.reads.ReadsChunkReader;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.lang.MutableString;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMRecord;
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -295,21 +294,34 @@ public class SampleQualityScoresMode extends AbstractGobyMode {
     private int processCompactReadsFile(final String inputFilename) throws IOException {
         // Create directory for output file if it doesn't already exist
         int i = 0;
-        for (final Reads.ReadEntry entry : new ReadsReader(inputFilename)) {
-            final byte[] qualityScores = entry.getQualityScores().toByteArray();
-            final boolean hasQualityScores = entry.hasQualityScores() && !ArrayUtils.isEmpty(qualityScores);
-            if (hasQualityScores) {
-                qualityScoresFound = true;
-                for (final int qualScore : qualityScores) {
-                    minQualScore = Math.min(qualScore, minQualScore);
-                    maxQualScore = Math.max(qualScore, maxQualScore);
-                    numQualScoresSampled++;
-                    sumQualScores += Math.abs(qualScore);
-                }
-                if (++i == numberOfReadEntriesToProcess) {
-                    break;
+        final int maxEntries = numberOfReadEntriesToProcess > 0 ? numberOfReadEntriesToProcess : Integer.MAX_VALUE;
+        final ReadsChunkReader reader = new ReadsChunkReader(inputFilename);
+        reader.setProjection(ReadsChunkReader.Field.QUALITY_SCORES);
+        try {
+            while (i < maxEntries && reader.nextChunk()) {
+                final ReadsChunk chunk = reader.getChunk();
+                final ReadsChunk.ByteColumn qualityScores = chunk.getQualityScores();
+                final byte[] scores = qualityScores.getBytes();
+                for (int readIndex = 0; readIndex < chunk.size(); readIndex++) {
+                    final int offset = qualityScores.offset(readIndex);
+                    final int length = qualityScores.length(readIndex);
+                    if (length > 0) {
+                        qualityScoresFound = true;
+                        for (int j = offset; j < offset + length; j++) {
+                            final int qualScore = scores[j];
+                            minQualScore = Math.min(qualScore, minQualScore);
+                            maxQualScore = Math.max(qualScore, maxQualScore);
+                            numQualScoresSampled++;
+                            sumQualScores += Math.abs(qualScore);
+                        }
+                        if (++i == maxEntries) {
+                            break;
+                        }
+                    }
                 }
             }
+        } finally {
+            reader.close();
         }
         return i;
     }
@@ -268,8 +268,7 @@ public class VCFCompareMode extends AbstractGobyMode {
                     String ref = parsers[parserIndex].getStringFieldValue(refFieldIndex[parserIndex]);
                     String alts = parsers[parserIndex].getStringFieldValue(altFieldIndex[parserIndex]);
                     line.pos.chromosome = identifiers.registerIdentifier(new MutableString(chr));
-                    line.pos.position = Integer.parseInt(parsers[parserIndex].
-                            getFieldValue(positionFieldIndex[parserIndex]).toString());
+                    line.pos.position = parsers[parserIndex].getIntFieldValue(positionFieldIndex[parserIndex]);
                     line.ref = ref;
                     // keep this line since there is a variant somewhere on it.
                     int sampleIndex = 0;
@@ -23,15 +23,16 @@ import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.readers.vcf.ColumnField;
 import edu.cornell.med.icb.goby.readers.vcf.ColumnInfo;
 import edu.cornell.med.icb.goby.readers.vcf.VCFParser;
+import edu.cornell.med.icb.goby.util.ParallelBlockCompressedOutputStream;
 import it.unimi.dsi.fastutil.ints.IntArraySet;
 import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 import it.unimi.dsi.logging.ProgressLogger;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 
 import java.io.*;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * Converts a VCF file to tab delimited format.
@@ -111,7 +112,8 @@ public class VcfToTabMode extends AbstractGobyMode {
         try {
             stream = outputFilename == null ? new OutputStreamWriter(System.out)
                     : outputFilename.endsWith(".gz") ?
-                    new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outputFilename))) :
+                    new OutputStreamWriter(new FastBufferedOutputStream(
+                            ParallelBlockCompressedOutputStream.open(outputFilename))) :
                     new FileWriter(outputFilename);
             // start with an array of size 1M. This improves loading time for large datasets.
 
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.readers.sam;
+
+import edu.cornell.med.icb.goby.util.ParallelBlockCompressedInputStream;
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFormatException;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTextHeaderCodec;
+import net.sf.samtools.util.BinaryCodec;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import net.sf.samtools.util.CloseableIterator;
+import net.sf.samtools.util.RuntimeIOException;
+import net.sf.samtools.util.StringLineReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the records of a BAM file in order, inflating BGZF blocks on a pool of threads with a
+ * {@link ParallelBlockCompressedInputStream}. Records are returned as decoded by samtools BAMRecordCodec: the
+ * fixed-length fields are decoded by the thread that calls {@link #next()}, and variable-length fields (read name,
+ * cigar, bases, qualities, attributes) are decoded lazily by the thread that first accesses them. Records can
+ * therefore be handed to other threads and decoded concurrently.
+ */
+public class ParallelBAMFileReader implements CloseableIterator<SAMRecord> {
+    private static final byte[] BAM_MAGIC = {'B', 'A', 'M', 1};
+
+    private final ParallelBlockCompressedInputStream input;
+    private final SAMFileHeader header;
+    private final BAMRecordCodec codec;
+    private SAMRecord nextRecord;
+
+    /**
+     * Open a BAM file.
+     *
+     * @param file       the file to read.
+     * @param numThreads number of threads used to inflate BGZF blocks.
+     * @throws IOException if the file cannot be read or is not a BAM file.
+     */
+    public ParallelBAMFileReader(final File file, final int numThreads) throws IOException {
+        super();
+        input = new ParallelBlockCompressedInputStream(file, numThreads);
+        try {
+            header = readHeader(new BinaryCodec(input), file.getName());
+        } catch (SAMFormatException e) {
+            input.close();
+            throw e;
+        } catch (RuntimeException e) {
+            input.close();
+            throw new IOException("Cannot read BAM header of " + file, e);
+        }
+        codec = new BAMRecordCodec(header);
+        codec.setInputStream(input);
+    }
+
+    /**
+     * Determine if a file is in the BAM format: compressed in the BGZF format, and starting with the BAM magic number
+     * once inflated. SAM text compressed with bgzip is not a BAM file, and must be read with SAMFileReader.
+     *
+     * @param file the file to check.
+     * @return True when the file is a BAM file.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean isBAMFile(final File file) throws IOException {
+        if (!file.isFile() || !ParallelBlockCompressedInputStream.isBlockCompressed(file)) {
+            return false;
+        }
+        final BlockCompressedInputStream stream = new BlockCompressedInputStream(file);
+        try {
+            final byte[] magic = new byte[BAM_MAGIC.length];
+            int length = 0;
+            while (length < magic.length) {
+                final int read = stream.read(magic, length, magic.length - length);
+                if (read == -1) {
+                    return false;
+                }
+                length += read;
+            }
+            return Arrays.equals(magic, BAM_MAGIC);
+        } finally {
+            stream.close();
+        }
+    }
+
+    public SAMFileHeader getFileHeader() {
+        return header;
+    }
+
+    private static SAMFileHeader readHeader(final BinaryCodec stream, final String source) {
+        final byte[] magic = new byte[BAM_MAGIC.length];
+        stream.readBytes(magic);
+        for (int i = 0; i < magic.length; i++) {
+            if (magic[i] != BAM_MAGIC[i]) {
+                throw new SAMFormatException("Invalid BAM file header in " + source);
+            }
+        }
+        final int headerTextLength = stream.readInt();
+        final String headerText = stream.readString(headerTextLength);
+        final SAMTextHeaderCodec headerCodec = new SAMTextHeaderCodec();
+        headerCodec.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        final SAMFileHeader header = headerCodec.decode(new StringLineReader(headerText), source);
+        // the text header usually lists the sequences, use the binary dictionary when it does not:
+        final int numSequences = stream.readInt();
+        final List<SAMSequenceRecord> sequences = new ArrayList<SAMSequenceRecord>(numSequences);
+        for (int i = 0; i < numSequences; i++) {
+            final String name = stream.readLengthAndString(true);
+            final int length = stream.readInt();
+            sequences.add(new SAMSequenceRecord(name, length));
+        }
+        if (header.getSequenceDictionary().size() == 0 && numSequences > 0) {
+            header.setSequenceDictionary(new SAMSequenceDictionary(sequences));
+        }
+        return header;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextRecord == null) {
+            nextRecord = codec.decode();
+        }
+        return nextRecord != null;
+    }
+
+    @Override
+    public SAMRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final SAMRecord record = nextRecord;
+        nextRecord = null;
+        return record;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove is not supported");
+    }
+
+    @Override
+    public void close() {
+        try {
+            input.close();
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.readers.vcf;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.sf.samtools.util.BlockCompressedInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads the index of a bgzip compressed file, in the format produced by tabix (.tbi). The index is used to find
+ * where the records of a sequence that overlap a position start in the compressed file. Records found at that
+ * virtual file pointer may start before the position (or belong to a previous sequence) and must be filtered by
+ * the caller.
+ */
+public class TabixIndex {
+    /**
+     * Tabix linear index windows span 16kb.
+     */
+    private static final int LINEAR_INDEX_SHIFT = 14;
+
+    private final Object2IntOpenHashMap<String> sequenceIndices = new Object2IntOpenHashMap<String>();
+    /**
+     * Smallest virtual file pointer of any chunk of each sequence.
+     */
+    private final long[] minimumOffsets;
+    /**
+     * Linear index of each sequence: smallest virtual file pointer of the records that overlap each 16kb window.
+     */
+    private final long[][] linearIndices;
+
+    /**
+     * Read a tabix index.
+     *
+     * @param indexFile the .tbi file.
+     * @throws IOException if the index cannot be read or is not a tabix index.
+     */
+    public TabixIndex(final File indexFile) throws IOException {
+        // BlockCompressedInputStream.read() returns -1 for bytes with value 0xFF, only read it through buffers:
+        final DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new BlockCompressedInputStream(indexFile)));
+        try {
+            final byte[] magic = new byte[4];
+            input.readFully(magic);
+            if (magic[0] != 'T' || magic[1] != 'B' || magic[2] != 'I' || magic[3] != 1) {
+                throw new IOException("Not a tabix index: " + indexFile);
+            }
+            final int numSequences = readInt(input);
+            // format, col_seq, col_beg, col_end, meta, skip:
+            input.skipBytes(6 * 4);
+            final byte[] names = new byte[readInt(input)];
+            input.readFully(names);
+            int start = 0;
+            int sequenceIndex = 0;
+            for (int i = 0; i < names.length; i++) {
+                if (names[i] == 0) {
+                    sequenceIndices.put(new String(names, start, i - start, "US-ASCII"), sequenceIndex++);
+                    start = i + 1;
+                }
+            }
+            sequenceIndices.defaultReturnValue(-1);
+            minimumOffsets = new long[numSequences];
+            linearIndices = new long[numSequences][];
+            for (int i = 0; i < numSequences; i++) {
+                long minimumOffset = Long.MAX_VALUE;
+                final int numBins = readInt(input);
+                for (int bin = 0; bin < numBins; bin++) {
+                    // bin number:
+                    readInt(input);
+                    final int numChunks = readInt(input);
+                    for (int chunk = 0; chunk < numChunks; chunk++) {
+                        final long chunkStart = readLong(input);
+                        // chunk end:
+                        readLong(input);
+                        minimumOffset = Math.min(minimumOffset, chunkStart);
+                    }
+                }
+                minimumOffsets[i] = minimumOffset == Long.MAX_VALUE ? -1 : minimumOffset;
+                final long[] linearIndex = new long[readInt(input)];
+                for (int window = 0; window < linearIndex.length; window++) {
+                    linearIndex[window] = readLong(input);
+                }
+                linearIndices[i] = linearIndex;
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Return the names of the sequences in the index.
+     *
+     * @return the sequence names, in the order of the index.
+     */
+    public String[] getSequenceNames() {
+        final String[] result = new String[sequenceIndices.size()];
+        for (final Object2IntOpenHashMap.Entry<String> entry : sequenceIndices.object2IntEntrySet()) {
+            result[entry.getIntValue()] = entry.getKey();
+        }
+        return result;
+    }
+
+    /**
+     * Return the virtual file pointer where reading should start to find the records of a sequence that overlap
+     * a position.
+     *
+     * @param sequenceName name of the sequence, as in the first column of the indexed file.
+     * @param position     zero-based position on the sequence.
+     * @return a virtual file pointer, or -1 when the sequence has no record in the indexed file.
+     */
+    public long getStartOffset(final String sequenceName, final int position) {
+        final int sequenceIndex = sequenceIndices.getInt(sequenceName);
+        if (sequenceIndex == -1 || minimumOffsets[sequenceIndex] == -1) {
+            return -1;
+        }
+        final long[] linearIndex = linearIndices[sequenceIndex];
+        long offset = minimumOffsets[sequenceIndex];
+        if (linearIndex.length > 0) {
+            final int window = Math.min(Math.max(0, position) >> LINEAR_INDEX_SHIFT, linearIndex.length - 1);
+            offset = Math.max(offset, linearIndex[window]);
+        }
+        return offset;
+    }
+
+    private static int readInt(final DataInputStream input) throws IOException {
+        return Integer.reverseBytes(input.readInt());
+    }
+
+    private static long readLong(final DataInputStream input) throws IOException {
+        return Long.reverseBytes(input.readLong());
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.readers.vcf;
+
+import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Reads the columnar companion file written by {@link VCFColumnStoreWriter}. Only the columns in the projection
+ * are decoded. Predicates on numeric columns and genomic ranges are first checked against the statistics of each
+ * chunk, so that chunks that cannot contain a matching record are skipped without being read.
+ */
+public class VCFColumnStoreReader {
+    private final RandomAccessFile file;
+    private final String[] columnNames;
+    private final String[] fieldIds;
+    private final int numColumns;
+    private final VCFColumnStoreWriter.ChunkInfo[] chunks;
+
+    private final boolean[] projected;
+    private final IntArrayList predicateColumns = new IntArrayList();
+    private final DoubleArrayList predicateMinimums = new DoubleArrayList();
+    private final DoubleArrayList predicateMaximums = new DoubleArrayList();
+    private String rangeChromosome;
+    private int rangeStart;
+    private int rangeEnd;
+
+    private int chunkIndex = -1;
+    private int recordIndex;
+    private int numRecordsInChunk;
+    /**
+     * Decoded values of the current chunk, for each column: codes into a dictionary, or numbers.
+     */
+    private final String[][] dictionaries;
+    private final int[][] codes;
+    private final int[][] intValues;
+    private final double[][] doubleValues;
+    private final long[][] missing;
+    private final byte[] encodings;
+    private byte[] buffer = new byte[0];
+
+    /**
+     * Open a column store.
+     *
+     * @param filename name of the file written by VCFColumnStoreWriter.
+     * @throws IOException if the file cannot be read or is not a column store.
+     */
+    public VCFColumnStoreReader(final String filename) throws IOException {
+        file = new RandomAccessFile(filename, "r");
+        final byte[] magic = new byte[VCFColumnStoreWriter.MAGIC.length];
+        file.readFully(magic);
+        if (!Arrays.equals(magic, VCFColumnStoreWriter.MAGIC) || file.readInt() != VCFColumnStoreWriter.VERSION) {
+            file.close();
+            throw new IOException("Not a VCF column store: " + filename);
+        }
+        numColumns = file.readInt();
+        columnNames = new String[numColumns];
+        fieldIds = new String[numColumns];
+        for (int i = 0; i < numColumns; i++) {
+            columnNames[i] = file.readUTF();
+            fieldIds[i] = file.readUTF();
+        }
+        file.seek(file.length() - 8);
+        file.seek(file.readLong());
+        final DataInputStream footer = new DataInputStream(new FastByteArrayInputStream(
+                readFully((int) (file.length() - 8 - file.getFilePointer()))));
+        chunks = new VCFColumnStoreWriter.ChunkInfo[footer.readInt()];
+        for (int c = 0; c < chunks.length; c++) {
+            final VCFColumnStoreWriter.ChunkInfo chunk = new VCFColumnStoreWriter.ChunkInfo();
+            chunk.offset = footer.readLong();
+            chunk.numRecords = footer.readInt();
+            chunk.chromosome = footer.readUTF();
+            chunk.minPosition = footer.readInt();
+            chunk.maxPosition = footer.readInt();
+            chunk.columnOffsets = new int[numColumns + 1];
+            chunk.encodings = new byte[numColumns];
+            chunk.minimums = new double[numColumns];
+            chunk.maximums = new double[numColumns];
+            for (int i = 0; i < numColumns; i++) {
+                chunk.columnOffsets[i] = footer.readInt();
+                chunk.encodings[i] = footer.readByte();
+                chunk.minimums[i] = footer.readDouble();
+                chunk.maximums[i] = footer.readDouble();
+            }
+            chunk.columnOffsets[numColumns] = footer.readInt();
+            chunks[c] = chunk;
+        }
+        projected = new boolean[numColumns];
+        Arrays.fill(projected, true);
+        dictionaries = new String[numColumns][];
+        codes = new int[numColumns][];
+        intValues = new int[numColumns][];
+        doubleValues = new double[numColumns][];
+        missing = new long[numColumns][];
+        encodings = new byte[numColumns];
+    }
+
+    /**
+     * Return the name of the companion column store of a VCF file, or null if the VCF file has no column store, or
+     * if the column store is older than the VCF file.
+     *
+     * @param vcfFilename name of the VCF file.
+     * @return name of the column store, or null.
+     */
+    public static String findColumnStore(final String vcfFilename) {
+        final File vcfFile = new File(vcfFilename);
+        final File columnFile = new File(vcfFilename + VCFColumnStoreWriter.FILE_SUFFIX);
+        return columnFile.isFile() && columnFile.lastModified() >= vcfFile.lastModified() ?
+                columnFile.getPath() : null;
+    }
+
+    public int getNumberOfColumns() {
+        return numColumns;
+    }
+
+    public String getColumnName(final int columnIndex) {
+        return columnNames[columnIndex];
+    }
+
+    public String getFieldId(final int columnIndex) {
+        return fieldIds[columnIndex];
+    }
+
+    /**
+     * Return the index of a column of the store.
+     *
+     * @param columnName name of the VCF column.
+     * @param fieldId    id of the field in the column.
+     * @return the column index, or -1 if the store has no such column.
+     */
+    public int findColumn(final String columnName, final String fieldId) {
+        for (int i = 0; i < numColumns; i++) {
+            if (columnNames[i].equals(columnName) && fieldIds[i].equals(fieldId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Restrict decoding to some columns. The values of other columns are returned as empty. The CHROM and POS
+     * columns and the columns used in predicates are always decoded. Must be called before the first record is read.
+     *
+     * @param columnIndices indices of the columns to decode.
+     */
+    public void setProjection(final int... columnIndices) {
+        Arrays.fill(projected, false);
+        projected[0] = true;
+        projected[1] = true;
+        for (final int columnIndex : columnIndices) {
+            projected[columnIndex] = true;
+        }
+        for (int i = 0; i < predicateColumns.size(); i++) {
+            projected[predicateColumns.getInt(i)] = true;
+        }
+    }
+
+    /**
+     * Only return records whose value in a column is within [minimum, maximum]. Records where the value is
+     * missing or is not a number do not match. Must be called before the first record is read.
+     *
+     * @param columnIndex index of the column.
+     * @param minimum     smallest matching value.
+     * @param maximum     largest matching value.
+     */
+    public void addPredicate(final int columnIndex, final double minimum, final double maximum) {
+        predicateColumns.add(columnIndex);
+        predicateMinimums.add(minimum);
+        predicateMaximums.add(maximum);
+        projected[columnIndex] = true;
+    }
+
+    /**
+     * Only return the records of a chromosome whose position is within [start, end]. Restarts reading at the first
+     * chunk that may contain such records.
+     *
+     * @param chromosome the chromosome.
+     * @param start      first position, one-based as in the POS column.
+     * @param end        last position, one-based.
+     */
+    public void setRange(final String chromosome, final int start, final int end) {
+        rangeChromosome = chromosome;
+        rangeStart = start;
+        rangeEnd = end;
+        chunkIndex = -1;
+        recordIndex = 0;
+        numRecordsInChunk = 0;
+    }
+
+    /**
+     * Move to the next record that matches the range and predicates.
+     *
+     * @return true if there is such a record, false at the end of the store.
+     * @throws IOException if the store cannot be read.
+     */
+    public boolean nextRecord() throws IOException {
+        while (true) {
+            ++recordIndex;
+            while (recordIndex >= numRecordsInChunk) {
+                ++chunkIndex;
+                if (chunkIndex >= chunks.length) {
+                    numRecordsInChunk = 0;
+                    return false;
+                }
+                if (chunkMatches(chunks[chunkIndex])) {
+                    loadChunk();
+                    recordIndex = 0;
+                }
+            }
+            if (recordMatches()) {
+                return true;
+            }
+        }
+    }
+
+    private boolean chunkMatches(final VCFColumnStoreWriter.ChunkInfo chunk) {
+        if (rangeChromosome != null && (!rangeChromosome.equals(chunk.chromosome) ||
+                chunk.maxPosition < rangeStart || chunk.minPosition > rangeEnd)) {
+            return false;
+        }
+        for (int i = 0; i < predicateColumns.size(); i++) {
+            final int column = predicateColumns.getInt(i);
+            // statistics cover the numeric values of the chunk, and are NaN when it has none (no record can match):
+            if (!(chunk.maximums[column] >= predicateMinimums.getDouble(i) &&
+                    chunk.minimums[column] <= predicateMaximums.getDouble(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean recordMatches() {
+        if (rangeChromosome != null) {
+            final double position = numericValue(1);
+            if (!(position >= rangeStart && position <= rangeEnd)) {
+                return false;
+            }
+        }
+        for (int i = 0; i < predicateColumns.size(); i++) {
+            final double value = numericValue(predicateColumns.getInt(i));
+            if (!(value >= predicateMinimums.getDouble(i) && value <= predicateMaximums.getDouble(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void loadChunk() throws IOException {
+        final VCFColumnStoreWriter.ChunkInfo chunk = chunks[chunkIndex];
+        final int numRecords = chunk.numRecords;
+        numRecordsInChunk = numRecords;
+        for (int column = 0; column < numColumns; column++) {
+            encodings[column] = chunk.encodings[column];
+            if (!projected[column]) {
+                continue;
+            }
+            final int start = chunk.columnOffsets[column];
+            file.seek(chunk.offset + start);
+            final DataInputStream input = new DataInputStream(new FastByteArrayInputStream(
+                    readFully(chunk.columnOffsets[column + 1] - start)));
+            if (encodings[column] == VCFColumnStoreWriter.ENCODING_STRING) {
+                final String[] dictionary = new String[input.readInt()];
+                for (int i = 0; i < dictionary.length; i++) {
+                    dictionary[i] = input.readUTF();
+                }
+                dictionaries[column] = dictionary;
+                final int[] columnCodes = codes[column] = grow(codes[column], numRecords);
+                for (int i = 0; i < numRecords; i++) {
+                    if (dictionary.length <= 256) {
+                        columnCodes[i] = input.readUnsignedByte();
+                    } else if (dictionary.length <= 65536) {
+                        columnCodes[i] = input.readUnsignedShort();
+                    } else {
+                        columnCodes[i] = input.readInt();
+                    }
+                }
+            } else {
+                final long[] columnMissing = missing[column] = grow(missing[column], (numRecords + 63) / 64);
+                for (int i = 0; i < (numRecords + 63) / 64; i++) {
+                    columnMissing[i] = input.readLong();
+                }
+                if (encodings[column] == VCFColumnStoreWriter.ENCODING_INT) {
+                    final int[] values = intValues[column] = grow(intValues[column], numRecords);
+                    for (int i = 0; i < numRecords; i++) {
+                        values[i] = input.readInt();
+                    }
+                } else {
+                    final double[] values = doubleValues[column] = grow(doubleValues[column], numRecords);
+                    for (int i = 0; i < numRecords; i++) {
+                        values[i] = input.readDouble();
+                    }
+                }
+            }
+        }
+    }
+
+    private byte[] readFully(final int length) throws IOException {
+        if (buffer.length < length) {
+            buffer = new byte[length];
+        }
+        file.readFully(buffer, 0, length);
+        return buffer;
+    }
+
+    private static int[] grow(final int[] array, final int length) {
+        return array != null && array.length >= length ? array : new int[length];
+    }
+
+    private static long[] grow(final long[] array, final int length) {
+        return array != null && array.length >= length ? array : new long[length];
+    }
+
+    private static double[] grow(final double[] array, final int length) {
+        return array != null && array.length >= length ? array : new double[length];
+    }
+
+    private boolean isMissing(final int columnIndex) {
+        return (missing[columnIndex][recordIndex >> 6] & 1L << recordIndex) != 0;
+    }
+
+    /**
+     * Return the text of a column for the current record.
+     *
+     * @param columnIndex index of the column.
+     * @return the text of the value, empty when the value is missing or the column is not projected.
+     */
+    public String getValue(final int columnIndex) {
+        if (!projected[columnIndex]) {
+            return "";
+        }
+        switch (encodings[columnIndex]) {
+            case VCFColumnStoreWriter.ENCODING_STRING:
+                return dictionaries[columnIndex][codes[columnIndex][recordIndex]];
+            case VCFColumnStoreWriter.ENCODING_INT:
+                return isMissing(columnIndex) ? "" : Integer.toString(intValues[columnIndex][recordIndex]);
+            default:
+                return isMissing(columnIndex) ? "" : Double.toString(doubleValues[columnIndex][recordIndex]);
+        }
+    }
+
+    /**
+     * Return the value of a column for the current record, as an int.
+     *
+     * @param columnIndex index of the column.
+     * @return the value.
+     * @throws NumberFormatException when the value is missing or is not an int.
+     */
+    public int getIntValue(final int columnIndex) {
+        if (projected[columnIndex] && encodings[columnIndex] == VCFColumnStoreWriter.ENCODING_INT &&
+                !isMissing(columnIndex)) {
+            return intValues[columnIndex][recordIndex];
+        }
+        return Integer.parseInt(getValue(columnIndex));
+    }
+
+    /**
+     * Return the value of a column for the current record, as a double.
+     *
+     * @param columnIndex index of the column.
+     * @return the value.
+     * @throws NumberFormatException when the value is missing or is not a number.
+     */
+    public double getDoubleValue(final int columnIndex) {
+        final double value = numericValue(columnIndex);
+        if (value != value && !"NaN".equals(getValue(columnIndex))) {
+            return Double.parseDouble(getValue(columnIndex));
+        }
+        return value;
+    }
+
+    /**
+     * Return the value of a column for the current record, or NaN when it is missing or not a number.
+     */
+    private double numericValue(final int columnIndex) {
+        if (!projected[columnIndex]) {
+            return Double.NaN;
+        }
+        switch (encodings[columnIndex]) {
+            case VCFColumnStoreWriter.ENCODING_INT:
+                return isMissing(columnIndex) ? Double.NaN : intValues[columnIndex][recordIndex];
+            case VCFColumnStoreWriter.ENCODING_DOUBLE:
+                return isMissing(columnIndex) ? Double.NaN : doubleValues[columnIndex][recordIndex];
+            default:
+                try {
+                    return Double.parseDouble(getValue(columnIndex));
+                } catch (NumberFormatException e) {
+                    return Double.NaN;
+                }
+        }
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+}
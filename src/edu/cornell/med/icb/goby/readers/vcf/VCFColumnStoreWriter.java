@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.readers.vcf;
+
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.lang.MutableString;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes the columnar companion file of a VCF file. The file stores the value of each field of each record,
+ * column by column, in chunks of consecutive records. Each column chunk is stored with the most compact encoding
+ * that reproduces the text of the VCF exactly: ints, doubles, or dictionary encoded strings. Chunks never span two
+ * chromosomes, and the footer of the file records the genomic range of each chunk, and the minimum and maximum
+ * value of each numeric column in the chunk. See {@link VCFColumnStoreReader} for the reading side.
+ * <p/>
+ * Columns are identified by a VCF column name and a field id, as in VCFParser.getGlobalFieldIndex(). The first two
+ * columns of the store must be the CHROM and POS columns.
+ */
+public class VCFColumnStoreWriter {
+    static final byte[] MAGIC = {'G', 'O', 'B', 'Y', 'V', 'C', 'F', 'C'};
+    static final int VERSION = 1;
+    static final byte ENCODING_STRING = 0;
+    static final byte ENCODING_INT = 1;
+    static final byte ENCODING_DOUBLE = 2;
+    /**
+     * Suffix of the companion file, appended to the name of the VCF file.
+     */
+    public static final String FILE_SUFFIX = ".columns";
+    public static final int DEFAULT_CHUNK_SIZE = 10000;
+
+    private final DataOutputStream output;
+    private final String[] columnNames;
+    private final String[] fieldIds;
+    private final int numColumns;
+    private final int chunkSize;
+    /**
+     * Values of the current chunk, concatenated for each column, with the end of each value in valueEnds.
+     */
+    private final MutableString[] values;
+    private final int[][] valueEnds;
+    private int numRecords;
+    private long fileOffset;
+    private final MutableString chunkChromosome = new MutableString();
+    private int chunkMinPosition;
+    private int chunkMaxPosition;
+    private final ObjectArrayList<ChunkInfo> chunks = new ObjectArrayList<ChunkInfo>();
+    private final FastByteArrayOutputStream chunkBytes = new FastByteArrayOutputStream();
+    private final DataOutputStream chunkOutput = new DataOutputStream(chunkBytes);
+
+    static final class ChunkInfo {
+        long offset;
+        int numRecords;
+        String chromosome;
+        int minPosition;
+        int maxPosition;
+        int[] columnOffsets;
+        byte[] encodings;
+        double[] minimums;
+        double[] maximums;
+    }
+
+    /**
+     * Create a column store.
+     *
+     * @param filename    name of the companion file, usually the VCF filename followed by FILE_SUFFIX.
+     * @param columnNames VCF column of each column of the store.
+     * @param fieldIds    field id of each column of the store.
+     * @throws IOException if the file cannot be created.
+     */
+    public VCFColumnStoreWriter(final String filename, final String[] columnNames, final String[] fieldIds)
+            throws IOException {
+        this(filename, columnNames, fieldIds, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Create a column store.
+     *
+     * @param filename    name of the companion file, usually the VCF filename followed by FILE_SUFFIX.
+     * @param columnNames VCF column of each column of the store.
+     * @param fieldIds    field id of each column of the store.
+     * @param chunkSize   maximum number of records in a chunk.
+     * @throws IOException if the file cannot be created.
+     */
+    public VCFColumnStoreWriter(final String filename, final String[] columnNames, final String[] fieldIds,
+                                final int chunkSize) throws IOException {
+        if (columnNames.length < 2 || !"CHROM".equals(columnNames[0]) || !"POS".equals(columnNames[1])) {
+            throw new IllegalArgumentException("The first columns of the store must be CHROM and POS.");
+        }
+        this.columnNames = columnNames;
+        this.fieldIds = fieldIds;
+        this.chunkSize = chunkSize;
+        numColumns = columnNames.length;
+        values = new MutableString[numColumns];
+        valueEnds = new int[numColumns][chunkSize];
+        for (int i = 0; i < numColumns; i++) {
+            values[i] = new MutableString();
+        }
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+        output.write(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(numColumns);
+        for (int i = 0; i < numColumns; i++) {
+            output.writeUTF(columnNames[i]);
+            output.writeUTF(fieldIds[i]);
+        }
+        fileOffset = output.size();
+    }
+
+    public int getNumberOfColumns() {
+        return numColumns;
+    }
+
+    public String getColumnName(final int columnIndex) {
+        return columnNames[columnIndex];
+    }
+
+    public String getFieldId(final int columnIndex) {
+        return fieldIds[columnIndex];
+    }
+
+    /**
+     * Set the value of a column for the current record. Columns that are not set are empty.
+     *
+     * @param columnIndex index of the column in the store.
+     * @param value       text of the value, as written to the VCF file.
+     */
+    public void setValue(final int columnIndex, final CharSequence value) {
+        final MutableString columnValues = values[columnIndex];
+        columnValues.length(lastEnd(columnIndex));
+        columnValues.append(value);
+        valueEnds[columnIndex][numRecords] = columnValues.length();
+    }
+
+    /**
+     * Set the value of a column for the current record.
+     *
+     * @param columnIndex index of the column in the store.
+     * @param value       value of the field.
+     */
+    public void setValue(final int columnIndex, final int value) {
+        final MutableString columnValues = values[columnIndex];
+        columnValues.length(lastEnd(columnIndex));
+        columnValues.append(value);
+        valueEnds[columnIndex][numRecords] = columnValues.length();
+    }
+
+    private int lastEnd(final int columnIndex) {
+        return numRecords == 0 ? 0 : valueEnds[columnIndex][numRecords - 1];
+    }
+
+    /**
+     * Complete the current record. Columns that were not set since the previous record are stored as empty.
+     *
+     * @throws IOException if the chunk cannot be written.
+     */
+    public void writeRecord() throws IOException {
+        for (int i = 0; i < numColumns; i++) {
+            final int end = lastEnd(i);
+            if (values[i].length() == end) {
+                // not set for this record:
+                valueEnds[i][numRecords] = end;
+            }
+        }
+        final int start = lastEnd(0);
+        final int end = valueEnds[0][numRecords];
+        final MutableString chromosomes = values[0];
+        if (numRecords > 0 && !regionEquals(chromosomes, start, end, chunkChromosome)) {
+            // keep one chromosome per chunk: flush the previous records, and move this one to the new chunk.
+            final int[] lastValueStarts = new int[numColumns];
+            final MutableString[] lastValues = new MutableString[numColumns];
+            for (int i = 0; i < numColumns; i++) {
+                lastValueStarts[i] = lastEnd(i);
+                lastValues[i] = values[i].substring(lastValueStarts[i], valueEnds[i][numRecords]);
+            }
+            flushChunk();
+            for (int i = 0; i < numColumns; i++) {
+                values[i].append(lastValues[i]);
+                valueEnds[i][0] = values[i].length();
+            }
+        }
+        final int position = parsePosition();
+        if (numRecords == 0) {
+            chunkChromosome.length(0);
+            chunkChromosome.append(values[0]);
+            chunkMinPosition = position;
+            chunkMaxPosition = position;
+        } else {
+            chunkMinPosition = Math.min(chunkMinPosition, position);
+            chunkMaxPosition = Math.max(chunkMaxPosition, position);
+        }
+        ++numRecords;
+        if (numRecords == chunkSize) {
+            flushChunk();
+        }
+    }
+
+    private int parsePosition() {
+        final MutableString positions = values[1];
+        final int end = valueEnds[1][numRecords];
+        int position = 0;
+        for (int i = lastEnd(1); i < end; i++) {
+            final char c = positions.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            position = position * 10 + c - '0';
+        }
+        return position;
+    }
+
+    private static boolean regionEquals(final MutableString s, final int start, final int end,
+                                        final MutableString other) {
+        if (end - start != other.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) != other.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the last chunk and the footer, then close the file.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    public void close() throws IOException {
+        if (numRecords > 0) {
+            flushChunk();
+        }
+        final long footerOffset = fileOffset;
+        output.writeInt(chunks.size());
+        for (final ChunkInfo chunk : chunks) {
+            output.writeLong(chunk.offset);
+            output.writeInt(chunk.numRecords);
+            output.writeUTF(chunk.chromosome);
+            output.writeInt(chunk.minPosition);
+            output.writeInt(chunk.maxPosition);
+            for (int i = 0; i < numColumns; i++) {
+                output.writeInt(chunk.columnOffsets[i]);
+                output.writeByte(chunk.encodings[i]);
+                output.writeDouble(chunk.minimums[i]);
+                output.writeDouble(chunk.maximums[i]);
+            }
+            output.writeInt(chunk.columnOffsets[numColumns]);
+        }
+        output.writeLong(footerOffset);
+        output.close();
+    }
+
+    private final int[] intValues = new int[DEFAULT_CHUNK_SIZE];
+    private final Object2IntOpenHashMap<String> dictionary = new Object2IntOpenHashMap<String>();
+    private final ObjectArrayList<String> dictionaryValues = new ObjectArrayList<String>();
+
+    private void flushChunk() throws IOException {
+        final ChunkInfo chunk = new ChunkInfo();
+        chunk.offset = fileOffset;
+        chunk.numRecords = numRecords;
+        chunk.chromosome = chunkChromosome.toString();
+        chunk.minPosition = chunkMinPosition;
+        chunk.maxPosition = chunkMaxPosition;
+        chunk.columnOffsets = new int[numColumns + 1];
+        chunk.encodings = new byte[numColumns];
+        chunk.minimums = new double[numColumns];
+        chunk.maximums = new double[numColumns];
+        chunkBytes.reset();
+        final long[] missing = new long[(numRecords + 63) / 64];
+        int[] codes = numRecords <= intValues.length ? intValues : new int[numRecords];
+        for (int column = 0; column < numColumns; column++) {
+            chunk.columnOffsets[column] = chunkBytes.length;
+            final MutableString columnValues = values[column];
+            final int[] ends = valueEnds[column];
+            Arrays.fill(missing, 0);
+            boolean isInt = true;
+            boolean isDouble = true;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            int start = 0;
+            for (int i = 0; i < numRecords; i++) {
+                final int end = ends[i];
+                if (start == end) {
+                    missing[i >> 6] |= 1L << i;
+                } else {
+                    // a column is stored as ints (or doubles) only when every value prints back to the same text:
+                    final String text = columnValues.substring(start, end).toString();
+                    isInt = isInt && isCanonicalInt(columnValues, start, end);
+                    final double doubleValue = isDouble ? parseCanonicalDouble(text) : Double.NaN;
+                    isDouble = isDouble && !Double.isNaN(doubleValue);
+                    final double value = isInt ? Integer.parseInt(text) : isDouble ? doubleValue : parseDouble(text);
+                    // the statistics only cover the values that predicates can match:
+                    if (!Double.isNaN(value)) {
+                        min = Math.min(min, value);
+                        max = Math.max(max, value);
+                    }
+                }
+                start = end;
+            }
+            if (min > max) {
+                // no numeric value in this chunk:
+                isInt = false;
+                isDouble = false;
+                min = Double.NaN;
+                max = Double.NaN;
+            }
+            chunk.minimums[column] = min;
+            chunk.maximums[column] = max;
+            start = 0;
+            if (isInt || isDouble) {
+                chunk.encodings[column] = isInt ? ENCODING_INT : ENCODING_DOUBLE;
+                for (final long word : missing) {
+                    chunkOutput.writeLong(word);
+                }
+                for (int i = 0; i < numRecords; i++) {
+                    final int end = ends[i];
+                    if (isInt) {
+                        chunkOutput.writeInt(start == end ? 0 : Integer.parseInt(columnValues.substring(start, end).toString()));
+                    } else {
+                        chunkOutput.writeDouble(start == end ? 0 : Double.parseDouble(columnValues.substring(start, end).toString()));
+                    }
+                    start = end;
+                }
+            } else {
+                chunk.encodings[column] = ENCODING_STRING;
+                dictionary.clear();
+                dictionaryValues.clear();
+                dictionary.defaultReturnValue(-1);
+                for (int i = 0; i < numRecords; i++) {
+                    final int end = ends[i];
+                    final String value = columnValues.substring(start, end).toString();
+                    int code = dictionary.getInt(value);
+                    if (code == -1) {
+                        code = dictionaryValues.size();
+                        dictionary.put(value, code);
+                        dictionaryValues.add(value);
+                    }
+                    codes[i] = code;
+                    start = end;
+                }
+                chunkOutput.writeInt(dictionaryValues.size());
+                for (final String value : dictionaryValues) {
+                    chunkOutput.writeUTF(value);
+                }
+                final int dictionarySize = dictionaryValues.size();
+                for (int i = 0; i < numRecords; i++) {
+                    if (dictionarySize <= 256) {
+                        chunkOutput.writeByte(codes[i]);
+                    } else if (dictionarySize <= 65536) {
+                        chunkOutput.writeShort(codes[i]);
+                    } else {
+                        chunkOutput.writeInt(codes[i]);
+                    }
+                }
+            }
+            columnValues.length(0);
+        }
+        chunkOutput.flush();
+        chunk.columnOffsets[numColumns] = chunkBytes.length;
+        output.write(chunkBytes.array, 0, chunkBytes.length);
+        fileOffset += chunkBytes.length;
+        chunks.add(chunk);
+        numRecords = 0;
+    }
+
+    /**
+     * Determine if the text is an int written as Integer.toString() would write it.
+     */
+    private static boolean isCanonicalInt(final MutableString s, final int start, final int end) {
+        int i = start;
+        final boolean negative = s.charAt(i) == '-';
+        if (negative) {
+            ++i;
+        }
+        final int numDigits = end - i;
+        if (numDigits == 0 || numDigits > 10 || numDigits > 1 && s.charAt(i) == '0' ||
+                negative && numDigits == 1 && s.charAt(i) == '0') {
+            return false;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            value = value * 10 + c - '0';
+        }
+        return negative ? -value >= Integer.MIN_VALUE : value <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Parse the text as a double, the way predicates read values of string columns.
+     *
+     * @return the value, or NaN if the text is not a number.
+     */
+    private static double parseDouble(final String text) {
+        final char first = text.charAt(0);
+        if (!(first >= '0' && first <= '9' || first == '-' || first == '+' || first == '.' || first == 'I' ||
+                Character.isWhitespace(first))) {
+            // most string values (genotypes, names) are rejected without an exception:
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Parse text written by Double.toString().
+     *
+     * @return the value, or NaN when Double.toString() would not write the same text for it.
+     */
+    private static double parseCanonicalDouble(final String text) {
+        try {
+            final double value = Double.parseDouble(text);
+            return Double.toString(value).equals(text) && !Double.isNaN(value) && !Double.isInfinite(value) ?
+                    value : Double.NaN;
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -20,22 +20,28 @@
 
 package edu.cornell.med.icb.goby.readers.vcf;
 
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
 import edu.cornell.med.icb.goby.modes.TabToColumnInfoMode;
+import edu.cornell.med.icb.goby.util.ParallelBlockCompressedInputStream;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.io.FastBufferedReader;
 import it.unimi.dsi.io.LineIterator;
 import it.unimi.dsi.lang.MutableString;
 import net.sf.samtools.util.BlockCompressedInputStream;
 import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
 
 import java.io.*;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Parser for files in the <a href="http://vcftools.sourceforge.net/specs.html">Variant Call Format</a>, or in plain TSV format.
@@ -46,12 +52,21 @@ import java.util.Map;
  * <pre>##INFO=&lt;ID=AF1,Number=1,Type=Float,Description="Max-likelihood ..."&gt;</pre>
  * This parser can additionally read a Group attribute, such as in:
  * <pre>##INFO=&lt;ID=AF1,Number=1,Type=Float,Group=LIKELIHOODS,Description="Max-likelihood ..."&gt;</pre>
+ * Sample columns are only split into fields when one of their fields is requested. Numeric and character fields can
+ * be obtained with getIntFieldValue, getDoubleFieldValue and getCharFieldValue, which read the value directly from
+ * the line.
+ * When a VCF file has a columnar companion file written by VCFWriter (filename.columns, see VCFColumnStoreWriter),
+ * values are read from the companion file instead of being parsed from the text. Callers can then restrict the
+ * fields that are decoded with setProjection, and the records returned with addPredicate, in which case chunks of
+ * records that cannot match are skipped without being read.
  *
  * @author Fabien Campagne
  *         Date: Mar 26, 2011
  *         Time: 3:01:47 PM
  */
 public class VCFParser implements Closeable {
+    private static final Logger LOG = Logger.getLogger(VCFParser.class);
+
     private Reader input;
     private Columns columns = new Columns();
     private boolean hasNextDataLine;
@@ -132,6 +147,32 @@ public class VCFParser implements Closeable {
      */
     private boolean cacheFieldPermutation;
     private String associationString;
+    /**
+     * The BGZF stream the input is decoded from, or null when the input is not a BGZF file.
+     */
+    private ParallelBlockCompressedInputStream blockInput;
+    /**
+     * Sequence, first and last position (one-based, inclusive) of the records to return, or null when the whole
+     * file is read.
+     */
+    private String rangeChromosome;
+    private int rangeStart;
+    private int rangeEnd;
+    private boolean rangeEntered;
+    /**
+     * Columnar companion file values are read from, or null when values are parsed from the text.
+     */
+    private VCFColumnStoreReader columnStore;
+    private boolean useColumnStore = true;
+    /**
+     * Column of the column store that holds each global field, or -1 when the store has no such column.
+     */
+    private int[] fieldStoreColumn;
+    private ColumnInfo[] columnByIndex;
+    private int formatStoreColumn;
+    private final IntArrayList predicateFields = new IntArrayList();
+    private final DoubleArrayList predicateMinimums = new DoubleArrayList();
+    private final DoubleArrayList predicateMaximums = new DoubleArrayList();
 
     /**
      * Constructs a VCF parser.
@@ -147,15 +188,52 @@ public class VCFParser implements Closeable {
      * the file on the fly, using BlockCompressedInputStream (from samtools). BlockCompressedInputStream
      * is used preferentially to GZipInputStream to avoid truncating bgzip input files produced with bgzip.
      * http://biostar.stackexchange.com/questions/6112/how-to-decompress-1000genomes-bgzip-compressed-files-using-java
+     * Files in the BGZF format are decompressed on the pool of threads shared by all parsers, with one thread per
+     * processor, so that opening many parsers does not start more threads.
      *
      * @param filename Input to parse
      * @throws java.io.IOException when an error occurs.
      */
     public VCFParser(final String filename) throws IOException {
+        this(filename, ParallelBlockCompressedInputStream.getSharedExecutor(),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a VCF parser. When the file is compressed in the BGZF format (e.g., with bgzip, or written by
+     * VCFWriter), compressed blocks are read ahead and inflated by numThreads threads while the lines are parsed.
+     *
+     * @param filename   Input to parse
+     * @param numThreads Number of threads started for this parser to decompress BGZF files.
+     * @throws java.io.IOException when an error occurs.
+     */
+    public VCFParser(final String filename, final int numThreads) throws IOException {
+        this(filename, null, numThreads);
+    }
+
+    /**
+     * Constructs a VCF parser that decompresses BGZF files on a pool of threads shared with other parsers. The pool
+     * is not shut down when the parser is closed.
+     *
+     * @param filename   Input to parse
+     * @param executor   Pool of threads used to decompress BGZF files, or null to start a pool for this parser.
+     * @param numThreads Number of threads of the pool.
+     * @throws java.io.IOException when an error occurs.
+     */
+    public VCFParser(final String filename, final ExecutorService executor, final int numThreads)
+            throws IOException {
         inputFile = new File(filename);
-        input = filename.endsWith(".gz") ?
-                new InputStreamReader(new BlockCompressedInputStream(new FileInputStream(filename))) :
-                new FileReader(filename);
+        if (filename.endsWith(".gz")) {
+            if (ParallelBlockCompressedInputStream.isBlockCompressed(inputFile)) {
+                blockInput = executor == null ? new ParallelBlockCompressedInputStream(inputFile, numThreads) :
+                        new ParallelBlockCompressedInputStream(inputFile, executor, numThreads);
+                input = new InputStreamReader(blockInput);
+            } else {
+                input = new InputStreamReader(new BlockCompressedInputStream(new FileInputStream(filename)));
+            }
+        } else {
+            input = new FileReader(filename);
+        }
     }
 
     /**
@@ -290,21 +368,186 @@ public class VCFParser implements Closeable {
         if (hasNextDataLine) {
             return true;
         }
-
-        hasNextDataLine = lineIterator.hasNext();
-        if (hasNextDataLine) {
+        if (columnStore != null) {
+            try {
+                while (!hasNextDataLine && columnStore.nextRecord()) {
+                    hasNextDataLine = true;
+                    hasNextDataLine = matchesPredicates();
+                }
+            } catch (IOException e) {
+                throw new GobyRuntimeException("Unable to read column store for " + inputFile, e);
+            }
+            return hasNextDataLine;
+        }
+        while (lineIterator.hasNext()) {
             line = lineIterator.next();
+            if (rangeChromosome != null) {
+                final int inRange = compareToRange();
+                if (inRange < 0) {
+                    continue;
+                }
+                if (inRange > 0) {
+                    break;
+                }
+            }
             if (!TSV) {
                 parseCurrentLine();
 
             } else {
                 parseTSVLine();
             }
-
+            hasNextDataLine = true;
+            if (!matchesPredicates()) {
+                hasNextDataLine = false;
+                continue;
+            }
+            break;
         }
         return hasNextDataLine;
     }
 
+    /**
+     * Read values from the columnar companion file of the VCF file when it exists (true by default). Must be set
+     * before readHeader() is called.
+     *
+     * @param useColumnStore False to always parse the text of the VCF file.
+     */
+    public void setUseColumnStore(final boolean useColumnStore) {
+        this.useColumnStore = useColumnStore;
+    }
+
+    /**
+     * Return true when values are read from the columnar companion file rather than parsed from the text.
+     *
+     * @return True or False.
+     */
+    public boolean isUsingColumnStore() {
+        return columnStore != null;
+    }
+
+    /**
+     * Restrict the fields that are decoded from the columnar companion file. Other fields, and the columns that
+     * contain them, return empty values. Has no effect when the text of the file is parsed. Must be called after
+     * readHeader() and before the first record is read.
+     *
+     * @param globalFieldIndices The fields that will be requested by the caller.
+     */
+    public void setProjection(final int... globalFieldIndices) {
+        if (columnStore == null) {
+            return;
+        }
+        final IntArrayList storeColumns = new IntArrayList();
+        for (final int globalFieldIndex : globalFieldIndices) {
+            if (fieldStoreColumn[globalFieldIndex] != -1) {
+                storeColumns.add(fieldStoreColumn[globalFieldIndex]);
+            }
+        }
+        columnStore.setProjection(storeColumns.toIntArray());
+    }
+
+    /**
+     * Only return the records where a field has a numeric value within [minimum, maximum]. Records where the field
+     * is missing or is not a number are skipped. When values are read from the columnar companion file, chunks of
+     * records whose values are all out of range are skipped without being read. Must be called after readHeader().
+     *
+     * @param globalFieldIndex a global index that runs from zero to countAllFields()
+     * @param minimum          smallest value to accept.
+     * @param maximum          largest value to accept.
+     */
+    public void addPredicate(final int globalFieldIndex, final double minimum, final double maximum) {
+        predicateFields.add(globalFieldIndex);
+        predicateMinimums.add(minimum);
+        predicateMaximums.add(maximum);
+        if (columnStore != null && fieldStoreColumn[globalFieldIndex] != -1) {
+            columnStore.addPredicate(fieldStoreColumn[globalFieldIndex], minimum, maximum);
+        }
+        if (hasNextDataLine && !matchesPredicates()) {
+            // the line loaded by readHeader() is filtered out:
+            hasNextDataLine = false;
+        }
+    }
+
+    private boolean matchesPredicates() {
+        for (int i = 0; i < predicateFields.size(); i++) {
+            try {
+                final double value = getDoubleFieldValue(predicateFields.getInt(i));
+                if (!(value >= predicateMinimums.getDouble(i) && value <= predicateMaximums.getDouble(i))) {
+                    return false;
+                }
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Restrict the records returned by this parser to those of a genomic range. This method requires a bgzip
+     * compressed file with a tabix index (filename.gz.tbi), or a columnar companion file, and must be called after
+     * readHeader(). Parsing starts at the position of the range found in the index, instead of at the beginning of
+     * the file.
+     *
+     * @param chromosome Sequence of the range, as found in the CHROM column.
+     * @param start      First position of the range, one-based.
+     * @param end        Last position of the range, one-based, inclusive.
+     * @throws IOException if the file is not compressed in the BGZF format or has no tabix index.
+     */
+    public void setRange(final String chromosome, final int start, final int end) throws IOException {
+        if (columnStore != null) {
+            columnStore.setRange(chromosome, start, end);
+            hasNextDataLine = false;
+            return;
+        }
+        final File indexFile = inputFile == null ? null : new File(inputFile.getPath() + ".tbi");
+        if (blockInput == null || !indexFile.exists()) {
+            throw new IOException("Ranges can only be read from bgzip compressed files with a tabix index.");
+        }
+        final long offset = new TabixIndex(indexFile).getStartOffset(chromosome, start - 1);
+        rangeChromosome = chromosome;
+        rangeStart = start;
+        rangeEnd = end;
+        rangeEntered = false;
+        hasNextDataLine = false;
+        if (offset == -1) {
+            // no record on this sequence, position at the end of the file:
+            blockInput.seek(inputFile.length() << 16);
+        } else {
+            blockInput.seek(offset);
+        }
+        input = new InputStreamReader(blockInput);
+        bufferedReader = new FastBufferedReader(input);
+        lineIterator = new LineIterator(bufferedReader);
+    }
+
+    /**
+     * Locate the current line with respect to the range.
+     *
+     * @return -1 when the line must be skipped, 0 when it is in the range, 1 when the line and all the following
+     *         ones are past the end of the range.
+     */
+    private int compareToRange() {
+        if (line.startsWith("#")) {
+            return -1;
+        }
+        final int chromosomeEnd = line.indexOf(columnSeparatorCharacter);
+        final int positionEnd = chromosomeEnd == -1 ? -1 : line.indexOf(columnSeparatorCharacter, chromosomeEnd + 1);
+        if (positionEnd == -1) {
+            return -1;
+        }
+        boolean sameChromosome = chromosomeEnd == rangeChromosome.length();
+        for (int i = 0; sameChromosome && i < chromosomeEnd; i++) {
+            sameChromosome = line.charAt(i) == rangeChromosome.charAt(i);
+        }
+        if (!sameChromosome) {
+            return rangeEntered ? 1 : -1;
+        }
+        rangeEntered = true;
+        int position = 0;
+        for (int i = chromosomeEnd + 1; i < positionEnd; i++) {
+            position = position * 10 + line.charAt(i) - '0';
+        }
+        return position < rangeStart ? -1 : position > rangeEnd ? 1 : 0;
+    }
 
     public void next() {
         if (!hasNextDataLine) {
@@ -323,6 +566,9 @@ public class VCFParser implements Closeable {
      */
     public CharSequence getColumnValue(final int columnIndex) {
         if (hasNextDataLine) {
+            if (columnStore != null) {
+                return storeColumnValue(columnIndex);
+            }
 
             return line.subSequence(columnStarts[columnIndex], columnEnds[columnIndex]);
 
@@ -353,23 +599,149 @@ public class VCFParser implements Closeable {
      */
     public CharSequence getFieldValue(final int globalFieldIndex) {
         if (hasNextDataLine) {
-
-            final int lineFieldIndex = fieldPermutation[globalFieldIndex];
-            if (lineFieldIndex == -1) {
+            if (columnStore != null) {
+                return storeFieldValue(globalFieldIndex);
+            }
+            if (!locateField(globalFieldIndex)) {
                 // missing field in this row;
                 return "";
             }
-            final int start = fieldStarts[lineFieldIndex];
-            final int end = fieldEnds[lineFieldIndex];
-
-            assert (start >= 0 && end <= lineLength) :
-                    String.format("position indices must be within line boundaries start: %d end: %d length: %d", start, end, lineLength);
-            return line.subSequence(start, end);
+            assert (valueStart >= 0 && valueEnd <= lineLength) :
+                    String.format("position indices must be within line boundaries start: %d end: %d length: %d", valueStart, valueEnd, lineLength);
+            return line.subSequence(valueStart, valueEnd);
 
 
         } else return null;
     }
 
+    /**
+     * Returns the value of a field as an int. The value is parsed directly from the line, without creating
+     * intermediate strings.
+     *
+     * @param globalFieldIndex a global index that runs from zero to countAllFields()
+     * @return Value of this field.
+     * @throws NumberFormatException when the field is missing or is not an integer.
+     */
+    public int getIntFieldValue(final int globalFieldIndex) {
+        checkDataLine();
+        if (columnStore != null) {
+            final int storeColumn = fieldStoreColumn[globalFieldIndex];
+            return storeColumn != -1 ? columnStore.getIntValue(storeColumn) :
+                    Integer.parseInt(storeFieldValue(globalFieldIndex));
+        }
+        if (!locateField(globalFieldIndex)) {
+            throw new NumberFormatException("Field " + getFieldName(globalFieldIndex) + " is missing on this line.");
+        }
+        final char[] chrs = line.array();
+        int i = valueStart;
+        final boolean negative = i < valueEnd && chrs[i] == '-';
+        if (negative || i < valueEnd && chrs[i] == '+') {
+            ++i;
+        }
+        // at most 9 digits cannot overflow an int:
+        if (i == valueEnd || valueEnd - i > 9) {
+            return Integer.parseInt(line.substring(valueStart, valueEnd).toString());
+        }
+        int value = 0;
+        for (; i < valueEnd; i++) {
+            final int digit = chrs[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Integer.parseInt(line.substring(valueStart, valueEnd).toString());
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Powers of ten that are exactly represented as doubles.
+     */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Returns the value of a field as a double. Plain decimal values are parsed directly from the line, without
+     * creating intermediate strings. Other notations (exponents, NaN, Infinity) are delegated to
+     * Double.parseDouble.
+     *
+     * @param globalFieldIndex a global index that runs from zero to countAllFields()
+     * @return Value of this field.
+     * @throws NumberFormatException when the field is missing or is not a number.
+     */
+    public double getDoubleFieldValue(final int globalFieldIndex) {
+        checkDataLine();
+        if (columnStore != null) {
+            final int storeColumn = fieldStoreColumn[globalFieldIndex];
+            return storeColumn != -1 ? columnStore.getDoubleValue(storeColumn) :
+                    Double.parseDouble(storeFieldValue(globalFieldIndex));
+        }
+        if (!locateField(globalFieldIndex)) {
+            throw new NumberFormatException("Field " + getFieldName(globalFieldIndex) + " is missing on this line.");
+        }
+        final char[] chrs = line.array();
+        int i = valueStart;
+        final boolean negative = i < valueEnd && chrs[i] == '-';
+        if (negative || i < valueEnd && chrs[i] == '+') {
+            ++i;
+        }
+        long mantissa = 0;
+        int numDigits = 0;
+        int fractionDigits = -1;
+        for (; i < valueEnd; i++) {
+            final char c = chrs[i];
+            if (c == '.' && fractionDigits == -1) {
+                fractionDigits = 0;
+                continue;
+            }
+            final int digit = c - '0';
+            if (digit < 0 || digit > 9) {
+                numDigits = -1;
+                break;
+            }
+            mantissa = mantissa * 10 + digit;
+            ++numDigits;
+            if (fractionDigits != -1) {
+                ++fractionDigits;
+            }
+        }
+        // the mantissa and the power of ten are exact, so the division is correctly rounded:
+        if (numDigits <= 0 || numDigits > 15 || fractionDigits >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(line.substring(valueStart, valueEnd).toString());
+        }
+        final double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Returns the first character of a field, such as a strand or a single base.
+     *
+     * @param globalFieldIndex a global index that runs from zero to countAllFields()
+     * @return First character of this field, or the zero character when the field is missing or empty.
+     */
+    public char getCharFieldValue(final int globalFieldIndex) {
+        checkDataLine();
+        if (columnStore != null) {
+            final String value = storeFieldValue(globalFieldIndex);
+            return value.length() == 0 ? '\0' : value.charAt(0);
+        }
+        if (!locateField(globalFieldIndex) || valueStart == valueEnd) {
+            return '\0';
+        }
+        return line.charAt(valueStart);
+    }
+
+    private void checkDataLine() {
+        if (!hasNextDataLine) {
+            throw new IllegalArgumentException("Field values can be obtained only after hasNext has returned true.");
+        }
+    }
+
     /**
      * Returns the value of a field.
      * The field is identified by a global index that runs from zero (inclusive) to countAllFields() (exclusive).
@@ -473,6 +845,111 @@ public class VCFParser implements Closeable {
             };
 
         }
+        openColumnStore();
+    }
+
+    /**
+     * Read values from the columnar companion file of the input, when it has one.
+     */
+    private void openColumnStore() {
+        if (!useColumnStore || TSV || inputFile == null || formatColumn == null) {
+            return;
+        }
+        final String storeFilename = VCFColumnStoreReader.findColumnStore(inputFile.getPath());
+        if (storeFilename == null) {
+            return;
+        }
+        try {
+            columnStore = new VCFColumnStoreReader(storeFilename);
+        } catch (IOException e) {
+            LOG.warn("Could not read column store, parsing " + inputFile + " instead", e);
+            return;
+        }
+        fieldStoreColumn = new int[numberOfFields];
+        columnByIndex = new ColumnInfo[numberOfColumns];
+        for (final ColumnInfo column : columnList) {
+            if (column.columnIndex >= 0 && column.columnIndex < numberOfColumns) {
+                columnByIndex[column.columnIndex] = column;
+            }
+            for (final ColumnField field : column.fields) {
+                fieldStoreColumn[field.globalFieldIndex] = columnStore.findColumn(column.columnName, field.id);
+            }
+        }
+        formatStoreColumn = columnStore.findColumn("FORMAT", "VALUE");
+        // records are now returned by the column store:
+        hasNextDataLine = false;
+    }
+
+    private String storeFieldValue(final int globalFieldIndex) {
+        final int storeColumn = fieldStoreColumn[globalFieldIndex];
+        if (storeColumn != -1) {
+            return columnStore.getValue(storeColumn);
+        }
+        if (formatColumn.fields.size() == 1 && formatColumn.fields.find(globalFieldIndex) != null &&
+                formatStoreColumn != -1) {
+            // a single FORMAT field is the first token of the FORMAT column:
+            final String format = columnStore.getValue(formatStoreColumn);
+            final int end = format.indexOf(formatFieldSeparatorCharacter);
+            return end == -1 ? format : format.substring(0, end);
+        }
+        return "";
+    }
+
+    private final MutableString storeColumnValue = new MutableString();
+
+    /**
+     * Rebuild the text of a column from the values of its fields in the column store.
+     */
+    private CharSequence storeColumnValue(final int columnIndex) {
+        final ColumnInfo column = columnByIndex[columnIndex];
+        if (column.fields.size() == 1) {
+            return storeFieldValue(column.fields.iterator().next().globalFieldIndex);
+        }
+        if (column == formatColumn) {
+            return formatStoreColumn == -1 ? "" : columnStore.getValue(formatStoreColumn);
+        }
+        storeColumnValue.length(0);
+        if (column.useFormat) {
+            // sample values, in the order of the FORMAT column:
+            final String format = formatStoreColumn == -1 ? "" : columnStore.getValue(formatStoreColumn);
+            int tokenStart = 0;
+            while (tokenStart < format.length()) {
+                int tokenEnd = format.indexOf(formatFieldSeparatorCharacter, tokenStart);
+                if (tokenEnd == -1) {
+                    tokenEnd = format.length();
+                }
+                final ColumnField field = column.fields.find(format.substring(tokenStart, tokenEnd));
+                if (tokenStart > 0) {
+                    storeColumnValue.append(formatFieldSeparatorCharacter);
+                }
+                if (field != null) {
+                    storeColumnValue.append(storeFieldValue(field.globalFieldIndex));
+                }
+                tokenStart = tokenEnd + 1;
+            }
+        } else {
+            // id=value pairs, in the order of the column store:
+            for (int storeColumn = 0; storeColumn < columnStore.getNumberOfColumns(); storeColumn++) {
+                if (!column.columnName.equals(columnStore.getColumnName(storeColumn))) {
+                    continue;
+                }
+                final String value = columnStore.getValue(storeColumn);
+                if (value.length() == 0) {
+                    continue;
+                }
+                if (storeColumnValue.length() > 0) {
+                    storeColumnValue.append(fieldSeparatorCharacter);
+                }
+                final String fieldId = columnStore.getFieldId(storeColumn);
+                final ColumnField field = column.fields.find(fieldId);
+                storeColumnValue.append(fieldId);
+                if (field == null || field.type != ColumnType.Flag) {
+                    storeColumnValue.append('=');
+                    storeColumnValue.append(value);
+                }
+            }
+        }
+        return storeColumnValue.copy();
     }
 
     private boolean hasVcfMetaLine() {
@@ -511,84 +988,96 @@ public class VCFParser implements Closeable {
     }
 
     final IntArrayList previousColumnFieldIndices = new IntArrayList();
+    /**
+     * Maps each field found on the current line to the index of the column that contains it.
+     */
+    private int[] lineFieldIndexToColumnIndex;
+    /**
+     * Length of the "id=" prefix to skip when returning the value of each global field.
+     */
+    private int[] fieldIdPrefixLength;
 
     private void parseCurrentLine() {
         Arrays.fill(columnStarts, 0);
         Arrays.fill(columnEnds, 0);
-        Arrays.fill(fieldStarts, 0);
-        Arrays.fill(fieldEnds, 0);
         columnStarts[0] = 0;
+        fieldStarts[0] = 0;
         int columnIndex = 0;
         int fieldIndex = 0;
         lineLength = line.length();
-        final int[] lineFieldIndexToColumnIndex = new int[numberOfFields];
-        Arrays.fill(lineFieldIndexToColumnIndex, -1);
+        ++parsedLineCount;
         previousColumnFieldIndices.clear();
-        // determine the position of column and field delimiters:
-        final char[] chrs = line.toCharArray();
+        boolean lineEndsInSampleColumn = false;
+        // determine the position of column and field delimiters. Sample columns are only delimited here,
+        // their fields are located on demand by tokenizeSample():
+        final char[] chrs = line.array();
         for (int i = 0; i < lineLength; i++) {
             final char c = chrs[i];
             if (c == columnSeparatorCharacter) {
-
-                fieldPermutation[columnIndex] = columnIndex;
                 columnEnds[columnIndex] = i;
-
                 if (columnIndex + 1 < numberOfColumns) {
                     columnStarts[columnIndex + 1] = i + 1;
                 }
-                //lineFieldIndexToColumnIndex[columnIndex] = columnIndex;
             }
             if (c == columnSeparatorCharacter ||
                     c == fieldSeparatorCharacter ||
                     (columnIndex >= formatColumnIndex &&
                             c == formatFieldSeparatorCharacter)) {
 
-                if (TSV) {
+                fieldEnds[fieldIndex] = i;
 
-                    // there are no fields, only columns, the field separators do not apply
-
-                    fieldEnds[columnIndex] = columnEnds[columnIndex];
-                    fieldStarts[columnIndex] = columnStarts[columnIndex];
-                    fieldIndex = columnIndex;
-                    lineFieldIndexToColumnIndex[fieldIndex] = columnIndex;
-                } else {
-
-                    fieldEnds[fieldIndex] = i;
-
-                    if (fieldIndex + 1 < numberOfFields) {
-                        fieldStarts[fieldIndex + 1] = i + 1;
-                    }
-
-                    previousColumnFieldIndices.add(fieldIndex);
-                    fieldIndex++;
-                    fieldIndex = Math.min(fieldEnds.length - 1, fieldIndex);
-                    fieldIndex = Math.min(fieldStarts.length - 1, fieldIndex);
+                if (fieldIndex + 1 < numberOfFields) {
+                    fieldStarts[fieldIndex + 1] = i + 1;
                 }
+
+                previousColumnFieldIndices.add(fieldIndex);
+                fieldIndex++;
+                fieldIndex = Math.min(fieldEnds.length - 1, fieldIndex);
+                fieldIndex = Math.min(fieldStarts.length - 1, fieldIndex);
             }
             if (c == columnSeparatorCharacter) {
-                if (TSV) {
-                    lineFieldIndexToColumnIndex[fieldIndex] = columnIndex;
-                }
                 push(columnIndex, lineFieldIndexToColumnIndex, previousColumnFieldIndices);
                 columnIndex++;
+                while (sampleColumns != null && columnIndex < numberOfColumns && sampleColumns[columnIndex]) {
+                    // skip over the sample column, only recording where it starts and ends:
+                    int j = i + 1;
+                    while (j < lineLength && chrs[j] != columnSeparatorCharacter) {
+                        ++j;
+                    }
+                    columnEnds[columnIndex] = j;
+                    if (j == lineLength) {
+                        lineEndsInSampleColumn = true;
+                        break;
+                    }
+                    if (columnIndex + 1 < numberOfColumns) {
+                        columnStarts[columnIndex + 1] = j + 1;
+                    }
+                    fieldStarts[fieldIndex] = j + 1;
+                    columnIndex++;
+                    i = j;
+                }
+                if (lineEndsInSampleColumn) {
+                    break;
+                }
             }
 
         }
-        int numberOfFieldsOnLine = Math.min(fieldIndex, fieldEnds.length - 1);
-        int numberOfColumnsOnLine = Math.min(columnIndex, columnEnds.length - 1);
-        columnStarts[0] = 0;
-        columnEnds[numberOfColumnsOnLine - (TSV ? 1 : 0)] = line.length();
-        fieldStarts[0] = 0;
-        fieldEnds[numberOfFieldsOnLine - (TSV ? 1 : 0)] = line.length();
-        previousColumnFieldIndices.add(fieldIndex);
-        push(columnIndex, lineFieldIndexToColumnIndex, previousColumnFieldIndices);
-
+        final int numberOfFieldsOnLine;
+        if (lineEndsInSampleColumn) {
+            numberOfFieldsOnLine = fieldIndex - 1;
+        } else {
+            numberOfFieldsOnLine = Math.min(fieldIndex, fieldEnds.length - 1);
+            final int numberOfColumnsOnLine = Math.min(columnIndex, columnEnds.length - 1);
+            columnEnds[numberOfColumnsOnLine] = lineLength;
+            fieldEnds[numberOfFieldsOnLine] = lineLength;
+            previousColumnFieldIndices.add(fieldIndex);
+            push(columnIndex, lineFieldIndexToColumnIndex, previousColumnFieldIndices);
+        }
+        if (sampleColumns != null) {
+            updateFormatTokenIndices();
+        }
         if (cacheFieldPermutation && computedFieldPermutation) return;
         Arrays.fill(fieldPermutation, -1);
-        for (ColumnInfo c : columns) {
-            c.formatIndex = 0;
-        }
-
 
         // determine the fieldPermutation for each possible field:
         for (int lineFieldIndex = 0; lineFieldIndex <= numberOfFieldsOnLine; lineFieldIndex++) {
@@ -615,13 +1104,6 @@ public class VCFParser implements Closeable {
 
             }
 
-            final int formatColumnIndex = TSV ? -1 : formatColumn.columnIndex;
-            final int startFormatColumn = TSV ? 0 : columnStarts[formatColumnIndex];
-            final int endFormatColumn = TSV ? 0 : columnEnds[formatColumnIndex];
-
-
-            final String[] formatTokens = split(line, formatFieldSeparatorCharacter, startFormatColumn, endFormatColumn);
-
             for (int fi = 0; fi < fields.size(); ++fi) {
 
                 final ColumnField f = fields.get(fi);
@@ -633,6 +1115,7 @@ public class VCFParser implements Closeable {
                 if (colMaxGlobalFieldIndex == colMinGlobalFieldIndex) {
                     // This column has only one field.
                     fieldPermutation[f.globalFieldIndex] = lineFieldIndex;
+                    fieldIdPrefixLength[f.globalFieldIndex] = 0;
                     break;
                 } else {
                     // find the column field f whose id matches the character span we are looking at :
@@ -645,7 +1128,7 @@ public class VCFParser implements Closeable {
                             break;
                         }
 
-                        final char linechar = line.charAt(j);
+                        final char linechar = chrs[j];
 
                         if (id.charAt(i) != linechar) {
                             // found mimatch with field id, not this field.
@@ -656,31 +1139,13 @@ public class VCFParser implements Closeable {
                         j++;
                     }
 
-                    if (matchLength == id.length() && line.charAt(j) == '=' ||
+                    if (matchLength == id.length() && j < lineLength && chrs[j] == '=' ||
                             (j == end && f.type == ColumnType.Flag)) {
                         // found the correct field.
-                        /*  System.out.printf("Assigning global %s %d -> %d for field %s%n",
-                                f.id, globalFieldIndex, lineFieldIndex, line.subSequence(start, end));
-                        */
                         fieldPermutation[f.globalFieldIndex] = lineFieldIndex;
-                        if (f.type != ColumnType.Flag) {
-                            fieldStarts[lineFieldIndex] += f.id.length() + 1; // remove id= from value;
-                            //fieldStarts[lineFieldIndex]=Math.min(fieldStarts[lineFieldIndex],fieldEnds[lineFieldIndex]);
-                        }
+                        // remove id= from value:
+                        fieldIdPrefixLength[f.globalFieldIndex] = f.type != ColumnType.Flag ? f.id.length() + 1 : 0;
                         break;
-                    } else {
-
-                        if (column.useFormat && column.formatIndex < formatTokens.length) {
-
-                            if (f.id.equals(formatTokens[column.formatIndex])) {
-                                /*    System.out.printf("Assigning FORMAT global %s %d -> %d for field %s%n",
-                                          f.id, f.globalFieldIndex, lineFieldIndex, line.subSequence(start, end));
-                                */
-                                fieldPermutation[f.globalFieldIndex] = lineFieldIndex;
-                                column.formatIndex++;
-                                break;
-                            }
-                        }
                     }
                 }
             }
@@ -688,40 +1153,189 @@ public class VCFParser implements Closeable {
         computedFieldPermutation = true;
     }
 
-    String[] formatSplit = null;
-
-    private String[] split(final MutableString line, final char formatFieldSeparatorCharacter,
-                           final int startFormatColumn, final int endFormatColumn) {
-        if (cacheFieldPermutation && formatSplit != null) {
-            return formatSplit;
-        } else {
-            final MutableString formatSpan = line.substring(startFormatColumn, endFormatColumn);
+    /**
+     * Indicates which columns hold sample values described by the FORMAT column, or null when the file has no FORMAT
+     * column.
+     */
+    private boolean[] sampleColumns;
+    /**
+     * Index of the column holding each global field when the field is a sample field, -1 otherwise.
+     */
+    private int[] fieldSampleColumn;
+    /**
+     * For each sample field, index of its id in formatIds, or FIRST_FORMAT_TOKEN when the sample column has a
+     * single field.
+     */
+    private int[] fieldFormatSlot;
+    private static final int FIRST_FORMAT_TOKEN = -2;
+    /**
+     * Ids of the fields declared for the FORMAT column.
+     */
+    private String[] formatIds;
+    /**
+     * Position of each FORMAT id among the ':' separated tokens of the current line, -1 when absent from the line.
+     */
+    private int[] formatIdTokenIndex;
+    /**
+     * FORMAT column of the line formatIdTokenIndex was computed for.
+     */
+    private final MutableString previousFormat = new MutableString();
+    private boolean formatTokenIndicesComputed;
+    private long parsedLineCount;
+    /**
+     * Start and end of the ':' separated tokens of each sample column, for the line stamped in sampleTokenizedLine.
+     */
+    private int[][] sampleTokenStarts;
+    private int[][] sampleTokenEnds;
+    private int[] sampleTokenCount;
+    private long[] sampleTokenizedLine;
 
-            int fieldCount = 0;
+    /**
+     * Prepare the structures used to locate sample fields lazily. Sample fields are matched to the FORMAT ids of
+     * each line instead of being assigned a field index when the line is parsed.
+     */
+    private void defineSampleColumns() {
+        sampleColumns = new boolean[numberOfColumns];
+        sampleTokenStarts = new int[numberOfColumns][];
+        sampleTokenEnds = new int[numberOfColumns][];
+        sampleTokenCount = new int[numberOfColumns];
+        sampleTokenizedLine = new long[numberOfColumns];
+        Arrays.fill(sampleTokenizedLine, -1);
+        fieldSampleColumn = new int[numberOfFields];
+        fieldFormatSlot = new int[numberOfFields];
+        Arrays.fill(fieldSampleColumn, -1);
+        formatIds = new String[formatColumn.fields.size()];
+        int i = 0;
+        for (final ColumnField field : formatColumn.fields) {
+            formatIds[i++] = field.id;
+        }
+        formatIdTokenIndex = new int[formatIds.length];
+        for (final ColumnInfo column : columnList) {
+            final int columnIndex = column.columnIndex;
+            if (!column.useFormat || columnIndex <= formatColumnIndex || columnIndex >= numberOfColumns) {
+                continue;
+            }
+            sampleColumns[columnIndex] = true;
+            sampleTokenStarts[columnIndex] = new int[formatIds.length + 1];
+            sampleTokenEnds[columnIndex] = new int[formatIds.length + 1];
+            for (final ColumnField field : column.fields) {
+                fieldSampleColumn[field.globalFieldIndex] = columnIndex;
+                fieldFormatSlot[field.globalFieldIndex] = column.fields.size() == 1 ? FIRST_FORMAT_TOKEN :
+                        Arrays.asList(formatIds).indexOf(field.id);
+            }
+        }
+    }
 
-            formatSpan.append(formatFieldSeparatorCharacter);
-            final int length = formatSpan.length();
-            for (int i = 0; i < length; i++) {
-                if (formatSpan.charAt(i) == formatFieldSeparatorCharacter) {
-                    ++fieldCount;
+    /**
+     * Determine where each FORMAT id occurs on the current line. Consecutive lines usually share the same FORMAT
+     * column, in which case the previous result is kept.
+     */
+    private void updateFormatTokenIndices() {
+        final char[] chrs = line.array();
+        final int start = columnStarts[formatColumnIndex];
+        final int end = columnEnds[formatColumnIndex];
+        if (formatTokenIndicesComputed && regionEquals(previousFormat, chrs, start, end)) {
+            return;
+        }
+        Arrays.fill(formatIdTokenIndex, -1);
+        int tokenIndex = 0;
+        int tokenStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || chrs[i] == formatFieldSeparatorCharacter) {
+                for (int slot = 0; slot < formatIds.length; slot++) {
+                    if (formatIdTokenIndex[slot] == -1 && regionEquals(formatIds[slot], chrs, tokenStart, i)) {
+                        formatIdTokenIndex[slot] = tokenIndex;
+                        break;
+                    }
                 }
+                ++tokenIndex;
+                tokenStart = i + 1;
+            }
+        }
+        previousFormat.length(0);
+        previousFormat.append(chrs, start, end - start);
+        formatTokenIndicesComputed = true;
+    }
+
+    private static boolean regionEquals(final CharSequence s, final char[] chrs, final int start, final int end) {
+        if (s.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i - start) != chrs[i]) {
+                return false;
             }
-            final String[] result = new String[fieldCount];
-            final MutableString value = new MutableString();
-            int last = 0;
-            int j = 0;
-            for (int i = 0; i < length; i++) {
-                if (formatSpan.charAt(i) == formatFieldSeparatorCharacter && i > last) {
-                    value.append(formatSpan.substring(last, i));
-                    last = i + 1;
-                    result[j] = value.toString();
-                    value.setLength(0);
-                    ++j;
+        }
+        return true;
+    }
+
+    /**
+     * Locate the ':' separated tokens of a sample column, once per line.
+     *
+     * @param columnIndex index of the sample column.
+     */
+    private void tokenizeSample(final int columnIndex) {
+        if (sampleTokenizedLine[columnIndex] == parsedLineCount) {
+            return;
+        }
+        sampleTokenizedLine[columnIndex] = parsedLineCount;
+        int[] starts = sampleTokenStarts[columnIndex];
+        int[] ends = sampleTokenEnds[columnIndex];
+        final char[] chrs = line.array();
+        final int end = columnEnds[columnIndex];
+        int count = 0;
+        int tokenStart = columnStarts[columnIndex];
+        for (int i = tokenStart; i <= end; i++) {
+            if (i == end || chrs[i] == formatFieldSeparatorCharacter) {
+                if (count == starts.length) {
+                    starts = sampleTokenStarts[columnIndex] = IntArrays.grow(starts, count + 1);
+                    ends = sampleTokenEnds[columnIndex] = IntArrays.grow(ends, count + 1);
                 }
+                starts[count] = tokenStart;
+                ends[count] = i;
+                ++count;
+                tokenStart = i + 1;
+            }
+        }
+        sampleTokenCount[columnIndex] = count;
+    }
+
+    private int valueStart;
+    private int valueEnd;
+
+    /**
+     * Find the value of a field on the current line. Sets valueStart and valueEnd when the field is present.
+     *
+     * @param globalFieldIndex a global index that runs from zero to countAllFields()
+     * @return True when the field is present on the current line, false otherwise.
+     */
+    private boolean locateField(final int globalFieldIndex) {
+        final int sampleColumn = fieldSampleColumn == null ? -1 : fieldSampleColumn[globalFieldIndex];
+        if (sampleColumn != -1) {
+            final int slot = fieldFormatSlot[globalFieldIndex];
+            final int tokenIndex = slot == FIRST_FORMAT_TOKEN ? 0 : slot == -1 ? -1 : formatIdTokenIndex[slot];
+            if (tokenIndex == -1) {
+                return false;
             }
-            formatSplit = result;
-            return result;
+            tokenizeSample(sampleColumn);
+            if (tokenIndex >= sampleTokenCount[sampleColumn]) {
+                return false;
+            }
+            valueStart = sampleTokenStarts[sampleColumn][tokenIndex];
+            valueEnd = sampleTokenEnds[sampleColumn][tokenIndex];
+            return true;
         }
+        final int lineFieldIndex = fieldPermutation[globalFieldIndex];
+        if (lineFieldIndex == -1) {
+            // missing field in this row;
+            return false;
+        }
+        valueStart = fieldStarts[lineFieldIndex];
+        valueEnd = fieldEnds[lineFieldIndex];
+        if (!TSV) {
+            valueStart = Math.min(valueStart + fieldIdPrefixLength[globalFieldIndex], valueEnd);
+        }
+        return true;
     }
 
     //     System.out.println("ned");
@@ -825,12 +1439,17 @@ public class VCFParser implements Closeable {
         fieldStarts = new int[numberOfFields];
         fieldEnds = new int[numberOfFields];
         fieldPermutation = new int[numberOfFields];
+        fieldIdPrefixLength = new int[numberOfFields];
+        lineFieldIndexToColumnIndex = new int[numberOfFields];
 
         columnList.addAll(columns);
         Collections.sort(columnList, COLUMN_SORT);
         for (final ColumnInfo column : columnList) {
             fieldList.addAll(column.fields);
         }
+        if (!TSV && formatColumn != null) {
+            defineSampleColumns();
+        }
     }
 
 
@@ -1010,6 +1629,9 @@ public class VCFParser implements Closeable {
      */
     @Override
     public void close() throws IOException {
+        if (columnStore != null) {
+            columnStore.close();
+        }
         if (bufferedReader != null) {
             IOUtils.closeQuietly(bufferedReader);
 
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.reads;
+
+import com.google.protobuf.ByteString;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.booleans.BooleanArrays;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Digests of fixed-length reads, to find the reads that match a reference sequence exactly. Reads are packed with
+ * two bits per base. The digest of a read is a 64-bit polynomial hash of its bases, which a {@link ReferenceScanner}
+ * rolls along a reference sequence on both strands at once. Once all the reads have been added, {@link #build(int)}
+ * indexes the reads by digest in an open-addressing table, on several threads. Reads that contain bases other than
+ * A, C, G and T are not indexed.
+ *
+ * @see SequenceDigests
+ */
+public class KmerDigests {
+    /**
+     * Base of the polynomial hash. The base is odd, so that a reverse strand digest can be rolled by dividing by the
+     * base.
+     */
+    private static final long BASE = 0x9E3779B97F4A7C15L;
+    private static final long INVERSE_BASE;
+
+    static {
+        // Newton iterations double the number of correct bits of the inverse modulo 2^64:
+        long inverse = BASE;
+        for (int i = 0; i < 5; i++) {
+            inverse *= 2 - BASE * inverse;
+        }
+        INVERSE_BASE = inverse;
+    }
+
+    private final int readLength;
+    private final int wordsPerRead;
+    /**
+     * powers[i] is BASE^i.
+     */
+    private final long[] powers;
+    private long[] packedReads = LongArrays.EMPTY_ARRAY;
+    private boolean[] indexed = BooleanArrays.EMPTY_ARRAY;
+    /**
+     * One more than the largest read index added.
+     */
+    private int numReads;
+
+    private int shardBits;
+    private int shardMask;
+    private long[] keys;
+    /**
+     * Index in readIndices of the first read of a slot.
+     */
+    private int[] starts;
+    /**
+     * Number of reads of a slot, zero when the slot is empty.
+     */
+    private int[] counts;
+    private int[] readIndices;
+
+    public KmerDigests(final int readLength) {
+        super();
+        this.readLength = readLength;
+        wordsPerRead = (readLength + 31) / 32;
+        powers = new long[readLength];
+        long power = 1;
+        for (int i = 0; i < readLength; i++) {
+            powers[i] = power;
+            power *= BASE;
+        }
+    }
+
+    public int getReadLength() {
+        return readLength;
+    }
+
+    /**
+     * Return the 2-bit code of a base, or -1 when the base is not one of A, C, G or T. The complement of a base has
+     * code 3 - code.
+     */
+    private static int code(final byte base) {
+        switch (base) {
+            case 'A':
+                return 0;
+            case 'C':
+                return 1;
+            case 'G':
+                return 2;
+            case 'T':
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Add a read.
+     *
+     * @param readIndex index of the read.
+     * @param sequence  the bases of the read, readLength long.
+     */
+    public void add(final int readIndex, final ByteString sequence) {
+        final int offset = allocate(readIndex);
+        for (int i = 0; i < readLength; i++) {
+            if (!pack(offset, i, code(sequence.byteAt(i)))) {
+                return;
+            }
+        }
+        indexed[readIndex] = true;
+    }
+
+    /**
+     * Add a read.
+     *
+     * @param readIndex index of the read.
+     * @param sequence  the bases of the read, readLength long from offset.
+     * @param offset    position of the first base of the read in sequence.
+     */
+    public void add(final int readIndex, final byte[] sequence, final int offset) {
+        final int wordOffset = allocate(readIndex);
+        for (int i = 0; i < readLength; i++) {
+            if (!pack(wordOffset, i, code(sequence[offset + i]))) {
+                return;
+            }
+        }
+        indexed[readIndex] = true;
+    }
+
+    private int allocate(final int readIndex) {
+        if (readIndex >= numReads) {
+            numReads = readIndex + 1;
+            indexed = BooleanArrays.grow(indexed, numReads);
+            packedReads = LongArrays.grow(packedReads, numReads * wordsPerRead);
+        }
+        final int offset = readIndex * wordsPerRead;
+        for (int w = 0; w < wordsPerRead; w++) {
+            packedReads[offset + w] = 0;
+        }
+        indexed[readIndex] = false;
+        return offset;
+    }
+
+    private boolean pack(final int offset, final int i, final int code) {
+        if (code < 0) {
+            return false;
+        }
+        packedReads[offset + (i >>> 5)] |= (long) code << ((i & 31) << 1);
+        return true;
+    }
+
+    private long digest(final int readIndex) {
+        final int offset = readIndex * wordsPerRead;
+        long digest = 0;
+        for (int i = 0; i < readLength; i++) {
+            digest = digest * BASE + ((packedReads[offset + (i >>> 5)] >>> ((i & 31) << 1)) & 3);
+        }
+        return digest;
+    }
+
+    private int shard(final long hash) {
+        return shardBits == 0 ? 0 : (int) (hash >>> (64 - shardBits));
+    }
+
+    /**
+     * Index the reads added so far by digest. Reads are hashed and bucketed by shard, then each shard of the table
+     * is built from its buckets, on numThreads threads.
+     *
+     * @param numThreads number of threads used to build the table.
+     */
+    public void build(final int numThreads) {
+        final int threads = Math.max(1, numThreads);
+        shardBits = 0;
+        while (1 << shardBits < threads) {
+            shardBits++;
+        }
+        final int numShards = 1 << shardBits;
+        final long[] digests = new long[numReads];
+        // the reads of each shard, in one bucket per hashing thread, and in increasing read index order:
+        final IntArrayList[][] buckets = new IntArrayList[numShards][threads];
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final ObjectList<Callable<Void>> hashing = new ObjectArrayList<Callable<Void>>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                final int first = (int) ((long) numReads * t / threads);
+                final int last = (int) ((long) numReads * (t + 1) / threads);
+                for (int shard = 0; shard < numShards; shard++) {
+                    buckets[shard][thread] = new IntArrayList((last - first) / numShards + 1);
+                }
+                hashing.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int readIndex = first; readIndex < last; readIndex++) {
+                            if (indexed[readIndex]) {
+                                digests[readIndex] = digest(readIndex);
+                                buckets[shard(HashCommon.murmurHash3(digests[readIndex]))][thread].add(readIndex);
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+            invokeAll(executor, hashing);
+
+            final int[] valueOffsets = new int[numShards + 1];
+            int maxShardSize = 0;
+            for (int shard = 0; shard < numShards; shard++) {
+                int shardSize = 0;
+                for (int t = 0; t < threads; t++) {
+                    shardSize += buckets[shard][t].size();
+                }
+                maxShardSize = Math.max(maxShardSize, shardSize);
+                valueOffsets[shard + 1] = valueOffsets[shard] + shardSize;
+            }
+            final int shardCapacity = HashCommon.arraySize(Math.max(1, maxShardSize), 0.75f);
+            shardMask = shardCapacity - 1;
+            keys = new long[numShards * shardCapacity];
+            starts = new int[keys.length];
+            counts = new int[keys.length];
+            readIndices = new int[valueOffsets[numShards]];
+
+            final ObjectList<Callable<Void>> filling = new ObjectArrayList<Callable<Void>>();
+            for (int s = 0; s < numShards; s++) {
+                final int shard = s;
+                filling.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        fillShard(shard, shardCapacity, valueOffsets[shard], digests, buckets[shard]);
+                        return null;
+                    }
+                });
+            }
+            invokeAll(executor, filling);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Insert the reads of a shard in the table. Each thread owns the slots of its shard, and only visits the reads
+     * bucketed in the shard.
+     */
+    private void fillShard(final int shard, final int shardCapacity, final int valueOffset, final long[] digests,
+                           final IntArrayList[] buckets) {
+        final int shardStart = shard * shardCapacity;
+        for (final IntArrayList bucket : buckets) {
+            final int[] reads = bucket.elements();
+            for (int i = 0; i < bucket.size(); i++) {
+                final long digest = digests[reads[i]];
+                final int slot = probe(digest, HashCommon.murmurHash3(digest));
+                keys[slot] = digest;
+                counts[slot]++;
+            }
+        }
+        // starts point to the end of the slots, then reads are stored backward, in increasing read index order:
+        int offset = valueOffset;
+        for (int slot = shardStart; slot < shardStart + shardCapacity; slot++) {
+            offset += counts[slot];
+            starts[slot] = offset;
+        }
+        for (int b = buckets.length - 1; b >= 0; b--) {
+            final int[] reads = buckets[b].elements();
+            for (int i = buckets[b].size() - 1; i >= 0; i--) {
+                final long digest = digests[reads[i]];
+                readIndices[--starts[probe(digest, HashCommon.murmurHash3(digest))]] = reads[i];
+            }
+        }
+    }
+
+    /**
+     * Return the slot of a digest, or the empty slot where the digest would be inserted.
+     */
+    private int probe(final long digest, final long hash) {
+        final int shardStart = shard(hash) * (shardMask + 1);
+        int position = (int) hash & shardMask;
+        while (counts[shardStart + position] != 0 && keys[shardStart + position] != digest) {
+            position = (position + 1) & shardMask;
+        }
+        return shardStart + position;
+    }
+
+    private static void invokeAll(final ExecutorService executor, final ObjectList<Callable<Void>> tasks) {
+        try {
+            for (final Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GobyRuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new GobyRuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Find the reads that produce a digest. The candidate reads of the slot are stored from
+     * {@link #getCandidatesStart(int)} to {@link #getCandidatesEnd(int)}, excluded.
+     *
+     * @param digest a digest produced by a {@link ReferenceScanner}.
+     * @return the slot of the digest, or -1 when no read produces the digest.
+     */
+    public final int find(final long digest) {
+        final int slot = probe(digest, HashCommon.murmurHash3(digest));
+        return counts[slot] == 0 ? -1 : slot;
+    }
+
+    public final int getCandidatesStart(final int slot) {
+        return starts[slot];
+    }
+
+    public final int getCandidatesEnd(final int slot) {
+        return starts[slot] + counts[slot];
+    }
+
+    /**
+     * Return a candidate read index, or -1 when the candidate was removed.
+     *
+     * @param candidate index of the candidate, between the start and end of its slot.
+     */
+    public final int getReadIndex(final int candidate) {
+        return readIndices[candidate];
+    }
+
+    /**
+     * Remove a candidate, so that the read is no longer found with this digest.
+     *
+     * @param candidate index of the candidate, between the start and end of its slot.
+     */
+    public final void remove(final int candidate) {
+        readIndices[candidate] = -1;
+    }
+
+    /**
+     * Start scanning a reference sequence.
+     *
+     * @param sequence the reference sequence.
+     * @return a scanner positioned before the first window of the sequence.
+     */
+    public ReferenceScanner scan(final byte[] sequence) {
+        return new ReferenceScanner(sequence);
+    }
+
+    /**
+     * Rolls the digests of the windows of a reference sequence, on both strands, and confirms the matches of
+     * candidate reads. Windows that contain bases other than A, C, G and T are skipped.
+     */
+    public final class ReferenceScanner {
+        private final byte[] sequence;
+        /**
+         * The reference, packed with two bits per base.
+         */
+        private final long[] packedForward;
+        /**
+         * The reverse complement of the reference, packed with two bits per base.
+         */
+        private final long[] packedReverse;
+        private int next;
+        /**
+         * Number of bases A, C, G or T before next.
+         */
+        private int run;
+        private long forwardDigest;
+        private long reverseDigest;
+
+        private ReferenceScanner(final byte[] sequence) {
+            super();
+            this.sequence = sequence;
+            final int length = sequence.length;
+            packedForward = new long[(length + 31) / 32];
+            packedReverse = new long[packedForward.length];
+            for (int i = 0; i < length; i++) {
+                final int code = code(sequence[i]);
+                if (code >= 0) {
+                    packedForward[i >>> 5] |= (long) code << ((i & 31) << 1);
+                    final int j = length - 1 - i;
+                    packedReverse[j >>> 5] |= (long) (3 - code) << ((j & 31) << 1);
+                }
+            }
+        }
+
+        /**
+         * Move to the next window.
+         *
+         * @return false when the end of the sequence was reached.
+         */
+        public boolean next() {
+            while (next < sequence.length) {
+                final int code = code(sequence[next++]);
+                if (code < 0) {
+                    run = 0;
+                    forwardDigest = 0;
+                    reverseDigest = 0;
+                } else if (run < readLength) {
+                    forwardDigest = forwardDigest * BASE + code;
+                    reverseDigest += (3 - code) * powers[run];
+                    if (++run == readLength) {
+                        return true;
+                    }
+                } else {
+                    final int out = code(sequence[next - 1 - readLength]);
+                    forwardDigest = (forwardDigest - out * powers[readLength - 1]) * BASE + code;
+                    reverseDigest = (reverseDigest - (3 - out)) * INVERSE_BASE + (3 - code) * powers[readLength - 1];
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Return the position of the window on the reference.
+         */
+        public int getPosition() {
+            return next - readLength;
+        }
+
+        /**
+         * Return the digest of the window, which reads matching the forward strand produce.
+         */
+        public long getForwardDigest() {
+            return forwardDigest;
+        }
+
+        /**
+         * Return the digest of the reverse complement of the window, which reads matching the reverse strand
+         * produce.
+         */
+        public long getReverseDigest() {
+            return reverseDigest;
+        }
+
+        /**
+         * Return true when a read is identical to the window.
+         */
+        public boolean matchesForwardStrand(final int readIndex) {
+            return matches(readIndex, packedForward, getPosition());
+        }
+
+        /**
+         * Return true when a read is identical to the reverse complement of the window.
+         */
+        public boolean matchesReverseStrand(final int readIndex) {
+            return matches(readIndex, packedReverse, sequence.length - next);
+        }
+
+        private boolean matches(final int readIndex, final long[] packed, final int position) {
+            final int offset = readIndex * wordsPerRead;
+            for (int w = 0; w < wordsPerRead; w++) {
+                final long bit = 2L * (position + 32L * w);
+                final int index = (int) (bit >>> 6);
+                final int shift = (int) (bit & 63);
+                long bases = packed[index] >>> shift;
+                if (shift != 0 && index + 1 < packed.length) {
+                    bases |= packed[index + 1] << (64 - shift);
+                }
+                final int remaining = readLength - 32 * w;
+                if (remaining < 32) {
+                    bases &= (1L << (remaining << 1)) - 1;
+                }
+                if (bases != packedReads[offset + w]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.reads;
+
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Scans a compact-reads file on several threads. The file is split in slices, each read by its own
+ * {@link ReadsChunkReader}, and the chunks of a slice are processed by one thread with a state of the slice.
+ * States are returned in the order of the file, so that they can be merged as if the file had been read by one
+ * thread.
+ *
+ * @param <T> type of the state of a slice.
+ */
+public abstract class ParallelReadsChunkScanner<T> {
+    private final int numThreads;
+    private final ReadsChunkReader.Field[] projection;
+
+    /**
+     * Create a scanner.
+     *
+     * @param numThreads number of threads, and of slices of the file.
+     * @param projection the fields of the reads that are decoded.
+     */
+    protected ParallelReadsChunkScanner(final int numThreads, final ReadsChunkReader.Field... projection) {
+        super();
+        this.numThreads = Math.max(1, numThreads);
+        this.projection = projection;
+    }
+
+    /**
+     * Create the state of a slice.
+     */
+    protected abstract T newState();
+
+    /**
+     * Process a chunk of a slice. This method is called concurrently for different slices.
+     *
+     * @param state the state of the slice.
+     * @param chunk the chunk, which is overwritten once this method returns.
+     */
+    protected abstract void process(T state, ReadsChunk chunk);
+
+    /**
+     * Scan a file.
+     *
+     * @param filename name of the compact-reads file.
+     * @return the states of the slices of the file, in the order of the file.
+     * @throws IOException if the file cannot be read.
+     */
+    public ObjectList<T> scan(final String filename) throws IOException {
+        final long length = new File(filename).length();
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            final ObjectList<Future<T>> slices = new ObjectArrayList<Future<T>>();
+            for (int i = 0; i < numThreads; i++) {
+                final long start = length * i / numThreads;
+                final long end = length * (i + 1) / numThreads;
+                slices.add(executor.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws IOException {
+                        return scan(filename, start, end);
+                    }
+                }));
+            }
+            final ObjectList<T> states = new ObjectArrayList<T>();
+            for (final Future<T> slice : slices) {
+                states.add(slice.get());
+            }
+            return states;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GobyRuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new GobyRuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private T scan(final String filename, final long start, final long end) throws IOException {
+        final T state = newState();
+        final ReadsChunkReader reader = new ReadsChunkReader(start, end, filename);
+        try {
+            reader.setProjection(projection);
+            while (reader.nextChunk()) {
+                process(state, reader.getChunk());
+            }
+        } finally {
+            reader.close();
+        }
+        return state;
+    }
+}
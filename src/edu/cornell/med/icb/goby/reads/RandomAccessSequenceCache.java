@@ -189,6 +189,7 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
         compressedData = (ObjectArrayList<byte[]>) BinIO.loadObject(basename + ".bases");
         referenceIgnoreLists = (ObjectArrayList<LongArrayBitVector>) BinIO.loadObject(basename + ".ignore");
         referenceNameMap = (Object2IntMap<String>) BinIO.loadObject(basename + ".names");
+        this.basename = basename;
         for (final String name : referenceNameMap.keySet()) {
             indexToNameMap.put(referenceNameMap.get(name), name);
             updateSliceIndices(referenceNameMap.get(name));
@@ -254,9 +255,20 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
 
     @Override
     public void getRange(final int referenceIndex, final int position, final int length, final MutableString bases) {
-        bases.setLength(0);
-        for (int i = position; i < position + length; i++) {
-            bases.append(get(referenceIndex, i));
+        // look up the reference data once for the whole range, rather than once per base as get() does:
+        final int maxSize = sizes.getInt(referenceIndex);
+        final LongArrayBitVector ignoreList = referenceIgnoreLists.get(referenceIndex);
+        final long ignoreListSize = ignoreList.length();
+        final byte[] bytes = compressedData.get(referenceIndex);
+        bases.setLength(length);
+        final char[] chars = bases.array();
+        for (int i = 0; i < length; i++) {
+            final int p = position + i;
+            if (p >= maxSize || p < ignoreListSize && ignoreList.get(p)) {
+                chars[i] = 'N';
+            } else {
+                chars[i] = decode(bytes, p, maxSize);
+            }
         }
     }
 
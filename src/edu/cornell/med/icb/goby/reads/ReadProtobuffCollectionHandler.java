@@ -56,11 +56,23 @@ public class ReadProtobuffCollectionHandler implements ProtobuffCollectionHandle
         return readCollection;
     }
 
+    /**
+     * Restore sequences and quality scores compressed by {@link edu.cornell.med.icb.goby.compression.HybridReadsChunkCodec}.
+     * Other hybrid codecs leave the compressed bytes empty for reads, in which case the collection is returned as is.
+     */
     @Override
-    public Message decompressCollection(Message reducedProtoBuff, byte[] compressedBytes) {
-        return reducedProtoBuff;
+    public Message decompressCollection(Message reducedProtoBuff, byte[] compressedBytes) throws IOException {
+        if (compressedBytes.length == 0) {
+            return reducedProtoBuff;
+        }
+        if (compressor == null) {
+            compressor = new SequenceQualityCompressor();
+        }
+        return compressor.decompress((Reads.ReadCollection) reducedProtoBuff, compressedBytes);
     }
 
+    private SequenceQualityCompressor compressor;
+
     @Override
     public void setUseTemplateCompression(boolean useTemplateCompression) {
 
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.reads;
+
+import com.google.protobuf.ByteString;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.lang.MutableString;
+
+/**
+ * A chunk of reads stored column by column in primitive arrays. Instances are filled by
+ * {@link ReadsChunkReader} and are reused from one chunk to the next, so that iterating over
+ * a compact-reads file does not allocate objects per read. Values of read i for a byte field
+ * are found in <code>column.getBytes()</code> from <code>column.offset(i)</code> (inclusive) to
+ * <code>column.offset(i)+column.length(i)</code> (exclusive). Fields that were not projected by
+ * the reader, or that were absent from a read, have length zero.
+ */
+public class ReadsChunk {
+    private int numReads;
+    private int[] readIndices = IntArrays.EMPTY_ARRAY;
+    private int[] barcodeIndices = IntArrays.EMPTY_ARRAY;
+    private int[] readLengths = IntArrays.EMPTY_ARRAY;
+    private int[] readLengthsPair = IntArrays.EMPTY_ARRAY;
+
+    private final ByteColumn sequences = new ByteColumn();
+    private final ByteColumn qualityScores = new ByteColumn();
+    private final ByteColumn sequencesPair = new ByteColumn();
+    private final ByteColumn qualityScoresPair = new ByteColumn();
+    private final ByteColumn readIdentifiers = new ByteColumn();
+    private final ByteColumn descriptions = new ByteColumn();
+
+    /**
+     * Return the number of reads in this chunk.
+     *
+     * @return the number of reads in this chunk.
+     */
+    public int size() {
+        return numReads;
+    }
+
+    /**
+     * Return the read index of the i-th read of this chunk.
+     *
+     * @param i index of the read in this chunk.
+     * @return the read index stored in the compact-reads file.
+     */
+    public int getReadIndex(final int i) {
+        return readIndices[i];
+    }
+
+    /**
+     * Return the barcode index of the i-th read of this chunk, or -1 when the read has no barcode.
+     *
+     * @param i index of the read in this chunk.
+     * @return barcode index or -1.
+     */
+    public int getBarcodeIndex(final int i) {
+        return barcodeIndices[i];
+    }
+
+    /**
+     * Return the length of the i-th read of this chunk.
+     *
+     * @param i index of the read in this chunk.
+     * @return read length
+     */
+    public int getReadLength(final int i) {
+        return readLengths[i];
+    }
+
+    /**
+     * Return the length of the second sequence of the pair for the i-th read of this chunk.
+     *
+     * @param i index of the read in this chunk.
+     * @return pair read length, or zero if the read is not paired.
+     */
+    public int getReadLengthPair(final int i) {
+        return readLengthsPair[i];
+    }
+
+    public ByteColumn getSequences() {
+        return sequences;
+    }
+
+    public ByteColumn getQualityScores() {
+        return qualityScores;
+    }
+
+    public ByteColumn getSequencesPair() {
+        return sequencesPair;
+    }
+
+    public ByteColumn getQualityScoresPair() {
+        return qualityScoresPair;
+    }
+
+    public ByteColumn getReadIdentifiers() {
+        return readIdentifiers;
+    }
+
+    public ByteColumn getDescriptions() {
+        return descriptions;
+    }
+
+    /**
+     * Decode the sequence of the i-th read to the sequence MutableString.
+     *
+     * @param i        index of the read in this chunk.
+     * @param sequence Where to write the decoded sequence.
+     */
+    public void decodeSequence(final int i, final MutableString sequence) {
+        sequences.get(i, sequence);
+    }
+
+    /**
+     * Decode the pair sequence of the i-th read to the sequence MutableString.
+     *
+     * @param i        index of the read in this chunk.
+     * @param sequence Where to write the decoded sequence.
+     */
+    public void decodeSequencePair(final int i, final MutableString sequence) {
+        sequencesPair.get(i, sequence);
+    }
+
+    /**
+     * Reset this chunk so that it contains no reads. Storage is kept for reuse.
+     */
+    void clear() {
+        numReads = 0;
+        sequences.clear();
+        qualityScores.clear();
+        sequencesPair.clear();
+        qualityScoresPair.clear();
+        readIdentifiers.clear();
+        descriptions.clear();
+    }
+
+    /**
+     * Start a new read in this chunk. Byte fields of the new read are empty until appended to.
+     *
+     * @return the index of the new read in this chunk.
+     */
+    int newRead() {
+        final int i = numReads++;
+        if (numReads > readIndices.length) {
+            readIndices = IntArrays.grow(readIndices, numReads);
+            barcodeIndices = IntArrays.grow(barcodeIndices, numReads);
+            readLengths = IntArrays.grow(readLengths, numReads);
+            readLengthsPair = IntArrays.grow(readLengthsPair, numReads);
+        }
+        readIndices[i] = 0;
+        barcodeIndices[i] = -1;
+        readLengths[i] = 0;
+        readLengthsPair[i] = 0;
+        sequences.newValue();
+        qualityScores.newValue();
+        sequencesPair.newValue();
+        qualityScoresPair.newValue();
+        readIdentifiers.newValue();
+        descriptions.newValue();
+        return i;
+    }
+
+    void setReadIndex(final int i, final int readIndex) {
+        readIndices[i] = readIndex;
+    }
+
+    void setBarcodeIndex(final int i, final int barcodeIndex) {
+        barcodeIndices[i] = barcodeIndex;
+    }
+
+    void setReadLength(final int i, final int readLength) {
+        readLengths[i] = readLength;
+    }
+
+    void setReadLengthPair(final int i, final int readLength) {
+        readLengthsPair[i] = readLength;
+    }
+
+    /**
+     * A column of variable-length byte values, one per read, stored contiguously.
+     */
+    public static class ByteColumn {
+        private byte[] bytes = ByteArrays.EMPTY_ARRAY;
+        private int[] offsets = IntArrays.EMPTY_ARRAY;
+        private int[] lengths = IntArrays.EMPTY_ARRAY;
+        private int numValues;
+        private int numBytes;
+
+        /**
+         * Return the backing array of this column. Only the ranges described by offset/length
+         * are meaningful. The array is reused across chunks and must not be kept by the caller.
+         *
+         * @return backing array.
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public int offset(final int i) {
+            return offsets[i];
+        }
+
+        public int length(final int i) {
+            return lengths[i];
+        }
+
+        /**
+         * Return the byte at position in the value of the i-th read.
+         *
+         * @param i        index of the read in the chunk.
+         * @param position position within the value.
+         * @return the byte.
+         */
+        public byte byteAt(final int i, final int position) {
+            return bytes[offsets[i] + position];
+        }
+
+        /**
+         * Copy the value of the i-th read to a MutableString, one character per byte. This is
+         * appropriate for sequences and ASCII text such as read identifiers and descriptions.
+         *
+         * @param i           index of the read in the chunk.
+         * @param destination where to write the value.
+         */
+        public void get(final int i, final MutableString destination) {
+            final int length = lengths[i];
+            final int offset = offsets[i];
+            destination.setLength(length);
+            final char[] chars = destination.array();
+            for (int j = 0; j < length; j++) {
+                chars[j] = (char) (bytes[offset + j] & 0xFF);
+            }
+        }
+
+        void clear() {
+            numValues = 0;
+            numBytes = 0;
+        }
+
+        void newValue() {
+            final int i = numValues++;
+            if (numValues > offsets.length) {
+                offsets = IntArrays.grow(offsets, numValues);
+                lengths = IntArrays.grow(lengths, numValues);
+            }
+            offsets[i] = numBytes;
+            lengths[i] = 0;
+        }
+
+        /**
+         * Set the value of the last read of the column.
+         */
+        void set(final byte[] source, final int offset, final int length) {
+            final int i = numValues - 1;
+            bytes = ByteArrays.grow(bytes, offsets[i] + length);
+            System.arraycopy(source, offset, bytes, offsets[i], length);
+            lengths[i] = length;
+            numBytes = offsets[i] + length;
+        }
+
+        /**
+         * Set the value of the last read of the column.
+         */
+        void set(final ByteString source) {
+            final int i = numValues - 1;
+            final int length = source.size();
+            bytes = ByteArrays.grow(bytes, offsets[i] + length);
+            source.copyTo(bytes, 0, offsets[i], length);
+            lengths[i] = length;
+            numBytes = offsets[i] + length;
+        }
+    }
+}
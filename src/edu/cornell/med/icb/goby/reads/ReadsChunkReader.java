@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.reads;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.GeneratedMessage;
+import com.google.protobuf.Message;
+import edu.cornell.med.icb.goby.compression.ChunkCodec;
+import edu.cornell.med.icb.goby.compression.FastBufferedMessageChunksReader;
+import edu.cornell.med.icb.goby.compression.MessageChunksReader;
+import edu.cornell.med.icb.goby.compression.ProtobuffCollectionHandler;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
+import edu.cornell.med.icb.goby.util.CodecHelper;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Reads a compact-reads file one chunk at a time, exposing each chunk as columns of primitive
+ * arrays (see {@link ReadsChunk}). In contrast to {@link ReadsReader}, this reader never builds
+ * {@link Reads.ReadEntry} messages: the uncompressed chunk is scanned directly at the protocol
+ * buffer wire level and only the fields selected with {@link #setProjection(Field...)} are
+ * copied. By default, sequence and quality scores (and their pair counterparts) are decoded,
+ * while read identifiers and descriptions are skipped. Typical usage:
+ * <pre>
+ * final ReadsChunkReader reader = new ReadsChunkReader(filename);
+ * reader.setProjection(ReadsChunkReader.Field.QUALITY_SCORES);
+ * while (reader.nextChunk()) {
+ *    final ReadsChunk chunk = reader.getChunk();
+ *    for (int i = 0; i &lt; chunk.size(); i++) {
+ *       ...
+ *    }
+ * }
+ * reader.close();
+ * </pre>
+ * Reads whose sequence or quality scores were compressed with a {@link ReadCodec} are decoded
+ * with the codec, which requires parsing these reads as protocol buffer messages.
+ */
+public class ReadsChunkReader implements Closeable {
+    /**
+     * Fields of a read that can be projected. Read index, barcode index and read lengths are always decoded.
+     */
+    public enum Field {
+        SEQUENCE,
+        QUALITY_SCORES,
+        SEQUENCE_PAIR,
+        QUALITY_SCORES_PAIR,
+        READ_IDENTIFIER,
+        DESCRIPTION
+    }
+
+    private final MessageChunksReader reader;
+    private final ReadsChunk chunk = new ReadsChunk();
+    private final Properties metaData = new Properties();
+    private final boolean[] projected = new boolean[Field.values().length];
+    private boolean metaDataSeen;
+    /**
+     * Optional codec.
+     */
+    private ReadCodec codec;
+
+    /**
+     * Initialize the reader.
+     *
+     * @param path Path to the input file
+     * @throws IOException If an error occurs reading the input
+     */
+    public ReadsChunkReader(final String path) throws IOException {
+        this(FileUtils.openInputStream(new File(path)));
+    }
+
+    /**
+     * Initialize the reader.
+     *
+     * @param file The input file
+     * @throws IOException If an error occurs reading the input
+     */
+    public ReadsChunkReader(final File file) throws IOException {
+        this(FileUtils.openInputStream(file));
+    }
+
+    /**
+     * Initialize the reader.
+     *
+     * @param stream Stream over the input
+     */
+    public ReadsChunkReader(final InputStream stream) {
+        super();
+        reader = new MessageChunksReader(stream);
+        reader.setHandler(new ColumnsHandler());
+        setProjection(Field.SEQUENCE, Field.QUALITY_SCORES, Field.SEQUENCE_PAIR, Field.QUALITY_SCORES_PAIR);
+    }
+
+    /**
+     * Initialize the reader to read a segment of the input. Chunks which start between
+     * the input position start and end will be returned upon subsequent calls to {@link #nextChunk()}.
+     *
+     * @param start Start offset in the input file
+     * @param end   End offset in the input file
+     * @param path  Path to the input file
+     * @throws IOException If an error occurs reading the input
+     */
+    public ReadsChunkReader(final long start, final long end, final String path) throws IOException {
+        this(start, end, new FastBufferedInputStream(FileUtils.openInputStream(new File(path))));
+    }
+
+    /**
+     * Initialize the reader to read a segment of the input. Chunks which start between
+     * the input position start and end will be returned upon subsequent calls to {@link #nextChunk()}.
+     *
+     * @param start  Start offset in the input file
+     * @param end    End offset in the input file
+     * @param stream Stream over the input file
+     * @throws IOException If an error occurs reading the input.
+     */
+    public ReadsChunkReader(final long start, final long end, final FastBufferedInputStream stream)
+            throws IOException {
+        super();
+        reader = new FastBufferedMessageChunksReader(start, end, stream);
+        reader.setHandler(new ColumnsHandler());
+        setProjection(Field.SEQUENCE, Field.QUALITY_SCORES, Field.SEQUENCE_PAIR, Field.QUALITY_SCORES_PAIR);
+    }
+
+    /**
+     * Select the fields to decode. Fields not listed are skipped and will have length zero in
+     * the chunks returned by this reader.
+     *
+     * @param fields fields to decode.
+     */
+    public void setProjection(final Field... fields) {
+        for (int i = 0; i < projected.length; i++) {
+            projected[i] = false;
+        }
+        for (final Field field : fields) {
+            projected[field.ordinal()] = true;
+        }
+    }
+
+    /**
+     * Decode the next chunk of reads.
+     *
+     * Chunks without reads are skipped.
+     *
+     * @return True if a chunk was decoded and is available with {@link #getChunk()}, false if the input has no more reads.
+     */
+    public boolean nextChunk() {
+        do {
+            chunk.clear();
+            if (!reader.hasNext(null, 0)) {
+                return false;
+            }
+            final byte[] compressedBytes = reader.getCompressedBytes();
+            if (compressedBytes == null) {
+                return false;
+            }
+            final ChunkCodec chunkCodec = reader.getChunkCodec();
+            try {
+                if (codec != null) {
+                    codec.newChunk();
+                }
+                if (chunkCodec.decode(compressedBytes) == null) {
+                    return false;
+                }
+            } catch (IOException e) {
+                throw new GobyRuntimeException(e);
+            }
+        } while (chunk.size() == 0);
+        return true;
+    }
+
+    /**
+     * Return the chunk decoded by the last successful call to {@link #nextChunk()}. The same
+     * instance is returned for every chunk and overwritten when the next chunk is decoded.
+     *
+     * @return the current chunk.
+     */
+    public ReadsChunk getChunk() {
+        return chunk;
+    }
+
+    /**
+     * After reading the first chunk, this getter will return the meta-data associated with
+     * this read collection.
+     *
+     * @return Jave properties encoding meta-data about the compact reads.
+     */
+    public Properties getMetaData() {
+        return metaData;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Protocol buffer wire types.
+     */
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRETYPE_FIXED32 = 5;
+
+    /**
+     * Receives the uncompressed chunk from the chunk codec and decodes its reads into columns.
+     */
+    private class ColumnsHandler implements ProtobuffCollectionHandler {
+        private byte[] buffer = ByteArrays.EMPTY_ARRAY;
+        private int position;
+
+        @Override
+        public int getType() {
+            return TYPE_READS;
+        }
+
+        @Override
+        public GeneratedMessage parse(final InputStream uncompressedStream) throws IOException {
+            int length = 0;
+            int n;
+            do {
+                if (length == buffer.length) {
+                    buffer = ByteArrays.grow(buffer, length + 1);
+                }
+                n = uncompressedStream.read(buffer, length, buffer.length - length);
+                if (n > 0) {
+                    length += n;
+                }
+            } while (n != -1);
+            position = 0;
+            while (position < length) {
+                final int tag = readVarint();
+                if (tag >>> 3 == Reads.ReadCollection.READS_FIELD_NUMBER
+                        && (tag & 7) == WIRETYPE_LENGTH_DELIMITED) {
+                    final int entryLength = readVarint();
+                    final int entryEnd = position + entryLength;
+                    parseEntry(position, entryEnd);
+                    position = entryEnd;
+                } else {
+                    skipField(tag);
+                }
+            }
+            // the columns are held by the reader, the collection itself is not needed:
+            return Reads.ReadCollection.getDefaultInstance();
+        }
+
+        private void parseEntry(final int start, final int end) throws IOException {
+            final int i = chunk.newRead();
+            boolean compressed = false;
+            while (position < end) {
+                final int tag = readVarint();
+                switch (tag >>> 3) {
+                    case Reads.ReadEntry.READ_INDEX_FIELD_NUMBER:
+                        chunk.setReadIndex(i, readVarint());
+                        break;
+                    case Reads.ReadEntry.BARCODE_INDEX_FIELD_NUMBER:
+                        chunk.setBarcodeIndex(i, readVarint());
+                        break;
+                    case Reads.ReadEntry.READ_LENGTH_FIELD_NUMBER:
+                        chunk.setReadLength(i, readVarint());
+                        break;
+                    case Reads.ReadEntry.READ_LENGTH_PAIR_FIELD_NUMBER:
+                        chunk.setReadLengthPair(i, readVarint());
+                        break;
+                    case Reads.ReadEntry.SEQUENCE_FIELD_NUMBER:
+                        readBytes(Field.SEQUENCE, chunk.getSequences());
+                        break;
+                    case Reads.ReadEntry.QUALITY_SCORES_FIELD_NUMBER:
+                        readBytes(Field.QUALITY_SCORES, chunk.getQualityScores());
+                        break;
+                    case Reads.ReadEntry.SEQUENCE_PAIR_FIELD_NUMBER:
+                        readBytes(Field.SEQUENCE_PAIR, chunk.getSequencesPair());
+                        break;
+                    case Reads.ReadEntry.QUALITY_SCORES_PAIR_FIELD_NUMBER:
+                        readBytes(Field.QUALITY_SCORES_PAIR, chunk.getQualityScoresPair());
+                        break;
+                    case Reads.ReadEntry.READ_IDENTIFIER_FIELD_NUMBER:
+                        readBytes(Field.READ_IDENTIFIER, chunk.getReadIdentifiers());
+                        break;
+                    case Reads.ReadEntry.DESCRIPTION_FIELD_NUMBER:
+                        readBytes(Field.DESCRIPTION, chunk.getDescriptions());
+                        break;
+                    case Reads.ReadEntry.COMPRESSED_DATA_FIELD_NUMBER:
+                        compressed = true;
+                        skipField(tag);
+                        break;
+                    case Reads.ReadEntry.META_DATA_FIELD_NUMBER:
+                        if (!metaDataSeen) {
+                            final int length = readVarint();
+                            final Reads.MetaData md = Reads.MetaData.parseFrom(
+                                    CodedInputStream.newInstance(buffer, position, length));
+                            metaData.put(md.getKey(), md.getValue());
+                            position += length;
+                        } else {
+                            skipField(tag);
+                        }
+                        break;
+                    default:
+                        skipField(tag);
+                }
+            }
+            metaDataSeen = true;
+            if (compressed) {
+                decodeWithReadCodec(start, end);
+            }
+        }
+
+        /**
+         * Decode a read whose fields were compressed with a ReadCodec. The fields stored in
+         * compressed_data replace whatever was decoded from the wire for the last read of the chunk.
+         */
+        private void decodeWithReadCodec(final int start, final int end) throws IOException {
+            final Reads.ReadEntry entry = Reads.ReadEntry.parseFrom(
+                    CodedInputStream.newInstance(buffer, start, end - start));
+            if (codec == null) {
+                codec = CodecHelper.locateReadCodec(entry.getCompressedData());
+                if (codec == null) {
+                    return;
+                }
+            }
+            final Reads.ReadEntry.Builder result = codec.decode(entry);
+            if (result == null) {
+                return;
+            }
+            if (projected[Field.SEQUENCE.ordinal()] && result.hasSequence()) {
+                chunk.getSequences().set(result.getSequence());
+            }
+            if (projected[Field.QUALITY_SCORES.ordinal()] && result.hasQualityScores()) {
+                chunk.getQualityScores().set(result.getQualityScores());
+            }
+            if (projected[Field.SEQUENCE_PAIR.ordinal()] && result.hasSequencePair()) {
+                chunk.getSequencesPair().set(result.getSequencePair());
+            }
+            if (projected[Field.QUALITY_SCORES_PAIR.ordinal()] && result.hasQualityScoresPair()) {
+                chunk.getQualityScoresPair().set(result.getQualityScoresPair());
+            }
+        }
+
+        private void readBytes(final Field field, final ReadsChunk.ByteColumn column) {
+            final int length = readVarint();
+            if (projected[field.ordinal()]) {
+                column.set(buffer, position, length);
+            }
+            position += length;
+        }
+
+        private void skipField(final int tag) throws IOException {
+            switch (tag & 7) {
+                case WIRETYPE_VARINT:
+                    readVarint();
+                    break;
+                case WIRETYPE_FIXED64:
+                    position += 8;
+                    break;
+                case WIRETYPE_LENGTH_DELIMITED:
+                    final int length = readVarint();
+                    position += length;
+                    break;
+                case WIRETYPE_FIXED32:
+                    position += 4;
+                    break;
+                default:
+                    throw new IOException("Unsupported wire type in read collection: " + (tag & 7));
+            }
+        }
+
+        /**
+         * Read a varint and return its lower 32 bits.
+         */
+        private int readVarint() {
+            int result = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer[position++];
+                if (shift < 32) {
+                    result |= (b & 0x7F) << shift;
+                }
+                shift += 7;
+            } while (b < 0);
+            return result;
+        }
+
+        @Override
+        public Message compressCollection(final Message readCollection, final ByteArrayOutputStream compressedBits) {
+            return readCollection;
+        }
+
+        /**
+         * Restore the sequence and quality score columns from bytes written by
+         * {@link edu.cornell.med.icb.goby.compression.HybridReadsChunkCodec}.
+         */
+        @Override
+        public Message decompressCollection(final Message reducedProtoBuff, final byte[] compressedBytes)
+                throws IOException {
+            if (compressedBytes.length == 0) {
+                return reducedProtoBuff;
+            }
+            if (compressor == null) {
+                compressor = new SequenceQualityCompressor();
+            }
+            final int size = chunk.size();
+            readLengths = IntArrays.ensureCapacity(readLengths, size);
+            readLengthsPair = IntArrays.ensureCapacity(readLengthsPair, size);
+            for (int i = 0; i < size; i++) {
+                readLengths[i] = chunk.getReadLength(i);
+                readLengthsPair[i] = chunk.getReadLengthPair(i);
+            }
+            compressor.decode(compressedBytes, readLengths, readLengthsPair);
+            restoreColumn(Field.SEQUENCE, SequenceQualityCompressor.SEQUENCE, chunk.getSequences());
+            restoreColumn(Field.QUALITY_SCORES, SequenceQualityCompressor.QUALITY_SCORES, chunk.getQualityScores());
+            restoreColumn(Field.SEQUENCE_PAIR, SequenceQualityCompressor.SEQUENCE_PAIR, chunk.getSequencesPair());
+            restoreColumn(Field.QUALITY_SCORES_PAIR, SequenceQualityCompressor.QUALITY_SCORES_PAIR,
+                    chunk.getQualityScoresPair());
+            return reducedProtoBuff;
+        }
+
+        private void restoreColumn(final Field field, final int compressorField, final ReadsChunk.ByteColumn column) {
+            if (!projected[field.ordinal()]) {
+                return;
+            }
+            final byte[] bytes = compressor.getBytes(compressorField);
+            column.clear();
+            for (int i = 0; i < compressor.size(); i++) {
+                column.newValue();
+                final int length = compressor.length(compressorField, i);
+                if (length > 0) {
+                    column.set(bytes, compressor.offset(compressorField, i), length);
+                }
+            }
+        }
+
+        private SequenceQualityCompressor compressor;
+        private int[] readLengths = IntArrays.EMPTY_ARRAY;
+        private int[] readLengthsPair = IntArrays.EMPTY_ARRAY;
+
+        @Override
+        public void setUseTemplateCompression(final boolean useTemplateCompression) {
+        }
+    }
+}
@@ -20,10 +20,6 @@
 
 package edu.cornell.med.icb.goby.reads;
 
-import it.unimi.dsi.fastutil.booleans.BooleanArrayList;
-import it.unimi.dsi.fastutil.booleans.BooleanList;
-import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectList;
 import it.unimi.dsi.logging.ProgressLogger;
 
 import java.io.File;
@@ -31,21 +27,24 @@ import java.io.FileInputStream;
 import java.io.IOException;
 
 /**
+ * Loads fixed-length reads and indexes them by digest, to scan reference sequences for exact matches.
+ *
  * @author Fabien Campagne
  *         Date: Jun 20, 2009
  *         Time: 10:26:58 AM
  */
 public class ReadsLoader {
     private final ReadSet readIndexFilter;
-    private SequenceDigests[] digests;
-    private final ObjectArrayList<byte[]> compressedReads;
+    private KmerDigests digests;
     private int numReads;
     private final File readsFile;
     private static final int MAX_PROCESS_READS = Integer.MAX_VALUE;
 
     private int readLength;
-    private byte[] byteBuffer;
-    private final int numberOfMismaches = 0;
+    /**
+     * Number of threads used to index reads, or -1 to use all the processors.
+     */
+    private int numThreads = -1;
 
     private boolean colorSpace;
 
@@ -56,7 +55,6 @@ public class ReadsLoader {
     public ReadsLoader(final ReadSet readIndexFilter, final File readsFile) {
         super();
         this.readIndexFilter = readIndexFilter;
-        compressedReads = new ObjectArrayList<byte[]>(1000000);
         this.readsFile = readsFile;
     }
 
@@ -64,6 +62,10 @@ public class ReadsLoader {
         this.colorSpace = colorSpace;
     }
 
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     public int read() throws IOException {
         final ProgressLogger progress = new ProgressLogger();
         progress.displayFreeMemory = true;
@@ -82,41 +84,10 @@ public class ReadsLoader {
                     System.exit(1);
                 }
                 if (digests == null) {
-                    if (numberOfMismaches == 0) {
-                        digests = new SequenceDigests[2];
-                        digests[0] = new SequenceDigests(minReadLength, true);     // forward strand
-                        digests[1] = new SequenceDigests(minReadLength, false);    // reverse strand
-
-                    } else if (numberOfMismaches == 1) {
-                        digests = new SequenceDigests[4];
-                        final BooleanList mask1 = new BooleanArrayList();
-                        final BooleanList mask2 = new BooleanArrayList();
-                        for (int i = 0; i < readLength; i++) {
-
-                            mask1.set(i, i % 2 == 1);
-                            mask2.set(i, !mask1.get(i));
-                        }
-                        digests[0] = new SequenceDigests(mask1, minReadLength, true);
-                        digests[1] = new SequenceDigests(mask1, minReadLength, false);
-                        digests[2] = new SequenceDigests(mask2, minReadLength, true);
-                        digests[3] = new SequenceDigests(mask2, minReadLength, false);
-                    }
-                }
-
-                byteBuffer = new byte[maxReadLength]; //2 bits per base require four times less space.
-
-                final int readIndex = readEntry.getReadIndex();
-                final byte[] bytes = readEntry.getSequence().toByteArray();
-                for (final SequenceDigests digest : digests) {
-
-                    digest.digestAndStore(bytes, 0, readIndex);
+                    // reads are packed on two bits per base, and matched on both strands with one digest:
+                    digests = new KmerDigests(minReadLength);
                 }
-                System.arraycopy(bytes, 0, byteBuffer, 0, maxReadLength);
-
-                if (readIndex > compressedReads.size() - 1) {
-                    compressedReads.size((readIndex + 1) * 3 / 2);
-                }
-                compressedReads.set(readIndex, byteBuffer);
+                digests.add(readEntry.getReadIndex(), readEntry.getSequence());
 
                 progress.lightUpdate();
 
@@ -128,21 +99,17 @@ public class ReadsLoader {
         }
 
         readLength = minReadLength;
-        compressedReads.size(numReads + 1);
         readsReader.close();
         progress.stop("Finished parsing reads.");
+        if (digests != null) {
+            progress.start("indexing reads");
+            digests.build(numThreads == -1 ? Runtime.getRuntime().availableProcessors() : numThreads);
+            progress.stop("Finished indexing reads.");
+        }
         return numReads;
     }
 
-    public ObjectList<byte[]> getCompressedReads() {
-        return compressedReads;
-    }
-
-    public byte[] getByteBuffer() {
-        return byteBuffer;
-    }
-
-    public SequenceDigests[] getDigests() {
+    public KmerDigests getDigests() {
         return digests;
     }
 }
@@ -0,0 +1,621 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.reads;
+
+import com.google.protobuf.ByteString;
+import edu.cornell.med.icb.goby.algorithmic.compression.RansCoderContexts;
+import it.unimi.dsi.fastutil.booleans.BooleanArrays;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.io.InputBitStream;
+import it.unimi.dsi.io.OutputBitStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compresses the sequence and quality score fields of a read collection (and their pair counterparts) to a
+ * specialized stream. Bases are packed with four bases per byte. Runs of bases other than A, C, G or T (such as
+ * runs of N) are stored separately as exceptions, as (gap, run length, base) triplets. Quality scores are
+ * encoded with a {@link RansCoderContexts} in an order-2 context model: the context of a quality score is the
+ * previous quality score of the read, combined with a quantized value of the quality score before it. The
+ * frequencies of each context are stored with the chunk, so that decoding needs one table lookup per quality
+ * score, and is faster than inflating the same fields with gzip.
+ * The other fields of the reads are left in the collection returned by {@link #compress}, so that they can be
+ * compressed with a general purpose codec.
+ *
+ * @see edu.cornell.med.icb.goby.compression.HybridReadsChunkCodec
+ */
+public class SequenceQualityCompressor {
+    public static final int SEQUENCE = 0;
+    public static final int QUALITY_SCORES = 1;
+    public static final int SEQUENCE_PAIR = 2;
+    public static final int QUALITY_SCORES_PAIR = 3;
+    private static final int NUM_FIELDS = 4;
+    /**
+     * Number of levels used to quantize the quality score two positions before the one encoded.
+     */
+    private static final int BUCKETS = 4;
+    private static final int BASES_PER_BYTE = 4;
+
+    private int numReads;
+    /**
+     * Offsets and lengths of each field, indexed by field then read. Length is -1 when the read has no such field.
+     */
+    private final int[][] offsets = new int[NUM_FIELDS][];
+    private final int[][] lengths = new int[NUM_FIELDS][];
+    private byte[] bases = ByteArrays.EMPTY_ARRAY;
+    private byte[] qualities = ByteArrays.EMPTY_ARRAY;
+    private int numBases;
+    private int numQualities;
+
+    public SequenceQualityCompressor() {
+        super();
+        for (int field = 0; field < NUM_FIELDS; field++) {
+            offsets[field] = IntArrays.EMPTY_ARRAY;
+            lengths[field] = IntArrays.EMPTY_ARRAY;
+        }
+    }
+
+    /**
+     * Write the sequence and quality score fields of the reads in collection to output and return a reduced
+     * collection where these fields have been cleared.
+     *
+     * @param collection The collection to compress.
+     * @param output     Where to write the compressed bits.
+     * @return the reduced collection.
+     * @throws IOException if an error occurs writing to output.
+     */
+    public Reads.ReadCollection compress(final Reads.ReadCollection collection, final OutputStream output)
+            throws IOException {
+        final Reads.ReadCollection.Builder reduced = Reads.ReadCollection.newBuilder();
+        final OutputBitStream out = new OutputBitStream(output);
+        reset(collection.getReadsCount());
+        out.writeGamma(numReads);
+        for (int i = 0; i < numReads; i++) {
+            final Reads.ReadEntry entry = collection.getReads(i);
+            final Reads.ReadEntry.Builder builder = entry.toBuilder();
+            for (int field = 0; field < NUM_FIELDS; field++) {
+                final boolean present = hasField(entry, field);
+                out.writeBit(present);
+                if (present) {
+                    final ByteString value = getField(entry, field);
+                    final int length = value.size();
+                    final boolean sameLength = length == referenceLength(entry.getReadLength(), entry.getReadLengthPair(), field);
+                    out.writeBit(sameLength);
+                    if (!sameLength) {
+                        out.writeGamma(length);
+                    }
+                    append(field, i, value);
+                    clearField(builder, field);
+                }
+            }
+            reduced.addReads(builder);
+        }
+        writeExceptions(out);
+        final RansCoderContexts coder = writeQualityModel(out);
+        // packed bases and encoded quality scores start on a byte boundary:
+        out.flush();
+        writeBases(output);
+        if (coder != null) {
+            writeQualities(coder, output);
+        }
+        return reduced.build();
+    }
+
+    /**
+     * Restore the sequence and quality score fields of a reduced collection.
+     *
+     * @param reduced The collection returned by {@link #compress}, after a round-trip through storage.
+     * @param bytes   The bytes written by {@link #compress}.
+     * @return the original collection.
+     * @throws IOException if bytes cannot be decoded.
+     */
+    public Reads.ReadCollection decompress(final Reads.ReadCollection reduced, final byte[] bytes)
+            throws IOException {
+        final int size = reduced.getReadsCount();
+        final int[] readLengths = new int[size];
+        final int[] readLengthsPair = new int[size];
+        for (int i = 0; i < size; i++) {
+            readLengths[i] = reduced.getReads(i).getReadLength();
+            readLengthsPair[i] = reduced.getReads(i).getReadLengthPair();
+        }
+        decode(bytes, readLengths, readLengthsPair);
+        final Reads.ReadCollection.Builder result = reduced.toBuilder();
+        for (int i = 0; i < numReads; i++) {
+            final Reads.ReadEntry.Builder builder = result.getReadsBuilder(i);
+            for (int field = 0; field < NUM_FIELDS; field++) {
+                final int length = lengths[field][i];
+                if (length != -1) {
+                    final ByteString value = ByteString.copyFrom(getBytes(field), offsets[field][i], length);
+                    switch (field) {
+                        case SEQUENCE:
+                            builder.setSequence(value);
+                            break;
+                        case QUALITY_SCORES:
+                            builder.setQualityScores(value);
+                            break;
+                        case SEQUENCE_PAIR:
+                            builder.setSequencePair(value);
+                            break;
+                        case QUALITY_SCORES_PAIR:
+                            builder.setQualityScoresPair(value);
+                            break;
+                    }
+                }
+            }
+        }
+        return result.build();
+    }
+
+    /**
+     * Decode the bytes written by {@link #compress}. After this call, the decoded fields are available with
+     * {@link #getBytes(int)}, {@link #offset(int, int)} and {@link #length(int, int)}.
+     *
+     * @param bytes           The bytes written by {@link #compress}.
+     * @param readLengths     Read lengths of the reads of the reduced collection.
+     * @param readLengthsPair Pair read lengths of the reads of the reduced collection.
+     * @throws IOException if bytes cannot be decoded.
+     */
+    public void decode(final byte[] bytes, final int[] readLengths, final int[] readLengthsPair) throws IOException {
+        final InputBitStream in = new InputBitStream(bytes);
+        reset(in.readGamma());
+        int baseOffset = 0;
+        int qualityOffset = 0;
+        for (int i = 0; i < numReads; i++) {
+            for (int field = 0; field < NUM_FIELDS; field++) {
+                final boolean isQuality = field == QUALITY_SCORES || field == QUALITY_SCORES_PAIR;
+                offsets[field][i] = isQuality ? qualityOffset : baseOffset;
+                if (in.readBit() == 1) {
+                    final int length = in.readBit() == 1
+                            ? referenceLength(readLengths[i], readLengthsPair[i], field) : in.readGamma();
+                    lengths[field][i] = length;
+                    if (isQuality) {
+                        qualityOffset += length;
+                    } else {
+                        baseOffset += length;
+                    }
+                } else {
+                    lengths[field][i] = -1;
+                }
+            }
+        }
+        readExceptions(in);
+        final RansCoderContexts decoder = readQualityModel(in);
+        in.align();
+        final int offset = readBases(bytes, (int) (in.readBits() / 8));
+        if (decoder != null) {
+            readQualities(decoder, bytes, offset);
+        }
+    }
+
+    /**
+     * Return the number of reads decoded.
+     *
+     * @return the number of reads decoded.
+     */
+    public int size() {
+        return numReads;
+    }
+
+    /**
+     * Return the array that holds the values of field.
+     *
+     * @param field one of SEQUENCE, QUALITY_SCORES, SEQUENCE_PAIR or QUALITY_SCORES_PAIR.
+     * @return the bases for sequence fields, the quality scores for quality fields.
+     */
+    public byte[] getBytes(final int field) {
+        return field == QUALITY_SCORES || field == QUALITY_SCORES_PAIR ? qualities : bases;
+    }
+
+    public int offset(final int field, final int readIndex) {
+        return offsets[field][readIndex];
+    }
+
+    /**
+     * Return the length of a field for a given read.
+     *
+     * @param field     one of SEQUENCE, QUALITY_SCORES, SEQUENCE_PAIR or QUALITY_SCORES_PAIR.
+     * @param readIndex index of the read in the collection.
+     * @return the length of the field, or -1 if the read did not have this field.
+     */
+    public int length(final int field, final int readIndex) {
+        return lengths[field][readIndex];
+    }
+
+    private void reset(final int size) {
+        numReads = size;
+        numBases = 0;
+        numQualities = 0;
+        for (int field = 0; field < NUM_FIELDS; field++) {
+            offsets[field] = IntArrays.ensureCapacity(offsets[field], size);
+            lengths[field] = IntArrays.ensureCapacity(lengths[field], size);
+            for (int i = 0; i < size; i++) {
+                lengths[field][i] = -1;
+            }
+        }
+    }
+
+    private void append(final int field, final int readIndex, final ByteString value) {
+        final int length = value.size();
+        if (field == QUALITY_SCORES || field == QUALITY_SCORES_PAIR) {
+            qualities = ByteArrays.grow(qualities, numQualities + length);
+            value.copyTo(qualities, 0, numQualities, length);
+            offsets[field][readIndex] = numQualities;
+            numQualities += length;
+        } else {
+            bases = ByteArrays.grow(bases, numBases + length);
+            value.copyTo(bases, 0, numBases, length);
+            offsets[field][readIndex] = numBases;
+            numBases += length;
+        }
+        lengths[field][readIndex] = length;
+    }
+
+    private void writeExceptions(final OutputBitStream out) throws IOException {
+        out.writeGamma(numBases);
+        // exceptions: runs of identical bytes that cannot be coded on two bits:
+        int numRuns = 0;
+        for (int i = 0; i < numBases; ) {
+            final int end = exceptionRunEnd(i);
+            if (end != i) {
+                numRuns++;
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        out.writeGamma(numRuns);
+        int previousEnd = 0;
+        for (int i = 0; i < numBases; ) {
+            final int end = exceptionRunEnd(i);
+            if (end != i) {
+                out.writeGamma(i - previousEnd);
+                out.writeGamma(end - i - 1);
+                out.writeInt(bases[i] & 0xFF, 8);
+                previousEnd = end;
+                i = end;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private void writeBases(final OutputStream output) throws IOException {
+        final byte[] packed = new byte[(numBases + BASES_PER_BYTE - 1) / BASES_PER_BYTE];
+        for (int i = 0; i < numBases; i++) {
+            // exceptions are stored as A (code 0) and patched when decoding:
+            packed[i / BASES_PER_BYTE] |= Math.max(0, twoBitCode(bases[i])) << ((i % BASES_PER_BYTE) << 1);
+        }
+        output.write(packed);
+    }
+
+    /**
+     * Runs of exception bases, as (start, end, base) triplets.
+     */
+    private int[] runs = IntArrays.EMPTY_ARRAY;
+    private int numRuns;
+
+    private void readExceptions(final InputBitStream in) throws IOException {
+        numBases = in.readGamma();
+        numRuns = in.readGamma();
+        runs = IntArrays.ensureCapacity(runs, numRuns * 3);
+        int previousEnd = 0;
+        for (int r = 0; r < numRuns; r++) {
+            final int start = previousEnd + in.readGamma();
+            final int end = start + in.readGamma() + 1;
+            runs[r * 3] = start;
+            runs[r * 3 + 1] = end;
+            runs[r * 3 + 2] = in.readInt(8);
+            previousEnd = end;
+        }
+    }
+
+    /**
+     * Unpack the bases that start at offset in bytes.
+     *
+     * @return the offset of the byte that follows the packed bases.
+     */
+    private int readBases(final byte[] packed, final int offset) {
+        bases = ByteArrays.ensureCapacity(bases, numBases + BASES_PER_BYTE);
+        final int numBytes = (numBases + BASES_PER_BYTE - 1) / BASES_PER_BYTE;
+        for (int i = 0; i < numBytes; i++) {
+            System.arraycopy(UNPACKED_BASES, (packed[offset + i] & 0xFF) * BASES_PER_BYTE, bases, i * BASES_PER_BYTE,
+                    BASES_PER_BYTE);
+        }
+        for (int r = 0; r < numRuns; r++) {
+            final byte base = (byte) runs[r * 3 + 2];
+            for (int i = runs[r * 3]; i < runs[r * 3 + 1]; i++) {
+                bases[i] = base;
+            }
+        }
+        return offset + numBytes;
+    }
+
+    /**
+     * Contexts of the quality scores, in the order of the quality scores.
+     */
+    private int[] contexts = IntArrays.EMPTY_ARRAY;
+
+    /**
+     * Count the quality scores in their contexts and write the model of each context.
+     *
+     * @return the coder, ready to encode quality scores, or null if there is none.
+     */
+    private RansCoderContexts writeQualityModel(final OutputBitStream out) throws IOException {
+        out.writeGamma(numQualities);
+        if (numQualities == 0) {
+            return null;
+        }
+        int max = 0;
+        for (int i = 0; i < numQualities; i++) {
+            max = Math.max(max, qualities[i] & 0xFF);
+        }
+        out.writeInt(max, 8);
+        final int numSymbols = max + 1;
+        final RansCoderContexts coder = new RansCoderContexts(numSymbols * BUCKETS, numSymbols);
+        contexts = IntArrays.ensureCapacity(contexts, numQualities);
+        final int[] buckets = buckets(numSymbols);
+        for (int i = 0; i < numReads; i++) {
+            for (int field = QUALITY_SCORES; field < NUM_FIELDS; field += 2) {
+                final int length = lengths[field][i];
+                final int offset = offsets[field][i];
+                int previous = 0;
+                int beforePrevious = 0;
+                for (int j = offset; j < offset + length; j++) {
+                    final int quality = qualities[j] & 0xFF;
+                    contexts[j] = previous * BUCKETS + buckets[beforePrevious];
+                    coder.count(contexts[j], quality);
+                    beforePrevious = previous;
+                    previous = quality;
+                }
+            }
+        }
+        coder.writeModel(out);
+        return coder;
+    }
+
+    private void writeQualities(final RansCoderContexts coder, final OutputStream output) throws IOException {
+        final int half = markSegmentStarts();
+        final int numInterleaved = Math.min(half, numQualities - half);
+        // the decoder reads quality scores in the order of readQualities, encode them in the reverse order:
+        if (half > numInterleaved) {
+            for (int j = half - 1; j >= numInterleaved; j--) {
+                coder.encode(0, contexts[j], qualities[j] & 0xFF);
+            }
+        } else {
+            for (int j = numQualities - 1; j >= half + numInterleaved; j--) {
+                coder.encode(1, contexts[j], qualities[j] & 0xFF);
+            }
+        }
+        for (int k = numInterleaved - 1; k >= 0; k--) {
+            coder.encode(1, contexts[half + k], qualities[half + k] & 0xFF);
+            coder.encode(0, contexts[k], qualities[k] & 0xFF);
+        }
+        coder.finish();
+        final byte[] encoded = coder.getBytes();
+        output.write(encoded, coder.getOffset(), encoded.length - coder.getOffset());
+    }
+
+    /**
+     * Marks the quality scores that start the quality scores of a read (or of its pair).
+     */
+    private boolean[] segmentStarts = BooleanArrays.EMPTY_ARRAY;
+
+    /**
+     * Mark the first quality score of each read in segmentStarts, and split the quality scores in two halves for
+     * the two streams of the coder.
+     *
+     * @return the index of the first quality score of the second stream.
+     */
+    private int markSegmentStarts() {
+        segmentStarts = BooleanArrays.ensureCapacity(segmentStarts, numQualities);
+        Arrays.fill(segmentStarts, 0, numQualities, false);
+        int half = numQualities;
+        for (int i = 0; i < numReads; i++) {
+            for (int field = QUALITY_SCORES; field < NUM_FIELDS; field += 2) {
+                if (lengths[field][i] > 0) {
+                    final int offset = offsets[field][i];
+                    segmentStarts[offset] = true;
+                    if (half == numQualities && offset >= numQualities / 2) {
+                        half = offset;
+                    }
+                }
+            }
+        }
+        return half;
+    }
+
+    private RansCoderContexts readQualityModel(final InputBitStream in) throws IOException {
+        numQualities = in.readGamma();
+        if (numQualities == 0) {
+            return null;
+        }
+        final int numSymbols = in.readInt(8) + 1;
+        final RansCoderContexts decoder = new RansCoderContexts(numSymbols * BUCKETS, numSymbols);
+        decoder.readModel(in);
+        return decoder;
+    }
+
+    /**
+     * Decode the quality scores. The two halves of the quality scores are decoded by the two streams of the
+     * decoder, one quality score of each half at a time.
+     */
+    private void readQualities(final RansCoderContexts decoder, final byte[] bytes, final int offset) {
+        qualities = ByteArrays.ensureCapacity(qualities, numQualities);
+        // the decoding table that follows a quality score, indexed by quality * numSymbols + previous quality:
+        final int numSymbols = decoder.getNumSymbols();
+        final int[] buckets = buckets(numSymbols);
+        final int[] nextTables = new int[numSymbols * numSymbols];
+        for (int quality = 0; quality < numSymbols; quality++) {
+            for (int previous = 0; previous < numSymbols; previous++) {
+                nextTables[quality * numSymbols + previous] =
+                        decoder.getTableOffset(quality * BUCKETS + buckets[previous]);
+            }
+        }
+        final int firstTable = decoder.getTableOffset(0);
+        final int half = markSegmentStarts();
+        final int numInterleaved = Math.min(half, numQualities - half);
+        decoder.startDecoding(bytes, offset);
+        int previous0 = 0;
+        int table0 = firstTable;
+        int previous1 = 0;
+        int table1 = firstTable;
+        for (int k = 0; k < numInterleaved; k++) {
+            if (segmentStarts[k]) {
+                previous0 = 0;
+                table0 = firstTable;
+            }
+            final int quality0 = decoder.decodeAt(0, table0);
+            qualities[k] = (byte) quality0;
+            table0 = nextTables[quality0 * numSymbols + previous0];
+            previous0 = quality0;
+            final int j = half + k;
+            if (segmentStarts[j]) {
+                previous1 = 0;
+                table1 = firstTable;
+            }
+            final int quality1 = decoder.decodeAt(1, table1);
+            qualities[j] = (byte) quality1;
+            table1 = nextTables[quality1 * numSymbols + previous1];
+            previous1 = quality1;
+        }
+        // the longer half continues alone:
+        final int stream = half > numInterleaved ? 0 : 1;
+        int previous = stream == 0 ? previous0 : previous1;
+        int table = stream == 0 ? table0 : table1;
+        final int end = stream == 0 ? half : numQualities;
+        for (int j = stream == 0 ? numInterleaved : half + numInterleaved; j < end; j++) {
+            if (segmentStarts[j]) {
+                previous = 0;
+                table = firstTable;
+            }
+            final int quality = decoder.decodeAt(stream, table);
+            qualities[j] = (byte) quality;
+            table = nextTables[quality * numSymbols + previous];
+            previous = quality;
+        }
+    }
+
+    /**
+     * Return the quantized level of each quality score, as used in the context of the quality score two positions
+     * after it.
+     */
+    private static int[] buckets(final int numSymbols) {
+        final int[] buckets = new int[numSymbols];
+        for (int quality = 0; quality < numSymbols; quality++) {
+            buckets[quality] = quality * BUCKETS / numSymbols;
+        }
+        return buckets;
+    }
+
+    /**
+     * Return the end (exclusive) of the run of exception bytes that starts at position, or position if the base at
+     * position can be coded on two bits.
+     */
+    private int exceptionRunEnd(final int position) {
+        final byte base = bases[position];
+        if (twoBitCode(base) != -1) {
+            return position;
+        }
+        int end = position + 1;
+        while (end < numBases && bases[end] == base) {
+            end++;
+        }
+        return end;
+    }
+
+    private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+    /**
+     * The four bases packed in each possible byte value.
+     */
+    private static final byte[] UNPACKED_BASES = new byte[256 * BASES_PER_BYTE];
+
+    static {
+        for (int value = 0; value < 256; value++) {
+            for (int i = 0; i < BASES_PER_BYTE; i++) {
+                UNPACKED_BASES[value * BASES_PER_BYTE + i] = BASES[(value >>> (i << 1)) & 3];
+            }
+        }
+    }
+
+    private static int twoBitCode(final byte base) {
+        switch (base) {
+            case 'A':
+                return 0;
+            case 'C':
+                return 1;
+            case 'G':
+                return 2;
+            case 'T':
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    private static int referenceLength(final int readLength, final int readLengthPair, final int field) {
+        return field == SEQUENCE_PAIR || field == QUALITY_SCORES_PAIR ? readLengthPair : readLength;
+    }
+
+    private static boolean hasField(final Reads.ReadEntry entry, final int field) {
+        switch (field) {
+            case SEQUENCE:
+                return entry.hasSequence();
+            case QUALITY_SCORES:
+                return entry.hasQualityScores();
+            case SEQUENCE_PAIR:
+                return entry.hasSequencePair();
+            default:
+                return entry.hasQualityScoresPair();
+        }
+    }
+
+    private static ByteString getField(final Reads.ReadEntry entry, final int field) {
+        switch (field) {
+            case SEQUENCE:
+                return entry.getSequence();
+            case QUALITY_SCORES:
+                return entry.getQualityScores();
+            case SEQUENCE_PAIR:
+                return entry.getSequencePair();
+            default:
+                return entry.getQualityScoresPair();
+        }
+    }
+
+    private static void clearField(final Reads.ReadEntry.Builder builder, final int field) {
+        switch (field) {
+            case SEQUENCE:
+                builder.clearSequence();
+                break;
+            case QUALITY_SCORES:
+                builder.clearQualityScores();
+                break;
+            case SEQUENCE_PAIR:
+                builder.clearSequencePair();
+                break;
+            default:
+                builder.clearQualityScoresPair();
+        }
+    }
+}
@@ -39,6 +39,7 @@ import org.apache.commons.io.output.NullWriter;
 import org.apache.log4j.Logger;
 import org.rosuda.JRI.Rengine;
 
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
@@ -68,6 +69,7 @@ public class AnnotationAveragingWriter extends VCFWriter implements RegionWriter
             "annotations:annotation filename:",
             "write-counts:boolean, when true write C and Cm for regions:false",
             "write-observations:boolean, when true write oservations to disk: false",
+            "binary-observations:boolean, when true observations are written in the compact binary format read by empirical-p instead of tab delimited text: false",
             "contexts:string, coma delimited list of contexts for which to evaluate methylation rate. Contexts can be CpG, CpA,CpC,CpT,CpN. Default is CpG only:CpG"
     );
 
@@ -148,9 +150,12 @@ public class AnnotationAveragingWriter extends VCFWriter implements RegionWriter
                 basename = Long.toString(new Date().getTime());
             }
             if (writeObservations) {
-                String filename = basename + "-" + (estimateIntraGroupDifferences ? "null" : "test") + "-observations.tsv";
+                final boolean binaryObservations = doc.getBoolean("binary-observations");
+                String filename = basename + "-" + (estimateIntraGroupDifferences ? "null" : "test") +
+                        (binaryObservations ? "-observations.bin" : "-observations.tsv");
                 try {
-                    obsWriter = new ObservationWriter(new FileWriter(filename));
+                    obsWriter = binaryObservations ? new ObservationWriter(new FileOutputStream(filename)) :
+                            new ObservationWriter(new FileWriter(filename));
                     obsWriter.setHeaderIds(new String[]{"context", "chromosome", "start", "end", "annotation-id"});
                 } catch (IOException e) {
                     LOG.error("Cannot open observation file for writing: " + filename);
@@ -18,7 +18,6 @@
 
 package edu.cornell.med.icb.goby.stats;
 
-import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 import it.unimi.dsi.lang.MutableString;
 
 /**
@@ -74,6 +73,8 @@ public class AverageCalculator extends StatisticCalculator {
         }
 
 
+        final NormalizedExpressionMatrix matrix = getExpressionMatrix(differentialExpressionCalculator, method);
+        final int elementIndex = differentialExpressionCalculator.getElementIndex(info.getElementId());
         for (final String groupId : group) {
             final MutableString rpkmStatId = getStatisticId(groupId, "RPKM", method);
             final int rpkmStatIndex = defineStatisticId(results, rpkmStatId);
@@ -85,17 +86,17 @@ public class AverageCalculator extends StatisticCalculator {
             final int countStatIndex = defineStatisticId(results, countStatisticId);
 
             // calculate the average over the group:
-            final ObjectArraySet<String> samplesA = differentialExpressionCalculator.getSamples(groupId);
+            final int[] samplesA = differentialExpressionCalculator.getSampleIndices(groupId);
 
             double averageNormalizedExpressionValue = 0;
             double averageCount = 0;
 
-            for (final String sample : samplesA) {
-                averageNormalizedExpressionValue += differentialExpressionCalculator.getNormalizedExpressionValue(sample, method, info.getElementId());
-                averageCount += differentialExpressionCalculator.getOverlapCount(sample, info.getElementId());
+            for (final int sampleIndex : samplesA) {
+                averageNormalizedExpressionValue += matrix.getNormalizedExpressionValue(sampleIndex, elementIndex);
+                averageCount += matrix.getOverlapCount(sampleIndex, elementIndex);
             }
-            averageNormalizedExpressionValue /= (double) samplesA.size();
-            averageCount /= (double) samplesA.size();
+            averageNormalizedExpressionValue /= (double) samplesA.length;
+            averageCount /= (double) samplesA.length;
 
             if (results.getNumberOfStatistics()<countStatIndex) {
                 System.out.printf("countStatIndex > results.getNumberOfStatistics() %d %d",countStatIndex,results.getNumberOfStatistics() );
@@ -18,16 +18,14 @@
 
 package edu.cornell.med.icb.goby.stats;
 
-import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
 import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import it.unimi.dsi.fastutil.objects.ObjectSet;
-import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.util.Collections;
+import java.util.Arrays;
 
 /**
  * Implements the upper quartile normalization method described by Bullard et al in BMC
@@ -73,30 +71,34 @@ public class BullardUpperQuartileNormalization extends RpkmLikeNormalizationMeth
         for (final String group : groups) {
             samplesToNormalize.addAll(calculator.getSamples(group));
         }
-        // determine set of elements with reads in at least one sample (lane): elementIdsToKeep
-        final ObjectSet<MutableString> allElementIds = calculator.getElementIds();
-        final ObjectSet<MutableString> elementIdsToKeep = new ObjectOpenHashSet<MutableString>();
+        // determine set of elements with reads in at least one sample (lane): elementsToKeep
+        final int numElements = calculator.getNumberOfElements();
+        final boolean[] elementsToKeep = new boolean[numElements];
+        int numElementsToKeep = 0;
         for (final String sample : samplesToNormalize) {
-            for (final MutableString elementId : allElementIds) {
-                final int overlapCount = calculator.getOverlapCount(sample, elementId);
-                if (overlapCount != 0) {
-                    elementIdsToKeep.add(elementId);
+            final int sampleIndex = calculator.getSampleIndex(sample);
+            for (int elementIndex = 0; elementIndex < numElements; elementIndex++) {
+                if (!elementsToKeep[elementIndex] && calculator.getOverlapCount(sampleIndex, elementIndex) != 0) {
+                    elementsToKeep[elementIndex] = true;
+                    numElementsToKeep++;
                 }
-
             }
         }
-        assert elementIdsToKeep.size() > 0 : "kept elements cannot be null. ";
+        assert numElementsToKeep > 0 : "kept elements cannot be null. ";
         // determine upper quartile count in each sample:
         for (final String sampleId : samplesToNormalize) {
-            final DoubleArrayList countValues = new DoubleArrayList();
-
-            for (final MutableString elementId : elementIdsToKeep) {
-                countValues.add(calculator.getOverlapCount(sampleId, elementId));
+            final int sampleIndex = calculator.getSampleIndex(sampleId);
+            final double[] countValues = new double[numElementsToKeep];
+            int i = 0;
+            for (int elementIndex = 0; elementIndex < numElements; elementIndex++) {
+                if (elementsToKeep[elementIndex]) {
+                    countValues[i++] = calculator.getOverlapCount(sampleIndex, elementIndex);
+                }
             }
-            Collections.sort(countValues);
+            Arrays.sort(countValues);
             final double upperQuartile;
-            if (countValues.size() > 0) {
-                upperQuartile = countValues.getDouble((int) (countValues.size() * percentile));
+            if (countValues.length > 0) {
+                upperQuartile = countValues[(int) (countValues.length * percentile)];
             } else {
                 upperQuartile = 0;
             }
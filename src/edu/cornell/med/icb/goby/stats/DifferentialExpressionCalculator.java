@@ -19,6 +19,7 @@
 package edu.cornell.med.icb.goby.stats;
 
 import edu.cornell.med.icb.goby.algorithmic.data.GroupComparison;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import it.unimi.dsi.fastutil.ints.Int2IntAVLTreeMap;
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
@@ -43,7 +44,26 @@ public class DifferentialExpressionCalculator {
     private final IndexedIdentifier elementLabels;
     private int elementsPerSample;
     private int numberOfSamples;
-    private final Map<String, IntArrayList> sampleToCounts;
+    /**
+     * Index of each sample in sampleIds and sampleCounts.
+     */
+    private final Object2IntMap<String> sampleToIndex;
+    private final ObjectArrayList<String> sampleIds;
+    /**
+     * The counts of each sample, one column per sample indexed by element index. The column of a sample that was
+     * never observed is null.
+     */
+    private volatile int[][] sampleCounts;
+    /**
+     * Indices of the samples of each group, in the order of {@link #getSamples(String)}.
+     */
+    private final Object2ObjectMap<String, int[]> groupToSampleIndices;
+    /**
+     * False when a subclass provides counts or normalized values by overriding the accessors by sample and element
+     * id. Accessors by index then delegate to the overridden accessors rather than read the stored counts.
+     */
+    private final boolean storedCounts;
+    private MutableString[] elementIdsByIndex;
     private Object2DoubleMap<String> sampleProportions;
     private final IntArrayList lengths;
     private final Int2IntMap elementLabelToElementType;
@@ -93,8 +113,11 @@ public class DifferentialExpressionCalculator {
      */
     public void createDefaultGroup() {
 
-        for (final String sampleId : sampleToCounts.keySet()) {
-            associateSampleToGroup(sampleId, "all-samples/all-samples");
+        final int[][] counts = sampleCounts;
+        for (int sampleIndex = 0; sampleIndex < counts.length; sampleIndex++) {
+            if (counts[sampleIndex] != null) {
+                associateSampleToGroup(sampleIds.get(sampleIndex), "all-samples/all-samples");
+            }
         }
     }
 
@@ -116,7 +139,14 @@ public class DifferentialExpressionCalculator {
         elementLabels = new IndexedIdentifier(100000);
         sampleToGroupMap = new Object2ObjectOpenHashMap<String, String>();
         numAlignedInSample = new Object2LongOpenHashMap<String>();
-        sampleToCounts = new Object2ObjectOpenHashMap<String, IntArrayList>();
+        sampleToIndex = new Object2IntOpenHashMap<String>();
+        sampleToIndex.defaultReturnValue(-1);
+        sampleIds = new ObjectArrayList<String>();
+        sampleCounts = new int[0][];
+        groupToSampleIndices = new Object2ObjectOpenHashMap<String, int[]>();
+        storedCounts = !overrides("getOverlapCount", String.class, MutableString.class)
+                && !overrides("getNormalizedExpressionValue", String.class, NormalizationMethod.class,
+                MutableString.class);
         lengths = new IntArrayList();
         elementLabelToElementType = new Int2IntAVLTreeMap();
         elementLabelToElementType.defaultReturnValue(-1);
@@ -124,6 +154,24 @@ public class DifferentialExpressionCalculator {
         sampleToSumCount.defaultReturnValue(-1);
     }
 
+    private boolean overrides(final String methodName, final Class<?>... parameterTypes) {
+        try {
+            return getClass().getMethod(methodName, parameterTypes).getDeclaringClass()
+                    != DifferentialExpressionCalculator.class;
+        } catch (NoSuchMethodException e) {
+            throw new GobyRuntimeException(e);
+        }
+    }
+
+    /**
+     * Return true when the counts are read from the storage of this calculator, and false when a subclass provides
+     * them by overriding {@link #getOverlapCount(String, MutableString)} or
+     * {@link #getNormalizedExpressionValue(String, NormalizationMethod, MutableString)}.
+     */
+    public boolean hasStoredCounts() {
+        return storedCounts;
+    }
+
     public double calculateNormalized(final int readCountInt, final int annotLength, final double normalizationFactor) {
         final double readCount = readCountInt;
         final double length = annotLength; // in bases
@@ -162,6 +210,7 @@ public class DifferentialExpressionCalculator {
     public synchronized int defineElement(final String label, final ElementType type) {
         final MutableString elementLabel = new MutableString(label).compact();
         final int elementIndex = elementLabels.registerIdentifier(elementLabel);
+        elementIdsByIndex = null;
         if (elementLabelToElementType.get(elementIndex) == -1) {
             // Don't REPLACE the ElementType for a label. If it was set before, leave it alone.
             elementLabelToElementType.put(elementIndex, type.ordinal());
@@ -193,6 +242,27 @@ public class DifferentialExpressionCalculator {
 
     public synchronized void associateSampleToGroup(final String sample, final String group) {
         sampleToGroupMap.put(sample, group);
+        defineSample(sample);
+        groupToSampleIndices.clear();
+    }
+
+    /**
+     * Assign an index to a sample, if the sample does not have one yet.
+     *
+     * @param sample sample id.
+     * @return the index of the sample.
+     */
+    private synchronized int defineSample(final String sample) {
+        int sampleIndex = sampleToIndex.getInt(sample);
+        if (sampleIndex == -1) {
+            sampleIndex = sampleIds.size();
+            sampleIds.add(sample);
+            sampleToIndex.put(sample, sampleIndex);
+            final int[][] counts = new int[sampleIndex + 1][];
+            System.arraycopy(sampleCounts, 0, counts, 0, sampleIndex);
+            sampleCounts = counts;
+        }
+        return sampleIndex;
     }
 
     /**
@@ -206,6 +276,16 @@ public class DifferentialExpressionCalculator {
         return lengths.get(elementIndex);
     }
 
+    /**
+     * Return the length of an element.
+     *
+     * @param elementIndex index of the element.
+     * @return the number of sequence bases that the element spans.
+     */
+    public int getElementLength(final int elementIndex) {
+        return lengths.getInt(elementIndex);
+    }
+
     /**
      * Observe counts for a specific element and sample.
      *
@@ -228,24 +308,42 @@ public class DifferentialExpressionCalculator {
     public void observe(final String sample, final String elementId, final int count) {
 
 
-        IntArrayList counts = sampleToCounts.get(sample);
+        int sampleIndex = sampleToIndex.getInt(sample);
+        int[] counts = sampleIndex == -1 ? null : sampleCounts[sampleIndex];
         // the following looks a bit complicated. We are trying to avoid synchronizing every time observe is called.
         // This would slow the whole process too much. Instead, we synchronize only when we need to create a counts
         // data structure for a new sample, which should not happen too often.
         if (counts == null) {
             synchronized (this) {
-                counts = sampleToCounts.get(sample);
+                sampleIndex = defineSample(sample);
+                counts = sampleCounts[sampleIndex];
                 if (counts == null) {
-                    counts = new IntArrayList(elementsPerSample);
-                    counts.size(elementsPerSample);
-                    sampleToCounts.put(sample, counts);
+                    counts = new int[elementsPerSample];
+                    sampleCounts[sampleIndex] = counts;
                 }
             }
         }
 
 
         final int elementIndex = elementLabels.getInt(new MutableString(elementId));
-        counts.set(elementIndex, count);
+        counts[elementIndex] = count;
+    }
+
+    /**
+     * Observe the counts of all the elements of a sample at once. The array is used directly, without copying.
+     *
+     * @param sample sample id.
+     * @param counts Number of reads that can be assigned to each element, indexed by element index.
+     */
+    public synchronized void observe(final String sample, final int[] counts) {
+        final int sampleIndex = defineSample(sample);
+        if (counts.length < elementsPerSample) {
+            final int[] column = new int[elementsPerSample];
+            System.arraycopy(counts, 0, column, 0, counts.length);
+            sampleCounts[sampleIndex] = column;
+        } else {
+            sampleCounts[sampleIndex] = counts;
+        }
     }
 
     /**
@@ -259,6 +357,39 @@ public class DifferentialExpressionCalculator {
 
     }
 
+    /**
+     * Return the element index of element identified by id.
+     *
+     * @param elementId id of the element.
+     * @return index of the element.
+     */
+    public int getElementIndex(final MutableString elementId) {
+        return elementLabels.getInt(elementId);
+    }
+
+    /**
+     * @return the number of elements defined.
+     */
+    public int getNumberOfElements() {
+        return elementLabels.size();
+    }
+
+    /**
+     * Return the id of an element.
+     *
+     * @param elementIndex index of the element.
+     * @return the element id.
+     */
+    public synchronized MutableString getElementId(final int elementIndex) {
+        if (elementIdsByIndex == null) {
+            elementIdsByIndex = new MutableString[elementLabels.size()];
+            for (final Object2IntMap.Entry<MutableString> entry : elementLabels.object2IntEntrySet()) {
+                elementIdsByIndex[entry.getIntValue()] = entry.getKey();
+            }
+        }
+        return elementIdsByIndex[elementIndex];
+    }
+
     /**
      * Define the number of alignment entries found in each sample.
      *
@@ -360,14 +491,61 @@ public class DifferentialExpressionCalculator {
      */
     public ObjectArraySet<String> getSamples(final String groupId) {
         final ObjectArraySet<String> samples = new ObjectArraySet<String>();
-        for (final String sampleId : sampleToGroupMap.keySet()) {
-            if (sampleToGroupMap.get(sampleId).equals(groupId)) {
-                samples.add(sampleId);
-            }
+        for (final int sampleIndex : getSampleIndices(groupId)) {
+            samples.add(sampleIds.get(sampleIndex));
         }
         return samples;
     }
 
+    /**
+     * Returns the indices of the samples that belong to a group. Sample indices address the columns of counts,
+     * see {@link #getOverlapCount(int, int)}.
+     *
+     * @param groupId Id of the group.
+     * @return the indices of the samples, in the order of {@link #getSamples(String)}. Do not modify this array.
+     */
+    public synchronized int[] getSampleIndices(final String groupId) {
+        int[] indices = groupToSampleIndices.get(groupId);
+        if (indices == null) {
+            final IntArrayList list = new IntArrayList();
+            for (final String sampleId : sampleToGroupMap.keySet()) {
+                if (sampleToGroupMap.get(sampleId).equals(groupId)) {
+                    list.add(sampleToIndex.getInt(sampleId));
+                }
+            }
+            indices = list.toIntArray();
+            groupToSampleIndices.put(groupId, indices);
+        }
+        return indices;
+    }
+
+    /**
+     * @return the number of samples that were observed or associated to a group.
+     */
+    public synchronized int getNumberOfSamples() {
+        return sampleIds.size();
+    }
+
+    /**
+     * Return the id of a sample.
+     *
+     * @param sampleIndex index of the sample.
+     * @return the sample id.
+     */
+    public synchronized String getSampleId(final int sampleIndex) {
+        return sampleIds.get(sampleIndex);
+    }
+
+    /**
+     * Return the index of a sample.
+     *
+     * @param sampleId sample id.
+     * @return the index of the sample, or -1 if the sample was never observed or associated to a group.
+     */
+    public synchronized int getSampleIndex(final String sampleId) {
+        return sampleToIndex.getInt(sampleId);
+    }
+
     public ObjectSet<MutableString> getElementIds() {
         return elementLabels.keySet();
     }
@@ -395,19 +573,36 @@ public class DifferentialExpressionCalculator {
      * @return
      */
     public int getOverlapCount(final String sample, final MutableString elementId) {
-        final IntArrayList counts = sampleToCounts.get(sample);
-        if (counts == null) {
+        final int sampleIndex = sampleToIndex.getInt(sample);
+        if (sampleIndex == -1) {
             return 0;
         }
-        final int elementIndex = elementLabels.get(elementId);
+        return getStoredOverlapCount(sampleIndex, elementLabels.get(elementId));
+    }
 
-        if (elementIndex < counts.size()) {
-            return counts.get(elementIndex);
-        } else {
+    /**
+     * Get the stored overlap count for an element in a given sample.
+     *
+     * @param sampleIndex  index of the sample.
+     * @param elementIndex index of the element.
+     * @return the count, or zero if the sample has no count for the element.
+     */
+    public int getOverlapCount(final int sampleIndex, final int elementIndex) {
+        if (!storedCounts) {
+            return getOverlapCount(getSampleId(sampleIndex), getElementId(elementIndex));
+        }
+        return getStoredOverlapCount(sampleIndex, elementIndex);
+    }
+
+    private int getStoredOverlapCount(final int sampleIndex, final int elementIndex) {
+        final int[] counts = sampleCounts[sampleIndex];
+        if (counts == null || elementIndex >= counts.length) {
             return 0;
         }
+        return counts[elementIndex];
     }
 
+
     /**
      * Returns the sum of counts in a given sample.
      *
@@ -422,7 +617,8 @@ public class DifferentialExpressionCalculator {
             return sumCountsCached;
         }
         int sumCounts = 0;
-        final IntArrayList counts = sampleToCounts.get(sample);
+        final int sampleIndex = sampleToIndex.getInt(sample);
+        final int[] counts = sampleIndex == -1 ? null : sampleCounts[sampleIndex];
         if (counts == null) {
             return 0;
         }
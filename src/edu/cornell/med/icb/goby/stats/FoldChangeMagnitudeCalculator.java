@@ -18,8 +18,6 @@
 
 package edu.cornell.med.icb.goby.stats;
 
-import it.unimi.dsi.fastutil.objects.ObjectArraySet;
-
 /**
  * Calculates fold change magnitude from first group to second group (requires exactly two groups).
  * The fold change magnitude is defined as max(foldChange, 1d / foldChange).
@@ -55,20 +53,14 @@ public class FoldChangeMagnitudeCalculator extends StatisticCalculator {
         final String groupA = group[0];
         final String groupB = group[1];
         final int statIndex = defineStatisticId(results, "fold-change-magnitude", method);
-        final ObjectArraySet<String> samplesA = differentialExpressionCalculator.getSamples(groupA);
-        final ObjectArraySet<String> samplesB = differentialExpressionCalculator.getSamples(groupB);
-        double averageA = 0;
-        double averageB = 0;
-
-
-        for (final String sample : samplesA) {
-            averageA += differentialExpressionCalculator.getNormalizedExpressionValue(sample, method, info.getElementId());
-        }
-        for (final String sample : samplesB) {
-            averageB += differentialExpressionCalculator.getNormalizedExpressionValue(sample, method, info.getElementId());
-        }
-        averageA /= samplesA.size();
-        averageB /= samplesB.size();
+        final int[] samplesA = differentialExpressionCalculator.getSampleIndices(groupA);
+        final int[] samplesB = differentialExpressionCalculator.getSampleIndices(groupB);
+        final NormalizedExpressionMatrix matrix = getExpressionMatrix(differentialExpressionCalculator, method);
+        final int elementIndex = differentialExpressionCalculator.getElementIndex(info.getElementId());
+        double averageA = sumNormalizedExpressionValues(matrix, samplesA, elementIndex);
+        double averageB = sumNormalizedExpressionValues(matrix, samplesB, elementIndex);
+        averageA /= samplesA.length;
+        averageB /= samplesB.length;
         final double shift=0.000001;
         final double foldChange = (averageA + shift ) / (averageB + shift);
         final double foldChangeMagnitudeStatistic = Math.max(foldChange, 1d / foldChange);
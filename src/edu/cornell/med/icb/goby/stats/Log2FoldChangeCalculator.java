@@ -18,8 +18,6 @@
 
 package edu.cornell.med.icb.goby.stats;
 
-import it.unimi.dsi.fastutil.objects.ObjectArraySet;
-
 /**
  * User: nyasha
  * Date: Apr 8, 2010
@@ -57,21 +55,14 @@ public class Log2FoldChangeCalculator extends StatisticCalculator {
         final String groupB = group[1];
         final int foldChangeStatIndex = defineStatisticId(results, "log2-fold-change", method, group);
 
-        final ObjectArraySet<String> samplesA = differentialExpressionCalculator.getSamples(groupA);
-        final ObjectArraySet<String> samplesB = differentialExpressionCalculator.getSamples(groupB);
-        double averageA = 0;
-        double averageB = 0;
-
-
-        for (final String sample : samplesA) {
-            averageA += differentialExpressionCalculator.getNormalizedExpressionValue(sample, method, info.getElementId());
-        }
-
-        for (final String sample : samplesB) {
-            averageB += differentialExpressionCalculator.getNormalizedExpressionValue(sample, method, info.getElementId());
-        }
-        averageA /= samplesA.size();
-        averageB /= samplesB.size();
+        final int[] samplesA = differentialExpressionCalculator.getSampleIndices(groupA);
+        final int[] samplesB = differentialExpressionCalculator.getSampleIndices(groupB);
+        final NormalizedExpressionMatrix matrix = getExpressionMatrix(differentialExpressionCalculator, method);
+        final int elementIndex = differentialExpressionCalculator.getElementIndex(info.getElementId());
+        double averageA = sumNormalizedExpressionValues(matrix, samplesA, elementIndex);
+        double averageB = sumNormalizedExpressionValues(matrix, samplesB, elementIndex);
+        averageA /= samplesA.length;
+        averageB /= samplesB.length;
         final double foldChangeStatistic = log2(averageA) - log2(averageB);
         info.statistics.size(results.getNumberOfStatistics());
         info.statistics.set(foldChangeStatIndex, foldChangeStatistic);
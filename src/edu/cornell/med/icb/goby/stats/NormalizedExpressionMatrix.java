@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.stats;
+
+import it.unimi.dsi.lang.MutableString;
+
+/**
+ * Normalized expression values of the elements of a {@link DifferentialExpressionCalculator}, addressed by sample
+ * and element index. The matrix reads the count columns of the calculator directly, and normalizes them column-wise:
+ * the denominator of each sample is looked up once, when the matrix is created, rather than once per element. Methods
+ * that are not RPKM-like, and calculators that override the accessors by id, are queried for each value instead.
+ * Values are identical to those returned by
+ * {@link DifferentialExpressionCalculator#getNormalizedExpressionValue(String, NormalizationMethod, MutableString)}.
+ * <p/>
+ * Create the matrix after the normalization method has normalized the calculator. The matrix is not modified once
+ * created and can be shared by the threads that evaluate statistics over different elements.
+ */
+public class NormalizedExpressionMatrix {
+    private final DifferentialExpressionCalculator deCalculator;
+    private final NormalizationMethod method;
+    /**
+     * The denominator of each sample, in reads, or null when values are obtained from the calculator one by one.
+     */
+    private final double[] denominators;
+
+    /**
+     * Create the matrix of normalized values of a calculator.
+     *
+     * @param deCalculator the calculator that stores counts.
+     * @param method       the normalization method, already applied to the calculator.
+     */
+    public NormalizedExpressionMatrix(final DifferentialExpressionCalculator deCalculator,
+                                      final NormalizationMethod method) {
+        super();
+        this.deCalculator = deCalculator;
+        this.method = method;
+        if (method instanceof RpkmLikeNormalizationMethod && deCalculator.hasStoredCounts()) {
+            final int numSamples = deCalculator.getNumberOfSamples();
+            final RpkmLikeNormalizationMethod rpkmLike = (RpkmLikeNormalizationMethod) method;
+            denominators = new double[numSamples];
+            for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+                denominators[sampleIndex] = rpkmLike.getDenominator(deCalculator,
+                        deCalculator.getSampleId(sampleIndex));
+            }
+        } else {
+            denominators = null;
+        }
+    }
+
+    /**
+     * Return true when this matrix holds the values of the calculator normalized with the method, for all the samples
+     * currently defined in the calculator.
+     */
+    public boolean isFor(final DifferentialExpressionCalculator deCalculator, final NormalizationMethod method) {
+        return this.deCalculator == deCalculator && this.method == method
+                && (denominators == null || denominators.length == deCalculator.getNumberOfSamples());
+    }
+
+    public DifferentialExpressionCalculator getCalculator() {
+        return deCalculator;
+    }
+
+    /**
+     * Return the normalized expression value of an element in a sample.
+     *
+     * @param sampleIndex  index of the sample, as returned by
+     *                     {@link DifferentialExpressionCalculator#getSampleIndices(String)}.
+     * @param elementIndex index of the element.
+     * @return normalized expression value scaled by length and global normalization method.
+     */
+    public double getNormalizedExpressionValue(final int sampleIndex, final int elementIndex) {
+        if (denominators == null) {
+            return deCalculator.getNormalizedExpressionValue(deCalculator.getSampleId(sampleIndex), method,
+                    deCalculator.getElementId(elementIndex));
+        }
+        return RpkmLikeNormalizationMethod.normalize(deCalculator.getOverlapCount(sampleIndex, elementIndex),
+                deCalculator.getElementLength(elementIndex), denominators[sampleIndex]);
+    }
+
+    /**
+     * Return the count of an element in a sample, before normalization.
+     *
+     * @param sampleIndex  index of the sample.
+     * @param elementIndex index of the element.
+     * @return the number of reads observed for the element.
+     */
+    public int getOverlapCount(final int sampleIndex, final int elementIndex) {
+        return deCalculator.getOverlapCount(sampleIndex, elementIndex);
+    }
+}
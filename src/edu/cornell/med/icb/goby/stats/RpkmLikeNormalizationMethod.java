@@ -40,6 +40,19 @@ public abstract class RpkmLikeNormalizationMethod implements NormalizationMethod
         final int elementLength = deCalc.getElementLength(elementId);
 
         final double normalizationFactor = getDenominator(deCalc, sampleId); // in reads
-        return (double) (count+1) / ((double) elementLength / 1000.0d) / (normalizationFactor / 1E6d);
+        return normalize(count, elementLength, normalizationFactor);
+    }
+
+    /**
+     * Calculate an RPKM-like value. Counts are incremented by one, so that elements without reads have a non-zero
+     * value.
+     *
+     * @param count               number of reads observed for the element.
+     * @param elementLength       length of the element, in bases.
+     * @param normalizationFactor the denominator of the sample, in reads.
+     * @return the normalized expression value.
+     */
+    static double normalize(final int count, final int elementLength, final double normalizationFactor) {
+        return (double) (count + 1) / ((double) elementLength / 1000.0d) / (normalizationFactor / 1E6d);
     }
 }
@@ -35,7 +35,17 @@ import java.util.Arrays;
  *         Time: 7:02:02 PM
  */
 public abstract class StatisticCalculator {
+    /**
+     * The elements are evaluated in about this many blocks per processor, so that threads that finish early can
+     * pick up more work.
+     */
+    private static final int BLOCKS_PER_PROCESSOR = 4;
+
     protected DifferentialExpressionResults results;
+    /**
+     * The normalized values of the last calculator and method evaluated, or null before the first evaluation.
+     */
+    private volatile NormalizedExpressionMatrix expressionMatrix;
 
     /**
      * Define the name of a statistic if the name was not previously defined.
@@ -196,20 +206,24 @@ public abstract class StatisticCalculator {
             }
         } else results = inputList;
 
+        // normalize once for all the elements, then evaluate blocks of consecutive elements in parallel:
+        expressionMatrix = new NormalizedExpressionMatrix(differentialExpressionCalculator, method);
+        final int numElements = results.size();
+        final int numBlocks = differentialExpressionCalculator.isRunInParallel()
+                ? Math.min(numElements, BLOCKS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors()) : 1;
+        final int blockSize = numBlocks == 0 ? 0 : (numElements + numBlocks - 1) / numBlocks;
         DoInParallel loop = new DoInParallel() {
             @Override
             public void action(DoInParallel forDataAccess, String inputBasename, int loopIndex) {
-                if (loopIndex >= results.size()) {
-                    System.out.printf("Error: loopIndex>=results.size() %d >=%d inputSize: %d", loopIndex, results.size(),
-                            inputList.size());
-                } else {
-                    evaluate(differentialExpressionCalculator, method, results, results.get(loopIndex), group);
+                final int end = Math.min(numElements, (loopIndex + 1) * blockSize);
+                for (int elementIndex = loopIndex * blockSize; elementIndex < end; elementIndex++) {
+                    evaluate(differentialExpressionCalculator, method, results, results.get(elementIndex), group);
                 }
             }
         };
         try {
-            final String[] strings = new String[results.size()];
-            Arrays.fill(strings, "basename");
+            final String[] strings = new String[numBlocks];
+            Arrays.fill(strings, "block");
             loop.execute(differentialExpressionCalculator.isRunInParallel(), strings);
         } catch (Exception e) {
             throw new RuntimeException(String.format("Error executing parallel loop for statistic %s evaluation",
@@ -218,6 +232,46 @@ public abstract class StatisticCalculator {
         return results;
     }
 
+    /**
+     * Return the normalized values of a calculator. The values are normalized again each time all the elements are
+     * evaluated. When single elements are evaluated, the values are normalized for the first element and reused for
+     * the next elements of the same calculator and method. Counts are read as they are, but the normalization
+     * denominators of the samples are kept, so the calculator must not be normalized again between such evaluations.
+     *
+     * @param differentialExpressionCalculator
+     *               The deCalculator that keeps the data needed to evaluate the statistic
+     * @param method the normalization method
+     * @return the normalized expression values of all the elements in all the samples.
+     */
+    protected NormalizedExpressionMatrix getExpressionMatrix(
+            final DifferentialExpressionCalculator differentialExpressionCalculator, final NormalizationMethod method) {
+        final NormalizedExpressionMatrix matrix = expressionMatrix;
+        if (matrix != null && matrix.isFor(differentialExpressionCalculator, method)) {
+            return matrix;
+        }
+        final NormalizedExpressionMatrix newMatrix = new NormalizedExpressionMatrix(differentialExpressionCalculator,
+                method);
+        expressionMatrix = newMatrix;
+        return newMatrix;
+    }
+
+    /**
+     * Sum the normalized values of an element over samples.
+     *
+     * @param matrix        normalized values
+     * @param sampleIndices indices of the samples
+     * @param elementIndex  index of the element
+     * @return the sum of the normalized values.
+     */
+    protected static double sumNormalizedExpressionValues(final NormalizedExpressionMatrix matrix,
+                                                          final int[] sampleIndices, final int elementIndex) {
+        double sum = 0;
+        for (final int sampleIndex : sampleIndices) {
+            sum += matrix.getNormalizedExpressionValue(sampleIndex, elementIndex);
+        }
+        return sum;
+    }
+
     /**
      * Return the statistic id that starts with prefix.
      *
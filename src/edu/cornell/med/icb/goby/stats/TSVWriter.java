@@ -19,6 +19,7 @@
 package edu.cornell.med.icb.goby.stats;
 
 import edu.cornell.med.icb.goby.readers.vcf.ColumnType;
+import edu.cornell.med.icb.goby.util.OutputInfo;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import it.unimi.dsi.fastutil.ints.IntCollection;
@@ -45,6 +46,15 @@ public class TSVWriter {
 
     }
 
+    /**
+     * Write to the destination of an output info. Files whose name ends in .gz are written in the BGZF format.
+     *
+     * @param outputInfo where to write.
+     */
+    public TSVWriter(final OutputInfo outputInfo) {
+        this(outputInfo.getPrintWriter());
+    }
+
     IndexedIdentifier columnIds = new IndexedIdentifier();
     Formatter formatter;
 
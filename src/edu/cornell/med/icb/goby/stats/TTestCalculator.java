@@ -18,7 +18,6 @@
 
 package edu.cornell.med.icb.goby.stats;
 
-import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.stat.inference.TTest;
 import org.apache.commons.math.stat.inference.TTestImpl;
@@ -57,9 +56,9 @@ public class TTestCalculator extends StatisticCalculator {
                                         final String... group) {
         final String groupA = group[0];
         final String groupB = group[1];
-        final ObjectArraySet<String> samplesA = differentialExpressionCalculator.getSamples(groupA);
-        final ObjectArraySet<String> samplesB = differentialExpressionCalculator.getSamples(groupB);
-        if (samplesA.size() < 2 || samplesB.size() < 2) {
+        final int[] samplesA = differentialExpressionCalculator.getSampleIndices(groupA);
+        final int[] samplesB = differentialExpressionCalculator.getSampleIndices(groupB);
+        if (samplesA.length < 2 || samplesB.length < 2) {
             return info;
         }
 
@@ -68,18 +67,18 @@ public class TTestCalculator extends StatisticCalculator {
         final int tStatisticStatIndex = defineStatisticId(results, "t-statistic", method, group);
 
 
-        final double[] valuesA = new double[samplesA.size()];
-        final double[] valuesB = new double[samplesB.size()];
+        final NormalizedExpressionMatrix matrix = getExpressionMatrix(differentialExpressionCalculator, method);
+        final int elementIndex = differentialExpressionCalculator.getElementIndex(info.getElementId());
+        final double[] valuesA = new double[samplesA.length];
+        final double[] valuesB = new double[samplesB.length];
 
 
-        int i = 0;
-        for (final String sample : samplesA) {
-            valuesA[i++] = StrictMath.log1p(differentialExpressionCalculator.getNormalizedExpressionValue(sample, method, info.getElementId()));
+        for (int i = 0; i < samplesA.length; i++) {
+            valuesA[i] = StrictMath.log1p(matrix.getNormalizedExpressionValue(samplesA[i], elementIndex));
         }
 
-        i = 0;
-        for (final String sample : samplesB) {
-            valuesB[i++] = StrictMath.log1p(differentialExpressionCalculator.getNormalizedExpressionValue(sample, method, info.getElementId()));
+        for (int i = 0; i < samplesB.length; i++) {
+            valuesB[i] = StrictMath.log1p(matrix.getNormalizedExpressionValue(samplesB[i], elementIndex));
         }
 
         double pValue = 0;
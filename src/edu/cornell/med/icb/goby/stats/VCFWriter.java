@@ -18,8 +18,10 @@
 
 package edu.cornell.med.icb.goby.stats;
 
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
 import edu.cornell.med.icb.goby.modes.GobyDriver;
 import edu.cornell.med.icb.goby.readers.vcf.*;
+import edu.cornell.med.icb.goby.util.ParallelBlockCompressedOutputStream;
 import edu.cornell.med.icb.util.VersionUtils;
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
@@ -31,6 +33,8 @@ import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.lang.MutableString;
 import net.sf.samtools.util.BlockCompressedOutputStream;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
@@ -64,7 +68,18 @@ public class VCFWriter {
     private CharSequence filter;
 
     private boolean[] formatFieldActive;
+    /**
+     * Values of the sample fields of the current record, indexed by format field and sample. Numbers are kept in
+     * formatInts or formatDoubles, as indicated by formatKinds, and only formatted when the record is written.
+     */
     private CharSequence[][] formatValues;
+    private byte[][] formatKinds;
+    private int[][] formatInts;
+    private double[][] formatDoubles;
+    private static final byte TEXT_VALUE = 0;
+    private static final byte INT_VALUE = 1;
+    private static final byte DOUBLE_VALUE = 2;
+    private static final byte FLOAT_VALUE = 3;
     private CharSequence[] infoIds;
     ObjectArrayList<String> refAlleles;
     private ObjectArrayList<String> altAlleles;
@@ -87,6 +102,24 @@ public class VCFWriter {
     }
 
     private boolean writeFieldGroupAssociations;
+    private String columnStoreFilename;
+    private VCFColumnStoreWriter columnStore;
+    /**
+     * Index of the first INFO, FORMAT and sample column in the column store.
+     */
+    private int firstInfoStoreColumn;
+    private int formatStoreColumn;
+
+    /**
+     * Also write the values of each record to a columnar companion file, which VCFParser reads instead of the VCF
+     * file when it is present. Must be called before writeHeader.
+     *
+     * @param filename Name of the companion file, usually the VCF filename followed by
+     *                 VCFColumnStoreWriter.FILE_SUFFIX.
+     */
+    public void setColumnStore(final String filename) {
+        this.columnStoreFilename = filename;
+    }
 
 
     protected CharSequence getChromosome() {
@@ -98,7 +131,30 @@ public class VCFWriter {
     }
 
     public VCFWriter(final BlockCompressedOutputStream stream) {
+        this((OutputStream) stream);
+    }
+
+    /**
+     * Construct a VCFWriter that encodes records directly to bytes. Use a BlockCompressedOutputStream or a
+     * ParallelBlockCompressedOutputStream to produce output that can be indexed with tabix.
+     *
+     * @param stream Where the output will be written.
+     */
+    public VCFWriter(final OutputStream stream) {
         this(new PrintWriter(new OutputStreamWriter(stream)));
+        this.outStream = stream;
+    }
+
+    /**
+     * Construct a VCFWriter for a file. Files whose name ends in .gz are compressed in the BGZF format, with
+     * numThreads threads deflating blocks.
+     *
+     * @param filename   Name of the output file.
+     * @param numThreads Number of threads used to compress the output.
+     * @throws IOException if the file cannot be created.
+     */
+    public VCFWriter(final String filename, final int numThreads) throws IOException {
+        this(ParallelBlockCompressedOutputStream.open(filename, numThreads));
     }
 
     /**
@@ -236,7 +292,11 @@ public class VCFWriter {
         outWriter.print(tsvHeaderLine);
         outWriter.flush();
 
-        infoValues = new CharSequence[columns.find("INFO").fields.size()];
+        final int numInfoFields = columns.find("INFO").fields.size();
+        infoValues = new CharSequence[numInfoFields];
+        infoKinds = new byte[numInfoFields];
+        infoInts = new int[numInfoFields];
+        infoDoubles = new double[numInfoFields];
         final int numFormatTypes = columns.find("FORMAT").fields.size();
         formatFieldIds = new CharSequence[numFormatTypes];
         formatFieldActive = new boolean[numFormatTypes];
@@ -247,7 +307,7 @@ public class VCFWriter {
             index += 1;
             numFormatFields++;
         }
-        formatValues = new CharSequence[formatFieldActive.length][sampleIds.length];
+        allocateFormatValues(formatFieldActive.length);
         ref.setLength(0);
         alt.setLength(0);
         filter = ".";
@@ -272,6 +332,81 @@ public class VCFWriter {
                     columnField.id;
             infoFlag[infoFieldIndex] = infoField.type == ColumnType.Flag;
         }
+        if (columnStoreFilename != null) {
+            createColumnStore();
+        }
+    }
+
+    private void createColumnStore() {
+        final ObjectArrayList<String> storeColumnNames = new ObjectArrayList<String>();
+        final ObjectArrayList<String> storeFieldIds = new ObjectArrayList<String>();
+        for (final String fixedColumnName : new String[]{"CHROM", "POS", "ID", "REF", "ALT", "QUAL", "FILTER"}) {
+            storeColumnNames.add(fixedColumnName);
+            storeFieldIds.add("VALUE");
+        }
+        firstInfoStoreColumn = storeColumnNames.size();
+        for (final CharSequence infoId : infoIds) {
+            storeColumnNames.add("INFO");
+            storeFieldIds.add(infoId.toString());
+        }
+        formatStoreColumn = storeColumnNames.size();
+        storeColumnNames.add("FORMAT");
+        storeFieldIds.add("VALUE");
+        for (final String sampleId : sampleIds) {
+            for (int formatIndex = 0; formatIndex < numFormatFields; formatIndex++) {
+                storeColumnNames.add(sampleId);
+                storeFieldIds.add(formatFieldIds[formatIndex].toString());
+            }
+        }
+        try {
+            columnStore = new VCFColumnStoreWriter(columnStoreFilename,
+                    storeColumnNames.toArray(new String[storeColumnNames.size()]),
+                    storeFieldIds.toArray(new String[storeFieldIds.size()]));
+        } catch (IOException e) {
+            throw new GobyRuntimeException("Unable to create column store " + columnStoreFilename, e);
+        }
+    }
+
+    /**
+     * Copy the values of the current record to the column store.
+     */
+    private void storeRecord(final CharSequence format) {
+        columnStore.setValue(0, chrom);
+        if (position != -1) {
+            columnStore.setValue(1, position);
+        }
+        columnStore.setValue(2, id);
+        final StringBuilder value = new StringBuilder();
+        appendAlleles(value, refAlleles);
+        columnStore.setValue(3, value);
+        value.setLength(0);
+        appendAlleles(value, altAlleles);
+        columnStore.setValue(4, value);
+        columnStore.setValue(5, qual);
+        columnStore.setValue(6, filter);
+        for (int infoIndex = 0; infoIndex < infoValues.length; infoIndex++) {
+            value.setLength(0);
+            appendValue(value, infoKinds[infoIndex], infoValues[infoIndex], infoInts[infoIndex],
+                    infoDoubles[infoIndex]);
+            columnStore.setValue(firstInfoStoreColumn + infoIndex, value);
+        }
+        columnStore.setValue(formatStoreColumn, format);
+        int storeColumn = formatStoreColumn + 1;
+        for (int sampleIndex = 0; sampleIndex < sampleIds.length; sampleIndex++) {
+            for (int formatIndex = 0; formatIndex < numFormatFields; formatIndex++) {
+                if (formatFieldActive[formatIndex]) {
+                    value.setLength(0);
+                    appendSampleValue(value, formatIndex, sampleIndex);
+                    columnStore.setValue(storeColumn, value);
+                }
+                ++storeColumn;
+            }
+        }
+        try {
+            columnStore.writeRecord();
+        } catch (IOException e) {
+            throw new GobyRuntimeException("Unable to write to column store " + columnStoreFilename, e);
+        }
     }
 
     /**
@@ -323,92 +458,180 @@ public class VCFWriter {
      */
 
     public void writeRecord() {
-        outWriter.append(chrom);
-        outWriter.append('\t');
-        outWriter.append(position == -1 ? "" : Integer.toString(position));
-        outWriter.append('\t');
-        outWriter.append(id);
-        outWriter.append('\t');
-        outWriter.append(constructAlleleString(refAlleles));
-        outWriter.append('\t');
-        outWriter.append(constructAlleleString(altAlleles));
-        outWriter.append('\t');
-        outWriter.append(qual);
-        outWriter.append('\t');
-        outWriter.append(filter);
-        outWriter.append('\t');
-        int max;
-        int index = 0;
-        max = infoValues.length;
-
-        MutableString infoString = new MutableString();
-        for (CharSequence infoValue : infoValues) {
-            assert infoValue != null : "value cannot be null for INFO field " + infoIds[index];
-            if (infoValue.length() != 0) {
-                if (infoFlag[index]) {
-                    infoString.append(infoIds[index]);
-                } else {
-
-
-                    infoString.append(infoIds[index]);
-                    infoString.append('=');
-                    infoString.append(infoValue);
+        final StringBuilder record = this.record;
+        record.setLength(0);
+        record.append(chrom);
+        record.append('\t');
+        if (position != -1) {
+            record.append(position);
+        }
+        record.append('\t');
+        record.append(id);
+        record.append('\t');
+        appendAlleles(record, refAlleles);
+        record.append('\t');
+        appendAlleles(record, altAlleles);
+        record.append('\t');
+        record.append(qual);
+        record.append('\t');
+        record.append(filter);
+        record.append('\t');
+        boolean first = true;
+        for (int index = 0; index < infoValues.length; index++) {
+            if (infoKinds[index] == TEXT_VALUE) {
+                assert infoValues[index] != null : "value cannot be null for INFO field " + infoIds[index];
+                if (infoValues[index].length() == 0) {
+                    continue;
                 }
-                infoString.append(';');
-
             }
-
-            index += 1;
-
+            if (!first) {
+                record.append(';');
+            }
+            first = false;
+            record.append(infoIds[index]);
+            if (!infoFlag[index]) {
+                record.append('=');
+                appendValue(record, infoKinds[index], infoValues[index], infoInts[index], infoDoubles[index]);
+            }
         }
-        if (infoString.length() > 0) outWriter.append(infoString.subSequence(0, infoString.length() - 1));
-        outWriter.append('\t');
-
-        max = formatFieldIds.length;
-        index = 0;
-        MutableString formatString = new MutableString();
+        record.append('\t');
+        final int formatStart = record.length();
+        first = true;
         for (int formatIndex = 0; formatIndex < numFormatFields; formatIndex++) {
             if (formatFieldActive[formatIndex]) {
-                formatString.append(formatFieldIds[formatIndex]);
-                formatString.append(':');
+                if (!first) {
+                    record.append(':');
+                }
+                first = false;
+                record.append(formatFieldIds[formatIndex]);
             }
         }
-        if (formatString.length() > 0) outWriter.append(formatString.subSequence(0, formatString.length() - 1));
-
-        outWriter.append('\t');
-        int sampleIndex = 0;
-
-        max = sampleIds.length;
-
-        for (CharSequence value : sampleIds) {
-
-            MutableString sampleString = new MutableString();
+        final int formatEnd = record.length();
+        record.append('\t');
+        final int numSamples = sampleIds.length;
+        for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+            first = true;
             for (int formatIndex = 0; formatIndex < numFormatFields; formatIndex++) {
-                //  for (CharSequence formatType : formatFieldIds) {
                 if (formatFieldActive[formatIndex]) {
-                    final CharSequence v = formatValues[formatIndex][sampleIndex];
-                    if (v != null) {
-                        sampleString.append(v);
+                    if (!first) {
+                        record.append(':');
                     }
-                    sampleString.append(':');
+                    first = false;
+                    appendSampleValue(record, formatIndex, sampleIndex);
                 }
             }
-
-            sampleIndex++;
-            if (sampleString.length() > 0) outWriter.append(sampleString.subSequence(0, sampleString.length() - 1));
-            if (sampleIndex != max) outWriter.append('\t');
+            if (sampleIndex != numSamples - 1) {
+                record.append('\t');
+            }
+        }
+        record.append(lineSeparator);
+        writeText(record);
+        if (columnStore != null) {
+            storeRecord(record.substring(formatStart, formatEnd));
         }
-        outWriter.println();
         clear();
     }
 
+    /**
+     * Text of the record being written, reused across records.
+     */
+    private final StringBuilder record = new StringBuilder();
+    private final String lineSeparator = System.getProperty("line.separator");
+    /**
+     * Stream records are encoded to, or null when records are written to outWriter.
+     */
+    private OutputStream outStream;
+    private char[] recordChars = new char[0];
+    private byte[] recordBytes = new byte[0];
+
+    /**
+     * Write text to the output. StringBuilder formats numbers in place (Integer.getChars, FloatingDecimal), so
+     * records are built and written without creating intermediate strings.
+     *
+     * @param text the text to write.
+     */
+    private void writeText(final StringBuilder text) {
+        final int length = text.length();
+        if (recordChars.length < length) {
+            recordChars = new char[length * 2];
+            recordBytes = new byte[length * 2];
+        }
+        text.getChars(0, length, recordChars, 0);
+        if (outStream == null) {
+            outWriter.write(recordChars, 0, length);
+            return;
+        }
+        final char[] chars = recordChars;
+        final byte[] bytes = recordBytes;
+        try {
+            for (int i = 0; i < length; i++) {
+                final char c = chars[i];
+                if (c >= 0x80) {
+                    // not ASCII, use the charset of the header writer:
+                    outStream.write(text.toString().getBytes());
+                    return;
+                }
+                bytes[i] = (byte) c;
+            }
+            outStream.write(bytes, 0, length);
+        } catch (IOException e) {
+            throw new GobyRuntimeException("Unable to write VCF record", e);
+        }
+    }
+
+    private static void appendValue(final StringBuilder text, final byte kind, final CharSequence value,
+                                    final int intValue, final double doubleValue) {
+        switch (kind) {
+            case INT_VALUE:
+                text.append(intValue);
+                break;
+            case DOUBLE_VALUE:
+                text.append(doubleValue);
+                break;
+            case FLOAT_VALUE:
+                text.append((float) doubleValue);
+                break;
+            default:
+                if (value != null) {
+                    text.append(value);
+                }
+        }
+    }
+
+    private void appendSampleValue(final StringBuilder text, final int formatIndex, final int sampleIndex) {
+        appendValue(text, formatKinds[formatIndex][sampleIndex], formatValues[formatIndex][sampleIndex],
+                formatInts[formatIndex][sampleIndex], formatDoubles[formatIndex][sampleIndex]);
+    }
+
+    private void appendAlleles(final StringBuilder text, final ObjectArrayList<String> alleles) {
+        final int size = alleles.size();
+        if (size == 0) {
+            // set REF or ALT to the VCF missing value if there are no alleles to write:
+            text.append('.');
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            if (i != 0) {
+                text.append(',');
+            }
+            text.append(alleles.get(i));
+        }
+    }
+
     /**
      * Clear the record without writing to the output and prepare for the next record.
      */
     public void clear() {
-        Arrays.fill(formatFieldActive, false);
-        for (int i = 0; i < formatFieldActive.length; i++) Arrays.fill(formatValues[i], "");
+        for (int i = 0; i < formatFieldActive.length; i++) {
+            // the values of inactive fields were not set since the last clear:
+            if (formatFieldActive[i]) {
+                Arrays.fill(formatValues[i], "");
+                Arrays.fill(formatKinds[i], TEXT_VALUE);
+                formatFieldActive[i] = false;
+            }
+        }
         Arrays.fill(infoValues, "");
+        Arrays.fill(infoKinds, TEXT_VALUE);
 
         filter = ".";
         id = ".";
@@ -419,23 +642,6 @@ public class VCFWriter {
         qual = ".";
     }
 
-    MutableString buffer = new MutableString();
-
-    private MutableString constructAlleleString(ObjectArrayList<String> refAlleles) {
-        buffer.setLength(0);
-        int max = refAlleles.size();
-        int index = 0;
-        for (String allele : refAlleles) {
-            buffer.append(allele);
-            if (++index != max) buffer.append(',');
-        }
-        if (buffer.length() == 0) {
-            // set REF or ALT to the VCF missing value if there are no alleles to write:
-            buffer.append('.');
-        }
-        return buffer;
-    }
-
     /**
      * Set a flag to true.
      *
@@ -454,6 +660,7 @@ public class VCFWriter {
     public void setFlag(final int infoFlagIndex, final boolean state) {
 
         infoValues[infoFlagIndex] = state ? infoIds[infoFlagIndex] : "";
+        infoKinds[infoFlagIndex] = TEXT_VALUE;
 
     }
 
@@ -561,9 +768,20 @@ public class VCFWriter {
      */
     public void close() {
         outWriter.close();
+        // outWriter closed outStream, if any.
+        if (columnStore != null) {
+            try {
+                columnStore.close();
+            } catch (IOException e) {
+                throw new GobyRuntimeException("Unable to close column store " + columnStoreFilename, e);
+            }
+        }
     }
 
     CharSequence[] infoValues;
+    private byte[] infoKinds;
+    private int[] infoInts;
+    private double[] infoDoubles;
 
 
     ColumnInfo infoColumn = new ColumnInfo("INFO");
@@ -619,6 +837,7 @@ public class VCFWriter {
      */
     public void setInfo(int infoFieldIndex, CharSequence value) {
         infoValues[infoFieldIndex] = value;
+        infoKinds[infoFieldIndex] = TEXT_VALUE;
     }
 
     /**
@@ -628,7 +847,8 @@ public class VCFWriter {
      * @param value          Value of the field.
      */
     public void setInfo(int infoFieldIndex, double value) {
-        infoValues[infoFieldIndex] = Double.toString(value);
+        infoDoubles[infoFieldIndex] = value;
+        infoKinds[infoFieldIndex] = DOUBLE_VALUE;
     }
 
     /**
@@ -638,7 +858,8 @@ public class VCFWriter {
      * @param value          Value of the field.
      */
     public void setInfo(int infoFieldIndex, float value) {
-        infoValues[infoFieldIndex] = Float.toString(value);
+        infoDoubles[infoFieldIndex] = value;
+        infoKinds[infoFieldIndex] = FLOAT_VALUE;
     }
 
     /**
@@ -648,7 +869,8 @@ public class VCFWriter {
      * @param value          Value of the field.
      */
     public void setInfo(int infoFieldIndex, int value) {
-        infoValues[infoFieldIndex] = Integer.toString(value);
+        infoInts[infoFieldIndex] = value;
+        infoKinds[infoFieldIndex] = INT_VALUE;
     }
 
     private String[] sampleIds;
@@ -671,7 +893,15 @@ public class VCFWriter {
      */
     public void defineSamples(String[] samples) {
         sampleIds = samples;
-        formatValues = new CharSequence[getNumFormatFields()][samples.length];
+        allocateFormatValues(getNumFormatFields());
+    }
+
+    private void allocateFormatValues(final int numFormatTypes) {
+        final int numSamples = sampleIds.length;
+        formatValues = new CharSequence[numFormatTypes][numSamples];
+        formatKinds = new byte[numFormatTypes][numSamples];
+        formatInts = new int[numFormatTypes][numSamples];
+        formatDoubles = new double[numFormatTypes][numSamples];
     }
 
     /**
@@ -684,10 +914,16 @@ public class VCFWriter {
     public void setSampleValue(final int formatFieldIndex, final int sampleIndex, final CharSequence value) {
         formatFieldActive[formatFieldIndex] = true;
         formatValues[formatFieldIndex][sampleIndex] = value;
+        formatKinds[formatFieldIndex][sampleIndex] = TEXT_VALUE;
     }
 
     protected CharSequence getSampleValue(final int formatFieldIndex, final int sampleIndex) {
-        return formatValues[formatFieldIndex][sampleIndex];
+        if (formatKinds[formatFieldIndex][sampleIndex] == TEXT_VALUE) {
+            return formatValues[formatFieldIndex][sampleIndex];
+        }
+        final StringBuilder value = new StringBuilder();
+        appendSampleValue(value, formatFieldIndex, sampleIndex);
+        return value.toString();
     }
 
     /**
@@ -698,7 +934,9 @@ public class VCFWriter {
      * @param value            Value to set the field to for the current record.
      */
     public void setSampleValue(int formatFieldIndex, int sampleIndex, double value) {
-        setSampleValue(formatFieldIndex, sampleIndex, Double.toString(value));
+        formatFieldActive[formatFieldIndex] = true;
+        formatDoubles[formatFieldIndex][sampleIndex] = value;
+        formatKinds[formatFieldIndex][sampleIndex] = DOUBLE_VALUE;
     }
 
     /**
@@ -713,12 +951,12 @@ public class VCFWriter {
                                   final String newValueAtSampleIndex) {
 
         int minIndex = Math.min(sampleIndex, newSampleIndex);
-        int maxIndex = Math.max(sampleIndex, newSampleIndex);
-        if (maxIndex == maxIndex) {
-            setSampleValue(formatFieldIndex, newSampleIndex, formatValues[formatFieldIndex][minIndex]);
-        }
         // move value from sampleIndex to newSampleIndex, put newValueAtSampleIndex at sampleIndex
-        setSampleValue(formatFieldIndex, newSampleIndex, formatValues[formatFieldIndex][minIndex]);
+        formatFieldActive[formatFieldIndex] = true;
+        formatValues[formatFieldIndex][newSampleIndex] = formatValues[formatFieldIndex][minIndex];
+        formatKinds[formatFieldIndex][newSampleIndex] = formatKinds[formatFieldIndex][minIndex];
+        formatInts[formatFieldIndex][newSampleIndex] = formatInts[formatFieldIndex][minIndex];
+        formatDoubles[formatFieldIndex][newSampleIndex] = formatDoubles[formatFieldIndex][minIndex];
         setSampleValue(formatFieldIndex, sampleIndex, newValueAtSampleIndex);
 
 
@@ -732,7 +970,9 @@ public class VCFWriter {
      * @param value            Value to set the field to for the current record.
      */
     public void setSampleValue(int formatFieldIndex, int sampleIndex, int value) {
-        setSampleValue(formatFieldIndex, sampleIndex, Integer.toString(value));
+        formatFieldActive[formatFieldIndex] = true;
+        formatInts[formatFieldIndex][sampleIndex] = value;
+        formatKinds[formatFieldIndex][sampleIndex] = INT_VALUE;
     }
 
     /**
@@ -743,7 +983,9 @@ public class VCFWriter {
      * @param value            Value to set the field to for the current record.
      */
     public void setSampleValue(int formatFieldIndex, int sampleIndex, float value) {
-        setSampleValue(formatFieldIndex, sampleIndex, Float.toString(value));
+        formatFieldActive[formatFieldIndex] = true;
+        formatDoubles[formatFieldIndex][sampleIndex] = value;
+        formatKinds[formatFieldIndex][sampleIndex] = FLOAT_VALUE;
     }
 
     public void setSampleValue(String formatToken, int sampleIndex, String value) {
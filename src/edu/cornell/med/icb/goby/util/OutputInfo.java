@@ -18,6 +18,9 @@
 
 package edu.cornell.med.icb.goby.util;
 
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+
 import java.io.*;
 
 /**
@@ -29,6 +32,10 @@ public class OutputInfo {
     private PrintWriter outWriter;
     private OutputStream outStream;
     private String outputFilename;
+    /**
+     * Number of threads that deflate .gz outputs, or zero to use as many threads as there are processors.
+     */
+    private int numThreads;
 
 
     public OutputInfo(String outputFilename) throws FileNotFoundException {
@@ -38,11 +45,33 @@ public class OutputInfo {
     public OutputInfo() {
     }
 
+    /**
+     * Set the number of threads used to deflate output files whose name ends in .gz. These files are written in
+     * the BGZF format, which tabix can index. Defaults to the number of processors.
+     *
+     * @param numThreads number of threads, 1 to deflate on the writing thread.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Open the output for writing text.
+     *
+     * @return a writer to the output.
+     * @throws GobyRuntimeException if the output file cannot be opened, with the IOException as cause.
+     */
     public PrintWriter getPrintWriter() {
-        try {
-            outWriter = isToConsole(outputFilename) ? new PrintWriter(System.out) : new PrintWriter(outputFilename);
-        } catch (FileNotFoundException e) {
-            System.err.println("Cannot open output file for writing: " + outputFilename);
+        if (isToConsole(outputFilename)) {
+            outWriter = new PrintWriter(System.out);
+        } else if (outputFilename.endsWith(".gz")) {
+            outWriter = new PrintWriter(new OutputStreamWriter(getOutputStream()));
+        } else {
+            try {
+                outWriter = new PrintWriter(outputFilename);
+            } catch (FileNotFoundException e) {
+                throw new GobyRuntimeException("Cannot open output file for writing: " + outputFilename, e);
+            }
         }
         return outWriter;
     }
@@ -55,11 +84,24 @@ public class OutputInfo {
         return "-".equals(outputFilename);
     }
 
+    /**
+     * Open the output file for writing bytes. Files whose name ends in .gz are deflated in the BGZF format, on a pool
+     * of threads started when the file is opened. Other files are written as is.
+     *
+     * @return a stream to the output file.
+     * @throws GobyRuntimeException if the output file cannot be opened, with the IOException as cause.
+     */
     public OutputStream getOutputStream() {
         try {
-            outStream = new FileOutputStream(outputFilename);
-        } catch (FileNotFoundException e) {
-            System.err.println("Cannot open output file for writing: " + outputFilename);
+            if (outputFilename.endsWith(".gz")) {
+                final int threads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+                outStream = new FastBufferedOutputStream(ParallelBlockCompressedOutputStream.open(outputFilename,
+                        threads));
+            } else {
+                outStream = new FastBufferedOutputStream(new FileOutputStream(outputFilename));
+            }
+        } catch (IOException e) {
+            throw new GobyRuntimeException("Cannot open output file for writing: " + outputFilename, e);
         }
         return outStream;
     }
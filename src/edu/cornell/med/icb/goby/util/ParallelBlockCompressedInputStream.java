@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.util;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayFIFOQueue;
+import net.sf.samtools.FileTruncatedException;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a file compressed in the BGZF format (as produced by bgzip or by samtools BlockCompressedOutputStream) and
+ * inflates its blocks on a pool of threads. Compressed blocks are read ahead of the consumer and inflated
+ * concurrently, then returned in file order, so that this stream can be used wherever a
+ * BlockCompressedInputStream is used. Virtual file pointers (compressed block address in the upper 48 bits, offset
+ * in the uncompressed block in the lower 16 bits) are supported by {@link #getFilePointer()} and
+ * {@link #seek(long)}.
+ * <p/>
+ * Streams either start their own pool of threads, or share a pool with other streams. Code that opens many files
+ * at once should share a pool, such as the one returned by {@link #getSharedExecutor()}, so that the number of
+ * inflating threads does not grow with the number of files.
+ */
+public class ParallelBlockCompressedInputStream extends InputStream {
+    /**
+     * Pool shared by streams, with one thread per processor, started when first used.
+     */
+    private static ExecutorService sharedExecutor;
+
+    private final RandomAccessFile file;
+    private final ExecutorService executor;
+    /**
+     * True when the executor was started for this stream, and must be shut down when the stream is closed.
+     */
+    private final boolean ownsExecutor;
+    /**
+     * Maximum number of blocks read ahead of the consumer.
+     */
+    private final int readAhead;
+    private final ObjectArrayFIFOQueue<Future<Block>> pending = new ObjectArrayFIFOQueue<Future<Block>>();
+    /**
+     * Address of the next compressed block to read from the file.
+     */
+    private long nextBlockAddress;
+    private boolean endOfFile;
+    /**
+     * True when the file must be positioned at nextBlockAddress before the next block is read.
+     */
+    private boolean repositioned;
+    private Block current;
+    private int position;
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private static class Block {
+        private final long address;
+        private final byte[] data;
+
+        private Block(final long address, final byte[] data) {
+            this.address = address;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Open a BGZF file, inflating blocks on the pool shared by streams, see {@link #getSharedExecutor()}.
+     *
+     * @param file the file to read.
+     * @throws IOException if the file cannot be opened.
+     */
+    public ParallelBlockCompressedInputStream(final File file) throws IOException {
+        this(file, getSharedExecutor(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Open a BGZF file, inflating blocks on a pool shared with other streams. The pool is not shut down when this
+     * stream is closed.
+     *
+     * @param file       the file to read.
+     * @param executor   the pool that inflates blocks.
+     * @param numThreads number of threads of the pool, which determines how many blocks are read ahead.
+     * @throws IOException if the file cannot be opened.
+     */
+    public ParallelBlockCompressedInputStream(final File file, final ExecutorService executor, final int numThreads)
+            throws IOException {
+        super();
+        this.file = new RandomAccessFile(file, "r");
+        this.executor = executor;
+        ownsExecutor = false;
+        readAhead = Math.max(1, numThreads) * 4;
+    }
+
+    /**
+     * Open a BGZF file.
+     *
+     * @param file       the file to read.
+     * @param numThreads number of threads used to inflate blocks.
+     * @throws IOException if the file cannot be opened.
+     */
+    public ParallelBlockCompressedInputStream(final File file, final int numThreads) throws IOException {
+        super();
+        this.file = new RandomAccessFile(file, "r");
+        final int threads = Math.max(1, numThreads);
+        readAhead = threads * 4;
+        executor = newExecutor(threads);
+        ownsExecutor = true;
+    }
+
+    /**
+     * Return the pool shared by the streams that do not start their own, with one thread per processor. The threads
+     * of the pool do not prevent the JVM from exiting.
+     *
+     * @return the shared pool.
+     */
+    public static synchronized ExecutorService getSharedExecutor() {
+        if (sharedExecutor == null) {
+            sharedExecutor = newExecutor(Runtime.getRuntime().availableProcessors());
+        }
+        return sharedExecutor;
+    }
+
+    private static ExecutorService newExecutor(final int numThreads) {
+        return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "bgzf-inflate");
+                // do not prevent the JVM from exiting when a reader is not closed:
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Determine if a file is compressed in the BGZF format. Files compressed with plain gzip are not.
+     *
+     * @param file the file to check.
+     * @return True when the file starts with a BGZF block header.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean isBlockCompressed(final File file) throws IOException {
+        final InputStream input = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return BlockCompressedInputStream.isValidFile(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        return current.data[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        int read = 0;
+        while (read < length) {
+            if (read > 0 && position == current.data.length &&
+                    (pending.isEmpty() || !pending.first().isDone())) {
+                // return what we have rather than wait for the next block:
+                break;
+            }
+            if (!ensureAvailable()) {
+                break;
+            }
+            final int count = Math.min(length - read, current.data.length - position);
+            System.arraycopy(current.data, position, buffer, offset + read, count);
+            position += count;
+            read += count;
+        }
+        return read == 0 ? -1 : read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current == null ? 0 : current.data.length - position;
+    }
+
+    /**
+     * Return the virtual file pointer of the next byte to be read.
+     *
+     * @return compressed block address shifted by 16 bits, combined with the offset in the uncompressed block.
+     */
+    public long getFilePointer() {
+        if (current == null) {
+            return nextBlockAddress << 16;
+        }
+        return current.address << 16 | position;
+    }
+
+    /**
+     * Move to a virtual file pointer, such as one obtained from {@link #getFilePointer()} or from a tabix index.
+     * Blocks read ahead of the previous position are discarded.
+     *
+     * @param virtualFilePointer compressed block address shifted by 16 bits, combined with the offset in the
+     *                           uncompressed block.
+     * @throws IOException if the position is not valid for this file.
+     */
+    public void seek(final long virtualFilePointer) throws IOException {
+        while (!pending.isEmpty()) {
+            pending.dequeue().cancel(false);
+        }
+        current = null;
+        position = 0;
+        endOfFile = false;
+        nextBlockAddress = virtualFilePointer >>> 16;
+        repositioned = true;
+        final int offset = (int) (virtualFilePointer & 0xFFFF);
+        if (!ensureAvailable()) {
+            if (offset == 0) {
+                return;
+            }
+            throw new IOException("Invalid file pointer, past the end of the file: " + virtualFilePointer);
+        }
+        if (current.address != virtualFilePointer >>> 16 || offset > current.data.length) {
+            throw new IOException("Invalid file pointer: " + virtualFilePointer);
+        }
+        position = offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsExecutor) {
+            executor.shutdownNow();
+        }
+        while (!pending.isEmpty()) {
+            pending.dequeue().cancel(false);
+        }
+        current = null;
+        file.close();
+    }
+
+    /**
+     * Make sure that the current block has bytes left to read.
+     *
+     * @return False when the end of the file was reached.
+     * @throws IOException if a block cannot be read or inflated.
+     */
+    private boolean ensureAvailable() throws IOException {
+        while (current == null || position == current.data.length) {
+            fillReadAhead();
+            if (pending.isEmpty()) {
+                return false;
+            }
+            current = take(pending.dequeue());
+            position = 0;
+        }
+        return true;
+    }
+
+    private Block take(final Future<Block> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while inflating a block.");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Read compressed blocks until readAhead blocks are pending, and submit them for inflation.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    private void fillReadAhead() throws IOException {
+        while (!endOfFile && pending.size() < readAhead) {
+            final long address = nextBlockAddress;
+            final byte[] compressed = readCompressedBlock();
+            if (compressed == null) {
+                endOfFile = true;
+                break;
+            }
+            pending.enqueue(executor.submit(new Callable<Block>() {
+                @Override
+                public Block call() throws IOException {
+                    return new Block(address, inflate(compressed));
+                }
+            }));
+        }
+    }
+
+    /**
+     * Read the next compressed block, header and footer included.
+     *
+     * @return the compressed block, or null at the end of the file.
+     * @throws IOException if the file is truncated or is not in the BGZF format.
+     */
+    private byte[] readCompressedBlock() throws IOException {
+        if (repositioned) {
+            file.seek(nextBlockAddress);
+            repositioned = false;
+        }
+        final byte[] header = new byte[BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+        final int count = readFully(header, 0, header.length);
+        if (count == 0) {
+            return null;
+        }
+        if (count < header.length) {
+            throw new FileTruncatedException("Premature end of file at block address " + nextBlockAddress);
+        }
+        if (header[0] != BlockCompressedStreamConstants.GZIP_ID1 ||
+                (header[1] & 0xFF) != BlockCompressedStreamConstants.GZIP_ID2 ||
+                (header[3] & BlockCompressedStreamConstants.GZIP_FLG) == 0 ||
+                header[12] != BlockCompressedStreamConstants.BGZF_ID1 ||
+                header[13] != BlockCompressedStreamConstants.BGZF_ID2) {
+            throw new IOException("Invalid BGZF block header at block address " + nextBlockAddress);
+        }
+        final int blockLength = unpackShort(header, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+        if (blockLength < BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH +
+                BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH) {
+            throw new IOException("Invalid BGZF block length at block address " + nextBlockAddress);
+        }
+        final byte[] block = new byte[blockLength];
+        System.arraycopy(header, 0, block, 0, header.length);
+        if (readFully(block, header.length, blockLength - header.length) < blockLength - header.length) {
+            throw new FileTruncatedException("Premature end of file at block address " + nextBlockAddress);
+        }
+        nextBlockAddress += blockLength;
+        return block;
+    }
+
+    private int readFully(final byte[] buffer, final int offset, final int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            final int count = file.read(buffer, offset + read, length - read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        return read;
+    }
+
+    /**
+     * Inflate a compressed block. Called on the worker threads.
+     *
+     * @param block compressed block, header and footer included.
+     * @return the uncompressed bytes of the block.
+     * @throws IOException if the block is corrupted.
+     */
+    private byte[] inflate(final byte[] block) throws IOException {
+        final int footerStart = block.length - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        final int uncompressedLength = unpackInt(block, footerStart + 4);
+        final byte[] uncompressed = new byte[uncompressedLength];
+        final Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(block, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH,
+                footerStart - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+        try {
+            int inflated = 0;
+            while (inflated < uncompressedLength) {
+                final int count = inflater.inflate(uncompressed, inflated, uncompressedLength - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != uncompressedLength) {
+                throw new EOFException("Block inflated to " + inflated + " bytes, expected " + uncompressedLength);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted BGZF block", e);
+        }
+        return uncompressed;
+    }
+
+    private static int unpackShort(final byte[] buffer, final int offset) {
+        return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int unpackInt(final byte[] buffer, final int offset) {
+        return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8 |
+                (buffer[offset + 2] & 0xFF) << 16 | (buffer[offset + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.util;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayFIFOQueue;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a file in the BGZF format (as read by bgzip, tabix or samtools BlockCompressedInputStream) and deflates
+ * its blocks on a pool of threads. Blocks are written to the file in the order they were filled, so the output is
+ * identical in structure to that of BlockCompressedOutputStream. Virtual file pointers returned by
+ * {@link #getFilePointer()} are valid, but obtaining one waits until the blocks submitted before it are written.
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+    private final OutputStream output;
+    private final ExecutorService executor;
+    private final int compressionLevel;
+    /**
+     * Maximum number of blocks being deflated ahead of the file.
+     */
+    private final int maxPending;
+    private final ObjectArrayFIFOQueue<Future<byte[]>> pending = new ObjectArrayFIFOQueue<Future<byte[]>>();
+    private byte[] buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+    private int position;
+    /**
+     * Number of compressed bytes written to the file so far.
+     */
+    private long blockAddress;
+    private boolean closed;
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(compressionLevel, true);
+        }
+    };
+    /**
+     * Used when a block does not shrink enough to fit in a BGZF block once deflated.
+     */
+    private final ThreadLocal<Deflater> noCompressionDeflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.NO_COMPRESSION, true);
+        }
+    };
+
+    /**
+     * Create a BGZF file, deflating blocks with as many threads as there are processors.
+     *
+     * @param file the file to write.
+     * @throws IOException if the file cannot be created.
+     */
+    public ParallelBlockCompressedOutputStream(final File file) throws IOException {
+        this(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a BGZF file.
+     *
+     * @param file       the file to write.
+     * @param numThreads number of threads used to deflate blocks.
+     * @throws IOException if the file cannot be created.
+     */
+    public ParallelBlockCompressedOutputStream(final File file, final int numThreads) throws IOException {
+        this(new FileOutputStream(file), numThreads);
+    }
+
+    /**
+     * Write BGZF blocks to a stream.
+     *
+     * @param output     where compressed blocks are written. Closed when this stream is closed.
+     * @param numThreads number of threads used to deflate blocks.
+     */
+    public ParallelBlockCompressedOutputStream(final OutputStream output, final int numThreads) {
+        super();
+        this.output = output;
+        compressionLevel = BlockCompressedOutputStream.getDefaultCompressionLevel();
+        final int threads = Math.max(1, numThreads);
+        maxPending = threads * 4;
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "bgzf-deflate");
+                // do not prevent the JVM from exiting when a writer is not closed:
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Open an output stream for a file, deflating BGZF blocks with as many threads as there are processors.
+     *
+     * @param filename name of the file to write.
+     * @return the output stream.
+     * @throws IOException if the file cannot be created.
+     * @see #open(String, int)
+     */
+    public static OutputStream open(final String filename) throws IOException {
+        return open(filename, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Open an output stream for a file. Files whose name ends in .gz are written in the BGZF format, deflated by
+     * numThreads threads (or on the calling thread when numThreads is 1), other files are written as is.
+     *
+     * @param filename   name of the file to write.
+     * @param numThreads number of threads used to deflate blocks.
+     * @return the output stream.
+     * @throws IOException if the file cannot be created.
+     */
+    public static OutputStream open(final String filename, final int numThreads) throws IOException {
+        if (!filename.endsWith(".gz")) {
+            return new FileOutputStream(filename);
+        }
+        if (numThreads <= 1) {
+            // open the file here, samtools would report a missing directory with an unchecked exception:
+            return new BlockCompressedOutputStream(new FileOutputStream(filename), new File(filename));
+        }
+        return new ParallelBlockCompressedOutputStream(new File(filename), numThreads);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        buffer[position++] = (byte) b;
+        if (position == buffer.length) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+        int written = 0;
+        while (written < length) {
+            final int count = Math.min(length - written, buffer.length - position);
+            System.arraycopy(bytes, offset + written, buffer, position, count);
+            position += count;
+            written += count;
+            if (position == buffer.length) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Return the virtual file pointer of the next byte to be written. Waits until the blocks filled before this
+     * byte are deflated and written.
+     *
+     * @return compressed block address shifted by 16 bits, combined with the offset in the uncompressed block.
+     * @throws IOException if a block cannot be written.
+     */
+    public long getFilePointer() throws IOException {
+        drain(0);
+        return blockAddress << 16 | position;
+    }
+
+    /**
+     * Deflate the bytes written so far into a block, and write all pending blocks to the file.
+     *
+     * @throws IOException if a block cannot be written.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (position > 0) {
+            submitBlock();
+        }
+        drain(0);
+        output.flush();
+    }
+
+    /**
+     * Write the remaining blocks and the BGZF end of file marker, then close the file.
+     *
+     * @throws IOException if a block cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            output.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+            output.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] uncompressed = buffer;
+        final int length = position;
+        pending.enqueue(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return deflate(uncompressed, length);
+            }
+        }));
+        buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+        position = 0;
+        // write the blocks that are ready, and wait when too many blocks are ahead of the file:
+        while (!pending.isEmpty() && pending.first().isDone()) {
+            writeBlock(pending.dequeue());
+        }
+        drain(maxPending);
+    }
+
+    /**
+     * Write pending blocks in order until at most maxRemaining blocks are pending.
+     */
+    private void drain(final int maxRemaining) throws IOException {
+        while (pending.size() > maxRemaining) {
+            writeBlock(pending.dequeue());
+        }
+    }
+
+    private void writeBlock(final Future<byte[]> future) throws IOException {
+        final byte[] block;
+        try {
+            block = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while deflating a block.");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+        output.write(block);
+        blockAddress += block.length;
+    }
+
+    /**
+     * Deflate uncompressed bytes into a BGZF block. Called on the worker threads.
+     *
+     * @param uncompressed bytes to deflate.
+     * @param length       number of bytes to deflate.
+     * @return the compressed block, header and footer included.
+     */
+    private byte[] deflate(final byte[] uncompressed, final int length) {
+        final byte[] block = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+        int compressedLength = deflate(deflaters.get(), uncompressed, length, block);
+        if (compressedLength == -1) {
+            compressedLength = deflate(noCompressionDeflaters.get(), uncompressed, length, block);
+            if (compressedLength == -1) {
+                throw new IllegalStateException("Block does not fit in a BGZF block without compression.");
+            }
+        }
+        final int blockLength = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + compressedLength +
+                BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        // gzip header with the BGZF extra field, which holds the length of the block minus one:
+        block[0] = BlockCompressedStreamConstants.GZIP_ID1;
+        block[1] = (byte) BlockCompressedStreamConstants.GZIP_ID2;
+        block[2] = BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+        block[3] = BlockCompressedStreamConstants.GZIP_FLG;
+        // modification time (4 bytes) is zero:
+        block[8] = BlockCompressedStreamConstants.GZIP_XFL;
+        block[9] = (byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+        packShort(block, 10, BlockCompressedStreamConstants.GZIP_XLEN);
+        block[12] = BlockCompressedStreamConstants.BGZF_ID1;
+        block[13] = BlockCompressedStreamConstants.BGZF_ID2;
+        packShort(block, 14, BlockCompressedStreamConstants.BGZF_LEN);
+        packShort(block, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET, blockLength - 1);
+        final CRC32 crc = new CRC32();
+        crc.update(uncompressed, 0, length);
+        final int footerStart = blockLength - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        packInt(block, footerStart, (int) crc.getValue());
+        packInt(block, footerStart + 4, length);
+        return Arrays.copyOf(block, blockLength);
+    }
+
+    /**
+     * Deflate bytes after the header of a block.
+     *
+     * @return the number of compressed bytes, or -1 if they do not fit in the block.
+     */
+    private static int deflate(final Deflater deflater, final byte[] uncompressed, final int length,
+                               final byte[] block) {
+        deflater.reset();
+        deflater.setInput(uncompressed, 0, length);
+        deflater.finish();
+        final int start = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+        final int capacity = block.length - start - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        int compressedLength = 0;
+        while (!deflater.finished() && compressedLength < capacity) {
+            compressedLength += deflater.deflate(block, start + compressedLength, capacity - compressedLength);
+        }
+        return deflater.finished() ? compressedLength : -1;
+    }
+
+    private static void packShort(final byte[] buffer, final int offset, final int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void packInt(final byte[] buffer, final int offset, final int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
+    }
+}
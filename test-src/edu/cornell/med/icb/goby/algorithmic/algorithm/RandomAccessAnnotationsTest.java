@@ -43,6 +43,22 @@ public class RandomAccessAnnotationsTest extends TestCase {
         assertNull(finder.find("chrX", 1002, 1003));
     }
 
+    public void testNested() {
+        RandomAccessAnnotations finder = new RandomAccessAnnotations();
+        finder.addAnnotation("gene", "chrX", 10, 1000);
+        finder.addAnnotation("exon-1", "chrX", 20, 30);
+        finder.addAnnotation("exon-2", "chrX", 500, 600);
+        finder.addAnnotation("exon-3", "chrX", 800, 900);
+        // contained in the gene, which starts before exons that do not contain the query:
+        assertEquals("gene", finder.find("chrX", 700, 710).id);
+        assertEquals("gene", finder.find("chrX", 510, 520).id);
+        assertNull(finder.find("chrX", 900, 1001));
+        assertEquals(2, finder.findAll("chrX", 510, 520).size());
+        assertEquals(4, finder.findAll("chrX", 0, 2000).size());
+        assertEquals("exon-3", finder.findAll("chrX", 900, 1001).get(1).id);
+        assertEquals(0, finder.findAll("chrY", 0, 2000).size());
+    }
+
     public void testLoad() throws IOException {
         RandomAccessAnnotations finder = new RandomAccessAnnotations();
         finder.loadAnnotations("data/biomart-mouse-exons-ensembl57-genes-MM9.txt");
@@ -47,6 +47,22 @@ public class TestFenwickTree {
         assertEquals(5, tree.getCumulativeCount(3));
     }
 
+    @Test
+    public void testAdd() {
+        final FenwickTree tree = new FenwickTree(8);
+        final FenwickTree other = new FenwickTree(8);
+        add(tree, 3, 0);
+        add(tree, 2, 5);
+        add(other, 4, 2);
+        add(other, 1, 7);
+        tree.add(other);
+        assertEquals(10, tree.getTotalCount());
+        assertEquals(3, tree.getCumulativeCount(0));
+        assertEquals(7, tree.getCumulativeCount(2));
+        assertEquals(7, tree.getCumulativeCount(4));
+        assertEquals(9, tree.getCumulativeCount(5));
+        assertEquals(10, tree.getCumulativeCount(7));
+    }
 
     private void add(FenwickTree tree, int num, int index) {
         for (int i = 0; i < num; i++) {
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import edu.cornell.med.icb.goby.algorithmic.data.HeptamerInfo;
+import it.unimi.dsi.lang.MutableString;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestHeptamerWeight {
+    @Test
+    public void testBaseSpace() {
+        final HeptamerInfo heptamers = new HeptamerInfo();
+        register(heptamers, "ACGTACG", 0.5f);
+        register(heptamers, "TTTTTTT", 2f);
+        register(heptamers, "ACGTXCG", 3f);
+        final HeptamerWeight weight = new HeptamerWeight(heptamers);
+        assertEquals(0.5f, weight.weight(new MutableString("ACGTACGTTT")), 0);
+        assertEquals(2f, weight.weight(new MutableString("TTTTTTTA")), 0);
+        // heptamers without weight, with Ns, and short reads have weight 1:
+        assertEquals(1f, weight.weight(new MutableString("AAAAAAAAAA")), 0);
+        assertEquals(1f, weight.weight(new MutableString("ACGTNCGTTT")), 0);
+        assertEquals(1f, weight.weight(new MutableString("ACG")), 0);
+        // heptamers that cannot be coded on two bits are looked up by sequence:
+        assertEquals(3f, weight.weight(new MutableString("ACGTXCGTTT")), 0);
+    }
+
+    @Test
+    public void testColorSpace() {
+        final HeptamerInfo heptamers = new HeptamerInfo();
+        heptamers.colorSpace = true;
+        register(heptamers, "0123012", 0.25f);
+        final HeptamerWeight weight = new HeptamerWeight(heptamers);
+        // the first base of color-space reads is skipped:
+        assertEquals(0.25f, weight.weight(new MutableString("T01230123")), 0);
+        assertEquals(1f, weight.weight(new MutableString("T0123.123")), 0);
+        assertEquals(1f, weight.weight(new MutableString("012301233")), 0);
+    }
+
+    @Test
+    public void testCodes() {
+        final HeptamerInfo heptamers = new HeptamerInfo();
+        final MutableString heptamer = new MutableString();
+        for (int code = 0; code < heptamers.numberOfCodes(); code++) {
+            heptamers.decode(code, heptamer);
+            assertEquals(code, heptamers.encode(heptamer, 0));
+        }
+        assertEquals(-1, heptamers.encode("ACGTACN", 0));
+        assertEquals(0, heptamers.encode("CAAAAAAAC", 1));
+    }
+
+    private void register(final HeptamerInfo heptamers, final String heptamer, final float weight) {
+        final int index = heptamers.heptamerToIndices.registerIdentifier(new MutableString(heptamer));
+        heptamers.heptamerIndexToWeight.put((short) index, weight);
+    }
+}
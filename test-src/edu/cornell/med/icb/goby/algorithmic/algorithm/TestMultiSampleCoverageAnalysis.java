@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import edu.cornell.med.icb.goby.algorithmic.data.DepthHistogram;
+import edu.cornell.med.icb.goby.counts.CountsArchiveReader;
+import edu.cornell.med.icb.goby.counts.CountsArchiveWriter;
+import edu.cornell.med.icb.goby.counts.CountsReaderI;
+import edu.cornell.med.icb.goby.counts.CountsReaderTestSupport;
+import edu.cornell.med.icb.goby.counts.CountsWriterI;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestMultiSampleCoverageAnalysis {
+    private static final String BASE_TEST_DIR = "test-results/multi-sample-coverage";
+    private static final double[] PERCENTILES = {0.9, 0.75, 0.5, 0.1};
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testSameAsCoverageAnalysis() throws IOException {
+        final Random random = new Random(40);
+        final int numSamples = 5;
+        final int[][] annotation = randomSegments(random, 2, 10000);
+        final int[][][] samples = new int[numSamples][][];
+        for (int i = 0; i < numSamples; i++) {
+            samples[i] = randomSegments(random, 60, 10000);
+        }
+        final CoverageStatistics[] statistics = new CoverageStatistics[numSamples];
+        final CountsReaderI[] readers = new CountsReaderI[numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            statistics[i] = new CoverageStatistics();
+            readers[i] = new CountsReaderTestSupport(samples[i][0], samples[i][1]);
+        }
+        MultiSampleCoverageAnalysis.process(new CountsReaderTestSupport(annotation[0], annotation[1]), readers,
+                statistics);
+        for (int i = 0; i < numSamples; i++) {
+            final CoverageAnalysis expected = new CoverageAnalysis();
+            expected.process(new CountsReaderTestSupport(annotation[0], annotation[1]),
+                    new CountsReaderTestSupport(samples[i][0], samples[i][1]));
+            expected.estimateStatistics();
+            final CoverageStatistics observed = statistics[i];
+            assertEquals(expected.getSumDepth(), observed.getSumDepth());
+            assertEquals(expected.getCountDepth(), observed.getCountDepth());
+            assertEquals(expected.getSumDepthAnnot(), observed.getSumDepthAnnot());
+            assertEquals(expected.getCountDepthAnnot(), observed.getCountDepthAnnot());
+            assertEquals(expected.getEnrichmentEfficiency(), observed.getEnrichmentEfficiency(), 1e-9);
+            for (final double percentile : PERCENTILES) {
+                assertEquals(expected.depthCapturedAtPercentile(percentile),
+                        observed.depthCapturedAtPercentile(percentile));
+            }
+            for (int depth = 0; depth < 60; depth++) {
+                assertEquals(expected.getNumSitesWithDepthAtLeast(depth),
+                        observed.getNumSitesWithDepthAtLeast(depth), 0);
+                assertEquals(expected.getNumSitesCapturedWithDepthAtLeast(depth),
+                        observed.getNumSitesCapturedWithDepthAtLeast(depth), 0);
+                assertEquals(expected.percentSitesCaptured(depth), observed.percentSitesCaptured(depth), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testArchivesInParallel() throws IOException {
+        final Random random = new Random(41);
+        final int numReferences = 6;
+        final String annotationBasename = BASE_TEST_DIR + "/annotation";
+        writeArchive(annotationBasename, random, numReferences, 2);
+        final String[] basenames = new String[7];
+        for (int i = 0; i < basenames.length; i++) {
+            basenames[i] = BASE_TEST_DIR + "/sample-" + i;
+            // sample 3 has no counts for the last reference:
+            writeArchive(basenames[i], random, i == 3 ? numReferences - 1 : numReferences, 40);
+        }
+        final CoverageStatistics[] expected = new MultiSampleCoverageAnalysis(1).process(annotationBasename, basenames);
+        final MultiSampleCoverageAnalysis analysis = new MultiSampleCoverageAnalysis(4);
+        analysis.setSamplesPerBatch(3);
+        final CoverageStatistics[] observed = analysis.process(annotationBasename, basenames);
+        assertEquals(basenames.length, observed.length);
+        for (int i = 0; i < basenames.length; i++) {
+            assertEquals(expected[i].getSumDepth(), observed[i].getSumDepth());
+            assertEquals(expected[i].getCountDepthAnnot(), observed[i].getCountDepthAnnot());
+            for (int depth = 0; depth < 40; depth++) {
+                assertEquals(expected[i].getNumSitesWithDepthAtLeast(depth),
+                        observed[i].getNumSitesWithDepthAtLeast(depth));
+            }
+            for (final double percentile : PERCENTILES) {
+                assertEquals(expected[i].depthCapturedAtPercentile(percentile),
+                        observed[i].depthCapturedAtPercentile(percentile));
+            }
+        }
+        // the statistics of an archive merge the statistics of its references:
+        final CountsArchiveReader annotationArchive = new CountsArchiveReader(annotationBasename);
+        final CountsArchiveReader sampleArchive = new CountsArchiveReader(basenames[0]);
+        final CoverageStatistics merged = new CoverageStatistics();
+        for (int referenceIndex = 0; referenceIndex < numReferences; referenceIndex++) {
+            final CoverageStatistics reference = new CoverageStatistics();
+            MultiSampleCoverageAnalysis.process(annotationArchive.getCountReader(referenceIndex),
+                    new CountsReaderI[]{sampleArchive.getCountReader(referenceIndex)},
+                    new CoverageStatistics[]{reference});
+            merged.merge(reference);
+        }
+        annotationArchive.close();
+        sampleArchive.close();
+        assertEquals(merged.getSumDepthAnnot(), expected[0].getSumDepthAnnot());
+        assertEquals(merged.getNumSitesWithDepthAtLeast(5), expected[0].getNumSitesWithDepthAtLeast(5));
+    }
+
+    @Test
+    public void testLogBins() {
+        final DepthHistogram histogram = new DepthHistogram(16);
+        final DepthHistogram other = new DepthHistogram(16);
+        for (int depth = 0; depth < 100000; depth += 7) {
+            (depth % 2 == 0 ? histogram : other).add(depth, 1);
+        }
+        histogram.merge(other);
+        long numSites = 0;
+        long numBases = 0;
+        for (int depth = 0; depth < 100000; depth += 7) {
+            numSites++;
+            numBases += depth;
+        }
+        assertEquals(numSites, histogram.getNumSites());
+        assertEquals(numBases, histogram.getNumBasesWithDepthAtLeast(0));
+        // exact below the limit:
+        assertEquals(numSites - 3, histogram.getNumSitesWithDepthAtLeast(15));
+        // within the resolution of logarithmic bins above:
+        final int median = histogram.smallestDepthWithAtMost(numSites / 2.0);
+        assertEquals(50000, median, 50000 * 0.05);
+        final long atLeast = histogram.getNumSitesWithDepthAtLeast(70000);
+        assertEquals((100000 - 70000) / 7.0, atLeast, 30000 / 7.0 * 0.15);
+        assertEquals(99995, histogram.getMaximumDepth(), 99995 * 0.05);
+    }
+
+    /**
+     * Return segment lengths and counts that cover exactly the given length. Each count differs from the count
+     * before it, and the first from the initial count of archive count writers, as count writers expect.
+     */
+    private static int[][] randomSegments(final Random random, final int maxCount, final int length) {
+        final IntArrayList lengths = new IntArrayList();
+        final IntArrayList counts = new IntArrayList();
+        int position = 0;
+        int previousCount = 1;
+        while (position < length) {
+            final int segmentLength = Math.min(length - position, 1 + random.nextInt(50));
+            int count;
+            do {
+                count = random.nextInt(maxCount);
+            } while (count == previousCount);
+            lengths.add(segmentLength);
+            counts.add(count);
+            previousCount = count;
+            position += segmentLength;
+        }
+        return new int[][]{lengths.toIntArray(), counts.toIntArray()};
+    }
+
+    private static void writeArchive(final String basename, final Random random, final int numReferences,
+                                     final int maxCount) throws IOException {
+        final CountsArchiveWriter writer = new CountsArchiveWriter(basename);
+        for (int referenceIndex = 0; referenceIndex < numReferences; referenceIndex++) {
+            final CountsWriterI countsWriter = writer.newCountWriter(referenceIndex, "chr" + referenceIndex);
+            final int[][] segments = randomSegments(random, maxCount, 2000 + 500 * referenceIndex);
+            for (int i = 0; i < segments[0].length; i++) {
+                countsWriter.appendCount(segments[1][i], segments[0][i]);
+            }
+            writer.returnWriter(countsWriter);
+        }
+        writer.close();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import edu.cornell.med.icb.goby.algorithmic.data.Annotation;
+import edu.cornell.med.icb.goby.algorithmic.data.Segment;
+import edu.cornell.med.icb.goby.alignments.AlignmentReaderImpl;
+import edu.cornell.med.icb.goby.alignments.Alignments;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestParallelAnnotationCounter {
+    private static final String[] BASENAMES = {
+            "test-data/seq-var-test/sorted-seq-var-reads-gsnap",
+            "test-data/seq-var-test/seq-var-reads-gsnap",
+            "test-data/seq-var-test/sorted-seq-var-reads-gsnap"};
+
+    @Test
+    public void testElementNumbers() {
+        final Object2ObjectMap<String, ObjectList<Annotation>> annotations =
+                new Object2ObjectOpenHashMap<String, ObjectList<Annotation>>();
+        final Annotation gene = new Annotation("gene", "chr1", "+");
+        gene.addSegment(new Segment(2, 6, "exon1", "+"));
+        gene.addSegment(new Segment(7, 9, "exon2", "+"));
+        gene.addSegment(new Segment(12, 20, "exon3", "+"));
+        annotations.put("chr1", new ObjectArrayList<Annotation>(new Annotation[]{gene}));
+        final AnnotationElementIndex elements = new AnnotationElementIndex(annotations);
+        assertEquals(1, elements.getNumberOfAnnotations());
+        // one gene, three exons and two introns, the first of which is empty:
+        assertEquals(6, elements.getNumberOfElements());
+        assertEquals(0, elements.getGeneElement(0));
+        assertEquals(3, elements.getExonElement(0, 2));
+        assertEquals(5, elements.getIntronElement(0, 1));
+        assertEquals(5, elements.getIntervalIndex().size(0));
+        assertEquals(0, elements.getFirstAnnotation("chr1"));
+        assertEquals(1, elements.getEndAnnotation("chr1"));
+    }
+
+    @Test
+    public void testSameAsBruteForce() throws IOException {
+        final Random random = new Random(43);
+        final Object2ObjectMap<String, ObjectList<Annotation>> annotations =
+                new Object2ObjectOpenHashMap<String, ObjectList<Annotation>>();
+        final ObjectList<Annotation> list = new ObjectArrayList<Annotation>();
+        for (int i = 0; i < 40; i++) {
+            final Annotation annotation = new Annotation("gene-" + i, "synth1", "+");
+            int position = random.nextInt(150);
+            for (int j = 0; j < 1 + random.nextInt(3); j++) {
+                final int length = 1 + random.nextInt(40);
+                annotation.addSegment(new Segment(position, position + length, i + "-" + j, "+"));
+                position += length + 1 + random.nextInt(20);
+            }
+            annotation.sortSegments();
+            list.add(annotation);
+        }
+        annotations.put("synth1", list);
+        final AnnotationElementIndex elements = new AnnotationElementIndex(annotations);
+        final AnnotationCountMatrix matrix = new ParallelAnnotationCounter(elements, 3).count(BASENAMES);
+        for (int sampleIndex = 0; sampleIndex < BASENAMES.length; sampleIndex++) {
+            final IntArrayList starts = new IntArrayList();
+            final IntArrayList ends = new IntArrayList();
+            final AlignmentReaderImpl reader = new AlignmentReaderImpl(BASENAMES[sampleIndex]);
+            while (reader.hasNext()) {
+                final Alignments.AlignmentEntry entry = reader.next();
+                for (int i = 0; i < entry.getMultiplicity(); i++) {
+                    starts.add(entry.getPosition());
+                    ends.add(entry.getPosition() + entry.getQueryAlignedLength());
+                }
+            }
+            reader.close();
+            for (int annotationIndex = 0; annotationIndex < elements.getNumberOfAnnotations(); annotationIndex++) {
+                final Annotation annotation = elements.getAnnotation(annotationIndex);
+                final ObjectList<Segment> segments = annotation.getSegments();
+                assertElement(matrix, sampleIndex, elements.getGeneElement(annotationIndex), starts, ends,
+                        annotation.getStart(), annotation.getEnd());
+                int expression = matrix.getOverlapCount(sampleIndex, elements.getGeneElement(annotationIndex));
+                for (int i = 0; i < segments.size(); i++) {
+                    assertElement(matrix, sampleIndex, elements.getExonElement(annotationIndex, i), starts, ends,
+                            segments.get(i).getStart(), segments.get(i).getEnd());
+                    if (i + 1 < segments.size()) {
+                        final int intron = elements.getIntronElement(annotationIndex, i);
+                        assertElement(matrix, sampleIndex, intron, starts, ends,
+                                segments.get(i).getEnd() + 1, segments.get(i + 1).getStart() - 1);
+                        expression -= matrix.getInCount(sampleIndex, intron);
+                    }
+                }
+                assertEquals(expression, matrix.geneExpressionCount(sampleIndex, annotationIndex));
+            }
+        }
+        // sorted (split by reference) and unsorted (one unit) alignments of the same reads count the same:
+        assertEquals(matrix.getNumAlignedReads(0), matrix.getNumAlignedReads(1));
+        for (int element = 0; element < elements.getNumberOfElements(); element++) {
+            assertEquals(matrix.getOverlapCount(0, element), matrix.getOverlapCount(1, element));
+            assertEquals(matrix.getInCount(0, element), matrix.getInCount(2, element));
+        }
+    }
+
+    private void assertElement(final AnnotationCountMatrix matrix, final int sampleIndex, final int element,
+                               final IntArrayList starts, final IntArrayList ends, final int start, final int end) {
+        int within = 0;
+        int overlapping = 0;
+        if (start <= end) {
+            for (int i = 0; i < starts.size(); i++) {
+                if (starts.getInt(i) >= start && ends.getInt(i) <= end) {
+                    within++;
+                }
+                if (starts.getInt(i) <= end && ends.getInt(i) >= start) {
+                    overlapping++;
+                }
+            }
+        }
+        final String message = String.format("element %d [%d,%d]", element, start, end);
+        assertEquals(message, within, matrix.getInCount(sampleIndex, element));
+        assertEquals(message, overlapping, matrix.getOverlapCount(sampleIndex, element));
+    }
+}
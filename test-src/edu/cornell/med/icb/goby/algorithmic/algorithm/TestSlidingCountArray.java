@@ -19,8 +19,11 @@
 package edu.cornell.med.icb.goby.algorithmic.algorithm;
 
 import edu.cornell.med.icb.goby.algorithmic.algorithm.dmr.SlidingCountArray;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.junit.Test;
 
+import java.util.Random;
+
 import static junit.framework.Assert.assertEquals;
 
 /**
@@ -108,4 +111,26 @@ public class TestSlidingCountArray {
         assertEquals("[\t7\t13\t18\t]", cumCtest.getCumulativeArrayAsString());
         assertEquals(18, cumCtest.getCumulativeSum());
     }
+
+    @Test
+    public void testRandomSums() {
+        final Random random = new Random(5);
+        for (final int capacity : new int[]{1, 2, 7, 100}) {
+            final SlidingCountArray cumCtest = new SlidingCountArray(capacity);
+            final IntArrayList counts = new IntArrayList();
+            for (int i = 0; i < 1000; i++) {
+                final int count = random.nextInt(1000);
+                cumCtest.addToRight(count);
+                counts.add(count);
+                final int first = Math.max(0, counts.size() - capacity);
+                int sum = 0;
+                for (int j = first; j < counts.size(); j++) {
+                    sum += counts.getInt(j);
+                    assertEquals(sum, cumCtest.getCumulativeCount(j - first));
+                }
+                assertEquals(sum, cumCtest.getCumulativeSum());
+                assertEquals(counts.size() - first, cumCtest.size());
+            }
+        }
+    }
 }
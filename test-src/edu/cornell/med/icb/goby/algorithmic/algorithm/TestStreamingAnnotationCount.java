@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import edu.cornell.med.icb.goby.algorithmic.data.Annotation;
+import edu.cornell.med.icb.goby.algorithmic.data.Segment;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestStreamingAnnotationCount {
+    @Test
+    public void testSmallExample() {
+        final ObjectArrayList<Annotation> annotations = new ObjectArrayList<Annotation>();
+        final Annotation gene = new Annotation("gene", "chr1", "+");
+        gene.addSegment(new Segment(2, 6, "exon1", "+"));
+        gene.addSegment(new Segment(10, 13, "exon2", "+"));
+        annotations.add(gene);
+        final StreamingAnnotationCount counter = new StreamingAnnotationCount(annotations);
+        counter.startPopulating();
+        counter.populate(3, 8, 0);
+        counter.populate(3, 7, 1);
+        counter.populate(5, 12, 2);
+        counter.populate(8, 9, 3);
+        counter.populate(9, 10, 4);
+        counter.populate(15, 18, 5);
+        counter.accumulate();
+        assertEquals(5, counter.countReadsPartiallyOverlappingWithInterval(2, 13), 0);
+        assertEquals(3, counter.countReadsPartiallyOverlappingWithInterval(2, 6), 0);
+        assertEquals(2, counter.countReadsPartiallyOverlappingWithInterval(10, 13), 0);
+        assertEquals(1, counter.countReadsStriclyWithinInterval(7, 9), 0);
+        assertEquals(0, counter.countReadsStriclyWithinInterval(2, 6), 0);
+        // bases over the first exon: 3 + 3 + 2 at positions 3-6:
+        assertEquals(10f / 5, counter.averageReadsPerPosition(2, 6), 0.001);
+        assertEquals(4, counter.geneExpressionCount(gene), 0);
+    }
+
+    @Test
+    public void testSameAsBruteForce() {
+        final Random random = new Random(41);
+        final ObjectArrayList<Annotation> annotations = new ObjectArrayList<Annotation>();
+        for (int i = 0; i < 200; i++) {
+            final Annotation annotation = new Annotation("gene-" + i, "chr1", "+");
+            int position = random.nextInt(20000);
+            final int numSegments = 1 + random.nextInt(4);
+            for (int j = 0; j < numSegments; j++) {
+                final int length = 1 + random.nextInt(300);
+                annotation.addSegment(new Segment(position, position + length, i + "-" + j, "+"));
+                // consecutive segments may be adjacent, leaving an empty intron:
+                position += length + 1 + random.nextInt(3) * random.nextInt(500);
+            }
+            annotation.sortSegments();
+            annotations.add(annotation);
+        }
+        final int numReads = 5000;
+        final int[] readStarts = new int[numReads];
+        final int[] readEnds = new int[numReads];
+        for (int i = 0; i < numReads; i++) {
+            readStarts[i] = random.nextInt(22000);
+        }
+        IntArrays.quickSort(readStarts);
+        for (int i = 0; i < numReads; i++) {
+            readEnds[i] = readStarts[i] + random.nextInt(random.nextInt(10) == 0 ? 2000 : 100);
+        }
+        final StreamingAnnotationCount counter = new StreamingAnnotationCount(annotations);
+        final AnnotationCount reference = new AnnotationCount();
+        counter.startPopulating();
+        reference.startPopulating();
+        for (int i = 0; i < numReads; i++) {
+            counter.populate(readStarts[i], readEnds[i], i);
+            reference.populate(readStarts[i], readEnds[i], i);
+        }
+        counter.sortReads();
+        counter.accumulate();
+        counter.baseCount();
+        reference.sortReads();
+        reference.accumulate();
+        reference.baseCount();
+        for (final Annotation annotation : annotations) {
+            assertInterval(counter, reference, readStarts, readEnds, annotation.getStart(), annotation.getEnd());
+            for (int j = 0; j < annotation.getSegments().size(); j++) {
+                final Segment segment = annotation.getSegments().get(j);
+                assertInterval(counter, reference, readStarts, readEnds, segment.getStart(), segment.getEnd());
+                if (j + 1 < annotation.getSegments().size()) {
+                    assertInterval(counter, reference, readStarts, readEnds, segment.getEnd() + 1,
+                            annotation.getSegments().get(j + 1).getStart() - 1);
+                }
+            }
+        }
+    }
+
+    private void assertInterval(final StreamingAnnotationCount counter, final AnnotationCount reference,
+                                final int[] readStarts, final int[] readEnds, final int start, final int end) {
+        int within = 0;
+        int overlapping = 0;
+        long bases = 0;
+        for (int i = 0; i < readStarts.length; i++) {
+            if (readStarts[i] >= start && readEnds[i] <= end) {
+                within++;
+            }
+            if (readStarts[i] <= end && readEnds[i] >= start) {
+                overlapping++;
+                bases += Math.min(end, readEnds[i]) - Math.max(start, readStarts[i]) + 1;
+            }
+        }
+        final String message = String.format("interval [%d,%d]", start, end);
+        assertEquals(message, within, counter.countReadsStriclyWithinInterval(start, end), 0);
+        assertEquals(message, reference.countReadsPartiallyOverlappingWithInterval(start, end),
+                counter.countReadsPartiallyOverlappingWithInterval(start, end), 0);
+        if (start <= end) {
+            assertEquals(message, overlapping, counter.countReadsPartiallyOverlappingWithInterval(start, end), 0);
+            assertEquals(message, bases / (float) (end - start + 1), counter.averageReadsPerPosition(start, end),
+                    0.001);
+            assertEquals(message, reference.averageReadsPerPosition(start, end),
+                    counter.averageReadsPerPosition(start, end), 0.001);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedReads() {
+        final StreamingAnnotationCount counter = new StreamingAnnotationCount(new ObjectArrayList<Annotation>());
+        counter.populate(10, 20, 0);
+        counter.populate(5, 20, 1);
+    }
+}
@@ -18,8 +18,13 @@
 
 package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
 
+import it.unimi.dsi.fastutil.io.BinIO;
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.Random;
+
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 
@@ -29,6 +34,8 @@ import static junit.framework.Assert.assertTrue;
  *         Time: 4:26 PM
  */
 public class TestDensityEstimator {
+    private static final String BASE_TEST_DIR = "test-results/density";
+
     class value {
         int context;
         int cma;
@@ -79,6 +86,73 @@ public class TestDensityEstimator {
         assertEquals("", 1l, estimator.getCumulativeCount(9997,10003));
     }
 
+    @Test
+    public void testMerge() throws Exception {
+        final EstimatedDistribution all = new EstimatedDistribution(1, new Stat5StatisticAdaptor());
+        final EstimatedDistribution first = new EstimatedDistribution(1, new Stat5StatisticAdaptor());
+        final EstimatedDistribution second = new EstimatedDistribution(1, new Stat5StatisticAdaptor());
+        final Random random = new Random(3);
+        for (int i = 0; i < 1000; i++) {
+            final int[] counts = {random.nextInt(100), random.nextInt(100), random.nextInt(5000), random.nextInt(100)};
+            all.observe(0, counts);
+            (i % 3 == 0 ? first : second).observe(0, counts);
+        }
+        first.merge(second);
+        for (final int sumTotal : new int[]{10, 150, 2000, 5200}) {
+            for (int scaledStatistic = 0; scaledStatistic < 10000; scaledStatistic += 7) {
+                assertEquals(all.getCumulativeCount(scaledStatistic, sumTotal),
+                        first.getCumulativeCount(scaledStatistic, sumTotal));
+            }
+            assertEquals(all.getP(0.1, sumTotal), first.getP(0.1, sumTotal));
+        }
+    }
+
+    @Test
+    public void testStoreAndLoad() throws Exception {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final EstimatedDistribution all = new EstimatedDistribution(1, new Stat5StatisticAdaptor());
+        final EstimatedDistribution first = new EstimatedDistribution(1, new Stat5StatisticAdaptor());
+        final EstimatedDistribution second = new EstimatedDistribution(1, new Stat5StatisticAdaptor());
+        final Random random = new Random(5);
+        for (int i = 0; i < 20000; i++) {
+            final int[] counts = {random.nextInt(100), random.nextInt(100), random.nextInt(5000), random.nextInt(100)};
+            all.observe(0, counts);
+            (i % 2 == 0 ? first : second).observe(0, counts);
+        }
+        final String firstFilename = BASE_TEST_DIR + "/first-density.bin";
+        final String secondFilename = BASE_TEST_DIR + "/second-density.bin";
+        final String mergedFilename = BASE_TEST_DIR + "/merged-density.bin";
+        final String serializedFilename = BASE_TEST_DIR + "/serialized-density.bin";
+        EstimatedDistribution.store(first, firstFilename);
+        EstimatedDistribution.store(second, secondFilename);
+        EstimatedDistribution.merge(new String[]{firstFilename, secondFilename}, mergedFilename);
+        BinIO.storeObject(all, serializedFilename);
+        assertTrue(new File(mergedFilename).length() < new File(serializedFilename).length() / 10);
+
+        final EstimatedDistribution loaded = EstimatedDistribution.load(firstFilename);
+        final EstimatedDistribution merged = EstimatedDistribution.load(mergedFilename);
+        final EstimatedDistribution legacy = EstimatedDistribution.load(serializedFilename);
+        assertEquals("stat5", merged.getStatAdaptor().statName());
+        assertEquals(all.getBinningStrategy().getName(), merged.getBinningStrategy().getName());
+        assertEquals(all.getNumberOfBins(), merged.getNumberOfBins());
+        for (int sumTotal = 0; sumTotal < 5300; sumTotal += 13) {
+            for (int scaledStatistic = -1; scaledStatistic <= 10001; scaledStatistic += 3) {
+                assertEquals(first.getCumulativeCount(scaledStatistic, sumTotal),
+                        loaded.getCumulativeCount(scaledStatistic, sumTotal));
+                assertEquals(all.getCumulativeCount(scaledStatistic, sumTotal),
+                        merged.getCumulativeCount(scaledStatistic, sumTotal));
+                assertEquals(all.getCumulativeCount(scaledStatistic, sumTotal),
+                        legacy.getCumulativeCount(scaledStatistic, sumTotal));
+            }
+            assertEquals(all.getP(0.05, sumTotal), merged.getP(0.05, sumTotal));
+        }
+        // observing new values reads the mapped densities into memory:
+        merged.getDensity(100).incrementCount(10);
+        all.getDensity(100).incrementCount(10);
+        assertEquals(all.getCumulativeCount(10, 100), merged.getCumulativeCount(10, 100));
+        assertEquals(all.getCumulativeCount(5000, 3000), merged.getCumulativeCount(5000, 3000));
+    }
+
     @Test
     public void testFastIndex() {
         LinearBinningStrategy binning = new LinearBinningStrategy();
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
+
+import edu.cornell.med.icb.goby.algorithmic.data.GroupComparison;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class TestObservationReader {
+    private static final String BASE_TEST_DIR = "test-results/observations";
+    private static final int NUM_OBSERVATIONS = 1000;
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testTextAndBinary() throws IOException {
+        final String textFilename = BASE_TEST_DIR + "/observations.tsv";
+        final String binaryFilename = BASE_TEST_DIR + "/observations.bin";
+        write(new ObservationWriter(new FileWriter(textFilename)));
+        write(new ObservationWriter(new FileOutputStream(binaryFilename)));
+        assertFalse(ObservationReader.isBinary(textFilename));
+        assertTrue(ObservationReader.isBinary(binaryFilename));
+        assertTrue(new File(binaryFilename).length() < new File(textFilename).length());
+
+        final ObservationReader textReader = new ObservationReader(textFilename);
+        final ObservationReader binaryReader = new ObservationReader(binaryFilename);
+        final Random random = new Random(7);
+        for (int i = 0; i < NUM_OBSERVATIONS; i++) {
+            assertTrue(textReader.next());
+            assertTrue(binaryReader.next());
+            final String[] ids = ids(i);
+            for (final ObservationReader reader : new ObservationReader[]{textReader, binaryReader}) {
+                assertEquals(i % 3 == 0 ? ObservationWriter.TypeOfPair.BETWEEN_GROUP_PAIR :
+                        ObservationWriter.TypeOfPair.WITHIN_GROUP_PAIR, reader.getTypeOfPair());
+                assertEquals(ids.length + 1, reader.getElementIds().size());
+                assertEquals(i % 3 == 0 ? "A/B" : "A/A", reader.getElementIds().get(0));
+                for (int j = 0; j < ids.length; j++) {
+                    assertEquals(ids[j], reader.getElementIds().get(j + 1));
+                }
+            }
+            final IntArrayList[] values = values(random);
+            assertEquals(values[0], textReader.getValuesA());
+            assertEquals(values[1], textReader.getValuesB());
+            assertEquals(values[2], textReader.getCovariatesA());
+            assertEquals(values[3], textReader.getCovariatesB());
+            assertEquals(textReader.getValuesA(), binaryReader.getValuesA());
+            assertEquals(textReader.getValuesB(), binaryReader.getValuesB());
+            assertEquals(textReader.getCovariatesA(), binaryReader.getCovariatesA());
+            assertEquals(textReader.getCovariatesB(), binaryReader.getCovariatesB());
+        }
+        assertFalse(textReader.next());
+        assertFalse(binaryReader.next());
+        textReader.close();
+        binaryReader.close();
+    }
+
+    private void write(final ObservationWriter writer) {
+        writer.setHeaderIds(new String[]{"context", "chromosome", "start", "end", "annotation-id"});
+        writer.writeHeader(new String[]{"cma", "ca"}, new String[]{"cmb", "cb"}, new String[]{"sumA"}, new String[]{"sumB"});
+        final Random random = new Random(7);
+        for (int i = 0; i < NUM_OBSERVATIONS; i++) {
+            if (i % 3 == 0) {
+                writer.setTypeOfPair(ObservationWriter.TypeOfPair.BETWEEN_GROUP_PAIR);
+                writer.setComparison(new GroupComparison("A", "B", 0, 1, 0));
+            } else {
+                writer.setTypeOfPair(ObservationWriter.TypeOfPair.WITHIN_GROUP_PAIR);
+                writer.setNullComparison("A");
+            }
+            writer.setElementIds(ids(i));
+            final IntArrayList[] values = values(random);
+            writer.observed(values[0], values[1], values[2], values[3]);
+        }
+        writer.close();
+    }
+
+    private static String[] ids(final int i) {
+        return new String[]{"CpG", "chr" + (i / 400 + 1), Integer.toString(i / 10 * 100),
+                Integer.toString(i / 10 * 100 + 99), "annotation-" + i / 10};
+    }
+
+    private static IntArrayList[] values(final Random random) {
+        final IntArrayList[] values = new IntArrayList[4];
+        for (int k = 0; k < 4; k++) {
+            values[k] = new IntArrayList();
+            final int size = k < 2 ? 2 : 1;
+            for (int j = 0; j < size; j++) {
+                // include negative and large values to exercise the variable length encoding:
+                values[k].add(random.nextInt(5) == 0 ? random.nextInt() : random.nextInt(200) - 20);
+            }
+        }
+        return values;
+    }
+}
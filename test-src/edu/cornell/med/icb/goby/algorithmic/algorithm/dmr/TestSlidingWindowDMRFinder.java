@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
+
+import edu.cornell.med.icb.goby.algorithmic.data.GroupComparison;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class TestSlidingWindowDMRFinder {
+    private static final int WINDOW_LENGTH = 5;
+
+    /**
+     * Two references, three groups. Groups 0 and 1 differ at sites 100-119 of the first reference, and groups 0 and 2
+     * at sites 300-309 of the second reference.
+     */
+    private ObjectArrayList<GroupMethylationCounts> createCounts() {
+        final Random random = new Random(39);
+        final ObjectArrayList<GroupMethylationCounts> references = new ObjectArrayList<GroupMethylationCounts>();
+        for (int referenceIndex = 0; referenceIndex < 2; referenceIndex++) {
+            final GroupMethylationCounts counts = new GroupMethylationCounts(referenceIndex, 3);
+            for (int site = 0; site < 500; site++) {
+                final int[] methylated = new int[3];
+                final int[] unmethylated = new int[3];
+                for (int groupIndex = 0; groupIndex < 3; groupIndex++) {
+                    methylated[groupIndex] = 10 + random.nextInt(3);
+                    unmethylated[groupIndex] = 10 + random.nextInt(3);
+                }
+                if (referenceIndex == 0 && site >= 100 && site < 120) {
+                    methylated[1] = 0;
+                    unmethylated[1] = 20;
+                }
+                if (referenceIndex == 1 && site >= 300 && site < 310) {
+                    methylated[2] = 20;
+                    unmethylated[2] = 0;
+                }
+                counts.addSite(site * 10, methylated, unmethylated);
+            }
+            references.add(counts);
+        }
+        return references;
+    }
+
+    private ObjectArrayList<GroupComparison> createComparisons() {
+        final ObjectArrayList<GroupComparison> comparisons = new ObjectArrayList<GroupComparison>();
+        comparisons.add(new GroupComparison("A", "B", 0, 1, 0));
+        comparisons.add(new GroupComparison("A", "C", 0, 2, 1));
+        return comparisons;
+    }
+
+    @Test
+    public void testFindRegions() {
+        final SlidingWindowDMRFinder finder = new SlidingWindowDMRFinder(new DeltaStatisticAdaptor(),
+                WINDOW_LENGTH, 60, 1);
+        final ObjectArrayList<DifferentiallyMethylatedRegion> regions = finder.find(createCounts(), createComparisons());
+        assertEquals(2, regions.size());
+        final DifferentiallyMethylatedRegion first = regions.get(0);
+        assertEquals(0, first.getChromosome());
+        assertEquals(0, first.getComparisonIndex());
+        assertTrue(first.getStart() >= 960 && first.getStart() <= 1000);
+        assertTrue(first.getEnd() >= 1190 && first.getEnd() <= 1230);
+        final DifferentiallyMethylatedRegion second = regions.get(1);
+        assertEquals(1, second.getChromosome());
+        assertEquals(1, second.getComparisonIndex());
+        assertTrue(second.getStart() >= 2960 && second.getStart() <= 3000);
+        assertTrue(second.getEnd() >= 3090 && second.getEnd() <= 3130);
+    }
+
+    @Test
+    public void testSameAsWindowSums() {
+        final ObjectArrayList<GroupMethylationCounts> references = createCounts();
+        final GroupComparison comparison = createComparisons().get(0);
+        final DeltaStatisticAdaptor adaptor = new DeltaStatisticAdaptor();
+        final SlidingWindowDMRFinder finder = new SlidingWindowDMRFinder(adaptor, WINDOW_LENGTH, 30, 1);
+        final ObjectArrayList<DifferentiallyMethylatedRegion> regions = finder.scan(references.get(0), comparison,
+                adaptor);
+        // every site of a window whose statistic, calculated from sums over the window, is significant must be in a
+        // region:
+        final GroupMethylationCounts counts = references.get(0);
+        for (int last = WINDOW_LENGTH - 1; last < counts.getNumberOfSites(); last++) {
+            final int[] sums = new int[4];
+            for (int site = last - WINDOW_LENGTH + 1; site <= last; site++) {
+                sums[0] += counts.getMethylatedCount(site, 0);
+                sums[1] += counts.getUnmethylatedCount(site, 0);
+                sums[2] += counts.getMethylatedCount(site, 1);
+                sums[3] += counts.getUnmethylatedCount(site, 1);
+            }
+            if (adaptor.calculateNoCovariate(sums) >= 30) {
+                final int start = counts.getPosition(last - WINDOW_LENGTH + 1);
+                final int end = counts.getPosition(last);
+                boolean covered = false;
+                for (final DifferentiallyMethylatedRegion region : regions) {
+                    covered |= region.getStart() <= start && region.getEnd() >= end;
+                }
+                assertTrue("window ending at site " + last + " must be in a region", covered);
+            }
+        }
+    }
+
+    @Test
+    public void testParallel() {
+        final ObjectArrayList<DifferentiallyMethylatedRegion> expected = new SlidingWindowDMRFinder(
+                new DeltaStatisticAdaptor(), WINDOW_LENGTH, 30, 1).find(createCounts(), createComparisons());
+        final ObjectArrayList<DifferentiallyMethylatedRegion> regions = new SlidingWindowDMRFinder(
+                new DeltaStatisticAdaptor(), WINDOW_LENGTH, 30, 4).find(createCounts(), createComparisons());
+        assertEquals(expected.size(), regions.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).toString(), regions.get(i).toString());
+            if (i > 0) {
+                assertTrue(regions.get(i - 1).compareTo(regions.get(i)) <= 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.compression;
+
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
+import it.unimi.dsi.io.InputBitStream;
+import it.unimi.dsi.io.OutputBitStream;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestRansCoderContexts {
+    private static final int NUM_SYMBOLS = 64;
+    private static final int NUM_CONTEXTS = 3;
+
+    private int encodedLength;
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final Random random = new Random(12);
+        final int length = 100000;
+        final int[] contexts = new int[length];
+        final int[] symbols = new int[length];
+        for (int i = 0; i < length; i++) {
+            contexts[i] = random.nextInt(NUM_CONTEXTS);
+            switch (contexts[i]) {
+                case 0:
+                    // skewed, with rare symbols that get the minimum frequency:
+                    symbols[i] = random.nextInt(100) == 0 ? random.nextInt(NUM_SYMBOLS) : random.nextInt(3);
+                    break;
+                case 1:
+                    // a single symbol that takes every slot of the context:
+                    symbols[i] = 7;
+                    break;
+                default:
+                    symbols[i] = random.nextInt(NUM_SYMBOLS);
+                    break;
+            }
+        }
+        assertArrayEquals(symbols, roundTrip(contexts, symbols));
+    }
+
+    @Test
+    public void testSingleSymbol() throws IOException {
+        assertArrayEquals(new int[]{5}, roundTrip(new int[]{2}, new int[]{5}));
+    }
+
+    /**
+     * Contexts that count more symbols than an int can hold once multiplied by the scale must still be modeled
+     * by their frequencies.
+     */
+    @Test
+    public void testLargeCounts() throws IOException {
+        final int length = 8000000;
+        final int[] contexts = new int[length];
+        final int[] symbols = new int[length];
+        for (int i = 0; i < length; i++) {
+            // frequencies 3/8, 3/8 and 1/4, about 1.56 bits per symbol:
+            final int slot = i % 8;
+            symbols[i] = slot < 3 ? 0 : slot < 6 ? 1 : 2;
+        }
+        assertArrayEquals(symbols, roundTrip(contexts, symbols));
+        assertTrue(Integer.toString(encodedLength), encodedLength < length * 1.6 / 8);
+    }
+
+    /**
+     * Encode the symbols, alternating between the streams of the coder, then decode them. The number of encoded
+     * bytes is stored in encodedLength.
+     */
+    private int[] roundTrip(final int[] contexts, final int[] symbols) throws IOException {
+        final int length = symbols.length;
+        final RansCoderContexts coder = new RansCoderContexts(NUM_CONTEXTS, NUM_SYMBOLS);
+        for (int i = 0; i < length; i++) {
+            coder.count(contexts[i], symbols[i]);
+        }
+        final FastByteArrayOutputStream modelBytes = new FastByteArrayOutputStream();
+        final OutputBitStream out = new OutputBitStream(modelBytes);
+        coder.writeModel(out);
+        out.close();
+        for (int i = length - 1; i >= 0; i--) {
+            coder.encode(i % RansCoderContexts.NUM_STREAMS, contexts[i], symbols[i]);
+        }
+        coder.finish();
+        final byte[] encoded = coder.getBytes();
+        encodedLength = encoded.length - coder.getOffset();
+
+        final RansCoderContexts decoder = new RansCoderContexts(NUM_CONTEXTS, NUM_SYMBOLS);
+        decoder.readModel(new InputBitStream(modelBytes.array));
+        decoder.startDecoding(encoded, coder.getOffset());
+        final int[] decoded = new int[length];
+        for (int i = 0; i < length; i++) {
+            decoded[i] = decoder.decode(i % RansCoderContexts.NUM_STREAMS, contexts[i]);
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.data;
+
+import edu.cornell.med.icb.goby.reads.RandomAccessSequenceTestSupport;
+import edu.cornell.med.icb.goby.xml.MethylStats;
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TestCytosineContextTrack {
+    private static final String BASE_TEST_DIR = "test-results/cytosine-contexts";
+    private static final char[] STRANDS = {'+', '-'};
+    private static String[] sequences;
+    private static RandomAccessSequenceTestSupport genome;
+
+    @BeforeClass
+    public static void initializeGenome() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final Random random = new Random(38);
+        sequences = new String[]{randomSequence(random, 5000), "CG", "ACGCGT", randomSequence(random, 3000), "G"};
+        genome = new RandomAccessSequenceTestSupport(sequences);
+    }
+
+    private static String randomSequence(final Random random, final int length) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.append("ACGTCGN".charAt(random.nextInt(random.nextInt(20) == 0 ? 7 : 6)));
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testSameAsBases() {
+        for (int referenceIndex = 0; referenceIndex < sequences.length; referenceIndex++) {
+            assertSameAsBases(referenceIndex, CytosineContextTrack.compute(genome, referenceIndex));
+        }
+    }
+
+    @Test
+    public void testCache() throws IOException {
+        final String cacheFilename = BASE_TEST_DIR + "/genome" + CytosineContextTrack.CACHE_SUFFIX;
+        new File(cacheFilename).delete();
+        assertNull(CytosineContextTrack.loadIfCached(genome, cacheFilename));
+        final CytosineContextTrack[] created = CytosineContextTrack.load(genome, cacheFilename);
+        final CytosineContextTrack[] mapped = CytosineContextTrack.loadIfCached(genome, cacheFilename);
+        assertNotNull(mapped);
+        assertEquals(sequences.length, mapped.length);
+        for (int referenceIndex = 0; referenceIndex < sequences.length; referenceIndex++) {
+            assertSameAsBases(referenceIndex, created[referenceIndex]);
+            assertSameAsBases(referenceIndex, mapped[referenceIndex]);
+        }
+        // a cache that does not match the genome is rebuilt:
+        final RandomAccessSequenceTestSupport other = new RandomAccessSequenceTestSupport(new String[]{"ACGT"});
+        assertNull(CytosineContextTrack.loadIfCached(other, cacheFilename));
+        final CytosineContextTrack[] rebuilt = CytosineContextTrack.load(other, cacheFilename);
+        assertEquals(1, rebuilt.length);
+        assertEquals(MethylStats.CPG, rebuilt[0].getContext(1, '+'));
+    }
+
+    @Test
+    public void testAccumulator() {
+        final int[] depths = {5, 10, 20, 50};
+        final int[] fragmentLengthBins = {1, 10, 20, 100};
+        final int numSamples = 3;
+        final MethylStats[] expected = new MethylStats[numSamples];
+        final MethylStats[] observed = new MethylStats[numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            expected[i] = new MethylStats(depths, fragmentLengthBins);
+            observed[i] = new MethylStats(depths, fragmentLengthBins);
+        }
+        final MethylationSiteAccumulator accumulator = new MethylationSiteAccumulator(numSamples, depths,
+                fragmentLengthBins, 10);
+        final Random random = new Random(2);
+        final CytosineContextTrack track = CytosineContextTrack.compute(genome, 0);
+        for (int site = 0; site < 2000; site++) {
+            final int position = random.nextInt(track.length());
+            final char strand = STRANDS[random.nextInt(2)];
+            final int context = track.getContext(position, strand);
+            final int fragmentLength = track.isCpG(position, strand) ? track.getFragmentLength(position, strand) : -1;
+            accumulator.addSite(context, fragmentLength);
+            for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+                final int depth = random.nextInt(200);
+                final int numMethylated = random.nextInt(depth + 1);
+                final int numConverted = depth - numMethylated;
+                final int methylationRate = depth == 0 ? 0 : numMethylated * 100 / depth;
+                accumulator.setDepth(sampleIndex, depth);
+                final MethylStats stats = expected[sampleIndex];
+                if (fragmentLength > 0 && depth > 10) {
+                    stats.observedInSample(depth, fragmentLength);
+                }
+                stats.observedDepth(depth);
+                if (context == CytosineContextTrack.NOT_CYTOSINE || random.nextInt(10) == 0) {
+                    continue;
+                }
+                accumulator.setCounts(sampleIndex, methylationRate, numMethylated, numConverted);
+                if (context != MethylStats.CPG) {
+                    stats.numConvertedNotCpGContext += numConverted;
+                    stats.numNotCpGContext += numConverted + numMethylated;
+                }
+                if (depth < 10 || methylationRate < 10) {
+                    continue;
+                }
+                if (context == MethylStats.CPG) {
+                    stats.numCTpG += depth;
+                }
+                if (context != CytosineContextTrack.OTHER_CONTEXT) {
+                    stats.getMethylCpXFreqs()[context] += numMethylated;
+                    stats.getObservedCpXFreqs()[context] += numMethylated + numConverted;
+                }
+            }
+        }
+        accumulator.addTo(observed);
+        for (int i = 0; i < numSamples; i++) {
+            assertArrayEquals(expected[i].getNumberCpGsPerDepth(), observed[i].getNumberCpGsPerDepth());
+            assertArrayEquals(expected[i].getNumberCpGsPerFragmentBinObserved(),
+                    observed[i].getNumberCpGsPerFragmentBinObserved());
+            assertEquals(expected[i].getNumberCpGsObserved(), observed[i].getNumberCpGsObserved());
+            assertArrayEquals(expected[i].getMethylCpXFreqs(), observed[i].getMethylCpXFreqs());
+            assertArrayEquals(expected[i].getObservedCpXFreqs(), observed[i].getObservedCpXFreqs());
+            assertEquals(expected[i].numConvertedNotCpGContext, observed[i].numConvertedNotCpGContext);
+            assertEquals(expected[i].numNotCpGContext, observed[i].numNotCpGContext);
+            assertEquals(expected[i].numCTpG, observed[i].numCTpG);
+        }
+    }
+
+    /**
+     * Compare a track to contexts and fragment lengths determined base by base, as methyl-stats used to.
+     */
+    private void assertSameAsBases(final int referenceIndex, final CytosineContextTrack track) {
+        final String sequence = sequences[referenceIndex];
+        assertEquals(sequence.length(), track.length());
+        int numCpGs = 0;
+        for (int position = 0; position < sequence.length(); position++) {
+            if (position + 1 < sequence.length() && sequence.charAt(position) == 'C'
+                    && sequence.charAt(position + 1) == 'G') {
+                assertEquals(position, track.getCpGPosition(numCpGs));
+                numCpGs++;
+            }
+            for (final char strand : STRANDS) {
+                final String message = String.format("reference %d position %d strand %c", referenceIndex,
+                        position, strand);
+                assertEquals(message, contextFromBases(sequence, position, strand), track.getContext(position, strand));
+                final boolean cpg = isCpGFromBases(sequence, position, strand);
+                assertEquals(message, cpg, track.isCpG(position, strand));
+                if (cpg) {
+                    assertEquals(message, fragmentLengthFromBases(sequence, position, strand),
+                            track.getFragmentLength(position, strand));
+                }
+            }
+        }
+        assertEquals(numCpGs, track.getNumberOfCpGs());
+    }
+
+    private static char base(final String sequence, final int position) {
+        return position < sequence.length() ? sequence.charAt(position) : 'N';
+    }
+
+    private static int contextFromBases(final String sequence, final int position, final char strand) {
+        if (position + 1 >= sequence.length() || strand == '-' && position < 1) {
+            return CytosineContextTrack.NOT_CYTOSINE;
+        }
+        final char first = base(sequence, position);
+        if (!(strand == '+' && first == 'C' || strand == '-' && first == 'G')) {
+            return CytosineContextTrack.NOT_CYTOSINE;
+        }
+        final char second = base(sequence, position + (strand == '+' ? 1 : -1));
+        final String bases = strand == '+' ? "GACT" : "CTGA";
+        final int index = bases.indexOf(second);
+        return index == -1 ? CytosineContextTrack.OTHER_CONTEXT : index;
+    }
+
+    private static boolean isCpGFromBases(final String sequence, final int position, final char strand) {
+        final char first = base(sequence, position);
+        final char second = base(sequence, position + 1);
+        return strand == '+' ? first == 'C' && second == 'G' : first == 'G' && second == 'C';
+    }
+
+    private static int fragmentLengthFromBases(final String sequence, final int position, final char strand) {
+        char previousBase = '\0';
+        final int direction = strand == '+' ? 1 : -1;
+        for (int pos = position + 2 * direction; strand == '+' ? pos < sequence.length() : pos >= 0;
+             pos += direction) {
+            final char currentBase = sequence.charAt(pos);
+            if (strand == '+' ? previousBase == 'C' && currentBase == 'G' : previousBase == 'G' && currentBase == 'C') {
+                final int fragmentLength = strand == '+' ? pos - position : position - pos;
+                return fragmentLength > 0 ? fragmentLength : -1;
+            }
+            previousBase = currentBase;
+        }
+        return -1;
+    }
+}
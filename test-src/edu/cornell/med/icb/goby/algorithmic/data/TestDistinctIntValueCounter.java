@@ -85,6 +85,31 @@ public class TestDistinctIntValueCounter {
 
     }
 
+    @Test
+    public void testConcurrentCount() throws InterruptedException {
+        final DistinctIntValueCounterConcurrentBitSet counter = new DistinctIntValueCounterConcurrentBitSet();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    // threads observe overlapping values:
+                    for (int value = offset * 1000; value < offset * 1000 + 5000; value++) {
+                        counter.observe(value);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(8000, counter.count());
+        counter.observe(Integer.MAX_VALUE);
+        assertEquals(8001, counter.count());
+    }
+
     //@Test
     public void testSlow() {
         DistinctIntValueCounterBitSet counter = new DistinctIntValueCounterBitSet();
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.data;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestIntervalIndex {
+    private static final String BASE_TEST_DIR = "test-results/interval-index";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testSameAsBruteForce() throws IOException {
+        final Random random = new Random(42);
+        for (final int numIntervals : new int[]{0, 1, 2, 7, 16, 17, 100, 1023, 3000}) {
+            final int[] starts = new int[numIntervals];
+            final int[] ends = new int[numIntervals];
+            final IntervalIndex.Builder builder = new IntervalIndex.Builder();
+            for (int i = 0; i < numIntervals; i++) {
+                starts[i] = random.nextInt(100000);
+                // mostly short intervals, with a few long ones that contain many others:
+                ends[i] = starts[i] + random.nextInt(random.nextInt(20) == 0 ? 30000 : 500);
+                builder.add("chr1", starts[i], ends[i], i);
+            }
+            builder.add("chr2", 5, 10, -1);
+            final IntervalIndex index = builder.build();
+            final String filename = BASE_TEST_DIR + "/index-" + numIntervals;
+            index.save(filename);
+            final IntervalIndex mapped = IntervalIndex.load(filename);
+            for (int query = 0; query < 500; query++) {
+                final int start = random.nextInt(110000);
+                final int end = start + random.nextInt(1000);
+                final IntOpenHashSet expected = new IntOpenHashSet();
+                for (int i = 0; i < numIntervals; i++) {
+                    if (starts[i] <= end && ends[i] >= start) {
+                        expected.add(i);
+                    }
+                }
+                assertOverlapping(index, expected, start, end);
+                assertOverlapping(mapped, expected, start, end);
+            }
+        }
+    }
+
+    private void assertOverlapping(final IntervalIndex index, final IntOpenHashSet expected, final int start,
+                                   final int end) {
+        final IntArrayList result = new IntArrayList();
+        assertEquals(expected.size(), index.findOverlapping("chr1", start, end, result));
+        final int referenceIndex = index.getReferenceIndex("chr1");
+        final IntOpenHashSet observed = new IntOpenHashSet();
+        for (int i = 0; i < result.size(); i++) {
+            observed.add(index.getValue(referenceIndex, result.getInt(i)));
+            if (i > 0) {
+                // results are in order of start:
+                assertEquals(true, index.getStart(referenceIndex, result.getInt(i - 1))
+                        <= index.getStart(referenceIndex, result.getInt(i)));
+            }
+        }
+        assertEquals(expected, observed);
+    }
+
+    @Test
+    public void testCursor() {
+        final IntervalIndex index = new IntervalIndex.Builder()
+                .add("chr1", 10, 1000, 0)
+                .add("chr1", 20, 30, 1)
+                .add("chr1", 25, 40, 2)
+                .add("chr1", 990, 1100, 3)
+                .add("chr2", 0, 5, 4)
+                .build();
+        final int chr1 = index.getReferenceIndex("chr1");
+        assertEquals(-1, index.getReferenceIndex("chr3"));
+        final IntervalIndex.Cursor cursor = index.cursor(chr1);
+        assertEquals(0, cursor.containing(5).size());
+        assertEquals(1, cursor.containing(10).size());
+        assertEquals(3, cursor.containing(25).size());
+        assertEquals(3, cursor.containing(30).size());
+        assertEquals(2, cursor.containing(31).size());
+        assertEquals(2, cursor.containing(995).size());
+        final IntArrayList last = cursor.containing(1050);
+        assertEquals(1, last.size());
+        assertEquals(3, index.getValue(chr1, last.getInt(0)));
+        assertEquals(0, cursor.containing(2000).size());
+        assertEquals(0, index.getValue(chr1, index.findContaining(chr1, 50, 60)));
+        assertEquals(-1, index.findContaining(chr1, 5, 60));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCursorOrder() {
+        final IntervalIndex index = new IntervalIndex.Builder().add("chr1", 10, 1000, 0).build();
+        final IntervalIndex.Cursor cursor = index.cursor(0);
+        cursor.containing(20);
+        cursor.containing(19);
+    }
+}
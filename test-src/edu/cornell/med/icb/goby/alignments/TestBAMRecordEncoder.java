@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import com.google.protobuf.ByteString;
+import edu.cornell.med.icb.goby.reads.QualityEncoding;
+import edu.cornell.med.icb.goby.reads.RandomAccessSequenceTestSupport;
+import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
+import edu.cornell.med.icb.identifier.IndexedIdentifier;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.lang.MutableString;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestBAMRecordEncoder {
+    private static final String BASES = "ACGT";
+    private static final int GENOME_LENGTH = 3000;
+
+    /**
+     * Records built directly from entries must be identical to the records encoded from
+     * ExportableAlignmentEntryData, and entries left to ExportableAlignmentEntryData must be encoded as before.
+     */
+    @Test
+    public void testSameRecordsAsExportableData() {
+        final Random random = new Random(46);
+        final MutableString reference = new MutableString();
+        for (int i = 0; i < GENOME_LENGTH; i++) {
+            final char base = random.nextInt(200) == 0 ? 'N' : BASES.charAt(random.nextInt(4));
+            reference.append(random.nextInt(10) == 0 ? Character.toLowerCase(base) : base);
+        }
+        final RandomAccessSequenceTestSupport genome =
+                new RandomAccessSequenceTestSupport(new String[]{reference.toString()});
+        final IndexedIdentifier targets = new IndexedIdentifier();
+        targets.registerIdentifier(new MutableString("chr1"));
+        final DoubleIndexedIdentifier targetIdentifiers = new DoubleIndexedIdentifier(targets);
+        final List<Alignments.ReadOriginInfo> origins = new ArrayList<Alignments.ReadOriginInfo>();
+        origins.add(Alignments.ReadOriginInfo.newBuilder().setOriginIndex(0).setOriginId("group-0").build());
+        origins.add(Alignments.ReadOriginInfo.newBuilder().setOriginIndex(1).setOriginId("group-1").build());
+
+        for (final ReadOriginInfo readOriginInfo : new ReadOriginInfo[]{null, new ReadOriginInfo(origins)}) {
+            final BAMRecordEncoder encoder = new BAMRecordEncoder(readOriginInfo, genome, targetIdentifiers,
+                    QualityEncoding.PHRED);
+            final ExportableAlignmentEntryData exportData =
+                    new ExportableAlignmentEntryData(genome, QualityEncoding.PHRED, targetIdentifiers);
+            if (readOriginInfo != null) {
+                exportData.setReadGroupInfo(readOriginInfo);
+            }
+            int numDirect = 0;
+            final int numEntries = 5000;
+            for (int i = 0; i < numEntries; i++) {
+                final Alignments.AlignmentEntry entry = randomEntry(random, reference, i);
+                final ByteArrayList direct = new ByteArrayList();
+                final boolean encoded = encoder.encode(entry, direct);
+                final ByteArrayList expected = new ByteArrayList();
+                boolean failed = false;
+                try {
+                    exportData.buildFrom(entry);
+                    failed = exportData.isInvalid();
+                    if (!failed) {
+                        encoder.encode(exportData, expected);
+                    }
+                } catch (RuntimeException e) {
+                    // clipped bases past the end of the genome, or insertions without quality scores:
+                    failed = true;
+                }
+                if (encoded) {
+                    assertFalse(entry.toString(), failed);
+                    numDirect++;
+                    assertArrayEquals(entry.toString(), expected.toByteArray(), direct.toByteArray());
+                } else {
+                    assertTrue(direct.isEmpty());
+                }
+            }
+            // most entries do not need ExportableAlignmentEntryData:
+            assertTrue(Integer.toString(numDirect), numDirect > numEntries * 8 / 10);
+        }
+    }
+
+    /**
+     * Build an entry from a random walk over the reference, with mutations, insertions, deletions, clipped bases
+     * and quality scores.
+     */
+    private static Alignments.AlignmentEntry randomEntry(final Random random, final MutableString reference,
+                                                         final int queryIndex) {
+        final int position = random.nextInt(10) == 0 ? random.nextInt(10) :
+                random.nextInt(10) == 0 ? GENOME_LENGTH - 20 - random.nextInt(40) : random.nextInt(GENOME_LENGTH - 100);
+        final int startClip = random.nextInt(4) == 0 ? 1 + random.nextInt(8) : 0;
+        final int endClip = random.nextInt(4) == 0 ? 1 + random.nextInt(8) : 0;
+        final int targetLength = Math.min(20 + random.nextInt(40), GENOME_LENGTH - position);
+        final Alignments.AlignmentEntry.Builder entry = Alignments.AlignmentEntry.newBuilder()
+                .setQueryIndex(queryIndex)
+                .setTargetIndex(0)
+                .setPosition(position)
+                .setMatchingReverseStrand(random.nextBoolean())
+                .setMappingQuality(random.nextInt(60))
+                .setQueryPosition(startClip)
+                .setMultiplicity(1);
+        if (random.nextInt(3) == 0) {
+            entry.setReadOriginIndex(random.nextInt(3));
+        }
+        int queryAlignedLength = 0;
+        int column = 0;
+        while (column < targetLength) {
+            final int kind = random.nextInt(30);
+            if (kind > 3) {
+                column++;
+                queryAlignedLength++;
+                continue;
+            }
+            final int length = 1 + (random.nextInt(4) == 0 ? random.nextInt(3) : 0);
+            final StringBuilder from = new StringBuilder();
+            final StringBuilder to = new StringBuilder();
+            final ByteArrayList toQualities = new ByteArrayList();
+            final Alignments.SequenceVariation.Builder variation = Alignments.SequenceVariation.newBuilder()
+                    .setReadIndex(queryAlignedLength + 1);
+            if (kind == 0) {
+                // insertion before the column:
+                variation.setPosition(column);
+                for (int i = 0; i < length; i++) {
+                    from.append('-');
+                    to.append(BASES.charAt(random.nextInt(4)));
+                    toQualities.add((byte) random.nextInt(40));
+                }
+                queryAlignedLength += length;
+            } else {
+                variation.setPosition(column + 1);
+                for (int i = 0; i < length && column < targetLength; i++, column++) {
+                    final char referenceBase = reference.charAt(position + column);
+                    from.append(referenceBase);
+                    if (kind == 1) {
+                        to.append('-');
+                    } else {
+                        to.append(BASES.charAt(random.nextInt(4)));
+                        toQualities.add((byte) random.nextInt(40));
+                        queryAlignedLength++;
+                    }
+                }
+            }
+            variation.setFrom(from.toString()).setTo(to.toString());
+            if (kind == 0 || random.nextInt(5) != 0) {
+                variation.setToQuality(ByteString.copyFrom(toQualities.toByteArray()));
+            }
+            entry.addSequenceVariations(variation);
+        }
+        if (random.nextInt(50) == 0 && entry.getSequenceVariationsCount() > 1) {
+            // variations out of order are left to ExportableAlignmentEntryData:
+            final Alignments.SequenceVariation first = entry.getSequenceVariations(0);
+            entry.setSequenceVariations(0, entry.getSequenceVariations(1));
+            entry.setSequenceVariations(1, first);
+        }
+        final int queryLength = startClip + queryAlignedLength + endClip;
+        entry.setQueryLength(queryLength)
+                .setQueryAlignedLength(queryAlignedLength)
+                .setTargetAlignedLength(targetLength)
+                .setScore(queryAlignedLength);
+        if (startClip > 0 && random.nextBoolean()) {
+            entry.setSoftClippedBasesLeft(clippedBases(random, startClip));
+            if (random.nextBoolean()) {
+                entry.setSoftClippedQualityLeft(ByteString.copyFrom(randomQualities(random, startClip)));
+            }
+        }
+        if (endClip > 0 && random.nextBoolean()) {
+            entry.setSoftClippedBasesRight(clippedBases(random, endClip));
+            if (random.nextBoolean()) {
+                entry.setSoftClippedQualityRight(ByteString.copyFrom(randomQualities(random, endClip)));
+            }
+        }
+        if (random.nextInt(4) == 0) {
+            entry.setReadQualityScores(ByteString.copyFrom(randomQualities(random, queryLength)));
+        }
+        return entry.build();
+    }
+
+    private static String clippedBases(final Random random, final int length) {
+        final StringBuilder bases = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            bases.append(random.nextInt(3) == 0 ? '=' : BASES.charAt(random.nextInt(4)));
+        }
+        return bases.toString();
+    }
+
+    private static byte[] randomQualities(final Random random, final int length) {
+        final byte[] qualities = new byte[length];
+        for (int i = 0; i < length; i++) {
+            qualities[i] = (byte) random.nextInt(40);
+        }
+        return qualities;
+    }
+}
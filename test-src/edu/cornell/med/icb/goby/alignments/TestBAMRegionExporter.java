@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import edu.cornell.med.icb.goby.modes.CompactToSAMMode;
+import edu.cornell.med.icb.goby.modes.SAMToCompactMode;
+import edu.cornell.med.icb.goby.modes.SortMode;
+import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import it.unimi.dsi.lang.MutableString;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.CigarOperator;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import org.apache.commons.io.FilenameUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestBAMRegionExporter {
+    private static final String BASE_TEST_DIR = "test-results/bam-region-exporter";
+    private static final String BASENAME = FilenameUtils.concat(BASE_TEST_DIR, "spliced-pairs-sorted");
+
+    /**
+     * A genome of As.
+     */
+    private static final RandomAccessSequenceInterface GENOME = new RandomAccessSequenceInterface() {
+        @Override
+        public char get(final int referenceIndex, final int position) {
+            return 'A';
+        }
+
+        @Override
+        public int getLength(final int targetIndex) {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void getRange(final int referenceIndex, final int position, final int length,
+                             final MutableString bases) {
+            bases.setLength(0);
+            for (int i = 0; i < length; i++) {
+                bases.append('A');
+            }
+        }
+
+        @Override
+        public int getReferenceIndex(final String referenceId) {
+            return 0;
+        }
+
+        @Override
+        public String getReferenceName(final int index) {
+            return "ref-id";
+        }
+
+        @Override
+        public int size() {
+            return 1;
+        }
+    };
+
+    private static BAMRegionExporter exporter;
+
+    /**
+     * All the records of the alignment, exported by compact-to-sam.
+     */
+    private static ObjectList<SAMRecord> allRecords;
+
+    @BeforeClass
+    public static void beforeClass() throws IOException {
+        new File(BASE_TEST_DIR).mkdirs();
+        final String unsorted = FilenameUtils.concat(BASE_TEST_DIR, "spliced-pairs");
+        final SAMToCompactMode importer = new SAMToCompactMode();
+        importer.setInputFile("test-data/compact-to-sam/spliced-pairs.sam");
+        importer.setOutputFile(unsorted);
+        importer.setPreserveReadName(true);
+        importer.setPreserveSoftClips(true);
+        importer.setPreserveAllTags(true);
+        importer.execute();
+        final SortMode sorter = new SortMode();
+        sorter.setInput(unsorted);
+        sorter.setOutput(BASENAME);
+        sorter.execute();
+
+        final String output = BASENAME + ".bam";
+        final CompactToSAMMode compactToSAM = new CompactToSAMMode();
+        compactToSAM.setInputBasename(BASENAME);
+        compactToSAM.setOutput(output);
+        compactToSAM.setGenome(GENOME);
+        compactToSAM.execute();
+        allRecords = new ObjectArrayList<SAMRecord>();
+        final SAMFileReader reader = new SAMFileReader(new File(output));
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        for (final SAMRecord record : reader) {
+            allRecords.add(record);
+        }
+        reader.close();
+        assertEquals(120, allRecords.size());
+
+        exporter = new BAMRegionExporter(BASENAME, GENOME, 3);
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        exporter.close();
+    }
+
+    @Test
+    public void testWholeAlignment() throws IOException {
+        final File output = new File(BASE_TEST_DIR, "whole.bam");
+        exporter.export(Arrays.asList(new GenomicRange(0, 0, 1, 15000)), output);
+        final ObjectList<String> records = read(output);
+        assertEquals(allRecords.size(), records.size());
+        assertEquals(select(0, 0, 1, 15000), records);
+    }
+
+    @Test
+    public void testRegions() throws IOException {
+        final File output = new File(BASE_TEST_DIR, "regions.bam");
+        // regions are sorted, and the overlapping regions merged:
+        exporter.export(Arrays.asList(new GenomicRange(1, 9000, 1, 14000),
+                new GenomicRange(0, 2000, 0, 9000),
+                new GenomicRange(0, 8000, 0, 12000),
+                new GenomicRange(0, 16000, 1, 2000)), output);
+        final ObjectList<String> expected = select(0, 2000, 0, 12000);
+        // records that overlap several regions are exported once:
+        for (final String record : select(0, 16000, 1, 2000)) {
+            if (!expected.contains(record)) {
+                expected.add(record);
+            }
+        }
+        for (final String record : select(1, 9000, 1, 14000)) {
+            if (!expected.contains(record)) {
+                expected.add(record);
+            }
+        }
+        assertTrue(expected.size() > 0);
+        assertTrue(expected.size() < allRecords.size());
+        assertEquals(expected, read(output));
+
+        // the index of the file locates records:
+        final SAMFileReader reader = new SAMFileReader(output, new File(output.getPath() + ".bai"));
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        assertTrue(reader.hasIndex());
+        final ObjectList<String> queried = new ObjectArrayList<String>();
+        final SAMRecordIterator iterator = reader.queryOverlapping("chr2", 9001, 14001);
+        while (iterator.hasNext()) {
+            queried.add(iterator.next().getSAMString());
+        }
+        iterator.close();
+        reader.close();
+        assertEquals(select(1, 9000, 1, 14000), queried);
+    }
+
+    @Test
+    public void testRecordsThatStartBeforeTheRegion() throws IOException {
+        SAMRecord straddling = null;
+        SAMRecord spliced = null;
+        for (final SAMRecord record : allRecords) {
+            final boolean hasSplice = lastFragmentStart(record) != record.getAlignmentStart() - 1;
+            if (!hasSplice && straddling == null && record.getAlignmentEnd() - record.getAlignmentStart() > 10) {
+                straddling = record;
+            }
+            if (hasSplice && spliced == null) {
+                spliced = record;
+            }
+        }
+        assertTrue(straddling != null && spliced != null);
+
+        // a region that starts in the middle of a read:
+        final int start = straddling.getAlignmentStart() - 1 + 5;
+        final File output = new File(BASE_TEST_DIR, "straddling.bam");
+        exporter.export(Arrays.asList(new GenomicRange(straddling.getReferenceIndex(), start,
+                straddling.getReferenceIndex(), start + 10)), output);
+        final ObjectList<String> records = read(output);
+        assertTrue(records.contains(straddling.getSAMString()));
+        assertEquals(select(straddling.getReferenceIndex(), start, straddling.getReferenceIndex(), start + 10),
+                records);
+
+        // a region in the last intron of a spliced alignment, far from its fragments:
+        final int intron = lastFragmentStart(spliced) - 1;
+        final File intronOutput = new File(BASE_TEST_DIR, "intron.bam");
+        exporter.export(Arrays.asList(new GenomicRange(spliced.getReferenceIndex(), intron,
+                spliced.getReferenceIndex(), intron)), intronOutput);
+        final ObjectList<String> intronRecords = read(intronOutput);
+        assertTrue(intronRecords.contains(spliced.getSAMString()));
+        assertEquals(select(spliced.getReferenceIndex(), intron, spliced.getReferenceIndex(), intron),
+                intronRecords);
+    }
+
+    @Test
+    public void testRegionsAfterTheFirstWindow() throws IOException {
+        // a region in an intron that starts in the second window, of an alignment that starts in the first:
+        SAMRecord spliced = null;
+        for (final SAMRecord record : allRecords) {
+            if (record.getAlignmentStart() - 1 < 16384 && lastFragmentStart(record) - 1 > 16400) {
+                spliced = record;
+            }
+        }
+        assertTrue(spliced != null);
+        final File output = new File(BASE_TEST_DIR, "second-window.bam");
+        exporter.export(Arrays.asList(new GenomicRange(0, 16400, 0, 16400)), output);
+        assertTrue(read(output).contains(spliced.getSAMString()));
+        for (int referenceIndex = 0; referenceIndex < 2; referenceIndex++) {
+            for (int position = 15000; position < 19000; position += 250) {
+                exporter.export(Arrays.asList(new GenomicRange(referenceIndex, position, referenceIndex,
+                        position + 20)), output);
+                assertEquals(select(referenceIndex, position, referenceIndex, position + 20), read(output));
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyRegion() throws IOException {
+        final File output = new File(BASE_TEST_DIR, "empty.bam");
+        exporter.export(Arrays.asList(new GenomicRange(0, 19000, 0, 19010)), output);
+        assertEquals(Collections.<String>emptyList(), read(output));
+    }
+
+    /**
+     * Select the records that overlap a region, from the start of their first fragment to the end of their last.
+     */
+    private static ObjectList<String> select(final int startReferenceIndex, final int startPosition,
+                                             final int endReferenceIndex, final int endPosition) {
+        final ObjectList<String> selected = new ObjectArrayList<String>();
+        for (final SAMRecord record : allRecords) {
+            if (!before(record.getReferenceIndex(), record.getAlignmentEnd() - 1, startReferenceIndex, startPosition)
+                    && !before(endReferenceIndex, endPosition, record.getReferenceIndex(),
+                    record.getAlignmentStart() - 1)) {
+                selected.add(record.getSAMString());
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Return the zero-based start of the last fragment of a spliced alignment, or the start of the alignment.
+     */
+    private static int lastFragmentStart(final SAMRecord record) {
+        int position = record.getAlignmentStart() - 1;
+        int lastFragmentStart = position;
+        for (final CigarElement element : record.getCigar().getCigarElements()) {
+            if (element.getOperator().consumesReferenceBases()) {
+                position += element.getLength();
+            }
+            if (element.getOperator() == CigarOperator.N) {
+                lastFragmentStart = position;
+            }
+        }
+        return lastFragmentStart;
+    }
+
+    private static boolean before(final int referenceIndexA, final int positionA, final int referenceIndexB,
+                                  final int positionB) {
+        return referenceIndexA < referenceIndexB || referenceIndexA == referenceIndexB && positionA < positionB;
+    }
+
+    private static ObjectList<String> read(final File file) {
+        final ObjectList<String> records = new ObjectArrayList<String>();
+        final SAMFileReader reader = new SAMFileReader(file);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        for (final SAMRecord record : reader) {
+            records.add(record.getSAMString());
+        }
+        reader.close();
+        return records;
+    }
+}
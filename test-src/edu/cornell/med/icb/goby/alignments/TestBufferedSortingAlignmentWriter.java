@@ -149,6 +149,56 @@ public class TestBufferedSortingAlignmentWriter {
             "}\n" +
             "Closed\n";
 
+    @Test
+    // entries out of order around a change of target
+    public void testCase5() throws IOException {
+        AlignmentToTextWriter destination = new AlignmentToTextWriter();
+        BufferedSortingAlignmentWriter writer = new BufferedSortingAlignmentWriter(destination, 100, 100);
+        writer.appendEntry(buildEntryWithTargetPosition(0, 14));
+        writer.appendEntry(buildEntryWithTargetPosition(0, 15));
+        writer.appendEntry(buildEntryWithTargetPosition(1, 13));
+        // late entries of the first target, and an entry of the second target before the first one seen:
+        writer.appendEntry(buildEntryWithTargetPosition(0, 12));
+        writer.appendEntry(buildEntryWithTargetPosition(1, 12));
+        writer.appendEntry(buildEntryWithTargetPosition(0, 13));
+        writer.appendEntry(buildEntryWithTargetPosition(1, 14));
+        writer.appendEntry(buildEntryWithTargetPosition(1, 15));
+        writer.close();
+        assertEquals(expectedCase5, destination.getTextOutput().toString());
+    }
+    private String expectedCase5 = expectedCase1.replace("Closed\n", "") + expectedCase1.replace("target_index: 0",
+            "target_index: 1");
+
+    @Test
+    // the entries of the first target are written once the second target has moved by a window length
+    public void testCase6() throws IOException {
+        AlignmentToTextWriter destination = new AlignmentToTextWriter();
+        BufferedSortingAlignmentWriter writer = new BufferedSortingAlignmentWriter(destination, 100, 4);
+        writer.appendEntry(buildEntryWithTargetPosition(0, 12));
+        writer.appendEntry(buildEntryWithTargetPosition(1, 12));
+        writer.appendEntry(buildEntryWithTargetPosition(1, 13));
+        assertEquals("", destination.getTextOutput().toString());
+        writer.appendEntry(buildEntryWithTargetPosition(1, 15));
+        assertEquals("", destination.getTextOutput().toString());
+        writer.appendEntry(buildEntryWithTargetPosition(1, 30));
+        assertEquals("{target_index: 0\nposition: 12\n}\n{target_index: 1\nposition: 12\n}\n"
+                + "{target_index: 1\nposition: 13\n}\n{target_index: 1\nposition: 15\n}\n",
+                destination.getTextOutput().toString());
+        writer.close();
+    }
+
+    @Test
+    // only the entries that fall out of the window are written, the window starts at the next buffered entry
+    public void testCase7() throws IOException {
+        AlignmentToTextWriter destination = new AlignmentToTextWriter();
+        BufferedSortingAlignmentWriter writer = new BufferedSortingAlignmentWriter(destination, 100, 4);
+        writer.appendEntry(buildEntryWithTargetPosition(0, 10));
+        writer.appendEntry(buildEntryWithTargetPosition(0, 12));
+        writer.appendEntry(buildEntryWithTargetPosition(0, 15));
+        assertEquals("{target_index: 0\nposition: 10\n}\n", destination.getTextOutput().toString());
+        writer.close();
+    }
+
     private Alignments.AlignmentEntry buildEntryWithTargetPosition(int targetIndex, int position) {
         Alignments.AlignmentEntry.Builder builder = Alignments.AlignmentEntry.newBuilder();
         builder.setTargetIndex(targetIndex).setPosition(position);
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class TestLocalSortBuffer {
+
+    @Test
+    public void testEmpty() {
+        final LocalSortBuffer buffer = new LocalSortBuffer(16);
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.first());
+        assertNull(buffer.dequeue());
+    }
+
+    @Test
+    public void testWithinWindow() {
+        final LocalSortBuffer buffer = new LocalSortBuffer(16);
+        buffer.enqueue(entry(0, 0, 10));
+        buffer.enqueue(entry(1, 0, 12));
+        buffer.enqueue(entry(2, 0, 15));
+        buffer.enqueue(entry(3, 0, 12));
+        buffer.enqueue(entry(4, 0, 11));
+        assertEquals(0, buffer.first().getQueryIndex());
+        assertEquals(0, buffer.dequeue().getQueryIndex());
+        assertEquals(4, buffer.dequeue().getQueryIndex());
+        // entries at the same position are returned in the order they were enqueued:
+        assertEquals(1, buffer.dequeue().getQueryIndex());
+        assertEquals(3, buffer.dequeue().getQueryIndex());
+        assertEquals(2, buffer.dequeue().getQueryIndex());
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.getOverflowCount());
+    }
+
+    @Test
+    public void testOverflow() {
+        final LocalSortBuffer buffer = new LocalSortBuffer(16);
+        buffer.enqueue(entry(0, 0, 100));
+        assertFalse(buffer.isAfterWindow(0, 115));
+        assertTrue(buffer.isAfterWindow(0, 116));
+        // the window extends to the next target until its entries have moved by a window length:
+        assertFalse(buffer.isAfterWindow(1, 0));
+        // before the window, after the window and on another target:
+        buffer.enqueue(entry(1, 0, 90));
+        buffer.enqueue(entry(2, 0, 200));
+        buffer.enqueue(entry(3, 1, 5));
+        buffer.enqueue(entry(4, 0, 201));
+        assertFalse(buffer.isAfterWindow(1, 20));
+        assertTrue(buffer.isAfterWindow(1, 21));
+        assertTrue(buffer.isAfterWindow(2, 0));
+        assertEquals(4, buffer.getOverflowCount());
+        assertEquals(5, buffer.size());
+        assertEquals(1, buffer.dequeue().getQueryIndex());
+        assertEquals(0, buffer.dequeue().getQueryIndex());
+        assertEquals(2, buffer.dequeue().getQueryIndex());
+        // 201 moved back into the window when 200 started it:
+        buffer.enqueue(entry(5, 0, 203));
+        assertEquals(4, buffer.getOverflowCount());
+        assertEquals(4, buffer.dequeue().getQueryIndex());
+        assertEquals(5, buffer.dequeue().getQueryIndex());
+        assertEquals(3, buffer.dequeue().getQueryIndex());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testWindowMovesWithDequeue() {
+        final LocalSortBuffer buffer = new LocalSortBuffer(16);
+        buffer.enqueue(entry(0, 0, 100));
+        buffer.enqueue(entry(1, 0, 110));
+        assertTrue(buffer.isAfterWindow(0, 120));
+        assertEquals(0, buffer.dequeue().getQueryIndex());
+        // the window now starts at the next entry:
+        assertFalse(buffer.isAfterWindow(0, 120));
+        assertTrue(buffer.isAfterWindow(0, 126));
+    }
+
+    @Test
+    public void testRandomShuffle() {
+        final Random random = new Random(37);
+        final LocalSortBuffer buffer = new LocalSortBuffer(32);
+        final ObjectArrayList<Alignments.AlignmentEntry> entries = new ObjectArrayList<Alignments.AlignmentEntry>();
+        int queryIndex = 0;
+        for (int targetIndex = 0; targetIndex < 3; targetIndex++) {
+            int position = 0;
+            for (int i = 0; i < 5000; i++) {
+                position += random.nextInt(random.nextInt(100) == 0 ? 200 : 3);
+                // entries are locally out of order, sometimes by more than the window:
+                final int shift = random.nextInt(10) == 0 ? random.nextInt(60) : 0;
+                entries.add(entry(queryIndex++, targetIndex, Math.max(0, position - shift)));
+            }
+        }
+        final ObjectArrayList<Alignments.AlignmentEntry> sorted = new ObjectArrayList<Alignments.AlignmentEntry>(entries);
+        Collections.sort(sorted, new AlignmentPositionComparator());
+        for (final Alignments.AlignmentEntry entry : entries) {
+            buffer.enqueue(entry);
+        }
+        for (final Alignments.AlignmentEntry expected : sorted) {
+            final Alignments.AlignmentEntry entry = buffer.dequeue();
+            assertEquals(expected.getTargetIndex(), entry.getTargetIndex());
+            assertEquals(expected.getPosition(), entry.getPosition());
+        }
+        assertTrue(buffer.isEmpty());
+        assertTrue(buffer.getOverflowCount() > 0);
+    }
+
+    private Alignments.AlignmentEntry entry(final int queryIndex, final int targetIndex, final int position) {
+        return Alignments.AlignmentEntry.newBuilder().setQueryIndex(queryIndex).
+                setTargetIndex(targetIndex).setPosition(position).build();
+    }
+}
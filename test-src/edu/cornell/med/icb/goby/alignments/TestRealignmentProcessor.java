@@ -38,6 +38,10 @@ import org.junit.Test;
 import javax.swing.*;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Test on the fly realignment around indels. See description of test-cases at
@@ -120,6 +124,100 @@ entry.position=0
 
     }
 
+    @Test
+    public void overlappingIndels() {
+        InfoForTarget tinfo = new InfoForTarget(0);
+        tinfo.addIndel(2, 5, "---", "ACT");
+        tinfo.addIndel(40, 48, "--------", "ACTGACTG");
+        tinfo.addIndel(100, 101, "-", "A");
+        ObjectArrayList<ObservedIndel> result = new ObjectArrayList<ObservedIndel>();
+        tinfo.overlappingIndels(0, 3, result);
+        assertEquals(1, result.size());
+        assertEquals(2, result.get(0).getStart());
+        // indel 40-48 starts before the interval but overlaps it:
+        tinfo.overlappingIndels(45, 90, result);
+        assertEquals(1, result.size());
+        assertEquals(40, result.get(0).getStart());
+        tinfo.overlappingIndels(5, 40, result);
+        assertEquals(0, result.size());
+        tinfo.overlappingIndels(0, 200, result);
+        assertEquals(3, result.size());
+        tinfo.removeIndels(0, 48);
+        tinfo.overlappingIndels(0, 200, result);
+        assertEquals(1, result.size());
+        assertEquals(100, result.get(0).getStart());
+    }
+
+    @Test
+    public void removeZeroSpanIndels() {
+        InfoForTarget tinfo = new InfoForTarget(0);
+        tinfo.addIndel(10, 10, "", "");
+        tinfo.addIndel(10, 12, "--", "AC");
+        tinfo.addIndel(20, 20, "", "");
+        // the zero-span indel at lastPosition ends at lastPosition and is removed:
+        tinfo.removeIndels(0, 10);
+        assertEquals(2, tinfo.potentialIndels.size());
+        assertEquals(10, getFirst(tinfo.potentialIndels).getStart());
+        assertEquals(12, getFirst(tinfo.potentialIndels).getEnd());
+        tinfo.removeIndels(0, 20);
+        assertEquals(0, tinfo.potentialIndels.size());
+    }
+
+    /**
+     * Processors that read different references share the genome and can run concurrently.
+     */
+    @Test
+    public void testConcurrentReferences() throws Exception {
+        final String[] refs = {list2Refs()[0], list2Refs()[0]};
+        final RandomAccessSequenceInterface genome = new RandomAccessSequenceTestSupport(refs);
+        final int numReferences = refs.length;
+        final ObjectArrayList<Alignments.AlignmentEntry> expected = new ObjectArrayList<Alignments.AlignmentEntry>();
+        final ObjectList<Alignments.AlignmentEntry>[] lists = new ObjectList[numReferences];
+        for (int targetIndex = 0; targetIndex < numReferences; targetIndex++) {
+            lists[targetIndex] = new ObjectArrayList<Alignments.AlignmentEntry>();
+            for (int i = 0; i < 50; i++) {
+                addEntry(lists[targetIndex], targetIndex, refs[targetIndex], "ACTGACTGACTGAATTACTA");
+                addEntry(lists[targetIndex], targetIndex, refs[targetIndex], "     CTGACTGAA----TTACTAG");
+            }
+            final RealignmentProcessor realigner = new RealignmentProcessor(lists[targetIndex].iterator());
+            realigner.setGenome(genome);
+            Alignments.AlignmentEntry entry;
+            while ((entry = realigner.nextRealignedEntry(0, 0)) != null) {
+                expected.add(entry);
+            }
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(numReferences);
+        final ObjectArrayList<Future<ObjectArrayList<Alignments.AlignmentEntry>>> futures =
+                new ObjectArrayList<Future<ObjectArrayList<Alignments.AlignmentEntry>>>();
+        for (int targetIndex = 0; targetIndex < numReferences; targetIndex++) {
+            final ObjectList<Alignments.AlignmentEntry> list = lists[targetIndex];
+            futures.add(executor.submit(new Callable<ObjectArrayList<Alignments.AlignmentEntry>>() {
+                public ObjectArrayList<Alignments.AlignmentEntry> call() throws IOException {
+                    final ObjectArrayList<Alignments.AlignmentEntry> result = new ObjectArrayList<Alignments.AlignmentEntry>();
+                    final RealignmentProcessor realigner = new RealignmentProcessor(list.iterator());
+                    realigner.setGenome(genome);
+                    Alignments.AlignmentEntry entry;
+                    while ((entry = realigner.nextRealignedEntry(0, 0)) != null) {
+                        result.add(entry);
+                    }
+                    return result;
+                }
+            }));
+        }
+        final ObjectArrayList<Alignments.AlignmentEntry> observed = new ObjectArrayList<Alignments.AlignmentEntry>();
+        for (final Future<ObjectArrayList<Alignments.AlignmentEntry>> future : futures) {
+            observed.addAll(future.get());
+        }
+        executor.shutdown();
+        assertEquals(expected, observed);
+        int realigned = 0;
+        for (final Alignments.AlignmentEntry entry : observed) {
+            realigned += entry.getSequenceVariations(0).getTo().equals("----") ? 1 : 0;
+        }
+        assertEquals("all the entries must carry the indel after realignment", 200, realigned);
+    }
+
     private ObservedIndel getFirst(ObjectAVLTreeSet<ObservedIndel> potentialIndels) {
         return potentialIndels.first();
     }
@@ -23,7 +23,12 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * @author Fabien Campagne
@@ -66,4 +71,79 @@ public class TestTooManyHits {
         assertFalse("query sequence 13 must NOT be found", tmhReader.isQueryAmbiguous(13));
         assertFalse("query sequence 1100239028 must NOT be found", tmhReader.isQueryAmbiguous(1100239028));
     }
+
+    @Test
+    public void testUnsortedQueryIndices() throws IOException {
+        final AlignmentTooManyHitsWriter tmhWriter =
+                new AlignmentTooManyHitsWriter("test-results/alignments/align-102-tmh", 2);
+        tmhWriter.append(30, 5, 20);
+        tmhWriter.append(7, 3, 25);
+        tmhWriter.append(1000000, 8, 18);
+        tmhWriter.append(7, 4, 22);
+        // at or below the threshold, not written:
+        tmhWriter.append(8, 2, 25);
+        tmhWriter.setAlignerThreshold(3);
+        tmhWriter.close();
+
+        final AlignmentTooManyHitsReader tmhReader =
+                new AlignmentTooManyHitsReader("test-results/alignments/align-102-tmh");
+        assertEquals(3, tmhReader.getAlignerThreshold());
+        assertEquals(3, tmhReader.getQueryIndices().size());
+        assertEquals(new IntArrayList(new int[]{7, 30, 1000000}), new IntArrayList(tmhReader.getQueryIndices().iterator()));
+        // the last record written for a query wins:
+        assertEquals(4, tmhReader.getNumberOfHits(7));
+        assertEquals(22, tmhReader.getLengthOfMatch(7));
+        assertEquals(5, tmhReader.getNumberOfHits(30));
+        assertEquals(18, tmhReader.getLengthOfMatch(1000000));
+        assertEquals(-1, tmhReader.getNumberOfHits(8));
+        assertEquals(-1, tmhReader.getLengthOfMatch(8));
+        assertFalse(tmhReader.getQueryIndices().contains(8));
+        assertTrue(tmhReader.getQueryIndices().contains(30));
+        tmhReader.close();
+    }
+
+    /**
+     * Files written as a single message by previous versions must still be readable.
+     */
+    @Test
+    public void testReadSingleMessage() throws IOException {
+        final Alignments.AlignmentTooManyHits.Builder tmh = Alignments.AlignmentTooManyHits.newBuilder();
+        tmh.setAlignerThreshold(4);
+        tmh.addHits(Alignments.AmbiguousLocation.newBuilder().setQueryIndex(3).setAtLeastNumberOfHits(10));
+        tmh.addHits(Alignments.AmbiguousLocation.newBuilder().setQueryIndex(9).setAtLeastNumberOfHits(12).setLengthOfMatch(30));
+        final OutputStream output = new GZIPOutputStream(new FileOutputStream("test-results/alignments/align-103-tmh.tmh"));
+        tmh.build().writeTo(output);
+        output.close();
+
+        final AlignmentTooManyHitsReader tmhReader =
+                new AlignmentTooManyHitsReader("test-results/alignments/align-103-tmh");
+        assertEquals(4, tmhReader.getAlignerThreshold());
+        assertEquals(2, tmhReader.getQueryIndices().size());
+        assertEquals(10, tmhReader.getNumberOfHits(3));
+        assertEquals(-1, tmhReader.getLengthOfMatch(3));
+        assertEquals(30, tmhReader.getLengthOfMatch(9));
+        assertFalse(tmhReader.isQueryAmbiguous(4));
+    }
+
+    /**
+     * A later record of a query without length of match must not erase the length of match of an earlier record.
+     */
+    @Test
+    public void testDuplicateWithoutLengthOfMatch() throws IOException {
+        final Alignments.AlignmentTooManyHits.Builder tmh = Alignments.AlignmentTooManyHits.newBuilder();
+        tmh.setAlignerThreshold(4);
+        tmh.addHits(Alignments.AmbiguousLocation.newBuilder().setQueryIndex(9).setAtLeastNumberOfHits(12).setLengthOfMatch(30));
+        tmh.addHits(Alignments.AmbiguousLocation.newBuilder().setQueryIndex(5).setAtLeastNumberOfHits(7).setLengthOfMatch(20));
+        tmh.addHits(Alignments.AmbiguousLocation.newBuilder().setQueryIndex(9).setAtLeastNumberOfHits(15));
+        final OutputStream output = new GZIPOutputStream(new FileOutputStream("test-results/alignments/align-104-tmh.tmh"));
+        tmh.build().writeTo(output);
+        output.close();
+
+        final AlignmentTooManyHitsReader tmhReader =
+                new AlignmentTooManyHitsReader("test-results/alignments/align-104-tmh");
+        assertEquals(2, tmhReader.getQueryIndices().size());
+        assertEquals(15, tmhReader.getNumberOfHits(9));
+        assertEquals(30, tmhReader.getLengthOfMatch(9));
+        assertEquals(20, tmhReader.getLengthOfMatch(5));
+    }
 }
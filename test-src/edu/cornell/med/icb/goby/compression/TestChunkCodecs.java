@@ -18,12 +18,25 @@
 
 package edu.cornell.med.icb.goby.compression;
 
+import com.google.protobuf.ByteString;
+import edu.cornell.med.icb.goby.reads.ReadProtobuffCollectionHandler;
+import edu.cornell.med.icb.goby.reads.Reads;
+import edu.cornell.med.icb.goby.reads.ReadsChunk;
+import edu.cornell.med.icb.goby.reads.ReadsChunkReader;
+import edu.cornell.med.icb.goby.reads.ReadsReader;
+import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Random;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -68,4 +81,110 @@ public class TestChunkCodecs {
 
     }
 
+    @Test
+    public void testRoundTripHybridReads() throws IOException {
+        roundTripHybridReads(collectionFrom("test-data/compact-reads/s_1_sequence_short.compact-reads"));
+        roundTripHybridReads(collectionFrom("test-data/compact-reads/small-paired.compact-reads"));
+        roundTripHybridReads(collectionFrom("test-data/compact-reads/five-with-quality.compact-reads"));
+        roundTripHybridReads(randomReads(500));
+    }
+
+    @Test
+    public void testHybridReadsWithChunkReader() throws IOException {
+        final Reads.ReadCollection collection = randomReads(100);
+        final HybridReadsChunkCodec codec = new HybridReadsChunkCodec();
+        codec.setHandler(new ReadProtobuffCollectionHandler());
+        // layout of one chunk in a compact file: codec code, delimiter, size and codec bytes:
+        final byte[] encoded = codec.encode(collection).toByteArray();
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(file);
+        out.writeByte(codec.registrationCode());
+        for (int i = 0; i < MessageChunksWriter.DELIMITER_LENGTH; i++) {
+            out.writeByte(MessageChunksWriter.DELIMITER_CONTENT);
+        }
+        out.writeInt(encoded.length);
+        out.write(encoded);
+        out.flush();
+
+        final ReadsChunkReader reader = new ReadsChunkReader(new FastByteArrayInputStream(file.toByteArray()));
+        assertTrue(reader.nextChunk());
+        final ReadsChunk chunk = reader.getChunk();
+        assertEquals(collection.getReadsCount(), chunk.size());
+        final MutableString sequence = new MutableString();
+        for (int i = 0; i < chunk.size(); i++) {
+            final Reads.ReadEntry expected = collection.getReads(i);
+            chunk.decodeSequence(i, sequence);
+            assertEquals(expected.getSequence().toStringUtf8(), sequence.toString());
+            assertEquals(expected.getQualityScores().size(), chunk.getQualityScores().length(i));
+            for (int j = 0; j < expected.getQualityScores().size(); j++) {
+                assertEquals(expected.getQualityScores().byteAt(j), chunk.getQualityScores().byteAt(i, j));
+            }
+        }
+        reader.close();
+    }
+
+    private void roundTripHybridReads(final Reads.ReadCollection collection) throws IOException {
+        final HybridReadsChunkCodec codec = new HybridReadsChunkCodec();
+        codec.setHandler(new ReadProtobuffCollectionHandler());
+        final byte[] encoded = codec.encode(collection).toByteArray();
+        final DataInputStream dis = new DataInputStream(new FastByteArrayInputStream(encoded));
+        // validate expects the first byte of the size to have been consumed:
+        final ByteArrayOutputStream sized = new ByteArrayOutputStream();
+        new DataOutputStream(sized).writeInt(encoded.length);
+        final byte[] sizeBytes = sized.toByteArray();
+        final DataInputStream chunk = new DataInputStream(new java.io.SequenceInputStream(
+                new FastByteArrayInputStream(sizeBytes, 1, 3), dis));
+        assertTrue(codec.validate(sizeBytes[0], chunk));
+
+        final HybridReadsChunkCodec decoder = new HybridReadsChunkCodec();
+        decoder.setHandler(new ReadProtobuffCollectionHandler());
+        assertEquals(collection, decoder.decode(encoded));
+    }
+
+    private Reads.ReadCollection collectionFrom(final String filename) throws IOException {
+        final Reads.ReadCollection.Builder result = Reads.ReadCollection.newBuilder();
+        final ReadsReader reader = new ReadsReader(filename);
+        try {
+            while (reader.hasNext()) {
+                result.addReads(reader.next());
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return result.build();
+    }
+
+    private Reads.ReadCollection randomReads(final int numReads) {
+        final Random random = new Random(37);
+        final Reads.ReadCollection.Builder result = Reads.ReadCollection.newBuilder();
+        final String alphabet = "ACGTACGTACGTNR";
+        for (int readIndex = 0; readIndex < numReads; readIndex++) {
+            final int length = 20 + random.nextInt(80);
+            final byte[] sequence = new byte[length];
+            final byte[] qualities = new byte[length];
+            for (int i = 0; i < length; i++) {
+                sequence[i] = (byte) alphabet.charAt(random.nextInt(alphabet.length()));
+                qualities[i] = (byte) (i == 0 ? 40 : Math.max(2, qualities[i - 1] - random.nextInt(3)));
+            }
+            if (readIndex % 7 == 0) {
+                // a run of Ns:
+                for (int i = 3; i < 12; i++) {
+                    sequence[i] = 'N';
+                }
+            }
+            final Reads.ReadEntry.Builder entry = Reads.ReadEntry.newBuilder();
+            entry.setReadIndex(readIndex);
+            entry.setReadLength(length);
+            entry.setSequence(ByteString.copyFrom(sequence));
+            entry.setQualityScores(ByteString.copyFrom(qualities));
+            entry.setDescription("read-" + readIndex);
+            if (readIndex % 3 == 0) {
+                entry.setReadLengthPair(length - 5);
+                entry.setSequencePair(ByteString.copyFrom(sequence, 5, length - 5));
+                entry.setQualityScoresPair(ByteString.copyFrom(qualities, 5, length - 5));
+            }
+            result.addReads(entry);
+        }
+        return result.build();
+    }
 }
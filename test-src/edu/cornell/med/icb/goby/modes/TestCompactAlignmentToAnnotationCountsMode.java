@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.modes;
+
+import com.martiansoftware.jsap.JSAPException;
+import edu.cornell.med.icb.goby.alignments.AlignmentWriterImpl;
+import edu.cornell.med.icb.goby.alignments.Alignments;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCompactAlignmentToAnnotationCountsMode {
+    private static final String BASE_TEST_DIR = "test-results/annotation-counts";
+    private static final String ANNOTATION_FILENAME = FilenameUtils.concat(BASE_TEST_DIR, "annotations.tsv");
+    private static final String[] REFERENCES = {"chr1", "chr2"};
+    private static final int REFERENCE_LENGTH = 20000;
+
+    @BeforeClass
+    public static void beforeClass() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final Random random = new Random(37);
+        final PrintWriter annotations = new PrintWriter(ANNOTATION_FILENAME);
+        annotations.println("chromosome\tstrand\ttranscript\tsegment\tstart\tend");
+        for (final String reference : REFERENCES) {
+            for (int gene = 0; gene < 20; gene++) {
+                int position = gene * 1000 + random.nextInt(100);
+                final int numExons = 1 + random.nextInt(4);
+                for (int exon = 0; exon < numExons; exon++) {
+                    final int length = 20 + random.nextInt(150);
+                    annotations.printf("%s\t+\t%s-gene-%d\t%s-exon-%d-%d\t%d\t%d%n", reference, reference, gene,
+                            reference, gene, exon, position, position + length);
+                    position += length + 1 + random.nextInt(100);
+                }
+            }
+        }
+        annotations.close();
+        for (int sampleIndex = 0; sampleIndex < 4; sampleIndex++) {
+            writeAlignment("sample-" + sampleIndex, REFERENCES, random);
+        }
+        // the first sample of this set does not have the second reference sequence:
+        writeAlignment("partial-0", new String[]{"chr1"}, random);
+        writeAlignment("partial-1", REFERENCES, random);
+    }
+
+    private static void writeAlignment(final String sample, final String[] references, final Random random)
+            throws IOException {
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(FilenameUtils.concat(BASE_TEST_DIR, sample));
+        writer.setTargetIdentifiersArray(references);
+        final int[] targetLengths = new int[references.length];
+        Arrays.fill(targetLengths, REFERENCE_LENGTH);
+        writer.setTargetLengths(targetLengths);
+        writer.setSorted(true);
+        int queryIndex = 0;
+        for (int targetIndex = 0; targetIndex < references.length; targetIndex++) {
+            final IntArrayList positions = new IntArrayList();
+            for (int i = 0; i < 3000; i++) {
+                positions.add(random.nextInt(REFERENCE_LENGTH - 100));
+            }
+            Collections.sort(positions);
+            for (final int position : positions) {
+                writer.appendEntry(Alignments.AlignmentEntry.newBuilder()
+                        .setQueryIndex(queryIndex++)
+                        .setTargetIndex(targetIndex)
+                        .setPosition(position)
+                        .setMatchingReverseStrand(random.nextBoolean())
+                        .setScore(50)
+                        .setQueryLength(50)
+                        .setQueryAlignedLength(50)
+                        .setTargetAlignedLength(50)
+                        .setMultiplicity(1)
+                        .build());
+            }
+        }
+        writer.setNumQueries(queryIndex);
+        writer.close();
+    }
+
+    @AfterClass
+    public static void afterClass() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testSameCountsWithIntrons() throws IOException, JSAPException {
+        final String[] samples = {"sample-0", "sample-1", "sample-2", "sample-3"};
+        final String groups = "A=sample-0,sample-1/B=sample-2,sample-3";
+        final String[] serial = count(samples, groups, false);
+        final String[] parallel = count(samples, groups, true);
+        assertTrue(serial[0].contains("\tother\t"));
+        for (int i = 0; i < serial.length; i++) {
+            assertEquals(serial[i], parallel[i]);
+        }
+    }
+
+    @Test
+    public void testReferenceMissingFromFirstSample() throws IOException, JSAPException {
+        final String[] samples = {"partial-0", "partial-1"};
+        final String[] serial = count(samples, null, false);
+        final String[] parallel = count(samples, "A=partial-0/B=partial-1", true);
+        assertEquals(serial[0], parallel[0]);
+        assertEquals(serial[1], parallel[1]);
+        assertTrue(parallel[1].contains("chr2-gene-0\t"));
+        // the counts of the genes of the second reference sequence are observed for the second sample:
+        assertTrue(parallel[2].contains("chr2-gene-0\t"));
+        assertTrue(parallel[2].contains("chr2-exon-0-0\t"));
+    }
+
+    /**
+     * Count the samples, and return the counts written for each sample, followed by the comparison statistics
+     * when groups are defined.
+     */
+    private String[] count(final String[] samples, final String groups, final boolean countInParallel)
+            throws IOException, JSAPException {
+        final String statsFilename = FilenameUtils.concat(BASE_TEST_DIR, "stats.tsv");
+        final String[] inputs = new String[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            inputs[i] = FilenameUtils.concat(BASE_TEST_DIR, samples[i]);
+        }
+        final StringBuilder arguments = new StringBuilder();
+        arguments.append("--mode alignment-to-annotation-counts --annotation ").append(ANNOTATION_FILENAME);
+        arguments.append(" --include-annotation-types gene,exon,other,intron");
+        arguments.append(" --filter-ambiguous-reads false");
+        if (groups != null) {
+            arguments.append(" --groups ").append(groups).append(" --compare A/B");
+            arguments.append(" --stats ").append(statsFilename);
+        }
+        for (final String input : inputs) {
+            arguments.append(' ').append(input);
+        }
+        final CompactAlignmentToAnnotationCountsMode mode = new CompactAlignmentToAnnotationCountsMode();
+        mode.configure(arguments.toString().split(" "));
+        mode.setCountInParallel(countInParallel);
+        mode.execute();
+        final String[] output = new String[groups == null ? samples.length : samples.length + 1];
+        for (int i = 0; i < samples.length; i++) {
+            output[i] = FileUtils.readFileToString(new File(inputs[i] + ".ann-counts.tsv"));
+        }
+        if (groups != null) {
+            output[samples.length] = FileUtils.readFileToString(new File(statsFilename));
+        }
+        return output;
+    }
+}
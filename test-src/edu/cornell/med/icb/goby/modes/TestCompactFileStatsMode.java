@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.modes;
+
+import edu.cornell.med.icb.goby.alignments.AlignmentWriterImpl;
+import edu.cornell.med.icb.goby.alignments.Alignments;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestCompactFileStatsMode {
+    private static final String BASE_TEST_DIR = "test-results/compact-file-stats";
+    private static final String BASENAME = FilenameUtils.concat(BASE_TEST_DIR, "alignment");
+    private static final int NUM_QUERIES = 20000;
+
+    /**
+     * The number of logical entries written in the alignment.
+     */
+    private static long numberOfEntries;
+
+    @BeforeClass
+    public static void beforeClass() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(BASENAME);
+        writer.setNumAlignmentEntriesPerChunk(200);
+        writer.setNumQueries(NUM_QUERIES);
+        writer.setTargetLengths(new int[]{100000, 200000});
+        final Random random = new Random(2012);
+        for (int queryIndex = 0; queryIndex < NUM_QUERIES; queryIndex++) {
+            if (queryIndex % 5 == 0) {
+                // some queries do not align
+                continue;
+            }
+            final int multiplicity = 1 + random.nextInt(3);
+            final int queryLength = 50 + random.nextInt(50);
+            writer.appendEntry(Alignments.AlignmentEntry.newBuilder()
+                    .setQueryIndex(queryIndex)
+                    .setTargetIndex(random.nextInt(2))
+                    .setPosition(random.nextInt(100000))
+                    .setMatchingReverseStrand(random.nextBoolean())
+                    .setScore(random.nextInt(100))
+                    .setQueryLength(queryLength)
+                    .setQueryAlignedLength(queryLength - random.nextInt(5))
+                    .setTargetAlignedLength(queryLength)
+                    .setMultiplicity(multiplicity)
+                    .setPairFlags(random.nextInt(256))
+                    .build());
+            numberOfEntries += multiplicity;
+        }
+        writer.close();
+    }
+
+    @AfterClass
+    public static void afterClass() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testParallelScan() throws IOException {
+        final String serial = describe(1, 1, false, "serial.txt");
+        assertTrue(serial.contains(String.format("Number of alignment entries = %,d%n", numberOfEntries)));
+        assertTrue(serial.contains(String.format("Number of query indices that matched = %,d%n",
+                NUM_QUERIES * 4 / 5)));
+        // slices of the entries file give the same statistics:
+        assertEquals(serial, describe(3, 1, false, "parallel.txt"));
+        assertEquals(serial, describe(8, 1, false, "parallel.txt"));
+    }
+
+    @Test
+    public void testSampling() throws IOException {
+        final String sampled = describe(2, 2, false, "sampled.txt");
+        assertTrue(sampled.contains("Sampled 41 of 81 slices of the entries file (one in 2)"));
+        assertFalse(sampled.contains("Number of query indices that matched"));
+        // the actual statistics are close to the estimates, relative to their confidence intervals:
+        checkEstimate(numberOfEntries, sampled, "Estimated number of alignment entries");
+        final String scanned = describe(2, 1, false, "scanned.txt");
+        checkEstimate(parse(scanned, "Mean query length = ([0-9.,]+)", 1), sampled,
+                "Estimated mean query length");
+        checkEstimate(parse(scanned, "Percent first in pair = ([0-9.,]+)", 1), sampled,
+                "Estimated percent first in pair");
+    }
+
+    @Test
+    public void testCachedStatistics() throws IOException {
+        final String scanned = describe(2, 1, true, "scanned.txt");
+        assertFalse(scanned.contains("cached"));
+        final String cached = describe(2, 1, true, "cached.txt");
+        assertTrue(cached.contains("Statistics of entries were cached in the .stats file"));
+        assertEquals(scanned, cached.replace("Statistics of entries were cached in the .stats file\n", ""));
+
+        // statistics are scanned again when the entries file changes:
+        assertTrue(new File(BASENAME + ".entries").setLastModified(System.currentTimeMillis() - 60000));
+        assertEquals(scanned, describe(2, 1, true, "scanned.txt"));
+    }
+
+    private static void checkEstimate(final double expected, final String output, final String label) {
+        final String pattern = label + " = ([0-9.,]+)[ %]* \\+/- ([0-9.,]+)";
+        final double estimate = parse(output, pattern, 1);
+        final double halfWidth = parse(output, pattern, 2);
+        assertTrue(label, halfWidth > 0);
+        assertTrue(label, Math.abs(estimate - expected) <= 2 * halfWidth);
+    }
+
+    private static double parse(final String output, final String pattern, final int group) {
+        final Matcher matcher = Pattern.compile(pattern).matcher(output);
+        assertTrue(pattern, matcher.find());
+        return Double.parseDouble(matcher.group(group).replace(",", ""));
+    }
+
+    private String describe(final int numThreads, final int sampleEvery, final boolean cacheStatistics,
+                            final String output) throws IOException {
+        final String outputFilename = FilenameUtils.concat(BASE_TEST_DIR, output);
+        final CompactFileStatsMode mode = new CompactFileStatsMode();
+        mode.addInputFile(new File(BASENAME));
+        mode.setOutputFilename(outputFilename);
+        mode.setNumThreads(numThreads);
+        mode.setSampleEvery(sampleEvery);
+        mode.setSampleSliceLength(new File(BASENAME + ".entries").length() / 80);
+        mode.setCacheStatistics(cacheStatistics);
+        mode.execute();
+        return FileUtils.readFileToString(new File(outputFilename));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.modes;
+
+import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import it.unimi.dsi.lang.MutableString;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import org.apache.commons.io.FilenameUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestCompactToSAMMode {
+    private static final String BASE_TEST_DIR = "test-results/compact-to-sam";
+
+    /**
+     * A genome of As, shared by the threads that encode BAM records.
+     */
+    private static final RandomAccessSequenceInterface GENOME = new RandomAccessSequenceInterface() {
+        @Override
+        public char get(final int referenceIndex, final int position) {
+            return 'A';
+        }
+
+        @Override
+        public int getLength(final int targetIndex) {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void getRange(final int referenceIndex, final int position, final int length,
+                             final MutableString bases) {
+            bases.setLength(0);
+            for (int i = 0; i < length; i++) {
+                bases.append('A');
+            }
+        }
+
+        @Override
+        public int getReferenceIndex(final String referenceId) {
+            return 0;
+        }
+
+        @Override
+        public String getReferenceName(final int index) {
+            return "ref-id";
+        }
+
+        @Override
+        public int size() {
+            return 1;
+        }
+    };
+
+    @BeforeClass
+    public static void beforeClass() {
+        new File(BASE_TEST_DIR).mkdirs();
+    }
+
+    @Test
+    public void testBAMSameAsSAM() throws IOException {
+        final String basename = FilenameUtils.concat(BASE_TEST_DIR, "spliced-pairs");
+        final SAMToCompactMode importer = new SAMToCompactMode();
+        importer.setInputFile("test-data/compact-to-sam/spliced-pairs.sam");
+        importer.setOutputFile(basename);
+        importer.setPreserveReadName(true);
+        importer.setPreserveSoftClips(true);
+        importer.setPreserveAllTags(true);
+        importer.execute();
+
+        final ObjectList<String> expected = export(basename, ".sam", 1);
+        assertEquals(120, expected.size());
+        int numSpliced = 0;
+        for (final String record : expected) {
+            if (record.split("\t")[5].contains("N")) {
+                numSpliced++;
+            }
+        }
+        assertEquals(42, numSpliced);
+        assertEquals(expected, export(basename, ".bam", 1));
+        assertEquals(expected, export(basename, ".bam", 3));
+    }
+
+    private ObjectList<String> export(final String basename, final String extension, final int numThreads)
+            throws IOException {
+        final String output = basename + "-" + numThreads + extension;
+        final CompactToSAMMode exporter = new CompactToSAMMode();
+        exporter.setInputBasename(basename);
+        exporter.setOutput(output);
+        exporter.setGenome(GENOME);
+        exporter.setNumThreads(numThreads);
+        exporter.execute();
+        final ObjectList<String> records = new ObjectArrayList<String>();
+        final SAMFileReader reader = new SAMFileReader(new File(output));
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        for (final SAMRecord record : reader) {
+            records.add(record.getSAMString());
+        }
+        reader.close();
+        return records;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.modes;
+
+import com.martiansoftware.jsap.JSAPException;
+import edu.cornell.med.icb.goby.algorithmic.algorithm.dmr.ObservationWriter;
+import edu.cornell.med.icb.goby.algorithmic.data.GroupComparison;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestEmpiricalPMode {
+    private static final String BASE_TEST_DIR = "test-results/empirical-p";
+    private static final String INPUT_FILENAME = FilenameUtils.concat(BASE_TEST_DIR, "observations.bin");
+    private static final int NUM_ELEMENTS = 300;
+
+    @BeforeClass
+    public static void beforeClass() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final ObservationWriter writer = new ObservationWriter(new FileOutputStream(INPUT_FILENAME));
+        writer.setHeaderIds(new String[]{"context", "chromosome", "start", "end", "annotation-id"});
+        writer.writeHeader(new String[]{"cma", "ca"}, new String[]{"cmb", "cb"}, new String[]{"sumA"},
+                new String[]{"sumB"});
+        final Random random = new Random(36);
+        for (int element = 0; element < NUM_ELEMENTS; element++) {
+            final String[] ids = {"CpG", "chr1", Integer.toString(element * 100),
+                    Integer.toString(element * 100 + 99), "annotation-" + element};
+            // blocks of within group pairs alternate with the between group pairs of each element:
+            final int numWithin = random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(40);
+            for (int i = 0; i < numWithin; i++) {
+                writer.setTypeOfPair(ObservationWriter.TypeOfPair.WITHIN_GROUP_PAIR);
+                writer.setNullComparison("A");
+                writer.setElementIds(ids);
+                observe(writer, random, 0);
+            }
+            final int numBetween = 1 + random.nextInt(4);
+            for (int i = 0; i < numBetween; i++) {
+                writer.setTypeOfPair(ObservationWriter.TypeOfPair.BETWEEN_GROUP_PAIR);
+                writer.setComparison(new GroupComparison("A", "B", 0, 1, 0));
+                writer.setElementIds(ids);
+                observe(writer, random, element % 5 == 0 ? 30 : 0);
+            }
+        }
+        writer.close();
+    }
+
+    private static void observe(final ObservationWriter writer, final Random random, final int shift) {
+        final int coverageA = 5 + random.nextInt(50);
+        final int coverageB = 5 + random.nextInt(50);
+        final int methylatedA = random.nextInt(coverageA + 1);
+        final int methylatedB = Math.min(coverageB, random.nextInt(coverageB + 1) + shift);
+        writer.observed(new IntArrayList(new int[]{methylatedA, coverageA - methylatedA}),
+                new IntArrayList(new int[]{methylatedB, coverageB - methylatedB}),
+                new IntArrayList(new int[]{coverageA}), new IntArrayList(new int[]{coverageB}));
+    }
+
+    @AfterClass
+    public static void afterClass() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testParallelNullEstimation() throws IOException, JSAPException {
+        final String serial = estimate(1);
+        assertEquals(NUM_ELEMENTS, serial.split("\n").length);
+        final String parallel = estimate(4);
+        assertEquals(serial, parallel);
+        assertTrue(Arrays.equals(
+                FileUtils.readFileToByteArray(new File(FilenameUtils.concat(BASE_TEST_DIR, "density-1.bin"))),
+                FileUtils.readFileToByteArray(new File(FilenameUtils.concat(BASE_TEST_DIR, "density-4.bin")))));
+    }
+
+    /**
+     * Estimate p-values with the given number of threads, and return the p-values written to the output.
+     */
+    private String estimate(final int numThreads) throws IOException, JSAPException {
+        final String outputFilename = FilenameUtils.concat(BASE_TEST_DIR, "p-values-" + numThreads + ".tsv");
+        final String densityFilename = FilenameUtils.concat(BASE_TEST_DIR, "density-" + numThreads + ".bin");
+        FileUtils.deleteQuietly(new File(densityFilename));
+        final EmpiricalPMode mode = new EmpiricalPMode();
+        mode.configure(new String[]{"--mode", "empirical-p", INPUT_FILENAME, "--statistic", "dMR",
+                "--output", outputFilename, "--density-filename", densityFilename, "-l", "test",
+                "--num-threads", Integer.toString(numThreads)});
+        mode.execute();
+        return FileUtils.readFileToString(new File(outputFilename));
+    }
+}
@@ -48,4 +48,16 @@ public class TestSampleQualityScoresMode {
         assertEquals("wrong number of encodings", 1, encodings.size());
         assertEquals("wrong encoding", "Illumina/Solexa", encodings.get(0));
     }
+
+    @Test
+    public void testCompactReadsEntireFile() throws IOException {
+        final SampleQualityScoresMode sqs = new SampleQualityScoresMode();
+        sqs.addInputFilename("test-data/compact-reads/five-with-quality.compact-reads");
+        // zero processes the entire file:
+        sqs.setNumberOfReadEntriesToProcess(0);
+        sqs.execute();
+        final List<String> encodings = sqs.getLikelyEncodings();
+        assertEquals("wrong number of encodings", 1, encodings.size());
+        assertEquals("wrong encoding", "Phred", encodings.get(0));
+    }
 }
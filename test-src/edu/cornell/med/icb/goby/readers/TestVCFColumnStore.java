@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.readers;
+
+import edu.cornell.med.icb.goby.readers.vcf.ColumnType;
+import edu.cornell.med.icb.goby.readers.vcf.VCFColumnStoreWriter;
+import edu.cornell.med.icb.goby.readers.vcf.VCFParser;
+import edu.cornell.med.icb.goby.stats.VCFWriter;
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class TestVCFColumnStore {
+    private static final String BASE_TEST_DIR = "test-results/vcf-columns";
+    private static final String VCF_FILENAME = BASE_TEST_DIR + "/stats.vcf";
+    private static final int NUM_RECORDS_PER_CHROMOSOME = 12000;
+
+    @BeforeClass
+    public static void writeVCF() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final VCFWriter writer = new VCFWriter(new FileWriter(VCF_FILENAME));
+        final int pValueIndex = writer.defineField("INFO", "p-value", 1, ColumnType.Float, "A p-value");
+        final int countIndex = writer.defineField("INFO", "count", 1, ColumnType.Integer, "A count");
+        final int flagIndex = writer.defineField("INFO", "significant", 1, ColumnType.Flag, "A flag");
+        writer.defineSamples(new String[]{"sampleA", "sampleB"});
+        final int genotypeIndex = writer.defineField("FORMAT", "GT", 1, ColumnType.String, "Genotype");
+        final int depthIndex = writer.defineField("FORMAT", "DP", 1, ColumnType.Integer, "Depth");
+        final int frequencyIndex = writer.defineField("FORMAT", "FREQ", 1, ColumnType.Float, "Frequency");
+        writer.setColumnStore(VCF_FILENAME + VCFColumnStoreWriter.FILE_SUFFIX);
+        writer.writeHeader();
+        final Random random = new Random(23);
+        for (final String chromosome : new String[]{"chr1", "chr2"}) {
+            for (int i = 0; i < NUM_RECORDS_PER_CHROMOSOME; i++) {
+                writer.setChromosome(chromosome);
+                writer.setPosition(i * 10 + 1);
+                writer.setReferenceAllele("A");
+                if (random.nextBoolean()) {
+                    writer.addAlternateAllele("C");
+                }
+                // p-values are mostly large, except in the first thousands records of chr2:
+                final double pValue = chromosome.equals("chr2") && i < 3000 ? random.nextDouble() / 100 :
+                        0.5 + random.nextDouble() / 2;
+                writer.setInfo(pValueIndex, pValue);
+                if (i % 7 != 0) {
+                    writer.setInfo(countIndex, random.nextInt(1000) - 10);
+                } else {
+                    writer.setInfo(countIndex, "");
+                }
+                writer.setFlag(flagIndex, pValue < 0.001);
+                for (int sampleIndex = 0; sampleIndex < 2; sampleIndex++) {
+                    writer.setSampleValue(genotypeIndex, sampleIndex, random.nextBoolean() ? "0/1" : "0/0");
+                    if (i % 5 != 0) {
+                        writer.setSampleValue(depthIndex, sampleIndex, random.nextInt(50));
+                    }
+                    if (i % 3 == 0) {
+                        writer.setSampleValue(frequencyIndex, sampleIndex, random.nextFloat());
+                    }
+                }
+                writer.writeRecord();
+            }
+        }
+        writer.close();
+    }
+
+    @Test
+    public void testSameValuesAsText() throws IOException, VCFParser.SyntaxException {
+        final VCFParser textParser = new VCFParser(VCF_FILENAME);
+        textParser.setUseColumnStore(false);
+        textParser.readHeader();
+        final VCFParser storeParser = new VCFParser(VCF_FILENAME);
+        storeParser.readHeader();
+        assertFalse(textParser.isUsingColumnStore());
+        assertTrue(storeParser.isUsingColumnStore());
+        assertEquals(textParser.countAllFields(), storeParser.countAllFields());
+        int numRecords = 0;
+        while (textParser.hasNextDataLine()) {
+            assertTrue(storeParser.hasNextDataLine());
+            for (int columnIndex = 0; columnIndex < textParser.getNumberOfColumns(); columnIndex++) {
+                assertEquals(textParser.getColumnValue(columnIndex).toString(),
+                        storeParser.getColumnValue(columnIndex).toString());
+            }
+            for (int fieldIndex = 0; fieldIndex < textParser.countAllFields(); fieldIndex++) {
+                assertEquals(textParser.getFieldName(fieldIndex), textParser.getStringFieldValue(fieldIndex),
+                        storeParser.getStringFieldValue(fieldIndex));
+            }
+            final int pValueIndex = textParser.getGlobalFieldIndex("INFO", "p-value");
+            assertEquals(textParser.getDoubleFieldValue(pValueIndex), storeParser.getDoubleFieldValue(pValueIndex));
+            final int positionIndex = textParser.getGlobalFieldIndex("POS", "VALUE");
+            assertEquals(textParser.getIntFieldValue(positionIndex), storeParser.getIntFieldValue(positionIndex));
+            textParser.next();
+            storeParser.next();
+            ++numRecords;
+        }
+        assertFalse(storeParser.hasNextDataLine());
+        assertEquals(2 * NUM_RECORDS_PER_CHROMOSOME, numRecords);
+        textParser.close();
+        storeParser.close();
+    }
+
+    @Test
+    public void testPredicate() throws IOException, VCFParser.SyntaxException {
+        assertEquals(countSignificant(false), countSignificant(true));
+        assertTrue(countSignificant(true) > 0);
+    }
+
+    private int countSignificant(final boolean useColumnStore) throws IOException, VCFParser.SyntaxException {
+        final VCFParser parser = new VCFParser(VCF_FILENAME);
+        parser.setUseColumnStore(useColumnStore);
+        parser.readHeader();
+        final int pValueIndex = parser.getGlobalFieldIndex("INFO", "p-value");
+        final int positionIndex = parser.getGlobalFieldIndex("POS", "VALUE");
+        final int depthIndex = parser.getGlobalFieldIndex("sampleA", "DP");
+        parser.setProjection(positionIndex, pValueIndex);
+        parser.addPredicate(pValueIndex, 0, 0.005);
+        int count = 0;
+        while (parser.hasNextDataLine()) {
+            assertTrue(parser.getDoubleFieldValue(pValueIndex) <= 0.005);
+            assertEquals("chr2", parser.getStringFieldValue(parser.getGlobalFieldIndex("CHROM", "VALUE")));
+            if (useColumnStore) {
+                // not in the projection:
+                assertEquals("", parser.getStringFieldValue(depthIndex));
+            }
+            parser.next();
+            ++count;
+        }
+        parser.close();
+        return count;
+    }
+
+    @Test
+    public void testRange() throws IOException, VCFParser.SyntaxException {
+        final VCFParser parser = new VCFParser(VCF_FILENAME);
+        parser.readHeader();
+        final int positionIndex = parser.getGlobalFieldIndex("POS", "VALUE");
+        parser.setRange("chr2", 100001, 100200);
+        int count = 0;
+        int expectedPosition = 100001;
+        while (parser.hasNextDataLine()) {
+            assertEquals("chr2", parser.getStringColumnValue(0));
+            assertEquals(expectedPosition, parser.getIntFieldValue(positionIndex));
+            expectedPosition += 10;
+            parser.next();
+            ++count;
+        }
+        assertEquals(20, count);
+        parser.setRange("chr3", 1, 100);
+        assertFalse(parser.hasNextDataLine());
+        parser.close();
+    }
+
+    @Test
+    public void testPredicateOnChunkWithNaN() throws IOException, VCFParser.SyntaxException {
+        final String filename = BASE_TEST_DIR + "/nan.vcf";
+        final VCFWriter writer = new VCFWriter(new FileWriter(filename));
+        final int pValueIndex = writer.defineField("INFO", "p-value", 1, ColumnType.Float, "A p-value");
+        final int countIndex = writer.defineField("INFO", "count", 1, ColumnType.Integer, "A count");
+        writer.setColumnStore(filename + VCFColumnStoreWriter.FILE_SUFFIX);
+        writer.writeHeader();
+        final double[] pValues = {0.01, Double.NaN, 0.5};
+        for (int i = 0; i < pValues.length; i++) {
+            writer.setChromosome("chr1");
+            writer.setPosition(i + 1);
+            writer.setReferenceAllele("A");
+            writer.setInfo(pValueIndex, pValues[i]);
+            writer.setInfo(countIndex, i);
+            writer.writeRecord();
+        }
+        writer.close();
+        for (final boolean useColumnStore : new boolean[]{false, true}) {
+            final VCFParser parser = new VCFParser(filename);
+            parser.setUseColumnStore(useColumnStore);
+            parser.readHeader();
+            assertEquals(useColumnStore, parser.isUsingColumnStore());
+            final int parsedIndex = parser.getGlobalFieldIndex("INFO", "p-value");
+            parser.addPredicate(parsedIndex, 0, 0.05);
+            int count = 0;
+            while (parser.hasNextDataLine()) {
+                assertEquals(0.01, parser.getDoubleFieldValue(parsedIndex));
+                parser.next();
+                ++count;
+            }
+            parser.close();
+            assertEquals(1, count);
+        }
+    }
+}
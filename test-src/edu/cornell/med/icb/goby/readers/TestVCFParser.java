@@ -101,6 +101,63 @@ public class TestVCFParser {
                 format.getField("GL").description);
     }
 
+    @Test
+    public void testParallelInflate() throws IOException, VCFParser.SyntaxException {
+        final VCFParser expected = new VCFParser("test-data/vcf/example1.vcf");
+        final VCFParser parser = new VCFParser("test-data/vcf/example1.vcf.gz", 3);
+        expected.readHeader();
+        parser.readHeader();
+        assertEquals(expected.countAllFields(), parser.countAllFields());
+        int numLines = 0;
+        while (expected.hasNextDataLine()) {
+            assertTrue(parser.hasNextDataLine());
+            for (int i = 0; i < expected.countAllFields(); i++) {
+                assertEquals(expected.getStringFieldValue(i), parser.getStringFieldValue(i));
+            }
+            expected.next();
+            parser.next();
+            numLines++;
+        }
+        assertFalse(parser.hasNextDataLine());
+        assertEquals(3177, numLines);
+        expected.close();
+        parser.close();
+    }
+
+    @Test
+    public void testRange() throws IOException, VCFParser.SyntaxException {
+        assertRange("9", 10000000, 20000000);
+        assertRange("9", 1, 1000);
+        assertRange("1", 1, Integer.MAX_VALUE);
+        assertRange("9", 140000000, Integer.MAX_VALUE);
+        assertRange("not-in-file", 1, Integer.MAX_VALUE);
+    }
+
+    private void assertRange(final String chromosome, final int start, final int end)
+            throws IOException, VCFParser.SyntaxException {
+        final VCFParser expected = new VCFParser("test-data/vcf/example1.vcf");
+        expected.readHeader();
+        final VCFParser parser = new VCFParser("test-data/vcf/example1.vcf.gz", 2);
+        parser.readHeader();
+        parser.setRange(chromosome, start, end);
+        final int chromosomeIndex = expected.getGlobalFieldIndex("CHROM", "VALUE");
+        final int positionIndex = expected.getGlobalFieldIndex("POS", "VALUE");
+        while (expected.hasNextDataLine()) {
+            final int position = expected.getIntFieldValue(positionIndex);
+            if (chromosome.equals(expected.getStringFieldValue(chromosomeIndex)) &&
+                    position >= start && position <= end) {
+                assertTrue(parser.hasNextDataLine());
+                assertEquals(position, parser.getIntFieldValue(positionIndex));
+                assertEquals(chromosome, parser.getStringFieldValue(chromosomeIndex));
+                parser.next();
+            }
+            expected.next();
+        }
+        assertFalse(parser.hasNextDataLine());
+        expected.close();
+        parser.close();
+    }
+
     @Test
     public void testParse1WithGroups() throws FileNotFoundException, VCFParser.SyntaxException {
         VCFParser parser = new VCFParser(new FileReader("test-data/vcf/example-with-groups.vcf"));
@@ -279,6 +336,87 @@ public class TestVCFParser {
 
     }
 
+    @Test
+    public void testTypedFieldValues() throws IOException, VCFParser.SyntaxException {
+        final VCFParser parser = new VCFParser("test-data/vcf/typed-fields.vcf");
+        parser.readHeader();
+        final int pos = parser.getGlobalFieldIndex("POS", "VALUE");
+        final int qual = parser.getGlobalFieldIndex("QUAL", "VALUE");
+        final int infoDepth = parser.getGlobalFieldIndex("INFO", "DP");
+        final int af = parser.getGlobalFieldIndex("INFO", "AF");
+        final int strand = parser.getGlobalFieldIndex("INFO", "STRAND");
+        final int s1Depth = parser.getGlobalFieldIndex("S1", "DP");
+        final int s2Rate = parser.getGlobalFieldIndex("S2", "MR");
+
+        assertTrue(parser.hasNextDataLine());
+        assertEquals(12345, parser.getIntFieldValue(pos));
+        assertEquals(17.25, parser.getDoubleFieldValue(qual), 0);
+        assertEquals(120, parser.getIntFieldValue(infoDepth));
+        assertEquals(-0.5, parser.getDoubleFieldValue(af), 0);
+        assertEquals('+', parser.getCharFieldValue(strand));
+        assertEquals(40, parser.getIntFieldValue(s1Depth));
+        assertEquals(0.001, parser.getDoubleFieldValue(s2Rate), 0);
+        parser.next();
+
+        assertTrue(parser.hasNextDataLine());
+        assertEquals(7, parser.getIntFieldValue(infoDepth));
+        assertEquals('-', parser.getCharFieldValue(strand));
+        assertEquals(0, parser.getCharFieldValue(af));
+        assertEquals(3.0, parser.getDoubleFieldValue(qual), 0);
+        try {
+            parser.getDoubleFieldValue(af);
+            fail("A missing field cannot be parsed as a number.");
+        } catch (NumberFormatException e) {
+            // expected
+        }
+        parser.next();
+        assertTrue(parser.hasNextDataLine());
+        try {
+            parser.getIntFieldValue(qual);
+            fail("'.' is not an integer.");
+        } catch (NumberFormatException e) {
+            // expected
+        }
+        parser.close();
+    }
+
+    @Test
+    public void testFormatChangesBetweenLines() throws IOException, VCFParser.SyntaxException {
+        final VCFParser parser = new VCFParser("test-data/vcf/typed-fields.vcf");
+        parser.readHeader();
+        final int s1Genotype = parser.getGlobalFieldIndex("S1", "GT");
+        final int s1Depth = parser.getGlobalFieldIndex("S1", "DP");
+        final int s1Rate = parser.getGlobalFieldIndex("S1", "MR");
+        final int s2Depth = parser.getGlobalFieldIndex("S2", "DP");
+        final int s2Rate = parser.getGlobalFieldIndex("S2", "MR");
+
+        assertTrue(parser.hasNextDataLine());
+        assertEquals("0/1", parser.getStringFieldValue(s1Genotype));
+        assertEquals("0.125", parser.getStringFieldValue(s1Rate));
+        assertEquals(80, parser.getIntFieldValue(s2Depth));
+        parser.next();
+
+        // fields are found by FORMAT id, after a key that is not declared in the header:
+        assertTrue(parser.hasNextDataLine());
+        assertEquals("0/0", parser.getStringFieldValue(s1Genotype));
+        assertEquals(3, parser.getIntFieldValue(s1Depth));
+        assertEquals(12.5, parser.getDoubleFieldValue(s1Rate), 0);
+        assertEquals(4, parser.getIntFieldValue(s2Depth));
+        assertEquals(".", parser.getStringFieldValue(s2Rate));
+        parser.next();
+
+        // trailing sample fields may be dropped:
+        assertTrue(parser.hasNextDataLine());
+        assertEquals("./.", parser.getStringFieldValue(s1Genotype));
+        assertEquals("", parser.getStringFieldValue(s1Depth));
+        assertEquals("", parser.getStringFieldValue(s1Rate));
+        assertEquals(9, parser.getIntFieldValue(s2Depth));
+        assertEquals("1/0", parser.getColumnValue(10).toString().substring(0, 3));
+        parser.next();
+        assertFalse(parser.hasNextDataLine());
+        parser.close();
+    }
+
     @Test
     public void testParseVariableOrder() throws FileNotFoundException, VCFParser.SyntaxException {
         VCFParser parser = new VCFParser(new FileReader("test-data/vcf/example-flags.vcf"));
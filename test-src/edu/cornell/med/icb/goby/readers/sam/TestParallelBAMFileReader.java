@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.readers.sam;
+
+import edu.cornell.med.icb.goby.alignments.AlignmentReaderImpl;
+import edu.cornell.med.icb.goby.alignments.Alignments;
+import edu.cornell.med.icb.goby.modes.SAMToCompactMode;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestParallelBAMFileReader {
+    private static final String BASE_TEST_OUTPUT_DIR = "test-results/parallel-bam";
+    private static final String INPUT_SAM = "test-data/seq-var-test/seq-var-reads-gsnap.sam";
+
+    @BeforeClass
+    public static void beforeClass() throws IOException {
+        new File(BASE_TEST_OUTPUT_DIR).mkdirs();
+        // write the SAM input as BAM:
+        final SAMFileReader reader = new SAMFileReader(new File(INPUT_SAM));
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(reader.getFileHeader(), true,
+                new File(BASE_TEST_OUTPUT_DIR, "seq-var-reads-gsnap.bam"));
+        for (final SAMRecord record : reader) {
+            writer.addAlignment(record);
+        }
+        writer.close();
+        reader.close();
+        // and as SAM text compressed in the BGZF format:
+        final BlockCompressedOutputStream compressed =
+                new BlockCompressedOutputStream(new File(BASE_TEST_OUTPUT_DIR, "seq-var-reads-gsnap.sam.gz"));
+        compressed.write(FileUtils.readFileToByteArray(new File(INPUT_SAM)));
+        compressed.close();
+    }
+
+    @Test
+    public void testSameRecords() throws IOException {
+        final File bam = new File(BASE_TEST_OUTPUT_DIR, "seq-var-reads-gsnap.bam");
+        assertTrue(ParallelBAMFileReader.isBAMFile(bam));
+        assertFalse(ParallelBAMFileReader.isBAMFile(new File(INPUT_SAM)));
+        assertFalse(ParallelBAMFileReader.isBAMFile(new File(BASE_TEST_OUTPUT_DIR, "seq-var-reads-gsnap.sam.gz")));
+        final SAMFileReader expected = new SAMFileReader(new File(INPUT_SAM));
+        expected.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        final ParallelBAMFileReader reader = new ParallelBAMFileReader(bam, 3);
+        assertEquals(expected.getFileHeader().getSequenceDictionary().size(),
+                reader.getFileHeader().getSequenceDictionary().size());
+        int numRecords = 0;
+        for (final SAMRecord expectedRecord : expected) {
+            assertTrue(reader.hasNext());
+            assertEquals(expectedRecord.getSAMString(), reader.next().getSAMString());
+            numRecords++;
+        }
+        assertFalse(reader.hasNext());
+        assertEquals(28, numRecords);
+        reader.close();
+        expected.close();
+    }
+
+    @Test
+    public void testImportSameAsSingleThreaded() throws IOException {
+        final ObjectList<String> expected = importEntries(INPUT_SAM, "single-sam", 1);
+        assertEquals(expected, importEntries(INPUT_SAM, "parallel-sam", 4));
+        final String bam = FilenameUtils.concat(BASE_TEST_OUTPUT_DIR, "seq-var-reads-gsnap.bam");
+        assertEquals(expected, importEntries(bam, "single-bam", 1));
+        assertEquals(expected, importEntries(bam, "parallel-bam", 4));
+        final String compressedSam = FilenameUtils.concat(BASE_TEST_OUTPUT_DIR, "seq-var-reads-gsnap.sam.gz");
+        assertEquals(expected, importEntries(compressedSam, "compressed-sam", 4));
+    }
+
+    private ObjectList<String> importEntries(final String input, final String output, final int numThreads)
+            throws IOException {
+        final SAMToCompactMode importer = new SAMToCompactMode();
+        final String basename = FilenameUtils.concat(BASE_TEST_OUTPUT_DIR, output);
+        importer.setInputFile(input);
+        importer.setOutputFile(basename);
+        importer.setPreserveReadName(true);
+        importer.setPreserveAllTags(true);
+        importer.setNumThreads(numThreads);
+        importer.execute();
+        final ObjectList<String> entries = new ObjectArrayList<String>();
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(basename);
+        while (reader.hasNext()) {
+            final Alignments.AlignmentEntry entry = reader.next();
+            entries.add(entry.toString());
+        }
+        reader.close();
+        return entries;
+    }
+}
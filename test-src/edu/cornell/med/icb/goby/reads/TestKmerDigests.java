@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.reads;
+
+import com.google.protobuf.ByteString;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestKmerDigests {
+    @Test
+    public void testShortReads() {
+        checkMatches(20, 1);
+        checkMatches(20, 4);
+    }
+
+    @Test
+    public void testLongReads() {
+        checkMatches(32, 3);
+        checkMatches(45, 1);
+        checkMatches(45, 4);
+        checkMatches(100, 2);
+    }
+
+    @Test
+    public void testAmbiguousBases() {
+        final KmerDigests digests = new KmerDigests(4);
+        digests.add(0, ByteString.copyFromUtf8("ACGT"));
+        digests.add(1, ByteString.copyFromUtf8("ACNT"));
+        digests.add(3, ByteString.copyFromUtf8("GGCA"));
+        digests.build(2);
+        // windows that overlap the N are skipped, ACGT is its own reverse complement:
+        assertEquals("0+0 0-0 3-9 3+13 ", scan(digests, "ACGTNACNTTGCCGGCA"));
+    }
+
+    @Test
+    public void testRemove() {
+        final KmerDigests digests = new KmerDigests(3);
+        digests.add(0, "AAC".getBytes(), 0);
+        digests.add(1, "AAC".getBytes(), 0);
+        digests.build(1);
+        final KmerDigests.ReferenceScanner scanner = digests.scan("AACC".getBytes());
+        assertTrue(scanner.next());
+        final int slot = digests.find(scanner.getForwardDigest());
+        assertEquals(2, digests.getCandidatesEnd(slot) - digests.getCandidatesStart(slot));
+        digests.remove(digests.getCandidatesStart(slot));
+        assertEquals(-1, digests.getReadIndex(digests.getCandidatesStart(slot)));
+        assertEquals(1, digests.getReadIndex(digests.getCandidatesStart(slot) + 1));
+        assertEquals(-1, digests.find(scanner.getReverseDigest()));
+    }
+
+    /**
+     * Return the matches found by scanning a reference, as readIndex, strand and position.
+     */
+    private String scan(final KmerDigests digests, final String reference) {
+        final StringBuilder matches = new StringBuilder();
+        final KmerDigests.ReferenceScanner scanner = digests.scan(reference.getBytes());
+        while (scanner.next()) {
+            for (final boolean reverseStrand : new boolean[]{false, true}) {
+                final int slot = digests.find(reverseStrand ? scanner.getReverseDigest()
+                        : scanner.getForwardDigest());
+                if (slot == -1) {
+                    continue;
+                }
+                for (int i = digests.getCandidatesStart(slot); i < digests.getCandidatesEnd(slot); i++) {
+                    final int readIndex = digests.getReadIndex(i);
+                    if (reverseStrand ? scanner.matchesReverseStrand(readIndex)
+                            : scanner.matchesForwardStrand(readIndex)) {
+                        matches.append(readIndex).append(reverseStrand ? '-' : '+')
+                                .append(scanner.getPosition()).append(' ');
+                    }
+                }
+            }
+        }
+        return matches.toString();
+    }
+
+    /**
+     * Sample reads from a random reference, on both strands and with mutations, and check that scanning the
+     * reference finds the same matches as comparing every read to every window.
+     */
+    private void checkMatches(final int readLength, final int numThreads) {
+        final Random random = new Random(readLength * 31 + numThreads);
+        final String bases = "ACGT";
+        final StringBuilder reference = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            // a few Ns, and repeats so that reads match several windows:
+            reference.append(i % 997 == 0 ? 'N' : i >= 1500 && i % 1500 < 300 ? reference.charAt(i % 300)
+                    : bases.charAt(random.nextInt(4)));
+        }
+        final ObjectList<String> reads = new ObjectArrayList<String>();
+        final KmerDigests digests = new KmerDigests(readLength);
+        for (int readIndex = 0; readIndex < 2000; readIndex++) {
+            final int position = random.nextInt(reference.length() - readLength);
+            final StringBuilder read = new StringBuilder(reference.substring(position, position + readLength));
+            if (random.nextBoolean()) {
+                read.reverse();
+                for (int i = 0; i < read.length(); i++) {
+                    read.setCharAt(i, complement(read.charAt(i)));
+                }
+            }
+            if (random.nextInt(4) == 0) {
+                read.setCharAt(random.nextInt(readLength), bases.charAt(random.nextInt(4)));
+            }
+            // some read indices are not used:
+            reads.add(readIndex % 7 == 3 ? null : read.toString());
+            if (reads.get(readIndex) != null) {
+                digests.add(readIndex, ByteString.copyFromUtf8(read.toString()));
+            }
+        }
+        digests.build(numThreads);
+
+        final StringBuilder expected = new StringBuilder();
+        for (int position = 0; position + readLength <= reference.length(); position++) {
+            final String window = reference.substring(position, position + readLength);
+            if (window.indexOf('N') != -1) {
+                continue;
+            }
+            final StringBuilder reverse = new StringBuilder();
+            for (int i = readLength - 1; i >= 0; i--) {
+                reverse.append(complement(window.charAt(i)));
+            }
+            for (final String strand : new String[]{window, reverse.toString()}) {
+                for (int readIndex = 0; readIndex < reads.size(); readIndex++) {
+                    if (strand.equals(reads.get(readIndex))) {
+                        expected.append(readIndex).append(strand == window ? '+' : '-')
+                                .append(position).append(' ');
+                    }
+                }
+            }
+        }
+        assertTrue(expected.length() > 0);
+        assertEquals(expected.toString(), scan(digests, reference.toString()));
+    }
+
+    private static char complement(final char base) {
+        switch (base) {
+            case 'A':
+                return 'T';
+            case 'C':
+                return 'G';
+            case 'G':
+                return 'C';
+            case 'T':
+                return 'A';
+            default:
+                return base;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.reads;
+
+import com.google.protobuf.ByteString;
+import edu.cornell.med.icb.goby.compression.MessageChunksWriter;
+import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.input.NullInputStream;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Validates the functionality of the {@link edu.cornell.med.icb.goby.reads.ReadsChunkReader}.
+ */
+public class TestReadsChunkReader {
+    /**
+     * Make sure that an empty file is handled properly.
+     */
+    @Test
+    public void emptyFile() {
+        final ReadsChunkReader reader = new ReadsChunkReader(new NullInputStream(0));
+        assertFalse("There should be no reads in a zero-length file", reader.nextChunk());
+    }
+
+    @Test
+    public void sameAsReadsReader() throws IOException {
+        compareWithReadsReader("test-data/compact-reads/s_1_sequence_short.compact-reads");
+        compareWithReadsReader("test-data/compact-reads/s_1_sequence_short_1_per_chunk.compact-reads");
+        compareWithReadsReader("test-data/compact-reads/small-paired.compact-reads");
+        compareWithReadsReader("test-data/compact-reads/five-with-quality.compact-reads");
+        compareWithReadsReader("test-data/compact-reads/with-meta-data-input.compact-reads");
+    }
+
+    @Test
+    public void projection() throws IOException {
+        final String filename = "test-data/compact-reads/five-with-quality.compact-reads";
+        final ReadsChunkReader reader = new ReadsChunkReader(filename);
+        reader.setProjection(ReadsChunkReader.Field.QUALITY_SCORES);
+        int numberOfEntries = 0;
+        while (reader.nextChunk()) {
+            final ReadsChunk chunk = reader.getChunk();
+            for (int i = 0; i < chunk.size(); i++) {
+                assertEquals("sequence must not be decoded", 0, chunk.getSequences().length(i));
+                assertEquals("description must not be decoded", 0, chunk.getDescriptions().length(i));
+                assertEquals(chunk.getReadLength(i), chunk.getQualityScores().length(i));
+                numberOfEntries++;
+            }
+        }
+        reader.close();
+        assertEquals("There should be 5 entries in the test file", 5, numberOfEntries);
+    }
+
+    /**
+     * Read from a file that only has a single sequence per chunk, starting at the first byte.
+     * @throws IOException if the file cannot be read
+     */
+    @Test
+    public void oneSequencePerChunkSlice() throws IOException {
+        final ReadsChunkReader reader = new ReadsChunkReader(0, 1,
+                "test-data/compact-reads/s_1_sequence_short_1_per_chunk.compact-reads");
+        final MutableString sequence = new MutableString();
+        assertEquals(true, reader.nextChunk());
+        final ReadsChunk chunk = reader.getChunk();
+        assertEquals(1, chunk.size());
+        chunk.decodeSequence(0, sequence);
+        assertEquals("CTCATGTTCATACACCTNTCCCCCATTCTCCTCCT", sequence.toString());
+        assertFalse("There should be no other chunk in this slice", reader.nextChunk());
+        reader.close();
+    }
+
+    /**
+     * Chunks without reads, such as the chunk written when a writer is closed before any read is appended, are
+     * skipped rather than taken for the end of the input.
+     * @throws IOException if the reads cannot be written
+     */
+    @Test
+    public void emptyChunk() throws IOException {
+        final FastByteArrayOutputStream bytes = new FastByteArrayOutputStream();
+        final MessageChunksWriter emptyWriter = new MessageChunksWriter(bytes);
+        emptyWriter.setParser(new ReadProtobuffCollectionHandler());
+        emptyWriter.flush(Reads.ReadCollection.newBuilder());
+        final ReadsWriterImpl writer = new ReadsWriterImpl(bytes);
+        writer.setNumEntriesPerChunk(2);
+        for (int i = 0; i < 3; i++) {
+            writer.setSequence("ACGTACGT");
+            writer.appendEntry();
+        }
+        writer.close();
+
+        final ReadsChunkReader reader = new ReadsChunkReader(
+                new FastByteArrayInputStream(bytes.array, 0, bytes.length));
+        int numberOfEntries = 0;
+        while (reader.nextChunk()) {
+            numberOfEntries += reader.getChunk().size();
+        }
+        reader.close();
+        assertEquals("The reads after the empty chunk must be read", 3, numberOfEntries);
+    }
+
+    private void compareWithReadsReader(final String filename) throws IOException {
+        final ReadsReader expectedReader = new ReadsReader(filename);
+        final ReadsChunkReader reader = new ReadsChunkReader(new File(filename));
+        reader.setProjection(ReadsChunkReader.Field.values());
+        final MutableString sequence = new MutableString();
+        final MutableString expectedSequence = new MutableString();
+        int numberOfEntries = 0;
+        while (reader.nextChunk()) {
+            final ReadsChunk chunk = reader.getChunk();
+            for (int i = 0; i < chunk.size(); i++) {
+                assertEquals(true, expectedReader.hasNext());
+                final Reads.ReadEntry expected = expectedReader.next();
+                assertEquals(expected.getReadIndex(), chunk.getReadIndex(i));
+                assertEquals(expected.getReadLength(), chunk.getReadLength(i));
+                assertEquals(expected.getReadLengthPair(), chunk.getReadLengthPair(i));
+                assertEquals(expected.hasBarcodeIndex() ? expected.getBarcodeIndex() : -1, chunk.getBarcodeIndex(i));
+                ReadsReader.decodeSequence(expected, expectedSequence);
+                chunk.decodeSequence(i, sequence);
+                assertEquals(expectedSequence, sequence);
+                if (expected.hasSequencePair()) {
+                    ReadsReader.decodeSequence(expected, expectedSequence, true);
+                    chunk.decodeSequencePair(i, sequence);
+                    assertEquals(expectedSequence, sequence);
+                }
+                assertSameBytes(expected.getQualityScores(), chunk.getQualityScores(), i);
+                assertSameBytes(expected.getQualityScoresPair(), chunk.getQualityScoresPair(), i);
+                chunk.getDescriptions().get(i, sequence);
+                assertEquals(expected.getDescription(), sequence.toString());
+                chunk.getReadIdentifiers().get(i, sequence);
+                assertEquals(expected.getReadIdentifier(), sequence.toString());
+                numberOfEntries++;
+            }
+        }
+        assertFalse(filename, expectedReader.hasNext());
+        assertEquals(expectedReader.getMetaData(), reader.getMetaData());
+        reader.close();
+        expectedReader.close();
+        assertEquals(true, numberOfEntries > 0);
+    }
+
+    private void assertSameBytes(final ByteString expected, final ReadsChunk.ByteColumn column, final int i) {
+        assertEquals(expected.size(), column.length(i));
+        for (int j = 0; j < expected.size(); j++) {
+            assertEquals(expected.byteAt(j), column.byteAt(i, j));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.stats;
+
+import it.unimi.dsi.lang.MutableString;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TestNormalizedExpressionMatrix {
+    private static final int NUM_ELEMENTS = 500;
+    private static final int NUM_REPLICATES = 6;
+
+    @Test
+    public void testSameAsById() {
+        final DifferentialExpressionCalculator deCalc = makeDiffExprCalc(false);
+        for (final RpkmLikeNormalizationMethod method : new RpkmLikeNormalizationMethod[]{
+                new AlignedCountNormalization(), new BullardUpperQuartileNormalization()}) {
+            method.normalize(deCalc, "A", "B");
+            final NormalizedExpressionMatrix matrix = new NormalizedExpressionMatrix(deCalc, method);
+            for (final String sampleId : deCalc.samples()) {
+                final int sampleIndex = deCalc.getSampleIndex(sampleId);
+                for (final MutableString elementId : deCalc.getElementIds()) {
+                    final int elementIndex = deCalc.getElementIndex(elementId);
+                    assertEquals(elementId, deCalc.getElementId(elementIndex));
+                    assertEquals(deCalc.getOverlapCount(sampleId, elementId),
+                            matrix.getOverlapCount(sampleIndex, elementIndex));
+                    assertEquals(deCalc.getNormalizedExpressionValue(sampleId, method, elementId),
+                            matrix.getNormalizedExpressionValue(sampleIndex, elementIndex), 0d);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSampleIndices() {
+        final DifferentialExpressionCalculator deCalc = makeDiffExprCalc(false);
+        final int[] indices = deCalc.getSampleIndices("A");
+        assertEquals(NUM_REPLICATES, indices.length);
+        int i = 0;
+        for (final String sampleId : deCalc.getSamples("A")) {
+            assertEquals(sampleId, deCalc.getSampleId(indices[i++]));
+        }
+        deCalc.associateSampleToGroup("C-0", "A");
+        assertEquals(NUM_REPLICATES + 1, deCalc.getSampleIndices("A").length);
+        assertEquals(-1, deCalc.getSampleIndex("unknown"));
+    }
+
+    @Test
+    public void testParallelSameAsSequential() {
+        final double[] sequential = evaluate(makeDiffExprCalc(false));
+        final double[] parallel = evaluate(makeDiffExprCalc(true));
+        assertArrayEquals(sequential, parallel, 0d);
+    }
+
+    @Test
+    public void testSingleElementsReuseMatrix() {
+        final double[] expected = evaluate(makeDiffExprCalc(false));
+        final DifferentialExpressionCalculator deCalc = makeDiffExprCalc(false);
+        final NormalizationMethod method = new BullardUpperQuartileNormalization();
+        method.normalize(deCalc, "A", "B");
+        final DifferentialExpressionResults results = new DifferentialExpressionResults();
+        final TTestCalculator tTest = new TTestCalculator(results);
+        final FoldChangeCalculator foldChange = new FoldChangeCalculator(results);
+        final int tTestIndex = tTest.defineStatisticId(results, new MutableString("t-test A/B(BUQ)"));
+        final int foldChangeIndex = foldChange.defineStatisticId(results, new MutableString("fold-change A/B(BUQ)"));
+        for (int elementIndex = 0; elementIndex < NUM_ELEMENTS; elementIndex++) {
+            final DifferentialExpressionInfo info = new DifferentialExpressionInfo(deCalc.getElementId(elementIndex));
+            results.add(info);
+            tTest.evaluate(deCalc, method, results, info, "A", "B");
+            foldChange.evaluate(deCalc, method, results, info, "A", "B");
+            assertEquals(expected[2 * elementIndex], info.statistics.getDouble(tTestIndex), 0d);
+            assertEquals(expected[2 * elementIndex + 1], info.statistics.getDouble(foldChangeIndex), 0d);
+        }
+        // the values are normalized once for all the single elements of the same calculator and method:
+        final NormalizedExpressionMatrix matrix = tTest.getExpressionMatrix(deCalc, method);
+        assertSame(matrix, tTest.getExpressionMatrix(deCalc, method));
+        assertNotSame(matrix, tTest.getExpressionMatrix(deCalc, new BullardUpperQuartileNormalization()));
+        deCalc.associateSampleToGroup("A-" + NUM_REPLICATES, "A");
+        assertNotSame(matrix, tTest.getExpressionMatrix(deCalc, method));
+    }
+
+    private double[] evaluate(final DifferentialExpressionCalculator deCalc) {
+        final NormalizationMethod method = new BullardUpperQuartileNormalization();
+        method.normalize(deCalc, "A", "B");
+        DifferentialExpressionResults results = new DifferentialExpressionResults();
+        final TTestCalculator tTest = new TTestCalculator(results);
+        final FoldChangeCalculator foldChange = new FoldChangeCalculator(results);
+        results = tTest.evaluate(deCalc, method, results, "A", "B");
+        results = foldChange.evaluate(deCalc, method, results, "A", "B");
+        final int tTestIndex = results.getStatisticIndex(new MutableString("t-test A/B(BUQ)"));
+        final int foldChangeIndex = results.getStatisticIndex(new MutableString("fold-change A/B(BUQ)"));
+        final double[] values = new double[2 * NUM_ELEMENTS];
+        for (final DifferentialExpressionInfo info : results) {
+            final int elementIndex = deCalc.getElementIndex(info.getElementId());
+            values[2 * elementIndex] = info.statistics.getDouble(tTestIndex);
+            values[2 * elementIndex + 1] = info.statistics.getDouble(foldChangeIndex);
+        }
+        return values;
+    }
+
+    private DifferentialExpressionCalculator makeDiffExprCalc(final boolean parallel) {
+        final Random random = new Random(27);
+        final DifferentialExpressionCalculator deCalc = new DifferentialExpressionCalculator();
+        deCalc.setRunInParallel(parallel);
+        deCalc.defineGroup("A");
+        deCalc.defineGroup("B");
+        deCalc.reserve(NUM_ELEMENTS, 2 * NUM_REPLICATES);
+        for (int i = 0; i < NUM_ELEMENTS; i++) {
+            final int elementIndex = deCalc.defineElement("id-" + i, DifferentialExpressionCalculator.ElementType.GENE);
+            deCalc.defineElementLength(elementIndex, 100 + random.nextInt(2000));
+        }
+        for (int j = 0; j < NUM_REPLICATES; j++) {
+            deCalc.associateSampleToGroup("A-" + j, "A");
+            deCalc.associateSampleToGroup("B-" + j, "B");
+        }
+        for (final String sampleId : deCalc.samples()) {
+            final int scale = sampleId.startsWith("A") ? 200 : 100;
+            long numAligned = 0;
+            for (int i = 0; i < NUM_ELEMENTS; i++) {
+                final int count = random.nextInt(4) == 0 ? 0 : random.nextInt(scale);
+                deCalc.observe(sampleId, "id-" + i, count);
+                numAligned += count;
+            }
+            deCalc.setNumAlignedInSample(sampleId, numAligned);
+        }
+        return deCalc;
+    }
+}
@@ -27,6 +27,8 @@ import it.unimi.dsi.lang.MutableString;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.Arrays;
@@ -138,4 +140,54 @@ public class TestVCFWriter {
             fail("some syntax error was reported: " + e.getMessage());
         }
     }
+
+    @Test
+    public void testTypedValues() throws IOException {
+        final StringWriter stringWriter = new StringWriter();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeTypedRecords(new VCFWriter(stringWriter));
+        writeTypedRecords(new VCFWriter(bytes));
+        final String text = stringWriter.toString();
+        assertEquals(text, bytes.toString());
+        final String newLine = System.getProperty("line.separator");
+        assertTrue(text.contains("chr1\t12\t.\tA\tC,T\t.\t.\tcount=-42;p-value=1.0E-5;rate=0.25\tGT:DP:FREQ\t" +
+                "0/1:7:0.5\t1/1:0:" + Double.toString(1 / 3.0) + newLine));
+        // values of inactive fields are not written, and INFO values are cleared after each record:
+        assertTrue(text.contains("chr2\t\t.\t.\t.\t.\t.\tp-value=2.5;flag\tDP\t" + Integer.MIN_VALUE + "\t3" + newLine));
+    }
+
+    private void writeTypedRecords(final VCFWriter writer) {
+        final int countIndex = writer.defineField("INFO", "count", 1, ColumnType.Integer, "A count");
+        final int pValueIndex = writer.defineField("INFO", "p-value", 1, ColumnType.Float, "A p-value");
+        final int rateIndex = writer.defineField("INFO", "rate", 1, ColumnType.Float, "A rate");
+        final int flagIndex = writer.defineField("INFO", "flag", 1, ColumnType.Flag, "A flag");
+        writer.defineSamples(new String[]{"A", "B"});
+        final int genotypeIndex = writer.defineField("FORMAT", "GT", 1, ColumnType.String, "Genotype");
+        final int depthIndex = writer.defineField("FORMAT", "DP", 1, ColumnType.Integer, "Depth");
+        final int frequencyIndex = writer.defineField("FORMAT", "FREQ", 1, ColumnType.Float, "Frequency");
+        writer.writeHeader();
+        writer.setChromosome("chr1");
+        writer.setPosition(12);
+        writer.setReferenceAllele("A");
+        writer.addAlternateAllele("C");
+        writer.addAlternateAllele("T");
+        writer.setInfo(countIndex, -42);
+        writer.setInfo(pValueIndex, 0.00001);
+        writer.setInfo(rateIndex, 0.25f);
+        writer.setFlag(flagIndex, false);
+        writer.setSampleValue(genotypeIndex, 0, "0/1");
+        writer.setSampleValue(genotypeIndex, 1, "1/1");
+        writer.setSampleValue(depthIndex, 0, 7);
+        writer.setSampleValue(depthIndex, 1, 0);
+        writer.setSampleValue(frequencyIndex, 0, 0.5f);
+        writer.setSampleValue(frequencyIndex, 1, 1 / 3.0);
+        writer.writeRecord();
+        writer.setChromosome("chr2");
+        writer.setInfo(pValueIndex, 2.5);
+        writer.setFlag(flagIndex);
+        writer.setSampleValue(depthIndex, 0, Integer.MIN_VALUE);
+        writer.setSampleValue(depthIndex, 1, 3);
+        writer.writeRecord();
+        writer.close();
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.util;
+
+import net.sf.samtools.util.BlockCompressedInputStream;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestParallelBlockCompressedInputStream {
+    private static final String BASE_TEST_DIR = "test-results/bgzf";
+    private static File file;
+    private static byte[] content;
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        new File(BASE_TEST_DIR).mkdirs();
+        file = new File(BASE_TEST_DIR, "lines.txt.gz");
+        final StringBuilder builder = new StringBuilder();
+        final Random random = new Random(23);
+        for (int i = 0; i < 50000; i++) {
+            builder.append("line\t").append(i).append('\t').append(random.nextInt()).append('\n');
+        }
+        content = builder.toString().getBytes("US-ASCII");
+        final BlockCompressedOutputStream output = new BlockCompressedOutputStream(file);
+        output.write(content);
+        output.close();
+    }
+
+    @Test
+    public void testSameContent() throws IOException {
+        assertTrue(ParallelBlockCompressedInputStream.isBlockCompressed(file));
+        for (final int numThreads : new int[]{1, 3}) {
+            final ParallelBlockCompressedInputStream input = new ParallelBlockCompressedInputStream(file, numThreads);
+            assertArrayEquals(content, IOUtils.toByteArray(input));
+            assertEquals(-1, input.read());
+            input.close();
+        }
+    }
+
+    @Test
+    public void testSharedExecutor() throws IOException {
+        final ParallelBlockCompressedInputStream first = new ParallelBlockCompressedInputStream(file);
+        final ParallelBlockCompressedInputStream second = new ParallelBlockCompressedInputStream(file);
+        final byte[] buffer = new byte[1000];
+        assertEquals(buffer.length, IOUtils.read(first, buffer));
+        first.close();
+        // closing the first stream must not stop the threads that inflate blocks for the second:
+        assertFalse(ParallelBlockCompressedInputStream.getSharedExecutor().isShutdown());
+        assertArrayEquals(content, IOUtils.toByteArray(second));
+        second.close();
+        assertFalse(ParallelBlockCompressedInputStream.getSharedExecutor().isShutdown());
+    }
+
+    @Test
+    public void testSeek() throws IOException {
+        // collect virtual file pointers with the samtools implementation:
+        final BlockCompressedInputStream expected = new BlockCompressedInputStream(file);
+        final long[] pointers = new long[20];
+        final int[] offsets = new int[pointers.length];
+        final byte[] buffer = new byte[7919];
+        int offset = expected.read(buffer, 0, 1);
+        for (int i = 0; i < pointers.length; i++) {
+            pointers[i] = expected.getFilePointer();
+            offsets[i] = offset;
+            offset += expected.read(buffer);
+        }
+        expected.close();
+
+        final ParallelBlockCompressedInputStream input = new ParallelBlockCompressedInputStream(file, 2);
+        for (int i = pointers.length - 1; i >= 0; i -= 3) {
+            input.seek(pointers[i]);
+            assertEquals(pointers[i], input.getFilePointer());
+            for (int j = 0; j < 100; j++) {
+                assertEquals(content[offsets[i] + j], (byte) input.read());
+            }
+        }
+        input.close();
+    }
+
+    @Test
+    public void testPlainGzip() throws IOException {
+        assertFalse(ParallelBlockCompressedInputStream.isBlockCompressed(
+                new File("test-data/vcf/ZXWZOEV-discover-sequence-variants-output-1.vcf.gz")));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.util;
+
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestParallelBlockCompressedOutputStream {
+    private static final String BASE_TEST_DIR = "test-results/bgzf";
+    private static byte[] content;
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        new File(BASE_TEST_DIR).mkdirs();
+        final StringBuilder builder = new StringBuilder();
+        final Random random = new Random(37);
+        for (int i = 0; i < 60000; i++) {
+            builder.append("line\t").append(i).append('\t').append(random.nextInt()).append('\n');
+        }
+        content = builder.toString().getBytes("US-ASCII");
+    }
+
+    @Test
+    public void testReadBack() throws IOException {
+        for (final int numThreads : new int[]{1, 4}) {
+            final File file = new File(BASE_TEST_DIR, "parallel-" + numThreads + ".txt.gz");
+            final ParallelBlockCompressedOutputStream output = new ParallelBlockCompressedOutputStream(file, numThreads);
+            // write in pieces that straddle block boundaries:
+            int offset = 0;
+            final Random random = new Random(numThreads);
+            while (offset < content.length) {
+                final int length = Math.min(content.length - offset, random.nextInt(20000));
+                output.write(content, offset, length);
+                offset += length;
+            }
+            output.close();
+            assertTrue(ParallelBlockCompressedInputStream.isBlockCompressed(file));
+            final BlockCompressedInputStream input = new BlockCompressedInputStream(file);
+            assertEquals(BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK,
+                    BlockCompressedInputStream.checkTermination(file));
+            assertArrayEquals(content, IOUtils.toByteArray(input));
+            input.close();
+        }
+    }
+
+    @Test
+    public void testFilePointers() throws IOException {
+        final File file = new File(BASE_TEST_DIR, "pointers.txt.gz");
+        final ParallelBlockCompressedOutputStream output = new ParallelBlockCompressedOutputStream(file, 3);
+        final LongArrayList pointers = new LongArrayList();
+        final IntArrayList offsets = new IntArrayList();
+        for (int offset = 0; offset < content.length; offset += 1000) {
+            if (offset % 37000 == 0) {
+                pointers.add(output.getFilePointer());
+                offsets.add(offset);
+            }
+            output.write(content, offset, Math.min(1000, content.length - offset));
+        }
+        output.close();
+        final ParallelBlockCompressedInputStream input = new ParallelBlockCompressedInputStream(file, 2);
+        final byte[] buffer = new byte[100];
+        for (int i = pointers.size() - 1; i >= 0; i--) {
+            input.seek(pointers.getLong(i));
+            IOUtils.readFully(input, buffer);
+            for (int j = 0; j < buffer.length; j++) {
+                assertEquals(content[offsets.getInt(i) + j], buffer[j]);
+            }
+        }
+        input.close();
+    }
+
+    @Test
+    public void testOutputInfo() throws IOException {
+        final String filename = BASE_TEST_DIR + "/output-info.tsv.gz";
+        final OutputInfo outputInfo = new OutputInfo(filename);
+        outputInfo.setNumThreads(2);
+        final PrintWriter writer = outputInfo.getPrintWriter();
+        writer.write(new String(content, "US-ASCII"));
+        writer.close();
+        assertTrue(ParallelBlockCompressedInputStream.isBlockCompressed(new File(filename)));
+        final InputStream input = new GZIPInputStream(new FileInputStream(filename));
+        assertArrayEquals(content, IOUtils.toByteArray(input));
+        input.close();
+    }
+
+    @Test
+    public void testOutputInfoCannotOpen() throws IOException {
+        // a directory cannot be created under a regular file:
+        final File file = new File(BASE_TEST_DIR, "regular-file");
+        FileUtils.touch(file);
+        final OutputInfo outputInfo = new OutputInfo(new File(file, "output-info.tsv.gz").getPath());
+        try {
+            outputInfo.getPrintWriter();
+            fail("The output cannot be opened.");
+        } catch (GobyRuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}